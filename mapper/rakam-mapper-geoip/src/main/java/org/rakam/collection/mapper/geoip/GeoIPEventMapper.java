@@ -1,5 +1,6 @@
 package org.rakam.collection.mapper.geoip;
 
+import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.node.ObjectNode;
 import com.google.common.base.Joiner;
 import com.google.common.base.Preconditions;
@@ -24,9 +25,9 @@ import org.rakam.plugin.user.ISingleUserBatchOperation;
 import org.rakam.plugin.user.UserPropertyMapper;
 import org.rakam.util.MapProxyGenericRecord;
 
+import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
-import java.net.Inet4Address;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
 import java.util.Arrays;
@@ -34,6 +35,9 @@ import java.util.List;
 import java.util.stream.Collectors;
 
 import static org.rakam.collection.FieldType.STRING;
+import static org.rakam.collection.mapper.geoip.GeoIPRangeTable.DatabaseType.CITY;
+import static org.rakam.collection.mapper.geoip.GeoIPRangeTable.DatabaseType.CONNECTION_TYPE;
+import static org.rakam.collection.mapper.geoip.GeoIPRangeTable.DatabaseType.ISP;
 import static org.rakam.collection.mapper.geoip.GeoIPModule.downloadOrGetFile;
 
 public class GeoIPEventMapper
@@ -50,20 +54,28 @@ public class GeoIPEventMapper
     private final DatabaseReader ispLookup;
     private final DatabaseReader cityLookup;
 
+    private final GeoIPRangeTable connectionTypeTable;
+    private final GeoIPRangeTable ispTable;
+    private final GeoIPRangeTable cityTable;
+    private final int[] cityColumns;
+
+    private static final int[] SINGLE_COLUMN = {0};
+    private static final ThreadLocal<long[]> ADDRESS = ThreadLocal.withInitial(() -> new long[2]);
+
     public GeoIPEventMapper(GeoIPModuleConfig config)
             throws IOException
     {
         Preconditions.checkNotNull(config, "config is null");
 
-        DatabaseReader connectionTypeLookup = null, ispLookup = null, cityLookup = null;
+        String connectionTypeUrl = null, ispUrl = null, cityUrl = null;
         if (config.getAttributes() != null) {
             for (String attr : config.getAttributes()) {
                 if (CITY_DATABASE_ATTRIBUTES.contains(attr)) {
                     if (config.getDatabaseUrl() == null) {
                         throw new IllegalStateException(String.format(ERROR_MESSAGE, "plugin.geoip.database.url", attr));
                     }
-                    if (cityLookup == null) {
-                        cityLookup = getReader(config.getDatabaseUrl());
+                    if (cityUrl == null) {
+                        cityUrl = config.getDatabaseUrl();
                     }
                     continue;
                 }
@@ -71,8 +83,8 @@ public class GeoIPEventMapper
                     if (config.getIspDatabaseUrl() == null) {
                         throw new IllegalStateException(String.format(ERROR_MESSAGE, "plugin.geoip.isp-database.url", attr));
                     }
-                    if (ispLookup == null) {
-                        ispLookup = getReader(config.getIspDatabaseUrl());
+                    if (ispUrl == null) {
+                        ispUrl = config.getIspDatabaseUrl();
                     }
                     continue;
                 }
@@ -80,8 +92,8 @@ public class GeoIPEventMapper
                     if (config.getConnectionTypeDatabaseUrl() == null) {
                         throw new IllegalStateException(String.format(ERROR_MESSAGE, "plugin.geoip.connection-type-database.url", attr));
                     }
-                    if (connectionTypeLookup == null) {
-                        connectionTypeLookup = getReader(config.getConnectionTypeDatabaseUrl());
+                    if (connectionTypeUrl == null) {
+                        connectionTypeUrl = config.getConnectionTypeDatabaseUrl();
                     }
                     continue;
                 }
@@ -92,7 +104,7 @@ public class GeoIPEventMapper
         }
         else {
             if (config.getDatabaseUrl() != null) {
-                cityLookup = getReader(config.getDatabaseUrl());
+                cityUrl = config.getDatabaseUrl();
                 attributes = CITY_DATABASE_ATTRIBUTES.stream().toArray(String[]::new);
             }
             else {
@@ -101,15 +113,43 @@ public class GeoIPEventMapper
         }
 
         if (config.getIspDatabaseUrl() != null) {
-            ispLookup = getReader(config.getIspDatabaseUrl());
+            ispUrl = config.getIspDatabaseUrl();
         }
         if (config.getConnectionTypeDatabaseUrl() != null) {
-            connectionTypeLookup = getReader(config.getConnectionTypeDatabaseUrl());
+            connectionTypeUrl = config.getConnectionTypeDatabaseUrl();
+        }
+
+        if (config.getUseCompiledIndex()) {
+            int cacheSize = config.getLookupCacheSize();
+            this.cityTable = cityUrl == null ? null : GeoIPRangeTable.open(getFile(cityUrl), CITY, cacheSize);
+            this.ispTable = ispUrl == null ? null : GeoIPRangeTable.open(getFile(ispUrl), ISP, cacheSize);
+            this.connectionTypeTable = connectionTypeUrl == null ? null :
+                    GeoIPRangeTable.open(getFile(connectionTypeUrl), CONNECTION_TYPE, cacheSize);
+            this.cityColumns = cityTable == null ? null : Arrays.stream(attributes)
+                    .filter(CITY_DATABASE_ATTRIBUTES::contains).mapToInt(cityTable::getColumnIndex).toArray();
+            this.cityLookup = null;
+            this.ispLookup = null;
+            this.connectionTypeLookup = null;
         }
+        else {
+            this.cityLookup = cityUrl == null ? null : getReader(cityUrl);
+            this.ispLookup = ispUrl == null ? null : getReader(ispUrl);
+            this.connectionTypeLookup = connectionTypeUrl == null ? null : getReader(connectionTypeUrl);
+            this.cityTable = null;
+            this.ispTable = null;
+            this.connectionTypeTable = null;
+            this.cityColumns = null;
+        }
+    }
 
-        this.cityLookup = cityLookup;
-        this.ispLookup = ispLookup;
-        this.connectionTypeLookup = connectionTypeLookup;
+    private File getFile(String url)
+    {
+        try {
+            return downloadOrGetFile(url);
+        }
+        catch (Exception e) {
+            throw Throwables.propagate(e);
+        }
     }
 
     private DatabaseReader getReader(String url)
@@ -128,36 +168,94 @@ public class GeoIPEventMapper
     {
         Object ip = event.properties().get("_ip");
 
-        InetAddress addr;
         if ((ip instanceof String)) {
-            try {
-                // it may be slow because java performs reverse hostname lookup.
-                addr = Inet4Address.getByName((String) ip);
-            }
-            catch (UnknownHostException e) {
-                return null;
+            long[] address = ADDRESS.get();
+            if (IpAddressParser.parse((String) ip, address)) {
+                setFields(address, null, event.properties());
             }
         }
         else if (Boolean.TRUE == ip) {
-            addr = sourceAddress;
+            setFields(null, sourceAddress, event.properties());
         }
-        else {
-            return null;
+
+        return null;
+    }
+
+    /**
+     * Either the parsed address or the InetAddress is set, the other one is resolved only if the lookup needs it.
+     */
+    private void setFields(long[] address, InetAddress inetAddress, GenericRecord properties)
+    {
+        if (cityTable != null || ispTable != null || connectionTypeTable != null) {
+            if (address == null) {
+                address = ADDRESS.get();
+                IpAddressParser.fromInetAddress(inetAddress, address);
+            }
+
+            if (connectionTypeTable != null) {
+                setFields(connectionTypeTable, SINGLE_COLUMN, address, properties);
+            }
+
+            if (ispTable != null) {
+                setFields(ispTable, SINGLE_COLUMN, address, properties);
+            }
+
+            if (cityTable != null) {
+                setFields(cityTable, cityColumns, address, properties);
+            }
+            return;
+        }
+
+        if (inetAddress == null) {
+            try {
+                inetAddress = toInetAddress(address);
+            }
+            catch (UnknownHostException e) {
+                return;
+            }
         }
 
         if (connectionTypeLookup != null) {
-            setConnectionType(addr, event.properties());
+            setConnectionType(inetAddress, properties);
         }
 
         if (ispLookup != null) {
-            setIsp(addr, event.properties());
+            setIsp(inetAddress, properties);
         }
 
         if (cityLookup != null) {
-            setGeoFields(addr, event.properties());
+            setGeoFields(inetAddress, properties);
         }
+    }
 
-        return null;
+    private static void setFields(GeoIPRangeTable table, int[] columns, long[] address, GenericRecord properties)
+    {
+        int record = table.find(address[0], address[1]);
+        if (record >= 0) {
+            table.write(record, columns, properties);
+        }
+    }
+
+    private static InetAddress toInetAddress(long[] address)
+            throws UnknownHostException
+    {
+        byte[] bytes;
+        if (address[0] == 0 && (address[1] >>> 32) == 0) {
+            bytes = new byte[4];
+            for (int i = 0; i < 4; i++) {
+                bytes[i] = (byte) (address[1] >>> (24 - i * 8));
+            }
+        }
+        else {
+            bytes = new byte[16];
+            for (int i = 0; i < 8; i++) {
+                bytes[i] = (byte) (address[0] >>> (56 - i * 8));
+                bytes[i + 8] = (byte) (address[1] >>> (56 - i * 8));
+            }
+        }
+
+        // does not perform a hostname lookup
+        return InetAddress.getByAddress(bytes);
     }
 
     @Override
@@ -177,34 +275,22 @@ public class GeoIPEventMapper
 
     public void mapInternal(String project, ObjectNode data, InetAddress sourceAddress)
     {
-            Object ip = data.get("_ip");
+            JsonNode ip = data.get("_ip");
 
             if (ip == null) {
                 return;
             }
 
-            if ((ip instanceof String)) {
-                try {
-                    // it may be slow because java performs reverse hostname lookup.
-                    sourceAddress = Inet4Address.getByName((String) ip);
-                }
-                catch (UnknownHostException e) {
-                    return;
-                }
-            }
-
             GenericRecord record = new MapProxyGenericRecord(data);
 
-            if (connectionTypeLookup != null) {
-                setConnectionType(sourceAddress, record);
-            }
-
-            if (ispLookup != null) {
-                setIsp(sourceAddress, record);
+            if (ip.isTextual()) {
+                long[] address = ADDRESS.get();
+                if (IpAddressParser.parse(ip.textValue(), address)) {
+                    setFields(address, null, record);
+                }
             }
-
-            if (cityLookup != null) {
-                setGeoFields(sourceAddress, record);
+            else {
+                setFields(null, sourceAddress, record);
             }
     }
 
@@ -215,11 +301,11 @@ public class GeoIPEventMapper
                 .map(attr -> new SchemaField("_" + attr, getType(attr)))
                 .collect(Collectors.toList());
 
-        if (ispLookup != null) {
+        if (ispLookup != null || ispTable != null) {
             fields.add(new SchemaField("_isp", STRING));
         }
 
-        if (connectionTypeLookup != null) {
+        if (connectionTypeLookup != null || connectionTypeTable != null) {
             fields.add(new SchemaField("_connection_type", STRING));
         }
 
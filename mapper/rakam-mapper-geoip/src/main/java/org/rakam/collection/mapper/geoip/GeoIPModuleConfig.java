@@ -13,6 +13,8 @@ public class GeoIPModuleConfig {
     private String ispDatabaseUrl;
     private String connectionTypeDatabaseUrl;
     private boolean useExistingFields;
+    private boolean useCompiledIndex;
+    private int lookupCacheSize = 8192;
 
     @Config("plugin.geoip.database.url")
     public GeoIPModuleConfig setDatabaseUrl(String url)
@@ -69,4 +71,29 @@ public class GeoIPModuleConfig {
     public boolean getUseExistingFields() {
         return useExistingFields;
     }
+
+    @Config("plugin.geoip.use-compiled-index")
+    @ConfigDescription("Compiles the databases into a memory-mapped range table that only holds the attached fields " +
+            "instead of querying the MaxMind databases for each event")
+    public GeoIPModuleConfig setUseCompiledIndex(boolean useCompiledIndex)
+    {
+        this.useCompiledIndex = useCompiledIndex;
+        return this;
+    }
+
+    public boolean getUseCompiledIndex() {
+        return useCompiledIndex;
+    }
+
+    @Config("plugin.geoip.lookup-cache-size")
+    @ConfigDescription("The number of recently looked up IP addresses that are cached per database when the compiled index is used")
+    public GeoIPModuleConfig setLookupCacheSize(int lookupCacheSize)
+    {
+        this.lookupCacheSize = lookupCacheSize;
+        return this;
+    }
+
+    public int getLookupCacheSize() {
+        return lookupCacheSize;
+    }
 }
@@ -0,0 +1,490 @@
+package org.rakam.collection.mapper.geoip;
+
+import com.google.common.collect.ImmutableList;
+import com.maxmind.db.Reader;
+import com.maxmind.geoip2.DatabaseReader;
+import com.maxmind.geoip2.exception.AddressNotFoundException;
+import com.maxmind.geoip2.exception.GeoIp2Exception;
+import com.maxmind.geoip2.model.CityResponse;
+import com.maxmind.geoip2.model.ConnectionTypeResponse;
+import io.airlift.log.Logger;
+import org.apache.avro.generic.GenericRecord;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.InetAddress;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A GeoIP database compiled into a sorted table of address ranges. Each range points to a record that only
+ * holds the fields that are attached to the events. The table is written next to the MaxMind database file and
+ * memory-mapped, the lookups are binary searches over the mapped file and don't allocate.
+ * <p>
+ * The compiled file is reused as long as the size and modification time of the source database don't change.
+ */
+public class GeoIPRangeTable
+{
+    private static final Logger LOGGER = Logger.get(GeoIPRangeTable.class);
+
+    private static final int MAGIC = 0x524B4749;
+    private static final int FORMAT_VERSION = 1;
+    private static final int HEADER_SIZE = 40;
+    private static final int NOT_FOUND = -1;
+
+    public enum DatabaseType
+    {
+        CITY(ImmutableList.of("country_code", "region", "city", "timezone"), ImmutableList.of("latitude", "longitude")) {
+            @Override
+            Object[] lookup(DatabaseReader reader, InetAddress address)
+                    throws IOException, GeoIp2Exception
+            {
+                CityResponse city = reader.city(address);
+                return new Object[] {city.getCountry().getIsoCode(), city.getContinent().getName(),
+                        city.getCity().getName(), city.getLocation().getTimeZone(),
+                        city.getLocation().getLatitude(), city.getLocation().getLongitude()};
+            }
+        },
+        ISP(ImmutableList.of("isp"), ImmutableList.of()) {
+            @Override
+            Object[] lookup(DatabaseReader reader, InetAddress address)
+                    throws IOException, GeoIp2Exception
+            {
+                return new Object[] {reader.isp(address).getIsp()};
+            }
+        },
+        CONNECTION_TYPE(ImmutableList.of("connection_type"), ImmutableList.of()) {
+            @Override
+            Object[] lookup(DatabaseReader reader, InetAddress address)
+                    throws IOException, GeoIp2Exception
+            {
+                ConnectionTypeResponse.ConnectionType type = reader.connectionType(address).getConnectionType();
+                return new Object[] {type == null ? null : type.name()};
+            }
+        };
+
+        private final List<String> stringColumns;
+        private final List<String> doubleColumns;
+
+        DatabaseType(List<String> stringColumns, List<String> doubleColumns)
+        {
+            this.stringColumns = stringColumns;
+            this.doubleColumns = doubleColumns;
+        }
+
+        abstract Object[] lookup(DatabaseReader reader, InetAddress address)
+                throws IOException, GeoIp2Exception;
+
+        private int recordSize()
+        {
+            return stringColumns.size() * 4 + doubleColumns.size() * 8;
+        }
+    }
+
+    private final DatabaseType type;
+    private final MappedByteBuffer buffer;
+    private final int rangeCount;
+    private final int rangeRecordsOffset;
+    private final int recordsOffset;
+    private final int recordSize;
+    private final String[] dictionary;
+    private final String[] fieldNames;
+
+    private final int cacheMask;
+    private final AtomicLongArray ipv4Cache;
+    private final AtomicReferenceArray<long[]> ipv6Cache;
+
+    private GeoIPRangeTable(DatabaseType type, MappedByteBuffer buffer, int cacheSize)
+    {
+        this.type = type;
+        this.buffer = buffer;
+        this.rangeCount = buffer.getInt(28);
+        int recordCount = buffer.getInt(32);
+        int dictionarySize = buffer.getInt(36);
+
+        this.rangeRecordsOffset = HEADER_SIZE + rangeCount * 16;
+        this.recordsOffset = rangeRecordsOffset + rangeCount * 4;
+        this.recordSize = type.recordSize();
+
+        // the dictionary is small compared to the ranges and the values are put into events as they are
+        int position = recordsOffset + recordCount * recordSize;
+        this.dictionary = new String[dictionarySize];
+        for (int i = 0; i < dictionarySize; i++) {
+            int length = buffer.getInt(position);
+            byte[] bytes = new byte[length];
+            for (int j = 0; j < length; j++) {
+                bytes[j] = buffer.get(position + 4 + j);
+            }
+            dictionary[i] = new String(bytes, StandardCharsets.UTF_8);
+            position += 4 + length;
+        }
+
+        this.fieldNames = new String[type.stringColumns.size() + type.doubleColumns.size()];
+        for (int i = 0; i < fieldNames.length; i++) {
+            String column = i < type.stringColumns.size() ?
+                    type.stringColumns.get(i) : type.doubleColumns.get(i - type.stringColumns.size());
+            fieldNames[i] = "_" + column;
+        }
+
+        if (cacheSize > 0) {
+            int slots = Integer.highestOneBit(Math.max(cacheSize - 1, 1)) << 1;
+            this.cacheMask = slots - 1;
+            this.ipv4Cache = new AtomicLongArray(slots);
+            this.ipv6Cache = new AtomicReferenceArray<>(slots);
+        }
+        else {
+            this.cacheMask = 0;
+            this.ipv4Cache = null;
+            this.ipv6Cache = null;
+        }
+    }
+
+    public static GeoIPRangeTable open(File database, DatabaseType type, int cacheSize)
+            throws IOException
+    {
+        File compiled = new File(database.getPath() + ".ranges");
+        if (!isUpToDate(compiled, database, type)) {
+            compile(database, type, compiled);
+        }
+
+        try (RandomAccessFile file = new RandomAccessFile(compiled, "r")) {
+            FileChannel channel = file.getChannel();
+            return new GeoIPRangeTable(type, channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()), cacheSize);
+        }
+    }
+
+    public DatabaseType getType()
+    {
+        return type;
+    }
+
+    public int getColumnIndex(String attribute)
+    {
+        int index = type.stringColumns.indexOf(attribute);
+        if (index > -1) {
+            return index;
+        }
+        index = type.doubleColumns.indexOf(attribute);
+        if (index > -1) {
+            return type.stringColumns.size() + index;
+        }
+        throw new IllegalArgumentException(String.format("%s database doesn't have %s", type, attribute));
+    }
+
+    /**
+     * @return the record of the range that contains the address or -1 if the address is not in the database.
+     */
+    public int find(long high, long low)
+    {
+        if (ipv4Cache != null) {
+            if (high == 0 && (low >>> 32) == 0) {
+                int slot = slot(high, low);
+                long entry = ipv4Cache.get(slot);
+                // the address is kept in the upper half and record + 2 in the lower half so that empty slots never match.
+                if (entry != 0 && (entry >>> 32) == low) {
+                    return (int) entry - 2;
+                }
+                int record = search(high, low);
+                ipv4Cache.lazySet(slot, (low << 32) | (record + 2));
+                return record;
+            }
+            else {
+                int slot = slot(high, low);
+                long[] entry = ipv6Cache.get(slot);
+                if (entry != null && entry[0] == high && entry[1] == low) {
+                    return (int) entry[2];
+                }
+                int record = search(high, low);
+                ipv6Cache.lazySet(slot, new long[] {high, low, record});
+                return record;
+            }
+        }
+
+        return search(high, low);
+    }
+
+    /**
+     * Puts the given columns of the record to the properties.
+     */
+    public void write(int record, int[] columns, GenericRecord properties)
+    {
+        int stringColumnCount = type.stringColumns.size();
+        int recordOffset = recordsOffset + record * recordSize;
+        for (int column : columns) {
+            if (column < stringColumnCount) {
+                int value = buffer.getInt(recordOffset + column * 4);
+                properties.put(fieldNames[column], value == NOT_FOUND ? null : dictionary[value]);
+            }
+            else {
+                double value = buffer.getDouble(recordOffset + stringColumnCount * 4 + (column - stringColumnCount) * 8);
+                properties.put(fieldNames[column], Double.isNaN(value) ? null : value);
+            }
+        }
+    }
+
+    private int slot(long high, long low)
+    {
+        long hash = (low * 0x9E3779B97F4A7C15L) ^ (high * 0xC2B2AE3D27D4EB4FL);
+        return (int) (hash ^ (hash >>> 32)) & cacheMask;
+    }
+
+    private int search(long high, long low)
+    {
+        // finds the last range that starts before or at the address
+        int from = 0, to = rangeCount - 1, result = -1;
+        while (from <= to) {
+            int middle = (from + to) >>> 1;
+            int offset = HEADER_SIZE + middle * 16;
+            int compare = compare(buffer.getLong(offset), buffer.getLong(offset + 8), high, low);
+            if (compare <= 0) {
+                result = middle;
+                from = middle + 1;
+            }
+            else {
+                to = middle - 1;
+            }
+        }
+
+        return result == -1 ? NOT_FOUND : buffer.getInt(rangeRecordsOffset + result * 4);
+    }
+
+    private static int compare(long high1, long low1, long high2, long low2)
+    {
+        int compare = Long.compareUnsigned(high1, high2);
+        return compare != 0 ? compare : Long.compareUnsigned(low1, low2);
+    }
+
+    private static boolean isUpToDate(File compiled, File database, DatabaseType type)
+            throws IOException
+    {
+        if (!compiled.exists() || compiled.length() < HEADER_SIZE) {
+            return false;
+        }
+
+        try (RandomAccessFile file = new RandomAccessFile(compiled, "r")) {
+            return file.readInt() == MAGIC
+                    && file.readInt() == FORMAT_VERSION
+                    && file.readInt() == type.ordinal()
+                    && file.readLong() == database.length()
+                    && file.readLong() == database.lastModified();
+        }
+    }
+
+    private static void compile(File database, DatabaseType type, File target)
+            throws IOException
+    {
+        long startTime = System.currentTimeMillis();
+
+        MaxMindDatabaseWalker walker = new MaxMindDatabaseWalker(database);
+        DatabaseReader reader = new DatabaseReader.Builder(database).fileMode(Reader.FileMode.MEMORY_MAPPED).build();
+
+        RangeBuilder ranges = new RangeBuilder();
+        Map<Long, Integer> recordIndexes = new HashMap<>();
+        Map<String, Integer> dictionaryIndexes = new HashMap<>();
+        List<String> dictionary = new ArrayList<>();
+        ByteArrayOutputStream recordBytes = new ByteArrayOutputStream();
+        DataOutputStream records = new DataOutputStream(recordBytes);
+        int[] recordCount = new int[1];
+
+        try {
+            walker.walk((high, low, prefixLength, dataOffset) -> {
+                Integer record = recordIndexes.get(dataOffset);
+                if (record == null) {
+                    Object[] values;
+                    try {
+                        values = type.lookup(reader, toInetAddress(high, low, walker.getIpVersion()));
+                    }
+                    catch (AddressNotFoundException e) {
+                        values = null;
+                    }
+                    catch (GeoIp2Exception e) {
+                        throw new IOException(e);
+                    }
+
+                    if (values == null) {
+                        record = NOT_FOUND;
+                    }
+                    else {
+                        record = recordCount[0]++;
+                        writeRecord(type, values, records, dictionary, dictionaryIndexes);
+                    }
+                    recordIndexes.put(dataOffset, record);
+                }
+
+                ranges.add(high, low, prefixLength, record);
+            });
+        }
+        finally {
+            reader.close();
+        }
+
+        ranges.finish();
+
+        File temporary = new File(target.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temporary)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(FORMAT_VERSION);
+            out.writeInt(type.ordinal());
+            out.writeLong(database.length());
+            out.writeLong(database.lastModified());
+            out.writeInt(ranges.size);
+            out.writeInt(recordCount[0]);
+            out.writeInt(dictionary.size());
+
+            for (int i = 0; i < ranges.size; i++) {
+                out.writeLong(ranges.highs[i]);
+                out.writeLong(ranges.lows[i]);
+            }
+            for (int i = 0; i < ranges.size; i++) {
+                out.writeInt(ranges.records[i]);
+            }
+
+            records.flush();
+            recordBytes.writeTo(out);
+
+            for (String value : dictionary) {
+                byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+                out.writeInt(bytes.length);
+                out.write(bytes);
+            }
+        }
+
+        if (temporary.length() > Integer.MAX_VALUE) {
+            temporary.delete();
+            throw new IOException("Compiled GeoIP database is too large: " + database.getName());
+        }
+
+        Files.move(temporary.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+        LOGGER.info("Compiled GeoIP database %s into %d ranges and %d records in %dms", database.getName(),
+                ranges.size, recordCount[0], System.currentTimeMillis() - startTime);
+    }
+
+    private static void writeRecord(DatabaseType type, Object[] values, DataOutputStream records,
+            List<String> dictionary, Map<String, Integer> dictionaryIndexes)
+            throws IOException
+    {
+        int stringColumnCount = type.stringColumns.size();
+        for (int i = 0; i < stringColumnCount; i++) {
+            String value = (String) values[i];
+            if (value == null) {
+                records.writeInt(NOT_FOUND);
+                continue;
+            }
+
+            Integer index = dictionaryIndexes.get(value);
+            if (index == null) {
+                index = dictionary.size();
+                dictionary.add(value);
+                dictionaryIndexes.put(value, index);
+            }
+            records.writeInt(index);
+        }
+
+        for (int i = stringColumnCount; i < values.length; i++) {
+            Double value = (Double) values[i];
+            records.writeDouble(value == null ? Double.NaN : value);
+        }
+    }
+
+    private static InetAddress toInetAddress(long high, long low, int ipVersion)
+            throws IOException
+    {
+        byte[] bytes;
+        if (ipVersion == 4) {
+            bytes = new byte[4];
+            for (int i = 0; i < 4; i++) {
+                bytes[i] = (byte) (low >>> (24 - i * 8));
+            }
+        }
+        else {
+            bytes = new byte[16];
+            for (int i = 0; i < 8; i++) {
+                bytes[i] = (byte) (high >>> (56 - i * 8));
+                bytes[i + 8] = (byte) (low >>> (56 - i * 8));
+            }
+        }
+
+        return InetAddress.getByAddress(bytes);
+    }
+
+    /**
+     * Collects the networks in ascending order, merges the adjacent ones that point to the same record and
+     * fills the gaps between the networks with empty ranges.
+     */
+    private static class RangeBuilder
+    {
+        private long[] highs = new long[1024];
+        private long[] lows = new long[1024];
+        private int[] records = new int[1024];
+        private int size;
+
+        // the first address after the last network, the end of the address space is marked with endReached
+        private long nextHigh;
+        private long nextLow;
+        private boolean endReached;
+
+        public void add(long high, long low, int prefixLength, int record)
+        {
+            if (high != nextHigh || low != nextLow) {
+                append(nextHigh, nextLow, NOT_FOUND);
+            }
+            append(high, low, record);
+
+            int hostBits = 128 - prefixLength;
+            if (hostBits == 128) {
+                endReached = true;
+            }
+            else if (hostBits >= 64) {
+                nextHigh = high + (1L << (hostBits - 64));
+                nextLow = low;
+                endReached = nextHigh == 0;
+            }
+            else {
+                nextLow = low + (1L << hostBits);
+                nextHigh = Long.compareUnsigned(nextLow, low) < 0 ? high + 1 : high;
+                endReached = nextHigh == 0 && nextLow == 0;
+            }
+        }
+
+        public void finish()
+        {
+            if (!endReached) {
+                append(nextHigh, nextLow, NOT_FOUND);
+            }
+        }
+
+        private void append(long high, long low, int record)
+        {
+            if (size > 0 && records[size - 1] == record) {
+                return;
+            }
+
+            if (size == highs.length) {
+                highs = Arrays.copyOf(highs, size * 2);
+                lows = Arrays.copyOf(lows, size * 2);
+                records = Arrays.copyOf(records, size * 2);
+            }
+
+            highs[size] = high;
+            lows[size] = low;
+            records[size] = record;
+            size++;
+        }
+    }
+}
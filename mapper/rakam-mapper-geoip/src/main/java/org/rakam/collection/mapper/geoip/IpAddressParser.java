@@ -0,0 +1,241 @@
+package org.rakam.collection.mapper.geoip;
+
+import java.net.InetAddress;
+
+/**
+ * Parses IPv4 and IPv6 literals into a 128-bit address without going through the resolver
+ * and without allocating. IPv4 addresses (and IPv4-mapped IPv6 addresses) are stored as ::a.b.c.d,
+ * which is also where MaxMind databases keep the IPv4 subtree.
+ */
+public final class IpAddressParser
+{
+    private IpAddressParser()
+    {
+    }
+
+    /**
+     * @param out the high 64 bits are written to out[0] and the low 64 bits to out[1].
+     * @return false if the value is not a valid IPv4 or IPv6 literal
+     */
+    public static boolean parse(CharSequence ip, long[] out)
+    {
+        int length = ip.length();
+        if (length == 0 || length > 45) {
+            return false;
+        }
+
+        for (int i = 0; i < length; i++) {
+            if (ip.charAt(i) == ':') {
+                return parseIpv6(ip, length, out);
+            }
+        }
+
+        long ipv4 = parseIpv4(ip, 0, length);
+        if (ipv4 < 0) {
+            return false;
+        }
+        out[0] = 0;
+        out[1] = ipv4;
+        return true;
+    }
+
+    public static void fromInetAddress(InetAddress address, long[] out)
+    {
+        byte[] bytes = address.getAddress();
+        if (bytes.length == 4) {
+            out[0] = 0;
+            out[1] = readInt(bytes, 0) & 0xFFFFFFFFL;
+            return;
+        }
+
+        long high = 0, low = 0;
+        for (int i = 0; i < 8; i++) {
+            high = (high << 8) | (bytes[i] & 0xFF);
+            low = (low << 8) | (bytes[i + 8] & 0xFF);
+        }
+        normalize(high, low, out);
+    }
+
+    /**
+     * @return the address as an unsigned 32-bit value or -1 if the value is not a valid IPv4 literal.
+     */
+    static long parseIpv4(CharSequence ip, int start, int end)
+    {
+        long address = 0;
+        int octets = 0;
+        int value = -1;
+        int digits = 0;
+
+        for (int i = start; i < end; i++) {
+            char c = ip.charAt(i);
+            if (c == '.') {
+                if (value < 0 || ++octets > 3) {
+                    return -1;
+                }
+                address = (address << 8) | value;
+                value = -1;
+                digits = 0;
+            }
+            else if (c >= '0' && c <= '9') {
+                // leading zeros are rejected because the resolver treats them as octal
+                if (digits > 0 && value == 0) {
+                    return -1;
+                }
+                value = (value < 0 ? 0 : value * 10) + (c - '0');
+                if (++digits > 3 || value > 255) {
+                    return -1;
+                }
+            }
+            else {
+                return -1;
+            }
+        }
+
+        if (value < 0 || octets != 3) {
+            return -1;
+        }
+
+        return (address << 8) | value;
+    }
+
+    private static boolean parseIpv6(CharSequence ip, int length, long[] out)
+    {
+        // groups before '::' are accumulated in head, groups after it in tail
+        long headHigh = 0, headLow = 0, tailHigh = 0, tailLow = 0;
+        int headGroups = 0, tailGroups = 0;
+        boolean compressed = false;
+        int i = 0;
+
+        if (ip.charAt(0) == ':') {
+            if (length < 2 || ip.charAt(1) != ':') {
+                return false;
+            }
+            compressed = true;
+            i = 2;
+        }
+
+        while (i < length) {
+            if (headGroups + tailGroups == 8) {
+                return false;
+            }
+
+            int groupStart = i;
+            int value = 0;
+            while (i < length && i - groupStart < 5) {
+                int digit = hexDigit(ip.charAt(i));
+                if (digit < 0) {
+                    break;
+                }
+                value = (value << 4) | digit;
+                i++;
+            }
+
+            int groupCount;
+            long groupValue;
+            if (i < length && ip.charAt(i) == '.') {
+                // embedded IPv4 address, it must be the last part of the literal
+                long ipv4 = parseIpv4(ip, groupStart, length);
+                if (ipv4 < 0 || headGroups + tailGroups > 6) {
+                    return false;
+                }
+                groupCount = 2;
+                groupValue = ipv4;
+                i = length;
+            }
+            else {
+                int digits = i - groupStart;
+                if (digits == 0 || digits > 4) {
+                    return false;
+                }
+                groupCount = 1;
+                groupValue = value;
+            }
+
+            int bits = groupCount * 16;
+            if (compressed) {
+                tailHigh = (tailHigh << bits) | (tailLow >>> (64 - bits));
+                tailLow = (tailLow << bits) | groupValue;
+                tailGroups += groupCount;
+            }
+            else {
+                headHigh = (headHigh << bits) | (headLow >>> (64 - bits));
+                headLow = (headLow << bits) | groupValue;
+                headGroups += groupCount;
+            }
+
+            if (i == length) {
+                break;
+            }
+            if (ip.charAt(i) != ':' || ++i == length) {
+                return false;
+            }
+            if (ip.charAt(i) == ':') {
+                if (compressed) {
+                    return false;
+                }
+                compressed = true;
+                i++;
+            }
+        }
+
+        if (!compressed) {
+            if (headGroups != 8) {
+                return false;
+            }
+            normalize(headHigh, headLow, out);
+            return true;
+        }
+
+        if (headGroups + tailGroups > 7) {
+            return false;
+        }
+
+        // move the head groups to the top of the address, the tail is already right-aligned
+        int shift = (8 - headGroups) * 16;
+        if (headGroups == 0) {
+            headHigh = 0;
+            headLow = 0;
+        }
+        else if (shift >= 64) {
+            headHigh = headLow << (shift - 64);
+            headLow = 0;
+        }
+        else {
+            headHigh = (headHigh << shift) | (headLow >>> (64 - shift));
+            headLow = headLow << shift;
+        }
+
+        normalize(headHigh | tailHigh, headLow | tailLow, out);
+        return true;
+    }
+
+    private static int hexDigit(char c)
+    {
+        if (c >= '0' && c <= '9') {
+            return c - '0';
+        }
+        if (c >= 'a' && c <= 'f') {
+            return c - 'a' + 10;
+        }
+        if (c >= 'A' && c <= 'F') {
+            return c - 'A' + 10;
+        }
+        return -1;
+    }
+
+    private static void normalize(long high, long low, long[] out)
+    {
+        // IPv4-mapped (::ffff:a.b.c.d) addresses share the IPv4 ranges
+        if (high == 0 && (low >>> 32) == 0xFFFFL) {
+            low &= 0xFFFFFFFFL;
+        }
+        out[0] = high;
+        out[1] = low;
+    }
+
+    private static int readInt(byte[] bytes, int offset)
+    {
+        return ((bytes[offset] & 0xFF) << 24) | ((bytes[offset + 1] & 0xFF) << 16)
+                | ((bytes[offset + 2] & 0xFF) << 8) | (bytes[offset + 3] & 0xFF);
+    }
+}
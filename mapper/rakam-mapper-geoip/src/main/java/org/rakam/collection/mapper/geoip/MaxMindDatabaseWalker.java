@@ -0,0 +1,268 @@
+package org.rakam.collection.mapper.geoip;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Walks the binary search tree of a MaxMind DB file and reports every network that has a data record,
+ * in ascending address order. The data records themselves are not decoded here, the walker only reports
+ * their offset in the data section so that the caller can decode each distinct record once.
+ *
+ * See http://maxmind.github.io/MaxMind-DB/ for the file format.
+ */
+class MaxMindDatabaseWalker
+{
+    private static final byte[] METADATA_START_MARKER = {(byte) 0xAB, (byte) 0xCD, (byte) 0xEF,
+            'M', 'a', 'x', 'M', 'i', 'n', 'd', '.', 'c', 'o', 'm'};
+    private static final int METADATA_MAX_SIZE = 128 * 1024;
+
+    private final MappedByteBuffer buffer;
+    private final int nodeCount;
+    private final int recordSize;
+    private final int ipVersion;
+
+    public MaxMindDatabaseWalker(File file)
+            throws IOException
+    {
+        try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r")) {
+            FileChannel channel = randomAccessFile.getChannel();
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+
+        Map<String, Object> metadata = readMetadata(buffer);
+        nodeCount = ((Number) metadata.get("node_count")).intValue();
+        recordSize = ((Number) metadata.get("record_size")).intValue();
+        ipVersion = ((Number) metadata.get("ip_version")).intValue();
+
+        if (recordSize != 24 && recordSize != 28 && recordSize != 32) {
+            throw new IOException("Unsupported MaxMind DB record size: " + recordSize);
+        }
+    }
+
+    public int getIpVersion()
+    {
+        return ipVersion;
+    }
+
+    public interface NetworkVisitor
+    {
+        /**
+         * @param high high 64 bits of the first address of the network
+         * @param low low 64 bits of the first address of the network
+         * @param prefixLength prefix length of the network in the 128-bit address space
+         * @param dataOffset offset of the record in the data section, the same offset means the same record.
+         */
+        void visit(long high, long low, int prefixLength, long dataOffset)
+                throws IOException;
+    }
+
+    public void walk(NetworkVisitor visitor)
+            throws IOException
+    {
+        int bitCount = ipVersion == 6 ? 128 : 32;
+        // IPv4 databases are placed at ::a.b.c.d so that they share the address space with IPv6 databases.
+        int baseDepth = 128 - bitCount;
+
+        // every popped entry is either a node to expand or a leaf record, both children are pushed
+        // so that the networks are reported in ascending order. There is at most one pending sibling per level.
+        long[] records = new long[bitCount + 2];
+        int[] depths = new int[bitCount + 2];
+        long[] highs = new long[bitCount + 2];
+        long[] lows = new long[bitCount + 2];
+
+        int stackSize = 1;
+        records[0] = 0;
+        depths[0] = 0;
+        highs[0] = 0;
+        lows[0] = 0;
+
+        while (stackSize > 0) {
+            stackSize--;
+            long record = records[stackSize];
+            int depth = depths[stackSize];
+            long high = highs[stackSize];
+            long low = lows[stackSize];
+
+            if (record > nodeCount) {
+                // the data section starts after the search tree and a 16-byte separator
+                visitor.visit(high, low, baseDepth + depth, record - nodeCount - 16);
+                continue;
+            }
+            if (record == nodeCount || depth == bitCount) {
+                continue;
+            }
+
+            int node = (int) record;
+            int bit = baseDepth + depth;
+
+            records[stackSize] = readRecord(node, 1);
+            depths[stackSize] = depth + 1;
+            highs[stackSize] = bit < 64 ? high | (1L << (63 - bit)) : high;
+            lows[stackSize] = bit < 64 ? low : low | (1L << (127 - bit));
+            stackSize++;
+
+            records[stackSize] = readRecord(node, 0);
+            depths[stackSize] = depth + 1;
+            highs[stackSize] = high;
+            lows[stackSize] = low;
+            stackSize++;
+        }
+    }
+
+    private long readRecord(int node, int index)
+    {
+        switch (recordSize) {
+            case 24: {
+                int offset = node * 6 + index * 3;
+                return readUnsigned(offset, 3);
+            }
+            case 28: {
+                int offset = node * 7;
+                int middle = buffer.get(offset + 3) & 0xFF;
+                if (index == 0) {
+                    return ((middle & 0xF0L) << 20) | readUnsigned(offset, 3);
+                }
+                return ((middle & 0x0FL) << 24) | readUnsigned(offset + 4, 3);
+            }
+            case 32:
+                return readUnsigned(node * 8 + index * 4, 4);
+            default:
+                throw new IllegalStateException();
+        }
+    }
+
+    private long readUnsigned(int offset, int size)
+    {
+        long value = 0;
+        for (int i = 0; i < size; i++) {
+            value = (value << 8) | (buffer.get(offset + i) & 0xFF);
+        }
+        return value;
+    }
+
+    private static Map<String, Object> readMetadata(ByteBuffer buffer)
+            throws IOException
+    {
+        int limit = buffer.capacity();
+        int lowerBound = Math.max(0, limit - METADATA_MAX_SIZE);
+
+        for (int start = limit - METADATA_START_MARKER.length; start >= lowerBound; start--) {
+            boolean matches = true;
+            for (int i = 0; i < METADATA_START_MARKER.length; i++) {
+                if (buffer.get(start + i) != METADATA_START_MARKER[i]) {
+                    matches = false;
+                    break;
+                }
+            }
+
+            if (matches) {
+                Object metadata = new MetadataDecoder(buffer, start + METADATA_START_MARKER.length).decode();
+                if (!(metadata instanceof Map)) {
+                    throw new IOException("Invalid MaxMind DB metadata");
+                }
+                return (Map<String, Object>) metadata;
+            }
+        }
+
+        throw new IOException("Could not find MaxMind DB metadata in the file");
+    }
+
+    /**
+     * Decodes the subset of the MaxMind DB data types that may appear in the metadata section.
+     */
+    private static class MetadataDecoder
+    {
+        private final ByteBuffer buffer;
+        private int position;
+
+        private MetadataDecoder(ByteBuffer buffer, int position)
+        {
+            this.buffer = buffer;
+            this.position = position;
+        }
+
+        private Object decode()
+                throws IOException
+        {
+            int control = buffer.get(position++) & 0xFF;
+            int type = control >>> 5;
+            if (type == 0) {
+                type = 7 + (buffer.get(position++) & 0xFF);
+            }
+
+            int size = control & 0x1F;
+            if (size == 29) {
+                size = 29 + (buffer.get(position++) & 0xFF);
+            }
+            else if (size == 30) {
+                size = 285 + (int) readUnsigned(2);
+            }
+            else if (size == 31) {
+                size = 65821 + (int) readUnsigned(3);
+            }
+
+            switch (type) {
+                case 2: {
+                    byte[] bytes = new byte[size];
+                    for (int i = 0; i < size; i++) {
+                        bytes[i] = buffer.get(position++);
+                    }
+                    return new String(bytes, StandardCharsets.UTF_8);
+                }
+                case 3:
+                    position += 8;
+                    return null;
+                case 4:
+                    position += size;
+                    return null;
+                case 5:
+                case 6:
+                case 8:
+                case 9:
+                case 10:
+                    // uint128 values can't fit but none of the fields we read use it
+                    return readUnsigned(size);
+                case 7: {
+                    Map<String, Object> map = new HashMap<>(size);
+                    for (int i = 0; i < size; i++) {
+                        Object key = decode();
+                        map.put(String.valueOf(key), decode());
+                    }
+                    return map;
+                }
+                case 11: {
+                    List<Object> list = new ArrayList<>(size);
+                    for (int i = 0; i < size; i++) {
+                        list.add(decode());
+                    }
+                    return list;
+                }
+                case 14:
+                    return size != 0;
+                case 15:
+                    position += 4;
+                    return null;
+                default:
+                    throw new IOException("Unexpected MaxMind DB type in metadata: " + type);
+            }
+        }
+
+        private long readUnsigned(int size)
+        {
+            long value = 0;
+            for (int i = 0; i < size; i++) {
+                value = (value << 8) | (buffer.get(position++) & 0xFF);
+            }
+            return value;
+        }
+    }
+}
@@ -113,6 +113,42 @@ public class TestGeoIPEventMapper {
         GenericData.get().validate(properties.getSchema(), properties);
     }
 
+    @Test(dataProvider = "google-ips")
+    public void testCompiledIndexEventMapper(Map<String, Object> props, InetAddress address) throws Exception {
+        GeoIPEventMapper mapper = new GeoIPEventMapper(new GeoIPModuleConfig()
+                .setUseCompiledIndex(true)
+                .setIspDatabaseUrl("https://github.com/maxmind/MaxMind-DB/raw/master/test-data/GeoIP2-ISP-Test.mmdb"));
+        FieldDependencyBuilder builder = new FieldDependencyBuilder();
+        mapper.addFieldDependency(builder);
+
+        ImmutableList<Schema.Field> build = ImmutableList.<Schema.Field>builder()
+                .addAll(builder.build().dependentFields.get("_ip").stream()
+                        .map(AvroUtil::generateAvroField).collect(Collectors.toList()))
+                .add(new Schema.Field("_ip", Schema.create(NULL), null, null))
+                .build();
+
+        // the second lookup is served from the cache
+        for (int i = 0; i < 2; i++) {
+            Record properties = new Record(Schema.createRecord(build));
+            props.forEach(properties::put);
+
+            Event event = new Event("testproject", "testcollection", null, null, properties);
+
+            List<Cookie> resp = mapper.map(event, EventMapper.RequestParams.EMPTY_PARAMS, address, null);
+
+            assertTrue(resp == null);
+
+            assertEquals(event.getAttribute("_country_code"), "US");
+            assertEquals(event.getAttribute("_city"), "Mountain View");
+            assertEquals(event.getAttribute("_timezone"), "America/Los_Angeles");
+            assertTrue(event.getAttribute("_latitude") instanceof Double);
+            assertEquals(event.getAttribute("_region"), "North America");
+            assertTrue(event.getAttribute("_longitude") instanceof Double);
+            assertEquals(event.getAttribute("_isp"), "Level 3 Communications");
+            GenericData.get().validate(properties.getSchema(), properties);
+        }
+    }
+
     @Test
     public void testNotFoundIpEventMapper() throws Exception {
         GeoIPEventMapper mapper = new GeoIPEventMapper(new GeoIPModuleConfig()
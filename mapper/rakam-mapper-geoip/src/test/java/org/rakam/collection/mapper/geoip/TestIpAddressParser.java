@@ -0,0 +1,58 @@
+package org.rakam.collection.mapper.geoip;
+
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+import java.net.InetAddress;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+public class TestIpAddressParser {
+    @DataProvider(name = "valid-ips")
+    public static Object[][] validIps() {
+        return new Object[][] {
+                {"8.8.8.8"}, {"0.0.0.0"}, {"255.255.255.255"},
+                {"::"}, {"::1"}, {"1::"}, {"2001:db8::1"}, {"fe80::1:2"}, {"1:2:3:4:5:6:7:8"},
+                {"2001:db8:0:0:1::1"}, {"1:2:3:4:5:6:7::"}, {"1:2:3:4:5:6:1.2.3.4"}, {"::1.2.3.4"}
+        };
+    }
+
+    @DataProvider(name = "invalid-ips")
+    public static Object[][] invalidIps() {
+        return new Object[][] {
+                {""}, {"1.2.3"}, {"1.2.3.4.5"}, {"256.1.1.1"}, {"01.2.3.4"}, {"localhost"},
+                {":1"}, {":::"}, {"1:"}, {"1::2::3"}, {"12345::"}, {"1:2:3:4:5:6:7:8:9"}, {"1:2:3:4:5:6:7:1.2.3.4"}
+        };
+    }
+
+    @Test(dataProvider = "valid-ips")
+    public void testSameAsInetAddress(String ip) throws Exception {
+        long[] parsed = new long[2];
+        assertTrue(IpAddressParser.parse(ip, parsed));
+
+        long[] expected = new long[2];
+        IpAddressParser.fromInetAddress(InetAddress.getByName(ip), expected);
+
+        assertEquals(parsed, expected);
+    }
+
+    @Test(dataProvider = "invalid-ips")
+    public void testInvalid(String ip) throws Exception {
+        assertFalse(IpAddressParser.parse(ip, new long[2]));
+    }
+
+    @Test
+    public void testIpv4Mapped() throws Exception {
+        long[] mapped = new long[2];
+        assertTrue(IpAddressParser.parse("::ffff:8.8.8.8", mapped));
+
+        long[] ipv4 = new long[2];
+        assertTrue(IpAddressParser.parse("8.8.8.8", ipv4));
+
+        assertEquals(mapped, ipv4);
+        assertEquals(ipv4[0], 0);
+        assertEquals(ipv4[1], 0x08080808L);
+    }
+}
@@ -0,0 +1,149 @@
+package org.rakam.module.website;
+
+import com.google.common.annotations.VisibleForTesting;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.NetworkInterface;
+import java.time.Clock;
+import java.util.Enumeration;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * This class implements an ID generator.
+ * <p>
+ * The ID is a signed 64 bit long composed of:
+ * <p>
+ * sign      - 1 bit
+ * timestamp - 41 bits (millisecond precision with a custom epoch allowing for 69 years)
+ * host id   - 10 bits (allowing for 1024 hosts)
+ * sequence  - 12 bits (allowing for 4096 IDs per millisecond)
+ * <p>
+ * The last used timestamp and sequence are packed into a single word that is updated with CAS so the word acts as a
+ * counter: when the sequence of a millisecond is exhausted, the counter continues from the next millisecond and
+ * when the clock goes backwards, the counter continues from the last timestamp so the IDs are never reused while
+ * the process is running.
+ *
+ * @author Maxim Khodanovich
+ */
+public class DistributedIdGenerator
+{
+    private static final long START_EPOCH = 1464307172048L;
+
+    private static final long SEQUENCE_BITS = 12L;
+    private static final long SEQUENCE_MASK = -1L ^ (-1L << SEQUENCE_BITS);
+
+    private static final long HOST_ID_BITS = 10L;
+    private static final long HOST_ID_MAX = -1L ^ (-1L << HOST_ID_BITS);
+    private static final long HOST_ID_SHIFT = SEQUENCE_BITS;
+
+    private static final long TIMESTAMP_SHIFT = SEQUENCE_BITS + HOST_ID_BITS;
+
+    private final long hostId;
+    private final Clock clock;
+    // (timestamp - START_EPOCH) << SEQUENCE_BITS | sequence of the last generated ID
+    private final AtomicLong lastState = new AtomicLong();
+
+    public DistributedIdGenerator()
+    {
+        this(getHostId(), Clock.systemUTC());
+    }
+
+    @VisibleForTesting
+    public DistributedIdGenerator(long hostId, Clock clock)
+    {
+        if (hostId < 0 || hostId > HOST_ID_MAX) {
+            throw new IllegalStateException("Invalid host ID: " + hostId);
+        }
+        this.hostId = hostId;
+        this.clock = clock;
+    }
+
+    public long generateId()
+    {
+        return toId(reserve(1));
+    }
+
+    /**
+     * Generates the given number of IDs with a single CAS.
+     */
+    public long[] generateIds(int count)
+    {
+        checkArgument(count > 0, "count must be positive");
+
+        long first = reserve(count);
+        long[] ids = new long[count];
+        for (int i = 0; i < count; i++) {
+            ids[i] = toId(first + i);
+        }
+        return ids;
+    }
+
+    /**
+     * Returns the first state of the reserved range.
+     */
+    private long reserve(int count)
+    {
+        while (true) {
+            long last = lastState.get();
+            long now = (clock.millis() - START_EPOCH) << SEQUENCE_BITS;
+            long first = Math.max(now, last + 1);
+            if (lastState.compareAndSet(last, first + count - 1)) {
+                return first;
+            }
+        }
+    }
+
+    private long toId(long state)
+    {
+        return ((state >>> SEQUENCE_BITS) << TIMESTAMP_SHIFT) | (hostId << HOST_ID_SHIFT) | (state & SEQUENCE_MASK);
+    }
+
+    private static long getHostId()
+            throws IllegalStateException
+    {
+        try {
+            NetworkInterface iface = NetworkInterface.getByInetAddress(getHostAddress());
+            byte[] mac = iface.getHardwareAddress();
+            return ((0x000000FF & (long) mac[mac.length - 1]) | (0x0000FF00 & (((long) mac[mac.length - 2]) << 8))) >> 6;
+        }
+        catch (IOException e) {
+            throw new IllegalStateException("Failed to get host ID", e);
+        }
+    }
+
+    private static InetAddress getHostAddress()
+            throws IOException
+    {
+        InetAddress address = null;
+
+        // Iterate all the network interfaces
+        for (Enumeration<NetworkInterface> ifaces = NetworkInterface.getNetworkInterfaces(); ifaces.hasMoreElements(); ) {
+            NetworkInterface iface = ifaces.nextElement();
+            // Iterate all the addresses assigned to the network interface
+            for (Enumeration<InetAddress> addrs = iface.getInetAddresses(); addrs.hasMoreElements(); ) {
+                InetAddress addr = addrs.nextElement();
+                if (!addr.isLoopbackAddress()) {
+                    if (addr.isSiteLocalAddress()) {
+                        // Found a non-loopback site-local address
+                        return addr;
+                    }
+                    if (address == null) {
+                        // Found the first non-loopback, non-site-local address
+                        address = addr;
+                    }
+                }
+            }
+        }
+
+        if (address != null) {
+            // Return the first non-loopback, non-site-local address
+            return address;
+        }
+
+        // Return the local host address (may be the loopback address)
+        return InetAddress.getLocalHost();
+    }
+}
@@ -12,6 +12,7 @@ import org.apache.avro.generic.GenericRecord;
 import org.rakam.analysis.ConfigManager;
 import org.rakam.analysis.InternalConfig;
 import org.rakam.collection.Event;
+import org.rakam.collection.EventList;
 import org.rakam.collection.FieldDependencyBuilder;
 import org.rakam.collection.FieldType;
 import org.rakam.collection.SchemaField;
@@ -22,11 +23,10 @@ import org.rakam.util.AvroUtil;
 
 import javax.inject.Inject;
 
-import java.io.IOException;
 import java.net.InetAddress;
-import java.net.NetworkInterface;
-import java.util.Enumeration;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.Optional;
 import java.util.UUID;
 
 import static org.rakam.collection.FieldType.STRING;
@@ -35,7 +35,7 @@ public class UserIdEventMapper
         implements EventMapper, UserPropertyMapper
 {
     private final LoadingCache<String, FieldType> userTypeCache;
-    DistributedIdGenerator idGenerator;
+    private final DistributedIdGenerator idGenerator;
 
     @Inject
     public UserIdEventMapper(ConfigManager configManager)
@@ -78,6 +78,53 @@ public class UserIdEventMapper
         return null;
     }
 
+    @Override
+    public List<Cookie> map(EventList events, RequestParams requestParams, InetAddress sourceAddress, HttpHeaders responseHeaders)
+    {
+        Optional<String> cookieValue = requestParams.cookies().stream()
+                .filter(e -> e.name().equals("_anonymous_user")).findAny().map(Cookie::value);
+
+        List<GenericRecord> anonymousEvents = new ArrayList<>();
+        Schema.Type type = null;
+        for (Event event : events.events) {
+            GenericRecord properties = event.properties();
+            Schema.Field user = properties.getSchema().getField("_user");
+            if (properties.get("_user") == null && user != null) {
+                anonymousEvents.add(properties);
+                type = user.schema().getTypes().get(1).getType();
+            }
+        }
+
+        if (anonymousEvents.isEmpty()) {
+            return null;
+        }
+
+        // the ids of the events in the batch are reserved at once
+        long[] ids = !cookieValue.isPresent() && (type == Schema.Type.LONG || type == Schema.Type.INT) ?
+                idGenerator.generateIds(anonymousEvents.size()) : null;
+
+        List<Cookie> cookies = new ArrayList<>(anonymousEvents.size());
+        for (int i = 0; i < anonymousEvents.size(); i++) {
+            Object anonymousUser;
+            if (cookieValue.isPresent()) {
+                anonymousUser = cast(type, cookieValue.get());
+            }
+            else if (ids != null) {
+                anonymousUser = type == Schema.Type.INT ? (Object) (int) ids[i] : (Object) ids[i];
+            }
+            else {
+                anonymousUser = generate(type);
+            }
+
+            anonymousEvents.get(i).put("_user", anonymousUser);
+            DefaultCookie cookie = new DefaultCookie("_anonymous_user", String.valueOf(anonymousUser));
+            cookie.setPath("/");
+            cookies.add(cookie);
+        }
+
+        return cookies;
+    }
+
     private Object generate(Schema.Type type)
     {
         switch (type) {
@@ -133,113 +180,4 @@ public class UserIdEventMapper
 //
         return null;
     }
-
-    /**
-     * This class implements an ID generator.
-     * <p>
-     * The ID is a signed 64 bit long composed of:
-     * <p>
-     * sign      - 1 bit
-     * timestamp - 41 bits (millisecond precision with a custom epoch allowing for 69 years)
-     * host id   - 10 bits (allowing for 1024 hosts)
-     * sequence  - 12 bits (allowing for 4096 IDs per millisecond)
-     * <p>
-     * There is a check that catches sequence rollover within the current millisecond.
-     *
-     * @author Maxim Khodanovich
-     */
-    public static class DistributedIdGenerator
-    {
-        private static final long START_EPOCH = 1464307172048L;
-
-        private static final long SEQUENCE_BITS = 12L;
-        private static final long SEQUENCE_MASK = -1L ^ (-1L << SEQUENCE_BITS);
-
-        private static final long HOST_ID_BITS = 10L;
-        private static final long HOST_ID_MAX = -1L ^ (-1L << HOST_ID_BITS);
-        private static final long HOST_ID_SHIFT = SEQUENCE_BITS;
-
-        private static final long TIMESTAMP_SHIFT = SEQUENCE_BITS + HOST_ID_BITS;
-
-        private final long hostId;
-        private volatile long lastTimestamp = -1L;
-        private volatile long sequence = 0L;
-
-        public DistributedIdGenerator()
-        {
-            hostId = getHostId();
-            if (hostId < 0 || hostId > HOST_ID_MAX) {
-                throw new IllegalStateException("Invalid host ID: " + hostId);
-            }
-        }
-
-        public long generateId()
-                throws IllegalStateException
-        {
-            long timestamp = System.currentTimeMillis();
-            if (lastTimestamp == timestamp) {
-                sequence = (sequence + 1) & SEQUENCE_MASK;
-            }
-            else {
-                sequence = 0;
-            }
-            lastTimestamp = timestamp;
-            return ((timestamp - START_EPOCH) << TIMESTAMP_SHIFT) | (hostId << HOST_ID_SHIFT) | sequence;
-        }
-
-        private long nextTimestamp(long lastTimestamp)
-        {
-            long timestamp = System.currentTimeMillis();
-            while (timestamp <= lastTimestamp) {
-                timestamp = System.currentTimeMillis();
-            }
-            return timestamp;
-        }
-
-        private long getHostId()
-                throws IllegalStateException
-        {
-            try {
-                NetworkInterface iface = NetworkInterface.getByInetAddress(getHostAddress());
-                byte[] mac = iface.getHardwareAddress();
-                return ((0x000000FF & (long) mac[mac.length - 1]) | (0x0000FF00 & (((long) mac[mac.length - 2]) << 8))) >> 6;
-            }
-            catch (IOException e) {
-                throw new IllegalStateException("Failed to get host ID", e);
-            }
-        }
-
-        private InetAddress getHostAddress()
-                throws IOException
-        {
-            InetAddress address = null;
-
-            // Iterate all the network interfaces
-            for (Enumeration<NetworkInterface> ifaces = NetworkInterface.getNetworkInterfaces(); ifaces.hasMoreElements(); ) {
-                NetworkInterface iface = ifaces.nextElement();
-                // Iterate all the addresses assigned to the network interface
-                for (Enumeration<InetAddress> addrs = iface.getInetAddresses(); addrs.hasMoreElements(); ) {
-                    InetAddress addr = addrs.nextElement();
-                    if (!addr.isLoopbackAddress()) {
-                        if (addr.isSiteLocalAddress()) {
-                            // Found a non-loopback site-local address
-                            return addr;
-                        }
-                        if (address == null) {
-                            // Found the first non-loopback, non-site-local address
-                            address = addr;
-                        }
-                    }
-                }
-            }
-
-            if (address != null) {
-                // Return the first non-loopback, non-site-local address
-                return address;
-            }
-
-            // Return the local host address (may be the loopback address)
-            return InetAddress.getLocalHost();
-        }
-    }
 }
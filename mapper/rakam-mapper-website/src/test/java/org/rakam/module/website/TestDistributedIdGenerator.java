@@ -0,0 +1,132 @@
+package org.rakam.module.website;
+
+import org.testng.annotations.Test;
+
+import java.time.Clock;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+public class TestDistributedIdGenerator {
+    private static final long NOW = Instant.parse("2016-08-01T00:00:00Z").toEpochMilli();
+
+    @Test
+    public void testUniqueIdsWithConcurrentThreads() throws Exception {
+        DistributedIdGenerator generator = new DistributedIdGenerator(1, Clock.systemUTC());
+        int threads = 8;
+        int iterations = 50_000;
+
+        Set<Long> ids = ConcurrentHashMap.newKeySet();
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        CountDownLatch start = new CountDownLatch(1);
+        List<Future<?>> futures = new ArrayList<>();
+        for (int i = 0; i < threads; i++) {
+            futures.add(executor.submit(() -> {
+                start.await();
+                for (int j = 0; j < iterations; j++) {
+                    if (j % 10 == 0) {
+                        for (long id : generator.generateIds(10)) {
+                            ids.add(id);
+                        }
+                    } else {
+                        ids.add(generator.generateId());
+                    }
+                }
+                return null;
+            }));
+        }
+
+        start.countDown();
+        for (Future<?> future : futures) {
+            future.get();
+        }
+        executor.shutdown();
+        executor.awaitTermination(10, TimeUnit.SECONDS);
+
+        assertEquals(ids.size(), threads * (iterations + (iterations / 10) * 9));
+    }
+
+    @Test
+    public void testSequenceRollover() throws Exception {
+        MutableClock clock = new MutableClock(NOW);
+        DistributedIdGenerator generator = new DistributedIdGenerator(1, clock);
+
+        long last = -1;
+        // more ids than the sequence can hold in a millisecond
+        for (int i = 0; i < 10_000; i++) {
+            long id = generator.generateId();
+            assertTrue(id > last);
+            last = id;
+        }
+
+        // the clock catches up with the borrowed milliseconds
+        clock.millis.addAndGet(10);
+        long id = generator.generateId();
+        assertTrue(id > last);
+        assertEquals(id & 0xFFF, 0);
+    }
+
+    @Test
+    public void testClockGoesBackwards() throws Exception {
+        MutableClock clock = new MutableClock(NOW);
+        DistributedIdGenerator generator = new DistributedIdGenerator(1, clock);
+
+        long first = generator.generateId();
+        clock.millis.addAndGet(-1000);
+        long second = generator.generateId();
+        long[] batch = generator.generateIds(5);
+
+        assertTrue(second > first);
+        assertTrue(batch[0] > second);
+        for (int i = 1; i < batch.length; i++) {
+            assertEquals(batch[i], batch[i - 1] + 1);
+        }
+    }
+
+    @Test
+    public void testHostId() throws Exception {
+        long id = new DistributedIdGenerator(1023, new MutableClock(NOW)).generateId();
+        assertEquals((id >>> 12) & 0x3FF, 1023);
+    }
+
+    private static class MutableClock extends Clock {
+        private final AtomicLong millis;
+
+        public MutableClock(long millis) {
+            this.millis = new AtomicLong(millis);
+        }
+
+        @Override
+        public ZoneId getZone() {
+            return ZoneOffset.UTC;
+        }
+
+        @Override
+        public Clock withZone(ZoneId zone) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public Instant instant() {
+            return Instant.ofEpochMilli(millis.get());
+        }
+
+        @Override
+        public long millis() {
+            return millis.get();
+        }
+    }
+}
@@ -1,12 +1,18 @@
 package org.rakam.aws.dynamodb.apikey;
 
 import io.airlift.configuration.Config;
+import io.airlift.configuration.ConfigDescription;
+import io.airlift.units.Duration;
 
 import javax.validation.constraints.NotNull;
 
 public class DynamodbApiKeyConfig
 {
     private String tableName;
+    private String lookupTableName;
+    private long cacheSize = 10_000;
+    private Duration cacheTtl = Duration.valueOf("10m");
+    private Duration negativeCacheTtl = Duration.valueOf("30s");
 
     @Config("api-key-service.adapter.dynamodb.table")
     public DynamodbApiKeyConfig setTableName(String tableName) {
@@ -19,4 +25,55 @@ public class DynamodbApiKeyConfig
     {
         return tableName;
     }
+
+    @Config("api-key-service.adapter.dynamodb.lookup-table")
+    @ConfigDescription("The table that maps the hashes of the api keys to their projects, {table}_lookup by default.")
+    public DynamodbApiKeyConfig setLookupTableName(String lookupTableName)
+    {
+        this.lookupTableName = lookupTableName;
+        return this;
+    }
+
+    public String getLookupTableName()
+    {
+        return lookupTableName == null ? tableName + "_lookup" : lookupTableName;
+    }
+
+    @Config("api-key-service.adapter.dynamodb.cache-size")
+    public DynamodbApiKeyConfig setCacheSize(long cacheSize)
+    {
+        this.cacheSize = cacheSize;
+        return this;
+    }
+
+    public long getCacheSize()
+    {
+        return cacheSize;
+    }
+
+    @Config("api-key-service.adapter.dynamodb.cache-ttl")
+    @ConfigDescription("The revoked keys are accepted by the other nodes until their cache entries expire.")
+    public DynamodbApiKeyConfig setCacheTtl(String cacheTtl)
+    {
+        this.cacheTtl = Duration.valueOf(cacheTtl);
+        return this;
+    }
+
+    public Duration getCacheTtl()
+    {
+        return cacheTtl;
+    }
+
+    @Config("api-key-service.adapter.dynamodb.negative-cache-ttl")
+    @ConfigDescription("The unknown keys are rejected without a lookup until their cache entries expire.")
+    public DynamodbApiKeyConfig setNegativeCacheTtl(String negativeCacheTtl)
+    {
+        this.negativeCacheTtl = Duration.valueOf(negativeCacheTtl);
+        return this;
+    }
+
+    public Duration getNegativeCacheTtl()
+    {
+        return negativeCacheTtl;
+    }
 }
@@ -3,25 +3,31 @@ package org.rakam.aws.dynamodb.apikey;
 import com.amazonaws.services.dynamodbv2.AmazonDynamoDBClient;
 import com.amazonaws.services.dynamodbv2.model.AttributeDefinition;
 import com.amazonaws.services.dynamodbv2.model.AttributeValue;
-import com.amazonaws.services.dynamodbv2.model.Condition;
+import com.amazonaws.services.dynamodbv2.model.BatchWriteItemRequest;
+import com.amazonaws.services.dynamodbv2.model.ConditionalCheckFailedException;
 import com.amazonaws.services.dynamodbv2.model.CreateTableRequest;
 import com.amazonaws.services.dynamodbv2.model.DeleteItemRequest;
+import com.amazonaws.services.dynamodbv2.model.DeleteRequest;
 import com.amazonaws.services.dynamodbv2.model.DescribeTableResult;
 import com.amazonaws.services.dynamodbv2.model.GetItemRequest;
 import com.amazonaws.services.dynamodbv2.model.KeySchemaElement;
-import com.amazonaws.services.dynamodbv2.model.KeyType;
 import com.amazonaws.services.dynamodbv2.model.ProvisionedThroughput;
 import com.amazonaws.services.dynamodbv2.model.PutItemRequest;
-import com.amazonaws.services.dynamodbv2.model.QueryRequest;
+import com.amazonaws.services.dynamodbv2.model.PutRequest;
 import com.amazonaws.services.dynamodbv2.model.ResourceNotFoundException;
 import com.amazonaws.services.dynamodbv2.model.ScalarAttributeType;
 import com.amazonaws.services.dynamodbv2.model.ScanRequest;
-import com.amazonaws.services.dynamodbv2.model.Select;
+import com.amazonaws.services.dynamodbv2.model.ScanResult;
+import com.amazonaws.services.dynamodbv2.model.WriteRequest;
+import com.amazonaws.services.dynamodbv2.util.TableUtils;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
+import com.google.common.hash.Hashing;
 import com.google.inject.Inject;
-import io.netty.handler.codec.http.HttpResponseStatus;
+import io.airlift.log.Logger;
 import org.rakam.analysis.ApiKeyService;
 import org.rakam.aws.AWSConfig;
 import org.rakam.util.CryptUtil;
@@ -29,16 +35,36 @@ import org.rakam.util.RakamException;
 
 import javax.annotation.PostConstruct;
 
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
 
 import static com.amazonaws.services.dynamodbv2.model.KeyType.HASH;
+import static io.netty.handler.codec.http.HttpResponseStatus.FORBIDDEN;
+import static io.netty.handler.codec.http.HttpResponseStatus.SERVICE_UNAVAILABLE;
 import static java.lang.String.format;
+import static java.nio.charset.StandardCharsets.UTF_8;
 
+/**
+ * The keys of a project are stored in a single item of the key table. Each key also has an item in the lookup table
+ * whose partition key is the hash of the key and its type so that a key is resolved with a single GetItem.
+ * The resolved keys and the unknown keys are cached, the cache of the node is invalidated when the keys are revoked
+ * and the caches of the other nodes expire after api-key-service.adapter.dynamodb.cache-ttl.
+ */
 public class DynamodbApiKeyService
         implements ApiKeyService
 {
+    private static final Logger LOGGER = Logger.get(DynamodbApiKeyService.class);
+    private static final int MAX_BATCH_WRITE_ITEMS = 25;
+    private static final int MAX_BATCH_WRITE_RETRIES = 10;
+    private static final long BASE_BACKOFF_MILLIS = 50;
+    private static final long MAX_BACKOFF_MILLIS = 5000;
+    // the lookup keys are hex encoded hashes so the marker can't collide with a key
+    private static final String BACKFILL_MARKER_KEY = "$backfill";
+
     private final AmazonDynamoDBClient dynamoDBClient;
     private static final List<KeySchemaElement> PROJECT_KEYSCHEMA = ImmutableList.of(
             new KeySchemaElement().withKeyType(HASH).withAttributeName("project")
@@ -46,7 +72,15 @@ public class DynamodbApiKeyService
     private static final Set<AttributeDefinition> ATTRIBUTES = ImmutableSet.of(
             new AttributeDefinition().withAttributeName("project").withAttributeType(ScalarAttributeType.S)
     );
+    private static final List<KeySchemaElement> LOOKUP_KEYSCHEMA = ImmutableList.of(
+            new KeySchemaElement().withKeyType(HASH).withAttributeName("key_hash")
+    );
+    private static final Set<AttributeDefinition> LOOKUP_ATTRIBUTES = ImmutableSet.of(
+            new AttributeDefinition().withAttributeName("key_hash").withAttributeType(ScalarAttributeType.S)
+    );
     private final DynamodbApiKeyConfig apiKeyConfig;
+    private final Cache<String, String> projectCache;
+    private final Cache<String, Boolean> unknownKeyCache;
 
     @Inject
     public DynamodbApiKeyService(AWSConfig config, DynamodbApiKeyConfig apiKeyConfig)
@@ -57,6 +91,15 @@ public class DynamodbApiKeyService
             dynamoDBClient.setEndpoint(config.getDynamodbEndpoint());
         }
         this.apiKeyConfig = apiKeyConfig;
+        this.projectCache = CacheBuilder.newBuilder()
+                .maximumSize(apiKeyConfig.getCacheSize())
+                .expireAfterWrite(apiKeyConfig.getCacheTtl().toMillis(), TimeUnit.MILLISECONDS)
+                .build();
+        // the garbage keys are cached separately so that they don't evict the valid keys
+        this.unknownKeyCache = CacheBuilder.newBuilder()
+                .maximumSize(apiKeyConfig.getCacheSize())
+                .expireAfterWrite(apiKeyConfig.getNegativeCacheTtl().toMillis(), TimeUnit.MILLISECONDS)
+                .build();
     }
 
     @PostConstruct
@@ -74,18 +117,99 @@ public class DynamodbApiKeyService
             }
         }
         catch (ResourceNotFoundException e) {
-            createTable();
+            createTable(apiKeyConfig.getTableName(), PROJECT_KEYSCHEMA, ATTRIBUTES);
         }
+
+        try {
+            DescribeTableResult table = dynamoDBClient.describeTable(apiKeyConfig.getLookupTableName());
+
+            if (!table.getTable().getKeySchema().equals(LOOKUP_KEYSCHEMA)) {
+                throw new IllegalStateException("Dynamodb lookup table for api key service has invalid key schema");
+            }
+        }
+        catch (ResourceNotFoundException e) {
+            createTable(apiKeyConfig.getLookupTableName(), LOOKUP_KEYSCHEMA, LOOKUP_ATTRIBUTES);
+        }
+
+        backfillLookupTable();
     }
 
-    private void createTable()
+    private void createTable(String tableName, List<KeySchemaElement> keySchema, Set<AttributeDefinition> attributes)
     {
         dynamoDBClient.createTable(new CreateTableRequest()
-                .withTableName(apiKeyConfig.getTableName()).withKeySchema(PROJECT_KEYSCHEMA)
-                .withAttributeDefinitions(ATTRIBUTES)
+                .withTableName(tableName).withKeySchema(keySchema)
+                .withAttributeDefinitions(attributes)
                 .withProvisionedThroughput(new ProvisionedThroughput()
                         .withReadCapacityUnits(1L)
                         .withWriteCapacityUnits(1L)));
+        try {
+            TableUtils.waitUntilActive(dynamoDBClient, tableName);
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * The keys that are created before the lookup table are added to the lookup table. The progress is stored in a
+     * marker item of the lookup table after each page so that the backfill is resumed from the last page if the node
+     * is stopped before it's completed, the marker is marked as completed at the end.
+     */
+    private void backfillLookupTable()
+    {
+        Map<String, AttributeValue> marker = dynamoDBClient.getItem(new GetItemRequest()
+                .withTableName(apiKeyConfig.getLookupTableName())
+                .withConsistentRead(true)
+                .withKey(ImmutableMap.of("key_hash", new AttributeValue(BACKFILL_MARKER_KEY)))).getItem();
+
+        if (marker != null && marker.get("completed") != null && Boolean.TRUE.equals(marker.get("completed").getBOOL())) {
+            return;
+        }
+
+        Map<String, AttributeValue> lastKey = null;
+        if (marker != null && marker.get("last_project") != null) {
+            lastKey = ImmutableMap.of("project", marker.get("last_project"));
+            LOGGER.info("Resuming the backfill of the lookup table %s from project %s",
+                    apiKeyConfig.getLookupTableName(), marker.get("last_project").getS());
+        }
+
+        int projects = 0;
+        do {
+            ScanResult result = dynamoDBClient.scan(new ScanRequest()
+                    .withTableName(apiKeyConfig.getTableName())
+                    .withConsistentRead(true)
+                    .withExclusiveStartKey(lastKey));
+
+            List<WriteRequest> requests = new ArrayList<>();
+            for (Map<String, AttributeValue> item : result.getItems()) {
+                String project = item.get("project").getS();
+                for (Map.Entry<AccessKeyType, String> key : getKeys(item).entrySet()) {
+                    requests.add(new WriteRequest(new PutRequest(lookupItem(key.getValue(), key.getKey(), project))));
+                }
+                projects++;
+            }
+            batchWrite(requests);
+
+            lastKey = result.getLastEvaluatedKey();
+            if (lastKey != null && !lastKey.isEmpty()) {
+                putBackfillMarker(ImmutableMap.of("last_project", lastKey.get("project")));
+            }
+        }
+        while (lastKey != null && !lastKey.isEmpty());
+
+        putBackfillMarker(ImmutableMap.of("completed", new AttributeValue().withBOOL(true)));
+
+        LOGGER.info("Added the api keys of %d projects to the lookup table %s", projects, apiKeyConfig.getLookupTableName());
+    }
+
+    private void putBackfillMarker(Map<String, AttributeValue> attributes)
+    {
+        dynamoDBClient.putItem(new PutItemRequest().withTableName(apiKeyConfig.getLookupTableName())
+                .withItem(ImmutableMap.<String, AttributeValue>builder()
+                        .put("key_hash", new AttributeValue(BACKFILL_MARKER_KEY))
+                        .putAll(attributes)
+                        .build()));
     }
 
     @Override
@@ -95,6 +219,15 @@ public class DynamodbApiKeyService
         String readKey = CryptUtil.generateRandomKey(64);
         String writeKey = CryptUtil.generateRandomKey(64);
 
+        // the project has a single item so the new keys replace the existing keys of the project
+        Map<AccessKeyType, String> oldKeys = getKeys(project);
+
+        List<WriteRequest> requests = new ArrayList<>();
+        requests.add(new WriteRequest(new PutRequest(lookupItem(masterKey, AccessKeyType.MASTER_KEY, project))));
+        requests.add(new WriteRequest(new PutRequest(lookupItem(readKey, AccessKeyType.READ_KEY, project))));
+        requests.add(new WriteRequest(new PutRequest(lookupItem(writeKey, AccessKeyType.WRITE_KEY, project))));
+        batchWrite(requests);
+
         dynamoDBClient.putItem(new PutItemRequest().withTableName(apiKeyConfig.getTableName())
                 .withItem(ImmutableMap.of("project", new AttributeValue(project), "keys",
                         new AttributeValue()
@@ -103,41 +236,165 @@ public class DynamodbApiKeyService
                                 .addMEntry("write_key", new AttributeValue(writeKey))
                 )));
 
+        deleteLookupItems(oldKeys);
+        unknownKeyCache.invalidate(lookupKey(masterKey, AccessKeyType.MASTER_KEY));
+        unknownKeyCache.invalidate(lookupKey(readKey, AccessKeyType.READ_KEY));
+        unknownKeyCache.invalidate(lookupKey(writeKey, AccessKeyType.WRITE_KEY));
+
         return ProjectApiKeys.create(masterKey, readKey, writeKey);
     }
 
     @Override
     public String getProjectOfApiKey(String apiKey, AccessKeyType type)
     {
-        List<Map<String, AttributeValue>> project = dynamoDBClient.scan(new ScanRequest()
-                .withTableName(apiKeyConfig.getTableName())
+        if (type == null) {
+            throw new IllegalStateException();
+        }
+        if (apiKey == null) {
+            throw new RakamException(type.getKey() + " is missing", FORBIDDEN);
+        }
+
+        String lookupKey = lookupKey(apiKey, type);
+        String project = projectCache.getIfPresent(lookupKey);
+        if (project != null) {
+            return project;
+        }
+        if (unknownKeyCache.getIfPresent(lookupKey) != null) {
+            throw new RakamException(type.getKey() + " is invalid", FORBIDDEN);
+        }
+
+        Map<String, AttributeValue> item = dynamoDBClient.getItem(new GetItemRequest()
+                .withTableName(apiKeyConfig.getLookupTableName())
                 .withConsistentRead(true)
-                .withProjectionExpression("#P")
-                .withExpressionAttributeNames(ImmutableMap.of("#K", "keys", "#P", "project"))
-                .withExpressionAttributeValues(ImmutableMap.of(":apiKey", new AttributeValue(apiKey)))
-                .withFilterExpression(String.format("#K.%s = :apiKey", type.getKey()))).getItems();
-        if (project.isEmpty()) {
-            throw new RakamException(HttpResponseStatus.FORBIDDEN);
+                .withKey(ImmutableMap.of("key_hash", new AttributeValue(lookupKey)))).getItem();
+
+        if (item == null || item.get("project") == null) {
+            unknownKeyCache.put(lookupKey, Boolean.TRUE);
+            throw new RakamException(type.getKey() + " is invalid", FORBIDDEN);
         }
 
-        return project.get(0).get("project").getS();
+        project = item.get("project").getS();
+        projectCache.put(lookupKey, project);
+        return project;
     }
 
     @Override
     public void revokeApiKeys(String project, String masterKey)
     {
-        dynamoDBClient.deleteItem(new DeleteItemRequest()
-                .withTableName(apiKeyConfig.getTableName())
-                .withKey(ImmutableMap.of("project", new AttributeValue(project)))
-                .withExpressionAttributeNames(ImmutableMap.of("#K", format("keys")))
-                .withExpressionAttributeValues(ImmutableMap.of(":V", new AttributeValue(masterKey)))
-                .withConditionExpression(format("#K.master_key = :V", masterKey)));
+        Map<AccessKeyType, String> keys = getKeys(project);
+        try {
+            dynamoDBClient.deleteItem(new DeleteItemRequest()
+                    .withTableName(apiKeyConfig.getTableName())
+                    .withKey(ImmutableMap.of("project", new AttributeValue(project)))
+                    .withExpressionAttributeNames(ImmutableMap.of("#K", format("keys")))
+                    .withExpressionAttributeValues(ImmutableMap.of(":V", new AttributeValue(masterKey)))
+                    .withConditionExpression(format("#K.master_key = :V", masterKey)));
+        }
+        catch (ConditionalCheckFailedException e) {
+            // the master key doesn't belong to the project
+            return;
+        }
+
+        deleteLookupItems(keys);
     }
 
     @Override
     public void revokeAllKeys(String project)
     {
+        Map<AccessKeyType, String> keys = getKeys(project);
         dynamoDBClient.deleteItem(new DeleteItemRequest().withTableName(apiKeyConfig.getTableName())
                 .withKey(ImmutableMap.of("project", new AttributeValue(project))));
+
+        deleteLookupItems(keys);
+    }
+
+    private Map<AccessKeyType, String> getKeys(String project)
+    {
+        Map<String, AttributeValue> item = dynamoDBClient.getItem(new GetItemRequest()
+                .withTableName(apiKeyConfig.getTableName())
+                .withConsistentRead(true)
+                .withKey(ImmutableMap.of("project", new AttributeValue(project)))).getItem();
+        return item == null ? ImmutableMap.of() : getKeys(item);
+    }
+
+    private static Map<AccessKeyType, String> getKeys(Map<String, AttributeValue> item)
+    {
+        AttributeValue keys = item.get("keys");
+        if (keys == null || keys.getM() == null) {
+            return ImmutableMap.of();
+        }
+
+        ImmutableMap.Builder<AccessKeyType, String> builder = ImmutableMap.builder();
+        for (AccessKeyType type : AccessKeyType.values()) {
+            AttributeValue value = keys.getM().get(type.getKey());
+            if (value != null && value.getS() != null) {
+                builder.put(type, value.getS());
+            }
+        }
+        return builder.build();
+    }
+
+    private void deleteLookupItems(Map<AccessKeyType, String> keys)
+    {
+        List<WriteRequest> requests = new ArrayList<>();
+        for (Map.Entry<AccessKeyType, String> key : keys.entrySet()) {
+            String lookupKey = lookupKey(key.getValue(), key.getKey());
+            requests.add(new WriteRequest(new DeleteRequest(ImmutableMap.of("key_hash", new AttributeValue(lookupKey)))));
+            projectCache.invalidate(lookupKey);
+        }
+        batchWrite(requests);
+    }
+
+    /**
+     * Sends the requests in chunks of {@value MAX_BATCH_WRITE_ITEMS} items, the unprocessed items are retried with an
+     * exponential backoff since they're returned when the table is throttled.
+     */
+    private void batchWrite(List<WriteRequest> requests)
+    {
+        for (int i = 0; i < requests.size(); i += MAX_BATCH_WRITE_ITEMS) {
+            Map<String, List<WriteRequest>> items = ImmutableMap.of(apiKeyConfig.getLookupTableName(),
+                    requests.subList(i, Math.min(requests.size(), i + MAX_BATCH_WRITE_ITEMS)));
+            int attempt = 0;
+            while (true) {
+                items = dynamoDBClient.batchWriteItem(new BatchWriteItemRequest().withRequestItems(items)).getUnprocessedItems();
+                if (items == null || items.isEmpty()) {
+                    break;
+                }
+                if (attempt >= MAX_BATCH_WRITE_RETRIES) {
+                    throw new RakamException("DynamoDB couldn't process the api key writes, the table is probably under-provisioned",
+                            SERVICE_UNAVAILABLE);
+                }
+
+                try {
+                    Thread.sleep(getBackoffMillis(attempt++));
+                }
+                catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IllegalStateException(e);
+                }
+            }
+        }
+    }
+
+    private static long getBackoffMillis(int attempt)
+    {
+        long backoff = Math.min(MAX_BACKOFF_MILLIS, BASE_BACKOFF_MILLIS << Math.min(attempt, 16));
+        // the jitter spreads the retries of the nodes that are throttled at the same time
+        return backoff / 2 + ThreadLocalRandom.current().nextLong(backoff / 2 + 1);
+    }
+
+    private static Map<String, AttributeValue> lookupItem(String apiKey, AccessKeyType type, String project)
+    {
+        return ImmutableMap.of(
+                "key_hash", new AttributeValue(lookupKey(apiKey, type)),
+                "project", new AttributeValue(project));
+    }
+
+    /**
+     * The keys are not stored in the lookup table, a key can't be found from the lookup table without knowing it.
+     */
+    private static String lookupKey(String apiKey, AccessKeyType type)
+    {
+        return Hashing.sha256().hashString(type.getKey() + ":" + apiKey, UTF_8).toString();
     }
 }
@@ -2,7 +2,6 @@ package org.rakam.aws.dynamodb.config;
 
 import com.google.auto.service.AutoService;
 import com.google.inject.Binder;
-import org.rakam.analysis.ConfigManager;
 import org.rakam.aws.AWSConfig;
 import org.rakam.aws.dynamodb.user.DynamodbUserConfig;
 import org.rakam.plugin.RakamModule;
@@ -21,7 +20,7 @@ public class DynamodbConfigManagerModule extends RakamModule
         configBinder(binder).bindConfig(DynamodbConfigManagerConfig.class);
         configBinder(binder).bindConfig(AWSConfig.class);
 
-        binder.bind(ConfigManager.class).to(DynamodbConfigManager.class);
+        bindConfigManager(DynamodbConfigManager.class);
     }
 
     @Override
@@ -21,6 +21,8 @@ import com.amazonaws.services.dynamodbv2.model.ScanRequest;
 import com.amazonaws.services.dynamodbv2.model.StreamSpecification;
 import com.amazonaws.services.dynamodbv2.model.StreamViewType;
 import com.google.common.annotations.VisibleForTesting;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
@@ -28,6 +30,8 @@ import com.google.common.eventbus.EventBus;
 import com.google.inject.Inject;
 import io.netty.handler.codec.http.HttpResponseStatus;
 import org.rakam.analysis.metadata.AbstractMetastore;
+import org.rakam.analysis.metadata.SchemaChange;
+import org.rakam.analysis.metadata.SchemaChangeBus;
 import org.rakam.aws.AWSConfig;
 import org.rakam.collection.FieldDependencyBuilder;
 import org.rakam.collection.FieldType;
@@ -44,6 +48,7 @@ import java.util.List;
 import java.util.Map;
 import java.util.Optional;
 import java.util.Set;
+import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
 
 import static com.amazonaws.services.dynamodbv2.model.ComparisonOperator.EQ;
@@ -61,11 +66,18 @@ public class DynamodbMetastore
     );
     private final AmazonDynamoDBClient dynamoDBClient;
     private final DynamodbMetastoreConfig tableConfig;
+    // the schemas are only cached when the changes of the other nodes are received
+    private final LoadingCache<String, Map<String, List<SchemaField>>> collectionCache;
 
-    @Inject
     public DynamodbMetastore(AWSConfig config, DynamodbMetastoreConfig tableConfig, FieldDependencyBuilder.FieldDependency fieldDependency, EventBus eventBus)
     {
-        super(fieldDependency, eventBus);
+        this(config, tableConfig, fieldDependency, eventBus, SchemaChangeBus.LOCAL);
+    }
+
+    @Inject
+    public DynamodbMetastore(AWSConfig config, DynamodbMetastoreConfig tableConfig, FieldDependencyBuilder.FieldDependency fieldDependency, EventBus eventBus, SchemaChangeBus schemaChangeBus)
+    {
+        super(fieldDependency, eventBus, schemaChangeBus);
         dynamoDBClient = new AmazonDynamoDBClient(config.getCredentials());
         dynamoDBClient.setRegion(config.getAWSRegion());
 
@@ -73,6 +85,43 @@ public class DynamodbMetastore
             dynamoDBClient.setEndpoint(config.getDynamodbEndpoint());
         }
         this.tableConfig = tableConfig;
+
+        if (isSchemaChangeDistributed()) {
+            collectionCache = newSchemaCacheBuilder(1, TimeUnit.HOURS).build(new CacheLoader<String, Map<String, List<SchemaField>>>()
+            {
+                @Override
+                public Map<String, List<SchemaField>> load(String project)
+                {
+                    ImmutableMap.Builder<String, List<SchemaField>> builder = ImmutableMap.builder();
+                    getCollectionsInternal(project).forEach((collection, fields) ->
+                            builder.put(collection, ImmutableList.copyOf(fields)));
+                    return builder.build();
+                }
+            });
+            subscribeSchemaChanges();
+        }
+        else {
+            collectionCache = null;
+        }
+    }
+
+    @Override
+    protected void onSchemaChange(SchemaChange change)
+    {
+        if (change.type == SchemaChange.Type.RESET) {
+            collectionCache.invalidateAll();
+        }
+        else {
+            collectionCache.invalidate(change.project);
+        }
+    }
+
+    private void schemaChanged(String project, SchemaChange.Type type, String collection)
+    {
+        if (collectionCache != null) {
+            collectionCache.invalidate(project);
+        }
+        publishSchemaChange(new SchemaChange(type, project, collection));
     }
 
     @PostConstruct
@@ -109,6 +158,7 @@ public class DynamodbMetastore
     public List<SchemaField> getOrCreateCollectionFields(String project, String collection, Set<SchemaField> newFields)
     {
         List<SchemaField> fields = getCollection(project, collection);
+        boolean newCollection = fields.isEmpty();
         int i = 0;
         for (SchemaField newField : newFields) {
             Optional<SchemaField> existing = fields.stream().filter(e -> e.getName().equals(newField.getName())).findAny();
@@ -164,11 +214,23 @@ public class DynamodbMetastore
             }
         }
 
+        if (i > 0) {
+            schemaChanged(project, newCollection ? SchemaChange.Type.COLLECTION_CREATED : SchemaChange.Type.COLLECTION_FIELD_CREATED, collection);
+        }
+
         return getCollection(project, collection);
     }
 
     @Override
     public Map<String, List<SchemaField>> getCollections(String project)
+    {
+        if (collectionCache != null) {
+            return collectionCache.getUnchecked(project);
+        }
+        return getCollectionsInternal(project);
+    }
+
+    private Map<String, List<SchemaField>> getCollectionsInternal(String project)
     {
         QueryResult query = dynamoDBClient.query(new QueryRequest()
                 .withTableName(tableConfig.getTableName())
@@ -211,6 +273,8 @@ public class DynamodbMetastore
         catch (ConditionalCheckFailedException e) {
             throw new AlreadyExistsException("Project", HttpResponseStatus.BAD_REQUEST);
         }
+
+        schemaChanged(project, SchemaChange.Type.PROJECT_CREATED, null);
     }
 
     @Override
@@ -225,6 +289,11 @@ public class DynamodbMetastore
     @Override
     public List<SchemaField> getCollection(String project, String collection)
     {
+        if (collectionCache != null) {
+            // the fields are added to the returned list while creating the collection fields
+            return new ArrayList<>(collectionCache.getUnchecked(project).getOrDefault(collection, ImmutableList.of()));
+        }
+
         QueryResult query = dynamoDBClient.query(new QueryRequest()
                 .withTableName(tableConfig.getTableName())
                 .withKeyConditions(ImmutableMap.of("project", new Condition().withComparisonOperator(EQ).withAttributeValueList(new AttributeValue(project))))
@@ -256,6 +325,7 @@ public class DynamodbMetastore
                             new Condition().withComparisonOperator(EQ)
                                     .withAttributeValueList(new AttributeValue(project))))).getItems();
             if (items == null || items.isEmpty()) {
+                schemaChanged(project, SchemaChange.Type.PROJECT_DELETED, null);
                 return;
             }
             for (Map<String, AttributeValue> item : items) {
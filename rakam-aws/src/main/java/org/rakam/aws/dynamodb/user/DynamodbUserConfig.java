@@ -1,12 +1,16 @@
 package org.rakam.aws.dynamodb.user;
 
 import io.airlift.configuration.Config;
+import io.airlift.configuration.ConfigDescription;
 
+import javax.validation.constraints.Min;
 import javax.validation.constraints.NotNull;
 
 public class DynamodbUserConfig
 {
     private String tableName;
+    private int maxConcurrentRequests = 16;
+    private int scanSegments = 1;
 
     @Config("plugin.user.storage.dynamodb.table")
     public DynamodbUserConfig setTableName(String tableName) {
@@ -19,4 +23,33 @@ public class DynamodbUserConfig
     {
         return tableName;
     }
+
+    @Config("plugin.user.storage.dynamodb.max-concurrent-requests")
+    @ConfigDescription("The maximum number of write requests that are sent to DynamoDB in parallel.")
+    public DynamodbUserConfig setMaxConcurrentRequests(int maxConcurrentRequests)
+    {
+        this.maxConcurrentRequests = maxConcurrentRequests;
+        return this;
+    }
+
+    @Min(1)
+    public int getMaxConcurrentRequests()
+    {
+        return maxConcurrentRequests;
+    }
+
+    @Config("plugin.user.storage.dynamodb.scan-segments")
+    @ConfigDescription("The user searches are run as parallel scans of the given number of segments instead of " +
+            "querying the users of the project page by page.")
+    public DynamodbUserConfig setScanSegments(int scanSegments)
+    {
+        this.scanSegments = scanSegments;
+        return this;
+    }
+
+    @Min(1)
+    public int getScanSegments()
+    {
+        return scanSegments;
+    }
 }
@@ -1,23 +1,31 @@
 package org.rakam.aws.dynamodb.user;
 
-import com.amazonaws.services.dynamodbv2.AmazonDynamoDBClient;
+import com.amazonaws.AmazonWebServiceRequest;
+import com.amazonaws.handlers.AsyncHandler;
+import com.amazonaws.services.dynamodbv2.AmazonDynamoDBAsyncClient;
 import com.amazonaws.services.dynamodbv2.model.AttributeDefinition;
 import com.amazonaws.services.dynamodbv2.model.AttributeValue;
 import com.amazonaws.services.dynamodbv2.model.BatchWriteItemRequest;
+import com.amazonaws.services.dynamodbv2.model.BatchWriteItemResult;
 import com.amazonaws.services.dynamodbv2.model.ComparisonOperator;
 import com.amazonaws.services.dynamodbv2.model.Condition;
+import com.amazonaws.services.dynamodbv2.model.ConditionalCheckFailedException;
 import com.amazonaws.services.dynamodbv2.model.CreateTableRequest;
-import com.amazonaws.services.dynamodbv2.model.DeleteItemRequest;
+import com.amazonaws.services.dynamodbv2.model.DeleteRequest;
 import com.amazonaws.services.dynamodbv2.model.DescribeTableResult;
 import com.amazonaws.services.dynamodbv2.model.GetItemResult;
 import com.amazonaws.services.dynamodbv2.model.KeySchemaElement;
 import com.amazonaws.services.dynamodbv2.model.ProvisionedThroughput;
 import com.amazonaws.services.dynamodbv2.model.PutItemRequest;
+import com.amazonaws.services.dynamodbv2.model.PutItemResult;
 import com.amazonaws.services.dynamodbv2.model.PutRequest;
 import com.amazonaws.services.dynamodbv2.model.QueryRequest;
 import com.amazonaws.services.dynamodbv2.model.ResourceNotFoundException;
 import com.amazonaws.services.dynamodbv2.model.ScalarAttributeType;
+import com.amazonaws.services.dynamodbv2.model.ScanRequest;
+import com.amazonaws.services.dynamodbv2.model.ScanResult;
 import com.amazonaws.services.dynamodbv2.model.UpdateItemRequest;
+import com.amazonaws.services.dynamodbv2.model.UpdateItemResult;
 import com.amazonaws.services.dynamodbv2.model.WriteRequest;
 import com.facebook.presto.sql.tree.Expression;
 import com.fasterxml.jackson.databind.JsonNode;
@@ -30,6 +38,7 @@ import com.fasterxml.jackson.databind.node.TextNode;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import io.netty.handler.codec.http.HttpResponseStatus;
 import org.rakam.aws.AWSConfig;
 import org.rakam.collection.FieldType;
@@ -43,6 +52,7 @@ import org.rakam.util.JsonHelper;
 import org.rakam.util.RakamException;
 
 import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 import javax.inject.Inject;
 
 import java.time.Duration;
@@ -50,22 +60,42 @@ import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
 import java.util.stream.IntStream;
 
 import static com.amazonaws.services.dynamodbv2.model.KeyType.HASH;
 import static com.amazonaws.services.dynamodbv2.model.KeyType.RANGE;
+import static io.netty.handler.codec.http.HttpResponseStatus.SERVICE_UNAVAILABLE;
 import static org.rakam.collection.FieldType.STRING;
 
+/**
+ * The users are stored in a single table, the project is the hash key and the user id is the range key of the items
+ * and the properties of the users are stored in the "properties" map of the items.
+ * <p>
+ * The writes are sent with the async client whose thread pool bounds the number of requests that are in flight,
+ * the batch writes are split into requests of 25 items and the unprocessed items are retried with an exponential
+ * backoff. The operations of a user are merged into a single update expression.
+ */
 public class DynamodbUserStorage
         implements UserStorage
 {
-    private final AmazonDynamoDBClient dynamoDBClient;
+    private static final int MAX_BATCH_WRITE_ITEMS = 25;
+    private static final int MAX_BATCH_WRITE_RETRIES = 10;
+    private static final long BASE_BACKOFF_MILLIS = 50;
+    private static final long MAX_BACKOFF_MILLIS = 5000;
+
+    private final AmazonDynamoDBAsyncClient dynamoDBClient;
     private static final List<KeySchemaElement> PROJECT_KEYSCHEMA = ImmutableList.of(
             new KeySchemaElement().withKeyType(HASH).withAttributeName("project"),
             new KeySchemaElement().withKeyType(RANGE).withAttributeName("id")
@@ -75,17 +105,22 @@ public class DynamodbUserStorage
             new AttributeDefinition().withAttributeName("id").withAttributeType(ScalarAttributeType.S)
     );
     private final DynamodbUserConfig tableConfig;
+    private final ScheduledExecutorService retryExecutor;
 
     @Inject
     public DynamodbUserStorage(AWSConfig config, DynamodbUserConfig tableConfig)
     {
-        dynamoDBClient = new AmazonDynamoDBClient(config.getCredentials());
+        dynamoDBClient = new AmazonDynamoDBAsyncClient(config.getCredentials(),
+                Executors.newFixedThreadPool(tableConfig.getMaxConcurrentRequests(), new ThreadFactoryBuilder()
+                        .setNameFormat("dynamodb-user-storage-%d").setDaemon(true).build()));
         dynamoDBClient.setRegion(config.getAWSRegion());
 
         if (config.getDynamodbEndpoint() != null) {
             dynamoDBClient.setEndpoint(config.getDynamodbEndpoint());
         }
         this.tableConfig = tableConfig;
+        this.retryExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+                .setNameFormat("dynamodb-user-storage-retry").setDaemon(true).build());
     }
 
     @PostConstruct
@@ -109,6 +144,13 @@ public class DynamodbUserStorage
         }
     }
 
+    @PreDestroy
+    public void destroy()
+    {
+        retryExecutor.shutdownNow();
+        dynamoDBClient.shutdown();
+    }
+
     @Override
     public Object create(String project, Object id, ObjectNode properties)
     {
@@ -127,6 +169,9 @@ public class DynamodbUserStorage
         Iterator<Entry<String, JsonNode>> fields = properties.fields();
         while (fields.hasNext()) {
             Entry<String, JsonNode> next = fields.next();
+            if (next.getValue().isNull()) {
+                continue;
+            }
 
             props.put(next.getKey(), convertAttributeValue(next.getValue()));
         }
@@ -136,7 +181,7 @@ public class DynamodbUserStorage
         return builder;
     }
 
-    private AttributeValue convertAttributeValue(JsonNode value)
+    private static AttributeValue convertAttributeValue(JsonNode value)
     {
         AttributeValue attr = new AttributeValue();
         if (value.isTextual()) {
@@ -175,48 +220,226 @@ public class DynamodbUserStorage
         List<WriteRequest> collect = users.stream()
                 .map(user -> new WriteRequest(new PutRequest(generatePutRequest(project, user.id, user.properties))))
                 .collect(Collectors.toList());
-        dynamoDBClient.batchWriteItem(new BatchWriteItemRequest().withRequestItems(ImmutableMap.of(project, collect)));
-        return null;
+        batchWrite(collect).join();
+        return users.stream().map(user -> user.id).collect(Collectors.toList());
+    }
+
+    /**
+     * Sends the requests in chunks of {@value MAX_BATCH_WRITE_ITEMS} items in parallel.
+     */
+    private CompletableFuture<Void> batchWrite(List<WriteRequest> requests)
+    {
+        CompletableFuture[] futures = new CompletableFuture[(requests.size() + MAX_BATCH_WRITE_ITEMS - 1) / MAX_BATCH_WRITE_ITEMS];
+        for (int i = 0; i < futures.length; i++) {
+            List<WriteRequest> chunk = requests.subList(i * MAX_BATCH_WRITE_ITEMS,
+                    Math.min(requests.size(), (i + 1) * MAX_BATCH_WRITE_ITEMS));
+            futures[i] = batchWrite(ImmutableMap.of(tableConfig.getTableName(), chunk), 0);
+        }
+        return CompletableFuture.allOf(futures);
+    }
+
+    private CompletableFuture<Void> batchWrite(Map<String, List<WriteRequest>> items, int attempt)
+    {
+        FutureHandler<BatchWriteItemRequest, BatchWriteItemResult> handler = new FutureHandler<>();
+        try {
+            dynamoDBClient.batchWriteItemAsync(new BatchWriteItemRequest().withRequestItems(items), handler);
+        }
+        catch (RuntimeException e) {
+            handler.onError(e);
+        }
+
+        return handler.thenCompose(result -> {
+            Map<String, List<WriteRequest>> unprocessedItems = result.getUnprocessedItems();
+            if (unprocessedItems == null || unprocessedItems.isEmpty()) {
+                return CompletableFuture.completedFuture(null);
+            }
+            if (attempt >= MAX_BATCH_WRITE_RETRIES) {
+                throw new RakamException("DynamoDB couldn't process the user writes, the table is probably under-provisioned",
+                        SERVICE_UNAVAILABLE);
+            }
+
+            CompletableFuture<Void> retry = new CompletableFuture<>();
+            retryExecutor.schedule(() -> batchWrite(unprocessedItems, attempt + 1).whenComplete((value, ex) -> {
+                if (ex != null) {
+                    retry.completeExceptionally(ex);
+                }
+                else {
+                    retry.complete(null);
+                }
+            }), getBackoffMillis(attempt), TimeUnit.MILLISECONDS);
+            return retry;
+        });
+    }
+
+    private static long getBackoffMillis(int attempt)
+    {
+        long backoff = Math.min(MAX_BACKOFF_MILLIS, BASE_BACKOFF_MILLIS << Math.min(attempt, 16));
+        // the jitter spreads the retries of the chunks that are throttled at the same time
+        return backoff / 2 + ThreadLocalRandom.current().nextLong(backoff / 2 + 1);
     }
 
     @Override
     public CompletableFuture<QueryResult> searchUsers(String project, List<String> columns, Expression filterExpression, List<EventFilter> eventFilter, Sorting sortColumn, long limit, String offset)
+    {
+        if (tableConfig.getScanSegments() > 1) {
+            return scanUsers(project, columns, filterExpression, limit);
+        }
+        return CompletableFuture.completedFuture(queryUsers(project, columns, filterExpression, limit, null));
+    }
+
+    @Override
+    public CompletableFuture<QueryResult> searchUsersAfter(String project, Expression filterExpression, List<EventFilter> eventFilter, Object lastUserId, int limit)
+    {
+        // the users of a project are sorted by the range key so the last id of the page is used as the exclusive start key
+        return CompletableFuture.completedFuture(queryUsers(project, null, filterExpression, limit, lastUserId));
+    }
+
+    private QueryResult queryUsers(String project, List<String> columns, Expression filterExpression, long limit, Object lastUserId)
     {
         QueryRequest scanRequest = new QueryRequest()
                 .withTableName(tableConfig.getTableName());
-        if (columns != null && !columns.isEmpty()) {
-            scanRequest.withAttributesToGet(columns.stream().map(e -> "properties." + e).collect(Collectors.toList()));
-        }
         scanRequest.withKeyConditions(ImmutableMap.of("project", new Condition()
                 .withComparisonOperator(ComparisonOperator.EQ)
                 .withAttributeValueList(new AttributeValue(project))));
 
-        final ImmutableMap.Builder<String, String> nameBuilder = ImmutableMap.builder();
-        final ImmutableMap.Builder<String, AttributeValue> valueBuilder = ImmutableMap.builder();
-        final char[] variable = {'a', 'a'};
-        if (filterExpression != null) {
-            DynamodbFilterQueryFormatter formatter = new DynamodbFilterQueryFormatter(variable, nameBuilder, valueBuilder);
-            String expression = formatter.process(filterExpression, false);
+        Map<String, String> names = new HashMap<>();
+        Map<String, AttributeValue> values = new HashMap<>();
+        String projection = getProjectionExpression(columns, names);
+        if (projection != null) {
+            scanRequest.withProjectionExpression(projection);
+        }
+        String filter = getFilterExpression(filterExpression, names, values);
+        if (filter != null) {
+            scanRequest.withFilterExpression(filter);
+        }
+        if (!names.isEmpty()) {
+            scanRequest.withExpressionAttributeNames(names);
+        }
+        if (!values.isEmpty()) {
+            scanRequest.withExpressionAttributeValues(values);
+        }
+
+        if (lastUserId != null) {
+            scanRequest.withExclusiveStartKey(ImmutableMap.of(
+                    "project", new AttributeValue(project),
+                    "id", new AttributeValue(lastUserId.toString())));
+        }
+
+        // the limit is applied before the filter expression so the table is queried until the page is filled
+        List<Map<String, AttributeValue>> scan = new ArrayList<>();
+        Map<String, AttributeValue> lastEvaluatedKey;
+        do {
+            scanRequest.withLimit((int) Math.min(limit - scan.size(), Integer.MAX_VALUE));
+            com.amazonaws.services.dynamodbv2.model.QueryResult result = dynamoDBClient.query(scanRequest);
+            scan.addAll(result.getItems());
+            lastEvaluatedKey = result.getLastEvaluatedKey();
+            scanRequest.withExclusiveStartKey(lastEvaluatedKey);
+        }
+        while (lastEvaluatedKey != null && scan.size() < limit);
+
+        return toQueryResult(scan);
+    }
 
-            scanRequest.withFilterExpression(expression);
-            ImmutableMap<String, String> names = nameBuilder.build();
-            if (!names.isEmpty()) {
-                scanRequest.withExpressionAttributeNames(names);
+    /**
+     * Scans the segments of the table in parallel, the order of the users is not deterministic.
+     */
+    private CompletableFuture<QueryResult> scanUsers(String project, List<String> columns, Expression filterExpression, long limit)
+    {
+        Map<String, String> names = new HashMap<>();
+        Map<String, AttributeValue> values = new HashMap<>();
+        String projection = getProjectionExpression(columns, names);
+        String filter = getFilterExpression(filterExpression, names, values);
+        names.put("#project", "project");
+        values.put(":project", new AttributeValue(project));
+
+        int segments = tableConfig.getScanSegments();
+        List<CompletableFuture<List<Map<String, AttributeValue>>>> futures = new ArrayList<>(segments);
+        for (int segment = 0; segment < segments; segment++) {
+            ScanRequest request = new ScanRequest()
+                    .withTableName(tableConfig.getTableName())
+                    .withSegment(segment)
+                    .withTotalSegments(segments)
+                    .withFilterExpression("#project = :project" + (filter == null ? "" : " AND (" + filter + ")"))
+                    .withExpressionAttributeNames(names)
+                    .withExpressionAttributeValues(values);
+            if (projection != null) {
+                request.withProjectionExpression(projection);
             }
+            futures.add(scanSegment(request, new ArrayList<>(), limit));
+        }
 
-            ImmutableMap<String, AttributeValue> values = valueBuilder.build();
-            if (!values.isEmpty()) {
-                scanRequest.withExpressionAttributeValues(values);
+        return CompletableFuture.allOf(futures.toArray(new CompletableFuture[futures.size()])).thenApply(v -> {
+            List<Map<String, AttributeValue>> items = new ArrayList<>();
+            for (CompletableFuture<List<Map<String, AttributeValue>>> future : futures) {
+                for (Map<String, AttributeValue> item : future.join()) {
+                    if (items.size() >= limit) {
+                        break;
+                    }
+                    items.add(item);
+                }
             }
+            return toQueryResult(items);
+        });
+    }
+
+    private CompletableFuture<List<Map<String, AttributeValue>>> scanSegment(ScanRequest request, List<Map<String, AttributeValue>> items, long limit)
+    {
+        FutureHandler<ScanRequest, ScanResult> handler = new FutureHandler<>();
+        try {
+            dynamoDBClient.scanAsync(request, handler);
+        }
+        catch (RuntimeException e) {
+            handler.onError(e);
         }
 
-        scanRequest.withLimit(Math.toIntExact(limit));
-        List<Map<String, AttributeValue>> scan = dynamoDBClient.query(scanRequest).getItems();
+        return handler.thenCompose(result -> {
+            items.addAll(result.getItems());
+            if (result.getLastEvaluatedKey() == null || items.size() >= limit) {
+                return CompletableFuture.completedFuture(items);
+            }
+            return scanSegment(request.withExclusiveStartKey(result.getLastEvaluatedKey()), items, limit);
+        });
+    }
 
+    private static String getProjectionExpression(List<String> columns, Map<String, String> names)
+    {
+        if (columns == null || columns.isEmpty()) {
+            return null;
+        }
+
+        names.put("#id", "id");
+        StringBuilder projection = new StringBuilder("#id");
+        for (int i = 0; i < columns.size(); i++) {
+            String name = "#c" + i;
+            names.put(name, columns.get(i));
+            projection.append(", properties.").append(name);
+        }
+        return projection.toString();
+    }
+
+    private static String getFilterExpression(Expression filterExpression, Map<String, String> names, Map<String, AttributeValue> values)
+    {
+        if (filterExpression == null) {
+            return null;
+        }
+
+        ImmutableMap.Builder<String, String> nameBuilder = ImmutableMap.builder();
+        ImmutableMap.Builder<String, AttributeValue> valueBuilder = ImmutableMap.builder();
+        final char[] variable = {'a', 'a'};
+        DynamodbFilterQueryFormatter formatter = new DynamodbFilterQueryFormatter(variable, nameBuilder, valueBuilder);
+        String expression = formatter.process(filterExpression, false);
+        names.putAll(nameBuilder.build());
+        values.putAll(valueBuilder.build());
+        return expression;
+    }
+
+    private QueryResult toQueryResult(List<Map<String, AttributeValue>> scan)
+    {
         Set<String> set = new HashSet<>();
         for (Map<String, AttributeValue> entry : scan) {
-            for (Entry<String, AttributeValue> property : entry.get("properties").getM().entrySet()) {
-                set.add(property.getKey());
+            AttributeValue properties = entry.get("properties");
+            if (properties != null) {
+                set.addAll(properties.getM().keySet());
             }
         }
 
@@ -227,7 +450,8 @@ public class DynamodbUserStorage
 
         List<List<Object>> result = new ArrayList<>();
         for (Map<String, AttributeValue> entry : scan) {
-            Map<String, AttributeValue> properties = entry.get("properties").getM();
+            Map<String, AttributeValue> properties = entry.containsKey("properties") ?
+                    entry.get("properties").getM() : ImmutableMap.of();
 
             ArrayList<Object> row = new ArrayList<>();
             row.add(getJsonValue(entry.get("id")));
@@ -237,7 +461,7 @@ public class DynamodbUserStorage
             result.add(row);
         }
 
-        return CompletableFuture.completedFuture(new QueryResult(schemaFields, result));
+        return new QueryResult(schemaFields, result);
     }
 
     @Override
@@ -256,7 +480,7 @@ public class DynamodbUserStorage
     public CompletableFuture<User> getUser(String project, Object userId)
     {
         return CompletableFuture.supplyAsync(() -> {
-            GetItemResult item = dynamoDBClient.getItem("users", ImmutableMap.of(
+            GetItemResult item = dynamoDBClient.getItem(tableConfig.getTableName(), ImmutableMap.of(
                     "project", new AttributeValue(project),
                     "id", new AttributeValue(userId.toString())
             ));
@@ -349,105 +573,155 @@ public class DynamodbUserStorage
                 ImmutableList.of(new BatchUserOperations(user, null, properties, null, null, null)));
     }
 
+    /**
+     * The operations of a user are merged into a single update, the updates of the different users are sent in
+     * parallel and the updates of the same user are sent one after another in the order of the operations.
+     */
     @Override
     public void applyOperations(String project, List<? extends ISingleUserBatchOperation> operations)
     {
-        Map<String, String> nameMap = new HashMap<>();
-        Map<String, AttributeValue> valueMap = new HashMap<>();
-        StringBuilder setBuilder = null;
-        StringBuilder addBuilder = null;
-        StringBuilder unsetBuilder = null;
-        List<UpdateItemRequest> setOnceBuilder = null;
-        char nameCur = 'a';
-        char valueCur = 'a';
+        Map<String, List<UserUpdate>> updates = new LinkedHashMap<>();
         for (ISingleUserBatchOperation operation : operations) {
-            for (Entry<String, Double> entry : operation.getIncrementProperties().entrySet()) {
-                if (addBuilder == null) {
-                    addBuilder = new StringBuilder();
-                }
-                else {
-                    addBuilder.append(", ");
-                }
-
-                String name = new String(new char[] {'#', nameCur++});
-                String value = new String(new char[] {':', valueCur++});
-                addBuilder.append("properties." + name + " " + value);
-
-                nameMap.put(name, entry.getKey());
-                valueMap.put(value, new AttributeValue().withN(entry.getValue().toString()));
+            List<UserUpdate> userUpdates = updates.computeIfAbsent(operation.getUser().toString(), k -> new ArrayList<>());
+            if (userUpdates.isEmpty()) {
+                userUpdates.add(new UserUpdate(operation.getUser()));
             }
 
-            Iterator<Entry<String, JsonNode>> fields = operation.getSetProperties().fields();
-            while (fields.hasNext()) {
-                Entry<String, JsonNode> next = fields.next();
-                if (setBuilder == null) {
-                    setBuilder = new StringBuilder();
-                }
-                else {
-                    setBuilder.append(", ");
+            if (operation.getSetProperties() != null) {
+                Iterator<Entry<String, JsonNode>> fields = operation.getSetProperties().fields();
+                while (fields.hasNext()) {
+                    Entry<String, JsonNode> next = fields.next();
+                    add(userUpdates, next.getKey(), next.getValue().isNull() ?
+                            PropertyUpdate.unset() : PropertyUpdate.set(next.getValue()));
                 }
-
-                String name = new String(new char[] {'#', nameCur++});
-                String value = new String(new char[] {':', valueCur++});
-                addBuilder.append("properties." + name + " = " + value);
-
-                nameMap.put(name, next.getKey());
-                valueMap.put(value, convertAttributeValue(next.getValue()));
             }
 
-            Iterator<Entry<String, JsonNode>> setOncefields = operation.getSetPropertiesOnce().fields();
-            while (setOncefields.hasNext()) {
-                Entry<String, JsonNode> next = fields.next();
-
-                if (setOnceBuilder == null) {
-                    setOnceBuilder = new ArrayList<>();
+            if (operation.getSetPropertiesOnce() != null) {
+                Iterator<Entry<String, JsonNode>> fields = operation.getSetPropertiesOnce().fields();
+                while (fields.hasNext()) {
+                    Entry<String, JsonNode> next = fields.next();
+                    if (!next.getValue().isNull()) {
+                        add(userUpdates, next.getKey(), PropertyUpdate.setOnce(next.getValue()));
+                    }
                 }
-
-                setOnceBuilder.add(new UpdateItemRequest()
-                        .withUpdateExpression("SET properties.#a = :a")
-                        .withExpressionAttributeNames(ImmutableMap.of("#a", next.getKey()))
-                        .withExpressionAttributeValues(ImmutableMap.of(":a", convertAttributeValue(next.getValue())))
-                        .withTableName(tableConfig.getTableName())
-                        .withKey(ImmutableMap.of("project", new AttributeValue(project), "id",
-                                new AttributeValue(operation.getUser().toString())))
-                );
             }
 
-            for (String unsetProperty : operation.getUnsetProperties()) {
-                if (unsetBuilder == null) {
-                    unsetBuilder = new StringBuilder();
+            if (operation.getUnsetProperties() != null) {
+                for (String unsetProperty : operation.getUnsetProperties()) {
+                    add(userUpdates, unsetProperty, PropertyUpdate.unset());
                 }
-                else {
-                    unsetBuilder.append(" , ");
+            }
+
+            if (operation.getIncrementProperties() != null) {
+                for (Entry<String, Double> entry : operation.getIncrementProperties().entrySet()) {
+                    add(userUpdates, entry.getKey(), PropertyUpdate.increment(0, entry.getValue()));
                 }
+            }
+        }
 
-                String name = new String(new char[] {'#', nameCur++});
-                unsetBuilder.append("properties." + name);
+        CompletableFuture[] futures = updates.values().stream()
+                .map(userUpdates -> {
+                    CompletableFuture<Void> future = CompletableFuture.completedFuture(null);
+                    for (UserUpdate update : userUpdates) {
+                        if (!update.properties.isEmpty()) {
+                            future = future.thenCompose(v -> update(project, update, true));
+                        }
+                    }
+                    return future;
+                })
+                .toArray(CompletableFuture[]::new);
 
-                nameMap.put(name, unsetProperty);
+        try {
+            CompletableFuture.allOf(futures).join();
+        }
+        catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
             }
+            throw e;
+        }
+    }
+
+    private static void add(List<UserUpdate> userUpdates, String property, PropertyUpdate update)
+    {
+        UserUpdate last = userUpdates.get(userUpdates.size() - 1);
+        PropertyUpdate existing = last.properties.get(property);
+        if (existing == null) {
+            last.properties.put(property, update);
+            return;
+        }
 
-            StringBuilder query = new StringBuilder();
-            if (setBuilder != null) {
-                query.append("SET ").append(setBuilder);
+        PropertyUpdate merged = existing.merge(update);
+        if (merged != null) {
+            last.properties.put(property, merged);
+        }
+        else {
+            // the updates can't be expressed in a single update expression
+            UserUpdate next = new UserUpdate(last.user);
+            next.properties.put(property, update);
+            userUpdates.add(next);
+        }
+    }
+
+    private CompletableFuture<Void> update(String project, UserUpdate update, boolean createIfMissing)
+    {
+        FutureHandler<UpdateItemRequest, UpdateItemResult> handler = new FutureHandler<>();
+        try {
+            dynamoDBClient.updateItemAsync(update.toRequest(tableConfig.getTableName(), project), handler);
+        }
+        catch (RuntimeException e) {
+            handler.onError(e);
+        }
+
+        CompletableFuture<Void> future = new CompletableFuture<>();
+        handler.whenComplete((result, ex) -> {
+            if (ex == null) {
+                future.complete(null);
             }
-            if (unsetBuilder != null) {
-                query.append("DELETE ").append(unsetBuilder);
+            else if (ex instanceof ConditionalCheckFailedException && createIfMissing && !update.isRemoveOnly()) {
+                // the properties of a user can't be updated before the item is created
+                createEmptyUser(project, update.user)
+                        .thenCompose(v -> update(project, update, false))
+                        .whenComplete((value, e) -> {
+                            if (e != null) {
+                                future.completeExceptionally(e);
+                            }
+                            else {
+                                future.complete(null);
+                            }
+                        });
             }
-            if (addBuilder != null) {
-                query.append("ADD ").append(addBuilder);
+            else if (ex instanceof ConditionalCheckFailedException) {
+                // the user doesn't exist so there is no property to remove
+                future.complete(null);
             }
+            else {
+                future.completeExceptionally(ex);
+            }
+        });
+        return future;
+    }
 
-            dynamoDBClient.updateItem(new UpdateItemRequest()
+    private CompletableFuture<Void> createEmptyUser(String project, Object user)
+    {
+        FutureHandler<PutItemRequest, PutItemResult> handler = new FutureHandler<>();
+        try {
+            dynamoDBClient.putItemAsync(new PutItemRequest()
                     .withTableName(tableConfig.getTableName())
-                    .withKey(ImmutableMap.of("project", new AttributeValue(project), "id",
-                            new AttributeValue(operation.getUser().toString())))
-                    .withUpdateExpression(query.toString()));
+                    .withItem(generatePutRequest(project, user, JsonHelper.jsonObject()))
+                    .withConditionExpression("attribute_not_exists(id)"), handler);
+        }
+        catch (RuntimeException e) {
+            handler.onError(e);
+        }
 
-            if (setOnceBuilder != null) {
-                setOnceBuilder.forEach(dynamoDBClient::updateItem);
+        return handler.handle((result, ex) -> {
+            // the user is created by another request in the meantime
+            if (ex != null && !(ex instanceof ConditionalCheckFailedException)) {
+                throw ex instanceof RuntimeException ? (RuntimeException) ex : new CompletionException(ex);
             }
-        }
+            return null;
+        });
     }
 
     @Override
@@ -461,8 +735,29 @@ public class DynamodbUserStorage
     @Override
     public void dropProjectIfExists(String project)
     {
-        dynamoDBClient.deleteItem(new DeleteItemRequest()
-                .withKey(ImmutableMap.of("project", new AttributeValue(project))));
+        QueryRequest request = new QueryRequest()
+                .withTableName(tableConfig.getTableName())
+                .withKeyConditions(ImmutableMap.of("project", new Condition()
+                        .withComparisonOperator(ComparisonOperator.EQ)
+                        .withAttributeValueList(new AttributeValue(project))))
+                .withProjectionExpression("id");
+
+        List<CompletableFuture<Void>> futures = new ArrayList<>();
+        Map<String, AttributeValue> lastEvaluatedKey;
+        do {
+            com.amazonaws.services.dynamodbv2.model.QueryResult result = dynamoDBClient.query(request);
+            List<WriteRequest> deletes = result.getItems().stream()
+                    .map(item -> new WriteRequest(new DeleteRequest(ImmutableMap.of(
+                            "project", new AttributeValue(project),
+                            "id", item.get("id")))))
+                    .collect(Collectors.toList());
+            futures.add(batchWrite(deletes));
+            lastEvaluatedKey = result.getLastEvaluatedKey();
+            request.withExclusiveStartKey(lastEvaluatedKey);
+        }
+        while (lastEvaluatedKey != null);
+
+        CompletableFuture.allOf(futures.toArray(new CompletableFuture[futures.size()])).join();
     }
 
     @Override
@@ -471,4 +766,168 @@ public class DynamodbUserStorage
         applyOperations(project, ImmutableList.of(
                 new BatchUserOperations(user, null, null, null, properties, null)));
     }
+
+    private static class UserUpdate
+    {
+        private final Object user;
+        private final Map<String, PropertyUpdate> properties = new LinkedHashMap<>();
+
+        private UserUpdate(Object user)
+        {
+            this.user = user;
+        }
+
+        private boolean isRemoveOnly()
+        {
+            return properties.values().stream().allMatch(update -> update.type == PropertyUpdate.Type.UNSET);
+        }
+
+        private UpdateItemRequest toRequest(String tableName, String project)
+        {
+            Map<String, String> names = new HashMap<>();
+            Map<String, AttributeValue> values = new HashMap<>();
+            List<String> setExpressions = new ArrayList<>();
+            List<String> removeExpressions = new ArrayList<>();
+
+            names.put("#properties", "properties");
+            int i = 0;
+            for (Entry<String, PropertyUpdate> entry : properties.entrySet()) {
+                String path = "#properties.#p" + i;
+                names.put("#p" + i, entry.getKey());
+                PropertyUpdate update = entry.getValue();
+                switch (update.type) {
+                    case SET:
+                        setExpressions.add(path + " = :v" + i);
+                        values.put(":v" + i, update.value);
+                        break;
+                    case SET_ONCE:
+                        setExpressions.add(path + " = if_not_exists(" + path + ", :v" + i + ")");
+                        values.put(":v" + i, update.value);
+                        break;
+                    case INCREMENT:
+                        // ADD only supports the top-level attributes so the nested value is incremented with SET
+                        setExpressions.add(path + " = if_not_exists(" + path + ", :v" + i + ") + :d" + i);
+                        values.put(":v" + i, new AttributeValue().withN(Double.toString(update.base)));
+                        values.put(":d" + i, new AttributeValue().withN(Double.toString(update.delta)));
+                        break;
+                    case UNSET:
+                        removeExpressions.add(path);
+                        break;
+                }
+                i++;
+            }
+
+            StringBuilder expression = new StringBuilder();
+            if (!setExpressions.isEmpty()) {
+                expression.append("SET ").append(String.join(", ", setExpressions));
+            }
+            if (!removeExpressions.isEmpty()) {
+                expression.append(expression.length() == 0 ? "" : " ").append("REMOVE ").append(String.join(", ", removeExpressions));
+            }
+
+            UpdateItemRequest request = new UpdateItemRequest()
+                    .withTableName(tableName)
+                    .withKey(ImmutableMap.of("project", new AttributeValue(project), "id",
+                            new AttributeValue(user.toString())))
+                    .withUpdateExpression(expression.toString())
+                    .withConditionExpression("attribute_exists(#properties)")
+                    .withExpressionAttributeNames(names);
+            if (!values.isEmpty()) {
+                request.withExpressionAttributeValues(values);
+            }
+            return request;
+        }
+    }
+
+    private static class PropertyUpdate
+    {
+        private enum Type
+        {
+            SET, SET_ONCE, INCREMENT, UNSET
+        }
+
+        private final Type type;
+        private final JsonNode json;
+        private final AttributeValue value;
+        private final double base;
+        private final double delta;
+
+        private PropertyUpdate(Type type, JsonNode json, double base, double delta)
+        {
+            this.type = type;
+            this.json = json;
+            this.value = json == null ? null : convertAttributeValue(json);
+            this.base = base;
+            this.delta = delta;
+        }
+
+        static PropertyUpdate set(JsonNode value)
+        {
+            return new PropertyUpdate(Type.SET, value, 0, 0);
+        }
+
+        static PropertyUpdate setOnce(JsonNode value)
+        {
+            return new PropertyUpdate(Type.SET_ONCE, value, 0, 0);
+        }
+
+        static PropertyUpdate increment(double base, double delta)
+        {
+            return new PropertyUpdate(Type.INCREMENT, null, base, delta);
+        }
+
+        static PropertyUpdate unset()
+        {
+            return new PropertyUpdate(Type.UNSET, null, 0, 0);
+        }
+
+        /**
+         * Returns the update that has the same effect as applying this update and then the next one or null if
+         * they can't be expressed as a single update.
+         */
+        PropertyUpdate merge(PropertyUpdate next)
+        {
+            switch (next.type) {
+                case SET:
+                case UNSET:
+                    return next;
+                case SET_ONCE:
+                    if (type == Type.UNSET) {
+                        return set(next.json);
+                    }
+                    // the property has a value after the other updates
+                    return this;
+                case INCREMENT:
+                    switch (type) {
+                        case SET:
+                            return json.isNumber() ? set(DoubleNode.valueOf(json.asDouble() + next.delta)) : null;
+                        case SET_ONCE:
+                            return json.isNumber() ? increment(json.asDouble(), next.delta) : null;
+                        case INCREMENT:
+                            return increment(base, delta + next.delta);
+                        case UNSET:
+                            return set(DoubleNode.valueOf(next.delta));
+                    }
+                default:
+                    throw new IllegalStateException();
+            }
+        }
+    }
+
+    private static class FutureHandler<REQUEST extends AmazonWebServiceRequest, RESULT>
+            extends CompletableFuture<RESULT>
+            implements AsyncHandler<REQUEST, RESULT>
+    {
+        @Override
+        public void onError(Exception exception)
+        {
+            completeExceptionally(exception);
+        }
+
+        @Override
+        public void onSuccess(REQUEST request, RESULT result)
+        {
+            complete(result);
+        }
+    }
 }
@@ -1,12 +1,15 @@
 package org.rakam.aws.dynamodb;
 
 import org.rakam.analysis.ApiKeyService;
+import org.rakam.analysis.ApiKeyService.AccessKeyType;
 import org.rakam.analysis.TestApiKeyService;
 import org.rakam.aws.AWSConfig;
 import org.rakam.aws.dynamodb.apikey.DynamodbApiKeyConfig;
 import org.rakam.aws.dynamodb.apikey.DynamodbApiKeyService;
+import org.rakam.util.RakamException;
 import org.testng.annotations.AfterSuite;
 import org.testng.annotations.BeforeSuite;
+import org.testng.annotations.Test;
 
 import java.io.File;
 import java.io.IOException;
@@ -16,11 +19,14 @@ import java.nio.file.Path;
 import static com.google.common.collect.ImmutableList.of;
 import static java.lang.String.format;
 import static java.lang.System.getProperty;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.fail;
 
 public class TestDynamodbApiKeyService
         extends TestApiKeyService
 {
     private final DynamodbApiKeyService service;
+    private final AWSConfig awsConfig;
     private Process dynamodbServer;
 
     public TestDynamodbApiKeyService()
@@ -28,11 +34,11 @@ public class TestDynamodbApiKeyService
     {
         int dynamodb = createDynamodb();
 //        int dynamodb = 8000;
-        service = new DynamodbApiKeyService(new AWSConfig()
+        awsConfig = new AWSConfig()
                 .setAccessKey("test")
                 .setSecretAccessKey("test")
-                .setDynamodbEndpoint("http://127.0.0.1:" + dynamodb),
-                new DynamodbApiKeyConfig().setTableName("test"));
+                .setDynamodbEndpoint("http://127.0.0.1:" + dynamodb);
+        service = new DynamodbApiKeyService(awsConfig, new DynamodbApiKeyConfig().setTableName("test"));
     }
 
     @BeforeSuite
@@ -49,6 +55,65 @@ public class TestDynamodbApiKeyService
         dynamodbServer.destroy();
     }
 
+    @Test
+    public void testRevokeCachedApiKeys()
+            throws Exception
+    {
+        ApiKeyService.ProjectApiKeys apiKeys = service.createApiKeys("cached");
+        assertEquals(service.getProjectOfApiKey(apiKeys.writeKey(), AccessKeyType.WRITE_KEY), "cached");
+
+        service.revokeAllKeys("cached");
+
+        try {
+            service.getProjectOfApiKey(apiKeys.writeKey(), AccessKeyType.WRITE_KEY);
+            fail();
+        }
+        catch (RakamException e) {
+        }
+    }
+
+    @Test
+    public void testRecreateApiKeys()
+            throws Exception
+    {
+        ApiKeyService.ProjectApiKeys oldKeys = service.createApiKeys("recreated");
+        assertEquals(service.getProjectOfApiKey(oldKeys.readKey(), AccessKeyType.READ_KEY), "recreated");
+
+        ApiKeyService.ProjectApiKeys newKeys = service.createApiKeys("recreated");
+        assertEquals(service.getProjectOfApiKey(newKeys.readKey(), AccessKeyType.READ_KEY), "recreated");
+
+        try {
+            service.getProjectOfApiKey(oldKeys.readKey(), AccessKeyType.READ_KEY);
+            fail();
+        }
+        catch (RakamException e) {
+        }
+        finally {
+            service.revokeAllKeys("recreated");
+        }
+    }
+
+    @Test
+    public void testBackfillLookupTable()
+            throws Exception
+    {
+        ApiKeyService.ProjectApiKeys apiKeys = service.createApiKeys("backfilled");
+
+        DynamodbApiKeyConfig config = new DynamodbApiKeyConfig().setTableName("test").setLookupTableName("test_backfill");
+        DynamodbApiKeyService backfilled = new DynamodbApiKeyService(awsConfig, config);
+        backfilled.setup();
+        // the backfill is completed so it's not started again
+        backfilled.setup();
+
+        try {
+            assertEquals(backfilled.getProjectOfApiKey(apiKeys.masterKey(), AccessKeyType.MASTER_KEY), "backfilled");
+            assertEquals(backfilled.getProjectOfApiKey(apiKeys.writeKey(), AccessKeyType.WRITE_KEY), "backfilled");
+        }
+        finally {
+            service.revokeAllKeys("backfilled");
+        }
+    }
+
     @Override
     public ApiKeyService getApiKeyService()
     {
@@ -0,0 +1,163 @@
+package org.rakam.aws.dynamodb;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import org.rakam.aws.AWSConfig;
+import org.rakam.aws.dynamodb.user.DynamodbUserConfig;
+import org.rakam.aws.dynamodb.user.DynamodbUserStorage;
+import org.rakam.plugin.user.AbstractUserService.BatchUserOperationRequest.BatchUserOperations;
+import org.rakam.plugin.user.User;
+import org.rakam.report.QueryResult;
+import org.rakam.util.JsonHelper;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.AfterSuite;
+import org.testng.annotations.BeforeSuite;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import static com.google.common.collect.ImmutableList.of;
+import static java.lang.String.format;
+import static java.lang.System.getProperty;
+import static org.testng.Assert.assertEquals;
+
+public class TestDynamodbUserStorage
+{
+    private static final String PROJECT = "test";
+
+    private final DynamodbUserStorage storage;
+    private final DynamodbUserStorage scanningStorage;
+    private Process dynamodbServer;
+
+    public TestDynamodbUserStorage()
+            throws Exception
+    {
+        int dynamodb = createDynamodb();
+//        int dynamodb = 8000;
+        AWSConfig config = new AWSConfig()
+                .setAccessKey("test")
+                .setSecretAccessKey("test")
+                .setDynamodbEndpoint("http://127.0.0.1:" + dynamodb);
+        storage = new DynamodbUserStorage(config, new DynamodbUserConfig().setTableName("users"));
+        scanningStorage = new DynamodbUserStorage(config, new DynamodbUserConfig().setTableName("users").setScanSegments(4));
+    }
+
+    @BeforeSuite
+    public void setUp()
+            throws Exception
+    {
+        storage.setup();
+    }
+
+    @AfterSuite
+    public void tearDown()
+            throws Exception
+    {
+        dynamodbServer.destroy();
+    }
+
+    @AfterMethod
+    public void dropProject()
+            throws Exception
+    {
+        storage.dropProjectIfExists(PROJECT);
+    }
+
+    @Test
+    public void testBatchCreate()
+            throws Exception
+    {
+        // more users than a single batch write request can contain
+        List<User> users = new ArrayList<>();
+        for (int i = 0; i < 110; i++) {
+            users.add(new User(Integer.toString(i), null, JsonHelper.jsonObject().put("value", i)));
+        }
+        storage.batchCreate(PROJECT, users);
+
+        assertEquals(storage.searchUsers(PROJECT, null, null, null, null, 1000, null).join().getResult().size(), 110);
+        assertEquals(storage.searchUsers(PROJECT, null, null, null, null, 30, null).join().getResult().size(), 30);
+        assertEquals(storage.getUser(PROJECT, "42").join().properties.get("value").asDouble(), 42.0);
+    }
+
+    @Test
+    public void testParallelScan()
+            throws Exception
+    {
+        List<User> users = new ArrayList<>();
+        for (int i = 0; i < 50; i++) {
+            users.add(new User(Integer.toString(i), null, JsonHelper.jsonObject().put("value", i)));
+        }
+        storage.batchCreate(PROJECT, users);
+        storage.batchCreate("other_project", ImmutableList.of(new User("1", null, JsonHelper.jsonObject())));
+
+        QueryResult result = scanningStorage.searchUsers(PROJECT, null, null, null, null, 1000, null).join();
+        assertEquals(result.getResult().size(), 50);
+
+        storage.dropProjectIfExists("other_project");
+    }
+
+    @Test
+    public void testMergedOperations()
+            throws Exception
+    {
+        storage.applyOperations(PROJECT, ImmutableList.of(
+                new BatchUserOperations("1", JsonHelper.jsonObject().put("name", "value"),
+                        JsonHelper.jsonObject().put("first_seen", "a"), ImmutableMap.of("count", 2.0), null, null),
+                new BatchUserOperations("1", null,
+                        JsonHelper.jsonObject().put("first_seen", "b"), ImmutableMap.of("count", 3.0), ImmutableList.of("name"), null),
+                new BatchUserOperations("2", null, null, ImmutableMap.of("count", 1.0), null, null)));
+
+        assertEquals(storage.getUser(PROJECT, "1").join().properties, JsonHelper.jsonObject()
+                .put("first_seen", "a")
+                .put("count", 5.0));
+        assertEquals(storage.getUser(PROJECT, "2").join().properties, JsonHelper.jsonObject()
+                .put("count", 1.0));
+    }
+
+    @Test
+    public void testOperationsOnExistingUser()
+            throws Exception
+    {
+        storage.create(PROJECT, "1", JsonHelper.jsonObject().put("first_seen", "a").put("count", 1));
+
+        storage.applyOperations(PROJECT, ImmutableList.of(
+                new BatchUserOperations("1", null, JsonHelper.jsonObject().put("first_seen", "b"),
+                        ImmutableMap.of("count", 2.0), null, null),
+                // the set once value is the base of the increment if the property doesn't exist
+                new BatchUserOperations("1", null, JsonHelper.jsonObject().put("other", 10), null, null, null),
+                new BatchUserOperations("1", null, null, ImmutableMap.of("other", 1.0), null, null)));
+
+        assertEquals(storage.getUser(PROJECT, "1").join().properties, JsonHelper.jsonObject()
+                .put("first_seen", "a")
+                .put("count", 3.0)
+                .put("other", 11.0));
+    }
+
+    public int createDynamodb()
+            throws Exception
+    {
+        int randomPort = randomPort();
+        Path mainDir = new File(getProperty("user.dir"), ".test/dynamodb").toPath();
+
+        dynamodbServer = new ProcessBuilder(of("java", format("-Djava.library.path=%s",
+                mainDir.resolve("DynamoDBLocal_lib").toFile().getAbsolutePath()),
+                "-jar", mainDir.resolve("DynamoDBLocal.jar").toFile().getAbsolutePath(),
+                "-inMemory", "--port", Integer.toString(randomPort)))
+                .start();
+
+        return randomPort;
+    }
+
+    private static int randomPort()
+            throws IOException
+    {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+}
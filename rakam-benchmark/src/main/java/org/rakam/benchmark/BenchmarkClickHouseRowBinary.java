@@ -0,0 +1,68 @@
+package org.rakam.benchmark;
+
+import org.apache.avro.Schema;
+import org.rakam.clickhouse.collection.ClickHouseEventStore.BinaryRawGenerator;
+import org.rakam.collection.Event;
+import org.rakam.collection.SchemaField;
+import org.rakam.util.AvroUtil;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayOutputStream;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import static org.rakam.benchmark.BenchmarkData.COLLECTION;
+import static org.rakam.benchmark.BenchmarkData.PROJECT;
+
+/**
+ * Encodes a batch of events in the RowBinary format that is sent to ClickHouse.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+public class BenchmarkClickHouseRowBinary
+{
+    private static final int EVENT_COUNT = 1000;
+
+    @Param({"10", "100"})
+    private int columns;
+
+    private BinaryRawGenerator generator;
+    private ByteArrayOutputStream output;
+
+    @Setup
+    public void setup()
+    {
+        List<SchemaField> fields = BenchmarkData.fields(columns, true);
+        Schema schema = AvroUtil.convertAvroSchema(fields);
+        List<Event> events = BenchmarkData.rows(fields, EVENT_COUNT, 0).stream()
+                .map(row -> new Event(PROJECT, COLLECTION, null, fields, BenchmarkData.record(schema, row)))
+                .collect(Collectors.toList());
+
+        generator = new BinaryRawGenerator(events, fields);
+        output = new ByteArrayOutputStream(EVENT_COUNT * columns * 16);
+    }
+
+    @Benchmark
+    public int rowBinary()
+            throws Exception
+    {
+        output.reset();
+        generator.write(output);
+        return output.size();
+    }
+}
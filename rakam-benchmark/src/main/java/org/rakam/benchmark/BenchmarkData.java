@@ -0,0 +1,149 @@
+package org.rakam.benchmark;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import org.apache.avro.Schema;
+import org.apache.avro.generic.GenericData;
+import org.rakam.collection.FieldType;
+import org.rakam.collection.SchemaField;
+
+import java.time.Instant;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.rakam.collection.FieldType.ARRAY_STRING;
+import static org.rakam.collection.FieldType.BOOLEAN;
+import static org.rakam.collection.FieldType.DATE;
+import static org.rakam.collection.FieldType.DOUBLE;
+import static org.rakam.collection.FieldType.LONG;
+import static org.rakam.collection.FieldType.MAP_STRING;
+import static org.rakam.collection.FieldType.STRING;
+import static org.rakam.collection.FieldType.TIMESTAMP;
+
+/**
+ * Generates the payloads of the benchmarks. The values are deterministic for the same seed so that the results
+ * of different releases are comparable, and the strings are mostly non-ASCII since the encoders and the
+ * deserializers have a fast path for ASCII that the real-world data often doesn't hit.
+ */
+public final class BenchmarkData
+{
+    public static final String PROJECT = "benchmark";
+    public static final String COLLECTION = "pageview";
+
+    private static final String[] WORDS = {
+            "rakam", "analytics", "Straße", "İstanbul", "東京都渋谷区", "Москва", "café ☕", "naïve",
+            "🚀 launch", "ünïcödé", "São Paulo", "القاهرة", "서울특별시", "Zürich", "résumé", "checkout"};
+
+    private static final FieldType[] SCALAR_TYPES = {STRING, LONG, DOUBLE, BOOLEAN, TIMESTAMP, DATE, STRING};
+    private static final FieldType[] NESTED_TYPES = {ARRAY_STRING, MAP_STRING};
+
+    private BenchmarkData()
+            throws InstantiationException
+    {
+        throw new InstantiationException("The class is not created for instantiation");
+    }
+
+    /**
+     * Returns a schema with the given number of columns, the first column is always the {@code _time} field.
+     * One out of every five columns is an array or a map if {@code nested} is set.
+     */
+    public static List<SchemaField> fields(int columns, boolean nested)
+    {
+        ImmutableList.Builder<SchemaField> builder = ImmutableList.builder();
+        builder.add(new SchemaField("_time", TIMESTAMP));
+        for (int i = 1; i < columns; i++) {
+            FieldType type;
+            if (nested && i % 5 == 4) {
+                type = NESTED_TYPES[(i / 5) % NESTED_TYPES.length];
+            }
+            else {
+                type = SCALAR_TYPES[i % SCALAR_TYPES.length];
+            }
+            builder.add(new SchemaField("column_" + i + "_" + type.name().toLowerCase(), type));
+        }
+        return builder.build();
+    }
+
+    /**
+     * Returns the rows in the internal representation of Avro records, see {@link #javaValue(Random, FieldType)}.
+     */
+    public static List<Map<String, Object>> rows(List<SchemaField> fields, int count, long seed)
+    {
+        Random random = new Random(seed);
+        List<Map<String, Object>> rows = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            Map<String, Object> row = new LinkedHashMap<>();
+            for (SchemaField field : fields) {
+                row.put(field.getName(), javaValue(random, field.getType()));
+            }
+            rows.add(row);
+        }
+        return rows;
+    }
+
+    public static GenericData.Record record(Schema schema, Map<String, Object> row)
+    {
+        GenericData.Record record = new GenericData.Record(schema);
+        row.forEach(record::put);
+        return record;
+    }
+
+    /**
+     * Converts the value to the representation that the JSON and CSV APIs accept.
+     */
+    public static Object externalValue(FieldType type, Object value)
+    {
+        switch (type) {
+            case TIMESTAMP:
+                return Instant.ofEpochMilli((Long) value).toString();
+            case DATE:
+                return LocalDate.ofEpochDay((Integer) value).toString();
+            default:
+                return value;
+        }
+    }
+
+    public static String string(Random random)
+    {
+        StringBuilder builder = new StringBuilder(WORDS[random.nextInt(WORDS.length)]);
+        int words = random.nextInt(4);
+        for (int i = 0; i < words; i++) {
+            builder.append(' ').append(WORDS[random.nextInt(WORDS.length)]);
+        }
+        return builder.toString();
+    }
+
+    private static Object javaValue(Random random, FieldType type)
+    {
+        switch (type) {
+            case STRING:
+                return string(random);
+            case LONG:
+                return random.nextLong() >>> 20;
+            case DOUBLE:
+                return random.nextDouble() * 10000;
+            case BOOLEAN:
+                return random.nextBoolean();
+            case TIMESTAMP:
+                // a random point in the last year
+                return 1451606400000L + (long) (random.nextDouble() * 31536000000L);
+            case DATE:
+                return 16801 + random.nextInt(365);
+            case ARRAY_STRING:
+                int size = random.nextInt(5);
+                List<String> list = new ArrayList<>(size);
+                for (int i = 0; i < size; i++) {
+                    list.add(string(random));
+                }
+                return list;
+            case MAP_STRING:
+                return ImmutableMap.of("utm_source", string(random), "utm_campaign", string(random));
+            default:
+                throw new IllegalArgumentException(type.name());
+        }
+    }
+}
@@ -0,0 +1,48 @@
+package org.rakam.benchmark;
+
+import org.rakam.module.website.DistributedIdGenerator;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.time.Clock;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Generates the anonymous user ids from multiple threads that share a single generator like the event collection
+ * threads do. The batch benchmark reserves the ids of a batch request at once.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Threads(8)
+public class BenchmarkDistributedIdGenerator
+{
+    private static final int BATCH_SIZE = 100;
+
+    private final DistributedIdGenerator generator = new DistributedIdGenerator(1, Clock.systemUTC());
+
+    @Benchmark
+    public long generateId()
+    {
+        return generator.generateId();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH_SIZE)
+    public long[] generateIds()
+    {
+        return generator.generateIds(BATCH_SIZE);
+    }
+}
@@ -0,0 +1,211 @@
+package org.rakam.benchmark;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.cfg.ContextAttributes;
+import com.fasterxml.jackson.databind.module.SimpleModule;
+import com.fasterxml.jackson.dataformat.csv.CsvMapper;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import io.airlift.slice.DynamicSliceOutput;
+import io.airlift.slice.Slice;
+import org.apache.avro.Schema;
+import org.apache.avro.generic.GenericData;
+import org.apache.avro.generic.GenericDatumWriter;
+import org.apache.avro.io.BinaryEncoder;
+import org.apache.avro.io.EncoderFactory;
+import org.rakam.analysis.InMemoryApiKeyService;
+import org.rakam.analysis.InMemoryMetastore;
+import org.rakam.collection.AvroEventDeserializer;
+import org.rakam.collection.CsvEventDeserializer;
+import org.rakam.collection.Event;
+import org.rakam.collection.EventList;
+import org.rakam.collection.EventListDeserializer;
+import org.rakam.collection.FieldDependencyBuilder;
+import org.rakam.collection.JsonEventDeserializer;
+import org.rakam.collection.SchemaField;
+import org.rakam.metrics.MetricRegistry;
+import org.rakam.util.AvroUtil;
+import org.rakam.util.JsonHelper;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.rakam.benchmark.BenchmarkData.COLLECTION;
+import static org.rakam.benchmark.BenchmarkData.PROJECT;
+
+/**
+ * Parses the same batch of events in each format that the collection API accepts. The collection schema
+ * is created in the setup so the numbers don't include the schema evolution.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+public class BenchmarkEventDeserializers
+{
+    private static final int EVENT_COUNT = 100;
+
+    @Param({"10", "100"})
+    private int columns;
+
+    private ObjectMapper jsonMapper;
+    private ObjectReader csvReader;
+    private AvroEventDeserializer avroEventDeserializer;
+
+    private byte[] singleEvent;
+    private byte[] eventList;
+    private byte[] csv;
+    private Slice avro;
+
+    @Setup
+    public void setup()
+            throws IOException
+    {
+        InMemoryApiKeyService apiKeyService = new InMemoryApiKeyService();
+        InMemoryMetastore metastore = new InMemoryMetastore(apiKeyService);
+        metastore.createProject(PROJECT);
+        String writeKey = apiKeyService.createApiKeys(PROJECT).writeKey();
+
+        List<SchemaField> fields = BenchmarkData.fields(columns, true);
+        metastore.getOrCreateCollectionFieldList(PROJECT, COLLECTION, ImmutableSet.copyOf(fields));
+        List<Map<String, Object>> rows = BenchmarkData.rows(fields, EVENT_COUNT, 0);
+
+        FieldDependencyBuilder.FieldDependency fieldDependency = new FieldDependencyBuilder().build();
+        InMemoryConfigManager configManager = new InMemoryConfigManager();
+        JsonEventDeserializer jsonEventDeserializer = new JsonEventDeserializer(metastore, apiKeyService, configManager, fieldDependency,
+                new MetricRegistry(null));
+        jsonMapper = JsonHelper.getMapper().copy();
+        jsonMapper.registerModule(new SimpleModule()
+                .addDeserializer(Event.class, jsonEventDeserializer)
+                .addDeserializer(EventList.class, new EventListDeserializer(apiKeyService, jsonEventDeserializer)));
+
+        CsvMapper csvMapper = new CsvMapper();
+        csvMapper.registerModule(new SimpleModule().addDeserializer(EventList.class,
+                new CsvEventDeserializer(metastore, configManager, fieldDependency)));
+        csvReader = csvMapper.reader(EventList.class).with(ContextAttributes.getEmpty()
+                .withSharedAttribute("project", PROJECT)
+                .withSharedAttribute("collection", COLLECTION)
+                .withSharedAttribute("apiKey", writeKey));
+
+        avroEventDeserializer = new AvroEventDeserializer(metastore);
+
+        Event.EventContext api = Event.EventContext.apiKey(writeKey);
+        List<Map<String, Object>> jsonEvents = rows.stream()
+                .map(row -> ImmutableMap.of("collection", COLLECTION, "properties", jsonProperties(fields, row)))
+                .collect(Collectors.toList());
+
+        singleEvent = jsonMapper.writeValueAsBytes(ImmutableMap.of(
+                "collection", COLLECTION,
+                "api", api,
+                "properties", jsonProperties(fields, rows.get(0))));
+        eventList = jsonMapper.writeValueAsBytes(ImmutableMap.of("api", api, "events", jsonEvents));
+        csv = csv(fields, rows);
+        avro = avro(fields, rows);
+    }
+
+    @Benchmark
+    public Event json()
+            throws IOException
+    {
+        return jsonMapper.readValue(singleEvent, Event.class);
+    }
+
+    @Benchmark
+    public EventList jsonEventList()
+            throws IOException
+    {
+        return jsonMapper.readValue(eventList, EventList.class);
+    }
+
+    @Benchmark
+    public EventList csv()
+            throws IOException
+    {
+        return csvReader.readValue(csv);
+    }
+
+    @Benchmark
+    public EventList avro()
+            throws IOException
+    {
+        return avroEventDeserializer.deserialize(PROJECT, COLLECTION, avro);
+    }
+
+    private static Map<String, Object> jsonProperties(List<SchemaField> fields, Map<String, Object> row)
+    {
+        Map<String, Object> properties = new LinkedHashMap<>();
+        for (SchemaField field : fields) {
+            properties.put(field.getName(), BenchmarkData.externalValue(field.getType(), row.get(field.getName())));
+        }
+        return properties;
+    }
+
+    private static byte[] csv(List<SchemaField> fields, List<Map<String, Object>> rows)
+    {
+        // CSV doesn't have a representation for arrays and maps
+        List<SchemaField> scalarFields = new ArrayList<>();
+        for (SchemaField field : fields) {
+            if (!field.getType().isArray() && !field.getType().isMap()) {
+                scalarFields.add(field);
+            }
+        }
+
+        StringBuilder builder = new StringBuilder();
+        builder.append(scalarFields.stream().map(SchemaField::getName).collect(Collectors.joining(","))).append('\n');
+        for (Map<String, Object> row : rows) {
+            builder.append(scalarFields.stream()
+                    .map(field -> quote(BenchmarkData.externalValue(field.getType(), row.get(field.getName())).toString()))
+                    .collect(Collectors.joining(","))).append('\n');
+        }
+        return builder.toString().getBytes(UTF_8);
+    }
+
+    private static String quote(String value)
+    {
+        if (value.indexOf(',') == -1 && value.indexOf('"') == -1 && value.indexOf('\n') == -1) {
+            return value;
+        }
+        return '"' + value.replace("\"", "\"\"") + '"';
+    }
+
+    private static Slice avro(List<SchemaField> fields, List<Map<String, Object>> rows)
+            throws IOException
+    {
+        Schema schema = AvroUtil.convertAvroSchema(fields);
+        byte[] schemaJson = schema.toString().getBytes(UTF_8);
+
+        DynamicSliceOutput output = new DynamicSliceOutput(rows.size() * fields.size() * 16);
+        output.writeInt(schemaJson.length);
+        output.writeBytes(schemaJson);
+        output.writeInt(rows.size());
+
+        GenericDatumWriter<GenericData.Record> writer = new GenericDatumWriter<>(schema);
+        BinaryEncoder encoder = EncoderFactory.get().directBinaryEncoder(output, null);
+        for (Map<String, Object> row : rows) {
+            writer.write(BenchmarkData.record(schema, row), encoder);
+        }
+        encoder.flush();
+
+        return output.slice();
+    }
+}
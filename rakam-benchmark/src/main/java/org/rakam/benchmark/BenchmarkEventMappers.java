@@ -0,0 +1,153 @@
+package org.rakam.benchmark;
+
+import com.google.common.collect.ImmutableList;
+import org.apache.avro.Schema;
+import org.apache.avro.generic.GenericData;
+import org.apache.avro.generic.GenericRecord;
+import org.rakam.collection.Event;
+import org.rakam.collection.FieldDependencyBuilder;
+import org.rakam.collection.SchemaField;
+import org.rakam.collection.mapper.geoip.GeoIPEventMapper;
+import org.rakam.collection.mapper.geoip.GeoIPModuleConfig;
+import org.rakam.module.website.ReferrerEventMapper;
+import org.rakam.module.website.UserAgentEventMapper;
+import org.rakam.module.website.WebsiteMapperConfig;
+import org.rakam.plugin.EventMapper;
+import org.rakam.util.AvroUtil;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+import static org.rakam.benchmark.BenchmarkData.COLLECTION;
+import static org.rakam.benchmark.BenchmarkData.PROJECT;
+import static org.rakam.collection.FieldType.STRING;
+
+/**
+ * Runs the built-in event mappers on a single event. The fields that are set by the mapper are cleared
+ * before each invocation since the mappers don't override the existing values.
+ * <p>
+ * The GeoIP mapper downloads the GeoIP database in the setup.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Fork(1)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+public class BenchmarkEventMappers
+{
+    private static final int EVENT_COUNT = 1024;
+
+    private static final String[] USER_AGENTS = {
+            "Mozilla/5.0 (Macintosh; Intel Mac OS X 10_11_2) AppleWebKit/537.36 (KHTML, like Gecko) Chrome/47.0.2526.111 Safari/537.36",
+            "Mozilla/5.0 (iPhone; CPU iPhone OS 9_3_2 like Mac OS X) AppleWebKit/601.1.46 (KHTML, like Gecko) Version/9.0 Mobile/13F69 Safari/601.1",
+            "Mozilla/5.0 (Windows NT 10.0; Win64; x64; rv:47.0) Gecko/20100101 Firefox/47.0",
+            "Mozilla/5.0 (Linux; Android 6.0.1; SM-G920F Build/MMB29K) AppleWebKit/537.36 (KHTML, like Gecko) Chrome/51.0.2704.81 Mobile Safari/537.36",
+            "Mozilla/5.0 (Windows NT 10.0; Win64; x64) AppleWebKit/537.36 (KHTML, like Gecko) Chrome/46.0.2486.0 Safari/537.36 Edge/13.10586",
+            "Mozilla/5.0 (iPad; CPU OS 9_3_2 like Mac OS X) AppleWebKit/601.1.46 (KHTML, like Gecko) Version/9.0 Mobile/13F69 Safari/601.1"};
+
+    private static final String[] REFERRERS = {
+            "https://www.google.com/search?q=%C3%BCr%C3%BCn+fiyatlar%C4%B1&ie=utf-8",
+            "https://www.google.co.jp/search?q=%E6%9D%B1%E4%BA%AC+%E3%83%9B%E3%83%86%E3%83%AB",
+            "https://www.facebook.com/",
+            "https://t.co/Xq2bE9aLmR",
+            "https://www.bing.com/search?q=analytics+platform",
+            "https://shop.example.com/checkout/payment?step=2",
+            "http://news.ycombinator.com/item?id=11780032"};
+
+    private static final String[] HOSTS = {"shop.example.com", "www.example.com", "blog.example.com"};
+
+    // geoip uses the compiled index and geoip-maxmind uses the reader of the MaxMind database
+    @Param({"user-agent", "referrer", "geoip", "geoip-maxmind"})
+    private String mapper;
+
+    private EventMapper eventMapper;
+    private List<String> mappedFields;
+    private Event[] events;
+    private InetAddress sourceAddress;
+    private int index;
+
+    @Setup
+    public void setup()
+            throws IOException
+    {
+        Random random = new Random(0);
+        Map<String, Function<Random, Object>> sourceFields = new LinkedHashMap<>();
+        switch (mapper) {
+            case "user-agent":
+                eventMapper = new UserAgentEventMapper(new WebsiteMapperConfig());
+                sourceFields.put("_user_agent", r -> USER_AGENTS[r.nextInt(USER_AGENTS.length)]);
+                break;
+            case "referrer":
+                eventMapper = new ReferrerEventMapper();
+                sourceFields.put("_referrer", r -> REFERRERS[r.nextInt(REFERRERS.length)]);
+                sourceFields.put("_host", r -> HOSTS[r.nextInt(HOSTS.length)]);
+                break;
+            case "geoip":
+                eventMapper = new GeoIPEventMapper(new GeoIPModuleConfig().setUseCompiledIndex(true));
+                sourceFields.put("_ip", r -> r.nextInt(224) + "." + r.nextInt(256) + "." + r.nextInt(256) + "." + r.nextInt(256));
+                break;
+            case "geoip-maxmind":
+                eventMapper = new GeoIPEventMapper(new GeoIPModuleConfig());
+                sourceFields.put("_ip", r -> r.nextInt(224) + "." + r.nextInt(256) + "." + r.nextInt(256) + "." + r.nextInt(256));
+                break;
+            default:
+                throw new IllegalArgumentException(mapper);
+        }
+
+        FieldDependencyBuilder builder = new FieldDependencyBuilder();
+        eventMapper.addFieldDependency(builder);
+        FieldDependencyBuilder.FieldDependency dependency = builder.build();
+
+        Map<String, SchemaField> fields = new LinkedHashMap<>();
+        for (String sourceField : sourceFields.keySet()) {
+            for (SchemaField field : dependency.dependentFields.get(sourceField)) {
+                fields.put(field.getName(), field);
+            }
+        }
+        mappedFields = ImmutableList.copyOf(fields.keySet());
+        for (String sourceField : sourceFields.keySet()) {
+            fields.put(sourceField, new SchemaField(sourceField, STRING));
+        }
+
+        List<SchemaField> schemaFields = ImmutableList.copyOf(fields.values());
+        Schema schema = AvroUtil.convertAvroSchema(schemaFields);
+        events = new Event[EVENT_COUNT];
+        for (int i = 0; i < EVENT_COUNT; i++) {
+            GenericData.Record record = new GenericData.Record(schema);
+            sourceFields.forEach((name, generator) -> record.put(name, generator.apply(random)));
+            events[i] = new Event(PROJECT, COLLECTION, null, schemaFields, record);
+        }
+        sourceAddress = InetAddress.getLoopbackAddress();
+    }
+
+    @Benchmark
+    public GenericRecord map()
+    {
+        Event event = events[index++ & (EVENT_COUNT - 1)];
+        GenericRecord properties = event.properties();
+        for (String field : mappedFields) {
+            properties.put(field, null);
+        }
+
+        eventMapper.map(event, EventMapper.RequestParams.EMPTY_PARAMS, sourceAddress, null);
+        return properties;
+    }
+}
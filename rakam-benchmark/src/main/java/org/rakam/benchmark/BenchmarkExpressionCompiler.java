@@ -0,0 +1,85 @@
+package org.rakam.benchmark;
+
+import com.google.common.collect.ImmutableList;
+import org.apache.avro.Schema;
+import org.apache.avro.generic.GenericData;
+import org.rakam.automation.ExpressionCompiler;
+import org.rakam.collection.Event;
+import org.rakam.collection.SchemaField;
+import org.rakam.util.AvroUtil;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
+
+import static org.rakam.benchmark.BenchmarkData.COLLECTION;
+import static org.rakam.benchmark.BenchmarkData.PROJECT;
+import static org.rakam.collection.FieldType.DOUBLE;
+import static org.rakam.collection.FieldType.STRING;
+
+/**
+ * Evaluates a compiled automation rule filter on the collected events. The compilation is not measured since
+ * the compiler caches the generated class.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Fork(1)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+public class BenchmarkExpressionCompiler
+{
+    private static final int EVENT_COUNT = 1024;
+    private static final String EXPRESSION = "(_os LIKE '%iOS%' AND _os_version >= 9.0) " +
+            "OR (_city IS NOT NULL AND url LIKE '%checkout%') OR _referrer_medium IS NULL";
+
+    private static final String[] OS = {"iOS", "Android", "Mac OS X", "Windows"};
+    private static final String[] URLS = {"/checkout/payment", "/products/東京", "/blog/naïve-bayes", "/"};
+
+    private Predicate<Event> predicate;
+    private Event[] events;
+    private int index;
+
+    @Setup
+    public void setup()
+    {
+        predicate = ExpressionCompiler.compile(EXPRESSION);
+
+        List<SchemaField> fields = ImmutableList.of(
+                new SchemaField("_os", STRING),
+                new SchemaField("_os_version", DOUBLE),
+                new SchemaField("_city", STRING),
+                new SchemaField("url", STRING),
+                new SchemaField("_referrer_medium", STRING));
+        Schema schema = AvroUtil.convertAvroSchema(fields);
+
+        Random random = new Random(0);
+        events = new Event[EVENT_COUNT];
+        for (int i = 0; i < EVENT_COUNT; i++) {
+            GenericData.Record record = new GenericData.Record(schema);
+            record.put("_os", OS[random.nextInt(OS.length)]);
+            record.put("_os_version", (double) (5 + random.nextInt(6)));
+            record.put("_city", random.nextBoolean() ? BenchmarkData.string(random) : null);
+            record.put("url", URLS[random.nextInt(URLS.length)]);
+            record.put("_referrer_medium", random.nextInt(4) == 0 ? null : "search");
+            events[i] = new Event(PROJECT, COLLECTION, null, fields, record);
+        }
+    }
+
+    @Benchmark
+    public boolean evaluate()
+    {
+        return predicate.test(events[index++ & (EVENT_COUNT - 1)]);
+    }
+}
@@ -0,0 +1,83 @@
+package org.rakam.benchmark;
+
+import org.apache.avro.Schema;
+import org.apache.avro.generic.GenericRecord;
+import org.rakam.collection.SchemaField;
+import org.rakam.postgresql.analysis.PostgresqlEventStore;
+import org.rakam.util.AvroUtil;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+/**
+ * Binds the event properties to a prepared statement the way the Postgresql event store does. The statement
+ * and the connection are no-op proxies, so the numbers include the conversion of the values but not the
+ * encoding of the JDBC driver.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+public class BenchmarkPostgresqlBindParam
+{
+    private static final int EVENT_COUNT = 1000;
+
+    @Param({"10", "100"})
+    private int columns;
+
+    private List<SchemaField> fields;
+    private List<GenericRecord> records;
+    private Connection connection;
+    private PreparedStatement statement;
+    private Object lastValue;
+
+    @Setup
+    public void setup()
+    {
+        fields = BenchmarkData.fields(columns, true);
+        Schema schema = AvroUtil.convertAvroSchema(fields);
+        records = BenchmarkData.rows(fields, EVENT_COUNT, 0).stream()
+                .map(row -> BenchmarkData.record(schema, row))
+                .collect(Collectors.toList());
+        connection = proxy(Connection.class);
+        statement = proxy(PreparedStatement.class);
+    }
+
+    @Benchmark
+    public Object bindParam()
+            throws SQLException
+    {
+        for (GenericRecord record : records) {
+            PostgresqlEventStore.bindParam(connection, statement, fields, record);
+        }
+        return lastValue;
+    }
+
+    private <T> T proxy(Class<T> clazz)
+    {
+        return (T) Proxy.newProxyInstance(clazz.getClassLoader(), new Class[] {clazz}, (proxy, method, args) -> {
+            if (args != null && args.length > 1) {
+                lastValue = args[1];
+            }
+            return null;
+        });
+    }
+}
@@ -0,0 +1,82 @@
+package org.rakam.benchmark;
+
+import com.facebook.presto.sql.parser.SqlParser;
+import com.facebook.presto.sql.tree.QualifiedName;
+import com.facebook.presto.sql.tree.Statement;
+import org.rakam.util.QueryFormatter;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+/**
+ * Parses the queries of the users and rewrites the table names the way the query executors do.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+public class BenchmarkQueryFormatter
+{
+    private static final String SIMPLE = "SELECT _user, count(*) FROM pageview " +
+            "WHERE _time > timestamp '2016-05-01 00:00:00' AND _city = 'İstanbul' GROUP BY 1 ORDER BY 2 DESC LIMIT 100";
+
+    private static final String COMPLEX = "WITH purchases AS (" +
+            "SELECT _user, sum(amount) AS revenue, count(*) AS orders FROM purchase " +
+            "WHERE _time BETWEEN timestamp '2016-01-01 00:00:00' AND timestamp '2016-06-01 00:00:00' GROUP BY 1), " +
+            "visits AS (SELECT _user, count(distinct _session_id) AS sessions, " +
+            "approx_percentile(_time_on_page, 0.9) AS p90 FROM pageview WHERE _referrer_medium IN ('search', 'social') GROUP BY 1) " +
+            "SELECT v._user, v.sessions, p.revenue, " +
+            "rank() OVER (PARTITION BY p.orders ORDER BY p.revenue DESC) AS rank, " +
+            "CASE WHEN p.revenue > 1000 THEN '高価値' WHEN p.revenue > 100 THEN 'média' ELSE 'düşük' END AS segment " +
+            "FROM visits v LEFT JOIN purchases p ON (v._user = p._user) " +
+            "WHERE v._user IN (SELECT _user FROM signup WHERE _country_code = 'TR') " +
+            "ORDER BY p.revenue DESC NULLS LAST LIMIT 1000";
+
+    @Param({"simple", "complex"})
+    private String query;
+
+    private SqlParser sqlParser;
+    private String sql;
+    private Statement statement;
+    private Function<QualifiedName, String> tableNameMapper;
+
+    @Setup
+    public void setup()
+    {
+        sqlParser = new SqlParser();
+        sql = query.equals("simple") ? SIMPLE : COMPLEX;
+        statement = sqlParser.createStatement(sql);
+        tableNameMapper = name -> "\"" + BenchmarkData.PROJECT + "\".\"" + name.getSuffix() + "\"";
+    }
+
+    @Benchmark
+    public Statement parse()
+    {
+        return sqlParser.createStatement(sql);
+    }
+
+    @Benchmark
+    public String format()
+    {
+        return QueryFormatter.format(statement, tableNameMapper, '"');
+    }
+
+    @Benchmark
+    public String parseAndFormat()
+    {
+        return QueryFormatter.format(sqlParser.createStatement(sql), tableNameMapper, '"');
+    }
+}
@@ -0,0 +1,132 @@
+package org.rakam.benchmark;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Runs the benchmarks and writes the results to a JSON report in the JMH format. When a report of a previous
+ * release is passed with {@code --baseline}, the results are compared with it and the process exits with
+ * a non-zero code if a benchmark is slower than the baseline by more than the threshold.
+ * <pre>
+ * java -jar rakam-benchmark/target/benchmarks.jar [--output report.json] [--baseline baseline.json] [--threshold 10] [regexp...]
+ * </pre>
+ */
+public final class BenchmarkRunner
+{
+    private BenchmarkRunner()
+            throws InstantiationException
+    {
+        throw new InstantiationException("The class is not created for instantiation");
+    }
+
+    public static void main(String[] args)
+            throws Exception
+    {
+        String output = "benchmark-report.json";
+        String baseline = null;
+        double threshold = 10;
+
+        ChainedOptionsBuilder options = new OptionsBuilder();
+        boolean hasInclude = false;
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--output":
+                    output = args[++i];
+                    break;
+                case "--baseline":
+                    baseline = args[++i];
+                    break;
+                case "--threshold":
+                    threshold = Double.parseDouble(args[++i]);
+                    break;
+                default:
+                    options.include(args[i]);
+                    hasInclude = true;
+            }
+        }
+
+        if (!hasInclude) {
+            options.include(BenchmarkRunner.class.getPackage().getName() + ".*");
+        }
+
+        new Runner(options
+                .resultFormat(ResultFormatType.JSON)
+                .result(output)
+                .build()).run();
+
+        if (baseline != null && !compare(new File(baseline), new File(output), threshold)) {
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Prints the change of each benchmark that exists in both reports and returns false if there is a regression
+     * larger than the threshold percentage.
+     */
+    public static boolean compare(File baselineFile, File currentFile, double threshold)
+            throws IOException
+    {
+        Map<String, JsonNode> baseline = readReport(baselineFile);
+        Map<String, JsonNode> current = readReport(currentFile);
+
+        boolean passed = true;
+        System.out.println(String.format("%-90s %14s %14s %9s", "Benchmark", "Baseline", "Current", "Change"));
+        for (Map.Entry<String, JsonNode> entry : current.entrySet()) {
+            JsonNode previous = baseline.get(entry.getKey());
+            if (previous == null) {
+                System.out.println(String.format("%-90s %14s %14.3f %9s", entry.getKey(), "-", score(entry.getValue()), "new"));
+                continue;
+            }
+
+            double previousScore = score(previous);
+            double currentScore = score(entry.getValue());
+            double change = (currentScore - previousScore) * 100 / previousScore;
+            // the average time should not increase, the throughput should not decrease
+            boolean lowerIsBetter = !entry.getValue().get("mode").asText().equals("thrpt");
+            boolean regression = lowerIsBetter ? change > threshold : -change > threshold;
+            passed &= !regression;
+
+            System.out.println(String.format("%-90s %14.3f %14.3f %+8.2f%%%s", entry.getKey(), previousScore, currentScore,
+                    change, regression ? " REGRESSION" : ""));
+        }
+
+        return passed;
+    }
+
+    private static Map<String, JsonNode> readReport(File file)
+            throws IOException
+    {
+        Map<String, JsonNode> results = new LinkedHashMap<>();
+        for (JsonNode result : new ObjectMapper().readTree(file)) {
+            StringBuilder key = new StringBuilder(result.get("benchmark").asText());
+            JsonNode params = result.get("params");
+            if (params != null) {
+                Map<String, String> sortedParams = new TreeMap<>();
+                Iterator<Map.Entry<String, JsonNode>> fields = params.fields();
+                while (fields.hasNext()) {
+                    Map.Entry<String, JsonNode> param = fields.next();
+                    sortedParams.put(param.getKey(), param.getValue().asText());
+                }
+                sortedParams.forEach((name, value) -> key.append(':').append(name).append('=').append(value));
+            }
+            results.put(key.toString(), result);
+        }
+        return results;
+    }
+
+    private static double score(JsonNode result)
+    {
+        return result.get("primaryMetric").get("score").asDouble();
+    }
+}
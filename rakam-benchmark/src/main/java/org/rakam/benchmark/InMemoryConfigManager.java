@@ -0,0 +1,36 @@
+package org.rakam.benchmark;
+
+import com.google.common.collect.HashBasedTable;
+import com.google.common.collect.Table;
+import org.rakam.analysis.ConfigManager;
+
+public class InMemoryConfigManager
+        implements ConfigManager
+{
+    private final Table<String, String, Object> table = HashBasedTable.create();
+
+    @Override
+    public synchronized <T> T getConfig(String project, String configName, Class<T> clazz)
+    {
+        return (T) table.get(project, configName);
+    }
+
+    @Override
+    public synchronized <T> void setConfig(String project, String configName, T value)
+    {
+        table.put(project, configName, value);
+    }
+
+    @Override
+    public synchronized <T> T setConfigOnce(String project, String configName, T value)
+    {
+        Object o = table.column(project).putIfAbsent(configName, value);
+        return o == null ? value : (T) o;
+    }
+
+    @Override
+    public synchronized void clear()
+    {
+        table.clear();
+    }
+}
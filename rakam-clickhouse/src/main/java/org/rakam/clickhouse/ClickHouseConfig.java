@@ -2,12 +2,15 @@ package org.rakam.clickhouse;
 
 import java.net.URI;
 import io.airlift.configuration.Config;
+import io.airlift.configuration.ConfigDescription;
+import io.airlift.units.Duration;
 
 public class ClickHouseConfig
 {
     private URI address = URI.create("http://127.0.0.1:8123");
     private String hotStoragePrefix;
     private String coldStoragePrefix;
+    private Duration statsPollInterval = Duration.valueOf("1s");
 
     @Config("clickhouse.address")
     public ClickHouseConfig setAddress(URI address)
@@ -44,4 +47,17 @@ public class ClickHouseConfig
         this.coldStoragePrefix = coldStoragePrefix;
         return this;
     }
+
+    @Config("clickhouse.stats-poll-interval")
+    @ConfigDescription("The interval of fetching the progress of the running queries from system.processes.")
+    public ClickHouseConfig setStatsPollInterval(String statsPollInterval)
+    {
+        this.statsPollInterval = Duration.valueOf(statsPollInterval);
+        return this;
+    }
+
+    public Duration getStatsPollInterval()
+    {
+        return statsPollInterval;
+    }
 }
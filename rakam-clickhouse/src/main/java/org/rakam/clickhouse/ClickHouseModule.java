@@ -25,6 +25,7 @@ import org.rakam.aws.dynamodb.metastore.DynamodbMetastore;
 import org.rakam.clickhouse.analysis.ClickHouseEventExplorer;
 import org.rakam.clickhouse.analysis.ClickHouseFunnelQueryExecutor;
 import org.rakam.clickhouse.analysis.ClickHouseMetastore;
+import org.rakam.clickhouse.analysis.ClickHouseQueryStatsPoller;
 import org.rakam.clickhouse.analysis.ClickHouseRetentionQueryExecutor;
 import org.rakam.clickhouse.collection.AWSKinesisClickhouseEventStore;
 import org.rakam.clickhouse.collection.ClickHouseEventStore;
@@ -65,6 +66,7 @@ public class ClickHouseModule
         binder.bind(char.class).annotatedWith(EscapeIdentifier.class).toInstance('`');
 
         binder.bind(QueryExecutor.class).to(ClickHouseQueryExecutor.class);
+        binder.bind(ClickHouseQueryStatsPoller.class).in(Scopes.SINGLETON);
         binder.bind(EventStore.class).to(AWSKinesisClickhouseEventStore.class);
         binder.bind(ContinuousQueryService.class).to(ClickHouseContinuousQueryService.class);
         binder.bind(MaterializedViewService.class).to(ClickHouseMaterializedViewService.class);
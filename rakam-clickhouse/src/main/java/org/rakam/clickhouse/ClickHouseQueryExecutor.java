@@ -4,6 +4,7 @@ import com.facebook.presto.sql.tree.QualifiedName;
 import com.google.inject.Inject;
 import org.rakam.analysis.metadata.Metastore;
 import org.rakam.clickhouse.analysis.ClickHouseQueryExecution;
+import org.rakam.clickhouse.analysis.ClickHouseQueryStatsPoller;
 import org.rakam.collection.SchemaField;
 import org.rakam.report.QueryExecution;
 import org.rakam.report.QueryExecutor;
@@ -25,18 +26,20 @@ public class ClickHouseQueryExecutor implements QueryExecutor
 {
     private final ClickHouseConfig config;
     private final Metastore metastore;
+    private final ClickHouseQueryStatsPoller statsPoller;
 
     @Inject
-    public ClickHouseQueryExecutor(ClickHouseConfig config, Metastore metastore)
+    public ClickHouseQueryExecutor(ClickHouseConfig config, Metastore metastore, ClickHouseQueryStatsPoller statsPoller)
     {
         this.config = config;
         this.metastore = metastore;
+        this.statsPoller = statsPoller;
     }
 
     @Override
     public QueryExecution executeRawQuery(String sqlQuery)
     {
-        return new ClickHouseQueryExecution(config, sqlQuery);
+        return new ClickHouseQueryExecution(config, sqlQuery, statsPoller);
     }
 
     @Override
@@ -161,13 +161,13 @@ public class ClickHouseMetastore
             }
 
             lastFields = fields.stream().collect(Collectors.toList());
+            super.onCreateCollection(project, collection, lastFields);
         } else {
             List<SchemaField> newFields = new ArrayList<>();
 
             fields.stream()
                     .filter(field -> schemaFields.stream().noneMatch(f -> f.getName().equals(field.getName())))
                     .forEach(f -> {
-                        newFields.add(f);
                         String q = format("ALTER TABLE %s.%s ADD COLUMN `%s` %s",
                                  project, checkCollection(collection, '`'),
                                 f.getName(), toClickHouseType(f.getType()));
@@ -177,13 +177,18 @@ public class ClickHouseMetastore
                             if (!getCollection(project, collection).stream().anyMatch(e -> e.getName().equals(f.getName()))) {
                                 throw new IllegalStateException(join.getBody());
                             }
+                            // the field is added by another node
+                        } else {
+                            newFields.add(f);
                         }
                     });
 
             lastFields = getCollection(project, collection);
+            if (!newFields.isEmpty()) {
+                super.onCreateCollectionField(project, collection, newFields);
+            }
         }
 
-        super.onCreateCollection(project, collection, schemaFields);
         return lastFields;
     }
 
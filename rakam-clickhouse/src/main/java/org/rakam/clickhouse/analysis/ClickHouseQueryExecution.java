@@ -16,8 +16,10 @@ import io.airlift.http.client.jetty.JettyIoPoolConfig;
 import io.airlift.log.Logger;
 import io.airlift.units.Duration;
 import org.rakam.clickhouse.ClickHouseConfig;
+import org.rakam.clickhouse.analysis.ClickHouseQueryStatsPoller.ProcessStats;
 import org.rakam.collection.FieldType;
 import org.rakam.collection.SchemaField;
+import org.rakam.report.ColumnarResult;
 import org.rakam.report.QueryExecution;
 import org.rakam.report.QueryResult;
 import org.rakam.report.QueryStats;
@@ -50,7 +52,6 @@ import java.util.stream.Collectors;
 import static io.airlift.http.client.StaticBodyGenerator.createStaticBodyGenerator;
 import static io.netty.handler.codec.http.HttpResponseStatus.BAD_GATEWAY;
 import static io.netty.handler.codec.http.HttpResponseStatus.INTERNAL_SERVER_ERROR;
-import static java.lang.String.format;
 import static java.nio.charset.StandardCharsets.UTF_8;
 import static java.time.ZoneOffset.UTC;
 import static java.util.concurrent.TimeUnit.SECONDS;
@@ -74,13 +75,22 @@ public class ClickHouseQueryExecution
 
     private final String query;
     private final String queryId;
-    private final ClickHouseConfig config;
+    private final ClickHouseQueryStatsPoller statsPoller;
 
     public ClickHouseQueryExecution(ClickHouseConfig config, String query)
+    {
+        this(config, query, null);
+    }
+
+    /**
+     * The stats of the query are read from the snapshots of the stats poller, the executions that are created without
+     * a poller don't report their progress.
+     */
+    public ClickHouseQueryExecution(ClickHouseConfig config, String query, ClickHouseQueryStatsPoller statsPoller)
     {
         this.query = query;
         this.queryId = UUID.randomUUID().toString();
-        this.config = config;
+        this.statsPoller = statsPoller;
         URI uri = UriBuilder
                 .fromUri(config.getAddress())
                 .queryParam("query_id", queryId).build();
@@ -92,6 +102,9 @@ public class ClickHouseQueryExecution
                         .setBodyGenerator(createStaticBodyGenerator(query + " format " + QueryResponseHandler.FORMAT, UTF_8))
                         .build(),
                 new QueryResponseHandler()));
+        if (statsPoller != null) {
+            result.whenComplete((value, ex) -> statsPoller.remove(queryId));
+        }
     }
 
     public static String runStatement(ClickHouseConfig config, String query)
@@ -119,22 +132,22 @@ public class ClickHouseQueryExecution
         if (result.isDone()) {
             return new QueryStats(100, FINISHED, null, null, null, null, null, null);
         }
-        else {
-            String status = runStatement(config, format("select rows_read, bytes_read, total_rows_approx, memory_usage from system.processes where query_id = '%s' format "
-                    + QueryResponseHandler.FORMAT, queryId));
-            if (status.isEmpty()) {
-                if (result.isDone()) {
-                    return currentStats();
-                }
-                else {
-                    return new QueryStats(null, RUNNING, null, null, null, null, null, null);
-                }
+
+        ProcessStats stats = statsPoller == null ? null : statsPoller.getStats(queryId);
+        if (result.isDone()) {
+            if (statsPoller != null) {
+                // the query may be completed before getStats watched it, the query would be polled forever otherwise
+                statsPoller.remove(queryId);
             }
-            ClickHouseQueryResult read = JsonHelper.read(status, ClickHouseQueryResult.class);
-            int percentage = (((Number) read.data.get(0)).intValue() * 100) / ((Number) read.data.get(2)).intValue();
-            return new QueryStats(percentage, RUNNING, null, ((Number) read.data.get(1)).longValue(), ((Number) read.data.get(2)).longValue(),
-                    null, null, null);
+            return new QueryStats(100, FINISHED, null, null, null, null, null, null);
         }
+        if (stats == null) {
+            return new QueryStats(null, RUNNING, null, null, null, null, null, null);
+        }
+
+        Integer percentage = stats.totalRowsApprox > 0 ?
+                (int) Math.min(100, (stats.rowsRead * 100) / stats.totalRowsApprox) : null;
+        return new QueryStats(percentage, RUNNING, null, stats.rowsRead, stats.bytesRead, null, null, null);
     }
 
     @Override
@@ -162,55 +175,48 @@ public class ClickHouseQueryExecution
 
     private List<List<Object>> transformResultData(List<SchemaField> columns, List<List<Object>> data)
     {
+        ColumnarResult.Builder builder = new ColumnarResult.Builder(columns, data.size());
         for (List<Object> objects : data) {
             for (int i = 0; i < columns.size(); i++) {
-                String value = objects.get(i).toString();
-                if (value == null) {
+                Object object = objects.get(i);
+                if (object == null) {
+                    builder.appendNull(i);
                     continue;
                 }
 
+                String value = object.toString();
                 FieldType type = columns.get(i).getType();
                 switch (type) {
-                    case STRING:
-                        break;
                     case LONG:
-                        objects.set(i, Long.parseLong(value));
-                        break;
                     case INTEGER:
-                        objects.set(i, Integer.parseInt(value));
+                        builder.appendLong(i, Long.parseLong(value));
                         break;
                     case BOOLEAN:
-                        objects.set(i, value.equals("true"));
+                        builder.append(i, value.equals("true"));
                         break;
                     case TIMESTAMP:
-                        objects.set(i, LocalDateTime.parse(value, DATE_TIME_FORMATTER).toInstant(UTC));
+                        builder.append(i, LocalDateTime.parse(value, DATE_TIME_FORMATTER).toInstant(UTC));
                         break;
                     case DATE:
-                        objects.set(i, LocalDate.parse(value));
+                        builder.append(i, LocalDate.parse(value));
                         break;
                     case TIME:
-                        objects.set(i, LocalTime.parse(value, TIME_FORMATTER));
+                        builder.append(i, LocalTime.parse(value, TIME_FORMATTER));
                         break;
                     case BINARY:
-                        objects.set(i, value.getBytes(UTF_8));
+                        builder.append(i, value.getBytes(UTF_8));
                         break;
                     case DECIMAL:
                     case DOUBLE:
-                        objects.set(i, Double.parseDouble(value));
+                        builder.appendDouble(i, Double.parseDouble(value));
                         break;
                     default:
-                        if (type.isArray()) {
-
-                        }
-
-                        if (type.isMap()) {
-
-                        }
+                        builder.append(i, object);
                 }
             }
         }
 
-        return data;
+        return builder.build();
     }
 
     @Override
@@ -0,0 +1,145 @@
+package org.rakam.clickhouse.analysis;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import io.airlift.http.client.StringResponseHandler.StringResponse;
+import io.airlift.log.Logger;
+import org.rakam.clickhouse.ClickHouseConfig;
+import org.rakam.util.JsonHelper;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.inject.Inject;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import static java.lang.String.format;
+
+/**
+ * Fetches the progress of the queries whose stats are requested from system.processes with a single query at every
+ * clickhouse.stats-poll-interval so that {@link ClickHouseQueryExecution#currentStats()} reads the last snapshot
+ * instead of querying ClickHouse for each query execution.
+ */
+public class ClickHouseQueryStatsPoller
+{
+    private final static Logger LOGGER = Logger.get(ClickHouseQueryStatsPoller.class);
+
+    private final ClickHouseConfig config;
+    private final Set<String> watchedQueries = ConcurrentHashMap.newKeySet();
+    private volatile Map<String, ProcessStats> snapshot = ImmutableMap.of();
+    private ScheduledExecutorService executor;
+
+    @Inject
+    public ClickHouseQueryStatsPoller(ClickHouseConfig config)
+    {
+        this.config = config;
+    }
+
+    @PostConstruct
+    public synchronized void start()
+    {
+        if (executor != null) {
+            return;
+        }
+
+        executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+                .setNameFormat("clickhouse-query-stats-poller").setDaemon(true).build());
+        long interval = config.getStatsPollInterval().toMillis();
+        executor.scheduleWithFixedDelay(() -> {
+            try {
+                poll();
+            }
+            catch (Throwable e) {
+                LOGGER.warn(e, "Error while fetching the query stats from system.processes");
+            }
+        }, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    public synchronized void stop()
+    {
+        if (executor != null) {
+            executor.shutdownNow();
+            executor = null;
+        }
+    }
+
+    /**
+     * Returns the stats of the query in the last snapshot and includes the query in the next polls until
+     * {@link #remove(String)} is called.
+     */
+    public ProcessStats getStats(String queryId)
+    {
+        watchedQueries.add(queryId);
+        return snapshot.get(queryId);
+    }
+
+    public void remove(String queryId)
+    {
+        watchedQueries.remove(queryId);
+    }
+
+    @VisibleForTesting
+    Set<String> getWatchedQueries()
+    {
+        return watchedQueries;
+    }
+
+    void poll()
+    {
+        if (watchedQueries.isEmpty()) {
+            if (!snapshot.isEmpty()) {
+                snapshot = ImmutableMap.of();
+            }
+            return;
+        }
+
+        // the query ids are generated by us so they're safe to be embedded into the query
+        String queryIds = watchedQueries.stream().map(id -> "'" + id + "'").collect(Collectors.joining(", "));
+        StringResponse response = ClickHouseQueryExecution.runStatementSafe(config,
+                format("select query_id, rows_read, bytes_read, total_rows_approx from system.processes where query_id in (%s) format JSONCompact",
+                        queryIds));
+        if (response.getStatusCode() != 200) {
+            LOGGER.warn("Unable to fetch the query stats from system.processes: %s", response.getBody());
+            return;
+        }
+
+        ImmutableMap.Builder<String, ProcessStats> builder = ImmutableMap.builder();
+        if (!response.getBody().isEmpty()) {
+            ClickHouseQueryResult result = JsonHelper.read(response.getBody(), ClickHouseQueryResult.class);
+            for (List<Object> row : result.data) {
+                builder.put(row.get(0).toString(), new ProcessStats(
+                        toLong(row.get(1)), toLong(row.get(2)), toLong(row.get(3))));
+            }
+        }
+        snapshot = builder.build();
+    }
+
+    private static long toLong(Object value)
+    {
+        // 64-bit integers are quoted in the JSON formats
+        return value instanceof Number ? ((Number) value).longValue() : Long.parseLong(value.toString());
+    }
+
+    public static class ProcessStats
+    {
+        public final long rowsRead;
+        public final long bytesRead;
+        public final long totalRowsApprox;
+
+        public ProcessStats(long rowsRead, long bytesRead, long totalRowsApprox)
+        {
+            this.rowsRead = rowsRead;
+            this.bytesRead = bytesRead;
+            this.totalRowsApprox = totalRowsApprox;
+        }
+    }
+}
@@ -2,6 +2,7 @@ package org.rakam.clickhouse.analysis;
 
 import com.facebook.presto.sql.RakamSqlFormatter;
 import com.facebook.presto.sql.tree.Expression;
+import com.google.common.annotations.VisibleForTesting;
 import com.google.common.collect.ImmutableList;
 import com.google.inject.Inject;
 import org.rakam.analysis.RetentionQueryExecutor;
@@ -91,18 +92,34 @@ public class ClickHouseRetentionQueryExecutor
                             dimension.map(e -> checkCollection(e, '`')).orElse("`$date`")));
         }).collect(Collectors.joining(" UNION ALL \n"));
 
-        return new DelegateQueryExecution(executor.executeRawQuery(query), (result) -> {
-            if (result.isFailed()) {
-                return result;
-            }
+        return new DelegateQueryExecution(executor.executeRawQuery(query), ClickHouseRetentionQueryExecutor::setUniqueUserLeads);
+    }
+
+    /**
+     * The lead of the rows that have the number of unique users is -1 in the query, it's null in the result of the
+     * retention queries. The rows of the query results are immutable so they're copied.
+     */
+    @VisibleForTesting
+    public static QueryResult setUniqueUserLeads(QueryResult result)
+    {
+        if (result.isFailed()) {
+            return result;
+        }
 
-            Long uniqUser = new Long(-1);
+        Long uniqUser = new Long(-1);
 
-            result.getResult().stream()
-                    .filter(objects -> objects.get(1).equals(uniqUser))
-                    .forEach(objects -> objects.set(1, null));
+        List<List<Object>> rows = new ArrayList<>(result.getResult().size());
+        for (List<Object> row : result.getResult()) {
+            if (uniqUser.equals(row.get(1))) {
+                List<Object> copy = new ArrayList<>(row);
+                copy.set(1, null);
+                rows.add(copy);
+            }
+            else {
+                rows.add(row);
+            }
+        }
 
-            return result;
-        });
+        return new QueryResult(result.getMetadata(), rows, result.getProperties());
     }
 }
@@ -1,5 +1,6 @@
 package org.rakam.clickhouse.collection;
 
+import com.google.common.annotations.VisibleForTesting;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
@@ -260,7 +261,8 @@ public class ClickHouseEventStore
         output.write((byte) value);
     }
 
-    private static class BinaryRawGenerator
+    @VisibleForTesting
+    public static class BinaryRawGenerator
             implements BodyGenerator
     {
         private final List<Event> value;
@@ -0,0 +1,39 @@
+import com.google.common.collect.ImmutableList;
+import org.rakam.clickhouse.analysis.ClickHouseRetentionQueryExecutor;
+import org.rakam.collection.SchemaField;
+import org.rakam.report.ColumnarResult;
+import org.rakam.report.QueryResult;
+import org.testng.annotations.Test;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static org.rakam.collection.FieldType.LONG;
+import static org.rakam.collection.FieldType.STRING;
+import static org.testng.Assert.assertEquals;
+
+public class TestClickHouseRetentionQueryExecutor
+{
+    private static final List<SchemaField> METADATA = ImmutableList.of(
+            new SchemaField("date", STRING),
+            new SchemaField("lead", LONG),
+            new SchemaField("users", LONG));
+
+    @Test
+    public void testUniqueUserLeadsOfColumnarResult()
+    {
+        ColumnarResult rows = new ColumnarResult.Builder(METADATA)
+                .append(0, "2016-01-01").appendLong(1, -1).appendLong(2, 10)
+                .append(0, "2016-01-01").appendLong(1, 0).appendLong(2, 5)
+                .append(0, "2016-01-02").appendNull(1).appendLong(2, 3)
+                .build();
+
+        QueryResult result = ClickHouseRetentionQueryExecutor.setUniqueUserLeads(new QueryResult(METADATA, rows));
+
+        assertEquals(result.getMetadata(), METADATA);
+        assertEquals(result.getResult(), ImmutableList.of(
+                Arrays.asList("2016-01-01", null, 10L),
+                Arrays.asList("2016-01-01", 0L, 5L),
+                Arrays.asList("2016-01-02", null, 3L)));
+    }
+}
@@ -0,0 +1,135 @@
+package org.rakam.clickhouse.analysis;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import io.netty.handler.codec.http.QueryStringDecoder;
+import org.rakam.clickhouse.ClickHouseConfig;
+import org.rakam.report.QueryStats;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.rakam.report.QueryStats.State.FINISHED;
+import static org.rakam.report.QueryStats.State.RUNNING;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+
+public class TestClickHouseQueryStatsPoller
+{
+    private static final Pattern QUERY_ID = Pattern.compile("'([0-9a-f\\-]{36})'");
+
+    private HttpServer server;
+    private ClickHouseConfig config;
+    private CountDownLatch queryLatch;
+
+    @BeforeMethod
+    public void setUp()
+            throws IOException
+    {
+        queryLatch = new CountDownLatch(1);
+        // responds like ClickHouse, the queries wait until the latch is released
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/", exchange -> {
+            List<String> query = new QueryStringDecoder(exchange.getRequestURI()).parameters().get("query");
+            if (query != null && query.get(0).contains("system.processes")) {
+                StringBuilder rows = new StringBuilder();
+                Matcher matcher = QUERY_ID.matcher(query.get(0));
+                while (matcher.find()) {
+                    rows.append(rows.length() == 0 ? "" : ",").append("[\"").append(matcher.group(1)).append("\", \"50\", \"100\", \"200\"]");
+                }
+                respond(exchange, "{\"meta\": [], \"data\": [" + rows + "], \"rows\": 0}");
+                return;
+            }
+
+            try {
+                queryLatch.await(10, TimeUnit.SECONDS);
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            respond(exchange, "{\"meta\": [{\"name\": \"a\", \"type\": \"UInt64\"}], \"data\": [[\"1\"]], \"rows\": 1}");
+        });
+        server.setExecutor(Executors.newCachedThreadPool());
+        server.start();
+
+        config = new ClickHouseConfig().setAddress(URI.create("http://127.0.0.1:" + server.getAddress().getPort()));
+    }
+
+    @AfterMethod
+    public void tearDown()
+    {
+        queryLatch.countDown();
+        server.stop(0);
+    }
+
+    @Test
+    public void testProgressOfRunningQuery()
+            throws Exception
+    {
+        ClickHouseQueryStatsPoller poller = new ClickHouseQueryStatsPoller(config);
+        ClickHouseQueryExecution execution = new ClickHouseQueryExecution(config, "select 1", poller);
+
+        QueryStats stats = execution.currentStats();
+        assertEquals(stats.state, RUNNING);
+        assertNull(stats.percentage);
+        assertEquals(poller.getWatchedQueries().size(), 1);
+
+        poller.poll();
+        stats = execution.currentStats();
+        assertEquals(stats.state, RUNNING);
+        assertEquals(stats.percentage, Integer.valueOf(25));
+        assertEquals(stats.processedRows, Long.valueOf(50));
+
+        queryLatch.countDown();
+        execution.getResult().get(10, TimeUnit.SECONDS);
+
+        assertEquals(execution.currentStats().state, FINISHED);
+        assertTrue(poller.getWatchedQueries().isEmpty());
+    }
+
+    @Test
+    public void testQueryCompletedWhileStatsAreRead()
+            throws Exception
+    {
+        AtomicReference<ClickHouseQueryExecution> execution = new AtomicReference<>();
+        ClickHouseQueryStatsPoller poller = new ClickHouseQueryStatsPoller(config)
+        {
+            @Override
+            public ProcessStats getStats(String queryId)
+            {
+                // the query is completed after currentStats checked it and before the query is watched
+                queryLatch.countDown();
+                execution.get().getResult().join();
+                return super.getStats(queryId);
+            }
+        };
+        execution.set(new ClickHouseQueryExecution(config, "select 1", poller));
+
+        assertEquals(execution.get().currentStats().state, FINISHED);
+        assertTrue(poller.getWatchedQueries().isEmpty());
+    }
+
+    private static void respond(HttpExchange exchange, String body)
+            throws IOException
+    {
+        byte[] bytes = body.getBytes(UTF_8);
+        exchange.sendResponseHeaders(200, bytes.length);
+        try (OutputStream output = exchange.getResponseBody()) {
+            output.write(bytes);
+        }
+    }
+}
@@ -1,35 +1,83 @@
 package org.rakam.postgresql;
 
-import com.google.common.base.Throwables;
+import io.airlift.log.Logger;
 import org.rakam.analysis.JDBCPoolDataSource;
+import org.rakam.postgresql.analysis.ApiKeyCacheConfig;
 import org.rakam.postgresql.analysis.JDBCApiKeyService;
 
 import javax.inject.Inject;
+import javax.inject.Named;
 import java.sql.Connection;
+import java.sql.PreparedStatement;
 import java.sql.SQLException;
 import java.sql.Statement;
 
+/**
+ * The nodes are notified with NOTIFY when the keys are created or revoked and they read the changes from the tables
+ * when they receive the notification instead of polling them.
+ */
 public class PostgresqlApiKeyService extends JDBCApiKeyService {
-    @Inject
+    private final static Logger LOGGER = Logger.get(PostgresqlApiKeyService.class);
+    private static final String CHANGE_CHANNEL = "rakam_api_key_change";
+
+    private final PostgresqlNotificationListener notificationListener;
+
     public PostgresqlApiKeyService(JDBCPoolDataSource connectionPool) {
-        super(connectionPool);
+        this(connectionPool, new ApiKeyCacheConfig(), null);
+    }
+
+    public PostgresqlApiKeyService(JDBCPoolDataSource connectionPool, ApiKeyCacheConfig config) {
+        this(connectionPool, config, null);
+    }
+
+    @Inject
+    public PostgresqlApiKeyService(@Named("store.adapter.postgresql") JDBCPoolDataSource connectionPool, ApiKeyCacheConfig config,
+            PostgresqlNotificationListener notificationListener) {
+        super(connectionPool, config);
+        this.notificationListener = notificationListener;
     }
 
     @Override
-    public void setup() {
-        try (Connection connection = connectionPool.getConnection()) {
-            Statement statement = connection.createStatement();
-            statement.execute("CREATE TABLE IF NOT EXISTS api_key (" +
-                    "  id SERIAL NOT NULL,\n" +
-                    "  project VARCHAR(255) NOT NULL,\n" +
-                    "  read_key VARCHAR(255) NOT NULL,\n" +
-                    "  write_key VARCHAR(255) NOT NULL,\n" +
-                    "  master_key VARCHAR(255) NOT NULL,\n" +
-                    "  created_at TIMESTAMP default current_timestamp NOT NULL," +
-                    "PRIMARY KEY (id)\n" +
-                    "  )");
+    protected synchronized void start() {
+        if (notificationListener == null) {
+            super.start();
+            return;
+        }
+
+        try {
+            notificationListener.listen(CHANGE_CHANNEL, payload -> refresh(), this::refresh);
         } catch (SQLException e) {
-            Throwables.propagate(e);
+            LOGGER.warn(e, "Unable to listen the api key changes, polling them instead");
+            super.start();
+        }
+    }
+
+    @Override
+    protected void publishChange(Connection conn) throws SQLException {
+        if (notificationListener != null) {
+            try (PreparedStatement ps = conn.prepareStatement("SELECT pg_notify(?, '')")) {
+                ps.setString(1, CHANGE_CHANNEL);
+                ps.executeQuery();
+            }
         }
     }
+
+    @Override
+    protected void createTables(Statement statement) throws SQLException {
+        statement.execute("CREATE TABLE IF NOT EXISTS api_key (" +
+                "  id SERIAL NOT NULL,\n" +
+                "  project VARCHAR(255) NOT NULL,\n" +
+                "  read_key VARCHAR(255) NOT NULL,\n" +
+                "  write_key VARCHAR(255) NOT NULL,\n" +
+                "  master_key VARCHAR(255) NOT NULL,\n" +
+                "  created_at TIMESTAMP default current_timestamp NOT NULL," +
+                "PRIMARY KEY (id)\n" +
+                "  )");
+        statement.execute("CREATE TABLE IF NOT EXISTS api_key_revocation (" +
+                "  id SERIAL NOT NULL,\n" +
+                "  project VARCHAR(255) NOT NULL,\n" +
+                "  revoked_at TIMESTAMP default current_timestamp NOT NULL," +
+                "PRIMARY KEY (id)\n" +
+                "  )");
+    }
 }
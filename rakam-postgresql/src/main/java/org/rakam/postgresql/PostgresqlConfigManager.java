@@ -1,7 +1,7 @@
 package org.rakam.postgresql;
 
-import com.google.common.base.Throwables;
 import com.google.inject.name.Named;
+import io.airlift.log.Logger;
 import org.rakam.analysis.ConfigManager;
 import org.rakam.analysis.JDBCPoolDataSource;
 import org.rakam.util.JsonHelper;
@@ -10,15 +10,22 @@ import org.skife.jdbi.v2.Handle;
 
 import javax.annotation.PostConstruct;
 import javax.inject.Inject;
+import java.sql.SQLException;
 import java.util.Locale;
+import java.util.function.BiConsumer;
 
 public class PostgresqlConfigManager implements ConfigManager {
+    private final static Logger LOGGER = Logger.get(PostgresqlConfigManager.class);
+    private static final String CHANGE_CHANNEL = "rakam_config_change";
 
     private final DBI dbi;
+    private final PostgresqlNotificationListener notificationListener;
 
     @Inject
-    public PostgresqlConfigManager(@Named("report.metadata.store.jdbc") JDBCPoolDataSource dataSource) {
+    public PostgresqlConfigManager(@Named("report.metadata.store.jdbc") JDBCPoolDataSource dataSource,
+            PostgresqlNotificationListener notificationListener) {
         this.dbi = new DBI(dataSource);
+        this.notificationListener = notificationListener;
     }
 
     @PostConstruct
@@ -37,37 +44,38 @@ public class PostgresqlConfigManager implements ConfigManager {
     @Override
     public <T> T getConfig(String project, String configName, Class<T> clazz) {
         try (Handle handle = dbi.open()) {
-            return handle.createQuery("SELECT value FROM config WHERE project = :project AND name = :name")
-                    .bind("project", project)
-                    .bind("name", configName.toUpperCase(Locale.ENGLISH)).map((i, resultSet, statementContext) -> {
-                        return JsonHelper.read(resultSet.getString(1), clazz);
-                    }).first();
+            return getConfig(handle, project, configName, clazz);
         }
     }
 
+    private <T> T getConfig(Handle handle, String project, String configName, Class<T> clazz) {
+        return handle.createQuery("SELECT value FROM config WHERE project = :project AND name = :name")
+                .bind("project", project)
+                .bind("name", configName.toUpperCase(Locale.ENGLISH)).map((i, resultSet, statementContext) -> {
+                    return JsonHelper.read(resultSet.getString(1), clazz);
+                }).first();
+    }
+
     @Override
     public <T> T setConfigOnce(String project, String configName, T value) {
         try (Handle handle = dbi.open()) {
-            T config = getConfig(project, configName, (Class<T>) value.getClass());
+            // the existing value is returned in the same round trip if the config is already set
+            T config = handle.createQuery("WITH inserted AS (" +
+                    "INSERT INTO config (project, name, value) VALUES (:project, :name, :value) " +
+                    "ON CONFLICT (project, name) DO NOTHING RETURNING value) " +
+                    "SELECT value FROM inserted UNION ALL " +
+                    "SELECT value FROM config WHERE project = :project AND name = :name")
+                    .bind("project", project)
+                    .bind("name", configName.toUpperCase(Locale.ENGLISH))
+                    .bind("value", JsonHelper.encode(value)).map((i, resultSet, statementContext) -> {
+                        return JsonHelper.read(resultSet.getString(1), (Class<T>) value.getClass());
+                    }).first();
 
-            if(config == null) {
-                try {
-                    handle.createStatement("INSERT INTO config (project, name, value) VALUES (:project, :name, :value)")
-                            .bind("project", project)
-                            .bind("name", configName.toUpperCase(Locale.ENGLISH))
-                            .bind("value", JsonHelper.encode(value)).execute();
-                    return value;
-                } catch (Exception e) {
-                    // handle race condition
-                    T lastValue = getConfig(project, configName, (Class<T>) value.getClass());
-                    if(lastValue == null) {
-                        throw Throwables.propagate(e);
-                    }
-                    return lastValue;
-                }
-            } else {
-                return config;
+            if (config == null) {
+                // the config is inserted by a concurrent transaction that is committed after the snapshot of the query
+                return getConfig(handle, project, configName, (Class<T>) value.getClass());
             }
+            return config;
         }
     }
 
@@ -76,20 +84,41 @@ public class PostgresqlConfigManager implements ConfigManager {
     {
         try (Handle handle = dbi.open()) {
             handle.createStatement("DELETE FROM config").execute();
+            handle.select("SELECT pg_notify(?, ?)", CHANGE_CHANNEL, "");
         }
     }
 
     @Override
     public <T> void setConfig(String project, String configName, T value) {
         try (Handle handle = dbi.open()) {
-            try {
-                handle.createStatement("INSERT INTO config (project, name, value) VALUES (:project, :name, :value)")
-                        .bind("project", project)
-                        .bind("name", configName.toUpperCase(Locale.ENGLISH))
-                        .bind("value", JsonHelper.encode(value)).execute();
-            } catch (Exception e) {
-                e.printStackTrace();
-            }
+            handle.createStatement("INSERT INTO config (project, name, value) VALUES (:project, :name, :value) " +
+                    "ON CONFLICT (project, name) DO UPDATE SET value = EXCLUDED.value")
+                    .bind("project", project)
+                    .bind("name", configName.toUpperCase(Locale.ENGLISH))
+                    .bind("value", JsonHelper.encode(value)).execute();
+            handle.select("SELECT pg_notify(?, ?)", CHANGE_CHANNEL, project + "\n" + configName);
+        }
+    }
+
+    /**
+     * The changes of the other nodes are received from the shared {@link PostgresqlNotificationListener}, all the
+     * configs are invalidated when its connection is re-established.
+     */
+    @Override
+    public boolean addChangeListener(BiConsumer<String, String> listener) {
+        try {
+            notificationListener.listen(CHANGE_CHANNEL, payload -> {
+                int idx = payload.indexOf("\n");
+                if (idx == -1) {
+                    listener.accept(null, null);
+                } else {
+                    listener.accept(payload.substring(0, idx), payload.substring(idx + 1));
+                }
+            }, () -> listener.accept(null, null));
+            return true;
+        } catch (SQLException e) {
+            LOGGER.warn(e, "Unable to listen the config changes");
+            return false;
         }
     }
 }
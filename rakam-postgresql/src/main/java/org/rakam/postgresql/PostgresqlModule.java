@@ -11,10 +11,10 @@ import com.google.inject.Provider;
 import com.google.inject.Scopes;
 import com.google.inject.TypeLiteral;
 import com.google.inject.multibindings.Multibinder;
+import com.google.inject.multibindings.OptionalBinder;
 import com.google.inject.name.Names;
 import io.airlift.configuration.AbstractConfigurationAwareModule;
 import org.rakam.analysis.ApiKeyService;
-import org.rakam.analysis.ConfigManager;
 import org.rakam.analysis.ContinuousQueryService;
 import org.rakam.analysis.EscapeIdentifier;
 import org.rakam.analysis.EventExplorer;
@@ -27,6 +27,7 @@ import org.rakam.analysis.TimestampToEpochFunction;
 import org.rakam.analysis.metadata.JDBCQueryMetadata;
 import org.rakam.analysis.metadata.Metastore;
 import org.rakam.analysis.metadata.QueryMetadataStore;
+import org.rakam.analysis.metadata.SchemaChangeBus;
 import org.rakam.collection.FieldType;
 import org.rakam.collection.SchemaField;
 import org.rakam.config.JDBCConfig;
@@ -37,12 +38,15 @@ import org.rakam.plugin.stream.EventStream;
 import org.rakam.plugin.stream.EventStreamConfig;
 import org.rakam.plugin.user.AbstractUserService;
 import org.rakam.plugin.user.UserPluginConfig;
+import org.rakam.postgresql.analysis.ApiKeyCacheConfig;
 import org.rakam.postgresql.analysis.PostgresqlConfig;
 import org.rakam.postgresql.analysis.PostgresqlEventStore;
 import org.rakam.postgresql.analysis.PostgresqlFunnelQueryExecutor;
 import org.rakam.postgresql.analysis.PostgresqlMaterializedViewService;
 import org.rakam.postgresql.analysis.PostgresqlMetastore;
+import org.rakam.postgresql.analysis.PostgresqlPartitionMaintainer;
 import org.rakam.postgresql.analysis.PostgresqlRetentionQueryExecutor;
+import org.rakam.postgresql.analysis.PostgresqlSchemaChangeBus;
 import org.rakam.postgresql.analysis.stream.PostgresqlEventStream;
 import org.rakam.postgresql.plugin.user.AbstractPostgresqlUserStorage;
 import org.rakam.postgresql.plugin.user.PostgresqlUserService;
@@ -63,6 +67,7 @@ import java.net.URISyntaxException;
 import java.util.List;
 import java.util.Set;
 
+import static io.airlift.configuration.ConfigBinder.configBinder;
 import static io.netty.handler.codec.http.HttpResponseStatus.BAD_REQUEST;
 import static org.rakam.util.ValidationUtil.checkCollection;
 import static org.rakam.util.ValidationUtil.checkTableColumn;
@@ -84,7 +89,11 @@ public class PostgresqlModule extends RakamModule {
         binder.bind(char.class).annotatedWith(EscapeIdentifier.class).toInstance('"');
 
         binder.bind(Metastore.class).to(PostgresqlMetastore.class).in(Scopes.SINGLETON);
-        binder.bind(ApiKeyService.class).toInstance(new PostgresqlApiKeyService(orCreateDataSource));
+        binder.bind(PostgresqlPartitionMaintainer.class).in(Scopes.SINGLETON);
+        OptionalBinder.newOptionalBinder(binder, SchemaChangeBus.class).setBinding()
+                .to(PostgresqlSchemaChangeBus.class).in(Scopes.SINGLETON);
+        configBinder(binder).bindConfig(ApiKeyCacheConfig.class);
+        binder.bind(ApiKeyService.class).to(PostgresqlApiKeyService.class).in(Scopes.SINGLETON);
         // TODO: implement postgresql specific materialized view service
         binder.bind(MaterializedViewService.class).to(PostgresqlMaterializedViewService.class).in(Scopes.SINGLETON);
         binder.bind(QueryExecutor.class).to(PostgresqlQueryExecutor.class).in(Scopes.SINGLETON);
@@ -112,7 +121,7 @@ public class PostgresqlModule extends RakamModule {
                     .annotatedWith(Names.named("report.metadata.store.jdbc"))
                     .toInstance(orCreateDataSource);
 
-            binder.bind(ConfigManager.class).to(PostgresqlConfigManager.class);
+            bindConfigManager(PostgresqlConfigManager.class);
             binder.bind(QueryMetadataStore.class).to(JDBCQueryMetadata.class)
                     .in(Scopes.SINGLETON);
         }
@@ -181,6 +190,9 @@ public class PostgresqlModule extends RakamModule {
                             .annotatedWith(Names.named("async-postgresql"))
                             .toProvider(new JDBCPoolDataSourceProvider(asyncClientConfig))
                             .in(Scopes.SINGLETON);
+                    // LISTEN holds its connection so the listeners share a connection outside of the pool
+                    binder.bind(PostgresqlNotificationListener.class)
+                            .toInstance(new PostgresqlNotificationListener(asyncClientConfig));
                 }
             };
         }
@@ -203,11 +215,13 @@ public class PostgresqlModule extends RakamModule {
 
     private static class CollectionFieldIndexerListener {
         private final PostgresqlQueryExecutor executor;
+        private final PostgresqlPartitionMaintainer partitionMaintainer;
         boolean postgresql9_5;
 
         @Inject
-        public CollectionFieldIndexerListener(PostgresqlQueryExecutor executor) {
+        public CollectionFieldIndexerListener(PostgresqlQueryExecutor executor, PostgresqlPartitionMaintainer partitionMaintainer) {
             this.executor = executor;
+            this.partitionMaintainer = partitionMaintainer;
             try {
                 String version = executor.executeRawQuery("SHOW server_version")
                         .getResult().join().getResult().get(0).get(0).toString();
@@ -231,6 +245,11 @@ public class PostgresqlModule extends RakamModule {
 
         public void onCreateCollectionFields(String project, String collection, List<SchemaField> fields) {
             for (SchemaField field : fields) {
+                // each partition has its own BRIN index on _time
+                if (field.getName().equals("_time") && partitionMaintainer.isPartitioned(collection)) {
+                    continue;
+                }
+
                 try {
                     executor.executeRawStatement(String.format("CREATE INDEX %s %s ON %s.%s USING %s(%s)",
                             postgresql9_5 ? "IF NOT EXISTS" : "",
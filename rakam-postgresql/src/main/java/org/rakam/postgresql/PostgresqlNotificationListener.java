@@ -0,0 +1,175 @@
+package org.rakam.postgresql;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.impossibl.postgres.api.jdbc.PGConnection;
+import com.impossibl.postgres.api.jdbc.PGNotificationListener;
+import io.airlift.log.Logger;
+import org.rakam.config.JDBCConfig;
+
+import javax.annotation.PreDestroy;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Receives the notifications of all the channels from a single connection that is opened only for LISTEN, so that
+ * the listeners don't hold the connections of the async-postgresql pool. The notifications that are sent while the
+ * connection is lost can't be received so the reset callbacks are called when the connection is re-established.
+ * The callbacks are called from a single thread instead of the I/O thread of the driver.
+ */
+public class PostgresqlNotificationListener {
+    private final static Logger LOGGER = Logger.get(PostgresqlNotificationListener.class);
+
+    private final JDBCConfig config;
+    private final Map<String, List<Subscription>> channels = new LinkedHashMap<>();
+    private final ExecutorService dispatcher;
+    private Connection connection;
+    private ScheduledExecutorService executor;
+
+    public PostgresqlNotificationListener(JDBCConfig config) {
+        // the notifications are only supported by the pgjdbc-ng driver
+        this.config = config;
+        this.dispatcher = Executors.newSingleThreadExecutor(new ThreadFactoryBuilder()
+                .setNameFormat("postgresql-notification-dispatcher").setDaemon(true).build());
+    }
+
+    /**
+     * Calls the listener with the payloads of the notifications that are sent to the channel.
+     */
+    public synchronized void listen(String channel, Consumer<String> listener, Runnable reset) throws SQLException {
+        if (connection == null) {
+            connection = connect();
+            if (executor == null) {
+                executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+                        .setNameFormat("postgresql-notification-listener").setDaemon(true).build());
+                executor.scheduleWithFixedDelay(this::checkConnection, 10, 10, TimeUnit.SECONDS);
+            }
+        }
+
+        List<Subscription> subscriptions = channels.get(channel);
+        if (subscriptions == null) {
+            listen(connection, channel);
+            subscriptions = new ArrayList<>();
+            channels.put(channel, subscriptions);
+        }
+        subscriptions.add(new Subscription(listener, reset));
+    }
+
+    private Connection connect() throws SQLException {
+        Connection connection = DriverManager.getConnection(config.getUrl(), config.getUsername(), config.getPassword());
+        try {
+            for (String channel : channels.keySet()) {
+                listen(connection, channel);
+            }
+            return connection;
+        } catch (SQLException e) {
+            close(connection);
+            throw e;
+        }
+    }
+
+    private void listen(Connection connection, String channel) throws SQLException {
+        PGConnection pgConnection = connection.unwrap(PGConnection.class);
+        pgConnection.addNotificationListener(channel, (PGNotificationListener) (processId, channelName, payload) ->
+                dispatch(() -> deliver(channel, payload)));
+        try (Statement statement = pgConnection.createStatement()) {
+            statement.execute("LISTEN " + channel);
+        }
+    }
+
+    private synchronized void checkConnection() {
+        try {
+            if (connection != null && connection.isValid(5)) {
+                return;
+            }
+        } catch (SQLException e) {
+            // the connection is not valid
+        }
+
+        close(connection);
+        try {
+            connection = connect();
+        } catch (SQLException e) {
+            connection = null;
+            LOGGER.warn(e, "Unable to listen the notifications, retrying in 10 seconds");
+            return;
+        }
+
+        List<Subscription> subscriptions = new ArrayList<>();
+        channels.values().forEach(subscriptions::addAll);
+        dispatch(() -> {
+            for (Subscription subscription : subscriptions) {
+                try {
+                    subscription.reset.run();
+                } catch (Exception e) {
+                    LOGGER.error(e, "Error while resetting the notification listener");
+                }
+            }
+        });
+    }
+
+    private void deliver(String channel, String payload) {
+        List<Subscription> subscriptions;
+        synchronized (this) {
+            subscriptions = new ArrayList<>(channels.get(channel));
+        }
+        for (Subscription subscription : subscriptions) {
+            try {
+                subscription.listener.accept(payload);
+            } catch (Exception e) {
+                LOGGER.error(e, "Error while processing the notification of %s: %s", channel, payload);
+            }
+        }
+    }
+
+    private void dispatch(Runnable runnable) {
+        try {
+            dispatcher.execute(runnable);
+        } catch (RejectedExecutionException e) {
+            // the listener is closed
+        }
+    }
+
+    @PreDestroy
+    public synchronized void close() {
+        if (executor != null) {
+            executor.shutdownNow();
+            executor = null;
+        }
+        dispatcher.shutdownNow();
+        close(connection);
+        connection = null;
+    }
+
+    private static void close(Connection connection) {
+        if (connection == null) {
+            return;
+        }
+        try {
+            connection.close();
+        } catch (SQLException e) {
+            LOGGER.warn(e, "Error while closing the connection");
+        }
+    }
+
+    private static class Subscription {
+        private final Consumer<String> listener;
+        private final Runnable reset;
+
+        private Subscription(Consumer<String> listener, Runnable reset) {
+            this.listener = listener;
+            this.reset = reset;
+        }
+    }
+}
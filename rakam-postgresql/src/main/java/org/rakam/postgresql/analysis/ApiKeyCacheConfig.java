@@ -0,0 +1,118 @@
+package org.rakam.postgresql.analysis;
+
+import io.airlift.configuration.Config;
+import io.airlift.configuration.ConfigDescription;
+import io.airlift.units.Duration;
+
+public class ApiKeyCacheConfig
+{
+    private long size = 10_000;
+    private Duration ttl = Duration.valueOf("10m");
+    private Duration negativeTtl = Duration.valueOf("30s");
+    private Duration invalidationInterval = Duration.valueOf("10s");
+    private boolean bloomFilterEnabled;
+    private int bloomFilterExpectedKeys = 1_000_000;
+    private double bloomFilterFalsePositiveRate = 0.001;
+    private Duration bloomFilterReloadInterval = Duration.valueOf("1s");
+
+    @Config("api-key-service.cache.size")
+    public ApiKeyCacheConfig setSize(long size)
+    {
+        this.size = size;
+        return this;
+    }
+
+    public long getSize()
+    {
+        return size;
+    }
+
+    @Config("api-key-service.cache.ttl")
+    public ApiKeyCacheConfig setTtl(String ttl)
+    {
+        this.ttl = Duration.valueOf(ttl);
+        return this;
+    }
+
+    public Duration getTtl()
+    {
+        return ttl;
+    }
+
+    @Config("api-key-service.cache.negative-ttl")
+    @ConfigDescription("The unknown keys are rejected without a lookup until their cache entries expire.")
+    public ApiKeyCacheConfig setNegativeTtl(String negativeTtl)
+    {
+        this.negativeTtl = Duration.valueOf(negativeTtl);
+        return this;
+    }
+
+    public Duration getNegativeTtl()
+    {
+        return negativeTtl;
+    }
+
+    @Config("api-key-service.cache.invalidation-interval")
+    @ConfigDescription("The interval of polling the keys that are revoked or created by the other nodes. The Postgresql deployments are notified of the changes instead of polling them.")
+    public ApiKeyCacheConfig setInvalidationInterval(String invalidationInterval)
+    {
+        this.invalidationInterval = Duration.valueOf(invalidationInterval);
+        return this;
+    }
+
+    public Duration getInvalidationInterval()
+    {
+        return invalidationInterval;
+    }
+
+    @Config("api-key-service.cache.bloom-filter.enabled")
+    @ConfigDescription("Keeps a Bloom filter of all the keys in memory so that the unknown keys are rejected without a lookup. " +
+            "The keys that are not in the filter reload the keys created since the last reload, so the keys that are created by the other nodes are accepted before the next poll.")
+    public ApiKeyCacheConfig setBloomFilterEnabled(boolean bloomFilterEnabled)
+    {
+        this.bloomFilterEnabled = bloomFilterEnabled;
+        return this;
+    }
+
+    public boolean getBloomFilterEnabled()
+    {
+        return bloomFilterEnabled;
+    }
+
+    @Config("api-key-service.cache.bloom-filter.expected-keys")
+    public ApiKeyCacheConfig setBloomFilterExpectedKeys(int bloomFilterExpectedKeys)
+    {
+        this.bloomFilterExpectedKeys = bloomFilterExpectedKeys;
+        return this;
+    }
+
+    public int getBloomFilterExpectedKeys()
+    {
+        return bloomFilterExpectedKeys;
+    }
+
+    @Config("api-key-service.cache.bloom-filter.false-positive-rate")
+    public ApiKeyCacheConfig setBloomFilterFalsePositiveRate(double bloomFilterFalsePositiveRate)
+    {
+        this.bloomFilterFalsePositiveRate = bloomFilterFalsePositiveRate;
+        return this;
+    }
+
+    public double getBloomFilterFalsePositiveRate()
+    {
+        return bloomFilterFalsePositiveRate;
+    }
+
+    @Config("api-key-service.cache.bloom-filter.reload-interval")
+    @ConfigDescription("The minimum interval between the reloads that are caused by the keys that are not in the Bloom filter, the unknown keys are rejected without a reload in between.")
+    public ApiKeyCacheConfig setBloomFilterReloadInterval(String bloomFilterReloadInterval)
+    {
+        this.bloomFilterReloadInterval = Duration.valueOf(bloomFilterReloadInterval);
+        return this;
+    }
+
+    public Duration getBloomFilterReloadInterval()
+    {
+        return bloomFilterReloadInterval;
+    }
+}
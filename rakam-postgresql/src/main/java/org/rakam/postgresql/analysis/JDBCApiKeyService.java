@@ -1,76 +1,133 @@
 package org.rakam.postgresql.analysis;
 
+import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Throwables;
+import com.google.common.cache.Cache;
 import com.google.common.cache.CacheBuilder;
 import com.google.common.cache.CacheLoader;
 import com.google.common.cache.LoadingCache;
+import com.google.common.hash.BloomFilter;
+import com.google.common.hash.Funnels;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.google.common.util.concurrent.UncheckedExecutionException;
+import io.airlift.log.Logger;
 import org.rakam.analysis.ApiKeyService;
 import org.rakam.analysis.JDBCPoolDataSource;
 import org.rakam.util.CryptUtil;
 import org.rakam.util.RakamException;
 
 import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
+import java.sql.Timestamp;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
-import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 import static io.netty.handler.codec.http.HttpResponseStatus.FORBIDDEN;
 import static java.lang.String.format;
+import static java.nio.charset.StandardCharsets.UTF_8;
 import static org.rakam.analysis.ApiKeyService.AccessKeyType.*;
 
+/**
+ * The projects of the keys are cached for api-key-service.cache.ttl and the unknown keys are cached for
+ * api-key-service.cache.negative-ttl. The revoked keys are recorded in the api_key_revocation table and each node
+ * polls it to invalidate its cache so that a revoked key stops working on all the nodes within
+ * api-key-service.cache.invalidation-interval.
+ * If the Bloom filter is enabled, a key that is not in the filter reloads the keys that are created after the last
+ * poll before it's rejected, at most once in api-key-service.cache.bloom-filter.reload-interval, so the keys that are
+ * created by the other nodes are accepted before the next poll.
+ */
 public class JDBCApiKeyService
         implements ApiKeyService
 {
+    private final static Logger LOGGER = Logger.get(JDBCApiKeyService.class);
+    // the rows that are committed after the last poll may have an older timestamp than the latest row of the poll
+    private static final long POLL_OVERLAP_MILLIS = TimeUnit.MINUTES.toMillis(1);
+    private static final long REVOCATION_RETENTION_MILLIS = TimeUnit.DAYS.toMillis(1);
+
     private final LoadingCache<String, List<Set<String>>> apiKeyCache;
     protected final JDBCPoolDataSource connectionPool;
     private final LoadingCache<ApiKey, String> apiKeyReverseCache;
+    private final Cache<ApiKey, Boolean> unknownKeyCache;
+    private final ApiKeyCacheConfig config;
+    private final BloomFilter<CharSequence> keyFilter;
+    private final long keyFilterReloadNanos;
+    private volatile boolean keyFilterLoaded;
+    private volatile long keyFilterLoadedAt;
+    private Timestamp revocationWatermark;
+    private Timestamp keyWatermark;
+    private ScheduledExecutorService executor;
 
     public JDBCApiKeyService(JDBCPoolDataSource connectionPool)
+    {
+        this(connectionPool, new ApiKeyCacheConfig());
+    }
+
+    public JDBCApiKeyService(JDBCPoolDataSource connectionPool, ApiKeyCacheConfig config)
     {
         this.connectionPool = connectionPool;
+        this.config = config;
 
-        apiKeyCache = CacheBuilder.newBuilder().build(new CacheLoader<String, List<Set<String>>>()
-        {
-            @Override
-            public List<Set<String>> load(String project)
-                    throws Exception
-            {
-                try (Connection conn = connectionPool.getConnection()) {
-                    return getKeys(conn, project);
-                }
-            }
-        });
+        apiKeyCache = CacheBuilder.newBuilder()
+                .maximumSize(config.getSize())
+                .expireAfterWrite(config.getTtl().toMillis(), TimeUnit.MILLISECONDS)
+                .build(new CacheLoader<String, List<Set<String>>>()
+                {
+                    @Override
+                    public List<Set<String>> load(String project)
+                            throws Exception
+                    {
+                        try (Connection conn = connectionPool.getConnection()) {
+                            return getKeys(conn, project);
+                        }
+                    }
+                });
 
-        apiKeyReverseCache = CacheBuilder.newBuilder().build(new CacheLoader<ApiKey, String>()
-        {
-            @Override
-            public String load(ApiKey apiKey)
-                    throws Exception
-            {
-                try (Connection conn = connectionPool.getConnection()) {
-                    PreparedStatement ps = conn.prepareStatement(format("SELECT project FROM api_key WHERE %s = ?", apiKey.type.name()));
-                    ps.setString(1, apiKey.key);
-                    ResultSet resultSet = ps.executeQuery();
-                    if (!resultSet.next()) {
-                        throw new RakamException(apiKey.type.getKey() + " is invalid", FORBIDDEN);
+        apiKeyReverseCache = CacheBuilder.newBuilder()
+                .maximumSize(config.getSize())
+                .expireAfterWrite(config.getTtl().toMillis(), TimeUnit.MILLISECONDS)
+                .build(new CacheLoader<ApiKey, String>()
+                {
+                    @Override
+                    public String load(ApiKey apiKey)
+                            throws Exception
+                    {
+                        try (Connection conn = connectionPool.getConnection()) {
+                            PreparedStatement ps = conn.prepareStatement(format("SELECT project FROM api_key WHERE %s = ?", apiKey.type.name()));
+                            ps.setString(1, apiKey.key);
+                            ResultSet resultSet = ps.executeQuery();
+                            if (!resultSet.next()) {
+                                throw new RakamException(apiKey.type.getKey() + " is invalid", FORBIDDEN);
+                            }
+                            return resultSet.getString(1);
+                        }
+                        catch (SQLException e) {
+                            throw Throwables.propagate(e);
+                        }
                     }
-                    return resultSet.getString(1);
-                }
-                catch (SQLException e) {
-                    throw Throwables.propagate(e);
-                }
-            }
-        });
+                });
+
+        // the garbage keys are cached separately so that they don't evict the valid keys
+        unknownKeyCache = CacheBuilder.newBuilder()
+                .maximumSize(config.getSize())
+                .expireAfterWrite(config.getNegativeTtl().toMillis(), TimeUnit.MILLISECONDS)
+                .build();
+
+        keyFilter = config.getBloomFilterEnabled() ?
+                BloomFilter.create(Funnels.stringFunnel(UTF_8), config.getBloomFilterExpectedKeys(),
+                        config.getBloomFilterFalsePositiveRate()) : null;
+        keyFilterReloadNanos = config.getBloomFilterReloadInterval().roundTo(TimeUnit.NANOSECONDS);
     }
 
     @PostConstruct
@@ -78,19 +135,65 @@ public class JDBCApiKeyService
     {
         try (Connection connection = connectionPool.getConnection()) {
             Statement statement = connection.createStatement();
-            statement.execute("CREATE TABLE IF NOT EXISTS api_key (" +
-                    "  id MEDIUMINT NOT NULL AUTO_INCREMENT,\n" +
-                    "  project VARCHAR(255) NOT NULL,\n" +
-                    "  read_key VARCHAR(255) NOT NULL,\n" +
-                    "  write_key VARCHAR(255) NOT NULL,\n" +
-                    "  master_key VARCHAR(255) NOT NULL,\n" +
-                    "  created_at TIMESTAMP default current_timestamp NOT NULL," +
-                    "PRIMARY KEY (id)\n" +
-                    "  )");
+            createTables(statement);
         }
         catch (SQLException e) {
             Throwables.propagate(e);
         }
+
+        refresh();
+        start();
+    }
+
+    protected void createTables(Statement statement)
+            throws SQLException
+    {
+        statement.execute("CREATE TABLE IF NOT EXISTS api_key (" +
+                "  id MEDIUMINT NOT NULL AUTO_INCREMENT,\n" +
+                "  project VARCHAR(255) NOT NULL,\n" +
+                "  read_key VARCHAR(255) NOT NULL,\n" +
+                "  write_key VARCHAR(255) NOT NULL,\n" +
+                "  master_key VARCHAR(255) NOT NULL,\n" +
+                "  created_at TIMESTAMP default current_timestamp NOT NULL," +
+                "PRIMARY KEY (id)\n" +
+                "  )");
+        statement.execute("CREATE TABLE IF NOT EXISTS api_key_revocation (" +
+                "  id MEDIUMINT NOT NULL AUTO_INCREMENT,\n" +
+                "  project VARCHAR(255) NOT NULL,\n" +
+                "  revoked_at TIMESTAMP default current_timestamp NOT NULL," +
+                "PRIMARY KEY (id)\n" +
+                "  )");
+    }
+
+    /**
+     * Polls the changes of the other nodes every api-key-service.cache.invalidation-interval.
+     */
+    protected synchronized void start()
+    {
+        if (executor != null) {
+            return;
+        }
+
+        executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+                .setNameFormat("api-key-cache-invalidator").setDaemon(true).build());
+        long interval = config.getInvalidationInterval().toMillis();
+        executor.scheduleWithFixedDelay(() -> {
+            try {
+                refresh();
+            }
+            catch (Throwable e) {
+                LOGGER.error(e, "Error while polling the changes of the api keys");
+            }
+        }, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    public synchronized void stop()
+    {
+        if (executor != null) {
+            executor.shutdownNow();
+            executor = null;
+        }
     }
 
     @Override
@@ -111,11 +214,17 @@ public class JDBCApiKeyService
             ps.executeUpdate();
             final ResultSet generatedKeys = ps.getGeneratedKeys();
             generatedKeys.next();
+            publishChange(connection);
         }
         catch (SQLException e) {
             throw Throwables.propagate(e);
         }
 
+        addKey(new ApiKey(masterKey, MASTER_KEY));
+        addKey(new ApiKey(readKey, READ_KEY));
+        addKey(new ApiKey(writeKey, WRITE_KEY));
+        apiKeyCache.invalidate(project);
+
         return ProjectApiKeys.create(masterKey, readKey, writeKey);
     }
 
@@ -128,10 +237,23 @@ public class JDBCApiKeyService
         if (apiKey == null) {
             throw new RakamException(type.getKey() + " is missing", FORBIDDEN);
         }
+
+        ApiKey key = new ApiKey(apiKey, type);
+        String project = apiKeyReverseCache.getIfPresent(key);
+        if (project != null) {
+            return project;
+        }
+        if (unknownKeyCache.getIfPresent(key) != null || !mightExist(key)) {
+            throw new RakamException(type.getKey() + " is invalid", FORBIDDEN);
+        }
+
         try {
-            return apiKeyReverseCache.getUnchecked(new ApiKey(apiKey, type));
+            return apiKeyReverseCache.getUnchecked(key);
         }
         catch (UncheckedExecutionException e) {
+            if (e.getCause() instanceof RakamException) {
+                unknownKeyCache.put(key, Boolean.TRUE);
+            }
             throw Throwables.propagate(e.getCause());
         }
     }
@@ -143,7 +265,9 @@ public class JDBCApiKeyService
             PreparedStatement ps = conn.prepareStatement("DELETE FROM api_key WHERE project = ? AND master_key = ?");
             ps.setString(1, project);
             ps.setString(2, masterKey);
-            ps.execute();
+            if (ps.executeUpdate() > 0) {
+                recordRevocation(conn, project);
+            }
         }
         catch (SQLException e) {
             throw Throwables.propagate(e);
@@ -156,7 +280,9 @@ public class JDBCApiKeyService
         try (Connection conn = connectionPool.getConnection()) {
             PreparedStatement ps = conn.prepareStatement("DELETE FROM api_key WHERE project = ?");
             ps.setString(1, project);
-            ps.execute();
+            if (ps.executeUpdate() > 0) {
+                recordRevocation(conn, project);
+            }
         }
         catch (SQLException e) {
             throw Throwables.propagate(e);
@@ -200,9 +326,132 @@ public class JDBCApiKeyService
         return Collections.unmodifiableList(Arrays.asList(keys));
     }
 
+    private void recordRevocation(Connection conn, String project)
+            throws SQLException
+    {
+        PreparedStatement ps = conn.prepareStatement("INSERT INTO api_key_revocation (project) VALUES (?)");
+        ps.setString(1, project);
+        ps.executeUpdate();
+        invalidateProject(project);
+        publishChange(conn);
+    }
+
+    /**
+     * Called after the keys are created or revoked so that the implementations that can push the changes to the
+     * other nodes don't need to wait for the next poll.
+     */
+    protected void publishChange(Connection conn)
+            throws SQLException
+    {
+    }
+
+    private void invalidateProject(String project)
+    {
+        apiKeyCache.invalidate(project);
+        apiKeyReverseCache.asMap().values().removeIf(project::equals);
+    }
+
+    private void addKey(ApiKey key)
+    {
+        unknownKeyCache.invalidate(key);
+        if (keyFilter != null) {
+            synchronized (keyFilter) {
+                keyFilter.put(key.type.name() + ":" + key.key);
+            }
+        }
+    }
+
+    private boolean mightExist(ApiKey key)
+    {
+        if (keyFilter == null || !keyFilterLoaded) {
+            return true;
+        }
+        if (filterContains(key)) {
+            return true;
+        }
+
+        // the key may be created by another node after the last poll
+        synchronized (this) {
+            if (System.nanoTime() - keyFilterLoadedAt < keyFilterReloadNanos) {
+                return false;
+            }
+            try {
+                refresh();
+            }
+            catch (RuntimeException e) {
+                LOGGER.warn(e, "Unable to reload the api keys, looking up the key");
+                return true;
+            }
+        }
+        return filterContains(key);
+    }
+
+    private boolean filterContains(ApiKey key)
+    {
+        synchronized (keyFilter) {
+            return keyFilter.mightContain(key.type.name() + ":" + key.key);
+        }
+    }
+
+    /**
+     * Invalidates the cached keys of the projects whose keys are revoked by the other nodes and adds the keys that
+     * are created by the other nodes to the Bloom filter.
+     */
+    @VisibleForTesting
+    public synchronized void refresh()
+    {
+        try (Connection conn = connectionPool.getConnection()) {
+            if (revocationWatermark == null) {
+                // the cache is empty when the service is started, only the revocations after that are relevant
+                ResultSet resultSet = conn.createStatement().executeQuery("SELECT max(revoked_at) FROM api_key_revocation");
+                resultSet.next();
+                Timestamp latest = resultSet.getTimestamp(1);
+                revocationWatermark = latest == null ? new Timestamp(0) : latest;
+            }
+            else {
+                PreparedStatement ps = conn.prepareStatement("SELECT project, revoked_at FROM api_key_revocation WHERE revoked_at > ?");
+                ps.setTimestamp(1, new Timestamp(revocationWatermark.getTime() - POLL_OVERLAP_MILLIS));
+                ResultSet resultSet = ps.executeQuery();
+                while (resultSet.next()) {
+                    invalidateProject(resultSet.getString(1));
+                    Timestamp revokedAt = resultSet.getTimestamp(2);
+                    if (revokedAt.after(revocationWatermark)) {
+                        revocationWatermark = revokedAt;
+                    }
+                }
+
+                ps = conn.prepareStatement("DELETE FROM api_key_revocation WHERE revoked_at < ?");
+                ps.setTimestamp(1, new Timestamp(revocationWatermark.getTime() - REVOCATION_RETENTION_MILLIS));
+                ps.executeUpdate();
+            }
+
+            if (keyFilter != null) {
+                PreparedStatement ps = conn.prepareStatement("SELECT master_key, read_key, write_key, created_at FROM api_key WHERE created_at > ?");
+                ps.setTimestamp(1, keyWatermark == null ? new Timestamp(0) : new Timestamp(keyWatermark.getTime() - POLL_OVERLAP_MILLIS));
+                ResultSet resultSet = ps.executeQuery();
+                while (resultSet.next()) {
+                    addKey(new ApiKey(resultSet.getString(1), MASTER_KEY));
+                    addKey(new ApiKey(resultSet.getString(2), READ_KEY));
+                    addKey(new ApiKey(resultSet.getString(3), WRITE_KEY));
+                    Timestamp createdAt = resultSet.getTimestamp(4);
+                    if (keyWatermark == null || createdAt.after(keyWatermark)) {
+                        keyWatermark = createdAt;
+                    }
+                }
+                keyFilterLoaded = true;
+                keyFilterLoadedAt = System.nanoTime();
+            }
+        }
+        catch (SQLException e) {
+            throw Throwables.propagate(e);
+        }
+    }
+
     public void clearCache()
     {
-        apiKeyCache.cleanUp();
+        apiKeyCache.invalidateAll();
+        apiKeyReverseCache.invalidateAll();
+        unknownKeyCache.invalidateAll();
     }
 
     public static final class ApiKey
@@ -1,10 +1,22 @@
 package org.rakam.postgresql.analysis;
 
 import io.airlift.configuration.Config;
+import io.airlift.configuration.ConfigDescription;
+import io.airlift.units.Duration;
 
 public class PostgresqlConfig {
 
     private boolean autoIndexColumns = true;
+    private Partitioning partitioning = Partitioning.NONE;
+    private int partitionPremake = 3;
+    private long dailyPartitionThreshold = 5_000_000;
+    private Duration partitionMaintenanceInterval = Duration.valueOf("1h");
+    private Duration retention;
+
+    public enum Partitioning
+    {
+        NONE, DAILY, MONTHLY, AUTO
+    }
 
     @Config("postgresql.auto-index-columns")
     public PostgresqlConfig setAutoIndexColumns(boolean indexColumns)
@@ -16,4 +28,68 @@ public class PostgresqlConfig {
     public boolean isAutoIndexColumns() {
         return autoIndexColumns;
     }
+
+    @Config("postgresql.partitioning")
+    @ConfigDescription("Creates the event tables partitioned by _time. AUTO starts with monthly partitions and " +
+            "switches to daily partitions when a monthly partition exceeds postgresql.partitioning.daily-threshold rows. " +
+            "Requires Postgresql 11 or later.")
+    public PostgresqlConfig setPartitioning(Partitioning partitioning)
+    {
+        this.partitioning = partitioning;
+        return this;
+    }
+
+    public Partitioning getPartitioning()
+    {
+        return partitioning;
+    }
+
+    @Config("postgresql.partitioning.premake")
+    public PostgresqlConfig setPartitionPremake(int partitionPremake)
+    {
+        this.partitionPremake = partitionPremake;
+        return this;
+    }
+
+    public int getPartitionPremake()
+    {
+        return partitionPremake;
+    }
+
+    @Config("postgresql.partitioning.daily-threshold")
+    public PostgresqlConfig setDailyPartitionThreshold(long dailyPartitionThreshold)
+    {
+        this.dailyPartitionThreshold = dailyPartitionThreshold;
+        return this;
+    }
+
+    public long getDailyPartitionThreshold()
+    {
+        return dailyPartitionThreshold;
+    }
+
+    @Config("postgresql.partitioning.maintenance-interval")
+    public PostgresqlConfig setPartitionMaintenanceInterval(String partitionMaintenanceInterval)
+    {
+        this.partitionMaintenanceInterval = Duration.valueOf(partitionMaintenanceInterval);
+        return this;
+    }
+
+    public Duration getPartitionMaintenanceInterval()
+    {
+        return partitionMaintenanceInterval;
+    }
+
+    @Config("postgresql.retention")
+    @ConfigDescription("The partitions that only contain events older than this duration are dropped.")
+    public PostgresqlConfig setRetention(String retention)
+    {
+        this.retention = retention == null ? null : Duration.valueOf(retention);
+        return this;
+    }
+
+    public Duration getRetention()
+    {
+        return retention;
+    }
 }
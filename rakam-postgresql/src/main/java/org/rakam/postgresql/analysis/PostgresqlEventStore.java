@@ -1,5 +1,6 @@
 package org.rakam.postgresql.analysis;
 
+import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Throwables;
 import com.google.inject.Singleton;
 import com.google.inject.name.Named;
@@ -126,7 +127,8 @@ public class PostgresqlEventStore
         }
     }
 
-    private void bindParam(Connection connection, PreparedStatement ps, List<SchemaField> fields, GenericRecord record)
+    @VisibleForTesting
+    public static void bindParam(Connection connection, PreparedStatement ps, List<SchemaField> fields, GenericRecord record)
             throws SQLException
     {
         Object value;
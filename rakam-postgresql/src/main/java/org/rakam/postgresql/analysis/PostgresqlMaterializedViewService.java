@@ -6,7 +6,6 @@ import org.rakam.analysis.MaterializedViewService;
 import org.rakam.analysis.metadata.QueryMetadataStore;
 import org.rakam.plugin.MaterializedView;
 import org.rakam.postgresql.report.PostgresqlQueryExecutor;
-import org.rakam.report.DelegateQueryExecution;
 import org.rakam.report.QueryExecution;
 import org.rakam.report.QueryResult;
 import org.rakam.util.QueryFormatter;
@@ -52,6 +51,7 @@ public class PostgresqlMaterializedViewService extends MaterializedViewService {
             throw new RakamException("Couldn't created table: " + result.getError().toString(), FORBIDDEN);
         }
         database.createMaterializedView(project, materializedView);
+        viewChanged(project, materializedView.tableName);
         return CompletableFuture.completedFuture(null);
     }
 
@@ -60,24 +60,38 @@ public class PostgresqlMaterializedViewService extends MaterializedViewService {
         MaterializedView materializedView = database.getMaterializedView(project, name);
         database.deleteMaterializedView(project, name);
         return queryExecutor.executeRawStatement(format("DROP MATERIALIZED VIEW \"%s\".\"%s%s\"",
-                project, MATERIALIZED_VIEW_PREFIX, materializedView.tableName)).getResult();
+                project, MATERIALIZED_VIEW_PREFIX, materializedView.tableName)).getResult().thenApply(result -> {
+            viewChanged(project, name);
+            return result;
+        });
     }
 
     @Override
     public MaterializedViewExecution lockAndUpdateView(String project, MaterializedView materializedView) {
         CompletableFuture<Instant> f = new CompletableFuture<>();
+        String reference = getViewReference(project, materializedView);
         boolean availableForUpdating = database.updateMaterializedView(project, materializedView, f);
         if (availableForUpdating) {
-            String reference = String.format("\"%s\".\"%s%s\"", project,
-                    MATERIALIZED_VIEW_PREFIX, materializedView.tableName);
-
-            QueryExecution execution = queryExecutor.executeRawStatement(format("REFRESH MATERIALIZED VIEW " + reference));
-            DelegateQueryExecution delegateQueryExecution = new DelegateQueryExecution(execution, result -> {
-                f.complete(!result.isFailed() ? Instant.now() : null);
-                return result;
-            });
-            return new MaterializedViewExecution(delegateQueryExecution, reference);
+            // the view is replaced in a single transaction by REFRESH so the queries read the previous data until it's completed
+            QueryExecution execution;
+            try {
+                if (!database.isRefreshLeaseHeld(project, materializedView)) {
+                    f.complete(null);
+                    return new MaterializedViewExecution(null, reference);
+                }
+                execution = queryExecutor.executeRawStatement(format("REFRESH MATERIALIZED VIEW " + reference));
+            } catch (Throwable e) {
+                f.completeExceptionally(e);
+                throw e;
+            }
+            execution.getResult().whenComplete((result, ex) -> f.complete(ex == null && !result.isFailed() ? Instant.now() : null));
+            return new MaterializedViewExecution(execution, reference);
         }
-        return null;
+        return new MaterializedViewExecution(null, reference);
+    }
+
+    @Override
+    protected String getViewReference(String project, MaterializedView materializedView) {
+        return String.format("\"%s\".\"%s%s\"", project, MATERIALIZED_VIEW_PREFIX, materializedView.tableName);
     }
 }
@@ -1,7 +1,6 @@
 package org.rakam.postgresql.analysis;
 
 import com.google.common.base.Throwables;
-import com.google.common.cache.CacheBuilder;
 import com.google.common.cache.CacheLoader;
 import com.google.common.cache.LoadingCache;
 import com.google.common.collect.ImmutableList;
@@ -14,10 +13,13 @@ import org.postgresql.jdbc2.AbstractJdbc2DatabaseMetaData;
 import org.postgresql.jdbc4.AbstractJdbc4DatabaseMetaData;
 import org.rakam.analysis.JDBCPoolDataSource;
 import org.rakam.analysis.metadata.AbstractMetastore;
+import org.rakam.analysis.metadata.SchemaChange;
+import org.rakam.analysis.metadata.SchemaChangeBus;
 import org.rakam.collection.FieldDependencyBuilder;
 import org.rakam.collection.FieldDependencyBuilder.FieldDependency;
 import org.rakam.collection.FieldType;
 import org.rakam.collection.SchemaField;
+import org.rakam.config.SchemaVerificationConfig;
 import org.rakam.util.NotExistsException;
 import org.rakam.util.ProjectCollection;
 import org.rakam.util.RakamException;
@@ -59,14 +61,21 @@ public class PostgresqlMetastore
     private final LoadingCache<ProjectCollection, List<SchemaField>> schemaCache;
     private final LoadingCache<String, Set<String>> collectionCache;
     private final JDBCPoolDataSource connectionPool;
+    private final PostgresqlPartitionMaintainer partitionMaintainer;
+
+    public PostgresqlMetastore(JDBCPoolDataSource connectionPool, EventBus eventBus, FieldDependency fieldDependency)
+    {
+        this(connectionPool, eventBus, fieldDependency, new PostgresqlPartitionMaintainer(connectionPool, new PostgresqlConfig()), SchemaChangeBus.LOCAL, new SchemaVerificationConfig());
+    }
 
     @Inject
-    public PostgresqlMetastore(@Named("store.adapter.postgresql") JDBCPoolDataSource connectionPool, EventBus eventBus, FieldDependency fieldDependency)
+    public PostgresqlMetastore(@Named("store.adapter.postgresql") JDBCPoolDataSource connectionPool, EventBus eventBus, FieldDependency fieldDependency, PostgresqlPartitionMaintainer partitionMaintainer, SchemaChangeBus schemaChangeBus, SchemaVerificationConfig schemaVerificationConfig)
     {
-        super(fieldDependency, eventBus);
+        super(fieldDependency, eventBus, schemaChangeBus);
         this.connectionPool = connectionPool;
+        this.partitionMaintainer = partitionMaintainer;
 
-        schemaCache = CacheBuilder.newBuilder().expireAfterWrite(1, TimeUnit.MINUTES).build(new CacheLoader<ProjectCollection, List<SchemaField>>()
+        schemaCache = newSchemaCacheBuilder(1, TimeUnit.MINUTES).build(new CacheLoader<ProjectCollection, List<SchemaField>>()
         {
             @Override
             public List<SchemaField> load(ProjectCollection key)
@@ -82,7 +91,7 @@ public class PostgresqlMetastore
             }
         });
 
-        collectionCache = CacheBuilder.newBuilder().expireAfterWrite(1, TimeUnit.MINUTES).build(new CacheLoader<String, Set<String>>()
+        collectionCache = newSchemaCacheBuilder(1, TimeUnit.MINUTES).build(new CacheLoader<String, Set<String>>()
         {
             @Override
             public Set<String> load(String project)
@@ -94,7 +103,7 @@ public class PostgresqlMetastore
                                     "FROM pg_catalog.pg_class c\n" +
                                     "    JOIN pg_catalog.pg_namespace n ON n.oid = c.relnamespace\n" +
                                     "    LEFT JOIN pg_inherits i ON (i.inhrelid = c.oid)\n" +
-                                    "    WHERE n.nspname = '%s' and c.relkind IN ('r', '') and i.inhrelid is null\n" +
+                                    "    WHERE n.nspname = '%s' and c.relkind IN ('r', 'p') and i.inhrelid is null\n" +
                                     "    AND n.nspname <> 'pg_catalog'\n" +
                                     "    AND n.nspname <> 'information_schema'\n" +
                                     "    AND n.nspname !~ '^pg_toast'",
@@ -113,7 +122,35 @@ public class PostgresqlMetastore
             }
         });
 
-        super.checkExistingSchema();
+        subscribeSchemaChanges();
+        super.checkExistingSchema(schemaVerificationConfig);
+    }
+
+    @Override
+    protected void onSchemaChange(SchemaChange change)
+    {
+        switch (change.type) {
+            case PROJECT_CREATED:
+            case PROJECT_DELETED:
+                invalidateProject(change.project);
+                break;
+            case COLLECTION_CREATED:
+                collectionCache.invalidate(change.project);
+                schemaCache.invalidate(new ProjectCollection(change.project, change.collection));
+                break;
+            case COLLECTION_FIELD_CREATED:
+                schemaCache.invalidate(new ProjectCollection(change.project, change.collection));
+                break;
+            default:
+                collectionCache.invalidateAll();
+                schemaCache.invalidateAll();
+        }
+    }
+
+    private void invalidateProject(String project)
+    {
+        collectionCache.invalidate(project);
+        schemaCache.asMap().keySet().removeIf(key -> key.project.equals(project));
     }
 
     @Override
@@ -157,6 +194,7 @@ public class PostgresqlMetastore
             throw Throwables.propagate(e);
         }
 
+        invalidateProject(project);
         super.onCreateProject(project);
     }
 
@@ -202,7 +240,7 @@ public class PostgresqlMetastore
                         "    LEFT JOIN pg_inherits i ON (i.inhrelid = c.oid)\n" +
                         "    JOIN pg_attribute a ON (a.attrelid=c.oid)\n" +
                         "    JOIN pg_type t ON (a.atttypid = t.oid)\n" +
-                        "    WHERE n.nspname = '%s' and c.relname = '%s' and c.relkind IN ('r', '') and i.inhrelid is null\n" +
+                        "    WHERE n.nspname = '%s' and c.relname = '%s' and c.relkind IN ('r', 'p') and i.inhrelid is null\n" +
                         "    AND n.nspname <> 'pg_catalog'\n" +
                         "    AND n.nspname <> 'information_schema'\n" +
                         "    AND n.nspname !~ '^pg_toast'     \n" +
@@ -231,6 +269,7 @@ public class PostgresqlMetastore
         List<SchemaField> currentFields = new ArrayList<>();
         String query;
         Runnable task;
+        boolean partitioned = false;
 
         if (collection.equals("_users")) {
             throw new RakamException("_users is reserved and cannot be used as collection name", BAD_REQUEST);
@@ -238,12 +277,14 @@ public class PostgresqlMetastore
 
         try (Connection connection = connectionPool.getConnection()) {
             connection.setAutoCommit(false);
-            ResultSet columns = connection.getMetaData().getColumns("", project, collection.replaceAll("%", "\\\\%").replaceAll("_", "\\\\_"), null);
+            // the metadata of the JDBC driver doesn't list the partitioned tables
+            List<SchemaField> existingFields = getSchema(connection, project, collection);
             HashSet<String> strings = new HashSet<>();
-            while (columns.next()) {
-                String colName = columns.getString("COLUMN_NAME");
-                strings.add(colName);
-                currentFields.add(new SchemaField(colName, fromSql(columns.getInt("DATA_TYPE"), columns.getString("TYPE_NAME"))));
+            if (existingFields != null) {
+                for (SchemaField field : existingFields) {
+                    strings.add(field.getName());
+                    currentFields.add(field);
+                }
             }
 
             List<SchemaField> schemaFields = fields.stream().filter(f -> !strings.contains(f.getName())).collect(Collectors.toList());
@@ -261,7 +302,10 @@ public class PostgresqlMetastore
                 if (queryEnd.isEmpty()) {
                     return currentFields;
                 }
-                query = format("CREATE TABLE \"%s\".%s (%s)", project, checkCollection(collection), queryEnd);
+                partitioned = partitionMaintainer.isPartitioned(collection)
+                        && currentFields.stream().anyMatch(f -> f.getName().equals("_time") && f.getType() == FieldType.TIMESTAMP);
+                query = format("CREATE TABLE \"%s\".%s (%s)%s", project, checkCollection(collection), queryEnd,
+                        partitioned ? partitionMaintainer.getPartitionClause() : "");
                 task = () -> super.onCreateCollection(project, collection, schemaFields);
             }
             else {
@@ -280,9 +324,15 @@ public class PostgresqlMetastore
             }
 
             connection.createStatement().execute(query);
+            if (partitioned) {
+                partitionMaintainer.createInitialPartitions(connection, project, collection);
+            }
             connection.commit();
             connection.setAutoCommit(true);
             schemaCache.put(new ProjectCollection(project, collection), currentFields);
+            if (existingFields == null) {
+                collectionCache.invalidate(project);
+            }
         }
         catch (SQLException e) {
             // syntax error exception
@@ -315,9 +365,10 @@ public class PostgresqlMetastore
 
         try (Connection conn = connectionPool.getConnection()) {
             PreparedStatement ps = conn.prepareStatement("SELECT\n" +
-                    "        nspname, sum(reltuples)\n" +
+                    "        nspname, sum(greatest(reltuples, 0))\n" +
                     "        FROM pg_class C\n" +
                     "        LEFT JOIN pg_namespace N ON (N.oid = C.relnamespace)\n" +
+                    // the partitioned tables don't have rows, their partitions are counted instead
                     "        WHERE nspname = any(?) AND relkind='r' AND relname != '_users' GROUP BY 1");
             ps.setArray(1, conn.createArrayOf("text", projects.toArray()));
             ResultSet resultSet = ps.executeQuery();
@@ -369,6 +420,7 @@ public class PostgresqlMetastore
         catch (SQLException e) {
             throw Throwables.propagate(e);
         }
+        invalidateProject(project);
         super.onDeleteProject(project);
     }
 
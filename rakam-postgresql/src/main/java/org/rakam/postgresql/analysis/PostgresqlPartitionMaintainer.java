@@ -0,0 +1,388 @@
+package org.rakam.postgresql.analysis;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Throwables;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.inject.name.Named;
+import io.airlift.log.Logger;
+import org.rakam.analysis.JDBCPoolDataSource;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.inject.Inject;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.Clock;
+import java.time.LocalDate;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static java.lang.String.format;
+import static org.rakam.postgresql.analysis.PostgresqlConfig.Partitioning.DAILY;
+import static org.rakam.postgresql.analysis.PostgresqlConfig.Partitioning.MONTHLY;
+import static org.rakam.postgresql.analysis.PostgresqlConfig.Partitioning.NONE;
+import static org.rakam.util.ValidationUtil.checkCollection;
+
+/**
+ * Manages the range partitions of the event tables when postgresql.partitioning is enabled. The event tables are
+ * partitioned by _time, the partitions are named as {collection}_p{yyyyMM} for monthly and {collection}_p{yyyyMMdd}
+ * for daily partitions and each of them has its own BRIN index on _time. The events that don't fall into any of the
+ * partitions are stored in the {collection}_default partition, they're moved to the partition of their range when
+ * it's created since Postgresql doesn't allow creating a partition for the rows of the default partition.
+ * The partitions are created ahead of time periodically and the partitions that are older than postgresql.retention
+ * are dropped, the expired events of the default partition are deleted.
+ */
+public class PostgresqlPartitionMaintainer
+{
+    private final static Logger LOGGER = Logger.get(PostgresqlPartitionMaintainer.class);
+    private static final Pattern PARTITION_SUFFIX = Pattern.compile("_p([0-9]{6}|[0-9]{8})$");
+    private static final DateTimeFormatter MONTHLY_SUFFIX = DateTimeFormatter.ofPattern("yyyyMM");
+    private static final DateTimeFormatter DAILY_SUFFIX = DateTimeFormatter.ofPattern("yyyyMMdd");
+    private static final String MAX_PARTITION_INDEX_SUFFIX = "_p00000000_time_brin";
+    private static final int MAX_IDENTIFIER_LENGTH = 63;
+
+    private final JDBCPoolDataSource connectionPool;
+    private final PostgresqlConfig config;
+    private final Clock clock;
+    private ScheduledExecutorService executor;
+
+    @Inject
+    public PostgresqlPartitionMaintainer(@Named("store.adapter.postgresql") JDBCPoolDataSource connectionPool, PostgresqlConfig config)
+    {
+        this(connectionPool, config, Clock.systemUTC());
+    }
+
+    @VisibleForTesting
+    public PostgresqlPartitionMaintainer(JDBCPoolDataSource connectionPool, PostgresqlConfig config, Clock clock)
+    {
+        this.connectionPool = connectionPool;
+        this.config = config;
+        this.clock = clock;
+    }
+
+    public boolean isEnabled()
+    {
+        return config.getPartitioning() != NONE;
+    }
+
+    /**
+     * The identifiers are truncated to 63 characters in Postgresql so the collections with long names are not
+     * partitioned, otherwise the names of their partitions would collide.
+     */
+    public boolean isPartitioned(String collection)
+    {
+        return isEnabled() && (collection + MAX_PARTITION_INDEX_SUFFIX).length() <= MAX_IDENTIFIER_LENGTH;
+    }
+
+    @PostConstruct
+    public synchronized void start()
+    {
+        if (!isEnabled() || executor != null) {
+            return;
+        }
+
+        executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+                .setNameFormat("postgresql-partition-maintainer").setDaemon(true).build());
+        long interval = config.getPartitionMaintenanceInterval().toMillis();
+        executor.scheduleWithFixedDelay(() -> {
+            try {
+                maintain();
+            }
+            catch (Throwable e) {
+                LOGGER.error(e, "Error while maintaining the partitions of the event tables");
+            }
+        }, 0, interval, TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    public synchronized void stop()
+    {
+        if (executor != null) {
+            executor.shutdownNow();
+            executor = null;
+        }
+    }
+
+    /**
+     * Returns the suffix of the CREATE TABLE statement for the new event tables.
+     */
+    public String getPartitionClause()
+    {
+        return " PARTITION BY RANGE (_time)";
+    }
+
+    /**
+     * Creates the default partition and the partitions until postgresql.partitioning.premake periods later for the
+     * event table that is created in the same transaction.
+     */
+    public void createInitialPartitions(Connection connection, String project, String collection)
+            throws SQLException
+    {
+        try (Statement statement = connection.createStatement()) {
+            statement.execute(format("CREATE TABLE IF NOT EXISTS \"%s\".%s PARTITION OF \"%s\".%s DEFAULT",
+                    project, checkCollection(collection + "_default"), project, checkCollection(collection)));
+        }
+        // the default partition is empty since the table is created in the same transaction
+        createPartitions(connection, project, collection, new ArrayList<>(), false);
+    }
+
+    public void maintain()
+    {
+        List<String[]> tables = new ArrayList<>();
+        try (Connection connection = connectionPool.getConnection()) {
+            // the projects are the schemas other than the system schemas, same as PostgresqlMetastore.getProjects
+            ResultSet resultSet = connection.createStatement().executeQuery("SELECT n.nspname, c.relname\n" +
+                    "FROM pg_catalog.pg_class c\n" +
+                    "    JOIN pg_catalog.pg_namespace n ON n.oid = c.relnamespace\n" +
+                    "    WHERE c.relkind = 'p' AND n.nspname NOT IN ('information_schema', 'public') AND n.nspname NOT LIKE 'pg\\_%'");
+            while (resultSet.next()) {
+                tables.add(new String[] {resultSet.getString(1), resultSet.getString(2)});
+            }
+
+            for (String[] table : tables) {
+                try {
+                    maintain(connection, table[0], table[1]);
+                }
+                catch (SQLException e) {
+                    LOGGER.error(e, "Error while maintaining the partitions of %s.%s", table[0], table[1]);
+                }
+            }
+        }
+        catch (SQLException e) {
+            throw Throwables.propagate(e);
+        }
+    }
+
+    private void maintain(Connection connection, String project, String collection)
+            throws SQLException
+    {
+        List<Partition> partitions = getPartitions(connection, project, collection);
+        boolean hasDefaultPartition = hasDefaultPartition(connection, project, collection);
+        createPartitions(connection, project, collection, partitions, hasDefaultPartition);
+        dropExpiredPartitions(connection, project, collection, partitions, hasDefaultPartition);
+    }
+
+    private void createPartitions(Connection connection, String project, String collection, List<Partition> partitions, boolean hasDefaultPartition)
+            throws SQLException
+    {
+        PostgresqlConfig.Partitioning granularity = getGranularity(partitions);
+        LocalDate today = LocalDate.now(clock);
+
+        LocalDate start = partitions.stream().map(p -> p.end).max(Comparator.naturalOrder())
+                .orElse(truncate(today, granularity));
+        LocalDate until = truncate(today, granularity);
+        for (int i = 0; i <= config.getPartitionPremake(); i++) {
+            until = next(until, granularity);
+        }
+
+        while (start.isBefore(until)) {
+            // the monthly partitions are aligned to the months, the days until the next month are created as daily partitions
+            PostgresqlConfig.Partitioning partitionGranularity = granularity == MONTHLY && start.getDayOfMonth() != 1 ? DAILY : granularity;
+            LocalDate end = next(start, partitionGranularity);
+            String partitionName = collection + "_p" + start.format(partitionGranularity == DAILY ? DAILY_SUFFIX : MONTHLY_SUFFIX);
+
+            if (hasDefaultPartition && hasRows(connection, project, collection + "_default", start, end)) {
+                createPartitionFromDefault(connection, project, collection, partitionName, start, end);
+            }
+            else {
+                try (Statement statement = connection.createStatement()) {
+                    statement.execute(format("CREATE TABLE IF NOT EXISTS \"%s\".%s PARTITION OF \"%s\".%s FOR VALUES FROM ('%s') TO ('%s')",
+                            project, checkCollection(partitionName), project, checkCollection(collection), start, end));
+                }
+            }
+            try (Statement statement = connection.createStatement()) {
+                statement.execute(format("CREATE INDEX IF NOT EXISTS %s ON \"%s\".%s USING BRIN (_time)",
+                        checkCollection(partitionName + "_time_brin"), project, checkCollection(partitionName)));
+            }
+            partitions.add(new Partition(partitionName, start, end, partitionGranularity, 0));
+            start = end;
+        }
+    }
+
+    /**
+     * Creates the partition as a standalone table, moves the rows of its range from the default partition and attaches
+     * it in a single transaction. The default partition is locked against writes until the partition is attached, so
+     * the events of the range that are collected in the meantime wait for the new partition instead of failing it.
+     */
+    private void createPartitionFromDefault(Connection connection, String project, String collection, String partitionName, LocalDate start, LocalDate end)
+            throws SQLException
+    {
+        boolean autoCommit = connection.getAutoCommit();
+        connection.setAutoCommit(false);
+        try (Statement statement = connection.createStatement()) {
+            statement.execute(format("LOCK TABLE \"%s\".%s IN SHARE ROW EXCLUSIVE MODE",
+                    project, checkCollection(collection + "_default")));
+            statement.execute(format("CREATE TABLE \"%s\".%s (LIKE \"%s\".%s INCLUDING DEFAULTS INCLUDING CONSTRAINTS)",
+                    project, checkCollection(partitionName), project, checkCollection(collection)));
+            int moved = statement.executeUpdate(format("WITH moved AS (DELETE FROM \"%s\".%s WHERE _time >= '%s' AND _time < '%s' RETURNING *) " +
+                            "INSERT INTO \"%s\".%s SELECT * FROM moved",
+                    project, checkCollection(collection + "_default"), start, end, project, checkCollection(partitionName)));
+            statement.execute(format("ALTER TABLE \"%s\".%s ATTACH PARTITION \"%s\".%s FOR VALUES FROM ('%s') TO ('%s')",
+                    project, checkCollection(collection), project, checkCollection(partitionName), start, end));
+            connection.commit();
+            LOGGER.info("Moved %d rows from the default partition of %s.%s to the partition %s", moved, project, collection, partitionName);
+        }
+        catch (SQLException e) {
+            connection.rollback();
+            throw e;
+        }
+        finally {
+            connection.setAutoCommit(autoCommit);
+        }
+    }
+
+    private void dropExpiredPartitions(Connection connection, String project, String collection, List<Partition> partitions, boolean hasDefaultPartition)
+            throws SQLException
+    {
+        if (config.getRetention() == null) {
+            return;
+        }
+
+        LocalDate cutoff = clock.instant().minusMillis(config.getRetention().toMillis())
+                .atZone(ZoneOffset.UTC).toLocalDate();
+        for (Partition partition : partitions) {
+            if (!partition.end.isAfter(cutoff)) {
+                try (Statement statement = connection.createStatement()) {
+                    statement.execute(format("DROP TABLE IF EXISTS \"%s\".%s", project, checkCollection(partition.name)));
+                }
+                LOGGER.info("Dropped partition %s.%s that is older than the retention period", project, partition.name);
+            }
+        }
+
+        // the default partition holds the events that are older than the first partition as well
+        if (hasDefaultPartition) {
+            try (Statement statement = connection.createStatement()) {
+                int deleted = statement.executeUpdate(format("DELETE FROM \"%s\".%s WHERE _time < '%s'",
+                        project, checkCollection(collection + "_default"), cutoff));
+                if (deleted > 0) {
+                    LOGGER.info("Deleted %d rows from the default partition of %s.%s that are older than the retention period", deleted, project, collection);
+                }
+            }
+        }
+    }
+
+    private boolean hasDefaultPartition(Connection connection, String project, String collection)
+            throws SQLException
+    {
+        try (PreparedStatement ps = connection.prepareStatement("SELECT 1\n" +
+                "FROM pg_catalog.pg_inherits i\n" +
+                "    JOIN pg_catalog.pg_class c ON c.oid = i.inhrelid\n" +
+                "    JOIN pg_catalog.pg_class p ON p.oid = i.inhparent\n" +
+                "    JOIN pg_catalog.pg_namespace n ON n.oid = p.relnamespace\n" +
+                "    WHERE n.nspname = ? AND p.relname = ? AND c.relname = ?")) {
+            ps.setString(1, project);
+            ps.setString(2, collection);
+            ps.setString(3, collection + "_default");
+            return ps.executeQuery().next();
+        }
+    }
+
+    private boolean hasRows(Connection connection, String project, String table, LocalDate start, LocalDate end)
+            throws SQLException
+    {
+        try (Statement statement = connection.createStatement()) {
+            return statement.executeQuery(format("SELECT 1 FROM \"%s\".%s WHERE _time >= '%s' AND _time < '%s' LIMIT 1",
+                    project, checkCollection(table), start, end)).next();
+        }
+    }
+
+    private PostgresqlConfig.Partitioning getGranularity(List<Partition> partitions)
+    {
+        if (config.getPartitioning() == DAILY || config.getPartitioning() == MONTHLY) {
+            return config.getPartitioning();
+        }
+
+        // AUTO: stay with the granularity of the latest partition, switch to daily partitions once a monthly partition gets large.
+        LocalDate today = LocalDate.now(clock);
+        Partition current = partitions.stream()
+                .filter(p -> !p.start.isAfter(today))
+                .max(Comparator.comparing(p -> p.start)).orElse(null);
+        if (current == null) {
+            return MONTHLY;
+        }
+        if (current.granularity == DAILY || current.rowCount > config.getDailyPartitionThreshold()) {
+            return DAILY;
+        }
+        return MONTHLY;
+    }
+
+    private List<Partition> getPartitions(Connection connection, String project, String collection)
+            throws SQLException
+    {
+        PreparedStatement ps = connection.prepareStatement("SELECT c.relname, c.reltuples\n" +
+                "FROM pg_catalog.pg_inherits i\n" +
+                "    JOIN pg_catalog.pg_class c ON c.oid = i.inhrelid\n" +
+                "    JOIN pg_catalog.pg_class p ON p.oid = i.inhparent\n" +
+                "    JOIN pg_catalog.pg_namespace n ON n.oid = p.relnamespace\n" +
+                "    WHERE n.nspname = ? AND p.relname = ?");
+        ps.setString(1, project);
+        ps.setString(2, collection);
+        ResultSet resultSet = ps.executeQuery();
+
+        List<Partition> partitions = new ArrayList<>();
+        while (resultSet.next()) {
+            String name = resultSet.getString(1);
+            Matcher matcher = PARTITION_SUFFIX.matcher(name);
+            // the default partition or a partition that is not created by us
+            if (!matcher.find()) {
+                continue;
+            }
+
+            String suffix = matcher.group(1);
+            LocalDate start;
+            PostgresqlConfig.Partitioning granularity;
+            if (suffix.length() == 8) {
+                start = LocalDate.parse(suffix, DAILY_SUFFIX);
+                granularity = DAILY;
+            }
+            else {
+                start = LocalDate.parse(suffix + "01", DAILY_SUFFIX);
+                granularity = MONTHLY;
+            }
+            partitions.add(new Partition(name, start, next(start, granularity), granularity,
+                    Math.max(resultSet.getLong(2), 0)));
+        }
+
+        return partitions;
+    }
+
+    private static LocalDate truncate(LocalDate date, PostgresqlConfig.Partitioning granularity)
+    {
+        return granularity == DAILY ? date : date.withDayOfMonth(1);
+    }
+
+    private static LocalDate next(LocalDate date, PostgresqlConfig.Partitioning granularity)
+    {
+        return granularity == DAILY ? date.plusDays(1) : date.plusMonths(1);
+    }
+
+    private static class Partition
+    {
+        private final String name;
+        private final LocalDate start;
+        private final LocalDate end;
+        private final PostgresqlConfig.Partitioning granularity;
+        private final long rowCount;
+
+        private Partition(String name, LocalDate start, LocalDate end, PostgresqlConfig.Partitioning granularity, long rowCount)
+        {
+            this.name = name;
+            this.start = start;
+            this.end = end;
+            this.granularity = granularity;
+            this.rowCount = rowCount;
+        }
+    }
+}
@@ -0,0 +1,102 @@
+package org.rakam.postgresql.analysis;
+
+import com.google.common.base.Throwables;
+import io.airlift.log.Logger;
+import org.rakam.analysis.JDBCPoolDataSource;
+import org.rakam.analysis.metadata.SchemaChange;
+import org.rakam.analysis.metadata.SchemaChangeBus;
+import org.rakam.postgresql.PostgresqlNotificationListener;
+import org.skife.jdbi.v2.DBI;
+import org.skife.jdbi.v2.Handle;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+
+import java.sql.SQLException;
+import java.util.UUID;
+import java.util.function.Consumer;
+
+/**
+ * Publishes the schema changes with NOTIFY and receives the changes of the other nodes from the shared
+ * {@link PostgresqlNotificationListener}, the listeners are notified with {@link SchemaChange#reset()} when its
+ * connection is re-established.
+ */
+public class PostgresqlSchemaChangeBus
+        implements SchemaChangeBus
+{
+    private final static Logger LOGGER = Logger.get(PostgresqlSchemaChangeBus.class);
+    private static final String CHANGE_CHANNEL = "rakam_schema_change";
+
+    private final String nodeId = UUID.randomUUID().toString();
+    private final DBI dbi;
+    private final PostgresqlNotificationListener notificationListener;
+
+    @Inject
+    public PostgresqlSchemaChangeBus(@Named("store.adapter.postgresql") JDBCPoolDataSource dataSource, PostgresqlNotificationListener notificationListener)
+    {
+        this.dbi = new DBI(dataSource);
+        this.notificationListener = notificationListener;
+    }
+
+    @Override
+    public boolean isDistributed()
+    {
+        return true;
+    }
+
+    @Override
+    public void publish(SchemaChange change)
+    {
+        // the names can't contain new lines since they're validated when the projects and collections are created
+        String payload = String.join("\n", nodeId, change.type.name(),
+                change.project == null ? "" : change.project,
+                change.collection == null ? "" : change.collection);
+        try (Handle handle = dbi.open()) {
+            handle.select("SELECT pg_notify(?, ?)", CHANGE_CHANNEL, payload);
+        }
+        catch (Exception e) {
+            LOGGER.error(e, "Unable to publish the schema change %s", change);
+        }
+    }
+
+    @Override
+    public void subscribe(Consumer<SchemaChange> listener)
+    {
+        try {
+            notificationListener.listen(CHANGE_CHANNEL, payload -> {
+                SchemaChange change = receive(payload);
+                if (change != null) {
+                    listener.accept(change);
+                }
+            }, () -> listener.accept(SchemaChange.reset()));
+        }
+        catch (SQLException e) {
+            throw Throwables.propagate(e);
+        }
+    }
+
+    private SchemaChange receive(String payload)
+    {
+        String[] parts = payload.split("\n", -1);
+        if (parts.length != 4) {
+            LOGGER.warn("Invalid schema change notification: %s", payload);
+            return null;
+        }
+        if (parts[0].equals(nodeId)) {
+            return null;
+        }
+
+        SchemaChange.Type type;
+        try {
+            type = SchemaChange.Type.valueOf(parts[1]);
+        }
+        catch (IllegalArgumentException e) {
+            // the notification is sent by a newer version
+            type = SchemaChange.Type.RESET;
+        }
+
+        return new SchemaChange(type,
+                parts[2].isEmpty() ? null : parts[2],
+                parts[3].isEmpty() ? null : parts[3]);
+    }
+}
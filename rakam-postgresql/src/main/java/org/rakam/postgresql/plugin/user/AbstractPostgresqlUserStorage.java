@@ -66,6 +66,7 @@ import static java.lang.String.format;
 import static org.rakam.collection.SchemaField.stripName;
 import static org.rakam.postgresql.analysis.PostgresqlMetastore.fromSql;
 import static org.rakam.report.QueryResult.TOTAL_RESULT;
+import static org.rakam.util.ValidationUtil.checkLiteral;
 import static org.rakam.util.ValidationUtil.checkProject;
 import static org.rakam.util.ValidationUtil.checkTableColumn;
 
@@ -519,6 +520,40 @@ public abstract class AbstractPostgresqlUserStorage
         }
     }
 
+    @Override
+    public CompletableFuture<QueryResult> searchUsersAfter(String project, Expression filterExpression, List<EventFilter> eventFilter, Object lastUserId, int limit)
+    {
+        checkProject(project);
+        List<SchemaField> metadata = getMetadata(project);
+
+        if (metadata.isEmpty()) {
+            return CompletableFuture.completedFuture(QueryResult.empty());
+        }
+        String columns = Joiner.on(", ").join(metadata.stream().map(col -> checkTableColumn(col.getName()))
+                .toArray());
+
+        LinkedList<String> filters = new LinkedList<>();
+        if (filterExpression != null) {
+            filters.add(new ExpressionFormatter.Formatter().process(filterExpression, true));
+        }
+
+        boolean isEventFilterActive = eventFilter != null && !eventFilter.isEmpty();
+        if (isEventFilterActive) {
+            filters.addAll(getEventFilterPredicate(project, eventFilter));
+        }
+
+        if (lastUserId != null) {
+            // the primary key index is used for both filtering and sorting so the cost of a page doesn't depend on its position
+            filters.add(format("%s > %s", PRIMARY_KEY, lastUserId instanceof Number ? lastUserId :
+                    "'" + checkLiteral(lastUserId.toString()) + "'"));
+        }
+
+        return (isEventFilterActive ? getExecutorForWithEventFilter() : queryExecutor)
+                .executeRawQuery(format("SELECT %s FROM %s %s ORDER BY %s LIMIT %s",
+                        columns, getUserTable(project, isEventFilterActive), filters.isEmpty() ? "" : " WHERE "
+                                + Joiner.on(" AND ").join(filters), PRIMARY_KEY, limit)).getResult();
+    }
+
     @Override
     public List<SchemaField> getMetadata(String project)
     {
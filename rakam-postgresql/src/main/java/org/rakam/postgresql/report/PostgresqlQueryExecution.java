@@ -8,6 +8,7 @@ import org.postgresql.util.PGobject;
 import org.rakam.analysis.JDBCPoolDataSource;
 import org.rakam.collection.FieldType;
 import org.rakam.collection.SchemaField;
+import org.rakam.report.ColumnarResult;
 import org.rakam.report.QueryError;
 import org.rakam.report.QueryExecution;
 import org.rakam.report.QueryResult;
@@ -28,7 +29,6 @@ import java.sql.Statement;
 import java.sql.Time;
 import java.sql.Timestamp;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.List;
 import java.util.concurrent.CompletableFuture;
 import java.util.function.Supplier;
@@ -138,7 +138,6 @@ public class PostgresqlQueryExecution
     private static QueryResult resultSetToQueryResult(ResultSet resultSet, long executionTimeInMillis)
     {
         List<SchemaField> columns;
-        List<List<Object>> data;
         try {
             ResultSetMetaData metaData = resultSet.getMetaData();
             int columnCount = metaData.getColumnCount();
@@ -149,9 +148,8 @@ public class PostgresqlQueryExecution
                         fromSql(metaData.getColumnType(i), metaData.getColumnTypeName(i))));
             }
 
-            ImmutableList.Builder<List<Object>> builder = ImmutableList.builder();
+            ColumnarResult.Builder builder = new ColumnarResult.Builder(columns);
             while (resultSet.next()) {
-                List<Object> rowBuilder = Arrays.asList(new Object[columnCount]);
                 for (int i = 0; i < columnCount; i++) {
                     Object object;
                     FieldType type = columns.get(i).getType();
@@ -159,19 +157,35 @@ public class PostgresqlQueryExecution
                         case STRING:
                             object = resultSet.getString(i + 1);
                             break;
+                        // the numeric values are appended to the builder without boxing
                         case LONG:
-                            object = resultSet.getLong(i + 1);
-                            break;
                         case INTEGER:
-                            object = resultSet.getInt(i + 1);
-                            break;
+                            long longValue = resultSet.getLong(i + 1);
+                            if (resultSet.wasNull()) {
+                                builder.appendNull(i);
+                            }
+                            else {
+                                builder.appendLong(i, longValue);
+                            }
+                            continue;
                         case DECIMAL:
                             BigDecimal bigDecimal = resultSet.getBigDecimal(i + 1);
-                            object = bigDecimal != null ? bigDecimal.doubleValue() : null;
-                            break;
+                            if (bigDecimal == null) {
+                                builder.appendNull(i);
+                            }
+                            else {
+                                builder.appendDouble(i, bigDecimal.doubleValue());
+                            }
+                            continue;
                         case DOUBLE:
-                            object = resultSet.getDouble(i + 1);
-                            break;
+                            double doubleValue = resultSet.getDouble(i + 1);
+                            if (resultSet.wasNull()) {
+                                builder.appendNull(i);
+                            }
+                            else {
+                                builder.appendDouble(i, doubleValue);
+                            }
+                            continue;
                         case BOOLEAN:
                             object = resultSet.getBoolean(i + 1);
                             break;
@@ -230,12 +244,10 @@ public class PostgresqlQueryExecution
                         object = null;
                     }
 
-                    rowBuilder.set(i, object);
+                    builder.append(i, object);
                 }
-                builder.add(rowBuilder);
             }
-            data = builder.build();
-            return new QueryResult(columns, data, ImmutableMap.of(EXECUTION_TIME, executionTimeInMillis));
+            return new QueryResult(columns, builder.build(), ImmutableMap.of(EXECUTION_TIME, executionTimeInMillis));
         }
         catch (SQLException e) {
             QueryError error = new QueryError(e.getMessage(), e.getSQLState(), e.getErrorCode(), null, null);
@@ -1,19 +1,31 @@
 package org.rakam.analysis;
 
 import org.rakam.TestingEnvironment;
+import org.rakam.analysis.ApiKeyService.AccessKeyType;
+import org.rakam.config.JDBCConfig;
 import org.rakam.postgresql.PostgresqlApiKeyService;
+import org.rakam.postgresql.PostgresqlNotificationListener;
+import org.rakam.postgresql.analysis.ApiKeyCacheConfig;
+import org.rakam.util.RakamException;
 import org.testng.annotations.AfterMethod;
-import org.testng.annotations.BeforeMethod;
 import org.testng.annotations.BeforeSuite;
+import org.testng.annotations.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
 
 public class TestPostgresqlApiKeyService extends TestApiKeyService
 {
     private PostgresqlApiKeyService apiKeyService;
+    private JDBCPoolDataSource apiKeyServiceDataSource;
 
     @BeforeSuite
     public void setup() {
         TestingEnvironment testingEnvironment = new TestingEnvironment();
-        JDBCPoolDataSource apiKeyServiceDataSource = JDBCPoolDataSource
+        apiKeyServiceDataSource = JDBCPoolDataSource
                 .getOrCreateDataSource(testingEnvironment.getPostgresqlConfig());
 
         apiKeyService = new PostgresqlApiKeyService(apiKeyServiceDataSource);
@@ -32,4 +44,101 @@ public class TestPostgresqlApiKeyService extends TestApiKeyService
         apiKeyService.clearCache();
     }
 
+    @Test
+    public void testRevokeFromOtherNode() throws Exception {
+        PostgresqlApiKeyService otherNode = new PostgresqlApiKeyService(apiKeyServiceDataSource);
+        otherNode.setup();
+        try {
+            ApiKeyService.ProjectApiKeys apiKeys = apiKeyService.createApiKeys("revoked_by_other_node");
+            assertEquals(apiKeyService.getProjectOfApiKey(apiKeys.writeKey(), AccessKeyType.WRITE_KEY), "revoked_by_other_node");
+
+            otherNode.revokeAllKeys("revoked_by_other_node");
+            apiKeyService.refresh();
+
+            try {
+                apiKeyService.getProjectOfApiKey(apiKeys.writeKey(), AccessKeyType.WRITE_KEY);
+                fail();
+            }
+            catch (RakamException e) {
+            }
+        }
+        finally {
+            otherNode.stop();
+        }
+    }
+
+    @Test
+    public void testRevocationIsNotified() throws Exception {
+        JDBCConfig config = new TestingEnvironment().getPostgresqlConfig();
+        PostgresqlNotificationListener listener = new PostgresqlNotificationListener(new JDBCConfig()
+                .setUrl("jdbc:pgsql" + config.getUrl().substring("jdbc:postgresql".length()))
+                .setUsername(config.getUsername())
+                .setPassword(config.getPassword()));
+        PostgresqlApiKeyService notifiedNode = new PostgresqlApiKeyService(apiKeyServiceDataSource, new ApiKeyCacheConfig(), listener);
+        notifiedNode.setup();
+        try {
+            ApiKeyService.ProjectApiKeys apiKeys = apiKeyService.createApiKeys("revocation_notification");
+            assertEquals(notifiedNode.getProjectOfApiKey(apiKeys.writeKey(), AccessKeyType.WRITE_KEY), "revocation_notification");
+
+            apiKeyService.revokeAllKeys("revocation_notification");
+
+            // the node doesn't poll the changes, it reads them when the notification is received
+            long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(10);
+            while (true) {
+                try {
+                    notifiedNode.getProjectOfApiKey(apiKeys.writeKey(), AccessKeyType.WRITE_KEY);
+                }
+                catch (RakamException e) {
+                    break;
+                }
+                assertTrue(System.currentTimeMillis() < deadline, "the revocation is not received");
+                Thread.sleep(50);
+            }
+        }
+        finally {
+            notifiedNode.stop();
+            listener.close();
+        }
+    }
+
+    @Test
+    public void testBloomFilter() throws Exception {
+        PostgresqlApiKeyService bloomFilterNode = new PostgresqlApiKeyService(apiKeyServiceDataSource,
+                new ApiKeyCacheConfig().setBloomFilterEnabled(true).setBloomFilterExpectedKeys(1000));
+        bloomFilterNode.setup();
+        try {
+            try {
+                bloomFilterNode.getProjectOfApiKey("invalidKey", AccessKeyType.READ_KEY);
+                fail();
+            }
+            catch (RakamException e) {
+            }
+
+            // the keys that are created by the other nodes are added to the filter when the changes are polled
+            ApiKeyService.ProjectApiKeys apiKeys = apiKeyService.createApiKeys("bloom_filter");
+            bloomFilterNode.refresh();
+            assertEquals(bloomFilterNode.getProjectOfApiKey(apiKeys.readKey(), AccessKeyType.READ_KEY), "bloom_filter");
+        }
+        finally {
+            apiKeyService.revokeAllKeys("bloom_filter");
+            bloomFilterNode.stop();
+        }
+    }
+
+    @Test
+    public void testBloomFilterReloadsMissingKey() throws Exception {
+        PostgresqlApiKeyService bloomFilterNode = new PostgresqlApiKeyService(apiKeyServiceDataSource,
+                new ApiKeyCacheConfig().setBloomFilterEnabled(true).setBloomFilterExpectedKeys(1000)
+                        .setBloomFilterReloadInterval("0s"));
+        bloomFilterNode.setup();
+        try {
+            // the key is created by the other node after the last poll
+            ApiKeyService.ProjectApiKeys apiKeys = apiKeyService.createApiKeys("bloom_filter_reload");
+            assertEquals(bloomFilterNode.getProjectOfApiKey(apiKeys.writeKey(), AccessKeyType.WRITE_KEY), "bloom_filter_reload");
+        }
+        finally {
+            apiKeyService.revokeAllKeys("bloom_filter_reload");
+            bloomFilterNode.stop();
+        }
+    }
 }
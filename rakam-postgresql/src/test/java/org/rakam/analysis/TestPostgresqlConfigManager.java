@@ -0,0 +1,96 @@
+package org.rakam.analysis;
+
+import org.rakam.TestingEnvironment;
+import org.rakam.config.ConfigManagerCacheConfig;
+import org.rakam.config.JDBCConfig;
+import org.rakam.postgresql.PostgresqlConfigManager;
+import org.rakam.postgresql.PostgresqlNotificationListener;
+import org.testng.annotations.AfterSuite;
+import org.testng.annotations.BeforeSuite;
+import org.testng.annotations.Test;
+
+import java.util.AbstractMap.SimpleImmutableEntry;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+public class TestPostgresqlConfigManager
+{
+    private PostgresqlConfigManager node1;
+    private PostgresqlConfigManager node2;
+    private PostgresqlNotificationListener listener1;
+    private PostgresqlNotificationListener listener2;
+
+    @BeforeSuite
+    public void setup()
+            throws Exception
+    {
+        JDBCConfig config = new TestingEnvironment().getPostgresqlConfig();
+        JDBCPoolDataSource dataSource = JDBCPoolDataSource.getOrCreateDataSource(config);
+        JDBCConfig asyncConfig = new JDBCConfig()
+                .setUrl("jdbc:pgsql" + config.getUrl().substring("jdbc:postgresql".length()))
+                .setUsername(config.getUsername())
+                .setPassword(config.getPassword());
+
+        listener1 = new PostgresqlNotificationListener(asyncConfig);
+        listener2 = new PostgresqlNotificationListener(asyncConfig);
+        node1 = new PostgresqlConfigManager(dataSource, listener1);
+        node2 = new PostgresqlConfigManager(dataSource, listener2);
+        node1.setup();
+    }
+
+    @AfterSuite
+    public void tearDown()
+    {
+        node1.clear();
+        listener1.close();
+        listener2.close();
+    }
+
+    @Test
+    public void testSetConfigOverwritesValue()
+            throws Exception
+    {
+        // the email campaigns store their progress under the same key after each page
+        node1.setConfig("project", "test_overwrite", "first");
+        node1.setConfig("project", "test_overwrite", "second");
+
+        assertEquals(node1.getConfig("project", "test_overwrite", String.class), "second");
+        assertEquals(node1.setConfigOnce("project", "test_overwrite", "third"), "second");
+    }
+
+    @Test
+    public void testChangeNotification()
+            throws Exception
+    {
+        BlockingQueue<Map.Entry<String, String>> changes = new LinkedBlockingQueue<>();
+        assertTrue(node2.addChangeListener((project, configName) -> changes.add(new SimpleImmutableEntry<>(project, configName))));
+
+        node1.setConfig("project", "test_notification", "value");
+
+        assertEquals(changes.poll(10, TimeUnit.SECONDS), new SimpleImmutableEntry<>("project", "test_notification"));
+    }
+
+    @Test
+    public void testCachedConfigIsInvalidated()
+            throws Exception
+    {
+        CachingConfigManager cachingNode2 = new CachingConfigManager(node2, new ConfigManagerCacheConfig());
+
+        node1.setConfig("project", "test_cache", "value");
+        assertEquals(cachingNode2.getConfig("project", "test_cache", String.class), "value");
+
+        node1.setConfig("project", "test_cache", "changed");
+
+        // the configs are cached until they're changed so the new value is only read after the notification
+        long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(10);
+        while (!"changed".equals(cachingNode2.getConfig("project", "test_cache", String.class))) {
+            assertTrue(System.currentTimeMillis() < deadline, "the config change is not received");
+            Thread.sleep(50);
+        }
+    }
+}
@@ -0,0 +1,107 @@
+package org.rakam.analysis;
+
+import com.google.common.collect.ImmutableMap;
+import org.rakam.TestingEnvironment;
+import org.rakam.postgresql.analysis.PostgresqlConfig;
+import org.rakam.postgresql.analysis.PostgresqlPartitionMaintainer;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.BeforeSuite;
+import org.testng.annotations.Test;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.Clock;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.rakam.postgresql.analysis.PostgresqlConfig.Partitioning.MONTHLY;
+import static org.testng.Assert.assertEquals;
+
+public class TestPostgresqlPartitionMaintainer
+{
+    private static final String PROJECT = "partition_maintainer_test";
+    private static final Clock CLOCK = Clock.fixed(Instant.parse("2016-03-15T00:00:00Z"), ZoneOffset.UTC);
+
+    private JDBCPoolDataSource dataSource;
+
+    @BeforeSuite
+    public void setup()
+            throws Exception
+    {
+        dataSource = JDBCPoolDataSource.getOrCreateDataSource(new TestingEnvironment().getPostgresqlConfig(), "set time zone 'UTC'");
+    }
+
+    @BeforeMethod
+    public void setupMethod()
+            throws SQLException
+    {
+        try (Connection connection = dataSource.getConnection(); Statement statement = connection.createStatement()) {
+            statement.execute("CREATE SCHEMA " + PROJECT);
+            statement.execute("CREATE TABLE " + PROJECT + ".test (id BIGINT, _time TIMESTAMP) PARTITION BY RANGE (_time)");
+            statement.execute("CREATE TABLE " + PROJECT + ".test_default PARTITION OF " + PROJECT + ".test DEFAULT");
+        }
+    }
+
+    @AfterMethod
+    public void tearDownMethod()
+            throws SQLException
+    {
+        try (Connection connection = dataSource.getConnection(); Statement statement = connection.createStatement()) {
+            statement.execute("DROP SCHEMA " + PROJECT + " CASCADE");
+        }
+    }
+
+    @Test
+    public void testRowsAreMovedFromDefaultPartition()
+            throws SQLException
+    {
+        execute("INSERT INTO " + PROJECT + ".test VALUES (1, '2016-03-10'), (2, '2016-04-02'), (3, '2016-01-01')");
+
+        PostgresqlConfig config = new PostgresqlConfig().setPartitioning(MONTHLY).setPartitionPremake(1);
+        new PostgresqlPartitionMaintainer(dataSource, config, CLOCK).maintain();
+
+        assertEquals(getPartitionsOfRows(), ImmutableMap.of(
+                1L, "test_p201603",
+                2L, "test_p201604",
+                3L, "test_default"));
+    }
+
+    @Test
+    public void testRetentionPurgesDefaultPartition()
+            throws SQLException
+    {
+        execute("INSERT INTO " + PROJECT + ".test VALUES (1, '2016-03-10'), (2, '2015-01-01')");
+
+        PostgresqlConfig config = new PostgresqlConfig().setPartitioning(MONTHLY).setPartitionPremake(1).setRetention("30d");
+        new PostgresqlPartitionMaintainer(dataSource, config, CLOCK).maintain();
+
+        assertEquals(getPartitionsOfRows(), ImmutableMap.of(1L, "test_p201603"));
+    }
+
+    private void execute(String query)
+            throws SQLException
+    {
+        try (Connection connection = dataSource.getConnection(); Statement statement = connection.createStatement()) {
+            statement.execute(query);
+        }
+    }
+
+    private Map<Long, String> getPartitionsOfRows()
+            throws SQLException
+    {
+        Map<Long, String> partitions = new HashMap<>();
+        try (Connection connection = dataSource.getConnection(); Statement statement = connection.createStatement()) {
+            ResultSet resultSet = statement.executeQuery("SELECT id, c.relname FROM " + PROJECT + ".test t " +
+                    "JOIN pg_catalog.pg_class c ON c.oid = t.tableoid");
+            while (resultSet.next()) {
+                partitions.put(resultSet.getLong(1), resultSet.getString(2));
+            }
+        }
+        return partitions;
+    }
+}
@@ -0,0 +1,80 @@
+package org.rakam.analysis;
+
+import com.google.common.collect.ImmutableMap;
+import org.rakam.TestingEnvironment;
+import org.rakam.analysis.metadata.JDBCQueryMetadata;
+import org.rakam.plugin.MaterializedView;
+import org.testng.annotations.AfterSuite;
+import org.testng.annotations.BeforeSuite;
+import org.testng.annotations.Test;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.concurrent.CompletableFuture;
+
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+
+public class TestPostgresqlQueryMetadataLease
+{
+    private static final String PROJECT_NAME = TestPostgresqlQueryMetadataLease.class.getName().replace(".", "_").toLowerCase();
+
+    private JDBCQueryMetadata metadata;
+    private JDBCQueryMetadata otherNode;
+
+    @BeforeSuite
+    public void setup()
+            throws Exception
+    {
+        JDBCPoolDataSource dataSource = JDBCPoolDataSource.getOrCreateDataSource(new TestingEnvironment().getPostgresqlConfig());
+        metadata = new JDBCQueryMetadata(dataSource);
+        otherNode = new JDBCQueryMetadata(dataSource);
+        metadata.setup();
+        metadata.createMaterializedView(PROJECT_NAME, new MaterializedView("test", "test", "select 1",
+                Duration.ofMinutes(1), false, ImmutableMap.of()));
+    }
+
+    @AfterSuite
+    public void tearDown()
+    {
+        metadata.deleteMaterializedView(PROJECT_NAME, "test");
+        metadata.destroy();
+        otherNode.destroy();
+    }
+
+    @Test
+    public void testLeaseIsReleasedWhenRefreshFails()
+            throws Exception
+    {
+        MaterializedView view = metadata.getMaterializedView(PROJECT_NAME, "test");
+
+        CompletableFuture<Instant> refresh = new CompletableFuture<>();
+        assertTrue(metadata.updateMaterializedView(PROJECT_NAME, view, refresh));
+        assertFalse(metadata.updateMaterializedView(PROJECT_NAME, view, new CompletableFuture<>()));
+
+        refresh.completeExceptionally(new IllegalStateException("the refresh query couldn't be planned"));
+        assertNull(view.lastUpdate);
+
+        CompletableFuture<Instant> retry = new CompletableFuture<>();
+        assertTrue(metadata.updateMaterializedView(PROJECT_NAME, view, retry));
+        retry.complete(null);
+    }
+
+    @Test
+    public void testLeaseIsCheckedBeforeWrite()
+            throws Exception
+    {
+        MaterializedView view = metadata.getMaterializedView(PROJECT_NAME, "test");
+        MaterializedView otherView = otherNode.getMaterializedView(PROJECT_NAME, "test");
+
+        CompletableFuture<Instant> refresh = new CompletableFuture<>();
+        assertTrue(metadata.updateMaterializedView(PROJECT_NAME, view, refresh));
+        assertTrue(metadata.isRefreshLeaseHeld(PROJECT_NAME, view));
+        // the lease is owned by the node that claimed the refresh
+        assertFalse(otherNode.isRefreshLeaseHeld(PROJECT_NAME, otherView));
+
+        refresh.complete(null);
+        assertFalse(metadata.isRefreshLeaseHeld(PROJECT_NAME, view));
+    }
+}
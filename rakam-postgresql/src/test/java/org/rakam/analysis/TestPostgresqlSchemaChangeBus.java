@@ -0,0 +1,104 @@
+package org.rakam.analysis;
+
+import com.google.common.collect.ImmutableSet;
+import com.google.common.eventbus.EventBus;
+import org.rakam.TestingEnvironment;
+import org.rakam.analysis.metadata.SchemaChange;
+import org.rakam.collection.FieldDependencyBuilder;
+import org.rakam.collection.SchemaField;
+import org.rakam.config.JDBCConfig;
+import org.rakam.config.SchemaVerificationConfig;
+import org.rakam.postgresql.PostgresqlNotificationListener;
+import org.rakam.postgresql.analysis.PostgresqlConfig;
+import org.rakam.postgresql.analysis.PostgresqlMetastore;
+import org.rakam.postgresql.analysis.PostgresqlPartitionMaintainer;
+import org.rakam.postgresql.analysis.PostgresqlSchemaChangeBus;
+import org.testng.annotations.BeforeSuite;
+import org.testng.annotations.Test;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.rakam.collection.FieldType.LONG;
+import static org.rakam.collection.FieldType.STRING;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+
+public class TestPostgresqlSchemaChangeBus
+{
+    private static final String PROJECT = "schema_change_test";
+
+    private JDBCPoolDataSource dataSource;
+    private JDBCConfig asyncConfig;
+
+    @BeforeSuite
+    public void setup()
+            throws Exception
+    {
+        JDBCConfig config = new TestingEnvironment().getPostgresqlConfig();
+        dataSource = JDBCPoolDataSource.getOrCreateDataSource(config, "set time zone 'UTC'");
+        asyncConfig = new JDBCConfig()
+                .setUrl("jdbc:pgsql" + config.getUrl().substring("jdbc:postgresql".length()))
+                .setUsername(config.getUsername())
+                .setPassword(config.getPassword());
+    }
+
+    @Test
+    public void testChangesOfOtherNodes()
+            throws Exception
+    {
+        PostgresqlNotificationListener listener1 = new PostgresqlNotificationListener(asyncConfig);
+        PostgresqlNotificationListener listener2 = new PostgresqlNotificationListener(asyncConfig);
+        PostgresqlSchemaChangeBus node1 = new PostgresqlSchemaChangeBus(dataSource, listener1);
+        PostgresqlSchemaChangeBus node2 = new PostgresqlSchemaChangeBus(dataSource, listener2);
+        try {
+            BlockingQueue<SchemaChange> node1Changes = new LinkedBlockingQueue<>();
+            BlockingQueue<SchemaChange> node2Changes = new LinkedBlockingQueue<>();
+            node1.subscribe(node1Changes::add);
+            node2.subscribe(node2Changes::add);
+
+            SchemaChange change = new SchemaChange(SchemaChange.Type.COLLECTION_FIELD_CREATED, PROJECT, "test");
+            node1.publish(change);
+
+            assertEquals(node2Changes.poll(10, TimeUnit.SECONDS), change);
+            // the nodes don't receive their own changes
+            assertNull(node1Changes.poll(1, TimeUnit.SECONDS));
+        }
+        finally {
+            listener1.close();
+            listener2.close();
+        }
+    }
+
+    @Test
+    public void testCachedSchemaIsInvalidated()
+            throws Exception
+    {
+        InMemorySchemaChangeBus bus = new InMemorySchemaChangeBus();
+        FieldDependencyBuilder.FieldDependency fieldDependency = new FieldDependencyBuilder().build();
+        PostgresqlPartitionMaintainer partitionMaintainer = new PostgresqlPartitionMaintainer(dataSource, new PostgresqlConfig());
+
+        PostgresqlMetastore node1 = new PostgresqlMetastore(dataSource, new EventBus(), fieldDependency, partitionMaintainer, bus, new SchemaVerificationConfig());
+        PostgresqlMetastore node2 = new PostgresqlMetastore(dataSource, new EventBus(), fieldDependency, partitionMaintainer, bus, new SchemaVerificationConfig());
+
+        node1.createProject(PROJECT);
+        try {
+            assertTrue(node2.getCollectionNames(PROJECT).isEmpty());
+
+            node1.getOrCreateCollectionFieldList(PROJECT, "test", ImmutableSet.of(new SchemaField("a", STRING)));
+            assertEquals(node2.getCollectionNames(PROJECT), ImmutableSet.of("test"));
+            assertEquals(ImmutableSet.copyOf(node2.getCollection(PROJECT, "test")), ImmutableSet.of(new SchemaField("a", STRING)));
+
+            node1.getOrCreateCollectionFieldList(PROJECT, "test", ImmutableSet.of(new SchemaField("b", LONG)));
+            assertEquals(ImmutableSet.copyOf(node2.getCollection(PROJECT, "test")),
+                    ImmutableSet.of(new SchemaField("a", STRING), new SchemaField("b", LONG)));
+        }
+        finally {
+            node1.deleteProject(PROJECT);
+        }
+
+        assertTrue(node2.getCollectionNames(PROJECT).isEmpty());
+    }
+}
@@ -7,9 +7,11 @@ import org.rakam.analysis.InMemoryEventStore;
 import org.rakam.analysis.InMemoryQueryMetadataStore;
 import org.rakam.analysis.JDBCPoolDataSource;
 import org.rakam.analysis.metadata.Metastore;
+import org.rakam.config.JDBCConfig;
 import org.rakam.plugin.user.AbstractUserService;
 import org.rakam.plugin.user.UserPluginConfig;
 import org.rakam.postgresql.PostgresqlConfigManager;
+import org.rakam.postgresql.PostgresqlNotificationListener;
 import org.rakam.postgresql.analysis.PostgresqlMaterializedViewService;
 import org.rakam.postgresql.analysis.PostgresqlMetastore;
 import org.rakam.postgresql.plugin.user.PostgresqlUserService;
@@ -47,7 +49,12 @@ public class TestPostgresqlUserStorage
 
         PostgresqlMaterializedViewService materializedViewService = new PostgresqlMaterializedViewService(queryExecutor, queryMetadataStore);
 
-        configManager = new PostgresqlConfigManager(dataSource);
+        JDBCConfig config = testingPostgresqlServer.getPostgresqlConfig();
+        PostgresqlNotificationListener notificationListener = new PostgresqlNotificationListener(new JDBCConfig()
+                .setUrl("jdbc:pgsql" + config.getUrl().substring("jdbc:postgresql".length()))
+                .setUsername(config.getUsername())
+                .setPassword(config.getPassword()));
+        configManager = new PostgresqlConfigManager(dataSource, notificationListener);
         configManager.setup();
         InMemoryEventStore inMemoryEventStore = new InMemoryEventStore();
         PostgresqlUserStorage userStorage = new PostgresqlUserStorage(materializedViewService, configManager, queryExecutor);
@@ -11,7 +11,6 @@ import com.google.inject.multibindings.Multibinder;
 import com.google.inject.multibindings.OptionalBinder;
 import com.google.inject.name.Names;
 import org.rakam.analysis.ApiKeyService;
-import org.rakam.analysis.ConfigManager;
 import org.rakam.analysis.ContinuousQueryService;
 import org.rakam.analysis.EscapeIdentifier;
 import org.rakam.analysis.EventExplorer;
@@ -38,6 +37,7 @@ import org.rakam.plugin.stream.EventStream;
 import org.rakam.plugin.stream.EventStreamConfig;
 import org.rakam.plugin.user.AbstractUserService;
 import org.rakam.plugin.user.UserPluginConfig;
+import org.rakam.postgresql.analysis.ApiKeyCacheConfig;
 import org.rakam.postgresql.analysis.JDBCApiKeyService;
 import org.rakam.postgresql.plugin.user.AbstractPostgresqlUserStorage;
 import org.rakam.presto.analysis.MysqlConfigManager;
@@ -93,7 +93,8 @@ public class PrestoModule extends RakamModule {
                 .setBinding().to(PrestoCopyEvent.class);
         JDBCPoolDataSource metadataDataSource = bindJDBCConfig(binder, "presto.metastore.jdbc");
 
-        binder.bind(ApiKeyService.class).toInstance(new JDBCApiKeyService(metadataDataSource));
+        binder.bind(ApiKeyService.class).toInstance(new JDBCApiKeyService(metadataDataSource,
+                buildConfigObject(ApiKeyCacheConfig.class)));
         binder.bind(new TypeLiteral<List<AggregationType>>(){}).annotatedWith(RealtimeAggregations.class)
                 .toInstance(ImmutableList.of(
                         AggregationType.COUNT,
@@ -110,7 +111,7 @@ public class PrestoModule extends RakamModule {
                     .annotatedWith(Names.named("report.metadata.store.jdbc"))
                     .toInstance(metadataDataSource);
 
-            binder.bind(ConfigManager.class).to(MysqlConfigManager.class);
+            bindConfigManager(MysqlConfigManager.class);
             binder.bind(QueryMetadataStore.class).to(JDBCQueryMetadata.class)
                     .in(Scopes.SINGLETON);
         }
@@ -2,7 +2,6 @@ package org.rakam.presto.analysis;
 
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Throwables;
-import com.google.common.cache.CacheBuilder;
 import com.google.common.cache.CacheLoader;
 import com.google.common.cache.LoadingCache;
 import com.google.common.collect.ImmutableList;
@@ -14,9 +13,12 @@ import com.google.inject.name.Named;
 import io.netty.handler.codec.http.HttpResponseStatus;
 import org.rakam.analysis.JDBCPoolDataSource;
 import org.rakam.analysis.metadata.AbstractMetastore;
+import org.rakam.analysis.metadata.SchemaChange;
+import org.rakam.analysis.metadata.SchemaChangeBus;
 import org.rakam.collection.FieldDependencyBuilder;
 import org.rakam.collection.FieldType;
 import org.rakam.collection.SchemaField;
+import org.rakam.config.SchemaVerificationConfig;
 import org.rakam.util.NotExistsException;
 import org.rakam.util.ProjectCollection;
 import org.skife.jdbi.v2.DBI;
@@ -56,13 +58,15 @@ public class JDBCMetastore extends AbstractMetastore {
     private final LoadingCache<String, Set<String>> collectionCache;
     private final ConnectionFactory prestoConnectionFactory;
     private final PrestoConfig config;
+    private final SchemaVerificationConfig schemaVerificationConfig;
     private static final Map<String, FieldType> REVERSE_TYPE_MAP = Arrays.asList(FieldType.values()).stream()
             .collect(Collectors.toMap(JDBCMetastore::toSql, a -> a));
 
     @Inject
-    public JDBCMetastore(@Named("presto.metastore.jdbc") JDBCPoolDataSource dataSource, PrestoConfig config, EventBus eventBus, FieldDependencyBuilder.FieldDependency fieldDependency) {
-        super(fieldDependency, eventBus);
+    public JDBCMetastore(@Named("presto.metastore.jdbc") JDBCPoolDataSource dataSource, PrestoConfig config, EventBus eventBus, FieldDependencyBuilder.FieldDependency fieldDependency, SchemaChangeBus schemaChangeBus, SchemaVerificationConfig schemaVerificationConfig) {
+        super(fieldDependency, eventBus, schemaChangeBus);
         this.config = config;
+        this.schemaVerificationConfig = schemaVerificationConfig;
 
         this.prestoConnectionFactory = () -> {
             Properties properties = new Properties();
@@ -72,7 +76,7 @@ public class JDBCMetastore extends AbstractMetastore {
         };
         dbi = new DBI(dataSource);
 
-        schemaCache = CacheBuilder.newBuilder().expireAfterWrite(20, TimeUnit.MINUTES)
+        schemaCache = newSchemaCacheBuilder(20, TimeUnit.MINUTES)
                 .build(new CacheLoader<ProjectCollection, List<SchemaField>>() {
                     @Override
                     public List<SchemaField> load(ProjectCollection key) throws Exception {
@@ -88,7 +92,7 @@ public class JDBCMetastore extends AbstractMetastore {
                     }
                 });
 
-        collectionCache = CacheBuilder.newBuilder().expireAfterWrite(20, TimeUnit.MINUTES).build(new CacheLoader<String, Set<String>>() {
+        collectionCache = newSchemaCacheBuilder(20, TimeUnit.MINUTES).build(new CacheLoader<String, Set<String>>() {
             @Override
             public Set<String> load(String project) throws Exception {
                 try (Connection conn = prestoConnectionFactory.openConnection()) {
@@ -108,12 +112,34 @@ public class JDBCMetastore extends AbstractMetastore {
             }
         });
 
+        subscribeSchemaChanges();
+    }
+
+    @Override
+    protected void onSchemaChange(SchemaChange change) {
+        switch (change.type) {
+            case PROJECT_CREATED:
+            case PROJECT_DELETED:
+                collectionCache.invalidate(change.project);
+                schemaCache.asMap().keySet().removeIf(key -> key.project.equals(change.project));
+                break;
+            case COLLECTION_CREATED:
+                collectionCache.invalidate(change.project);
+                schemaCache.invalidate(new ProjectCollection(change.project, change.collection));
+                break;
+            case COLLECTION_FIELD_CREATED:
+                schemaCache.invalidate(new ProjectCollection(change.project, change.collection));
+                break;
+            default:
+                collectionCache.invalidateAll();
+                schemaCache.invalidateAll();
+        }
     }
 
     @PostConstruct
     public void setup() {
         setupTables();
-        super.checkExistingSchema();
+        super.checkExistingSchema(schemaVerificationConfig);
     }
 
     private void setupTables() {
@@ -155,6 +181,7 @@ public class JDBCMetastore extends AbstractMetastore {
                     .execute();
         }
 
+        collectionCache.invalidate(project);
         super.onCreateProject(project);
     }
 
@@ -229,6 +256,7 @@ public class JDBCMetastore extends AbstractMetastore {
                 }
                 query = format("CREATE TABLE %s.\"%s\".\"%s\" (%s) WITH (temporal_column = '_time') ", config.getColdStorageConnector(), project, collection, queryEnd);
                 connection.createStatement().execute(query);
+                collectionCache.invalidate(project);
 
                 task = () -> super.onCreateCollection(project, collection, schemaFields);
             } else {
@@ -1,6 +1,5 @@
 package org.rakam.presto.analysis;
 
-import com.google.common.base.Throwables;
 import com.google.inject.name.Named;
 import org.rakam.analysis.ConfigManager;
 import org.rakam.analysis.JDBCPoolDataSource;
@@ -12,6 +11,8 @@ import javax.annotation.PostConstruct;
 import javax.inject.Inject;
 import java.util.Locale;
 
+import static java.lang.String.format;
+
 public class MysqlConfigManager implements ConfigManager {
 
     private final DBI dbi;
@@ -48,26 +49,19 @@ public class MysqlConfigManager implements ConfigManager {
     @Override
     public <T> T setConfigOnce(String project, String configName, T value) {
         try (Handle handle = dbi.open()) {
-            T config = getConfig(project, configName, (Class<T>) value.getClass());
+            int inserted = handle.createStatement("INSERT IGNORE INTO config (project, name, value) VALUES (:project, :name, :value)")
+                    .bind("project", project)
+                    .bind("name", configName.toUpperCase(Locale.ENGLISH))
+                    .bind("value", JsonHelper.encode(value)).execute();
+            if (inserted > 0) {
+                return value;
+            }
 
-            if(config == null) {
-                try {
-                    handle.createStatement("INSERT INTO config (project, name, value) VALUES (:project, :name, :value)")
-                            .bind("project", project)
-                            .bind("name", configName.toUpperCase(Locale.ENGLISH))
-                            .bind("value", JsonHelper.encode(value)).execute();
-                    return value;
-                } catch (Exception e) {
-                    // handle race condition
-                    T lastValue = getConfig(project, configName, (Class<T>) value.getClass());
-                    if(lastValue == null) {
-                        throw Throwables.propagate(e);
-                    }
-                    return lastValue;
-                }
-            } else {
-                return config;
+            T lastValue = getConfig(project, configName, (Class<T>) value.getClass());
+            if (lastValue == null) {
+                throw new IllegalStateException(format("Unable to set config %s of project %s", configName, project));
             }
+            return lastValue;
         }
     }
 
@@ -82,14 +76,11 @@ public class MysqlConfigManager implements ConfigManager {
     @Override
     public <T> void setConfig(String project, String configName, T value) {
         try (Handle handle = dbi.open()) {
-            try {
-                handle.createStatement("INSERT INTO config (project, name, value) VALUES (:project, :name, :value)")
-                        .bind("project", project)
-                        .bind("name", configName.toUpperCase(Locale.ENGLISH))
-                        .bind("value", JsonHelper.encode(value)).execute();
-            } catch (Exception e) {
-                e.printStackTrace();
-            }
+            handle.createStatement("INSERT INTO config (project, name, value) VALUES (:project, :name, :value) " +
+                    "ON DUPLICATE KEY UPDATE value = VALUES(value)")
+                    .bind("project", project)
+                    .bind("name", configName.toUpperCase(Locale.ENGLISH))
+                    .bind("value", JsonHelper.encode(value)).execute();
         }
     }
 }
@@ -19,19 +19,18 @@ import org.rakam.analysis.MaterializedViewService;
 import org.rakam.analysis.metadata.QueryMetadataStore;
 import org.rakam.collection.SchemaField;
 import org.rakam.plugin.MaterializedView;
+import org.rakam.report.QueryError;
 import org.rakam.report.QueryExecution;
 import org.rakam.report.QueryExecutor;
 import org.rakam.report.QueryResult;
+import org.rakam.report.QueryStats;
 import org.rakam.util.QueryFormatter;
 import org.rakam.util.RakamException;
 import org.skife.jdbi.v2.DBI;
 
 import javax.inject.Inject;
 
-import java.time.Clock;
-import java.time.Duration;
 import java.time.Instant;
-import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
@@ -44,9 +43,11 @@ import static io.netty.handler.codec.http.HttpResponseStatus.BAD_REQUEST;
 import static io.netty.handler.codec.http.HttpResponseStatus.INTERNAL_SERVER_ERROR;
 import static java.lang.String.format;
 import static java.time.format.DateTimeFormatter.ISO_INSTANT;
+import static java.util.concurrent.CompletableFuture.completedFuture;
 
 public class PrestoMaterializedViewService extends MaterializedViewService {
     public final static String MATERIALIZED_VIEW_PREFIX = "$materialized_";
+    private final static String STAGING_TABLE_PREFIX = "$staging_materialized_";
     public final static SqlParser sqlParser = new SqlParser();
     private final static Logger LOGGER = Logger.get(PrestoMaterializedViewService.class);
 
@@ -123,6 +124,7 @@ public class PrestoMaterializedViewService extends MaterializedViewService {
                 throw new RakamException(result.getError().message, HttpResponseStatus.INTERNAL_SERVER_ERROR);
             } else {
                 database.createMaterializedView(project, materializedView);
+                viewChanged(project, materializedView.tableName);
                 return;
             }
         });
@@ -135,6 +137,7 @@ public class PrestoMaterializedViewService extends MaterializedViewService {
         String reference = queryExecutor.formatTableReference(project, QualifiedName.of("materialized", materializedView.tableName));
         return queryExecutor.executeRawQuery(format("DROP TABLE %s",
                 reference)).getResult().thenApply(result -> {
+            viewChanged(project, name);
             if (result.isFailed()) {
                 throw new RakamException("Error while deleting materialized table: " + result.getError().toString(), INTERNAL_SERVER_ERROR);
             }
@@ -146,70 +149,157 @@ public class PrestoMaterializedViewService extends MaterializedViewService {
     public MaterializedViewExecution lockAndUpdateView(String project, MaterializedView materializedView) {
         CompletableFuture<Instant> f = new CompletableFuture<>();
 
-        String tableName = queryExecutor.formatTableReference(project,
-                QualifiedName.of("materialized", materializedView.tableName));
-        Query statement;
-        synchronized (sqlParser) {
-            statement = (Query) sqlParser.createStatement(materializedView.query);
+        if (!database.updateMaterializedView(project, materializedView, f)) {
+            return new MaterializedViewExecution(null, getViewReference(project, materializedView));
         }
 
-        if (!materializedView.incremental) {
-            if (!materializedView.needsUpdate(Clock.systemUTC())) {
-                return new MaterializedViewExecution(null, tableName);
-            }
-            QueryResult join = queryExecutor.executeRawQuery(format("DELETE FROM %s", tableName)).getResult().join();
-            if (join.isFailed()) {
-                throw new RakamException("Failed to delete table: " + join.getError().toString(), INTERNAL_SERVER_ERROR);
+        try {
+            if (!database.isRefreshLeaseHeld(project, materializedView)) {
+                f.complete(null);
+                return new MaterializedViewExecution(null, getViewReference(project, materializedView));
             }
-            StringBuilder builder = new StringBuilder();
-            new QueryFormatter(builder, name -> queryExecutor.formatTableReference(project, name), '"').process(statement, 1);
-            QueryExecution execution = queryExecutor.executeRawQuery(format("INSERT INTO %s %s", tableName, builder.toString()));
-            return new MaterializedViewExecution(execution, tableName);
-        } else {
-            List<String> referencedCollections = new ArrayList<>();
 
-            formatSql(statement, name -> {
-                if (name.getPrefix().map(prefix -> prefix.equals("collection")).orElse(true)) {
-                    referencedCollections.add(name.getSuffix());
-                }
-                return null;
-            }, '"');
-
-            String materializedTableReference = tableName;
+            String tableName = queryExecutor.formatTableReference(project,
+                    QualifiedName.of("materialized", materializedView.tableName));
+            Query statement;
+            synchronized (sqlParser) {
+                statement = (Query) sqlParser.createStatement(materializedView.query);
+            }
 
-            Instant lastUpdated = materializedView.lastUpdate;
             Instant now = Instant.now();
-            boolean needsUpdate = Duration.between(now, lastUpdated).compareTo(materializedView.updateInterval) > 0;
-
-            QueryExecution queryExecution;
-            if (needsUpdate && database.updateMaterializedView(project, materializedView, f)) {
+            QueryExecution execution;
+            if (!materializedView.incremental) {
+                execution = rebuildView(project, materializedView, tableName, statement);
+            } else {
+                Instant lastUpdated = materializedView.lastUpdate == null ? Instant.EPOCH : materializedView.lastUpdate;
                 String query = formatSql(statement,
-                        name -> format("(SELECT * FROM %s WHERE \"_shard_time\" between timestamp '%s' and timestamp '%s')",
+                        name -> format("(SELECT * FROM %s WHERE \"_shard_time\" > timestamp '%s' and \"_shard_time\" <= timestamp '%s')",
                                 queryExecutor.formatTableReference(project, name),
                                 ISO_INSTANT.format(lastUpdated), ISO_INSTANT.format(now)), '"');
 
-                queryExecution = queryExecutor.executeRawStatement(format("INSERT INTO %s %s", materializedTableReference, query));
-                final Instant finalLastUpdated = lastUpdated;
-                queryExecution.getResult().thenAccept(result -> f.complete(!result.isFailed() ? finalLastUpdated : null));
-            } else {
-                queryExecution = QueryExecution.completedQueryExecution("", QueryResult.empty());
-                f.complete(lastUpdated);
+                execution = queryExecutor.executeRawStatement(format("INSERT INTO %s %s", tableName, query));
             }
 
-            String reference;
-            if (!needsUpdate) {
-                reference = materializedTableReference;
-            } else {
-                String query = formatSql(statement,
-                        name -> format("(SELECT * FROM %s WHERE \"_shard_time\" > timestamp '%s'",
-                                queryExecutor.formatTableReference(project, name),
-                                ISO_INSTANT.format(lastUpdated)), '"');
+            execution.getResult().whenComplete((result, ex) -> f.complete(ex == null && !result.isFailed() ? now : null));
+            return new MaterializedViewExecution(execution, tableName);
+        } catch (Throwable e) {
+            f.completeExceptionally(e);
+            throw e;
+        }
+    }
+
+    /**
+     * Builds the view into a staging table and swaps it with the view table when it's completed, so that the queries
+     * read the previous data of the view instead of an empty or partially written table while the view is refreshed.
+     * The connectors of Presto don't support transactional DDL so the view table can't be found only between
+     * dropping the previous table and renaming the staging table. Each step is started when the previous one is
+     * completed, none of them blocks the caller or the thread that completes the previous step.
+     */
+    private QueryExecution rebuildView(String project, MaterializedView materializedView, String tableName, Query statement) {
+        String stagingTableName = tableName.substring(0, tableName.lastIndexOf(".\"")) +
+                ".\"" + STAGING_TABLE_PREFIX + materializedView.tableName + '"';
 
-                reference = format("(SELECT * from %s UNION ALL %s)", materializedTableReference, query);
+        StringBuilder builder = new StringBuilder();
+        new QueryFormatter(builder, name -> queryExecutor.formatTableReference(project, name), '"').process(statement, 1);
+        String createQuery = format("CREATE TABLE %s AS %s", stagingTableName, builder.toString());
+
+        RebuildQueryExecution execution = new RebuildQueryExecution(createQuery);
+        // the staging table of a failed refresh may be left over
+        execution.result = execution.execute(format("DROP TABLE IF EXISTS %s", stagingTableName))
+                .thenCompose(dropStaging -> dropStaging.isFailed() ? completedFuture(dropStaging) : execution.execute(createQuery))
+                .thenCompose(result -> {
+                    if (result.isFailed()) {
+                        return completedFuture(result);
+                    }
+                    // the view table is not replaced if another node took over the refresh while the staging table is built
+                    if (!database.isRefreshLeaseHeld(project, materializedView)) {
+                        return completedFuture(QueryResult.errorResult(QueryError.create("The refresh lease of the materialized view is lost")));
+                    }
+
+                    return execution.execute(format("DROP TABLE %s", tableName))
+                            .thenCompose(drop -> drop.isFailed() ? completedFuture(drop) :
+                                    execution.execute(format("ALTER TABLE %s RENAME TO %s", stagingTableName, tableName)))
+                            .thenApply(rename -> {
+                                if (rename.isFailed()) {
+                                    LOGGER.error("Unable to swap the staging table of materialized view %s.%s: %s",
+                                            project, materializedView.tableName, rename.getError());
+                                    return rename;
+                                }
+                                return result;
+                            });
+                });
+        return execution;
+    }
+
+    /**
+     * Runs the queries of a rebuild one after another. The stats are the ones of the running query and the queries
+     * that are not started yet are skipped when the rebuild is killed.
+     */
+    private class RebuildQueryExecution implements QueryExecution {
+        private final String query;
+        private volatile QueryExecution current;
+        private volatile boolean killed;
+        private CompletableFuture<QueryResult> result;
+
+        private RebuildQueryExecution(String query) {
+            this.query = query;
+        }
+
+        private CompletableFuture<QueryResult> execute(String query) {
+            if (killed) {
+                return completedFuture(QueryResult.errorResult(QueryError.create("The refresh of the materialized view is killed")));
             }
+            QueryExecution execution = queryExecutor.executeRawQuery(query);
+            current = execution;
+            return execution.getResult();
+        }
+
+        @Override
+        public QueryStats currentStats() {
+            return current.currentStats();
+        }
+
+        @Override
+        public boolean isFinished() {
+            return result.isDone();
+        }
+
+        @Override
+        public CompletableFuture<QueryResult> getResult() {
+            return result;
+        }
+
+        @Override
+        public String getQuery() {
+            return query;
+        }
+
+        @Override
+        public void kill() {
+            killed = true;
+            current.kill();
+        }
+    }
 
-            return new MaterializedViewExecution(queryExecution, reference);
+    @Override
+    protected String getViewReference(String project, MaterializedView materializedView) {
+        String tableName = queryExecutor.formatTableReference(project,
+                QualifiedName.of("materialized", materializedView.tableName));
+        if (!materializedView.incremental || materializedView.lastUpdate == null) {
+            return tableName;
         }
+
+        // the events that are collected after the last refresh are read from the source tables
+        Query statement;
+        synchronized (sqlParser) {
+            statement = (Query) sqlParser.createStatement(materializedView.query);
+        }
+        String query = formatSql(statement,
+                name -> format("(SELECT * FROM %s WHERE \"_shard_time\" > timestamp '%s')",
+                        queryExecutor.formatTableReference(project, name),
+                        ISO_INSTANT.format(materializedView.lastUpdate)), '"');
+
+        return format("(SELECT * from %s UNION ALL %s)", tableName, query);
     }
 
 }
@@ -22,6 +22,7 @@ import org.rakam.analysis.metadata.AbstractMetastore;
 import org.rakam.collection.FieldDependencyBuilder;
 import org.rakam.collection.FieldType;
 import org.rakam.collection.SchemaField;
+import org.rakam.config.SchemaVerificationConfig;
 import org.rakam.report.QueryResult;
 import org.rakam.util.AlreadyExistsException;
 import org.rakam.util.NotExistsException;
@@ -67,14 +68,22 @@ public class PrestoMetastore
     private final DBI dbi;
     private final MetadataDao dao;
     private final PrestoConfig prestoConfig;
+    private final SchemaVerificationConfig schemaVerificationConfig;
     private final ClientSession defaultSession;
 
+    public PrestoMetastore(JDBCPoolDataSource prestoMetastoreDataSource, EventBus eventBus,
+            FieldDependencyBuilder.FieldDependency fieldDependency, PrestoConfig prestoConfig)
+    {
+        this(prestoMetastoreDataSource, eventBus, fieldDependency, prestoConfig, new SchemaVerificationConfig());
+    }
+
     @Inject
     public PrestoMetastore(@Named("presto.metastore.jdbc") JDBCPoolDataSource prestoMetastoreDataSource,
             EventBus eventBus, FieldDependencyBuilder.FieldDependency fieldDependency,
-            PrestoConfig prestoConfig)
+            PrestoConfig prestoConfig, SchemaVerificationConfig schemaVerificationConfig)
     {
         super(fieldDependency, eventBus);
+        this.schemaVerificationConfig = schemaVerificationConfig;
         dbi = new DBI(prestoMetastoreDataSource);
         dbi.registerMapper(new TableColumn.Mapper(new SignatureReferenceTypeManager()));
         this.dao = onDemandDao(dbi, MetadataDao.class);
@@ -97,7 +106,7 @@ public class PrestoMetastore
     public void setup()
     {
         setupTables();
-        super.checkExistingSchema();
+        super.checkExistingSchema(schemaVerificationConfig);
     }
 
     private void setupTables()
@@ -14,16 +14,17 @@ import com.facebook.presto.jdbc.internal.client.QueryResults;
 import com.facebook.presto.jdbc.internal.client.StatementClient;
 import com.facebook.presto.jdbc.internal.client.StatementStats;
 import com.facebook.presto.jdbc.internal.guava.collect.ImmutableSet;
-import com.facebook.presto.jdbc.internal.guava.collect.Lists;
 import com.facebook.presto.jdbc.internal.guava.net.HostAndPort;
 import com.facebook.presto.jdbc.internal.guava.net.HttpHeaders;
 import com.facebook.presto.jdbc.internal.spi.type.StandardTypes;
 import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import io.airlift.log.Logger;
 import io.netty.handler.codec.http.HttpResponseStatus;
 import org.rakam.collection.FieldType;
 import org.rakam.collection.SchemaField;
+import org.rakam.report.ColumnarResult;
 import org.rakam.report.QueryError;
 import org.rakam.report.QueryExecution;
 import org.rakam.report.QueryResult;
@@ -40,7 +41,6 @@ import java.time.LocalDate;
 import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
 import java.time.temporal.ChronoUnit;
-import java.util.Arrays;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Locale;
@@ -83,10 +83,10 @@ public class PrestoQueryExecution
             300L, TimeUnit.SECONDS,
             new SynchronousQueue<>());
 
-    private final List<List<Object>> data = Lists.newArrayList();
     private static final com.facebook.presto.jdbc.internal.airlift.json.JsonCodec<QueryResults> QUERY_RESULTS_JSON_CODEC = jsonCodec(QueryResults.class);
     private final String query;
     private List<SchemaField> columns;
+    private ColumnarResult.Builder data;
 
     private final CompletableFuture<QueryResult> result = new CompletableFuture<>();
     public static final DateTimeFormatter PRESTO_TIMESTAMP_FORMAT = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss.SSS");
@@ -267,7 +267,7 @@ public class PrestoQueryExecution
                     ImmutableMap<String, Object> stats = ImmutableMap.of(
                             QueryResult.EXECUTION_TIME, startTime.until(Instant.now(), ChronoUnit.MILLIS));
 
-                    result.complete(new QueryResult(columns, data, stats));
+                    result.complete(new QueryResult(columns, data == null ? ImmutableList.of() : data.build(), stats));
                 }
             }
             catch (Exception e) {
@@ -293,6 +293,7 @@ public class PrestoQueryExecution
                                             .map(argument -> argument.getTypeSignature().getRawType()).iterator()));
                         })
                         .collect(Collectors.toList());
+                data = new ColumnarResult.Builder(columns);
             }
 
             if (result.getData() == null) {
@@ -300,41 +301,35 @@ public class PrestoQueryExecution
             }
 
             for (List<Object> objects : result.getData()) {
-                Object[] row = new Object[columns.size()];
-
                 for (int i = 0; i < objects.size(); i++) {
                     String type = result.getColumns().get(i).getTypeSignature().getRawType();
                     Object value = objects.get(i);
                     if (value != null) {
                         if (type.equals(StandardTypes.TIMESTAMP)) {
                             try {
-                                row[i] = LocalDateTime.parse((CharSequence) value, PRESTO_TIMESTAMP_FORMAT).toInstant(UTC);
+                                value = LocalDateTime.parse((CharSequence) value, PRESTO_TIMESTAMP_FORMAT).toInstant(UTC);
                             }
                             catch (Exception e) {
                                 LOGGER.error(e, "Error while parsing Presto TIMESTAMP.");
+                                value = null;
                             }
                         }
                         else if (type.equals(StandardTypes.TIMESTAMP_WITH_TIME_ZONE)) {
                             try {
-                                row[i] = LocalDateTime.parse((CharSequence) value, PRESTO_TIMESTAMP_WITH_TIMEZONE_FORMAT).toInstant(UTC);
+                                value = LocalDateTime.parse((CharSequence) value, PRESTO_TIMESTAMP_WITH_TIMEZONE_FORMAT).toInstant(UTC);
                             }
                             catch (Exception e) {
                                 LOGGER.error(e, "Error while parsing Presto TIMESTAMP WITH TIMEZONE.");
+                                value = null;
                             }
                         }
                         else if (type.equals(StandardTypes.DATE)) {
-                            row[i] = LocalDate.parse((CharSequence) value);
-                        }
-                        else {
-                            row[i] = objects.get(i);
+                            value = LocalDate.parse((CharSequence) value);
                         }
                     }
-                    else {
-                        row[i] = objects.get(i);
-                    }
+                    // the client already decodes the numeric values to the boxed type of the column
+                    data.append(i, value);
                 }
-
-                data.add(Arrays.asList(row));
             }
         }
     }
@@ -53,7 +53,7 @@ public class PrestoCopyEvent implements CopyEvent
         }
 
         if (compressionType != null) {
-            builder.put(format("%s.compression", prestoConfig.getBulkConnector()), type.name());
+            builder.put(format("%s.compression", prestoConfig.getBulkConnector()), compressionType.name());
         }
 
         return prestoQueryExecutor.executeRawQuery(format("insert into %s.%s.%s select * from %s.%s.%s",
@@ -80,6 +80,38 @@ public class PrestoExternalUserStorageAdapter extends AbstractPostgresqlUserStor
             return super.searchUsers(project, selectColumns, filterExpression, eventFilter, sortColumn, limit, offset);
         }
 
+        String query = getUserQuery(project, eventFilter);
+        if (query == null) {
+            return QueryExecution.completedQueryExecution(null, QueryResult.empty()).getResult();
+        }
+
+//        if(sortColumn == null) {
+//            sortColumn = new Sorting("_user", Ordering.asc);
+//        }
+
+        return executorService.executeQuery(project, query +
+                (sortColumn == null ? "" : (" ORDER BY " + sortColumn.column + " " + sortColumn.order.name()))
+                + " LIMIT " + limit).getResult();
+    }
+
+    @Override
+    public CompletableFuture<QueryResult> searchUsersAfter(String project, Expression filterExpression, List<EventFilter> eventFilter, Object lastUserId, int limit) {
+        if (filterExpression != null && eventFilter != null && !eventFilter.isEmpty()) {
+            return super.searchUsersAfter(project, filterExpression, eventFilter, lastUserId, limit);
+        }
+
+        String query = getUserQuery(project, eventFilter);
+        if (query == null) {
+            return QueryExecution.completedQueryExecution(null, QueryResult.empty()).getResult();
+        }
+
+        String identifier = checkTableColumn(config.getIdentifierColumn());
+        return executorService.executeQuery(project, format("select * from (%s) users %s order by %s limit %s", query,
+                lastUserId == null ? "" : format("where %s > %s", identifier, lastUserId instanceof Number ? lastUserId :
+                        "'" + ValidationUtil.checkLiteral(lastUserId.toString()) + "'"), identifier, limit)).getResult();
+    }
+
+    private String getUserQuery(String project, List<EventFilter> eventFilter) {
         String query;
         if (eventFilter != null && !eventFilter.isEmpty()) {
             query = String.format("select distinct _user as %s from (%s) ",
@@ -93,7 +125,7 @@ public class PrestoExternalUserStorageAdapter extends AbstractPostgresqlUserStor
                     .collect(Collectors.toList());
 
             if(collections.isEmpty()) {
-                return QueryExecution.completedQueryExecution(null, QueryResult.empty()).getResult();
+                return null;
             }
 
             query = String.format("select distinct _user as %s from (%s)",
@@ -102,13 +134,7 @@ public class PrestoExternalUserStorageAdapter extends AbstractPostgresqlUserStor
                             checkCollection(c.getKey()))).collect(Collectors.joining(" union all ")));
         }
 
-//        if(sortColumn == null) {
-//            sortColumn = new Sorting("_user", Ordering.asc);
-//        }
-
-        return executorService.executeQuery(project, query +
-                (sortColumn == null ? "" : (" ORDER BY " + sortColumn.column + " " + sortColumn.order.name()))
-                + " LIMIT " + limit).getResult();
+        return query;
     }
 
     @Override
@@ -16,6 +16,7 @@ package org.rakam.analysis;
 import com.google.common.collect.ImmutableList;
 import io.netty.handler.codec.http.HttpResponseStatus;
 import org.rakam.collection.SchemaField;
+import org.rakam.report.ColumnarResult;
 import org.rakam.report.DelegateQueryExecution;
 import org.rakam.report.QueryExecution;
 import org.rakam.report.QueryExecutor;
@@ -24,8 +25,7 @@ import org.rakam.util.RakamException;
 import org.rakam.util.ValidationUtil;
 
 import java.time.LocalDate;
-import java.util.ArrayList;
-import java.util.Arrays;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
@@ -83,49 +83,60 @@ public abstract class AbstractFunnelQueryExecutor implements FunnelQueryExecutor
                         return result;
                     }
 
-                    List<List<Object>> newResult;
-                    List<List<Object>> queryResult = result.getResult();
-                    List<SchemaField> metadata;
+                    // the steps are accumulated in primitive arrays using the typed columns instead of boxing each count
+                    ColumnarResult queryResult = ColumnarResult.copyOf(result.getMetadata(), result.getResult());
+                    ColumnarResult newResult;
                     if (dimension.isPresent()) {
-                        newResult = new ArrayList<>();
-                        Map<Object, List<List<Object>>> collect = queryResult.stream().collect(Collectors.groupingBy(x -> x.get(0) == null ? "null" : x.get(0)));
-                        for (Map.Entry<Object, List<List<Object>>> entry : collect.entrySet()) {
-                            List<List<Object>> subResult = IntStream.range(0, steps.size())
-                                    .mapToObj(i -> Arrays.asList("Step " + (i + 1), entry.getKey(), 0L))
-                                    .collect(Collectors.toList());
-
-                            for (int step = 0; step < subResult.size(); step++) {
-                                int finalStep = step;
-                                entry.getValue().stream().filter(e -> ((Number) e.get(1)).longValue() >= finalStep + 1).map(e -> e.get(2))
-                                        .forEach(val -> subResult.get(finalStep).set(2,
-                                                ((Number) subResult.get(finalStep).get(2)).longValue() + ((Number) val).longValue()));
-                            }
-
-                            newResult.addAll(subResult);
+                        ColumnarResult.Column dimensionColumn = queryResult.getColumn(0);
+                        ColumnarResult.Column stepColumn = queryResult.getColumn(1);
+                        ColumnarResult.Column countColumn = queryResult.getColumn(2);
+
+                        Map<Object, long[]> counts = new LinkedHashMap<>();
+                        for (int row = 0; row < queryResult.size(); row++) {
+                            Object dimensionValue = dimensionColumn.isNull(row) ? "null" : dimensionColumn.getObject(row);
+                            long[] stepCounts = counts.computeIfAbsent(dimensionValue, k -> new long[steps.size()]);
+                            addToSteps(stepCounts, stepColumn.getLong(row), countColumn.getLong(row));
                         }
 
-                        metadata = ImmutableList.of(
+                        ColumnarResult.Builder builder = new ColumnarResult.Builder(ImmutableList.of(
                                 new SchemaField("step", STRING),
                                 new SchemaField("dimension", STRING),
-                                new SchemaField("count", LONG));
+                                new SchemaField("count", LONG)), counts.size() * steps.size());
+                        for (Map.Entry<Object, long[]> entry : counts.entrySet()) {
+                            for (int step = 0; step < steps.size(); step++) {
+                                builder.append(0, "Step " + (step + 1))
+                                        .append(1, entry.getKey())
+                                        .appendLong(2, entry.getValue()[step]);
+                            }
+                        }
+                        newResult = builder.build();
                     }
                     else {
-                        newResult = IntStream.range(0, steps.size())
-                                .mapToObj(i -> Arrays.<Object>asList("Step " + (i + 1), 0L))
-                                .collect(Collectors.toList());
-
-                        for (int step = 0; step < newResult.size(); step++) {
-                            int finalStep = step;
-                            queryResult.stream().filter(e -> ((Number) e.get(0)).intValue() >= finalStep + 1).map(e -> e.get(1))
-                                    .forEach(val -> newResult.get(finalStep).set(1,
-                                            ((Number) newResult.get(finalStep).get(1)).longValue() + ((Number) val).longValue()));
+                        ColumnarResult.Column stepColumn = queryResult.getColumn(0);
+                        ColumnarResult.Column countColumn = queryResult.getColumn(1);
+
+                        long[] stepCounts = new long[steps.size()];
+                        for (int row = 0; row < queryResult.size(); row++) {
+                            addToSteps(stepCounts, stepColumn.getLong(row), countColumn.getLong(row));
                         }
 
-                        metadata = ImmutableList.of(
+                        ColumnarResult.Builder builder = new ColumnarResult.Builder(ImmutableList.of(
                                 new SchemaField("step", STRING),
-                                new SchemaField("count", LONG));
+                                new SchemaField("count", LONG)), steps.size());
+                        for (int step = 0; step < steps.size(); step++) {
+                            builder.append(0, "Step " + (step + 1)).appendLong(1, stepCounts[step]);
+                        }
+                        newResult = builder.build();
                     }
-                    return new QueryResult(metadata, newResult, result.getProperties());
+                    return new QueryResult(newResult.getMetadata(), newResult, result.getProperties());
                 });
     }
+
+    private static void addToSteps(long[] stepCounts, long reachedStep, long count)
+    {
+        // the users who reached a step are also counted in the previous steps
+        for (int step = 0; step < Math.min(reachedStep, stepCounts.length); step++) {
+            stepCounts[step] += count;
+        }
+    }
 }
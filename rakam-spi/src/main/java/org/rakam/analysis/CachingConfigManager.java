@@ -0,0 +1,199 @@
+package org.rakam.analysis;
+
+import com.google.common.base.Throwables;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+import com.google.inject.name.Named;
+import io.airlift.log.Logger;
+import org.rakam.config.ConfigManagerCacheConfig;
+
+import javax.inject.Inject;
+import javax.validation.constraints.NotNull;
+
+import java.util.Locale;
+import java.util.Objects;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+
+/**
+ * Caches the configs of the underlying config manager. The configs that are set by
+ * {@link #setConfigOnce(String, String, Object)} never change so they're cached until they're evicted, the changes
+ * that are made by {@link #setConfig(String, String, Object)} and {@link #clear()} invalidate the caches of all the
+ * nodes if the underlying config manager can propagate them, otherwise the configs expire after
+ * config-manager.cache.ttl.
+ */
+public class CachingConfigManager
+        implements ConfigManager
+{
+    private final static Logger LOGGER = Logger.get(CachingConfigManager.class);
+    public static final String DELEGATE = "config-manager.delegate";
+
+    private final ConfigManager delegate;
+    private final Cache<ConfigKey, CachedValue> values;
+    // incremented by each invalidation, the configs that are loaded while a config is changed are invalidated
+    private final AtomicLong invalidations = new AtomicLong();
+    private final long ttlMillis;
+    private final long missingTtlMillis;
+
+    @Inject
+    public CachingConfigManager(@Named(DELEGATE) ConfigManager delegate, ConfigManagerCacheConfig config)
+    {
+        this.delegate = delegate;
+        this.values = CacheBuilder.newBuilder().maximumSize(config.getSize()).build();
+        this.missingTtlMillis = config.getMissingTtl().toMillis();
+
+        // the listener may be called as soon as it's registered so the cache must be created before
+        if (delegate.addChangeListener(this::invalidate)) {
+            this.ttlMillis = Long.MAX_VALUE;
+        }
+        else {
+            LOGGER.info("%s doesn't propagate the config changes, the cached configs expire after %s",
+                    delegate.getClass().getSimpleName(), config.getTtl());
+            this.ttlMillis = config.getTtl().toMillis();
+        }
+    }
+
+    @Override
+    public void setup()
+    {
+        delegate.setup();
+    }
+
+    @Override
+    public <T> T getConfig(String project, String configName, Class<T> clazz)
+    {
+        ConfigKey key = new ConfigKey(project, configName);
+        CachedValue cached = load(key, project, configName, clazz);
+        if (cached.isExpired() || !cached.isInstance(clazz)) {
+            values.invalidate(key);
+            cached = load(key, project, configName, clazz);
+        }
+
+        if (!cached.isInstance(clazz)) {
+            // the config is loaded concurrently as another type
+            return delegate.getConfig(project, configName, clazz);
+        }
+        return (T) cached.value;
+    }
+
+    private <T> CachedValue load(ConfigKey key, String project, String configName, Class<T> clazz)
+    {
+        long generation = invalidations.get();
+        CachedValue cached;
+        try {
+            cached = values.get(key, () -> new CachedValue(delegate.getConfig(project, configName, clazz)));
+        }
+        catch (ExecutionException | UncheckedExecutionException e) {
+            throw Throwables.propagate(e.getCause());
+        }
+
+        // the invalidations of the entries that are being loaded are ignored by the cache
+        if (invalidations.get() != generation) {
+            values.invalidate(key);
+        }
+        return cached;
+    }
+
+    @Override
+    public <T> void setConfig(String project, String configName, @NotNull T value)
+    {
+        delegate.setConfig(project, configName, value);
+        invalidate(project, configName);
+    }
+
+    @Override
+    public <T> T setConfigOnce(String project, String configName, @NotNull T value)
+    {
+        ConfigKey key = new ConfigKey(project, configName);
+        CachedValue cached = values.getIfPresent(key);
+        if (cached != null && cached.value != null && !cached.isExpired() && value.getClass().isInstance(cached.value)) {
+            return (T) cached.value;
+        }
+
+        T config = delegate.setConfigOnce(project, configName, value);
+        // the configs that are set once never change
+        values.put(key, new CachedValue(config));
+        return config;
+    }
+
+    @Override
+    public void clear()
+    {
+        delegate.clear();
+        invalidate(null, null);
+    }
+
+    @Override
+    public boolean addChangeListener(BiConsumer<String, String> listener)
+    {
+        return delegate.addChangeListener(listener);
+    }
+
+    private void invalidate(String project, String configName)
+    {
+        invalidations.incrementAndGet();
+        if (project == null || configName == null) {
+            values.invalidateAll();
+        }
+        else {
+            values.invalidate(new ConfigKey(project, configName));
+        }
+    }
+
+    private final class CachedValue
+    {
+        private final Object value;
+        private final long cachedAt;
+
+        private CachedValue(Object value)
+        {
+            this.value = value;
+            this.cachedAt = System.currentTimeMillis();
+        }
+
+        private boolean isExpired()
+        {
+            return System.currentTimeMillis() - cachedAt >= (value == null ? missingTtlMillis : ttlMillis);
+        }
+
+        private boolean isInstance(Class<?> clazz)
+        {
+            return value == null || clazz.isInstance(value);
+        }
+    }
+
+    private static final class ConfigKey
+    {
+        private final String project;
+        private final String name;
+
+        private ConfigKey(String project, String name)
+        {
+            this.project = project;
+            // the names are case insensitive in the config managers
+            this.name = name.toUpperCase(Locale.ENGLISH);
+        }
+
+        @Override
+        public boolean equals(Object o)
+        {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof ConfigKey)) {
+                return false;
+            }
+
+            ConfigKey configKey = (ConfigKey) o;
+            return project.equals(configKey.project) && name.equals(configKey.name);
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return Objects.hash(project, name);
+        }
+    }
+}
@@ -4,6 +4,8 @@ import com.google.common.annotations.VisibleForTesting;
 
 import javax.validation.constraints.NotNull;
 
+import java.util.function.BiConsumer;
+
 public interface ConfigManager {
     default void setup() {}
 
@@ -15,4 +17,13 @@ public interface ConfigManager {
 
     @VisibleForTesting
     void clear();
+
+    /**
+     * Registers a listener that is called with the project and the name of the config when a config is changed by
+     * {@link #setConfig(String, String, Object)} on any node, both are null when the configs are cleared.
+     * Returns false if the changes can't be propagated by the implementation.
+     */
+    default boolean addChangeListener(BiConsumer<String, String> listener) {
+        return false;
+    }
 }
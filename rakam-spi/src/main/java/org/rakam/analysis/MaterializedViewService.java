@@ -1,21 +1,35 @@
 package org.rakam.analysis;
 
 import com.facebook.presto.sql.parser.SqlParser;
+import com.facebook.presto.sql.tree.QualifiedName;
 import com.facebook.presto.sql.tree.Query;
+import com.google.common.base.Throwables;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import org.rakam.analysis.metadata.QueryMetadataStore;
 import org.rakam.collection.SchemaField;
 import org.rakam.plugin.MaterializedView;
 import org.rakam.report.QueryExecution;
 import org.rakam.report.QueryExecutor;
 import org.rakam.report.QueryResult;
+import org.rakam.util.ProjectCollection;
 import org.rakam.util.QueryFormatter;
 import org.rakam.util.RakamException;
 
+import javax.annotation.PreDestroy;
+
+import java.time.Clock;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.BiConsumer;
 import java.util.stream.Collectors;
 
 import static com.google.common.base.Preconditions.checkNotNull;
@@ -27,6 +41,10 @@ public abstract class MaterializedViewService {
     private final QueryMetadataStore database;
     private final QueryExecutor queryExecutor;
     private final char escapeIdentifier;
+    private final ConcurrentMap<ProjectCollection, CompletableFuture<MaterializedViewExecution>> runningRefreshes = new ConcurrentHashMap<>();
+    private final ExecutorService refreshExecutor = Executors.newFixedThreadPool(4,
+            new ThreadFactoryBuilder().setNameFormat("materialized-view-refresh-%d").setDaemon(true).build());
+    private final List<BiConsumer<String, String>> viewChangeListeners = new CopyOnWriteArrayList<>();
 
     public MaterializedViewService(QueryMetadataStore database, QueryExecutor queryExecutor, char escapeIdentifier) {
         this.database = database;
@@ -38,6 +56,20 @@ public abstract class MaterializedViewService {
 
     public abstract CompletableFuture<QueryResult> delete(String project, String name);
 
+    /**
+     * Registers a listener that is called with the project and the table name of the view when a view is created or
+     * deleted, so that the schemas derived from the views can be invalidated.
+     */
+    public void addViewChangeListener(BiConsumer<String, String> listener) {
+        viewChangeListeners.add(listener);
+    }
+
+    protected void viewChanged(String project, String tableName) {
+        for (BiConsumer<String, String> listener : viewChangeListeners) {
+            listener.accept(project, tableName);
+        }
+    }
+
     public Map<String, List<SchemaField>> getSchemas(String project, Optional<List<String>> names) {
         Map<String, CompletableFuture<List<SchemaField>>> futures = new HashMap<>();
 
@@ -78,6 +110,85 @@ public abstract class MaterializedViewService {
 
     public abstract MaterializedViewExecution lockAndUpdateView(String project, MaterializedView materializedView);
 
+    /**
+     * Returns the table reference of the view that is used in user queries. The query waits for the refresh only if
+     * the view is not materialized yet, a stale view is refreshed in background and the query reads the existing data.
+     */
+    public MaterializedViewExecution getViewForQuery(String project, MaterializedView materializedView) {
+        if (materializedView.lastUpdate == null) {
+            MaterializedViewExecution execution = refresh(project, materializedView);
+            if (execution != null) {
+                return execution;
+            }
+        } else if (materializedView.updateInterval != null && materializedView.needsUpdate(Clock.systemUTC())) {
+            refreshAsync(project, materializedView);
+        }
+
+        return new MaterializedViewExecution(null, getViewReference(project, materializedView));
+    }
+
+    /**
+     * Refreshes the view and returns the execution of the refresh query. If the view is already being refreshed by
+     * this node, the execution of the running refresh is returned instead of starting a new one.
+     */
+    public MaterializedViewExecution refresh(String project, MaterializedView materializedView) {
+        try {
+            return startRefresh(project, materializedView, false).join();
+        } catch (CompletionException e) {
+            throw Throwables.propagate(e.getCause());
+        }
+    }
+
+    public CompletableFuture<MaterializedViewExecution> refreshAsync(String project, MaterializedView materializedView) {
+        return startRefresh(project, materializedView, true);
+    }
+
+    private CompletableFuture<MaterializedViewExecution> startRefresh(String project, MaterializedView materializedView, boolean async) {
+        ProjectCollection key = new ProjectCollection(project, materializedView.tableName);
+        CompletableFuture<MaterializedViewExecution> future = new CompletableFuture<>();
+        CompletableFuture<MaterializedViewExecution> running = runningRefreshes.putIfAbsent(key, future);
+        if (running != null) {
+            return running;
+        }
+
+        Runnable refresh = () -> {
+            MaterializedViewExecution execution;
+            try {
+                execution = lockAndUpdateView(project, materializedView);
+            } catch (Throwable e) {
+                runningRefreshes.remove(key, future);
+                future.completeExceptionally(e);
+                return;
+            }
+
+            if (execution == null || execution.queryExecution == null) {
+                runningRefreshes.remove(key, future);
+            } else {
+                execution.queryExecution.getResult().whenComplete((result, ex) -> runningRefreshes.remove(key, future));
+            }
+            future.complete(execution);
+        };
+
+        if (async) {
+            refreshExecutor.execute(refresh);
+        } else {
+            refresh.run();
+        }
+        return future;
+    }
+
+    /**
+     * Returns the reference of the materialized table that is used in the queries when the view is not refreshed.
+     */
+    protected String getViewReference(String project, MaterializedView materializedView) {
+        return queryExecutor.formatTableReference(project, QualifiedName.of("materialized", materializedView.tableName));
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        refreshExecutor.shutdownNow();
+    }
+
     public List<MaterializedView> list(String project) {
         return database.getMaterializedViews(project);
     }
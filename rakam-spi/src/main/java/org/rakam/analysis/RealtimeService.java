@@ -5,10 +5,12 @@ import com.facebook.presto.sql.tree.Expression;
 import com.facebook.presto.sql.tree.QualifiedName;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
-import com.google.common.collect.Lists;
 import com.google.inject.Inject;
 import io.airlift.units.Duration;
+import org.rakam.collection.FieldType;
+import org.rakam.collection.SchemaField;
 import org.rakam.plugin.ContinuousQuery;
+import org.rakam.report.ColumnarResult;
 import org.rakam.report.QueryExecutor;
 import org.rakam.report.realtime.AggregationType;
 import org.rakam.report.realtime.RealTimeConfig;
@@ -23,12 +25,11 @@ import javax.inject.Qualifier;
 import java.lang.annotation.Documented;
 import java.lang.annotation.Retention;
 import java.time.Instant;
-import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.TimeUnit;
-import java.util.function.Function;
 import java.util.stream.Collectors;
 import java.util.stream.IntStream;
 import java.util.stream.Stream;
@@ -168,34 +169,32 @@ public abstract class RealtimeService
 
             if (!finalAggregate) {
                 if (noDimension) {
-                    List<List<Object>> newData = Lists.newLinkedList();
-                    Map<Long, List<Object>> collect = data.stream().collect(Collectors.toMap(new Function<List<Object>, Long>()
-                    {
-                        @Override
-                        public Long apply(List<Object> objects)
-                        {
-                            return (Long) objects.get(0);
-                        }
-                    }, Function.identity()));
-                    for (long current = previousWindow * slide.toMillis(); current < currentWindow * slide.toMillis(); current += slide.toMillis()) {
-
-                        List<Object> objects = collect.get(current);
+                    ColumnarResult rows = ColumnarResult.copyOf(result.getMetadata(), data);
+                    ColumnarResult.Column timeColumn = rows.getColumn(0);
+                    int valueIndex = dimensions.size() + 1;
+                    ColumnarResult.Column valueColumn = rows.getColumn(valueIndex);
+                    SchemaField valueField = result.getMetadata().get(valueIndex);
+
+                    Map<Long, Integer> rowIndexes = new HashMap<>(rows.size());
+                    for (int row = 0; row < rows.size(); row++) {
+                        rowIndexes.put(timeColumn.getLong(row), row);
+                    }
 
-                        if (objects != null) {
-                            ArrayList<Object> list = new ArrayList<>(2);
-                            list.add(current);
+                    ColumnarResult.Builder builder = new ColumnarResult.Builder(
+                            ImmutableList.of(new SchemaField("time", FieldType.LONG), valueField),
+                            (int) (currentWindow - previousWindow));
+                    for (long current = previousWindow * slide.toMillis(); current < currentWindow * slide.toMillis(); current += slide.toMillis()) {
+                        builder.appendLong(0, current);
 
-                            list.add(objects.get(dimensions.size() + 1));
-                            newData.add(list);
-                            continue;
+                        Integer row = rowIndexes.get(current);
+                        if (row != null) {
+                            builder.append(1, valueColumn.getObject(row));
+                        }
+                        else {
+                            appendZero(builder, 1, valueField.getType());
                         }
-
-                        ArrayList<Object> list = new ArrayList<>(2);
-                        list.add(current);
-
-                        list.add(0);
-                        newData.add(list);
                     }
+                    ColumnarResult newData = builder.build();
                     return new RealTimeQueryResult(previousTimestamp, currentTimestamp, newData);
                 }
                 else {
@@ -214,6 +213,22 @@ public abstract class RealtimeService
     }
 
 
+    private static void appendZero(ColumnarResult.Builder builder, int column, FieldType type)
+    {
+        switch (type) {
+            case LONG:
+            case INTEGER:
+                builder.appendLong(column, 0);
+                break;
+            case DOUBLE:
+            case DECIMAL:
+                builder.appendDouble(column, 0);
+                break;
+            default:
+                builder.append(column, 0);
+        }
+    }
+
     public abstract String getIntermediateFunction(AggregationType type);
 
     private String createFinalSelect(List<RealTimeReport.Measure> measures, List<String> dimensions)
@@ -1,16 +1,21 @@
 package org.rakam.analysis.metadata;
 
 import com.google.common.base.Throwables;
+import com.google.common.cache.CacheBuilder;
 import com.google.common.collect.ImmutableList;
 import com.google.common.eventbus.EventBus;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import io.airlift.log.Logger;
 import org.rakam.collection.FieldDependencyBuilder;
 import org.rakam.collection.FieldDependencyBuilder.FieldDependency;
 import org.rakam.collection.SchemaField;
+import org.rakam.config.SchemaVerificationConfig;
 import org.rakam.plugin.SystemEvents;
 import org.rakam.plugin.SystemEvents.ProjectCreatedEvent;
 import org.rakam.util.NotExistsException;
 import org.rakam.util.RakamException;
 
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashSet;
 import java.util.Iterator;
@@ -19,73 +24,226 @@ import java.util.Locale;
 import java.util.Map;
 import java.util.Optional;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.stream.Collectors;
 
 import static io.netty.handler.codec.http.HttpResponseStatus.BAD_REQUEST;
+import static io.netty.handler.codec.http.HttpResponseStatus.CONFLICT;
 import static java.lang.String.format;
 
 public abstract class AbstractMetastore implements Metastore {
+    private final static Logger LOGGER = Logger.get(AbstractMetastore.class);
+    private static final ThreadLocal<Boolean> VERIFYING = ThreadLocal.withInitial(() -> false);
+    private static final long DISTRIBUTED_SCHEMA_CACHE_TTL_MILLIS = TimeUnit.HOURS.toMillis(1);
+    private static final int MAX_RETRY_DOUBLINGS = 6;
+
     private final FieldDependency moduleFields;
     private final EventBus eventBus;
     private final Set<String> sourceFields;
+    private final SchemaChangeBus schemaChangeBus;
+    private final Map<String, Verification> pendingVerifications = new ConcurrentHashMap<>();
+    private final AtomicInteger verifiedProjects = new AtomicInteger();
+    private final Set<String> failedProjects = ConcurrentHashMap.newKeySet();
+    private volatile int verificationProjects;
+    private volatile long retryIntervalNanos;
 
     public AbstractMetastore(FieldDependency fieldDependency, EventBus eventBus) {
+        this(fieldDependency, eventBus, SchemaChangeBus.LOCAL);
+    }
+
+    public AbstractMetastore(FieldDependency fieldDependency, EventBus eventBus, SchemaChangeBus schemaChangeBus) {
         this.moduleFields = fieldDependency;
         this.eventBus = eventBus;
         this.sourceFields = fieldDependency.dependentFields.keySet();
+        this.schemaChangeBus = schemaChangeBus;
     }
 
     protected void onCreateProject(String project) {
         eventBus.post(new ProjectCreatedEvent(project));
+        publishSchemaChange(new SchemaChange(SchemaChange.Type.PROJECT_CREATED, project, null));
     }
 
     protected void onDeleteProject(String project) {
         eventBus.post(new SystemEvents.ProjectDeletedEvent(project));
+        publishSchemaChange(new SchemaChange(SchemaChange.Type.PROJECT_DELETED, project, null));
     }
 
     protected void onCreateCollection(String project, String collection, List<SchemaField> fields) {
         eventBus.post(new SystemEvents.CollectionCreatedEvent(project, collection, fields));
+        publishSchemaChange(new SchemaChange(SchemaChange.Type.COLLECTION_CREATED, project, collection));
     }
 
     protected void onCreateCollectionField(String project, String collection, List<SchemaField> fields) {
         eventBus.post(new SystemEvents.CollectionFieldCreatedEvent(project, collection, fields));
+        publishSchemaChange(new SchemaChange(SchemaChange.Type.COLLECTION_FIELD_CREATED, project, collection));
+    }
+
+    /**
+     * The system events are only posted on the node that changed the schema, the other nodes only invalidate
+     * their caches in {@link #onSchemaChange(SchemaChange)}.
+     */
+    protected void publishSchemaChange(SchemaChange change) {
+        schemaChangeBus.publish(change);
+    }
+
+    /**
+     * The cached schemas are kept until they're invalidated if the changes of the other nodes are received,
+     * otherwise they expire after the given duration. The changes that are published while a node is disconnected
+     * from the bus are not delivered, so the schemas still expire after an hour if the changes are received.
+     */
+    protected CacheBuilder<Object, Object> newSchemaCacheBuilder(long expireAfterWrite, TimeUnit unit) {
+        long ttl = unit.toMillis(expireAfterWrite);
+        if (schemaChangeBus.isDistributed()) {
+            ttl = Math.max(ttl, DISTRIBUTED_SCHEMA_CACHE_TTL_MILLIS);
+        }
+        return CacheBuilder.newBuilder().expireAfterWrite(ttl, TimeUnit.MILLISECONDS);
+    }
+
+    protected boolean isSchemaChangeDistributed() {
+        return schemaChangeBus.isDistributed();
+    }
+
+    /**
+     * Should be called after the caches that are invalidated by {@link #onSchemaChange(SchemaChange)} are created.
+     */
+    protected void subscribeSchemaChanges() {
+        schemaChangeBus.subscribe(this::onSchemaChange);
     }
 
-    protected void checkExistingSchema() {
-        getProjects().forEach(project ->
-                getCollections(project).forEach((collection, fields) -> {
-                    Set<SchemaField> collect = moduleFields.constantFields.stream()
-                            .filter(constant ->
-                                    !fields.stream()
-                                            .anyMatch(existing -> check(project, collection, constant, existing)))
-                            .collect(Collectors.toSet());
-
-                    moduleFields.dependentFields.entrySet().stream().map(Map.Entry::getValue)
-                            .forEach(values ->
-                                    values.stream().forEach(value ->
-                                            fields.stream().forEach(field -> check(project, collection, field, value))));
-
-                    fields.forEach(field -> moduleFields.dependentFields.getOrDefault(field.getName(), ImmutableList.of()).stream()
-                            .filter(dependentField -> !fields.stream()
-                                    .anyMatch(existing -> check(project, collection, existing, dependentField)))
-                            .forEach(collect::add));
-
-                    if (!collect.isEmpty()) {
-                        try {
-                            getOrCreateCollectionFieldList(project, collection, collect);
-                        } catch (NotExistsException e) {
-                            throw Throwables.propagate(e);
-                        }
+    /**
+     * Called when the schema is changed by another node.
+     */
+    protected void onSchemaChange(SchemaChange change) {
+    }
+
+    /**
+     * Adds the missing module fields to the existing collections of all the projects. The projects are verified in
+     * parallel and if the verification is lazy, this method returns immediately and the schema of a project is verified
+     * in {@link #getOrCreateCollectionFieldList(String, String, Set)} if the background threads didn't verify it yet.
+     */
+    protected void checkExistingSchema(SchemaVerificationConfig config) {
+        if (moduleFields.constantFields.isEmpty() && moduleFields.dependentFields.isEmpty()) {
+            return;
+        }
+
+        Set<String> projects = getProjects();
+        verificationProjects = projects.size();
+        retryIntervalNanos = config.getRetryInterval().roundTo(TimeUnit.NANOSECONDS);
+        List<FutureTask<Void>> tasks = new ArrayList<>(projects.size());
+        for (String project : projects) {
+            Verification verification = new Verification(project, 0);
+            pendingVerifications.put(project, verification);
+            tasks.add(verification.task);
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(config.getThreads(), new ThreadFactoryBuilder()
+                .setNameFormat("schema-verifier-%d").setDaemon(true).build());
+        // the tasks are run by the caller instead if a project is accessed before its task is picked
+        tasks.forEach(executor::execute);
+        executor.shutdown();
+
+        if (!config.getLazy()) {
+            for (FutureTask<Void> task : tasks) {
+                waitFor(task);
+            }
+        }
+    }
+
+    @Override
+    public SchemaVerificationStatus getSchemaVerificationStatus() {
+        return new SchemaVerificationStatus(verificationProjects, verifiedProjects.get(), failedProjects.size());
+    }
+
+    /**
+     * The failed verification of a project rethrows its error until its retry interval passes so that the writes of
+     * the project don't run the verification again, the interval is doubled after each failure. The conflicts of the
+     * module fields with the existing fields are not retried.
+     */
+    private void ensureSchemaVerified(String project) {
+        Verification verification = pendingVerifications.get(project);
+        // the verification creates the missing fields with getOrCreateCollectionFieldList
+        if (verification == null || VERIFYING.get()) {
+            return;
+        }
+        if (verification.isRetryDue()) {
+            pendingVerifications.replace(project, verification, new Verification(project, verification.failures + 1));
+            verification = pendingVerifications.get(project);
+            if (verification == null) {
+                return;
+            }
+        }
+        verification.task.run();
+        waitFor(verification.task);
+    }
+
+    private static void waitFor(FutureTask<Void> task) {
+        try {
+            task.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw Throwables.propagate(e);
+        } catch (ExecutionException e) {
+            throw Throwables.propagate(e.getCause());
+        }
+    }
+
+    private void verifySchema(String project, Verification verification) {
+        VERIFYING.set(true);
+        try {
+            getCollections(project).forEach((collection, fields) -> {
+                Set<SchemaField> collect = moduleFields.constantFields.stream()
+                        .filter(constant ->
+                                !fields.stream()
+                                        .anyMatch(existing -> check(project, collection, constant, existing)))
+                        .collect(Collectors.toSet());
+
+                moduleFields.dependentFields.entrySet().stream().map(Map.Entry::getValue)
+                        .forEach(values ->
+                                values.stream().forEach(value ->
+                                        fields.stream().forEach(field -> check(project, collection, field, value))));
+
+                fields.forEach(field -> moduleFields.dependentFields.getOrDefault(field.getName(), ImmutableList.of()).stream()
+                        .filter(dependentField -> !fields.stream()
+                                .anyMatch(existing -> check(project, collection, existing, dependentField)))
+                        .forEach(collect::add));
+
+                if (!collect.isEmpty()) {
+                    try {
+                        getOrCreateCollectionFieldList(project, collection, collect);
+                    } catch (NotExistsException e) {
+                        throw Throwables.propagate(e);
                     }
-                }));
+                }
+            });
+            verifiedProjects.incrementAndGet();
+            failedProjects.remove(project);
+            pendingVerifications.remove(project, verification);
+        } catch (RuntimeException e) {
+            failedProjects.add(project);
+            // the conflicting fields must be changed manually so the verification would fail again
+            if (!(e instanceof RakamException)) {
+                verification.retryAt = System.nanoTime() + (retryIntervalNanos << Math.min(verification.failures, MAX_RETRY_DOUBLINGS));
+                verification.retryable = true;
+            }
+            LOGGER.error(e, "Unable to verify the schema of project %s", project);
+            throw e;
+        } finally {
+            VERIFYING.remove();
+        }
     }
 
     private boolean check(String project, String collection, SchemaField existing, SchemaField moduleField) {
         if (existing.getName().equals(moduleField.getName())) {
             if (!existing.getType().equals(moduleField.getType())) {
-                throw new IllegalStateException(format("Module field '%s' type does not match existing field in event of project %s.%s. Existing type: %s, Module field type: %s. \n" +
+                throw new RakamException(format("Module field '%s' type does not match existing field in event of project %s.%s. Existing type: %s, Module field type: %s. \n" +
                                 "Please change the schema manually of disable the module.",
-                        existing.getName(), project, collection, existing.getType(), moduleField.getType()));
+                        existing.getName(), project, collection, existing.getType(), moduleField.getType()), CONFLICT);
             }
             return true;
         }
@@ -94,6 +252,8 @@ public abstract class AbstractMetastore implements Metastore {
 
     @Override
     public List<SchemaField> getOrCreateCollectionFieldList(String project, String collection, Set<SchemaField> fieldList) throws NotExistsException {
+        ensureSchemaVerified(project);
+
         HashSet<SchemaField> fields = new HashSet<>(fieldList);
 
         Iterator<SchemaField> it = fields.iterator();
@@ -147,4 +307,23 @@ public abstract class AbstractMetastore implements Metastore {
     public Map<String, Stats> getStats(Collection<String> projects) {
         return projects.stream().collect(Collectors.toMap(e -> e, e -> new Stats()));
     }
+
+    private class Verification {
+        private final int failures;
+        private final FutureTask<Void> task;
+        private volatile long retryAt;
+        private volatile boolean retryable;
+
+        private Verification(String project, int failures) {
+            this.failures = failures;
+            this.task = new FutureTask<>(() -> {
+                verifySchema(project, this);
+                return null;
+            });
+        }
+
+        private boolean isRetryDue() {
+            return retryable && System.nanoTime() - retryAt >= 0;
+        }
+    }
 }
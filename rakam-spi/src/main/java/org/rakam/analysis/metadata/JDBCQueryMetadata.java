@@ -4,8 +4,10 @@ import com.google.common.base.Throwables;
 import com.google.common.cache.CacheBuilder;
 import com.google.common.cache.CacheLoader;
 import com.google.common.cache.LoadingCache;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.google.inject.Singleton;
 import com.google.inject.name.Named;
+import io.airlift.log.Logger;
 import org.rakam.analysis.JDBCPoolDataSource;
 import org.rakam.plugin.ContinuousQuery;
 import org.rakam.plugin.MaterializedView;
@@ -18,11 +20,12 @@ import org.rakam.util.ValidationUtil;
 import org.skife.jdbi.v2.DBI;
 import org.skife.jdbi.v2.Handle;
 import org.skife.jdbi.v2.tweak.ResultSetMapper;
+import org.skife.jdbi.v2.util.IntegerMapper;
 import org.skife.jdbi.v2.util.LongMapper;
 
 import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 import javax.inject.Inject;
-import java.time.Clock;
 import java.time.Duration;
 import java.time.Instant;
 import java.util.AbstractMap;
@@ -31,8 +34,14 @@ import java.util.Collection;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.UUID;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
 
 import static io.netty.handler.codec.http.HttpResponseStatus.BAD_REQUEST;
@@ -41,9 +50,17 @@ import static org.rakam.util.ValidationUtil.checkCollection;
 
 @Singleton
 public class JDBCQueryMetadata implements QueryMetadataStore {
+    private static final Logger LOGGER = Logger.get(JDBCQueryMetadata.class);
+    private static final Duration LEASE_DURATION = Duration.ofMinutes(1);
+    // the leases expire in the time of the database so that the clocks of the nodes don't need to be in sync
+    private static final String LEASE_EXPIRY = format("CURRENT_TIMESTAMP + INTERVAL '%d' SECOND", LEASE_DURATION.getSeconds());
+
     private final DBI dbi;
     private final LoadingCache<ProjectCollection, MaterializedView> materializedViewCache;
-    private final Clock clock;
+    private final String leaseOwner = UUID.randomUUID().toString();
+    private final ConcurrentMap<ProjectCollection, Long> leaseTokens = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService leaseHeartbeat = Executors.newSingleThreadScheduledExecutor(
+            new ThreadFactoryBuilder().setNameFormat("materialized-view-lease-heartbeat").setDaemon(true).build());
 
     private ResultSetMapper<MaterializedView> materializedViewMapper = (index, r, ctx) -> {
         Long update_interval = r.getLong("update_interval");
@@ -64,9 +81,8 @@ public class JDBCQueryMetadata implements QueryMetadataStore {
                     JsonHelper.read(r.getString(5), Map.class));
 
     @Inject
-    public JDBCQueryMetadata(@Named("report.metadata.store.jdbc") JDBCPoolDataSource dataSource, Clock clock) {
+    public JDBCQueryMetadata(@Named("report.metadata.store.jdbc") JDBCPoolDataSource dataSource) {
         dbi = new DBI(dataSource);
-        this.clock = clock;
 
         materializedViewCache = CacheBuilder.newBuilder().expireAfterWrite(1, TimeUnit.MINUTES).build(new CacheLoader<ProjectCollection, MaterializedView>() {
             @Override
@@ -100,6 +116,15 @@ public class JDBCQueryMetadata implements QueryMetadataStore {
                     "  PRIMARY KEY (project, table_name)" +
                     "  )")
                     .execute();
+            handle.createStatement("CREATE TABLE IF NOT EXISTS materialized_view_leases (" +
+                    "  project VARCHAR(255) NOT NULL," +
+                    "  table_name VARCHAR(255) NOT NULL," +
+                    "  owner VARCHAR(255)," +
+                    "  token BIGINT NOT NULL," +
+                    "  expires_at TIMESTAMP NOT NULL," +
+                    "  PRIMARY KEY (project, table_name)" +
+                    "  )")
+                    .execute();
             handle.createStatement("CREATE TABLE IF NOT EXISTS continuous_query_metadata (" +
                     "  project VARCHAR(255) NOT NULL," +
                     "  name VARCHAR(255) NOT NULL," +
@@ -134,34 +159,184 @@ public class JDBCQueryMetadata implements QueryMetadataStore {
         }
     }
 
+    /**
+     * Takes the refresh lease of the view if it's not held by another node and the view is not refreshed by another
+     * node since {@code view.lastUpdate} is read. The lease is a short-lived row that is extended periodically while
+     * the refresh is running instead of a row lock, so the refresh doesn't hold a connection of the pool. The lease
+     * token is incremented on each acquisition. The refresh checks {@link #isRefreshLeaseHeld} before it writes the
+     * data of the view and aborts if the lease is taken over by another node in the meantime, and the last update time
+     * is only set if the lease is still held when it's released. A write that is already running when the lease is
+     * lost is not rolled back.
+     */
     @Override
     public boolean updateMaterializedView(String project, MaterializedView view, CompletableFuture<Instant> releaseLock) {
-        Handle handle = dbi.open();
-        long lastUpdated = handle.createQuery("SELECT last_updated FROM materialized_views WHERE project = :project AND table_name = :table_name FOR UPDATE")
-                .bind("project", project)
-                .bind("table_name", view.tableName)
-                .map(LongMapper.FIRST).first();
-
-        view.lastUpdate = Instant.ofEpochSecond(lastUpdated);
-        if (!view.needsUpdate(clock)) {
+        Instant lastSeen = view.lastUpdate;
+        if (isRefreshedAfter(project, view, lastSeen)) {
+            return false;
+        }
+
+        Long token = acquireLease(project, view.tableName);
+        if (token == null) {
+            return false;
+        }
+        leaseTokens.put(new ProjectCollection(project, view.tableName), token);
+
+        try {
+            // another node may complete its refresh between the check and the acquisition of the lease
+            if (isRefreshedAfter(project, view, lastSeen)) {
+                releaseLease(project, view, token, null);
+                return false;
+            }
+
+            long heartbeatMillis = LEASE_DURATION.toMillis() / 3;
+            ScheduledFuture<?> heartbeat = leaseHeartbeat.scheduleAtFixedRate(() -> {
+                        // the heartbeat is cancelled when the lock is released but it must not outlive the refresh
+                        if (!releaseLock.isDone()) {
+                            extendLease(project, view.tableName, token);
+                        }
+                    },
+                    heartbeatMillis, heartbeatMillis, TimeUnit.MILLISECONDS);
+
+            releaseLock.whenComplete((success, ex) -> {
+                heartbeat.cancel(false);
+                releaseLease(project, view, token, ex == null ? success : null);
+            });
+        } catch (Throwable e) {
+            // the caller doesn't complete the lock if the lease is not taken
+            releaseLease(project, view, token, null);
+            throw e;
+        }
+
+        return true;
+    }
+
+    private boolean isRefreshedAfter(String project, MaterializedView view, Instant lastSeen) {
+        Long lastUpdated;
+        try (Handle handle = dbi.open()) {
+            lastUpdated = handle.createQuery("SELECT last_updated FROM materialized_views WHERE project = :project AND table_name = :table_name")
+                    .bind("project", project)
+                    .bind("table_name", view.tableName)
+                    .map(LongMapper.FIRST).first();
+        }
+
+        if (lastUpdated == null || lastUpdated == 0) {
             return false;
         }
 
-        releaseLock.whenComplete((success, ex) -> {
-            if (success != null) {
-                view.lastUpdate = success;
-                long lastUpdate = view.lastUpdate.getEpochSecond();
-                handle.createStatement("UPDATE materialized_views SET last_updated = :last_updated WHERE project = :project AND table_name = :table_name")
+        Instant lastUpdate = Instant.ofEpochSecond(lastUpdated);
+        if (lastSeen == null || lastUpdate.getEpochSecond() > lastSeen.getEpochSecond()) {
+            view.lastUpdate = lastUpdate;
+            return true;
+        }
+        return false;
+    }
+
+    @Override
+    public boolean isRefreshLeaseHeld(String project, MaterializedView view) {
+        Long token = leaseTokens.get(new ProjectCollection(project, view.tableName));
+        if (token == null) {
+            return false;
+        }
+
+        try (Handle handle = dbi.open()) {
+            return handle.createQuery("SELECT 1 FROM materialized_view_leases WHERE project = :project AND table_name = :table_name " +
+                    "AND owner = :owner AND token = :token AND expires_at > CURRENT_TIMESTAMP")
+                    .bind("project", project)
+                    .bind("table_name", view.tableName)
+                    .bind("owner", leaseOwner)
+                    .bind("token", token)
+                    .map(IntegerMapper.FIRST).first() != null;
+        }
+    }
+
+    private Long acquireLease(String project, String tableName) {
+        try (Handle handle = dbi.open()) {
+            int updated = handle.createStatement("UPDATE materialized_view_leases SET owner = :owner, token = token + 1, expires_at = " + LEASE_EXPIRY +
+                    " WHERE project = :project AND table_name = :table_name AND (owner IS NULL OR expires_at < CURRENT_TIMESTAMP)")
+                    .bind("owner", leaseOwner)
+                    .bind("project", project)
+                    .bind("table_name", tableName)
+                    .execute();
+
+            if (updated == 0) {
+                try {
+                    handle.createStatement("INSERT INTO materialized_view_leases (project, table_name, owner, token, expires_at) " +
+                            "VALUES (:project, :table_name, :owner, 1, " + LEASE_EXPIRY + ")")
+                            .bind("project", project)
+                            .bind("table_name", tableName)
+                            .bind("owner", leaseOwner)
+                            .execute();
+                    return 1L;
+                } catch (Exception e) {
+                    // the lease is held by another node
+                    return null;
+                }
+            }
+
+            return handle.createQuery("SELECT token FROM materialized_view_leases WHERE project = :project AND table_name = :table_name AND owner = :owner")
+                    .bind("project", project)
+                    .bind("table_name", tableName)
+                    .bind("owner", leaseOwner)
+                    .map(LongMapper.FIRST).first();
+        }
+    }
+
+    private void extendLease(String project, String tableName, long token) {
+        try (Handle handle = dbi.open()) {
+            int updated = handle.createStatement("UPDATE materialized_view_leases SET expires_at = " + LEASE_EXPIRY +
+                    " WHERE project = :project AND table_name = :table_name AND token = :token")
+                    .bind("project", project)
+                    .bind("table_name", tableName)
+                    .bind("token", token)
+                    .execute();
+            if (updated == 0) {
+                LOGGER.warn("The refresh lease of materialized view %s.%s is taken over by another node", project, tableName);
+            }
+        } catch (Exception e) {
+            LOGGER.warn(e, "Unable to extend the refresh lease of materialized view %s.%s", project, tableName);
+        }
+    }
+
+    private void releaseLease(String project, MaterializedView view, long token, Instant lastUpdate) {
+        leaseTokens.remove(new ProjectCollection(project, view.tableName), token);
+        boolean updated;
+        try (Handle handle = dbi.open()) {
+            updated = handle.inTransaction((transaction, status) -> {
+                int released = transaction.createStatement("UPDATE materialized_view_leases SET owner = NULL, expires_at = CURRENT_TIMESTAMP " +
+                        "WHERE project = :project AND table_name = :table_name AND token = :token")
                         .bind("project", project)
                         .bind("table_name", view.tableName)
-                        .bind("last_updated", lastUpdate)
+                        .bind("token", token)
                         .execute();
-            }
+                if (released == 0) {
+                    return false;
+                }
 
-            handle.close();
-        });
+                if (lastUpdate != null) {
+                    transaction.createStatement("UPDATE materialized_views SET last_updated = :last_updated WHERE project = :project AND table_name = :table_name")
+                            .bind("project", project)
+                            .bind("table_name", view.tableName)
+                            .bind("last_updated", lastUpdate.getEpochSecond())
+                            .execute();
+                }
+                return true;
+            });
+        } catch (Exception e) {
+            LOGGER.warn(e, "Unable to release the refresh lease of materialized view %s.%s", project, view.tableName);
+            return;
+        }
 
-        return true;
+        if (!updated) {
+            LOGGER.warn("The refresh lease of materialized view %s.%s is lost before the refresh is completed", project, view.tableName);
+        } else if (lastUpdate != null) {
+            view.lastUpdate = lastUpdate;
+            materializedViewCache.invalidate(new ProjectCollection(project, view.tableName));
+        }
+    }
+
+    @PreDestroy
+    public void destroy() {
+        leaseHeartbeat.shutdownNow();
     }
 
     @Override
@@ -225,7 +400,11 @@ public class JDBCQueryMetadata implements QueryMetadataStore {
             handle.createStatement("DELETE FROM materialized_views WHERE project = :project AND table_name = :name")
                     .bind("project", project)
                     .bind("name", tableName).execute();
+            handle.createStatement("DELETE FROM materialized_view_leases WHERE project = :project AND table_name = :name")
+                    .bind("project", project)
+                    .bind("name", tableName).execute();
         }
+        materializedViewCache.invalidate(new ProjectCollection(project, tableName));
     }
 
     @Override
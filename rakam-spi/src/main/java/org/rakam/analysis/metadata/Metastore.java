@@ -28,6 +28,10 @@ public interface Metastore {
 
     default void setup() {}
 
+    default SchemaVerificationStatus getSchemaVerificationStatus() {
+        return new SchemaVerificationStatus(0, 0, 0);
+    }
+
     class Stats {
         public Long allEvents;
         public Long monthlyEvents;
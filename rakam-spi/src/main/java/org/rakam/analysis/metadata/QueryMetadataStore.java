@@ -19,8 +19,21 @@ public interface QueryMetadataStore {
 
     List<MaterializedView> getMaterializedViews(String project);
 
+    /**
+     * Claims the refresh of the view for this node. Returns false if another node is refreshing the view or refreshed
+     * it after {@code view.lastUpdate}. The claim is released when {@code releaseLock} is completed and the last update
+     * time of the view is set to its value if it's not null.
+     */
     boolean updateMaterializedView(String project, MaterializedView view, CompletableFuture<Instant> releaseLock);
 
+    /**
+     * Returns true if the refresh of the view that is claimed by {@link #updateMaterializedView} is still owned by
+     * this node. The refresh must be aborted before it writes the data of the view otherwise.
+     */
+    default boolean isRefreshLeaseHeld(String project, MaterializedView view) {
+        return true;
+    }
+
     void createContinuousQuery(String project, ContinuousQuery report);
 
     void deleteContinuousQuery(String project, String tableName);
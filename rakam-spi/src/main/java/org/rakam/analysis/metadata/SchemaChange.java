@@ -0,0 +1,56 @@
+package org.rakam.analysis.metadata;
+
+import static java.util.Objects.requireNonNull;
+
+public class SchemaChange {
+    public final Type type;
+    public final String project;
+    public final String collection;
+
+    public SchemaChange(Type type, String project, String collection) {
+        this.type = requireNonNull(type, "type is null");
+        this.project = project;
+        this.collection = collection;
+    }
+
+    public static SchemaChange reset() {
+        return new SchemaChange(Type.RESET, null, null);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof SchemaChange)) return false;
+
+        SchemaChange that = (SchemaChange) o;
+
+        if (type != that.type) return false;
+        if (project != null ? !project.equals(that.project) : that.project != null) return false;
+        return collection != null ? collection.equals(that.collection) : that.collection == null;
+    }
+
+    @Override
+    public int hashCode() {
+        int result = type.hashCode();
+        result = 31 * result + (project != null ? project.hashCode() : 0);
+        result = 31 * result + (collection != null ? collection.hashCode() : 0);
+        return result;
+    }
+
+    @Override
+    public String toString() {
+        return "SchemaChange{" +
+                "type=" + type +
+                ", project='" + project + '\'' +
+                ", collection='" + collection + '\'' +
+                '}';
+    }
+
+    public enum Type {
+        PROJECT_CREATED, PROJECT_DELETED, COLLECTION_CREATED, COLLECTION_FIELD_CREATED,
+        /**
+         * The changes may be missed by the node, all the cached schemas should be invalidated.
+         */
+        RESET
+    }
+}
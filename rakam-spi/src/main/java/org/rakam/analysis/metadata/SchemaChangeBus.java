@@ -0,0 +1,39 @@
+package org.rakam.analysis.metadata;
+
+import java.util.function.Consumer;
+
+/**
+ * Carries the schema changes of the {@link AbstractMetastore} implementations between the nodes so that the
+ * metastores can cache the schemas until they're changed.
+ */
+public interface SchemaChangeBus {
+    /**
+     * The bus of the single node deployments, the changes are not propagated to the other nodes.
+     */
+    SchemaChangeBus LOCAL = new SchemaChangeBus() {
+        @Override
+        public boolean isDistributed() {
+            return false;
+        }
+
+        @Override
+        public void publish(SchemaChange change) {
+        }
+
+        @Override
+        public void subscribe(Consumer<SchemaChange> listener) {
+        }
+    };
+
+    /**
+     * Returns true if the changes published by a node are received by the listeners of all the other nodes.
+     */
+    boolean isDistributed();
+
+    void publish(SchemaChange change);
+
+    /**
+     * Registers a listener that is called with the changes published by the other nodes.
+     */
+    void subscribe(Consumer<SchemaChange> listener);
+}
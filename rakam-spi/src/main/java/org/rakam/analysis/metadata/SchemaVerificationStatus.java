@@ -0,0 +1,15 @@
+package org.rakam.analysis.metadata;
+
+public class SchemaVerificationStatus {
+    public final int projects;
+    public final int verifiedProjects;
+    public final int failedProjects;
+    public final boolean done;
+
+    public SchemaVerificationStatus(int projects, int verifiedProjects, int failedProjects) {
+        this.projects = projects;
+        this.verifiedProjects = verifiedProjects;
+        this.failedProjects = failedProjects;
+        this.done = verifiedProjects + failedProjects >= projects;
+    }
+}
@@ -0,0 +1,55 @@
+package org.rakam.config;
+
+import io.airlift.configuration.Config;
+import io.airlift.configuration.ConfigDescription;
+import io.airlift.units.Duration;
+
+public class ConfigManagerCacheConfig {
+    private boolean enabled = true;
+    private long size = 100_000;
+    private Duration ttl = Duration.valueOf("1m");
+    private Duration missingTtl = Duration.valueOf("5s");
+
+    @Config("config-manager.cache.enabled")
+    public ConfigManagerCacheConfig setEnabled(boolean enabled) {
+        this.enabled = enabled;
+        return this;
+    }
+
+    public boolean getEnabled() {
+        return enabled;
+    }
+
+    @Config("config-manager.cache.size")
+    public ConfigManagerCacheConfig setSize(long size) {
+        this.size = size;
+        return this;
+    }
+
+    public long getSize() {
+        return size;
+    }
+
+    @Config("config-manager.cache.ttl")
+    @ConfigDescription("The configs are cached until they're changed if the config manager propagates the changes " +
+            "to the other nodes, otherwise they expire after this duration.")
+    public ConfigManagerCacheConfig setTtl(String ttl) {
+        this.ttl = Duration.valueOf(ttl);
+        return this;
+    }
+
+    public Duration getTtl() {
+        return ttl;
+    }
+
+    @Config("config-manager.cache.missing-ttl")
+    @ConfigDescription("The configs that are not set are cached for this duration.")
+    public ConfigManagerCacheConfig setMissingTtl(String missingTtl) {
+        this.missingTtl = Duration.valueOf(missingTtl);
+        return this;
+    }
+
+    public Duration getMissingTtl() {
+        return missingTtl;
+    }
+}
@@ -0,0 +1,49 @@
+package org.rakam.config;
+
+import io.airlift.configuration.Config;
+import io.airlift.configuration.ConfigDescription;
+import io.airlift.units.Duration;
+
+import javax.validation.constraints.Min;
+
+public class SchemaVerificationConfig {
+    private boolean lazy = true;
+    private int threads = 8;
+    private Duration retryInterval = Duration.valueOf("10s");
+
+    @Config("event.schema.verification.lazy")
+    @ConfigDescription("If enabled, the existing schemas are verified in background after the startup and the schema " +
+            "of a project is verified on its first write if it's not verified yet, otherwise the startup waits for " +
+            "the verification of all the projects.")
+    public SchemaVerificationConfig setLazy(boolean lazy) {
+        this.lazy = lazy;
+        return this;
+    }
+
+    public boolean getLazy() {
+        return lazy;
+    }
+
+    @Config("event.schema.verification.threads")
+    public SchemaVerificationConfig setThreads(int threads) {
+        this.threads = threads;
+        return this;
+    }
+
+    @Min(1)
+    public int getThreads() {
+        return threads;
+    }
+
+    @Config("event.schema.verification.retry-interval")
+    @ConfigDescription("The time that the writes of a project fail with the error of its failed verification before " +
+            "the verification is retried, it's doubled after each failure. The conflicts of the module fields are not retried.")
+    public SchemaVerificationConfig setRetryInterval(String retryInterval) {
+        this.retryInterval = Duration.valueOf(retryInterval);
+        return this;
+    }
+
+    public Duration getRetryInterval() {
+        return retryInterval;
+    }
+}
@@ -60,7 +60,7 @@ public interface EventStore
 
     enum CompressionType
     {
-        GZIP;
+        GZIP, DEFLATE, ZSTD;
 
         @JsonCreator
         public static CompressionType get(String name)
@@ -1,10 +1,14 @@
 package org.rakam.plugin;
 
 import com.google.inject.Binder;
+import com.google.inject.Scopes;
 import com.google.inject.name.Names;
 import io.airlift.configuration.ConfigDefaults;
 import io.airlift.configuration.ConfigurationAwareModule;
 import io.airlift.configuration.ConfigurationFactory;
+import org.rakam.analysis.CachingConfigManager;
+import org.rakam.analysis.ConfigManager;
+import org.rakam.config.ConfigManagerCacheConfig;
 
 import javax.validation.constraints.NotNull;
 import java.lang.reflect.Field;
@@ -71,6 +75,22 @@ public abstract class RakamModule implements ConfigurationAwareModule {
         }
     }
 
+    /**
+     * Binds the config manager implementation behind {@link CachingConfigManager} unless config-manager.cache.enabled
+     * is set to false.
+     */
+    protected synchronized void bindConfigManager(Class<? extends ConfigManager> implementation)
+    {
+        if (!buildConfigObject(ConfigManagerCacheConfig.class).getEnabled()) {
+            binder.bind(ConfigManager.class).to(implementation);
+            return;
+        }
+
+        binder.bind(ConfigManager.class).annotatedWith(Names.named(CachingConfigManager.DELEGATE))
+                .to(implementation).in(Scopes.SINGLETON);
+        binder.bind(ConfigManager.class).to(CachingConfigManager.class).in(Scopes.SINGLETON);
+    }
+
     protected synchronized void install(RakamModule module)
     {
         module.setConfigurationFactory(configurationFactory);
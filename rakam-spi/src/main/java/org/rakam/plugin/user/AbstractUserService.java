@@ -53,6 +53,10 @@ public abstract class AbstractUserService {
         return storage.searchUsers(project, columns, filterExpression, eventFilter, sorting, limit, offset);
     }
 
+    public CompletableFuture<QueryResult> searchUsersAfter(String project, Expression filterExpression, List<UserStorage.EventFilter> eventFilter, Object lastUserId, int limit) {
+        return storage.searchUsersAfter(project, filterExpression, eventFilter, lastUserId, limit);
+    }
+
     public void createSegment(String project, String name, String tableName, Expression filterExpression, List<UserStorage.EventFilter> eventFilter, Duration interval) {
         storage.createSegment(project, name, tableName, filterExpression, eventFilter, interval);
     }
@@ -49,6 +49,34 @@ public interface UserStorage {
 
     CompletableFuture<QueryResult> searchUsers(String project, List<String> columns, Expression filterExpression, List<EventFilter> eventFilter, Sorting sortColumn, long limit, String offset);
 
+    /**
+     * Returns the users that match the filters and whose ids are greater than {@code lastUserId}, ordered by their ids.
+     * The id of the last user in a page is passed as {@code lastUserId} of the next page so that a segment of any size
+     * can be scanned page by page without the cost of an OFFSET. The storages that can't sort the users by their ids
+     * return all the users in the first page.
+     */
+    default CompletableFuture<QueryResult> searchUsersAfter(String project, Expression filterExpression, List<EventFilter> eventFilter, Object lastUserId, int limit)
+    {
+        if (lastUserId != null) {
+            return CompletableFuture.completedFuture(QueryResult.empty());
+        }
+        return searchUsers(project, null, filterExpression, eventFilter, null, Integer.MAX_VALUE, null);
+    }
+
+    /**
+     * Returns the position of the user id in the result of {@link #searchUsersAfter}. The storages that only return
+     * the ids of the users may use a different name for the column.
+     */
+    static int getIdColumn(List<SchemaField> metadata)
+    {
+        for (int i = 0; i < metadata.size(); i++) {
+            if (metadata.get(i).getName().equals(PRIMARY_KEY)) {
+                return i;
+            }
+        }
+        return 0;
+    }
+
     void createSegment(String project, String name, String tableName, Expression filterExpression, List<EventFilter> eventFilter, Duration interval);
 
     List<SchemaField> getMetadata(String project);
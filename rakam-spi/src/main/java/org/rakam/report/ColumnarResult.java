@@ -0,0 +1,723 @@
+package org.rakam.report;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.JsonSerializer;
+import com.fasterxml.jackson.databind.SerializerProvider;
+import com.fasterxml.jackson.databind.annotation.JsonSerialize;
+import org.rakam.collection.FieldType;
+import org.rakam.collection.SchemaField;
+
+import java.io.IOException;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.RandomAccess;
+
+import static com.google.common.base.Preconditions.checkState;
+
+/**
+ * Rows of a {@link QueryResult} that are stored in typed column vectors: the numeric and boolean values are kept in
+ * primitive arrays with a null bitmap and the strings are dictionary encoded. It's a {@code List<List<Object>>} so it
+ * can be used wherever the boxed rows are used and it's serialized to the same JSON, but the values are only boxed
+ * when a row is accessed by its index. The post-processors can use the typed accessors of {@link #getColumn(int)}
+ * instead of boxing each cell.
+ */
+@JsonSerialize(using = ColumnarResult.Serializer.class)
+public final class ColumnarResult
+        extends AbstractList<List<Object>>
+        implements RandomAccess
+{
+    private final List<SchemaField> metadata;
+    private final Column[] columns;
+    private final int rowCount;
+
+    private ColumnarResult(List<SchemaField> metadata, Column[] columns, int rowCount)
+    {
+        this.metadata = metadata;
+        this.columns = columns;
+        this.rowCount = rowCount;
+    }
+
+    /**
+     * Returns the rows as they are if they're already columnar, otherwise copies them into column vectors.
+     */
+    public static ColumnarResult copyOf(List<SchemaField> metadata, List<List<Object>> rows)
+    {
+        if (rows instanceof ColumnarResult) {
+            return (ColumnarResult) rows;
+        }
+
+        Builder builder = new Builder(metadata, rows.size());
+        for (List<Object> row : rows) {
+            for (int i = 0; i < metadata.size(); i++) {
+                builder.append(i, row.get(i));
+            }
+        }
+        return builder.build();
+    }
+
+    public List<SchemaField> getMetadata()
+    {
+        return metadata;
+    }
+
+    public Column getColumn(int column)
+    {
+        return columns[column];
+    }
+
+    @Override
+    public List<Object> get(int row)
+    {
+        if (row < 0 || row >= rowCount) {
+            throw new IndexOutOfBoundsException("row: " + row + ", size: " + rowCount);
+        }
+        return new Row(row);
+    }
+
+    @Override
+    public int size()
+    {
+        return rowCount;
+    }
+
+    private class Row
+            extends AbstractList<Object>
+            implements RandomAccess
+    {
+        private final int row;
+
+        private Row(int row)
+        {
+            this.row = row;
+        }
+
+        @Override
+        public Object get(int column)
+        {
+            return columns[column].getObject(row);
+        }
+
+        @Override
+        public int size()
+        {
+            return columns.length;
+        }
+    }
+
+    public abstract static class Column
+    {
+        public abstract boolean isNull(int row);
+
+        /**
+         * Returns the boxed value, the class of the value is the same as the value that is appended to the builder.
+         */
+        public abstract Object getObject(int row);
+
+        public long getLong(int row)
+        {
+            return ((Number) getObject(row)).longValue();
+        }
+
+        public double getDouble(int row)
+        {
+            return ((Number) getObject(row)).doubleValue();
+        }
+
+        abstract void serialize(int row, JsonGenerator generator, SerializerProvider provider)
+                throws IOException;
+    }
+
+    public static final class LongColumn
+            extends Column
+    {
+        private final long[] values;
+        private final BitSet nulls;
+        // INTEGER values are boxed as Integer
+        private final boolean integer;
+
+        private LongColumn(long[] values, BitSet nulls, boolean integer)
+        {
+            this.values = values;
+            this.nulls = nulls;
+            this.integer = integer;
+        }
+
+        @Override
+        public boolean isNull(int row)
+        {
+            return nulls.get(row);
+        }
+
+        @Override
+        public Object getObject(int row)
+        {
+            if (nulls.get(row)) {
+                return null;
+            }
+            return integer ? (Object) (int) values[row] : (Object) values[row];
+        }
+
+        @Override
+        public long getLong(int row)
+        {
+            return values[row];
+        }
+
+        @Override
+        public double getDouble(int row)
+        {
+            return values[row];
+        }
+
+        @Override
+        void serialize(int row, JsonGenerator generator, SerializerProvider provider)
+                throws IOException
+        {
+            if (nulls.get(row)) {
+                generator.writeNull();
+            }
+            else {
+                generator.writeNumber(values[row]);
+            }
+        }
+    }
+
+    public static final class DoubleColumn
+            extends Column
+    {
+        private final double[] values;
+        private final BitSet nulls;
+
+        private DoubleColumn(double[] values, BitSet nulls)
+        {
+            this.values = values;
+            this.nulls = nulls;
+        }
+
+        @Override
+        public boolean isNull(int row)
+        {
+            return nulls.get(row);
+        }
+
+        @Override
+        public Object getObject(int row)
+        {
+            return nulls.get(row) ? null : values[row];
+        }
+
+        @Override
+        public long getLong(int row)
+        {
+            return (long) values[row];
+        }
+
+        @Override
+        public double getDouble(int row)
+        {
+            return values[row];
+        }
+
+        @Override
+        void serialize(int row, JsonGenerator generator, SerializerProvider provider)
+                throws IOException
+        {
+            if (nulls.get(row)) {
+                generator.writeNull();
+            }
+            else {
+                generator.writeNumber(values[row]);
+            }
+        }
+    }
+
+    public static final class BooleanColumn
+            extends Column
+    {
+        private final BitSet values;
+        private final BitSet nulls;
+
+        private BooleanColumn(BitSet values, BitSet nulls)
+        {
+            this.values = values;
+            this.nulls = nulls;
+        }
+
+        @Override
+        public boolean isNull(int row)
+        {
+            return nulls.get(row);
+        }
+
+        @Override
+        public Object getObject(int row)
+        {
+            return nulls.get(row) ? null : values.get(row);
+        }
+
+        public boolean getBoolean(int row)
+        {
+            return values.get(row);
+        }
+
+        @Override
+        void serialize(int row, JsonGenerator generator, SerializerProvider provider)
+                throws IOException
+        {
+            if (nulls.get(row)) {
+                generator.writeNull();
+            }
+            else {
+                generator.writeBoolean(values.get(row));
+            }
+        }
+    }
+
+    public static final class StringColumn
+            extends Column
+    {
+        private final int[] ids;
+        private final String[] dictionary;
+
+        private StringColumn(int[] ids, String[] dictionary)
+        {
+            this.ids = ids;
+            this.dictionary = dictionary;
+        }
+
+        @Override
+        public boolean isNull(int row)
+        {
+            return ids[row] == -1;
+        }
+
+        @Override
+        public Object getObject(int row)
+        {
+            return getString(row);
+        }
+
+        public String getString(int row)
+        {
+            int id = ids[row];
+            return id == -1 ? null : dictionary[id];
+        }
+
+        /**
+         * The values that are equal have the same id so the column can be grouped without hashing the strings.
+         */
+        public int getDictionaryId(int row)
+        {
+            return ids[row];
+        }
+
+        public int getDictionarySize()
+        {
+            return dictionary.length;
+        }
+
+        @Override
+        void serialize(int row, JsonGenerator generator, SerializerProvider provider)
+                throws IOException
+        {
+            int id = ids[row];
+            if (id == -1) {
+                generator.writeNull();
+            }
+            else {
+                generator.writeString(dictionary[id]);
+            }
+        }
+    }
+
+    public static final class ObjectColumn
+            extends Column
+    {
+        private final Object[] values;
+
+        private ObjectColumn(Object[] values)
+        {
+            this.values = values;
+        }
+
+        @Override
+        public boolean isNull(int row)
+        {
+            return values[row] == null;
+        }
+
+        @Override
+        public Object getObject(int row)
+        {
+            return values[row];
+        }
+
+        @Override
+        void serialize(int row, JsonGenerator generator, SerializerProvider provider)
+                throws IOException
+        {
+            provider.defaultSerializeValue(values[row], generator);
+        }
+    }
+
+    public static class Serializer
+            extends JsonSerializer<ColumnarResult>
+    {
+        @Override
+        public void serialize(ColumnarResult value, JsonGenerator generator, SerializerProvider provider)
+                throws IOException
+        {
+            generator.writeStartArray();
+            for (int row = 0; row < value.rowCount; row++) {
+                generator.writeStartArray();
+                for (Column column : value.columns) {
+                    column.serialize(row, generator, provider);
+                }
+                generator.writeEndArray();
+            }
+            generator.writeEndArray();
+        }
+    }
+
+    /**
+     * The values of a row are appended column by column. A column is stored as boxed objects if a value that
+     * doesn't match the type of the column is appended, so that {@link Column#getObject(int)} always returns a value
+     * that is equal to the appended value.
+     */
+    public static class Builder
+    {
+        private final List<SchemaField> metadata;
+        private final ColumnBuilder[] columns;
+
+        public Builder(List<SchemaField> metadata)
+        {
+            this(metadata, 16);
+        }
+
+        public Builder(List<SchemaField> metadata, int expectedRows)
+        {
+            this.metadata = metadata;
+            this.columns = new ColumnBuilder[metadata.size()];
+            int capacity = Math.max(expectedRows, 1);
+            for (int i = 0; i < columns.length; i++) {
+                columns[i] = createColumnBuilder(metadata.get(i).getType(), capacity);
+            }
+        }
+
+        public Builder appendNull(int column)
+        {
+            columns[column].appendNull();
+            return this;
+        }
+
+        public Builder appendLong(int column, long value)
+        {
+            ColumnBuilder builder = columns[column];
+            if (builder instanceof LongColumnBuilder) {
+                ((LongColumnBuilder) builder).appendLong(value);
+            }
+            else {
+                append(column, value);
+            }
+            return this;
+        }
+
+        public Builder appendDouble(int column, double value)
+        {
+            ColumnBuilder builder = columns[column];
+            if (builder instanceof DoubleColumnBuilder) {
+                ((DoubleColumnBuilder) builder).appendDouble(value);
+            }
+            else {
+                append(column, value);
+            }
+            return this;
+        }
+
+        public Builder append(int column, Object value)
+        {
+            if (value == null) {
+                columns[column].appendNull();
+            }
+            else if (!columns[column].append(value)) {
+                columns[column] = columns[column].toObjectColumnBuilder();
+                columns[column].append(value);
+            }
+            return this;
+        }
+
+        public ColumnarResult build()
+        {
+            int rowCount = columns.length == 0 ? 0 : columns[0].size();
+            Column[] built = new Column[columns.length];
+            for (int i = 0; i < columns.length; i++) {
+                checkState(columns[i].size() == rowCount, "column %s has %s values, expected %s",
+                        metadata.get(i).getName(), columns[i].size(), rowCount);
+                built[i] = columns[i].build();
+            }
+            return new ColumnarResult(metadata, built, rowCount);
+        }
+
+        private static ColumnBuilder createColumnBuilder(FieldType type, int capacity)
+        {
+            switch (type) {
+                case LONG:
+                    return new LongColumnBuilder(capacity, false);
+                case INTEGER:
+                    return new LongColumnBuilder(capacity, true);
+                case DOUBLE:
+                case DECIMAL:
+                    return new DoubleColumnBuilder(capacity);
+                case BOOLEAN:
+                    return new BooleanColumnBuilder(capacity);
+                case STRING:
+                    return new StringColumnBuilder(capacity);
+                default:
+                    return new ObjectColumnBuilder(capacity);
+            }
+        }
+    }
+
+    private abstract static class ColumnBuilder
+    {
+        protected int size;
+
+        int size()
+        {
+            return size;
+        }
+
+        abstract void appendNull();
+
+        /**
+         * Returns false if the value can't be stored in this column.
+         */
+        abstract boolean append(Object value);
+
+        abstract Column build();
+
+        ObjectColumnBuilder toObjectColumnBuilder()
+        {
+            Column column = build();
+            ObjectColumnBuilder builder = new ObjectColumnBuilder(Math.max(size * 2, 16));
+            for (int i = 0; i < size; i++) {
+                builder.append(column.getObject(i));
+            }
+            return builder;
+        }
+    }
+
+    private static class LongColumnBuilder
+            extends ColumnBuilder
+    {
+        private final boolean integer;
+        private final BitSet nulls = new BitSet();
+        private long[] values;
+
+        LongColumnBuilder(int capacity, boolean integer)
+        {
+            this.values = new long[capacity];
+            this.integer = integer;
+        }
+
+        void appendLong(long value)
+        {
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size * 2);
+            }
+            values[size++] = value;
+        }
+
+        @Override
+        void appendNull()
+        {
+            nulls.set(size);
+            appendLong(0);
+        }
+
+        @Override
+        boolean append(Object value)
+        {
+            if (integer ? !(value instanceof Integer) : !(value instanceof Long)) {
+                return false;
+            }
+            appendLong(((Number) value).longValue());
+            return true;
+        }
+
+        @Override
+        Column build()
+        {
+            return new LongColumn(Arrays.copyOf(values, size), nulls, integer);
+        }
+    }
+
+    private static class DoubleColumnBuilder
+            extends ColumnBuilder
+    {
+        private final BitSet nulls = new BitSet();
+        private double[] values;
+
+        DoubleColumnBuilder(int capacity)
+        {
+            this.values = new double[capacity];
+        }
+
+        void appendDouble(double value)
+        {
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size * 2);
+            }
+            values[size++] = value;
+        }
+
+        @Override
+        void appendNull()
+        {
+            nulls.set(size);
+            appendDouble(0);
+        }
+
+        @Override
+        boolean append(Object value)
+        {
+            if (!(value instanceof Double)) {
+                return false;
+            }
+            appendDouble((Double) value);
+            return true;
+        }
+
+        @Override
+        Column build()
+        {
+            return new DoubleColumn(Arrays.copyOf(values, size), nulls);
+        }
+    }
+
+    private static class BooleanColumnBuilder
+            extends ColumnBuilder
+    {
+        private final BitSet values = new BitSet();
+        private final BitSet nulls = new BitSet();
+
+        BooleanColumnBuilder(int capacity)
+        {
+        }
+
+        @Override
+        void appendNull()
+        {
+            nulls.set(size++);
+        }
+
+        @Override
+        boolean append(Object value)
+        {
+            if (!(value instanceof Boolean)) {
+                return false;
+            }
+            values.set(size++, (Boolean) value);
+            return true;
+        }
+
+        @Override
+        Column build()
+        {
+            return new BooleanColumn(values, nulls);
+        }
+    }
+
+    private static class StringColumnBuilder
+            extends ColumnBuilder
+    {
+        private final Map<String, Integer> dictionaryIds = new HashMap<>();
+        private final List<String> dictionary = new ArrayList<>();
+        private int[] ids;
+
+        StringColumnBuilder(int capacity)
+        {
+            this.ids = new int[capacity];
+        }
+
+        private void appendId(int id)
+        {
+            if (size == ids.length) {
+                ids = Arrays.copyOf(ids, size * 2);
+            }
+            ids[size++] = id;
+        }
+
+        @Override
+        void appendNull()
+        {
+            appendId(-1);
+        }
+
+        @Override
+        boolean append(Object value)
+        {
+            if (!(value instanceof String)) {
+                return false;
+            }
+            Integer id = dictionaryIds.get(value);
+            if (id == null) {
+                id = dictionary.size();
+                dictionary.add((String) value);
+                dictionaryIds.put((String) value, id);
+            }
+            appendId(id);
+            return true;
+        }
+
+        @Override
+        Column build()
+        {
+            return new StringColumn(Arrays.copyOf(ids, size), dictionary.toArray(new String[dictionary.size()]));
+        }
+    }
+
+    private static class ObjectColumnBuilder
+            extends ColumnBuilder
+    {
+        private Object[] values;
+
+        ObjectColumnBuilder(int capacity)
+        {
+            this.values = new Object[capacity];
+        }
+
+        @Override
+        void appendNull()
+        {
+            append(null);
+        }
+
+        @Override
+        boolean append(Object value)
+        {
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size * 2);
+            }
+            values[size++] = value;
+            return true;
+        }
+
+        @Override
+        Column build()
+        {
+            return new ObjectColumn(Arrays.copyOf(values, size));
+        }
+
+        @Override
+        ObjectColumnBuilder toObjectColumnBuilder()
+        {
+            return this;
+        }
+    }
+}
@@ -2,6 +2,8 @@ package org.rakam.report;
 
 import com.google.common.base.Throwables;
 import io.airlift.configuration.Config;
+import io.airlift.configuration.ConfigDescription;
+import io.airlift.units.Duration;
 import org.rakam.util.MailSender;
 
 import javax.mail.Authenticator;
@@ -10,6 +12,7 @@ import javax.mail.Session;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.util.Properties;
+import java.util.concurrent.TimeUnit;
 
 public class EmailClientConfig {
     private String host;
@@ -20,6 +23,10 @@ public class EmailClientConfig {
     private String fromAddress = "noreply@rakam.io";
     private String fromName = "Rakam.io";
     private URL siteUrl;
+    private int bulkConnections = 4;
+    private double bulkRatePerDomain = 10;
+    private int bulkMaxRetries = 3;
+    private Duration bulkRetryBackoff = new Duration(1, TimeUnit.SECONDS);
 
     public EmailClientConfig() {
         try {
@@ -101,6 +108,44 @@ public class EmailClientConfig {
         return useTls;
     }
 
+    @Config("mail.bulk.connections")
+    @ConfigDescription("The number of SMTP connections that are kept open and used in parallel for the batch email actions")
+    public void setBulkConnections(int bulkConnections) {
+        this.bulkConnections = bulkConnections;
+    }
+
+    public int getBulkConnections() {
+        return bulkConnections;
+    }
+
+    @Config("mail.bulk.rate-per-domain")
+    @ConfigDescription("The maximum number of emails sent per second to the recipients of a domain such as gmail.com")
+    public void setBulkRatePerDomain(double bulkRatePerDomain) {
+        this.bulkRatePerDomain = bulkRatePerDomain;
+    }
+
+    public double getBulkRatePerDomain() {
+        return bulkRatePerDomain;
+    }
+
+    @Config("mail.bulk.max-retries")
+    public void setBulkMaxRetries(int bulkMaxRetries) {
+        this.bulkMaxRetries = bulkMaxRetries;
+    }
+
+    public int getBulkMaxRetries() {
+        return bulkMaxRetries;
+    }
+
+    @Config("mail.bulk.retry-backoff")
+    public void setBulkRetryBackoff(String bulkRetryBackoff) {
+        this.bulkRetryBackoff = Duration.valueOf(bulkRetryBackoff);
+    }
+
+    public Duration getBulkRetryBackoff() {
+        return bulkRetryBackoff;
+    }
+
     /*
         The javax documentation doesn't mention but it seems that Session is thread-safe. See http://stackoverflow.com/a/12733317/689144
      */
@@ -5,6 +5,9 @@ import com.facebook.presto.sql.parser.SqlParser;
 import com.facebook.presto.sql.tree.QualifiedName;
 import com.facebook.presto.sql.tree.Query;
 import com.facebook.presto.sql.tree.QuerySpecification;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.eventbus.Subscribe;
 import com.google.inject.Inject;
 import io.netty.handler.codec.http.HttpResponseStatus;
 import org.rakam.analysis.EscapeIdentifier;
@@ -13,6 +16,7 @@ import org.rakam.analysis.MaterializedViewService.MaterializedViewExecution;
 import org.rakam.analysis.metadata.Metastore;
 import org.rakam.collection.SchemaField;
 import org.rakam.plugin.MaterializedView;
+import org.rakam.plugin.SystemEvents;
 import org.rakam.util.NotExistsException;
 import org.rakam.util.QueryFormatter;
 import org.rakam.util.RakamException;
@@ -26,6 +30,7 @@ import java.util.Map;
 import java.util.Optional;
 import java.util.Set;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
 import java.util.function.Function;
 import java.util.stream.Collectors;
 
@@ -45,6 +50,10 @@ public class QueryExecutorService
     private final Clock clock;
     private final char escapeIdentifier;
     private volatile Set<String> projectCache;
+    private final Cache<MetadataKey, List<SchemaField>> metadataCache = CacheBuilder.newBuilder()
+            .expireAfterWrite(5, TimeUnit.MINUTES)
+            .maximumSize(10000)
+            .build();
 
     @Inject
     public QueryExecutorService(QueryExecutor executor, Metastore metastore, MaterializedViewService materializedViewService, Clock clock, @EscapeIdentifier char escapeIdentifier)
@@ -54,6 +63,8 @@ public class QueryExecutorService
         this.metastore = metastore;
         this.clock = clock;
         this.escapeIdentifier = escapeIdentifier;
+        // the queries may read the views so their schemas are not valid after the views are changed
+        materializedViewService.addViewChangeListener(this::onViewChanged);
     }
 
     public QueryExecution executeQuery(String project, String sqlQuery, int limit)
@@ -206,7 +217,7 @@ public class QueryExecutorService
                     throw new RakamException(String.format("Referenced materialized table %s is not exist", node.getSuffix()), BAD_REQUEST);
                 }
                 if (fetchReference) {
-                    materializedViews.computeIfAbsent(materializedView, (key) -> materializedViewService.lockAndUpdateView(project, materializedView));
+                    materializedViews.computeIfAbsent(materializedView, (key) -> materializedViewService.getViewForQuery(project, materializedView));
                     return "";
                 }
                 else {
@@ -217,12 +228,18 @@ public class QueryExecutorService
         };
     }
 
+    /**
+     * Returns the output columns of the query. The columns are derived from the query locally if the types of all
+     * the select items are known, otherwise the query is executed with {@code LIMIT 0} to get the columns.
+     */
     public CompletableFuture<List<SchemaField>> metadata(String project, String query)
     {
         StringBuilder builder = new StringBuilder();
         Query queryStatement;
         try {
-            queryStatement = (Query) parser.createStatement(checkNotNull(query, "query is required"));
+            synchronized (parser) {
+                queryStatement = (Query) parser.createStatement(checkNotNull(query, "query is required"));
+            }
         }
         catch (Exception e) {
             throw new RakamException("Unable to parse query: " + e.getMessage(), BAD_REQUEST);
@@ -231,19 +248,107 @@ public class QueryExecutorService
         new QueryFormatter(builder, qualifiedName -> executor.formatTableReference(project, qualifiedName), escapeIdentifier)
                 .process(queryStatement, 1);
 
+        String formattedQuery = builder.toString();
+        MetadataKey key = new MetadataKey(project, formattedQuery);
+        List<SchemaField> cachedMetadata = metadataCache.getIfPresent(key);
+        if (cachedMetadata != null) {
+            return CompletableFuture.completedFuture(cachedMetadata);
+        }
+
+        Optional<List<SchemaField>> localMetadata = new QueryTypeAnalyzer(name -> getTableSchema(project, name))
+                .analyze(queryStatement);
+        if (localMetadata.isPresent()) {
+            metadataCache.put(key, localMetadata.get());
+            return CompletableFuture.completedFuture(localMetadata.get());
+        }
+
         QueryExecution execution = executor
-                .executeRawQuery(builder.toString() + " limit 0");
+                .executeRawQuery(formattedQuery + " limit 0");
         CompletableFuture<List<SchemaField>> f = new CompletableFuture<>();
         execution.getResult().thenAccept(result -> {
             if (result.isFailed()) {
                 f.completeExceptionally(new RakamException(result.getError().message, HttpResponseStatus.INTERNAL_SERVER_ERROR));
             }
             else {
+                metadataCache.put(key, result.getMetadata());
                 f.complete(result.getMetadata());
             }
         });
         return f;
     }
 
-    ;
+    private List<SchemaField> getTableSchema(String project, QualifiedName name)
+    {
+        try {
+            if (!name.getPrefix().isPresent() || name.getPrefix().get().toString().equals("collection")) {
+                // the tables that start with underscore such as _all and _users are generated by the query executors
+                if (name.getSuffix().startsWith("_")) {
+                    return null;
+                }
+                return metastore.getCollection(project, name.getSuffix());
+            }
+            if (name.getPrefix().get().toString().equals("materialized")) {
+                return materializedViewService.getSchema(project, name.getSuffix());
+            }
+        }
+        catch (RuntimeException e) {
+            // the query is sent to the database which returns the actual error if the table doesn't exist
+        }
+        return null;
+    }
+
+    private void onViewChanged(String project, String tableName)
+    {
+        invalidateMetadata(project);
+    }
+
+    @Subscribe
+    public void onCreateCollection(SystemEvents.CollectionCreatedEvent event)
+    {
+        invalidateMetadata(event.project);
+    }
+
+    @Subscribe
+    public void onCreateCollectionFields(SystemEvents.CollectionFieldCreatedEvent event)
+    {
+        invalidateMetadata(event.project);
+    }
+
+    private void invalidateMetadata(String project)
+    {
+        // the queries can only refer to the tables of their project
+        metadataCache.asMap().keySet().removeIf(key -> key.project.equals(project));
+    }
+
+    private static final class MetadataKey
+    {
+        private final String project;
+        private final String query;
+
+        private MetadataKey(String project, String query)
+        {
+            this.project = project;
+            this.query = query;
+        }
+
+        @Override
+        public boolean equals(Object o)
+        {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof MetadataKey)) {
+                return false;
+            }
+
+            MetadataKey that = (MetadataKey) o;
+            return project.equals(that.project) && query.equals(that.query);
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return 31 * project.hashCode() + query.hashCode();
+        }
+    }
 }
@@ -0,0 +1,732 @@
+package org.rakam.report;
+
+import com.facebook.presto.sql.tree.AliasedRelation;
+import com.facebook.presto.sql.tree.AllColumns;
+import com.facebook.presto.sql.tree.ArithmeticBinaryExpression;
+import com.facebook.presto.sql.tree.ArithmeticUnaryExpression;
+import com.facebook.presto.sql.tree.AstVisitor;
+import com.facebook.presto.sql.tree.BetweenPredicate;
+import com.facebook.presto.sql.tree.BooleanLiteral;
+import com.facebook.presto.sql.tree.Cast;
+import com.facebook.presto.sql.tree.CoalesceExpression;
+import com.facebook.presto.sql.tree.ComparisonExpression;
+import com.facebook.presto.sql.tree.CurrentTime;
+import com.facebook.presto.sql.tree.DefaultTraversalVisitor;
+import com.facebook.presto.sql.tree.DereferenceExpression;
+import com.facebook.presto.sql.tree.Expression;
+import com.facebook.presto.sql.tree.FunctionCall;
+import com.facebook.presto.sql.tree.IfExpression;
+import com.facebook.presto.sql.tree.InListExpression;
+import com.facebook.presto.sql.tree.InPredicate;
+import com.facebook.presto.sql.tree.IsNotNullPredicate;
+import com.facebook.presto.sql.tree.IsNullPredicate;
+import com.facebook.presto.sql.tree.Join;
+import com.facebook.presto.sql.tree.JoinOn;
+import com.facebook.presto.sql.tree.LikePredicate;
+import com.facebook.presto.sql.tree.LogicalBinaryExpression;
+import com.facebook.presto.sql.tree.LongLiteral;
+import com.facebook.presto.sql.tree.NotExpression;
+import com.facebook.presto.sql.tree.NullIfExpression;
+import com.facebook.presto.sql.tree.QualifiedName;
+import com.facebook.presto.sql.tree.QualifiedNameReference;
+import com.facebook.presto.sql.tree.Query;
+import com.facebook.presto.sql.tree.QueryBody;
+import com.facebook.presto.sql.tree.QuerySpecification;
+import com.facebook.presto.sql.tree.Relation;
+import com.facebook.presto.sql.tree.SearchedCaseExpression;
+import com.facebook.presto.sql.tree.SelectItem;
+import com.facebook.presto.sql.tree.SetOperation;
+import com.facebook.presto.sql.tree.SimpleCaseExpression;
+import com.facebook.presto.sql.tree.SingleColumn;
+import com.facebook.presto.sql.tree.StringLiteral;
+import com.facebook.presto.sql.tree.SubqueryExpression;
+import com.facebook.presto.sql.tree.SubscriptExpression;
+import com.facebook.presto.sql.tree.Table;
+import com.facebook.presto.sql.tree.TableSubquery;
+import com.facebook.presto.sql.tree.TimestampLiteral;
+import com.facebook.presto.sql.tree.WhenClause;
+import com.facebook.presto.sql.tree.WithQuery;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import org.rakam.collection.FieldType;
+import org.rakam.collection.SchemaField;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Optional;
+import java.util.function.Function;
+
+import static org.rakam.collection.FieldType.BOOLEAN;
+import static org.rakam.collection.FieldType.DATE;
+import static org.rakam.collection.FieldType.DECIMAL;
+import static org.rakam.collection.FieldType.DOUBLE;
+import static org.rakam.collection.FieldType.INTEGER;
+import static org.rakam.collection.FieldType.LONG;
+import static org.rakam.collection.FieldType.STRING;
+import static org.rakam.collection.FieldType.TIMESTAMP;
+
+/**
+ * Derives the output columns of a query from its syntax tree and the schemas of the tables it references, without
+ * sending the query to the database.
+ * <p>
+ * The analyzer only types the expressions that have the same type in all the supported databases. If it can't type
+ * an expression, can't resolve a table or a column, or a select item has a name that is chosen by the database
+ * (an expression without an alias), {@link #analyze(Query)} returns {@link Optional#empty()} and the caller should
+ * ask the database instead.
+ */
+public class QueryTypeAnalyzer
+{
+    private static final Map<String, Function<List<FieldType>, FieldType>> FUNCTIONS = ImmutableMap.<String, Function<List<FieldType>, FieldType>>builder()
+            .put("count", args -> LONG)
+            .put("count_if", args -> LONG)
+            .put("approx_distinct", args -> LONG)
+            .put("row_number", args -> LONG)
+            .put("rank", args -> LONG)
+            .put("dense_rank", args -> LONG)
+            .put("min", QueryTypeAnalyzer::firstArgument)
+            .put("max", QueryTypeAnalyzer::firstArgument)
+            .put("arbitrary", QueryTypeAnalyzer::firstArgument)
+            .put("abs", args -> args.size() == 1 && args.get(0).isNumeric() ? args.get(0) : null)
+            // the sum of bigints and the average of integers are decimals in PostgreSQL but bigints and doubles in Presto
+            .put("sum", args -> args.size() == 1 && args.get(0) == DOUBLE ? DOUBLE : null)
+            .put("avg", args -> args.size() == 1 && args.get(0) == DOUBLE ? DOUBLE : null)
+            .put("bool_and", args -> BOOLEAN)
+            .put("bool_or", args -> BOOLEAN)
+            .put("lower", args -> STRING)
+            .put("upper", args -> STRING)
+            .put("trim", args -> STRING)
+            .put("ltrim", args -> STRING)
+            .put("rtrim", args -> STRING)
+            .put("substr", args -> STRING)
+            .put("replace", args -> STRING)
+            .put("concat", args -> STRING)
+            .put("lpad", args -> STRING)
+            .put("rpad", args -> STRING)
+            .put("reverse", args -> STRING)
+            .put("date", args -> DATE)
+            .put("now", args -> TIMESTAMP)
+            .put("date_trunc", args -> args.size() == 2 && args.get(1) == TIMESTAMP ? TIMESTAMP : null)
+            .build();
+
+    private final Function<QualifiedName, List<SchemaField>> tableSchema;
+
+    /**
+     * @param tableSchema returns the columns of a table or null if the table can't be analyzed locally
+     */
+    public QueryTypeAnalyzer(Function<QualifiedName, List<SchemaField>> tableSchema)
+    {
+        this.tableSchema = tableSchema;
+    }
+
+    public Optional<List<SchemaField>> analyze(Query query)
+    {
+        List<Field> fields = analyzeQuery(query, ImmutableMap.of());
+        if (fields == null) {
+            return Optional.empty();
+        }
+
+        ImmutableList.Builder<SchemaField> builder = ImmutableList.builder();
+        for (Field field : fields) {
+            builder.add(new SchemaField(field.name, field.type));
+        }
+        return Optional.of(builder.build());
+    }
+
+    private List<Field> analyzeQuery(Query query, Map<String, List<Field>> withQueries)
+    {
+        if (query.getWith().isPresent()) {
+            if (query.getWith().get().isRecursive()) {
+                return null;
+            }
+
+            Map<String, List<Field>> scope = new HashMap<>(withQueries);
+            for (WithQuery withQuery : query.getWith().get().getQueries()) {
+                List<Field> fields = analyzeQuery(withQuery.getQuery(), scope);
+                if (fields == null) {
+                    return null;
+                }
+                fields = rename(fields, withQuery.getColumnNames(), withQuery.getName());
+                if (fields == null) {
+                    return null;
+                }
+                scope.put(withQuery.getName(), fields);
+            }
+            withQueries = scope;
+        }
+
+        return analyzeQueryBody(query.getQueryBody(), withQueries);
+    }
+
+    private List<Field> analyzeQueryBody(QueryBody body, Map<String, List<Field>> withQueries)
+    {
+        if (body instanceof QuerySpecification) {
+            return analyzeQuerySpecification((QuerySpecification) body, withQueries);
+        }
+
+        if (body instanceof TableSubquery) {
+            return analyzeQuery(((TableSubquery) body).getQuery(), withQueries);
+        }
+
+        if (body instanceof SetOperation) {
+            // the databases coerce the columns to a common type if they don't match, let them decide
+            List<Field> first = null;
+            for (Relation relation : ((SetOperation) body).getRelations()) {
+                if (!(relation instanceof QueryBody)) {
+                    return null;
+                }
+                List<Field> fields = analyzeQueryBody((QueryBody) relation, withQueries);
+                if (fields == null) {
+                    return null;
+                }
+                if (first == null) {
+                    first = fields;
+                    continue;
+                }
+                if (fields.size() != first.size()) {
+                    return null;
+                }
+                for (int i = 0; i < fields.size(); i++) {
+                    if (fields.get(i).type != first.get(i).type) {
+                        return null;
+                    }
+                }
+            }
+            return first;
+        }
+
+        return null;
+    }
+
+    private List<Field> analyzeQuerySpecification(QuerySpecification specification, Map<String, List<Field>> withQueries)
+    {
+        List<Field> scope;
+        if (specification.getFrom().isPresent()) {
+            scope = analyzeRelation(specification.getFrom().get(), withQueries);
+            if (scope == null) {
+                return null;
+            }
+        }
+        else {
+            scope = ImmutableList.of();
+        }
+
+        ExpressionAnalyzer expressionAnalyzer = new ExpressionAnalyzer(scope);
+
+        // the query is sent to the database if it references a column that doesn't exist
+        if (!resolves(specification.getWhere(), scope) || !resolves(specification.getHaving(), scope)) {
+            return null;
+        }
+
+        List<Field> fields = new ArrayList<>();
+        for (SelectItem selectItem : specification.getSelect().getSelectItems()) {
+            if (selectItem instanceof AllColumns) {
+                Optional<QualifiedName> prefix = ((AllColumns) selectItem).getPrefix();
+                int size = fields.size();
+                for (Field field : scope) {
+                    if (!prefix.isPresent() || (prefix.get().getParts().size() == 1 && field.relation != null
+                            && prefix.get().getSuffix().equals(field.relation.toLowerCase(Locale.ENGLISH)))) {
+                        fields.add(new Field(null, field.name, field.type));
+                    }
+                }
+                if (fields.size() == size) {
+                    return null;
+                }
+                continue;
+            }
+
+            SingleColumn column = (SingleColumn) selectItem;
+            FieldType type = expressionAnalyzer.process(column.getExpression(), null);
+            if (type == null) {
+                return null;
+            }
+
+            String name;
+            if (column.getAlias().isPresent()) {
+                name = column.getAlias().get();
+            }
+            else if (column.getExpression() instanceof QualifiedNameReference) {
+                name = ((QualifiedNameReference) column.getExpression()).getName().getSuffix();
+            }
+            else if (column.getExpression() instanceof DereferenceExpression) {
+                name = ((DereferenceExpression) column.getExpression()).getFieldName();
+            }
+            else {
+                // the databases use different names for the expressions without an alias
+                return null;
+            }
+            fields.add(new Field(null, name, type));
+        }
+
+        return fields;
+    }
+
+    private List<Field> analyzeRelation(Relation relation, Map<String, List<Field>> withQueries)
+    {
+        if (relation instanceof Table) {
+            QualifiedName name = ((Table) relation).getName();
+            if (!name.getPrefix().isPresent() && withQueries.containsKey(name.getSuffix())) {
+                return withQueries.get(name.getSuffix());
+            }
+
+            List<SchemaField> schema = tableSchema.apply(name);
+            if (schema == null || schema.isEmpty()) {
+                return null;
+            }
+            List<Field> fields = new ArrayList<>(schema.size());
+            for (SchemaField field : schema) {
+                fields.add(new Field(name.getSuffix(), field.getName(), field.getType()));
+            }
+            return fields;
+        }
+
+        if (relation instanceof AliasedRelation) {
+            AliasedRelation aliasedRelation = (AliasedRelation) relation;
+            List<Field> fields = analyzeRelation(aliasedRelation.getRelation(), withQueries);
+            if (fields == null) {
+                return null;
+            }
+            List<String> columnNames = aliasedRelation.getColumnNames();
+            return rename(fields, columnNames == null || columnNames.isEmpty() ? Optional.empty() : Optional.of(columnNames),
+                    aliasedRelation.getAlias());
+        }
+
+        if (relation instanceof TableSubquery) {
+            return analyzeQuery(((TableSubquery) relation).getQuery(), withQueries);
+        }
+
+        if (relation instanceof Join) {
+            Join join = (Join) relation;
+            // USING and NATURAL joins merge the join columns
+            if (join.getCriteria().isPresent() && !(join.getCriteria().get() instanceof JoinOn)) {
+                return null;
+            }
+            List<Field> left = analyzeRelation(join.getLeft(), withQueries);
+            List<Field> right = left == null ? null : analyzeRelation(join.getRight(), withQueries);
+            if (right == null) {
+                return null;
+            }
+            List<Field> fields = ImmutableList.<Field>builder().addAll(left).addAll(right).build();
+            if (join.getCriteria().isPresent() && !resolves(Optional.of(((JoinOn) join.getCriteria().get()).getExpression()), fields)) {
+                return null;
+            }
+            return fields;
+        }
+
+        return null;
+    }
+
+    private static List<Field> rename(List<Field> fields, Optional<List<String>> columnNames, String relation)
+    {
+        if (columnNames.isPresent() && columnNames.get().size() != fields.size()) {
+            return null;
+        }
+
+        List<Field> renamed = new ArrayList<>(fields.size());
+        for (int i = 0; i < fields.size(); i++) {
+            String name = columnNames.isPresent() ? columnNames.get().get(i) : fields.get(i).name;
+            renamed.add(new Field(relation, name, fields.get(i).type));
+        }
+        return renamed;
+    }
+
+    private static boolean resolves(Optional<Expression> expression, List<Field> scope)
+    {
+        if (!expression.isPresent()) {
+            return true;
+        }
+
+        boolean[] resolves = {true};
+        new DefaultTraversalVisitor<Void, Void>()
+        {
+            @Override
+            protected Void visitQualifiedNameReference(QualifiedNameReference node, Void context)
+            {
+                resolves[0] &= resolve(scope, node.getName().getParts()) != null;
+                return null;
+            }
+
+            @Override
+            protected Void visitDereferenceExpression(DereferenceExpression node, Void context)
+            {
+                resolves[0] &= resolve(scope, getParts(node)) != null;
+                return null;
+            }
+
+            @Override
+            protected Void visitSubqueryExpression(SubqueryExpression node, Void context)
+            {
+                resolves[0] = false;
+                return null;
+            }
+        }.process(expression.get(), null);
+        return resolves[0];
+    }
+
+    private static List<String> getParts(DereferenceExpression expression)
+    {
+        if (!(expression.getBase() instanceof QualifiedNameReference)) {
+            return null;
+        }
+        return ImmutableList.<String>builder()
+                .addAll(((QualifiedNameReference) expression.getBase()).getName().getParts())
+                .add(expression.getFieldName().toLowerCase(Locale.ENGLISH))
+                .build();
+    }
+
+    private static Field resolve(List<Field> scope, List<String> parts)
+    {
+        if (parts == null || parts.isEmpty() || parts.size() > 2) {
+            return null;
+        }
+
+        String name = parts.get(parts.size() - 1);
+        String relation = parts.size() == 2 ? parts.get(0) : null;
+
+        Field match = null;
+        for (Field field : scope) {
+            if (field.name.toLowerCase(Locale.ENGLISH).equals(name)
+                    && (relation == null || (field.relation != null && field.relation.toLowerCase(Locale.ENGLISH).equals(relation)))) {
+                if (match != null) {
+                    // ambiguous reference
+                    return null;
+                }
+                match = field;
+            }
+        }
+        return match;
+    }
+
+    private static FieldType firstArgument(List<FieldType> arguments)
+    {
+        return arguments.isEmpty() ? null : arguments.get(0);
+    }
+
+    static FieldType fromSqlType(String type)
+    {
+        String lowerCase = type.toLowerCase(Locale.ENGLISH).trim();
+        if (lowerCase.startsWith("array(") && lowerCase.endsWith(")")) {
+            FieldType elementType = fromSqlType(lowerCase.substring(6, lowerCase.length() - 1));
+            return elementType == null || elementType.isArray() || elementType.isMap() ? null : elementType.convertToArrayType();
+        }
+
+        int parameters = lowerCase.indexOf('(');
+        switch (parameters == -1 ? lowerCase : lowerCase.substring(0, parameters).trim()) {
+            case "varchar":
+            case "char":
+            case "text":
+                return STRING;
+            case "bigint":
+                return LONG;
+            case "integer":
+            case "int":
+                return INTEGER;
+            case "double":
+            case "double precision":
+                return DOUBLE;
+            case "decimal":
+                return DECIMAL;
+            case "boolean":
+                return BOOLEAN;
+            case "date":
+                return DATE;
+            case "timestamp":
+                return TIMESTAMP;
+            case "time":
+                return FieldType.TIME;
+            default:
+                return null;
+        }
+    }
+
+    private static class Field
+    {
+        private final String relation;
+        private final String name;
+        private final FieldType type;
+
+        private Field(String relation, String name, FieldType type)
+        {
+            this.relation = relation;
+            this.name = name;
+            this.type = type;
+        }
+    }
+
+    /**
+     * Returns the type of the expression or null if it can't be typed locally.
+     */
+    private static class ExpressionAnalyzer
+            extends AstVisitor<FieldType, Void>
+    {
+        private final List<Field> scope;
+
+        private ExpressionAnalyzer(List<Field> scope)
+        {
+            this.scope = scope;
+        }
+
+        @Override
+        protected FieldType visitQualifiedNameReference(QualifiedNameReference node, Void context)
+        {
+            Field field = resolve(scope, node.getName().getParts());
+            return field == null ? null : field.type;
+        }
+
+        @Override
+        protected FieldType visitDereferenceExpression(DereferenceExpression node, Void context)
+        {
+            Field field = resolve(scope, getParts(node));
+            return field == null ? null : field.type;
+        }
+
+        @Override
+        protected FieldType visitSubscriptExpression(SubscriptExpression node, Void context)
+        {
+            FieldType base = process(node.getBase(), context);
+            if (base == null || process(node.getIndex(), context) == null) {
+                return null;
+            }
+            if (base.isArray()) {
+                return base.getArrayElementType();
+            }
+            if (base.isMap()) {
+                return base.getMapValueType();
+            }
+            return null;
+        }
+
+        @Override
+        protected FieldType visitLongLiteral(LongLiteral node, Void context)
+        {
+            long value = node.getValue();
+            return value == (int) value ? INTEGER : LONG;
+        }
+
+        @Override
+        protected FieldType visitStringLiteral(StringLiteral node, Void context)
+        {
+            return STRING;
+        }
+
+        @Override
+        protected FieldType visitBooleanLiteral(BooleanLiteral node, Void context)
+        {
+            return BOOLEAN;
+        }
+
+        @Override
+        protected FieldType visitTimestampLiteral(TimestampLiteral node, Void context)
+        {
+            return TIMESTAMP;
+        }
+
+        @Override
+        protected FieldType visitCurrentTime(CurrentTime node, Void context)
+        {
+            switch (node.getType()) {
+                case DATE:
+                    return DATE;
+                case TIMESTAMP:
+                    return TIMESTAMP;
+                default:
+                    return null;
+            }
+        }
+
+        @Override
+        protected FieldType visitCast(Cast node, Void context)
+        {
+            if (process(node.getExpression(), context) == null) {
+                return null;
+            }
+            return fromSqlType(node.getType());
+        }
+
+        @Override
+        protected FieldType visitArithmeticBinary(ArithmeticBinaryExpression node, Void context)
+        {
+            FieldType left = process(node.getLeft(), context);
+            FieldType right = process(node.getRight(), context);
+            if (left == null || right == null || !left.isNumeric() || !right.isNumeric()) {
+                return null;
+            }
+            return numericRank(left) > numericRank(right) ? left : right;
+        }
+
+        @Override
+        protected FieldType visitArithmeticUnary(ArithmeticUnaryExpression node, Void context)
+        {
+            FieldType type = process(node.getValue(), context);
+            return type != null && type.isNumeric() ? type : null;
+        }
+
+        @Override
+        protected FieldType visitComparisonExpression(ComparisonExpression node, Void context)
+        {
+            return predicate(node.getLeft(), node.getRight());
+        }
+
+        @Override
+        protected FieldType visitLogicalBinaryExpression(LogicalBinaryExpression node, Void context)
+        {
+            return predicate(node.getLeft(), node.getRight());
+        }
+
+        @Override
+        protected FieldType visitNotExpression(NotExpression node, Void context)
+        {
+            return predicate(node.getValue());
+        }
+
+        @Override
+        protected FieldType visitIsNullPredicate(IsNullPredicate node, Void context)
+        {
+            return predicate(node.getValue());
+        }
+
+        @Override
+        protected FieldType visitIsNotNullPredicate(IsNotNullPredicate node, Void context)
+        {
+            return predicate(node.getValue());
+        }
+
+        @Override
+        protected FieldType visitLikePredicate(LikePredicate node, Void context)
+        {
+            return predicate(node.getValue(), node.getPattern());
+        }
+
+        @Override
+        protected FieldType visitBetweenPredicate(BetweenPredicate node, Void context)
+        {
+            return predicate(node.getValue(), node.getMin(), node.getMax());
+        }
+
+        @Override
+        protected FieldType visitInPredicate(InPredicate node, Void context)
+        {
+            if (!(node.getValueList() instanceof InListExpression)) {
+                return null;
+            }
+            List<Expression> expressions = new ArrayList<>(((InListExpression) node.getValueList()).getValues());
+            expressions.add(node.getValue());
+            return predicate(expressions.toArray(new Expression[expressions.size()]));
+        }
+
+        @Override
+        protected FieldType visitIfExpression(IfExpression node, Void context)
+        {
+            if (process(node.getCondition(), context) == null) {
+                return null;
+            }
+            List<Expression> results = new ArrayList<>();
+            results.add(node.getTrueValue());
+            node.getFalseValue().ifPresent(results::add);
+            return commonType(results);
+        }
+
+        @Override
+        protected FieldType visitSearchedCaseExpression(SearchedCaseExpression node, Void context)
+        {
+            return caseExpression(node.getWhenClauses(), node.getDefaultValue());
+        }
+
+        @Override
+        protected FieldType visitSimpleCaseExpression(SimpleCaseExpression node, Void context)
+        {
+            if (process(node.getOperand(), context) == null) {
+                return null;
+            }
+            return caseExpression(node.getWhenClauses(), node.getDefaultValue());
+        }
+
+        @Override
+        protected FieldType visitCoalesceExpression(CoalesceExpression node, Void context)
+        {
+            return commonType(node.getOperands());
+        }
+
+        @Override
+        protected FieldType visitNullIfExpression(NullIfExpression node, Void context)
+        {
+            FieldType first = process(node.getFirst(), context);
+            return process(node.getSecond(), context) == null ? null : first;
+        }
+
+        @Override
+        protected FieldType visitFunctionCall(FunctionCall node, Void context)
+        {
+            if (node.getName().getParts().size() != 1) {
+                return null;
+            }
+
+            Function<List<FieldType>, FieldType> function = FUNCTIONS.get(node.getName().getSuffix());
+            if (function == null) {
+                return null;
+            }
+
+            List<FieldType> arguments = new ArrayList<>(node.getArguments().size());
+            for (Expression argument : node.getArguments()) {
+                FieldType type = process(argument, context);
+                if (type == null) {
+                    return null;
+                }
+                arguments.add(type);
+            }
+            return function.apply(arguments);
+        }
+
+        private FieldType caseExpression(List<WhenClause> whenClauses, Optional<Expression> defaultValue)
+        {
+            List<Expression> results = new ArrayList<>();
+            for (WhenClause whenClause : whenClauses) {
+                if (process(whenClause.getOperand(), null) == null) {
+                    return null;
+                }
+                results.add(whenClause.getResult());
+            }
+            defaultValue.ifPresent(results::add);
+            return commonType(results);
+        }
+
+        private FieldType predicate(Expression... operands)
+        {
+            for (Expression operand : operands) {
+                if (process(operand, null) == null) {
+                    return null;
+                }
+            }
+            return BOOLEAN;
+        }
+
+        private FieldType commonType(List<Expression> expressions)
+        {
+            FieldType type = null;
+            for (Expression expression : expressions) {
+                FieldType expressionType = process(expression, null);
+                if (expressionType == null || (type != null && type != expressionType)) {
+                    return null;
+                }
+                type = expressionType;
+            }
+            return type;
+        }
+
+        private static int numericRank(FieldType type)
+        {
+            switch (type) {
+                case INTEGER:
+                    return 0;
+                case LONG:
+                    return 1;
+                case DECIMAL:
+                    return 2;
+                default:
+                    return 3;
+            }
+        }
+    }
+}
@@ -31,6 +31,15 @@ public class MailSender {
 
     public void sendMail(String toEmail, String title, String textContent, Optional<String> richText)
             throws MessagingException {
+        Transport.send(createMessage(toEmail, title, textContent, richText));
+    }
+
+    public Session getSession() {
+        return session;
+    }
+
+    public Message createMessage(String toEmail, String title, String textContent, Optional<String> richText)
+            throws MessagingException {
         Message msg = new MimeMessage(session);
         msg.setFrom(fromAddress);
         msg.addRecipient(TO, new InternetAddress(toEmail));
@@ -43,6 +52,7 @@ public class MailSender {
             mp.addBodyPart(htmlPart);
             msg.setContent(mp);
         }
-        Transport.send(msg);
+        msg.saveChanges();
+        return msg;
     }
 }
@@ -64,10 +64,18 @@ public class InMemoryMetastore extends AbstractMetastore {
         if(list == null) {
             throw new NotExistsException("Project");
         }
+        boolean created = !list.containsKey(collection);
         List<SchemaField> schemaFields = list.computeIfAbsent(collection, (key) -> new ArrayList<>());
-        fields.stream()
+        List<SchemaField> newFields = fields.stream()
                 .filter(field -> !schemaFields.stream().anyMatch(f -> f.getName().equals(field.getName())))
-                .forEach(schemaFields::add);
+                .collect(Collectors.toList());
+        schemaFields.addAll(newFields);
+
+        if (created) {
+            super.onCreateCollection(project, collection, newFields);
+        } else if (!newFields.isEmpty()) {
+            super.onCreateCollectionField(project, collection, newFields);
+        }
         return schemaFields;
     }
 
@@ -6,6 +6,7 @@ import org.rakam.analysis.metadata.QueryMetadataStore;
 import org.rakam.plugin.ContinuousQuery;
 import org.rakam.plugin.MaterializedView;
 import org.rakam.util.AlreadyExistsException;
+import org.rakam.util.ProjectCollection;
 
 import java.time.Instant;
 import java.util.Collection;
@@ -15,11 +16,13 @@ import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.stream.Collectors;
 
 public class InMemoryQueryMetadataStore implements QueryMetadataStore {
     private final Map<String, Set<ContinuousQuery>> continuousQueries = new HashMap<>();
     private final Map<String, Set<MaterializedView>> materializedViews = new HashMap<>();
+    private final Set<ProjectCollection> leases = ConcurrentHashMap.newKeySet();
 
     @Override
     public void createMaterializedView(String project, MaterializedView materializedView) {
@@ -52,7 +55,18 @@ public class InMemoryQueryMetadataStore implements QueryMetadataStore {
 
     @Override
     public boolean updateMaterializedView(String project, MaterializedView view, CompletableFuture<Instant> releaseLock) {
-        throw new UnsupportedOperationException();
+        ProjectCollection key = new ProjectCollection(project, view.tableName);
+        if (!leases.add(key)) {
+            return false;
+        }
+
+        releaseLock.whenComplete((lastUpdate, ex) -> {
+            if (lastUpdate != null) {
+                view.lastUpdate = lastUpdate;
+            }
+            leases.remove(key);
+        });
+        return true;
     }
 
     @Override
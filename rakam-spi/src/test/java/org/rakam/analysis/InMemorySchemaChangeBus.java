@@ -0,0 +1,37 @@
+package org.rakam.analysis;
+
+import org.rakam.analysis.metadata.SchemaChange;
+import org.rakam.analysis.metadata.SchemaChangeBus;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
+
+/**
+ * Delivers the changes to all the listeners in the same process so that the metastores that share the bus behave
+ * like the metastores of different nodes.
+ */
+public class InMemorySchemaChangeBus implements SchemaChangeBus {
+    private final List<Consumer<SchemaChange>> listeners = new CopyOnWriteArrayList<>();
+    private final List<SchemaChange> changes = new CopyOnWriteArrayList<>();
+
+    @Override
+    public boolean isDistributed() {
+        return true;
+    }
+
+    @Override
+    public void publish(SchemaChange change) {
+        changes.add(change);
+        listeners.forEach(listener -> listener.accept(change));
+    }
+
+    @Override
+    public void subscribe(Consumer<SchemaChange> listener) {
+        listeners.add(listener);
+    }
+
+    public List<SchemaChange> getChanges() {
+        return changes;
+    }
+}
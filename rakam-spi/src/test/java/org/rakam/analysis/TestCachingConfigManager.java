@@ -0,0 +1,131 @@
+package org.rakam.analysis;
+
+import org.rakam.config.ConfigManagerCacheConfig;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.Test;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNull;
+
+public class TestCachingConfigManager
+        extends TestConfigManager
+{
+    private final CountingConfigManager delegate = new CountingConfigManager(true);
+    private final CachingConfigManager configManager = new CachingConfigManager(delegate, new ConfigManagerCacheConfig());
+
+    @Override
+    public ConfigManager getConfigManager()
+    {
+        return configManager;
+    }
+
+    @AfterMethod
+    public void tearDownMethod()
+    {
+        configManager.clear();
+        delegate.reads.set(0);
+    }
+
+    @Test
+    public void testCachedValue()
+    {
+        configManager.setConfigOnce("project", "test", "value");
+
+        assertEquals(configManager.getConfig("project", "test", String.class), "value");
+        assertEquals(configManager.setConfigOnce("project", "test", "other"), "value");
+        assertEquals(delegate.reads.get(), 0);
+    }
+
+    @Test
+    public void testMissingValue()
+    {
+        assertNull(configManager.getConfig("project", "test", String.class));
+        assertNull(configManager.getConfig("project", "test", String.class));
+        assertEquals(delegate.reads.get(), 1);
+
+        assertEquals(configManager.setConfigOnce("project", "test", "value"), "value");
+        assertEquals(configManager.getConfig("project", "test", String.class), "value");
+    }
+
+    @Test
+    public void testChangeFromOtherNode()
+    {
+        assertEquals(configManager.setConfigOnce("project", "test", "value"), "value");
+
+        // the config is changed by the other node that shares the same storage
+        delegate.setConfig("project", "test", "changed");
+
+        assertEquals(configManager.getConfig("project", "test", String.class), "changed");
+    }
+
+    @Test
+    public void testNotPropagatedChanges()
+    {
+        CountingConfigManager delegate = new CountingConfigManager(false);
+        CachingConfigManager configManager = new CachingConfigManager(delegate, new ConfigManagerCacheConfig().setTtl("0ms"));
+
+        configManager.setConfigOnce("project", "test", "value");
+        delegate.setConfig("project", "test", "changed");
+
+        assertEquals(configManager.getConfig("project", "test", String.class), "changed");
+    }
+
+    private static class CountingConfigManager
+            implements ConfigManager
+    {
+        private final Map<String, Object> configs = new ConcurrentHashMap<>();
+        private final List<BiConsumer<String, String>> listeners = new CopyOnWriteArrayList<>();
+        private final AtomicInteger reads = new AtomicInteger();
+        private final boolean propagatesChanges;
+
+        private CountingConfigManager(boolean propagatesChanges)
+        {
+            this.propagatesChanges = propagatesChanges;
+        }
+
+        @Override
+        public <T> T getConfig(String project, String configName, Class<T> clazz)
+        {
+            reads.incrementAndGet();
+            return (T) configs.get(project + "." + configName);
+        }
+
+        @Override
+        public <T> void setConfig(String project, String configName, T value)
+        {
+            configs.put(project + "." + configName, value);
+            listeners.forEach(listener -> listener.accept(project, configName));
+        }
+
+        @Override
+        public <T> T setConfigOnce(String project, String configName, T value)
+        {
+            Object existing = configs.putIfAbsent(project + "." + configName, value);
+            return existing == null ? value : (T) existing;
+        }
+
+        @Override
+        public void clear()
+        {
+            configs.clear();
+            listeners.forEach(listener -> listener.accept(null, null));
+        }
+
+        @Override
+        public boolean addChangeListener(BiConsumer<String, String> listener)
+        {
+            if (!propagatesChanges) {
+                return false;
+            }
+            listeners.add(listener);
+            return true;
+        }
+    }
+}
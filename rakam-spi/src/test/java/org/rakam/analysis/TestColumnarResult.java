@@ -0,0 +1,96 @@
+package org.rakam.analysis;
+
+import com.google.common.collect.ImmutableList;
+import org.rakam.collection.FieldType;
+import org.rakam.collection.SchemaField;
+import org.rakam.report.ColumnarResult;
+import org.rakam.util.JsonHelper;
+import org.testng.annotations.Test;
+
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertSame;
+import static org.testng.Assert.assertTrue;
+
+public class TestColumnarResult {
+    private static final List<SchemaField> METADATA = ImmutableList.of(
+            new SchemaField("name", FieldType.STRING),
+            new SchemaField("count", FieldType.LONG),
+            new SchemaField("step", FieldType.INTEGER),
+            new SchemaField("ratio", FieldType.DOUBLE),
+            new SchemaField("active", FieldType.BOOLEAN),
+            new SchemaField("time", FieldType.TIMESTAMP));
+
+    private static final List<List<Object>> ROWS = ImmutableList.of(
+            Arrays.asList("a", 1L, 1, 0.5, true, Instant.ofEpochSecond(100)),
+            Arrays.asList("b", null, 2, null, false, null),
+            Arrays.asList(null, Long.MAX_VALUE, null, 1.25, null, Instant.ofEpochSecond(200)),
+            Arrays.asList("a", -4L, 3, -0.0, true, Instant.ofEpochSecond(300)));
+
+    @Test
+    public void testEqualToBoxedRows() throws Exception {
+        ColumnarResult result = ColumnarResult.copyOf(METADATA, ROWS);
+
+        assertEquals(result.size(), ROWS.size());
+        assertEquals(result, ROWS);
+        assertEquals(ROWS, result);
+        assertEquals(result.hashCode(), ROWS.hashCode());
+        assertTrue(result.get(0).get(2) instanceof Integer);
+        assertTrue(result.get(0).get(1) instanceof Long);
+    }
+
+    @Test
+    public void testSerializedAsBoxedRows() throws Exception {
+        ColumnarResult result = ColumnarResult.copyOf(METADATA, ROWS);
+
+        assertEquals(JsonHelper.encode(result), JsonHelper.encode(ROWS));
+    }
+
+    @Test
+    public void testTypedAccessors() throws Exception {
+        ColumnarResult result = ColumnarResult.copyOf(METADATA, ROWS);
+
+        assertEquals(result.getColumn(1).getLong(2), Long.MAX_VALUE);
+        assertEquals(result.getColumn(3).getDouble(2), 1.25);
+        assertTrue(result.getColumn(1).isNull(1));
+        assertNull(result.get(2).get(0));
+
+        ColumnarResult.StringColumn names = (ColumnarResult.StringColumn) result.getColumn(0);
+        assertEquals(names.getDictionarySize(), 2);
+        assertEquals(names.getDictionaryId(0), names.getDictionaryId(3));
+    }
+
+    @Test
+    public void testMismatchedValuesAreKept() throws Exception {
+        List<SchemaField> metadata = ImmutableList.of(new SchemaField("value", FieldType.LONG));
+        List<List<Object>> rows = ImmutableList.of(
+                Arrays.asList(1L),
+                Arrays.asList(2),
+                Arrays.asList("3"));
+
+        ColumnarResult result = ColumnarResult.copyOf(metadata, rows);
+
+        assertEquals(result, rows);
+        assertEquals(JsonHelper.encode(result), JsonHelper.encode(rows));
+        assertTrue(result.getColumn(0) instanceof ColumnarResult.ObjectColumn);
+    }
+
+    @Test
+    public void testBuilder() throws Exception {
+        ColumnarResult result = new ColumnarResult.Builder(METADATA.subList(0, 2), 1)
+                .append(0, "x").appendLong(1, 10)
+                .appendNull(0).appendLong(1, 20)
+                .append(0, "y").appendNull(1)
+                .build();
+
+        assertEquals(result, ImmutableList.of(
+                Arrays.asList("x", 10L),
+                Arrays.asList(null, 20L),
+                Arrays.asList("y", null)));
+        assertSame(ColumnarResult.copyOf(result.getMetadata(), result), result);
+    }
+}
@@ -1,4 +1,166 @@
 package org.rakam.analysis;
 
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import org.rakam.analysis.MaterializedViewService.MaterializedViewExecution;
+import org.rakam.plugin.MaterializedView;
+import org.rakam.report.QueryExecution;
+import org.rakam.report.QueryResult;
+import org.rakam.report.QueryStats;
+import org.testng.annotations.Test;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNotNull;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertSame;
+import static org.testng.Assert.assertTrue;
+
 public class TestMaterializedViewService {
+    private static final String PROJECT_NAME = TestMaterializedViewService.class.getName().replace(".", "_").toLowerCase();
+
+    @Test
+    public void testConcurrentRefreshesAreDeduplicated() throws Exception {
+        TestingMaterializedViewService service = new TestingMaterializedViewService();
+        MaterializedView view = new MaterializedView("test", "test", "select 1", Duration.ofMinutes(1), false, ImmutableMap.of());
+
+        MaterializedViewExecution first = service.refresh(PROJECT_NAME, view);
+        MaterializedViewExecution second = service.refresh(PROJECT_NAME, view);
+
+        assertSame(second, first);
+        assertEquals(service.refreshes.get(), 1);
+
+        service.refreshResult.complete(QueryResult.empty());
+        assertNotNull(view.lastUpdate);
+
+        service.refreshResult = new CompletableFuture<>();
+        service.refresh(PROJECT_NAME, view);
+        assertEquals(service.refreshes.get(), 2);
+    }
+
+    @Test
+    public void testStaleViewDoesNotBlockQuery() throws Exception {
+        TestingMaterializedViewService service = new TestingMaterializedViewService();
+        MaterializedView view = new MaterializedView("test", "test", "select 1", Duration.ofMinutes(1), false, ImmutableMap.of());
+        view.lastUpdate = Instant.now().minus(Duration.ofHours(1));
+
+        MaterializedViewExecution execution = service.getViewForQuery(PROJECT_NAME, view);
+        assertNull(execution.queryExecution);
+        assertEquals(execution.computeQuery, "materialized.test");
+
+        MaterializedViewExecution refresh = service.refreshAsync(PROJECT_NAME, view).join();
+        assertNotNull(refresh.queryExecution);
+        assertEquals(service.refreshes.get(), 1);
+    }
+
+    @Test
+    public void testViewIsMaterializedBeforeFirstQuery() throws Exception {
+        TestingMaterializedViewService service = new TestingMaterializedViewService();
+        MaterializedView view = new MaterializedView("test", "test", "select 1", Duration.ofMinutes(1), false, ImmutableMap.of());
+
+        MaterializedViewExecution execution = service.getViewForQuery(PROJECT_NAME, view);
+        assertNotNull(execution.queryExecution);
+        assertTrue(!execution.queryExecution.isFinished());
+    }
+
+    @Test
+    public void testViewChangeListeners() throws Exception {
+        TestingMaterializedViewService service = new TestingMaterializedViewService();
+        List<String> changes = new ArrayList<>();
+        service.addViewChangeListener((project, tableName) -> changes.add(project + "." + tableName));
+
+        MaterializedView view = new MaterializedView("test", "test", "select 1", Duration.ofMinutes(1), false, ImmutableMap.of());
+        service.create(PROJECT_NAME, view).join();
+        service.delete(PROJECT_NAME, "test").join();
+
+        assertEquals(changes, ImmutableList.of(PROJECT_NAME + ".test", PROJECT_NAME + ".test"));
+    }
+
+    private static class TestingMaterializedViewService extends MaterializedViewService {
+        private final InMemoryQueryMetadataStore database;
+        private final AtomicInteger refreshes = new AtomicInteger();
+        private volatile CompletableFuture<QueryResult> refreshResult = new CompletableFuture<>();
+
+        private TestingMaterializedViewService() {
+            this(new InMemoryQueryMetadataStore());
+        }
+
+        private TestingMaterializedViewService(InMemoryQueryMetadataStore database) {
+            super(database, null, '"');
+            this.database = database;
+        }
+
+        @Override
+        public CompletableFuture<Void> create(String project, MaterializedView materializedView) {
+            database.createMaterializedView(project, materializedView);
+            viewChanged(project, materializedView.tableName);
+            return CompletableFuture.completedFuture(null);
+        }
+
+        @Override
+        public CompletableFuture<QueryResult> delete(String project, String name) {
+            database.deleteMaterializedView(project, name);
+            viewChanged(project, name);
+            return CompletableFuture.completedFuture(QueryResult.empty());
+        }
+
+        @Override
+        public MaterializedViewExecution lockAndUpdateView(String project, MaterializedView materializedView) {
+            CompletableFuture<Instant> f = new CompletableFuture<>();
+            String reference = getViewReference(project, materializedView);
+            if (!database.updateMaterializedView(project, materializedView, f)) {
+                return new MaterializedViewExecution(null, reference);
+            }
+
+            refreshes.incrementAndGet();
+            CompletableFuture<QueryResult> result = refreshResult.thenApply(r -> {
+                f.complete(Instant.now());
+                return r;
+            });
+            return new MaterializedViewExecution(new PendingQueryExecution(result), reference);
+        }
+
+        @Override
+        protected String getViewReference(String project, MaterializedView materializedView) {
+            return "materialized." + materializedView.tableName;
+        }
+    }
+
+    private static class PendingQueryExecution implements QueryExecution {
+        private final CompletableFuture<QueryResult> result;
+
+        private PendingQueryExecution(CompletableFuture<QueryResult> result) {
+            this.result = result;
+        }
+
+        @Override
+        public QueryStats currentStats() {
+            return null;
+        }
+
+        @Override
+        public boolean isFinished() {
+            return result.isDone();
+        }
+
+        @Override
+        public CompletableFuture<QueryResult> getResult() {
+            return result;
+        }
+
+        @Override
+        public String getQuery() {
+            return null;
+        }
+
+        @Override
+        public void kill() {
+        }
+    }
 }
@@ -0,0 +1,93 @@
+package org.rakam.analysis;
+
+import com.facebook.presto.sql.parser.SqlParser;
+import com.facebook.presto.sql.tree.Query;
+import com.google.common.collect.ImmutableList;
+import org.rakam.collection.SchemaField;
+import org.rakam.report.QueryTypeAnalyzer;
+import org.testng.annotations.Test;
+
+import java.util.List;
+import java.util.Optional;
+
+import static org.rakam.collection.FieldType.BOOLEAN;
+import static org.rakam.collection.FieldType.DOUBLE;
+import static org.rakam.collection.FieldType.INTEGER;
+import static org.rakam.collection.FieldType.LONG;
+import static org.rakam.collection.FieldType.MAP_STRING;
+import static org.rakam.collection.FieldType.STRING;
+import static org.rakam.collection.FieldType.TIMESTAMP;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+
+public class TestQueryTypeAnalyzer {
+    private static final List<SchemaField> PAGEVIEW = ImmutableList.of(
+            new SchemaField("_time", TIMESTAMP),
+            new SchemaField("_user", STRING),
+            new SchemaField("url", STRING),
+            new SchemaField("duration", DOUBLE),
+            new SchemaField("clicks", INTEGER),
+            new SchemaField("properties", MAP_STRING));
+
+    private final QueryTypeAnalyzer analyzer = new QueryTypeAnalyzer(name ->
+            name.getSuffix().equals("pageview") ? PAGEVIEW : null);
+
+    @Test
+    public void testAllColumns() throws Exception {
+        assertEquals(analyze("select * from pageview"), Optional.of(PAGEVIEW));
+    }
+
+    @Test
+    public void testAggregation() throws Exception {
+        assertEquals(analyze("select url, count(*) as total, sum(duration) as total_duration, avg(duration) as duration, " +
+                        "date_trunc('day', _time) as day from pageview where duration > 10 group by 1, 5"),
+                Optional.of(ImmutableList.of(
+                        new SchemaField("url", STRING),
+                        new SchemaField("total", LONG),
+                        new SchemaField("total_duration", DOUBLE),
+                        new SchemaField("duration", DOUBLE),
+                        new SchemaField("day", TIMESTAMP))));
+    }
+
+    @Test
+    public void testExpressions() throws Exception {
+        assertEquals(analyze("select p.clicks * 2 as double_clicks, properties['referrer'] as referrer, " +
+                        "cast(clicks as varchar) as text, url like '%test%' as matches, " +
+                        "case when clicks > 10 then 'high' else 'low' end as level from pageview p"),
+                Optional.of(ImmutableList.of(
+                        new SchemaField("double_clicks", INTEGER),
+                        new SchemaField("referrer", STRING),
+                        new SchemaField("text", STRING),
+                        new SchemaField("matches", BOOLEAN),
+                        new SchemaField("level", STRING))));
+    }
+
+    @Test
+    public void testSubqueryAndWith() throws Exception {
+        assertEquals(analyze("with users as (select _user, count(*) as total from pageview group by 1) " +
+                        "select u.total, t.url from users u join (select _user, url from pageview) t on (u._user = t._user)"),
+                Optional.of(ImmutableList.of(
+                        new SchemaField("total", LONG),
+                        new SchemaField("url", STRING))));
+    }
+
+    @Test
+    public void testFallback() throws Exception {
+        // the name of the expression depends on the database
+        assertFalse(analyze("select count(*) from pageview").isPresent());
+        // the sum of integers has different types in the databases
+        assertFalse(analyze("select sum(clicks) as clicks from pageview").isPresent());
+        // unknown function
+        assertFalse(analyze("select approx_percentile(duration, 0.5) as p from pageview").isPresent());
+        // unknown table and column
+        assertFalse(analyze("select * from unknown").isPresent());
+        assertFalse(analyze("select unknown from pageview").isPresent());
+        assertFalse(analyze("select url from pageview where unknown > 10").isPresent());
+        // ambiguous column
+        assertFalse(analyze("select url from pageview a join pageview b on (a.url = b.url)").isPresent());
+    }
+
+    private Optional<List<SchemaField>> analyze(String query) {
+        return analyzer.analyze((Query) new SqlParser().createStatement(query));
+    }
+}
@@ -0,0 +1,201 @@
+package org.rakam.analysis;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.eventbus.EventBus;
+import org.rakam.analysis.metadata.SchemaVerificationStatus;
+import org.rakam.collection.FieldDependencyBuilder.FieldDependency;
+import org.rakam.collection.SchemaField;
+import org.rakam.config.SchemaVerificationConfig;
+import org.rakam.util.RakamException;
+import org.testng.annotations.Test;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static io.netty.handler.codec.http.HttpResponseStatus.CONFLICT;
+import static org.rakam.collection.FieldType.LONG;
+import static org.rakam.collection.FieldType.STRING;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+public class TestSchemaVerification
+{
+    private static final SchemaField MODULE_FIELD = new SchemaField("_module", STRING);
+
+    @Test
+    public void testEagerVerification()
+            throws Exception
+    {
+        VerifyingMetastore metastore = createMetastore(20);
+        metastore.verify(new SchemaVerificationConfig().setLazy(false).setThreads(4));
+
+        SchemaVerificationStatus status = metastore.getSchemaVerificationStatus();
+        assertTrue(status.done);
+        assertEquals(status.verifiedProjects, 20);
+        for (int i = 0; i < 20; i++) {
+            assertTrue(metastore.getCollection("project" + i, "test").contains(MODULE_FIELD));
+        }
+    }
+
+    @Test
+    public void testLazyVerification()
+            throws Exception
+    {
+        VerifyingMetastore metastore = createMetastore(20);
+        metastore.verify(new SchemaVerificationConfig().setLazy(true).setThreads(1));
+
+        // the first write of a project waits for the verification of the project
+        metastore.getOrCreateCollectionFieldList("project19", "test", ImmutableSet.of(new SchemaField("b", STRING)));
+        assertTrue(metastore.getCollection("project19", "test").contains(MODULE_FIELD));
+
+        long deadline = System.currentTimeMillis() + 10_000;
+        while (!metastore.getSchemaVerificationStatus().done) {
+            if (System.currentTimeMillis() > deadline) {
+                fail("The schema verification is not completed");
+            }
+            Thread.sleep(10);
+        }
+
+        assertEquals(metastore.getSchemaVerificationStatus().verifiedProjects, 20);
+        for (int i = 0; i < 20; i++) {
+            assertTrue(metastore.getCollection("project" + i, "test").contains(MODULE_FIELD));
+        }
+    }
+
+    @Test(expectedExceptions = RakamException.class)
+    public void testEagerVerificationFails()
+            throws Exception
+    {
+        VerifyingMetastore metastore = createMetastore(2);
+        metastore.getOrCreateCollectionFields("project1", "test", ImmutableSet.of(new SchemaField("_module", LONG)));
+
+        metastore.verify(new SchemaVerificationConfig().setLazy(false));
+    }
+
+    @Test
+    public void testFailedVerificationIsRetried()
+            throws Exception
+    {
+        VerifyingMetastore metastore = createMetastore(2);
+        metastore.failOnce("project1");
+        metastore.verify(new SchemaVerificationConfig().setLazy(true).setThreads(1).setRetryInterval("0s"));
+        waitForVerification(metastore);
+        assertEquals(metastore.getSchemaVerificationStatus().failedProjects, 1);
+
+        // the project is verified again before it's written
+        metastore.getOrCreateCollectionFieldList("project1", "test", ImmutableSet.of(new SchemaField("b", STRING)));
+        assertTrue(metastore.getCollection("project1", "test").contains(MODULE_FIELD));
+
+        SchemaVerificationStatus status = metastore.getSchemaVerificationStatus();
+        assertEquals(status.failedProjects, 0);
+        assertEquals(status.verifiedProjects, 2);
+    }
+
+    @Test
+    public void testFailedVerificationIsNotRetriedBeforeInterval()
+            throws Exception
+    {
+        VerifyingMetastore metastore = createMetastore(2);
+        metastore.failOnce("project1");
+        metastore.verify(new SchemaVerificationConfig().setLazy(true).setThreads(1).setRetryInterval("1h"));
+        waitForVerification(metastore);
+
+        // the writes fail with the error of the verification without running it again
+        for (int i = 0; i < 3; i++) {
+            try {
+                metastore.getOrCreateCollectionFieldList("project1", "test", ImmutableSet.of(new SchemaField("b", STRING)));
+                fail();
+            }
+            catch (IllegalStateException e) {
+                assertEquals(e.getMessage(), "The database is not available");
+            }
+        }
+        assertEquals(metastore.getCollectionReads("project1"), 1);
+    }
+
+    @Test
+    public void testConflictIsNotRetried()
+            throws Exception
+    {
+        VerifyingMetastore metastore = createMetastore(2);
+        metastore.getOrCreateCollectionFields("project1", "test", ImmutableSet.of(new SchemaField("_module", LONG)));
+        metastore.verify(new SchemaVerificationConfig().setLazy(true).setThreads(1).setRetryInterval("0s"));
+        waitForVerification(metastore);
+
+        for (int i = 0; i < 3; i++) {
+            try {
+                metastore.getOrCreateCollectionFieldList("project1", "test", ImmutableSet.of(new SchemaField("b", STRING)));
+                fail();
+            }
+            catch (RakamException e) {
+                assertEquals(e.getStatusCode(), CONFLICT);
+            }
+        }
+        assertEquals(metastore.getCollectionReads("project1"), 1);
+    }
+
+    private static void waitForVerification(VerifyingMetastore metastore)
+            throws InterruptedException
+    {
+        long deadline = System.currentTimeMillis() + 10_000;
+        while (!metastore.getSchemaVerificationStatus().done) {
+            if (System.currentTimeMillis() > deadline) {
+                fail("The schema verification is not completed");
+            }
+            Thread.sleep(10);
+        }
+    }
+
+    private static VerifyingMetastore createMetastore(int projects)
+            throws Exception
+    {
+        VerifyingMetastore metastore = new VerifyingMetastore();
+        for (int i = 0; i < projects; i++) {
+            metastore.createProject("project" + i);
+            // the module fields are not added to the collection by getOrCreateCollectionFields
+            metastore.getOrCreateCollectionFields("project" + i, "test", ImmutableSet.of(new SchemaField("a", STRING)));
+        }
+        return metastore;
+    }
+
+    private static class VerifyingMetastore
+            extends InMemoryMetastore
+    {
+        public VerifyingMetastore()
+        {
+            super(new FieldDependency(ImmutableSet.of(MODULE_FIELD), ImmutableMap.of()), new InMemoryApiKeyService(), new EventBus());
+        }
+
+        private final Set<String> failingProjects = ConcurrentHashMap.newKeySet();
+        private final Map<String, Integer> collectionReads = new ConcurrentHashMap<>();
+
+        public void verify(SchemaVerificationConfig config)
+        {
+            checkExistingSchema(config);
+        }
+
+        public void failOnce(String project)
+        {
+            failingProjects.add(project);
+        }
+
+        public int getCollectionReads(String project)
+        {
+            return collectionReads.getOrDefault(project, 0);
+        }
+
+        @Override
+        public Map<String, List<SchemaField>> getCollections(String project)
+        {
+            collectionReads.merge(project, 1, Integer::sum);
+            if (failingProjects.remove(project)) {
+                throw new IllegalStateException("The database is not available");
+            }
+            return super.getCollections(project);
+        }
+    }
+}
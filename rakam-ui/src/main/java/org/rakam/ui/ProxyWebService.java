@@ -1,201 +1,440 @@
 package org.rakam.ui;
 
+import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.CharMatcher;
 import com.google.common.base.Splitter;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 import io.netty.bootstrap.Bootstrap;
 import io.netty.buffer.Unpooled;
 import io.netty.channel.Channel;
-import io.netty.channel.ChannelFutureListener;
 import io.netty.channel.ChannelHandlerContext;
-import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelOption;
 import io.netty.channel.SimpleChannelInboundHandler;
 import io.netty.channel.nio.NioEventLoopGroup;
-import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.pool.AbstractChannelPoolHandler;
+import io.netty.channel.pool.AbstractChannelPoolMap;
+import io.netty.channel.pool.ChannelHealthChecker;
+import io.netty.channel.pool.FixedChannelPool;
 import io.netty.channel.socket.nio.NioSocketChannel;
 import io.netty.handler.codec.http.DefaultFullHttpRequest;
 import io.netty.handler.codec.http.DefaultFullHttpResponse;
+import io.netty.handler.codec.http.DefaultHttpHeaders;
 import io.netty.handler.codec.http.FullHttpResponse;
 import io.netty.handler.codec.http.HttpClientCodec;
 import io.netty.handler.codec.http.HttpContentDecompressor;
 import io.netty.handler.codec.http.HttpHeaders;
 import io.netty.handler.codec.http.HttpMethod;
-import io.netty.handler.codec.http.HttpObject;
 import io.netty.handler.codec.http.HttpObjectAggregator;
 import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.HttpResponseStatus;
 import io.netty.handler.codec.http.HttpVersion;
 import io.netty.handler.codec.http.QueryStringDecoder;
 import io.netty.handler.ssl.ClientAuth;
 import io.netty.handler.ssl.SslContext;
 import io.netty.handler.ssl.SslContextBuilder;
-import io.netty.handler.ssl.SslHandler;
 import io.netty.handler.ssl.util.InsecureTrustManagerFactory;
+import io.netty.handler.timeout.ReadTimeoutHandler;
 import io.netty.util.AttributeKey;
 import io.netty.util.CharsetUtil;
+import io.netty.util.concurrent.Future;
 import org.jsoup.Jsoup;
 import org.jsoup.nodes.Document;
 import org.jsoup.parser.Parser;
 import org.rakam.server.http.HttpService;
 import org.rakam.server.http.RakamHttpRequest;
 import org.rakam.server.http.annotations.QueryParam;
+import org.rakam.util.RakamException;
 
 import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.inject.Inject;
 import javax.net.ssl.SSLException;
 import javax.ws.rs.GET;
 import javax.ws.rs.Path;
 import javax.ws.rs.core.UriBuilder;
-import java.net.InetSocketAddress;
 import java.net.URI;
 import java.nio.charset.Charset;
 import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
 
+import static io.netty.handler.codec.http.HttpResponseStatus.BAD_GATEWAY;
+import static io.netty.handler.codec.http.HttpResponseStatus.OK;
+import static io.netty.handler.codec.http.HttpResponseStatus.SERVICE_UNAVAILABLE;
+
+/**
+ * Fetches the pages that are edited in the A/B test tool and injects the editor into them.
+ * The upstream connections are kept alive in a pool per host and the requests never block the event loop
+ * of the web server. The rewritten pages are cached for a short time since the editor fetches the same
+ * page repeatedly while the user is working on it.
+ */
 @Path("/ui/proxy")
 public class ProxyWebService extends HttpService {
-    private final AttributeKey<RakamHttpRequest> CONNECTION_ATTR = AttributeKey.newInstance("CONNECTION_ATTR");
+    private static final AttributeKey<CompletableFuture<FullHttpResponse>> RESPONSE_ATTR = AttributeKey.valueOf("PROXY_RESPONSE_ATTR");
+    private static final int MAX_CONTENT_LENGTH = 1048576;
+    private static final int CONNECT_TIMEOUT_MILLIS = 10000;
+    private static final int READ_TIMEOUT_SECONDS = 30;
+
+    private final RakamUIConfig config;
+    private final Cache<String, ProxiedResponse> cache;
+    private final ConcurrentMap<String, CompletableFuture<ProxiedResponse>> inFlightFetches = new ConcurrentHashMap<>();
+    private final Semaphore fetchPermits;
+
+    private NioEventLoopGroup group;
+    private AbstractChannelPoolMap<Origin, FixedChannelPool> pools;
 
-    private Bootstrap bootstrap;
-    private Bootstrap sslBootstrap;
+    @Inject
+    public ProxyWebService(RakamUIConfig config) {
+        this.config = config;
+        // the cache is bounded by the size of the pages since a page may be up to MAX_CONTENT_LENGTH
+        this.cache = CacheBuilder.newBuilder()
+                .maximumWeight(config.getProxyCacheMaxSize().toBytes())
+                .<String, ProxiedResponse>weigher((uri, response) -> uri.length() * 2 + response.content.length)
+                .expireAfterWrite(config.getProxyCacheTtl().toMillis(), TimeUnit.MILLISECONDS)
+                .build();
+        this.fetchPermits = new Semaphore(config.getProxyMaxConcurrentFetches());
+    }
 
     @PostConstruct
     public void startClient() throws SSLException {
-        NioEventLoopGroup group = new NioEventLoopGroup(4);
+        group = new NioEventLoopGroup(4);
 
         SslContext sslCtx = SslContextBuilder.forClient()
                 .clientAuth(ClientAuth.NONE)
                 .trustManager(InsecureTrustManagerFactory.INSTANCE).build();
 
-        sslBootstrap = new Bootstrap().channel(NioSocketChannel.class)
-                .group(group).handler(new ChannelInitializer<SocketChannel>() {
+        Bootstrap bootstrap = new Bootstrap().channel(NioSocketChannel.class).group(group)
+                .option(ChannelOption.CONNECT_TIMEOUT_MILLIS, CONNECT_TIMEOUT_MILLIS);
+
+        pools = new AbstractChannelPoolMap<Origin, FixedChannelPool>() {
             @Override
-            protected void initChannel(SocketChannel ch) throws Exception {
-                InetSocketAddress addr = ch.remoteAddress();
-                SslHandler sslHandler;
-                // for some hosts the hostname and port required, jdk ssl throws handshake_failure
-                if(addr != null) {
-                    sslHandler = sslCtx.newHandler(ch.alloc(), addr.getHostName(), addr.getPort());
-                } else {
-                    sslHandler = sslCtx.newHandler(ch.alloc());
-                }
+            protected FixedChannelPool newPool(Origin origin) {
+                return new FixedChannelPool(bootstrap.clone().remoteAddress(origin.host, origin.port), new AbstractChannelPoolHandler() {
+                    @Override
+                    public void channelCreated(Channel ch) throws Exception {
+                        if (origin.ssl) {
+                            // for some hosts the hostname and port required, jdk ssl throws handshake_failure
+                            ch.pipeline().addLast(sslCtx.newHandler(ch.alloc(), origin.host, origin.port));
+                        }
 
-                ch.pipeline().addLast(sslHandler)
-                        .addLast(new HttpClientCodec())
-                        .addLast(new HttpContentDecompressor())
-                        .addLast(new HttpObjectAggregator(1048576))
-                        .addLast(new ProxyChannelInboundHandler());
+                        ch.pipeline().addLast(new HttpClientCodec())
+                                .addLast(new HttpContentDecompressor())
+                                .addLast(new HttpObjectAggregator(MAX_CONTENT_LENGTH))
+                                .addLast(new ReadTimeoutHandler(READ_TIMEOUT_SECONDS))
+                                .addLast(new ProxyChannelInboundHandler());
+                    }
+                }, ChannelHealthChecker.ACTIVE, FixedChannelPool.AcquireTimeoutAction.FAIL,
+                        CONNECT_TIMEOUT_MILLIS, config.getProxyMaxConnectionsPerHost(), Integer.MAX_VALUE);
             }
-        });
+        };
+    }
 
-        bootstrap = new Bootstrap().channel(NioSocketChannel.class)
-                .group(group).handler(new ChannelInitializer<SocketChannel>() {
-            @Override
-            protected void initChannel(SocketChannel ch) throws Exception {
-                ch.pipeline().addLast(new HttpClientCodec())
-                        .addLast(new HttpContentDecompressor())
-                        .addLast(new HttpObjectAggregator(1048576))
-                        .addLast(new ProxyChannelInboundHandler());
-            }
-        });
+    @PreDestroy
+    public void destroy() {
+        if (pools != null) {
+            pools.close();
+        }
+        if (group != null) {
+            group.shutdownGracefully();
+        }
     }
 
     @Path("/")
     @GET
-    public void proxy(RakamHttpRequest request, @QueryParam("u") String uri) throws InterruptedException {
+    public void proxy(RakamHttpRequest request, @QueryParam("u") String uri) {
         URI url = UriBuilder.fromUri(uri).build();
 
         int port;
         if(url.getPort() != -1) {
             port = url.getPort();
         } else
-        if(url.getScheme().equals("http")) {
+        if("http".equals(url.getScheme())) {
             port = 80;
         } else
-        if(url.getScheme().equals("https")) {
+        if("https".equals(url.getScheme())) {
             port = 443;
         } else {
             request.response("invalid scheme").end();
             return;
         }
 
-        Channel ch = (port == 443 ? sslBootstrap : bootstrap).connect(url.getHost(), port)
-                .sync().channel();
-        ch.attr(CONNECTION_ATTR).set(request);
+        getPage(new Origin("https".equals(url.getScheme()), url.getHost(), port), url, uri).whenComplete((response, ex) -> {
+            if (ex instanceof RakamException) {
+                request.response(ex.getMessage(), ((RakamException) ex).getStatusCode()).end();
+            } else if (ex != null) {
+                request.response("Unable to fetch the page: " + ex.getMessage(), BAD_GATEWAY).end();
+            } else {
+                request.response(response.toHttpResponse()).end();
+            }
+        });
+    }
+
+    /**
+     * Returns the rewritten page from the cache or fetches it. The concurrent requests of the same page share a
+     * single fetch, the permit of the fetch is released and the fetch is removed from the in-flight fetches when it's
+     * completed regardless of how it fails.
+     */
+    @VisibleForTesting
+    CompletableFuture<ProxiedResponse> getPage(Origin origin, URI url, String uri) {
+        ProxiedResponse cached = cache.getIfPresent(uri);
+        if (cached != null) {
+            return CompletableFuture.completedFuture(cached);
+        }
+
+        CompletableFuture<ProxiedResponse> newFetch = new CompletableFuture<>();
+        CompletableFuture<ProxiedResponse> fetch = inFlightFetches.putIfAbsent(uri, newFetch);
+        if (fetch != null) {
+            return fetch;
+        }
+
+        if (!fetchPermits.tryAcquire()) {
+            inFlightFetches.remove(uri, newFetch);
+            newFetch.completeExceptionally(new RakamException("Too many pages are being fetched", SERVICE_UNAVAILABLE));
+            return newFetch;
+        }
+
+        newFetch.whenComplete((response, ex) -> {
+            fetchPermits.release();
+            inFlightFetches.remove(uri, newFetch);
+            if (response != null && response.status.equals(OK)) {
+                cache.put(uri, response);
+            }
+        });
+
+        try {
+            fetch(origin, url, uri, newFetch);
+        } catch (Throwable e) {
+            // the pool may fail before the fetch is started, the permit is released by the future
+            newFetch.completeExceptionally(e);
+        }
+        return newFetch;
+    }
+
+    @VisibleForTesting
+    int getInFlightFetches() {
+        return inFlightFetches.size();
+    }
+
+    @VisibleForTesting
+    int getAvailableFetchPermits() {
+        return fetchPermits.availablePermits();
+    }
+
+    private void fetch(Origin origin, URI url, String uri, CompletableFuture<ProxiedResponse> result) {
+        FixedChannelPool pool = pools.get(origin);
+        pool.acquire().addListener((Future<Channel> future) -> {
+            if (!future.isSuccess()) {
+                result.completeExceptionally(future.cause());
+                return;
+            }
+
+            Channel ch = future.getNow();
+            try {
+                send(ch, pool, url, uri, result);
+            } catch (Throwable e) {
+                ch.attr(RESPONSE_ATTR).set(null);
+                ch.close();
+                pool.release(ch);
+                result.completeExceptionally(e);
+            }
+        });
+    }
+
+    private void send(Channel ch, FixedChannelPool pool, URI url, String uri, CompletableFuture<ProxiedResponse> result) {
+        CompletableFuture<FullHttpResponse> response = new CompletableFuture<>();
+        ch.attr(RESPONSE_ATTR).set(response);
+
+        response.whenComplete((resp, ex) -> {
+            ch.attr(RESPONSE_ATTR).set(null);
+            if (ex != null || !HttpHeaders.isKeepAlive(resp)) {
+                ch.close();
+            }
+            pool.release(ch);
+
+            if (ex != null) {
+                result.completeExceptionally(ex);
+                return;
+            }
+
+            try {
+                result.complete(rewrite(resp, uri));
+            } catch (Throwable e) {
+                result.completeExceptionally(e);
+            } finally {
+                resp.release();
+            }
+        });
+
+        String path = url.getRawPath() == null || url.getRawPath().isEmpty() ? "/" : url.getRawPath();
+        if (url.getRawQuery() != null) {
+            path += "?" + url.getRawQuery();
+        }
 
-        HttpRequest req = new DefaultFullHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.GET, url.getRawPath());
+        HttpRequest req = new DefaultFullHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.GET, path);
         req.headers().set(HttpHeaders.Names.HOST, url.getHost());
-        req.headers().set(HttpHeaders.Names.CONNECTION, HttpHeaders.Values.CLOSE);
+        req.headers().set(HttpHeaders.Names.CONNECTION, HttpHeaders.Values.KEEP_ALIVE);
         req.headers().set(HttpHeaders.Names.ACCEPT_ENCODING, HttpHeaders.Values.GZIP);
         req.headers().set(HttpHeaders.Names.CACHE_CONTROL, HttpHeaders.Values.NO_CACHE);
-        req.headers().set(HttpHeaders.Names.CONNECTION, HttpHeaders.Values.CLOSE);
         req.headers().set(HttpHeaders.Names.PRAGMA, HttpHeaders.Values.NO_CACHE);
         req.headers().set(HttpHeaders.Names.USER_AGENT, "rakam-ab-test-tool 0.1");
-        ch.writeAndFlush(req);
+        ch.writeAndFlush(req).addListener(writeFuture -> {
+            if (!writeFuture.isSuccess()) {
+                response.completeExceptionally(writeFuture.cause());
+            }
+        });
     }
 
-    private class ProxyChannelInboundHandler extends SimpleChannelInboundHandler<HttpObject> {
+    /**
+     * Injects the editor into the HTML pages, the other resources such as images and scripts that are loaded through
+     * the proxy are passed as they are.
+     */
+    @VisibleForTesting
+    static ProxiedResponse rewrite(FullHttpResponse resp, String url) {
+        String contentType = resp.headers().get(HttpHeaders.Names.CONTENT_TYPE);
+        Charset charset = null;
+        boolean html = false;
 
-        @Override
-        public void channelRead0(ChannelHandlerContext ctx, HttpObject msg) throws Exception {
-            RakamHttpRequest rakamHttpRequest = ctx.channel().attr(CONNECTION_ATTR).get();
-            Channel channel = rakamHttpRequest.context().channel();
-            FullHttpResponse resp = (FullHttpResponse) msg;
-
-            String contentType = resp.headers().get(HttpHeaders.Names.CONTENT_TYPE);
-            Charset charset = null;
-
-            if(contentType != null) {
-                Iterable<String> split = Splitter.on(";").trimResults().split(contentType);
-                for (String item : split) {
-                    List<String> charsetStr = new QueryStringDecoder("?" + item).parameters().get("charset");
-                    if(charsetStr != null) {
-                        charset = Charset.forName(charsetStr.get(0));
-                        break;
-                    }
+        if(contentType != null) {
+            Iterable<String> split = Splitter.on(";").trimResults().split(contentType);
+            for (String item : split) {
+                if (item.equalsIgnoreCase("text/html") || item.equalsIgnoreCase("application/xhtml+xml")) {
+                    html = true;
+                    continue;
+                }
+                List<String> charsetStr = new QueryStringDecoder("?" + item).parameters().get("charset");
+                if(charsetStr != null) {
+                    charset = Charset.forName(charsetStr.get(0));
                 }
             }
+        }
+
+        byte[] bytes;
+        if (html) {
+            bytes = injectEditor(resp.content().toString(charset == null ? CharsetUtil.UTF_8 : charset), url,
+                    charset == null ? CharsetUtil.UTF_8 : charset);
+        } else {
+            bytes = new byte[resp.content().readableBytes()];
+            resp.content().getBytes(resp.content().readerIndex(), bytes);
+        }
 
-            if(charset == null) {
-                charset = CharsetUtil.UTF_8;
+        HttpHeaders headers = new DefaultHttpHeaders();
+        headers.set(resp.headers());
+        // the connection to the upstream server is not related to the connection of the client
+        headers.remove(HttpHeaders.Names.CONNECTION);
+        headers.remove(HttpHeaders.Names.TRANSFER_ENCODING);
+        headers.set(HttpHeaders.Names.CONTENT_LENGTH, bytes.length);
+        headers.set("X-Frame-Options", "ALLOWALL");
+
+        String location = resp.headers().get(HttpHeaders.Names.LOCATION);
+        if(location != null && (location.startsWith("/") || (resp.getStatus().code() == 301 || resp.getStatus().code() == 302))) {
+            if(location.startsWith("/")) {
+                location = url.trim()+location;
             }
+            headers.set(HttpHeaders.Names.LOCATION, CharMatcher.is('/').trimTrailingFrom("/ui/proxy?u="+location)+'/');
+        }
 
-            String content = resp.content().toString(charset);
-            Document parse = Jsoup.parse(content, "", Parser.htmlParser());
-
-            String url = rakamHttpRequest.params().get("u").get(0);
-            parse.head().prepend(String.format("<base href='%s'>", url));
-            parse.head().prepend("<link href=\"/static/components/codemirror/lib/codemirror.css\" media=\"screen\" rel=\"stylesheet\" />");
-            parse.head().prepend("<link href=\"/static/embed/jquery-ui-theme.css\" media=\"screen\" rel=\"stylesheet\" />");
-            parse.head().prepend("<link href=\"/static/components/bootstrap-colorpicker/css/colorpicker.css\" media=\"screen\" rel=\"stylesheet\" />");
-            parse.head().prepend("<link href=\"/static/embed/rakam-inline-editor.css\" media=\"screen\" rel=\"stylesheet\" />");
-
-            parse.head().prepend("<script src=\"/static/embed/rakam-inline-editor.js\"></script>");
-            parse.head().prepend("<script src=\"/static/components/bootstrap-colorpicker/js/bootstrap-colorpicker.js\"></script>");
-            parse.head().prepend("<script src=\"/static/components/codemirror/mode/xml/xml.js\"></script>");
-            parse.head().prepend("<script src=\"/static/components/codemirror/mode/javascript/javascript.js\"></script>");
-            parse.head().prepend("<script src=\"/static/components/codemirror/mode/css/css.js\"></script>");
-            parse.head().prepend("<script src=\"/static/components/codemirror/mode/vbscript/vbscript.js\"></script>");
-            parse.head().prepend("<script src=\"/static/components/codemirror/mode/htmlmixed/htmlmixed.js\"></script>");
-            parse.head().prepend("<script src=\"/static/components/codemirror/lib/codemirror.js\"></script>");
-            parse.head().prepend("<script src=\"/static/components/jquery-ui/jquery-ui.min.js\"></script>");
-            parse.head().prepend("<script src=\"/static/components/jquery/dist/jquery.min.js\"></script>");
-
-            byte[] bytes = parse.outerHtml().getBytes(charset);
-            DefaultFullHttpResponse copy = new DefaultFullHttpResponse(
-                    resp.getProtocolVersion(), resp.getStatus(), Unpooled.wrappedBuffer(bytes));
-            copy.headers().set(resp.headers());
-            copy.trailingHeaders().set(resp.trailingHeaders());
-            copy.headers().set(HttpHeaders.Names.CONTENT_LENGTH, bytes.length);
-
-            String location = resp.headers().get(HttpHeaders.Names.LOCATION);
-
-            copy.headers().set("X-Frame-Options", "ALLOWALL");
-
-            if(location != null && (location.startsWith("/") || (resp.getStatus().code() == 301 || resp.getStatus().code() == 302))) {
-                if(location.startsWith("/")) {
-                    location = url.trim()+location;
-                }
-                copy.headers().set(HttpHeaders.Names.LOCATION, CharMatcher.is('/').trimTrailingFrom("/ui/proxy?u="+location)+'/');
+        return new ProxiedResponse(resp.getStatus(), headers, bytes);
+    }
+
+    private static byte[] injectEditor(String content, String url, Charset charset) {
+        Document parse = Jsoup.parse(content, "", Parser.htmlParser());
+
+        parse.head().prepend(String.format("<base href='%s'>", url));
+        parse.head().prepend("<link href=\"/static/components/codemirror/lib/codemirror.css\" media=\"screen\" rel=\"stylesheet\" />");
+        parse.head().prepend("<link href=\"/static/embed/jquery-ui-theme.css\" media=\"screen\" rel=\"stylesheet\" />");
+        parse.head().prepend("<link href=\"/static/components/bootstrap-colorpicker/css/colorpicker.css\" media=\"screen\" rel=\"stylesheet\" />");
+        parse.head().prepend("<link href=\"/static/embed/rakam-inline-editor.css\" media=\"screen\" rel=\"stylesheet\" />");
+
+        parse.head().prepend("<script src=\"/static/embed/rakam-inline-editor.js\"></script>");
+        parse.head().prepend("<script src=\"/static/components/bootstrap-colorpicker/js/bootstrap-colorpicker.js\"></script>");
+        parse.head().prepend("<script src=\"/static/components/codemirror/mode/xml/xml.js\"></script>");
+        parse.head().prepend("<script src=\"/static/components/codemirror/mode/javascript/javascript.js\"></script>");
+        parse.head().prepend("<script src=\"/static/components/codemirror/mode/css/css.js\"></script>");
+        parse.head().prepend("<script src=\"/static/components/codemirror/mode/vbscript/vbscript.js\"></script>");
+        parse.head().prepend("<script src=\"/static/components/codemirror/mode/htmlmixed/htmlmixed.js\"></script>");
+        parse.head().prepend("<script src=\"/static/components/codemirror/lib/codemirror.js\"></script>");
+        parse.head().prepend("<script src=\"/static/components/jquery-ui/jquery-ui.min.js\"></script>");
+        parse.head().prepend("<script src=\"/static/components/jquery/dist/jquery.min.js\"></script>");
+
+        return parse.outerHtml().getBytes(charset);
+    }
+
+    private static class ProxyChannelInboundHandler extends SimpleChannelInboundHandler<FullHttpResponse> {
+        @Override
+        public void channelRead0(ChannelHandlerContext ctx, FullHttpResponse msg) throws Exception {
+            CompletableFuture<FullHttpResponse> response = ctx.channel().attr(RESPONSE_ATTR).get();
+            if (response != null) {
+                response.complete(msg.retain());
             }
+        }
+
+        @Override
+        public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) throws Exception {
+            CompletableFuture<FullHttpResponse> response = ctx.channel().attr(RESPONSE_ATTR).get();
+            if (response != null) {
+                response.completeExceptionally(cause);
+            }
+            ctx.close();
+        }
+
+        @Override
+        public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+            CompletableFuture<FullHttpResponse> response = ctx.channel().attr(RESPONSE_ATTR).get();
+            if (response != null) {
+                response.completeExceptionally(new IllegalStateException("Connection is closed by the server"));
+            }
+            super.channelInactive(ctx);
+        }
+    }
+
+    @VisibleForTesting
+    static class ProxiedResponse {
+        private final HttpResponseStatus status;
+        private final HttpHeaders headers;
+        private final byte[] content;
 
-            channel.writeAndFlush(copy).addListener(ChannelFutureListener.CLOSE);
+        private ProxiedResponse(HttpResponseStatus status, HttpHeaders headers, byte[] content) {
+            this.status = status;
+            this.headers = headers;
+            this.content = content;
+        }
+
+        public FullHttpResponse toHttpResponse() {
+            DefaultFullHttpResponse response = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, status,
+                    Unpooled.wrappedBuffer(content));
+            response.headers().set(headers);
+            return response;
+        }
+    }
+
+    @VisibleForTesting
+    static final class Origin {
+        private final boolean ssl;
+        private final String host;
+        private final int port;
+
+        Origin(boolean ssl, String host, int port) {
+            this.ssl = ssl;
+            this.host = host;
+            this.port = port;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof Origin)) return false;
+            Origin origin = (Origin) o;
+            return ssl == origin.ssl && port == origin.port && host.equals(origin.host);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(ssl, host, port);
         }
     }
-}
\ No newline at end of file
+}
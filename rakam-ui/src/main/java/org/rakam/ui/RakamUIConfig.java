@@ -15,10 +15,13 @@ package org.rakam.ui;
 
 import io.airlift.configuration.Config;
 import io.airlift.configuration.ConfigDescription;
+import io.airlift.units.DataSize;
+import io.airlift.units.Duration;
 import org.rakam.ui.RakamUIModule.CustomPageBackend;
 
 import java.io.File;
 import java.util.Locale;
+import java.util.concurrent.TimeUnit;
 
 public class RakamUIConfig {
     private File uiDirectory;
@@ -27,6 +30,10 @@ public class RakamUIConfig {
     private boolean enableUi = true;
     private boolean hashPassword;
     private String googleClientId;
+    private int proxyMaxConnectionsPerHost = 4;
+    private int proxyMaxConcurrentFetches = 32;
+    private DataSize proxyCacheMaxSize = new DataSize(32, DataSize.Unit.MEGABYTE);
+    private Duration proxyCacheTtl = new Duration(5, TimeUnit.MINUTES);
 
     @Config("ui.directory")
     public RakamUIConfig setUIDirectory(File uiDirectory) {
@@ -90,4 +97,47 @@ public class RakamUIConfig {
     public String getGoogleClientId() {
         return googleClientId;
     }
+
+    @Config("ui.proxy.max-connections-per-host")
+    @ConfigDescription("The number of keep-alive connections that are opened to a website that is proxied for the A/B test tool")
+    public RakamUIConfig setProxyMaxConnectionsPerHost(int proxyMaxConnectionsPerHost) {
+        this.proxyMaxConnectionsPerHost = proxyMaxConnectionsPerHost;
+        return this;
+    }
+
+    public int getProxyMaxConnectionsPerHost() {
+        return proxyMaxConnectionsPerHost;
+    }
+
+    @Config("ui.proxy.max-concurrent-fetches")
+    @ConfigDescription("The proxy responds with 503 when this many pages are being fetched")
+    public RakamUIConfig setProxyMaxConcurrentFetches(int proxyMaxConcurrentFetches) {
+        this.proxyMaxConcurrentFetches = proxyMaxConcurrentFetches;
+        return this;
+    }
+
+    public int getProxyMaxConcurrentFetches() {
+        return proxyMaxConcurrentFetches;
+    }
+
+    @Config("ui.proxy.cache-max-size")
+    @ConfigDescription("The maximum total size of the proxied pages that are cached, the pages are up to 1MB.")
+    public RakamUIConfig setProxyCacheMaxSize(String proxyCacheMaxSize) {
+        this.proxyCacheMaxSize = DataSize.valueOf(proxyCacheMaxSize);
+        return this;
+    }
+
+    public DataSize getProxyCacheMaxSize() {
+        return proxyCacheMaxSize;
+    }
+
+    @Config("ui.proxy.cache-ttl")
+    public RakamUIConfig setProxyCacheTtl(String proxyCacheTtl) {
+        this.proxyCacheTtl = Duration.valueOf(proxyCacheTtl);
+        return this;
+    }
+
+    public Duration getProxyCacheTtl() {
+        return proxyCacheTtl;
+    }
 }
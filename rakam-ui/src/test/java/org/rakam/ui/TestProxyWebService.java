@@ -0,0 +1,79 @@
+package org.rakam.ui;
+
+import io.netty.buffer.Unpooled;
+import io.netty.handler.codec.http.DefaultFullHttpResponse;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.util.CharsetUtil;
+import org.testng.annotations.Test;
+
+import java.net.URI;
+import java.util.concurrent.CompletableFuture;
+
+import static io.netty.handler.codec.http.HttpResponseStatus.FOUND;
+import static io.netty.handler.codec.http.HttpResponseStatus.OK;
+import static io.netty.handler.codec.http.HttpVersion.HTTP_1_1;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+public class TestProxyWebService {
+    private static final String PAGE = "http://example.com/";
+
+    @Test
+    public void testPermitIsReleasedWhenFetchFailsSynchronously() throws Exception {
+        ProxyWebService service = new ProxyWebService(new RakamUIConfig().setProxyMaxConcurrentFetches(1));
+        // the client is not started so the fetch fails before the request is sent
+        for (int i = 0; i < 3; i++) {
+            CompletableFuture<ProxyWebService.ProxiedResponse> page = service.getPage(
+                    new ProxyWebService.Origin(false, "example.com", 80), new URI(PAGE), PAGE);
+
+            assertTrue(page.isCompletedExceptionally());
+            assertEquals(service.getInFlightFetches(), 0);
+            assertEquals(service.getAvailableFetchPermits(), 1);
+        }
+    }
+
+    @Test
+    public void testHtmlIsRewritten() throws Exception {
+        FullHttpResponse response = response("text/html; charset=utf-8",
+                "<html><head><title>test</title></head><body>test</body></html>".getBytes(CharsetUtil.UTF_8));
+
+        FullHttpResponse rewritten = ProxyWebService.rewrite(response, PAGE).toHttpResponse();
+
+        String content = rewritten.content().toString(CharsetUtil.UTF_8);
+        assertTrue(content.contains("<base href='" + PAGE + "'>"));
+        assertTrue(content.contains("/static/embed/rakam-inline-editor.js"));
+        assertEquals(rewritten.headers().get("X-Frame-Options"), "ALLOWALL");
+        assertEquals(HttpHeaders.getContentLength(rewritten), rewritten.content().readableBytes());
+    }
+
+    @Test
+    public void testBinaryContentIsNotRewritten() throws Exception {
+        byte[] image = new byte[] {(byte) 0x89, 'P', 'N', 'G', 0x0D, 0x0A, 0x1A, 0x0A, 0, (byte) 0xFF};
+
+        FullHttpResponse rewritten = ProxyWebService.rewrite(response("image/png", image), PAGE).toHttpResponse();
+
+        byte[] content = new byte[rewritten.content().readableBytes()];
+        rewritten.content().readBytes(content);
+        assertEquals(content, image);
+        assertEquals(HttpHeaders.getContentLength(rewritten), image.length);
+    }
+
+    @Test
+    public void testRedirectIsProxied() throws Exception {
+        FullHttpResponse response = new DefaultFullHttpResponse(HTTP_1_1, FOUND, Unpooled.EMPTY_BUFFER);
+        response.headers().set(HttpHeaders.Names.LOCATION, "/login");
+
+        FullHttpResponse rewritten = ProxyWebService.rewrite(response, "http://example.com").toHttpResponse();
+
+        assertEquals(rewritten.headers().get(HttpHeaders.Names.LOCATION), "/ui/proxy?u=http://example.com/login/");
+        assertFalse(rewritten.headers().contains(HttpHeaders.Names.TRANSFER_ENCODING));
+    }
+
+    private static FullHttpResponse response(String contentType, byte[] content) {
+        FullHttpResponse response = new DefaultFullHttpResponse(HTTP_1_1, OK, Unpooled.wrappedBuffer(content));
+        response.headers().set(HttpHeaders.Names.CONTENT_TYPE, contentType);
+        return response;
+    }
+}
@@ -28,23 +28,43 @@ import org.rakam.analysis.ContinuousQueryHttpService;
 import org.rakam.analysis.ContinuousQueryService;
 import org.rakam.analysis.CustomParameter;
 import org.rakam.analysis.MaterializedViewHttpService;
+import org.rakam.analysis.MaterializedViewRefreshConfig;
+import org.rakam.analysis.MaterializedViewRefreshScheduler;
 import org.rakam.analysis.ProjectHttpService;
 import org.rakam.analysis.QueryHttpService;
 import org.rakam.analysis.RequestPreProcessorItem;
+import org.rakam.analysis.metadata.SchemaChangeBus;
 import org.rakam.bootstrap.Bootstrap;
+import org.rakam.collection.CollectionEventStoreProvider;
+import org.rakam.collection.Decompressor;
 import org.rakam.collection.EventCollectionHttpService;
+import org.rakam.collection.EventCounter;
+import org.rakam.collection.EventCounterConfig;
+import org.rakam.collection.EventDeduplicationConfig;
+import org.rakam.collection.EventDeduplicator;
+import org.rakam.collection.EventMapperExecutor;
+import org.rakam.collection.EventMapperExecutorConfig;
+import org.rakam.collection.EventSpoolConfig;
+import org.rakam.collection.ForCollection;
+import org.rakam.collection.IngestionRateLimitConfig;
+import org.rakam.collection.IngestionRateLimiter;
 import org.rakam.collection.FieldDependencyBuilder;
+import org.rakam.collection.RequestDecompressionConfig;
 import org.rakam.collection.mapper.geoip.GeoIPModule;
 import org.rakam.config.EncryptionConfig;
 import org.rakam.config.MetadataConfig;
 import org.rakam.config.ProjectConfig;
+import org.rakam.config.SchemaVerificationConfig;
 import org.rakam.http.ForHttpServer;
 import org.rakam.http.HttpServerConfig;
 import org.rakam.http.OptionMethodHttpService;
 import org.rakam.http.WebServiceModule;
 import org.rakam.http.WebServiceModule.ProjectPermissionParameterFactory;
+import org.rakam.metrics.MetricRegistry;
+import org.rakam.metrics.MetricsHttpService;
 import org.rakam.plugin.CopyEvent;
 import org.rakam.plugin.EventMapper;
+import org.rakam.plugin.EventStore;
 import org.rakam.plugin.InjectionHook;
 import org.rakam.plugin.RakamModule;
 import org.rakam.plugin.user.AbstractUserService;
@@ -141,6 +161,14 @@ public final class ServiceStarter {
             binder.bind(Clock.class).toInstance(Clock.systemUTC());
 
             binder.bind(FieldDependencyBuilder.FieldDependency.class).toProvider(FieldDependencyProvider.class).in(Scopes.SINGLETON);
+            binder.bind(EventMapperExecutor.class).in(Scopes.SINGLETON);
+            binder.bind(MetricRegistry.class).in(Scopes.SINGLETON);
+            binder.bind(CollectionEventStoreProvider.class).in(Scopes.SINGLETON);
+            binder.bind(EventStore.class).annotatedWith(ForCollection.class).toProvider(CollectionEventStoreProvider.class);
+            binder.bind(IngestionRateLimiter.class).in(Scopes.SINGLETON);
+            binder.bind(EventDeduplicator.class).in(Scopes.SINGLETON);
+            binder.bind(Decompressor.class).in(Scopes.SINGLETON);
+            binder.bind(MaterializedViewRefreshScheduler.class).asEagerSingleton();
 
             Multibinder.newSetBinder(binder, EventMapper.class);
             OptionalBinder.newOptionalBinder(binder, CopyEvent.class);
@@ -149,6 +177,8 @@ public final class ServiceStarter {
             OptionalBinder.newOptionalBinder(binder, ContinuousQueryService.class);
             OptionalBinder.newOptionalBinder(binder, UserStorage.class);
             OptionalBinder.newOptionalBinder(binder, UserMailboxStorage.class);
+            OptionalBinder.newOptionalBinder(binder, EventCounter.class);
+            OptionalBinder.newOptionalBinder(binder, SchemaChangeBus.class).setDefault().toInstance(SchemaChangeBus.LOCAL);
 
             EventBus eventBus = new EventBus(new SubscriberExceptionHandler() {
                 Logger logger = Logger.get("System Event Listener");
@@ -190,12 +220,21 @@ public final class ServiceStarter {
             httpServices.addBinding().to(ContinuousQueryHttpService.class);
             httpServices.addBinding().to(QueryHttpService.class);
             httpServices.addBinding().to(OptionMethodHttpService.class);
+            httpServices.addBinding().to(MetricsHttpService.class);
 
             Multibinder.newSetBinder(binder, WebSocketService.class);
 
             configBinder(binder).bindConfig(HttpServerConfig.class);
             configBinder(binder).bindConfig(ProjectConfig.class);
             configBinder(binder).bindConfig(EncryptionConfig.class);
+            configBinder(binder).bindConfig(EventMapperExecutorConfig.class);
+            configBinder(binder).bindConfig(EventSpoolConfig.class);
+            configBinder(binder).bindConfig(IngestionRateLimitConfig.class);
+            configBinder(binder).bindConfig(EventDeduplicationConfig.class);
+            configBinder(binder).bindConfig(RequestDecompressionConfig.class);
+            configBinder(binder).bindConfig(EventCounterConfig.class);
+            configBinder(binder).bindConfig(SchemaVerificationConfig.class);
+            configBinder(binder).bindConfig(MaterializedViewRefreshConfig.class);
 
             binder.bind(EventLoopGroup.class)
                     .annotatedWith(ForHttpServer.class)
@@ -1,5 +1,7 @@
 package org.rakam.analysis;
 
+import org.rakam.analysis.metadata.Metastore;
+import org.rakam.analysis.metadata.SchemaVerificationStatus;
 import org.rakam.bootstrap.SystemRegistry;
 import org.rakam.bootstrap.SystemRegistry.ModuleDescriptor;
 import org.rakam.collection.FieldType;
@@ -29,11 +31,13 @@ public class AdminHttpService extends HttpService {
     private final SystemRegistry systemRegistry;
     private final ActiveModuleList activeModules;
     private final ProjectConfig projectConfig;
+    private final Metastore metastore;
 
     @Inject
-    public AdminHttpService(SystemRegistry systemRegistry, ProjectConfig projectConfig, ActiveModuleListBuilder activeModuleListBuilder) {
+    public AdminHttpService(SystemRegistry systemRegistry, ProjectConfig projectConfig, ActiveModuleListBuilder activeModuleListBuilder, Metastore metastore) {
         this.systemRegistry = systemRegistry;
         this.projectConfig = projectConfig;
+        this.metastore = metastore;
         activeModules = activeModuleListBuilder.build();
     }
 
@@ -57,6 +61,17 @@ public class AdminHttpService extends HttpService {
         return Arrays.stream(FieldType.values()).collect(Collectors.toMap(FieldType::name, FieldType::getPrettyName));
     }
 
+    @ApiOperation(value = "Get the progress of the schema verification",
+            notes = "The existing schemas are verified in background after the startup if event.schema.verification.lazy is enabled.",
+            authorizations = @Authorization(value = "master_key")
+    )
+    @GET
+    @JsonRequest
+    @Path("/schema_verification")
+    public SchemaVerificationStatus getSchemaVerificationStatus() {
+        return metastore.getSchemaVerificationStatus();
+    }
+
     @ApiOperation(value = "Check lock key",
             authorizations = @Authorization(value = "master_key")
     )
@@ -116,7 +116,8 @@ public class MaterializedViewHttpService extends HttpService {
     public void update(RakamHttpRequest request) {
         queryService.handleServerSentQueryExecution(request, MaterializedViewRequest.class,
                 (project, query) -> {
-                    QueryExecution execution = service.lockAndUpdateView(project, service.get(project, query.name)).queryExecution;
+                    MaterializedViewService.MaterializedViewExecution refresh = service.refresh(project, service.get(project, query.name));
+                    QueryExecution execution = refresh == null ? null : refresh.queryExecution;
                     if (execution == null) {
                         QueryResult result = QueryResult.errorResult(new QueryError("There is another process that updates materialized view", null, null, null, null));
                         return QueryExecution.completedQueryExecution(null, result);
@@ -0,0 +1,52 @@
+package org.rakam.analysis;
+
+import io.airlift.configuration.Config;
+import io.airlift.configuration.ConfigDescription;
+import io.airlift.units.Duration;
+
+import java.util.concurrent.TimeUnit;
+
+public class MaterializedViewRefreshConfig
+{
+    private boolean enabled = true;
+    private Duration scanInterval = new Duration(30, TimeUnit.SECONDS);
+    private double refreshAheadRatio = .8;
+
+    @Config("materialized-view.refresh.enabled")
+    @ConfigDescription("Refresh the materialized views in background before their update interval expires.")
+    public MaterializedViewRefreshConfig setEnabled(boolean enabled)
+    {
+        this.enabled = enabled;
+        return this;
+    }
+
+    public boolean getEnabled()
+    {
+        return enabled;
+    }
+
+    @Config("materialized-view.refresh.scan-interval")
+    public MaterializedViewRefreshConfig setScanInterval(String scanInterval)
+    {
+        this.scanInterval = Duration.valueOf(scanInterval);
+        return this;
+    }
+
+    public Duration getScanInterval()
+    {
+        return scanInterval;
+    }
+
+    @Config("materialized-view.refresh.ahead-ratio")
+    @ConfigDescription("A materialized view is refreshed when its age exceeds this fraction of its update interval.")
+    public MaterializedViewRefreshConfig setRefreshAheadRatio(double refreshAheadRatio)
+    {
+        this.refreshAheadRatio = refreshAheadRatio;
+        return this;
+    }
+
+    public double getRefreshAheadRatio()
+    {
+        return refreshAheadRatio;
+    }
+}
@@ -0,0 +1,94 @@
+package org.rakam.analysis;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import io.airlift.log.Logger;
+import org.rakam.analysis.metadata.Metastore;
+import org.rakam.analysis.metadata.QueryMetadataStore;
+import org.rakam.plugin.MaterializedView;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+import java.time.Clock;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Refreshes the materialized views before their update interval expires so that the user queries don't wait for
+ * the refresh. The views are refreshed by {@link MaterializedViewService#refreshAsync(String, MaterializedView)}
+ * so a view that is already being refreshed is skipped, and the nodes of the cluster don't refresh the same view
+ * since the refresh is claimed in {@link QueryMetadataStore} before it's started.
+ */
+@Singleton
+public class MaterializedViewRefreshScheduler
+{
+    private final static Logger LOGGER = Logger.get(MaterializedViewRefreshScheduler.class);
+
+    private final Metastore metastore;
+    private final QueryMetadataStore database;
+    private final MaterializedViewService materializedViewService;
+    private final MaterializedViewRefreshConfig config;
+    private final Clock clock;
+    private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(
+            new ThreadFactoryBuilder().setNameFormat("materialized-view-refresh-scheduler").setDaemon(true).build());
+
+    @Inject
+    public MaterializedViewRefreshScheduler(Metastore metastore, QueryMetadataStore database,
+            MaterializedViewService materializedViewService, MaterializedViewRefreshConfig config, Clock clock)
+    {
+        this.metastore = metastore;
+        this.database = database;
+        this.materializedViewService = materializedViewService;
+        this.config = config;
+        this.clock = clock;
+    }
+
+    @PostConstruct
+    public void start()
+    {
+        if (!config.getEnabled()) {
+            return;
+        }
+
+        long interval = config.getScanInterval().toMillis();
+        executor.scheduleWithFixedDelay(() -> {
+            try {
+                refreshExpiringViews();
+            }
+            catch (Throwable e) {
+                LOGGER.error(e, "Error while scanning the materialized views");
+            }
+        }, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    public void refreshExpiringViews()
+    {
+        long now = clock.millis();
+        for (String project : metastore.getProjects()) {
+            for (MaterializedView view : database.getMaterializedViews(project)) {
+                if (view.updateInterval == null || view.lastUpdate == null) {
+                    // the views that are not materialized yet are refreshed when they're queried for the first time
+                    continue;
+                }
+
+                long refreshAt = view.lastUpdate.toEpochMilli() + (long) (view.updateInterval.toMillis() * config.getRefreshAheadRatio());
+                if (refreshAt <= now) {
+                    materializedViewService.refreshAsync(project, view).whenComplete((execution, ex) -> {
+                        if (ex != null) {
+                            LOGGER.warn(ex, "Unable to refresh materialized view %s.%s", project, view.tableName);
+                        }
+                    });
+                }
+            }
+        }
+    }
+
+    @PreDestroy
+    public void destroy()
+    {
+        executor.shutdownNow();
+    }
+}
@@ -3,6 +3,7 @@ package org.rakam.analysis;
 import com.google.common.collect.ImmutableMap;
 import org.rakam.analysis.ApiKeyService.ProjectApiKeys;
 import org.rakam.analysis.metadata.Metastore;
+import org.rakam.collection.EventCounter;
 import org.rakam.collection.SchemaField;
 import org.rakam.config.ProjectConfig;
 import org.rakam.plugin.ContinuousQuery;
@@ -24,6 +25,7 @@ import javax.inject.Named;
 import javax.ws.rs.DELETE;
 import javax.ws.rs.GET;
 import javax.ws.rs.Path;
+import java.util.HashMap;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
@@ -49,13 +51,16 @@ public class ProjectHttpService extends HttpService {
     private final MaterializedViewService materializedViewService;
     private final ApiKeyService apiKeyService;
     private final ProjectConfig projectConfig;
+    private final Optional<EventCounter> eventCounter;
 
     @Inject
     public ProjectHttpService(Metastore metastore,
                               ProjectConfig projectConfig,
                               MaterializedViewService materializedViewService,
                               ApiKeyService apiKeyService,
+                              com.google.common.base.Optional<EventCounter> eventCounter,
                               ContinuousQueryService continuousQueryService) {
+        this.eventCounter = Optional.ofNullable(eventCounter.orNull());
         this.continuousQueryService = continuousQueryService;
         this.materializedViewService = materializedViewService;
         this.apiKeyService = apiKeyService;
@@ -97,6 +102,7 @@ public class ProjectHttpService extends HttpService {
         }
 
         apiKeyService.revokeAllKeys(project);
+        eventCounter.ifPresent(counter -> counter.delete(project));
 
         return SuccessMessage.success();
     }
@@ -119,7 +125,22 @@ public class ProjectHttpService extends HttpService {
             keys.put(project, apiKey);
         }
 
-        Map<String, Metastore.Stats> stats = metastore.getStats(keys.keySet());
+        Map<String, Metastore.Stats> stats;
+        if (eventCounter.isPresent()) {
+            // the projects whose events are not counted from the beginning are read from the event tables
+            Map<String, Metastore.Stats> counted = eventCounter.get().getStats(keys.keySet());
+            stats = new HashMap<>(counted);
+            Set<String> uncounted = keys.keySet().stream().filter(project -> !counted.containsKey(project))
+                    .collect(Collectors.toSet());
+            if (!uncounted.isEmpty()) {
+                Map<String, Metastore.Stats> tableStats = metastore.getStats(uncounted);
+                if (tableStats != null) {
+                    stats.putAll(tableStats);
+                }
+            }
+        } else {
+            stats = metastore.getStats(keys.keySet());
+        }
         if(stats == null) {
             return ImmutableMap.of();
         }
@@ -21,6 +21,7 @@ import org.rakam.analysis.EventExplorer;
 import org.rakam.analysis.EventExplorer.OLAPTable;
 import org.rakam.analysis.MaterializedViewService;
 import org.rakam.analysis.QueryHttpService;
+import org.rakam.collection.EventCounter;
 import org.rakam.plugin.MaterializedView;
 import org.rakam.report.QueryResult;
 import org.rakam.report.realtime.AggregationType;
@@ -61,14 +62,17 @@ public class EventExplorerHttpService
     private final EventExplorer eventExplorer;
     private final QueryHttpService queryService;
     private final MaterializedViewService materializedViewService;
+    private final Optional<EventCounter> eventCounter;
 
     @Inject
     public EventExplorerHttpService(
             EventExplorer eventExplorer,
             MaterializedViewService materializedViewService,
+            com.google.common.base.Optional<EventCounter> eventCounter,
             QueryHttpService queryService)
     {
         this.eventExplorer = eventExplorer;
+        this.eventCounter = Optional.ofNullable(eventCounter.orNull());
         this.queryService = queryService;
         this.materializedViewService = materializedViewService;
     }
@@ -84,6 +88,10 @@ public class EventExplorerHttpService
             @ApiParam("startDate") LocalDate startDate,
             @ApiParam("endDate") LocalDate endDate)
     {
+        if (eventCounter.isPresent() && eventCounter.get().isCounted(project, startDate)) {
+            return CompletableFuture.completedFuture(eventCounter.get().getEventStatistics(project,
+                    Optional.ofNullable(collections), Optional.ofNullable(dimension), startDate, endDate));
+        }
         return eventExplorer.getEventStatistics(project, Optional.ofNullable(collections), Optional.ofNullable(dimension), startDate, endDate);
     }
 
@@ -0,0 +1,56 @@
+package org.rakam.collection;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.http.LastHttpContent;
+import org.rakam.server.http.RakamHttpRequest;
+import org.rakam.util.RakamException;
+
+import java.util.List;
+
+import static io.netty.handler.codec.http.HttpResponseStatus.BAD_REQUEST;
+
+/**
+ * Collects the raw bytes of the request body since the body handler of the request receives the body as a UTF-8
+ * string that can't represent the binary formats. The body handler receives an empty body and reads the bytes with
+ * {@link #getBody()}. If the body is compressed, the collector must be installed after the decompressor so that it
+ * receives the decompressed body.
+ */
+public class BinaryBodyCollector
+        extends BodyCapturingHandler
+{
+    private static final String COLLECTOR_NAME = "rakamBinaryBodyCollector";
+
+    private byte[] body;
+
+    public static BinaryBodyCollector install(RakamHttpRequest request)
+    {
+        BinaryBodyCollector collector = new BinaryBodyCollector();
+        collector.addToPipeline(request, COLLECTOR_NAME);
+        return collector;
+    }
+
+    /**
+     * Returns the error if the body couldn't be collected, the body handler receives an empty body in that case.
+     */
+    public RakamException getError()
+    {
+        if (!isCaptured()) {
+            return new RakamException("Binary body couldn't be read", BAD_REQUEST);
+        }
+        return null;
+    }
+
+    public byte[] getBody()
+    {
+        return body;
+    }
+
+    @Override
+    protected void onBody(ChannelHandlerContext ctx, ByteBuf content, List<Object> out)
+    {
+        body = new byte[content.readableBytes()];
+        content.readBytes(body);
+        out.add(LastHttpContent.EMPTY_LAST_CONTENT);
+    }
+}
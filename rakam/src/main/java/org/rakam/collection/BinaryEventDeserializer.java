@@ -0,0 +1,141 @@
+package org.rakam.collection;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.databind.Module;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.util.TokenBuffer;
+import com.google.protobuf.ListValue;
+import com.google.protobuf.Struct;
+import com.google.protobuf.Value;
+import org.msgpack.jackson.dataformat.MessagePackFactory;
+
+import java.io.IOException;
+import java.util.Map;
+
+/**
+ * Deserializes the events that are sent in the binary formats with the deserializers of the JSON format. The
+ * deserializers only consume the token stream of the body, so the properties are mapped onto the cached schemas of
+ * the collections and the new fields are created with the same rules regardless of the format.
+ * <p>
+ * The MessagePack bodies have the same structure as the JSON bodies and are tokenized without being converted.
+ * The Protobuf bodies are <code>google.protobuf.Struct</code> envelopes that have the same structure as the JSON
+ * bodies, so the properties are dynamic and the clients don't need the schemas of the collections. The numbers of
+ * <code>Struct</code> are doubles, the ones that don't have fractions are read as integers like the JSON numbers.
+ */
+public class BinaryEventDeserializer
+{
+    // the largest integer that a double can represent exactly
+    private static final double MAX_EXACT_INTEGER = 1L << 53;
+
+    private final ObjectMapper mapper;
+
+    public BinaryEventDeserializer(Module... modules)
+    {
+        mapper = new ObjectMapper(new MessagePackFactory());
+        for (Module module : modules) {
+            mapper.registerModule(module);
+        }
+    }
+
+    public <T> T read(EventPayloadFormat format, byte[] body, Class<T> clazz)
+            throws IOException
+    {
+        return read(tokenize(format, body), clazz);
+    }
+
+    public <T> T read(IngestionRateLimiter.BodyParser body, Class<T> clazz)
+            throws IOException
+    {
+        try (JsonParser parser = body.createParser()) {
+            return mapper.readValue(parser, clazz);
+        }
+    }
+
+    /**
+     * Returns the token source of the body that can be read more than once, the api key is looked up by the rate
+     * limiter before the events are deserialized. The Protobuf bodies are parsed once when they're first read and
+     * their tokens are buffered, the MessagePack bodies are tokenized lazily by each parser.
+     */
+    public IngestionRateLimiter.BodyParser tokenize(EventPayloadFormat format, byte[] body)
+    {
+        switch (format) {
+            case MSGPACK:
+                return () -> mapper.getFactory().createParser(body);
+            case PROTOBUF:
+                return new ProtobufBody(body);
+            default:
+                throw new IllegalArgumentException("Format is not binary: " + format);
+        }
+    }
+
+    private class ProtobufBody
+            implements IngestionRateLimiter.BodyParser
+    {
+        private final byte[] body;
+        private TokenBuffer buffer;
+
+        private ProtobufBody(byte[] body)
+        {
+            this.body = body;
+        }
+
+        @Override
+        public JsonParser createParser()
+                throws IOException
+        {
+            if (buffer == null) {
+                TokenBuffer tokens = new TokenBuffer(mapper, false);
+                writeStruct(Struct.parseFrom(body), tokens);
+                buffer = tokens;
+            }
+            return buffer.asParser();
+        }
+    }
+
+    private static void writeStruct(Struct struct, JsonGenerator generator)
+            throws IOException
+    {
+        generator.writeStartObject();
+        for (Map.Entry<String, Value> entry : struct.getFieldsMap().entrySet()) {
+            generator.writeFieldName(entry.getKey());
+            writeValue(entry.getValue(), generator);
+        }
+        generator.writeEndObject();
+    }
+
+    private static void writeValue(Value value, JsonGenerator generator)
+            throws IOException
+    {
+        switch (value.getKindCase()) {
+            case NUMBER_VALUE:
+                double number = value.getNumberValue();
+                if (number == Math.rint(number) && Math.abs(number) <= MAX_EXACT_INTEGER) {
+                    generator.writeNumber((long) number);
+                }
+                else {
+                    generator.writeNumber(number);
+                }
+                break;
+            case STRING_VALUE:
+                generator.writeString(value.getStringValue());
+                break;
+            case BOOL_VALUE:
+                generator.writeBoolean(value.getBoolValue());
+                break;
+            case STRUCT_VALUE:
+                writeStruct(value.getStructValue(), generator);
+                break;
+            case LIST_VALUE:
+                ListValue list = value.getListValue();
+                generator.writeStartArray();
+                for (Value item : list.getValuesList()) {
+                    writeValue(item, generator);
+                }
+                generator.writeEndArray();
+                break;
+            default:
+                generator.writeNull();
+        }
+    }
+}
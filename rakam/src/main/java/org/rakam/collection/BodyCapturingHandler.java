@@ -0,0 +1,110 @@
+package org.rakam.collection;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.MessageToMessageDecoder;
+import io.netty.handler.codec.http.HttpContent;
+import io.netty.handler.codec.http.LastHttpContent;
+import org.rakam.server.http.RakamHttpRequest;
+
+import java.util.List;
+
+/**
+ * Captures the body of a request before it's passed to the body handler of the request. The handler is added in
+ * front of the handler of the request context and it removes itself after the last chunk of the body, so the next
+ * requests of the connection are passed as they are.
+ */
+public abstract class BodyCapturingHandler
+        extends MessageToMessageDecoder<HttpContent>
+{
+    private ChannelHandlerContext context;
+    private ByteBuf buffer;
+    private boolean captured;
+
+    protected void addToPipeline(RakamHttpRequest request, String name)
+    {
+        // the body handler of the request is called by the handler of the context when the body is received
+        ChannelHandlerContext context = request.context();
+        if (context.pipeline().get(name) != null) {
+            context.pipeline().remove(name);
+        }
+        context.pipeline().addBefore(context.name(), name, this);
+    }
+
+    /**
+     * Called with the whole body when the last chunk is received, the body is released after the call. The content
+     * that is added to the output is passed to the body handler of the request.
+     */
+    protected abstract void onBody(ChannelHandlerContext ctx, ByteBuf body, List<Object> out);
+
+    /**
+     * Returns false if the body is received before the handler is added to the pipeline, the body handler receives
+     * the body as it is in that case.
+     */
+    protected boolean isCaptured()
+    {
+        if (!captured && context != null && !context.isRemoved()) {
+            context.pipeline().remove(this);
+        }
+        return captured;
+    }
+
+    @Override
+    public void handlerAdded(ChannelHandlerContext ctx)
+            throws Exception
+    {
+        this.context = ctx;
+        super.handlerAdded(ctx);
+    }
+
+    @Override
+    protected void decode(ChannelHandlerContext ctx, HttpContent msg, List<Object> out)
+    {
+        ByteBuf content = msg.content();
+        if (buffer == null && msg instanceof LastHttpContent) {
+            // the body is received in a single chunk
+            captured = true;
+            onBody(ctx, content, out);
+            return;
+        }
+
+        if (buffer == null) {
+            buffer = ctx.alloc().heapBuffer();
+        }
+        buffer.writeBytes(content);
+
+        if (!(msg instanceof LastHttpContent)) {
+            return;
+        }
+
+        captured = true;
+        try {
+            onBody(ctx, buffer, out);
+        }
+        finally {
+            buffer.release();
+            buffer = null;
+        }
+    }
+
+    @Override
+    public void channelRead(ChannelHandlerContext ctx, Object msg)
+            throws Exception
+    {
+        super.channelRead(ctx, msg);
+        if (captured) {
+            ctx.pipeline().remove(this);
+        }
+    }
+
+    @Override
+    public void handlerRemoved(ChannelHandlerContext ctx)
+            throws Exception
+    {
+        if (buffer != null) {
+            buffer.release();
+            buffer = null;
+        }
+        super.handlerRemoved(ctx);
+    }
+}
@@ -0,0 +1,59 @@
+package org.rakam.collection;
+
+import com.google.common.base.Optional;
+import org.rakam.metrics.MetricRegistry;
+import org.rakam.plugin.EventStore;
+
+import javax.inject.Inject;
+import javax.inject.Provider;
+
+import java.util.function.DoubleSupplier;
+
+/**
+ * Wraps the event store with the {@link SpoolingEventStore} if the spool is enabled and with the
+ * {@link InstrumentedEventStore} otherwise, and with the {@link CountingEventStore} if the event counter is enabled.
+ * The utilization of the queue in front of the event store is used by the {@link IngestionRateLimiter}.
+ */
+public class CollectionEventStoreProvider
+        implements Provider<EventStore>
+{
+    private final EventStore eventStore;
+    private final DoubleSupplier queueUtilization;
+
+    @Inject
+    public CollectionEventStoreProvider(
+            EventStore eventStore,
+            Optional<EventCounter> eventCounter,
+            EventSpoolConfig spoolConfig,
+            Provider<SpoolingEventStore> spoolingEventStore,
+            IngestionRateLimitConfig rateLimitConfig,
+            MetricRegistry metricRegistry)
+    {
+        EventStore store;
+        if (spoolConfig.getEnabled()) {
+            SpoolingEventStore spoolingStore = spoolingEventStore.get();
+            store = spoolingStore;
+            queueUtilization = spoolingStore::getSpoolUtilization;
+        }
+        else {
+            InstrumentedEventStore instrumentedStore = new InstrumentedEventStore(eventStore, metricRegistry);
+            store = instrumentedStore;
+            queueUtilization = () -> instrumentedStore.getPendingRequests() / (double) rateLimitConfig.getMaxPendingRequests();
+        }
+        this.eventStore = eventCounter.isPresent() ? new CountingEventStore(store, eventCounter.get()) : store;
+    }
+
+    @Override
+    public EventStore get()
+    {
+        return eventStore;
+    }
+
+    /**
+     * Returns the ratio of the events or the requests that are waiting for the event store to the limit of the queue.
+     */
+    public double getQueueUtilization()
+    {
+        return queueUtilization.getAsDouble();
+    }
+}
@@ -0,0 +1,94 @@
+package org.rakam.collection;
+
+import org.rakam.plugin.EventStore;
+import org.rakam.report.QueryExecution;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * {@link EventStore} that adds the events that are stored by the event store that it wraps to the {@link EventCounter}.
+ * The events that the event store couldn't store are not counted.
+ */
+public class CountingEventStore
+        implements EventStore
+{
+    private final EventStore delegate;
+    private final EventCounter counter;
+
+    public CountingEventStore(EventStore delegate, EventCounter counter)
+    {
+        this.delegate = delegate;
+        this.counter = counter;
+    }
+
+    @Override
+    public void store(Event event)
+    {
+        delegate.store(event);
+        counter.count(event);
+    }
+
+    @Override
+    public int[] storeBatch(List<Event> events)
+    {
+        int[] failed = delegate.storeBatch(events);
+        count(events, failed);
+        return failed;
+    }
+
+    @Override
+    public CompletableFuture<int[]> storeBatchAsync(List<Event> events)
+    {
+        return delegate.storeBatchAsync(events).whenComplete((failed, ex) -> {
+            if (ex == null) {
+                count(events, failed);
+            }
+        });
+    }
+
+    @Override
+    public CompletableFuture<Void> storeAsync(Event event)
+    {
+        return delegate.storeAsync(event).whenComplete((result, ex) -> {
+            if (ex == null) {
+                counter.count(event);
+            }
+        });
+    }
+
+    @Override
+    public void storeBulk(List<Event> events)
+    {
+        delegate.storeBulk(events);
+        counter.count(events);
+    }
+
+    @Override
+    public QueryExecution commit(String project, String collection)
+    {
+        return delegate.commit(project, collection);
+    }
+
+    private void count(List<Event> events, int[] failed)
+    {
+        if (failed == null || failed.length == 0) {
+            counter.count(events);
+            return;
+        }
+
+        boolean[] skip = new boolean[events.size()];
+        for (int index : failed) {
+            skip[index] = true;
+        }
+
+        List<Event> stored = new ArrayList<>(events.size() - failed.length);
+        for (int i = 0; i < events.size(); i++) {
+            if (!skip[i]) {
+                stored.add(events.get(i));
+            }
+        }
+        counter.count(stored);
+    }
+}
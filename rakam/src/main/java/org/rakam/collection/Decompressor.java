@@ -0,0 +1,253 @@
+package org.rakam.collection;
+
+import com.github.luben.zstd.ZstdInputStream;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.io.CountingInputStream;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufInputStream;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.http.DefaultLastHttpContent;
+import org.rakam.plugin.EventStore.CompressionType;
+import org.rakam.server.http.RakamHttpRequest;
+import org.rakam.util.RakamException;
+
+import javax.inject.Inject;
+
+import java.io.BufferedInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+import java.util.Locale;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+import static io.netty.handler.codec.http.HttpHeaders.Names.CONTENT_ENCODING;
+import static io.netty.handler.codec.http.HttpHeaders.Names.CONTENT_LENGTH;
+import static io.netty.handler.codec.http.HttpResponseStatus.BAD_REQUEST;
+import static io.netty.handler.codec.http.HttpResponseStatus.REQUEST_ENTITY_TOO_LARGE;
+import static io.netty.handler.codec.http.HttpResponseStatus.UNSUPPORTED_MEDIA_TYPE;
+
+/**
+ * Decompresses the request bodies that are sent with Content-Encoding and the compressed remote files.
+ * The decompressed size is limited by collection.decompression.max-size and the ratio of the decompressed size to
+ * the compressed size is limited by collection.decompression.max-ratio so that a small payload can't expand into
+ * gigabytes in memory.
+ */
+public class Decompressor
+{
+    // the ratio of the small payloads may be high because of the headers of the formats
+    private static final long MIN_RATIO_CHECK_BYTES = 1024 * 1024;
+    private static final int BUFFER_SIZE = 8192;
+    private static final String DECODER_NAME = "rakamBodyDecoder";
+
+    private final long maxSize;
+    private final double maxRatio;
+
+    @Inject
+    public Decompressor(RequestDecompressionConfig config)
+    {
+        this.maxSize = config.getMaxSize().toBytes();
+        this.maxRatio = config.getMaxRatio();
+    }
+
+    /**
+     * Returns the compression of the Content-Encoding header, null if the body is not compressed.
+     */
+    public static CompressionType fromContentEncoding(String encoding)
+    {
+        if (encoding == null) {
+            return null;
+        }
+
+        switch (encoding.trim().toLowerCase(Locale.ENGLISH)) {
+            case "":
+            case "identity":
+                return null;
+            case "gzip":
+            case "x-gzip":
+                return CompressionType.GZIP;
+            case "deflate":
+                return CompressionType.DEFLATE;
+            case "zstd":
+                return CompressionType.ZSTD;
+            default:
+                throw new RakamException("Unsupported Content-Encoding: " + encoding, UNSUPPORTED_MEDIA_TYPE);
+        }
+    }
+
+    /**
+     * Wraps the stream with the decompressor of the compression type, the returned stream throws
+     * {@link RakamException} when the decompressed data exceeds the limits.
+     */
+    public InputStream decompress(InputStream input, CompressionType compression)
+            throws IOException
+    {
+        if (compression == null) {
+            return input;
+        }
+
+        CountingInputStream compressed = new CountingInputStream(input);
+        InputStream decompressed;
+        switch (compression) {
+            case GZIP:
+                decompressed = new GZIPInputStream(compressed, BUFFER_SIZE);
+                break;
+            case DEFLATE:
+                decompressed = inflate(new BufferedInputStream(compressed, BUFFER_SIZE));
+                break;
+            case ZSTD:
+                decompressed = new ZstdInputStream(compressed);
+                break;
+            default:
+                throw new RakamException("Unsupported compression: " + compression, BAD_REQUEST);
+        }
+
+        return new LimitedInputStream(decompressed, compressed);
+    }
+
+    /**
+     * Decompresses the body of the request before it's passed to the body handler of the request if the request
+     * has Content-Encoding header. The body handler must check the returned decoder with {@link BodyDecoder#getError()}.
+     */
+    public BodyDecoder install(RakamHttpRequest request)
+    {
+        CompressionType compression = fromContentEncoding(request.headers().get(CONTENT_ENCODING));
+        if (compression == null) {
+            return null;
+        }
+
+        BodyDecoder decoder = createDecoder(compression);
+        decoder.addToPipeline(request, DECODER_NAME);
+        request.headers().remove(CONTENT_ENCODING);
+        request.headers().remove(CONTENT_LENGTH);
+        return decoder;
+    }
+
+    @VisibleForTesting
+    public BodyDecoder createDecoder(CompressionType compression)
+    {
+        return new BodyDecoder(compression);
+    }
+
+    /**
+     * The HTTP deflate encoding is the zlib format but some clients send raw deflate streams.
+     */
+    private static InputStream inflate(BufferedInputStream input)
+            throws IOException
+    {
+        input.mark(2);
+        int first = input.read();
+        int second = input.read();
+        input.reset();
+
+        boolean zlibHeader = first != -1 && second != -1 && (first & 0x0F) == 8 && ((first << 8) | second) % 31 == 0;
+        return new InflaterInputStream(input, new Inflater(!zlibHeader), BUFFER_SIZE);
+    }
+
+    public class BodyDecoder
+            extends BodyCapturingHandler
+    {
+        private final CompressionType compression;
+        private RakamException error;
+        private long compressedSize;
+
+        private BodyDecoder(CompressionType compression)
+        {
+            this.compression = compression;
+        }
+
+        /**
+         * Returns the error if the body couldn't be decompressed, the body handler receives an empty body in that case.
+         */
+        public RakamException getError()
+        {
+            if (error != null) {
+                return error;
+            }
+            if (!isCaptured()) {
+                return new RakamException("Compressed body couldn't be decoded", UNSUPPORTED_MEDIA_TYPE);
+            }
+            return null;
+        }
+
+        /**
+         * Returns the size of the body as it's received.
+         */
+        public long getCompressedSize()
+        {
+            return compressedSize;
+        }
+
+        @Override
+        protected void onBody(ChannelHandlerContext ctx, ByteBuf compressed, List<Object> out)
+        {
+            compressedSize = compressed.readableBytes();
+            ByteBuf body = ctx.alloc().heapBuffer((int) Math.min(maxSize, compressed.readableBytes() * 4L));
+            try (InputStream input = decompress(new ByteBufInputStream(compressed), compression)) {
+                while (body.writeBytes(input, BUFFER_SIZE) != -1) {
+                    // read until the end of the stream
+                }
+                out.add(new DefaultLastHttpContent(body));
+            }
+            catch (RakamException e) {
+                body.release();
+                error = e;
+                out.add(new DefaultLastHttpContent(Unpooled.EMPTY_BUFFER));
+            }
+            catch (IOException e) {
+                body.release();
+                error = new RakamException("Compressed body is not valid: " + e.getMessage(), BAD_REQUEST);
+                out.add(new DefaultLastHttpContent(Unpooled.EMPTY_BUFFER));
+            }
+        }
+    }
+
+    private class LimitedInputStream
+            extends FilterInputStream
+    {
+        private final CountingInputStream compressed;
+        private long size;
+
+        private LimitedInputStream(InputStream in, CountingInputStream compressed)
+        {
+            super(in);
+            this.compressed = compressed;
+        }
+
+        @Override
+        public int read()
+                throws IOException
+        {
+            int value = super.read();
+            if (value != -1) {
+                checkSize(1);
+            }
+            return value;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len)
+                throws IOException
+        {
+            int read = super.read(b, off, len);
+            if (read > 0) {
+                checkSize(read);
+            }
+            return read;
+        }
+
+        private void checkSize(int read)
+        {
+            size += read;
+            if (size > maxSize) {
+                throw new RakamException("Decompressed data exceeds the limit of " + maxSize + " bytes", REQUEST_ENTITY_TOO_LARGE);
+            }
+            if (size > MIN_RATIO_CHECK_BYTES && size > compressed.getCount() * maxRatio) {
+                throw new RakamException("Compression ratio of the data exceeds the limit", REQUEST_ENTITY_TOO_LARGE);
+            }
+        }
+    }
+}
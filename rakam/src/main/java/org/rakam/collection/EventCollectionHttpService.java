@@ -3,11 +3,13 @@ package org.rakam.collection;
 import com.fasterxml.jackson.annotation.JsonCreator;
 import com.fasterxml.jackson.core.Version;
 import com.fasterxml.jackson.databind.JsonMappingException;
+import com.fasterxml.jackson.databind.Module;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.cfg.ContextAttributes;
 import com.fasterxml.jackson.databind.module.SimpleModule;
 import com.fasterxml.jackson.dataformat.csv.CsvMapper;
 import com.google.common.base.Optional;
+import com.google.common.base.Utf8;
 import com.google.common.collect.ImmutableList;
 import io.airlift.log.Logger;
 import io.airlift.slice.Slice;
@@ -23,8 +25,12 @@ import io.netty.handler.codec.http.HttpResponseStatus;
 import io.netty.handler.codec.http.cookie.Cookie;
 import io.netty.handler.codec.http.cookie.ServerCookieEncoder;
 import org.rakam.analysis.ApiKeyService;
+import org.rakam.analysis.ApiKeyService.AccessKeyType;
 import org.rakam.analysis.QueryHttpService;
 import org.rakam.analysis.metadata.Metastore;
+import org.rakam.metrics.Counter;
+import org.rakam.metrics.Distribution;
+import org.rakam.metrics.MetricRegistry;
 import org.rakam.plugin.CopyEvent;
 import org.rakam.plugin.EventMapper;
 import org.rakam.plugin.EventStore;
@@ -58,22 +64,21 @@ import javax.ws.rs.Path;
 import javax.xml.bind.DatatypeConverter;
 
 import java.io.IOException;
+import java.io.InputStream;
 import java.net.InetAddress;
 import java.net.URL;
 import java.net.URLConnection;
 import java.net.UnknownHostException;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
-import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
-import java.util.Set;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.function.BiFunction;
-import java.util.function.Function;
 
 import static com.google.common.base.Charsets.UTF_8;
 import static com.google.common.io.ByteStreams.toByteArray;
@@ -84,6 +89,7 @@ import static io.netty.handler.codec.http.HttpResponseStatus.*;
 import static io.netty.handler.codec.http.HttpVersion.HTTP_1_1;
 import static java.util.concurrent.CompletableFuture.completedFuture;
 import static org.rakam.analysis.ApiKeyService.AccessKeyType.MASTER_KEY;
+import static org.rakam.analysis.ApiKeyService.AccessKeyType.WRITE_KEY;
 import static org.rakam.plugin.EventStore.CopyType.AVRO;
 import static org.rakam.plugin.EventStore.CopyType.CSV;
 import static org.rakam.plugin.EventStore.CopyType.JSON;
@@ -106,18 +112,30 @@ public class EventCollectionHttpService
 
     private final ObjectMapper jsonMapper;
     private final ObjectMapper csvMapper;
+    private final BinaryEventDeserializer binaryDeserializer;
     private final EventStore eventStore;
-    private final Set<EventMapper> eventMappers;
+    private final EventMapperExecutor mapperExecutor;
     private final ApiKeyService apiKeyService;
     private final AvroEventDeserializer avroEventDeserializer;
     private final Metastore metastore;
     private final QueryHttpService queryHttpService;
     private final Optional<CopyEvent> copyEvent;
+    private final Optional<EventCounter> eventCounter;
+    private final Distribution collectParseTime;
+    private final Distribution batchParseTime;
+    private final Distribution bulkParseTime;
+    private final Distribution bulkRemoteParseTime;
+    private final IngestionRateLimiter rateLimiter;
+    private final Counter rateLimitedRequests;
+    private final EventDeduplicator deduplicator;
+    private final Counter duplicateEvents;
+    private final Decompressor decompressor;
 
     @Inject
     public EventCollectionHttpService(
-            EventStore eventStore,
+            @ForCollection EventStore eventStore,
             Optional<CopyEvent> copyEvent,
+            Optional<EventCounter> eventCounter,
             ApiKeyService apiKeyService,
             JsonEventDeserializer deserializer,
             QueryHttpService queryHttpService,
@@ -125,51 +143,60 @@ public class EventCollectionHttpService
             EventListDeserializer eventListDeserializer,
             CsvEventDeserializer csvEventDeserializer,
             Metastore metastore,
-            Set<EventMapper> mappers)
+            EventMapperExecutor mapperExecutor,
+            IngestionRateLimiter rateLimiter,
+            EventDeduplicator deduplicator,
+            Decompressor decompressor,
+            MetricRegistry metricRegistry)
     {
         this.eventStore = eventStore;
-        this.eventMappers = mappers;
+        this.rateLimiter = rateLimiter;
+        this.rateLimitedRequests = metricRegistry.counter("rakam_collection_rate_limited_total",
+                "Number of collection requests that are rejected because the project or the api key exceeded its budget");
+        this.deduplicator = deduplicator;
+        this.duplicateEvents = metricRegistry.counter("rakam_collection_duplicate_events_total",
+                "Number of events that are dropped because they are already collected");
+        this.decompressor = decompressor;
+        this.mapperExecutor = mapperExecutor;
         this.apiKeyService = apiKeyService;
         this.queryHttpService = queryHttpService;
         this.metastore = metastore;
         this.copyEvent = copyEvent;
+        this.eventCounter = eventCounter;
 
-        jsonMapper = new ObjectMapper();
         SimpleModule module = new SimpleModule();
         module.addDeserializer(Event.class, deserializer);
         module.addDeserializer(EventList.class, eventListDeserializer);
-        jsonMapper.registerModule(module);
 
-        jsonMapper.registerModule(new SimpleModule("swagger", Version.unknownVersion())
+        Module swaggerModule = new SimpleModule("swagger", Version.unknownVersion())
         {
             @Override
             public void setupModule(SetupContext context)
             {
                 context.insertAnnotationIntrospector(new SwaggerJacksonAnnotationIntrospector());
             }
-        });
+        };
+
+        jsonMapper = new ObjectMapper();
+        jsonMapper.registerModule(module);
+        jsonMapper.registerModule(swaggerModule);
+        // the binary formats are deserialized with the same deserializers so that the schema rules are identical
+        binaryDeserializer = new BinaryEventDeserializer(module, swaggerModule);
 
         this.avroEventDeserializer = avroEventDeserializer;
         csvMapper = new CsvMapper();
         csvMapper.registerModule(new SimpleModule().addDeserializer(EventList.class, csvEventDeserializer));
+
+        collectParseTime = parseTime(metricRegistry, "collect");
+        batchParseTime = parseTime(metricRegistry, "batch");
+        bulkParseTime = parseTime(metricRegistry, "bulk");
+        bulkRemoteParseTime = parseTime(metricRegistry, "bulk_remote");
     }
 
-    public List<Cookie> mapEvent(Function<EventMapper, List<Cookie>> mapperFunction)
+    private static Distribution parseTime(MetricRegistry metricRegistry, String endpoint)
     {
-        List<Cookie> cookies = null;
-        for (EventMapper mapper : eventMappers) {
-            // TODO: bound event mappers to Netty Channels and
-            // runStatementSafe them in separate thread
-            List<Cookie> mapperCookies = mapperFunction.apply(mapper);
-            if (mapperCookies != null) {
-                if (cookies == null) {
-                    cookies = new ArrayList<>();
-                }
-                cookies.addAll(mapperCookies);
-            }
-        }
-
-        return cookies;
+        return metricRegistry.timer("rakam_collection_parse_seconds",
+                "Time spent parsing and validating the body of the collection requests", "endpoint", endpoint);
     }
 
     public static void returnError(RakamHttpRequest request, String msg, HttpResponseStatus status)
@@ -180,6 +207,76 @@ public class EventCollectionHttpService
         request.response(errResponse).end();
     }
 
+    private void returnRateLimited(RakamHttpRequest request, IngestionRateLimiter.Ticket ticket)
+    {
+        rateLimitedRequests.increment();
+        ByteBuf byteBuf = Unpooled.wrappedBuffer(JsonHelper.encodeAsBytes(errorMessage(
+                "Rate limit is exceeded, retry after " + ticket.getRetryAfterSeconds() + " seconds", TOO_MANY_REQUESTS)));
+        DefaultFullHttpResponse response = new DefaultFullHttpResponse(HTTP_1_1, TOO_MANY_REQUESTS, byteBuf);
+        response.headers().set(RETRY_AFTER, ticket.getRetryAfterSeconds());
+        setBrowser(request, response);
+        response.headers().set(ACCESS_CONTROL_EXPOSE_HEADERS, getHeaderList(response.headers().iterator()));
+        request.response(response).end();
+    }
+
+    private static boolean validateBody(RakamHttpRequest request, Decompressor.BodyDecoder decoder, BinaryBodyCollector collector)
+    {
+        RakamException error = decoder == null ? null : decoder.getError();
+        if (error == null && collector != null) {
+            error = collector.getError();
+        }
+        if (error != null) {
+            LogUtil.logException(request, error);
+            returnError(request, error.getMessage(), error.getStatusCode());
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Returns the number of bytes that are received for the body, the rate limits are charged with the encoded size
+     * rather than the decompressed or decoded size of the body.
+     */
+    private static long getEncodedSize(RakamHttpRequest request, Decompressor.BodyDecoder decoder, String buff, byte[] body)
+    {
+        if (decoder != null) {
+            return decoder.getCompressedSize();
+        }
+        String contentLength = request.headers().get(CONTENT_LENGTH);
+        if (contentLength != null) {
+            try {
+                return Long.parseLong(contentLength);
+            }
+            catch (NumberFormatException e) {
+                // the size of the body is used
+            }
+        }
+        return body == null ? Utf8.encodedLength(buff) : body.length;
+    }
+
+    private static void returnMappingError(RakamHttpRequest request, Throwable e)
+    {
+        if (e instanceof CompletionException && e.getCause() != null) {
+            e = e.getCause();
+        }
+
+        if (e instanceof RakamException) {
+            LogUtil.logException(request, (RakamException) e);
+            returnError(request, e.getMessage(), ((RakamException) e).getStatusCode());
+        }
+        else if (e instanceof HttpRequestException) {
+            returnError(request, e.getMessage(), ((HttpRequestException) e).getStatusCode());
+        }
+        else if (e instanceof IllegalArgumentException) {
+            LogUtil.logException(request, (IllegalArgumentException) e);
+            returnError(request, e.getMessage(), BAD_REQUEST);
+        }
+        else {
+            LOGGER.error(e, "Error while collecting event");
+            returnError(request, "An error occurred", INTERNAL_SERVER_ERROR);
+        }
+    }
+
     public static void setBrowser(HttpRequest request, HttpResponse response)
     {
         response.headers().set(ACCESS_CONTROL_ALLOW_CREDENTIALS, "true");
@@ -193,38 +290,63 @@ public class EventCollectionHttpService
     }
 
     @POST
-    @ApiOperation(value = "Collect event", response = Integer.class, request = Event.class)
+    @ApiOperation(value = "Collect event", response = Integer.class, request = Event.class,
+            notes = BINARY_FORMAT_NOTES)
     @Path("/collect")
     public void collectEvent(RakamHttpRequest request)
     {
         String socketAddress = request.getRemoteAddress();
+        EventPayloadFormat format = EventPayloadFormat.fromContentType(request.headers().get(CONTENT_TYPE));
+        Decompressor.BodyDecoder decoder;
+        try {
+            decoder = decompressor.install(request);
+        }
+        catch (RakamException e) {
+            returnError(request, e.getMessage(), e.getStatusCode());
+            return;
+        }
+        BinaryBodyCollector collector = format.isBinary() ? BinaryBodyCollector.install(request) : null;
 
         request.bodyHandler(buff -> {
+            if (!validateBody(request, decoder, collector)) {
+                return;
+            }
+
+            byte[] body = collector == null ? null : collector.getBody();
+            // the binary body is tokenized once for both the api key lookup and the deserialization
+            IngestionRateLimiter.BodyParser binaryBody = body == null ? null : binaryDeserializer.tokenize(format, body);
+            long encodedSize = getEncodedSize(request, decoder, buff, body);
+            IngestionRateLimiter.Ticket ticket = body == null
+                    ? rateLimiter.acquire(request.params(), request.headers(), encodedSize, buff, WRITE_KEY)
+                    : rateLimiter.acquire(request.params(), request.headers(), encodedSize, binaryBody, WRITE_KEY);
+            if (ticket.isRejected()) {
+                returnRateLimited(request, ticket);
+                return;
+            }
+
             DefaultFullHttpResponse response = new DefaultFullHttpResponse(HTTP_1_1, OK, Unpooled.wrappedBuffer(OK_MESSAGE));
 
-            final List<Cookie> cookies;
+            final Event event;
 
+            long parseStart = System.nanoTime();
             try {
-                Event event = jsonMapper.readValue(buff, Event.class);
+                event = body == null
+                        ? jsonMapper.readValue(buff, Event.class)
+                        : binaryDeserializer.read(binaryBody, Event.class);
 
                 Event.EventContext context = event.api();
 
-                if (context.checksum != null && !validateChecksum(request, context.checksum, buff)) {
+                if (context.checksum != null && !validateChecksum(request, context.checksum, body == null ? buff.getBytes(UTF_8) : body)) {
                     return;
                 }
-
-                cookies = mapEvent((mapper) -> mapper.map(event, new HttpRequestParams(request),
-                        getRemoteAddress(socketAddress), response.trailingHeaders()));
-
-                eventStore.store(event);
             }
             catch (JsonMappingException e) {
                 String message = e.getCause() != null ? e.getCause().getMessage() : e.getMessage();
-                returnError(request, "JSON couldn't parsed: " + message, BAD_REQUEST);
+                returnError(request, format + " couldn't parsed: " + message, BAD_REQUEST);
                 return;
             }
             catch (IOException e) {
-                returnError(request, "JSON couldn't parsed: " + e.getMessage(), BAD_REQUEST);
+                returnError(request, format + " couldn't parsed: " + e.getMessage(), BAD_REQUEST);
                 return;
             }
             catch (RakamException e) {
@@ -247,20 +369,46 @@ public class EventCollectionHttpService
                 returnError(request, "An error occurred", INTERNAL_SERVER_ERROR);
                 return;
             }
-
-            if (cookies != null) {
-                response.headers().add(HttpHeaders.Names.SET_COOKIE,
-                        ServerCookieEncoder.STRICT.encode(cookies));
-            }
-            String headerList = getHeaderList(response.headers().iterator());
-            if (headerList != null) {
-                response.headers().set(ACCESS_CONTROL_EXPOSE_HEADERS, headerList);
+            finally {
+                collectParseTime.addNanosSince(parseStart);
             }
-            if (request.headers().contains(ORIGIN)) {
-                response.headers().set(ACCESS_CONTROL_ALLOW_ORIGIN, request.headers().get(ORIGIN));
+
+            if (deduplicator.isDuplicate(event)) {
+                duplicateEvents.increment();
+                setBrowser(request, response);
+                request.response(response).end();
+                return;
             }
 
-            request.response(response).end();
+            // the mappers may block so the event is mapped and stored outside of the event loop
+            mapperExecutor.map(event, new HttpRequestParams(request),
+                    getRemoteAddress(socketAddress), response.trailingHeaders())
+                    .thenApply(cookies -> {
+                        eventStore.store(event);
+                        return cookies;
+                    })
+                    .whenComplete((cookies, ex) -> {
+                        if (ex != null) {
+                            // the client retries the event so it must not be dropped as a duplicate
+                            deduplicator.forget(event);
+                            returnMappingError(request, ex);
+                            return;
+                        }
+
+                        if (cookies != null) {
+                            response.headers().add(HttpHeaders.Names.SET_COOKIE,
+                                    ServerCookieEncoder.STRICT.encode(cookies));
+                        }
+                        String headerList = getHeaderList(response.headers().iterator());
+                        if (headerList != null) {
+                            response.headers().set(ACCESS_CONTROL_EXPOSE_HEADERS, headerList);
+                        }
+                        if (request.headers().contains(ORIGIN)) {
+                            response.headers().set(ACCESS_CONTROL_ALLOW_ORIGIN, request.headers().get(ORIGIN));
+                        }
+
+                        request.response(response).end();
+                    });
         });
     }
 
@@ -276,11 +424,12 @@ public class EventCollectionHttpService
 
     @POST
     @ApiOperation(value = "Collect Bulk events", request = EventList.class, response = SuccessMessage.class, notes = "Bulk API requires master_key as api key and designed to handle large value of data. " +
-            "The endpoint also accepts application/avro and text/csv formats. You need need to set 'collection' and 'master_key' query parameters if the content-type is not application/json.")
+            "The endpoint also accepts application/avro and text/csv formats. You need need to set 'collection' and 'master_key' query parameters if the content-type is not application/json. " +
+            "The body may be compressed with gzip, deflate or zstd if Content-Encoding header is set.")
     @Path("/bulk")
     public void bulkEvents(RakamHttpRequest request)
     {
-        storeEventsSync(request,
+        storeEventsSync(request, bulkParseTime, MASTER_KEY,
                 buff -> {
                     String contentType = request.headers().get(CONTENT_TYPE);
                     if (contentType == null || "application/json".equals(contentType)) {
@@ -366,8 +515,11 @@ public class EventCollectionHttpService
         if(!copyEvent.isPresent()) {
             throw new RakamException("Copy feature is not supported", BAD_REQUEST);
         }
-        queryHttpService.handleServerSentQueryExecution(request, BulkEventRemote.class, (project, convert) ->
-                copyEvent.get().copy(project, convert.collection, convert.urls, convert.type, convert.compression, convert.options), MASTER_KEY, false);
+        queryHttpService.handleServerSentQueryExecution(request, BulkEventRemote.class, (project, convert) -> {
+            // the copied events are not counted
+            eventCounter.ifPresent(counter -> counter.onEventsCopied(project));
+            return copyEvent.get().copy(project, convert.collection, convert.urls, convert.type, convert.compression, convert.options);
+        }, MASTER_KEY, false);
     }
 
     @POST
@@ -377,7 +529,7 @@ public class EventCollectionHttpService
     public void bulkEventsRemote(RakamHttpRequest request)
             throws IOException
     {
-        storeEventsSync(request,
+        storeEventsSync(request, bulkRemoteParseTime, MASTER_KEY,
                 buff -> {
                     BulkEventRemote query = JsonHelper.read(buff, BulkEventRemote.class);
                     String masterKey = request.headers().get("master_key");
@@ -388,32 +540,33 @@ public class EventCollectionHttpService
                     if (query.urls.size() != 1) {
                         throw new RakamException("Only one url is supported", BAD_REQUEST);
                     }
-                    if (query.compression != null) {
-                        throw new RakamException("Compression is not supported yet", BAD_REQUEST);
+                    if (query.type != JSON && query.type != CSV && query.type != AVRO) {
+                        throw new RakamException("Unsupported or missing type.", BAD_REQUEST);
                     }
 
                     URL url = query.urls.get(0);
-                    if (query.type == JSON) {
-                        return jsonMapper.readValue(url, EventList.class);
-                    }
-                    else if (query.type == CSV) {
-                        return csvMapper.reader(EventList.class).with(ContextAttributes.getEmpty()
-                                .withSharedAttribute("project", project)
-                                .withSharedAttribute("collection", query.collection)
-                                .withSharedAttribute("apiKey", masterKey)
-                        ).readValue(url);
-                    }
-                    else if (query.type == AVRO) {
-                        URLConnection conn = url.openConnection();
-                        conn.setConnectTimeout(5000);
-                        conn.setReadTimeout(5000);
-                        conn.connect();
-
-                        Slice slice = wrappedBuffer(toByteArray(conn.getInputStream()));
-                        return avroEventDeserializer.deserialize(project, query.collection, slice);
+                    URLConnection conn = url.openConnection();
+                    conn.setConnectTimeout(5000);
+                    conn.setReadTimeout(5000);
+                    conn.connect();
+
+                    // the file is decompressed while it's deserialized, only the decompressed Avro files are buffered
+                    try (InputStream input = decompressor.decompress(conn.getInputStream(), query.compression)) {
+                        if (query.type == JSON) {
+                            return jsonMapper.readValue(input, EventList.class);
+                        }
+                        else if (query.type == CSV) {
+                            return csvMapper.reader(EventList.class).with(ContextAttributes.getEmpty()
+                                    .withSharedAttribute("project", project)
+                                    .withSharedAttribute("collection", query.collection)
+                                    .withSharedAttribute("apiKey", masterKey)
+                            ).readValue(input);
+                        }
+                        else {
+                            Slice slice = wrappedBuffer(toByteArray(input));
+                            return avroEventDeserializer.deserialize(project, query.collection, slice);
+                        }
                     }
-
-                    throw new RakamException("Unsupported or missing type.", BAD_REQUEST);
                 },
                 (events, responseHeaders) -> {
                     try {
@@ -533,16 +686,20 @@ public class EventCollectionHttpService
     }
 
     private static final int[] FAILED_SINGLE_EVENT = new int[] {0};
+    private static final String BINARY_FORMAT_NOTES = "The body may also be sent as MessagePack with application/msgpack content-type " +
+            "or as google.protobuf.Struct with application/x-protobuf content-type, both have the same structure as the JSON body.";
 
     @POST
-    @ApiOperation(notes = "Returns 1 if the events are collected.", value = "Collect multiple events", request = EventList.class, response = Integer.class)
+    @ApiOperation(notes = "Returns 1 if the events are collected. " + BINARY_FORMAT_NOTES, value = "Collect multiple events", request = EventList.class, response = Integer.class)
     @ApiResponses(value = {
             @ApiResponse(code = 409, message = PARTIAL_ERROR_MESSAGE, response = int[].class)
     })
     @Path("/batch")
     public void batchEvents(RakamHttpRequest request)
     {
-        storeEvents(request, buff -> jsonMapper.readValue(buff, EventList.class),
+        storeEvents(request, batchParseTime, WRITE_KEY,
+                buff -> jsonMapper.readValue(buff, EventList.class),
+                body -> binaryDeserializer.read(body, EventList.class),
                 (events, responseHeaders) -> {
                     CompletableFuture<int[]> errorIndexes;
 
@@ -564,6 +721,7 @@ public class EventCollectionHttpService
                             List<Event> sample = events.size() > 5 ? events.subList(0, 5) : events;
                             LOGGER.error(new RuntimeException("Error executing EventStore " + (single ? "store" : "batch") + " method: " + sample, e),
                                     "Error while storing event.");
+                            deduplicator.forget(events);
                             return completedFuture(new HeaderDefaultFullHttpResponse(HTTP_1_1, INTERNAL_SERVER_ERROR,
                                     Unpooled.wrappedBuffer(encodeAsBytes(errorMessage("An error occurred", INTERNAL_SERVER_ERROR))),
                                     responseHeaders));
@@ -574,6 +732,11 @@ public class EventCollectionHttpService
                     }
 
                     return errorIndexes.thenApply(result -> {
+                        for (int index : result) {
+                            deduplicator.forget(events.get(index));
+                        }
+                        // the indexes of the failed events are returned in the order of the request
+                        result = EventDeduplicator.toOriginalIndexes(events, result);
                         if (result.length == 0) {
                             return new HeaderDefaultFullHttpResponse(HTTP_1_1, OK,
                                     Unpooled.wrappedBuffer(OK_MESSAGE), responseHeaders);
@@ -586,44 +749,75 @@ public class EventCollectionHttpService
                 });
     }
 
-    public void storeEventsSync(RakamHttpRequest request, ThrowableFunction mapper, BiFunction<List<Event>, HttpHeaders, FullHttpResponse> responseFunction)
+    public void storeEventsSync(RakamHttpRequest request, Distribution parseTime, AccessKeyType keyType, ThrowableFunction mapper, BiFunction<List<Event>, HttpHeaders, FullHttpResponse> responseFunction)
     {
-        storeEvents(request, mapper,
+        storeEvents(request, parseTime, keyType, mapper,
                 (events, entries) -> completedFuture(responseFunction.apply(events, entries)));
     }
 
-    public void storeEvents(RakamHttpRequest request, ThrowableFunction mapper, BiFunction<List<Event>, HttpHeaders, CompletableFuture<FullHttpResponse>> responseFunction)
+    public void storeEvents(RakamHttpRequest request, Distribution parseTime, AccessKeyType keyType, ThrowableFunction mapper, BiFunction<List<Event>, HttpHeaders, CompletableFuture<FullHttpResponse>> responseFunction)
     {
+        storeEvents(request, parseTime, keyType, mapper, null, responseFunction);
+    }
+
+    /**
+     * The binary mapper is used if the content-type of the request is one of the binary formats, the bodies of the
+     * requests are passed to the mapper as strings if it's null.
+     */
+    public void storeEvents(RakamHttpRequest request, Distribution parseTime, AccessKeyType keyType, ThrowableFunction mapper, BinaryFunction binaryMapper, BiFunction<List<Event>, HttpHeaders, CompletableFuture<FullHttpResponse>> responseFunction)
+    {
+        EventPayloadFormat format = binaryMapper == null ? EventPayloadFormat.JSON :
+                EventPayloadFormat.fromContentType(request.headers().get(CONTENT_TYPE));
+        Decompressor.BodyDecoder decoder;
+        try {
+            decoder = decompressor.install(request);
+        }
+        catch (RakamException e) {
+            returnError(request, e.getMessage(), e.getStatusCode());
+            return;
+        }
+        // the collector receives the body after it's decompressed
+        BinaryBodyCollector collector = format.isBinary() ? BinaryBodyCollector.install(request) : null;
+
         request.bodyHandler(buff -> {
+            if (!validateBody(request, decoder, collector)) {
+                return;
+            }
+
+            byte[] body = collector == null ? null : collector.getBody();
+            IngestionRateLimiter.BodyParser binaryBody = body == null ? null : binaryDeserializer.tokenize(format, body);
+            long encodedSize = getEncodedSize(request, decoder, buff, body);
+            IngestionRateLimiter.Ticket ticket = body == null
+                    ? rateLimiter.acquire(request.params(), request.headers(), encodedSize, buff, keyType)
+                    : rateLimiter.acquire(request.params(), request.headers(), encodedSize, binaryBody, keyType);
+            if (ticket.isRejected()) {
+                returnRateLimited(request, ticket);
+                return;
+            }
+
             DefaultHttpHeaders responseHeaders = new DefaultHttpHeaders();
             responseHeaders.set(ACCESS_CONTROL_ALLOW_CREDENTIALS, "true");
             if (request.headers().contains(ORIGIN)) {
                 responseHeaders.set(ACCESS_CONTROL_ALLOW_ORIGIN, request.headers().get(ORIGIN));
             }
 
-            CompletableFuture<FullHttpResponse> response;
-            List<Cookie> entries;
+            EventList parsedEvents;
+            long parseStart = System.nanoTime();
             try {
-                EventList events = mapper.apply(buff);
+                parsedEvents = body == null ? mapper.apply(buff) : binaryMapper.apply(binaryBody);
+                ticket.recordEvents(parsedEvents.events.size());
 
-                Event.EventContext context = events.api;
-                if (context.checksum != null && !validateChecksum(request, context.checksum, buff)) {
+                Event.EventContext context = parsedEvents.api;
+                if (context.checksum != null && !validateChecksum(request, context.checksum, body == null ? buff.getBytes(UTF_8) : body)) {
                     return;
                 }
-
-                InetAddress remoteAddress = getRemoteAddress(request.getRemoteAddress());
-
-                entries = mapEvent((m) -> m.map(events, new HttpRequestParams(request),
-                        remoteAddress, responseHeaders));
-
-                response = responseFunction.apply(events.events, responseHeaders);
             }
             catch (JsonMappingException e) {
-                returnError(request, "JSON couldn't parsed: " + e.getOriginalMessage(), BAD_REQUEST);
+                returnError(request, format + " couldn't parsed: " + e.getOriginalMessage(), BAD_REQUEST);
                 return;
             }
             catch (IOException e) {
-                returnError(request, "JSON couldn't parsed: " + e.getMessage(), BAD_REQUEST);
+                returnError(request, format + " couldn't parsed: " + e.getMessage(), BAD_REQUEST);
                 return;
             }
             catch (RakamException e) {
@@ -646,22 +840,55 @@ public class EventCollectionHttpService
                 returnError(request, "An error occurred", INTERNAL_SERVER_ERROR);
                 return;
             }
-
-            if (entries != null) {
-                responseHeaders.add(HttpHeaders.Names.SET_COOKIE, ServerCookieEncoder.STRICT.encode(entries));
+            finally {
+                parseTime.addNanosSince(parseStart);
             }
 
-            String headerList = getHeaderList(responseHeaders.iterator());
-            if (headerList != null) {
-                responseHeaders.set(ACCESS_CONTROL_EXPOSE_HEADERS, headerList);
-            }
+            // only the events that are sent by the SDKs are deduplicated, the bulk imports may have identical events
+            EventList events = keyType == WRITE_KEY ? deduplicate(parsedEvents) : parsedEvents;
+
+            InetAddress remoteAddress = getRemoteAddress(request.getRemoteAddress());
+
+            mapperExecutor.map(events, new HttpRequestParams(request), remoteAddress, responseHeaders)
+                    .thenCompose(entries -> {
+                        if (entries != null) {
+                            responseHeaders.add(HttpHeaders.Names.SET_COOKIE, ServerCookieEncoder.STRICT.encode(entries));
+                        }
+
+                        String headerList = getHeaderList(responseHeaders.iterator());
+                        if (headerList != null) {
+                            responseHeaders.set(ACCESS_CONTROL_EXPOSE_HEADERS, headerList);
+                        }
 
-            responseHeaders.add(CONTENT_TYPE, "application/json");
+                        responseHeaders.add(CONTENT_TYPE, "application/json");
 
-            response.thenAccept(resp -> request.response(resp).end());
+                        return responseFunction.apply(events.events, responseHeaders);
+                    })
+                    .whenComplete((resp, ex) -> {
+                        if (ex != null) {
+                            if (keyType == WRITE_KEY) {
+                                deduplicator.forget(events.events);
+                            }
+                            returnMappingError(request, ex);
+                            return;
+                        }
+
+                        request.response(resp).end();
+                    });
         });
     }
 
+    private EventList deduplicate(EventList events)
+    {
+        List<Event> uniqueEvents = deduplicator.filter(events.events);
+        if (uniqueEvents == events.events) {
+            return events;
+        }
+
+        duplicateEvents.add(events.events.size() - uniqueEvents.size());
+        return new EventList(events.api, events.project, uniqueEvents);
+    }
+
     public static String getHeaderList(Iterator<Map.Entry<String, String>> it)
     {
         StringBuilder builder = new StringBuilder("cf-ray,server,status");
@@ -677,7 +904,7 @@ public class EventCollectionHttpService
         return builder == null ? null : builder.toString();
     }
 
-    private boolean validateChecksum(RakamHttpRequest request, String checksum, String expected)
+    private boolean validateChecksum(RakamHttpRequest request, String checksum, byte[] expected)
     {
         MessageDigest md;
         try {
@@ -688,7 +915,7 @@ public class EventCollectionHttpService
             return false;
         }
 
-        if (!DatatypeConverter.printHexBinary(md.digest(expected.getBytes(UTF_8))).equals(checksum.toUpperCase(Locale.ENGLISH))) {
+        if (!DatatypeConverter.printHexBinary(md.digest(expected)).equals(checksum.toUpperCase(Locale.ENGLISH))) {
             returnError(request, "Checksum is invalid", BAD_REQUEST);
             return false;
         }
@@ -702,6 +929,12 @@ public class EventCollectionHttpService
                 throws IOException;
     }
 
+    interface BinaryFunction
+    {
+        EventList apply(IngestionRateLimiter.BodyParser body)
+                throws IOException;
+    }
+
     public static class HttpRequestParams
             implements EventMapper.RequestParams
     {
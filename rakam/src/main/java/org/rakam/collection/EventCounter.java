@@ -0,0 +1,533 @@
+package org.rakam.collection;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.collect.ImmutableList;
+import com.google.common.eventbus.Subscribe;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.inject.name.Named;
+import io.airlift.log.Logger;
+import org.rakam.analysis.EventExplorer.TimestampTransformation;
+import org.rakam.analysis.JDBCPoolDataSource;
+import org.rakam.analysis.metadata.Metastore.Stats;
+import org.rakam.plugin.SystemEvents;
+import org.rakam.report.QueryResult;
+import org.rakam.util.RakamException;
+import org.skife.jdbi.v2.DBI;
+import org.skife.jdbi.v2.Handle;
+import org.skife.jdbi.v2.Query;
+import org.skife.jdbi.v2.exceptions.UnableToExecuteStatementException;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.inject.Inject;
+
+import java.time.Clock;
+import java.time.DayOfWeek;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.Month;
+import java.time.ZoneOffset;
+import java.time.format.TextStyle;
+import java.time.temporal.ChronoUnit;
+import java.time.temporal.IsoFields;
+import java.time.temporal.TemporalAdjusters;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import static io.netty.handler.codec.http.HttpResponseStatus.BAD_REQUEST;
+import static org.rakam.collection.FieldType.DATE;
+import static org.rakam.collection.FieldType.LONG;
+import static org.rakam.collection.FieldType.STRING;
+import static org.rakam.collection.FieldType.TIMESTAMP;
+import static org.rakam.report.eventexplorer.AbstractEventExplorer.checkReference;
+import static org.rakam.util.ValidationUtil.checkProject;
+
+/**
+ * Counts the stored events of each collection hourly by the _time of the events. The counts are accumulated in memory
+ * and added to the event_counter table of the report metadata database every event-counter.flush-interval so the
+ * counters of all the nodes are merged in the table. The event statistics of the projects are answered from the table
+ * instead of scanning the event tables, the events that are collected in the last flush interval are not included.
+ * <p>
+ * The events that are stored before the counting is enabled are not in the table, so the hour that the counters of a
+ * project start from is kept in the event_counter_project table. The projects that are created after the counting is
+ * enabled are counted from the beginning, the existing projects are counted from the hour after their first flush and
+ * their statistics before that hour are answered by the event tables.
+ * <p>
+ * The counts are only complete if the counting is enabled on every node that collects events. The events that are
+ * copied with /event/copy are written by the database without passing through the nodes, so the counters of the
+ * project start again from the hour after the copy.
+ */
+public class EventCounter
+{
+    private final static Logger LOGGER = Logger.get(EventCounter.class);
+    private static final long HOUR_MILLIS = TimeUnit.HOURS.toMillis(1);
+
+    private final DBI dbi;
+    private final EventCounterConfig config;
+    private final Clock clock;
+    private final ConcurrentHashMap<CounterKey, Long> counts = new ConcurrentHashMap<>();
+    private final Set<String> registeredProjects = ConcurrentHashMap.newKeySet();
+    private ScheduledExecutorService executor;
+
+    @Inject
+    public EventCounter(@Named("report.metadata.store.jdbc") JDBCPoolDataSource dataSource, EventCounterConfig config, Clock clock)
+    {
+        this(new DBI(dataSource), config, clock);
+    }
+
+    @VisibleForTesting
+    public EventCounter(DBI dbi, EventCounterConfig config, Clock clock)
+    {
+        this.dbi = dbi;
+        this.config = config;
+        this.clock = clock;
+    }
+
+    @PostConstruct
+    public synchronized void start()
+    {
+        if (executor != null) {
+            return;
+        }
+
+        try (Handle handle = dbi.open()) {
+            handle.createStatement("CREATE TABLE IF NOT EXISTS event_counter (" +
+                    "  project VARCHAR(255) NOT NULL," +
+                    "  collection VARCHAR(255) NOT NULL," +
+                    "  epoch_hour BIGINT NOT NULL," +
+                    "  total BIGINT NOT NULL," +
+                    "  PRIMARY KEY (project, collection, epoch_hour)" +
+                    "  )")
+                    .execute();
+            handle.createStatement("CREATE TABLE IF NOT EXISTS event_counter_project (" +
+                    "  project VARCHAR(255) NOT NULL," +
+                    "  start_hour BIGINT NOT NULL," +
+                    "  PRIMARY KEY (project)" +
+                    "  )")
+                    .execute();
+        }
+
+        executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+                .setNameFormat("event-counter-flusher").setDaemon(true).build());
+        long interval = config.getFlushInterval().toMillis();
+        executor.scheduleWithFixedDelay(() -> {
+            try {
+                flush();
+            }
+            catch (Throwable e) {
+                LOGGER.error(e, "Error while flushing the event counters");
+            }
+        }, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    public synchronized void stop()
+    {
+        if (executor != null) {
+            executor.shutdownNow();
+            executor = null;
+            flush();
+        }
+    }
+
+    public void count(Event event)
+    {
+        counts.merge(new CounterKey(event.project(), event.collection(), getEpochHour(event)), 1L, Long::sum);
+    }
+
+    public void count(List<Event> events)
+    {
+        // the events of a batch usually belong to a few collections and hours
+        Map<CounterKey, Long> batch = new HashMap<>();
+        for (Event event : events) {
+            batch.merge(new CounterKey(event.project(), event.collection(), getEpochHour(event)), 1L, Long::sum);
+        }
+        batch.forEach((key, count) -> counts.merge(key, count, Long::sum));
+    }
+
+    @VisibleForTesting
+    public long getPendingCount(String project, String collection, Instant hour)
+    {
+        return counts.getOrDefault(new CounterKey(project, collection, hour.toEpochMilli() / HOUR_MILLIS), 0L);
+    }
+
+    /**
+     * Adds the counts that are accumulated since the last flush to the counter table, the counts that couldn't be added
+     * are kept for the next flush.
+     */
+    public synchronized void flush()
+    {
+        List<CounterKey> keys = new ArrayList<>(counts.keySet());
+        if (keys.isEmpty()) {
+            return;
+        }
+
+        try (Handle handle = dbi.open()) {
+            for (CounterKey key : keys) {
+                if (!registeredProjects.contains(key.project)) {
+                    // the hour of the first flush may miss the events that are stored before the counting is enabled
+                    registerProject(handle, key.project, clock.millis() / HOUR_MILLIS + 1);
+                }
+            }
+
+            for (int i = 0; i < keys.size(); i++) {
+                CounterKey key = keys.get(i);
+                Long count = counts.remove(key);
+                if (count == null) {
+                    continue;
+                }
+
+                try {
+                    add(handle, key, count);
+                }
+                catch (RuntimeException e) {
+                    counts.merge(key, count, Long::sum);
+                    throw e;
+                }
+            }
+        }
+    }
+
+    /**
+     * The new projects don't have any event before the counting so they're counted from the beginning.
+     */
+    @Subscribe
+    public void onCreateProject(SystemEvents.ProjectCreatedEvent event)
+    {
+        try (Handle handle = dbi.open()) {
+            handle.createStatement("DELETE FROM event_counter_project WHERE project = :project")
+                    .bind("project", event.project)
+                    .execute();
+            registerProject(handle, event.project, 0);
+        }
+    }
+
+    /**
+     * Called when the events of the project are copied from remote files. The copied events are not counted so the
+     * statistics before the hour after the copy are answered by the event tables.
+     */
+    public void onEventsCopied(String project)
+    {
+        long startHour = clock.millis() / HOUR_MILLIS + 1;
+        try (Handle handle = dbi.open()) {
+            int updated = handle.createStatement("UPDATE event_counter_project SET start_hour = :hour " +
+                    "WHERE project = :project AND start_hour < :hour")
+                    .bind("project", project)
+                    .bind("hour", startHour)
+                    .execute();
+            if (updated == 0 && !getStartHour(handle, project).isPresent()) {
+                registerProject(handle, project, startHour);
+            }
+        }
+    }
+
+    private void registerProject(Handle handle, String project, long startHour)
+    {
+        try {
+            handle.createStatement("INSERT INTO event_counter_project (project, start_hour) VALUES (:project, :hour)")
+                    .bind("project", project)
+                    .bind("hour", startHour)
+                    .execute();
+        }
+        catch (UnableToExecuteStatementException e) {
+            // the project is registered by another node
+            if (!getStartHour(handle, project).isPresent()) {
+                throw e;
+            }
+        }
+        registeredProjects.add(project);
+    }
+
+    private static Optional<Long> getStartHour(Handle handle, String project)
+    {
+        return Optional.ofNullable(handle.createQuery("SELECT start_hour FROM event_counter_project WHERE project = :project")
+                .bind("project", project)
+                .map((index, resultSet, ctx) -> resultSet.getLong(1))
+                .first());
+    }
+
+    /**
+     * Returns true if the events of the project are counted since the start date, the statistics should be read from
+     * the event tables otherwise.
+     */
+    public boolean isCounted(String project, LocalDate startDate)
+    {
+        long startHour = startDate.atStartOfDay(ZoneOffset.UTC).toInstant().toEpochMilli() / HOUR_MILLIS;
+        try (Handle handle = dbi.open()) {
+            return getStartHour(handle, project).map(hour -> hour <= startHour).orElse(false);
+        }
+    }
+
+    private void add(Handle handle, CounterKey key, long count)
+    {
+        if (update(handle, key, count)) {
+            return;
+        }
+
+        try {
+            handle.createStatement("INSERT INTO event_counter (project, collection, epoch_hour, total) " +
+                    "VALUES (:project, :collection, :hour, :total)")
+                    .bind("project", key.project)
+                    .bind("collection", key.collection)
+                    .bind("hour", key.epochHour)
+                    .bind("total", count)
+                    .execute();
+        }
+        catch (UnableToExecuteStatementException e) {
+            // the row is inserted by another node in the meantime
+            if (!update(handle, key, count)) {
+                throw e;
+            }
+        }
+    }
+
+    private boolean update(Handle handle, CounterKey key, long count)
+    {
+        return handle.createStatement("UPDATE event_counter SET total = total + :total " +
+                "WHERE project = :project AND collection = :collection AND epoch_hour = :hour")
+                .bind("project", key.project)
+                .bind("collection", key.collection)
+                .bind("hour", key.epochHour)
+                .bind("total", count)
+                .execute() > 0;
+    }
+
+    public QueryResult getEventStatistics(String project, Optional<Set<String>> collections, Optional<String> dimension, LocalDate startDate, LocalDate endDate)
+    {
+        checkProject(project);
+
+        if (collections.isPresent() && collections.get().isEmpty()) {
+            return QueryResult.empty();
+        }
+
+        Optional<TimestampTransformation> transformation = Optional.empty();
+        if (dimension.isPresent()) {
+            transformation = TimestampTransformation.fromPrettyName(dimension.get());
+            if (!transformation.isPresent() || transformation.get() == TimestampTransformation.DAY_PART) {
+                throw new RakamException("Dimension is not supported: " + dimension.get(), BAD_REQUEST);
+            }
+            checkReference(null, dimension.get(), startDate, endDate, collections.map(v -> v.size()).orElse(10));
+        }
+
+        long startHour = startDate.atStartOfDay(ZoneOffset.UTC).toInstant().toEpochMilli() / HOUR_MILLIS;
+        long endHour = endDate.plusDays(1).atStartOfDay(ZoneOffset.UTC).toInstant().toEpochMilli() / HOUR_MILLIS;
+
+        Map<List<Object>, Long> totals = new LinkedHashMap<>();
+        try (Handle handle = dbi.open()) {
+            StringBuilder sql = new StringBuilder("SELECT collection, epoch_hour, total FROM event_counter " +
+                    "WHERE project = :project AND epoch_hour >= :start AND epoch_hour < :end");
+            List<String> collectionList = collections.map(ImmutableList::copyOf).orElse(ImmutableList.of());
+            if (!collectionList.isEmpty()) {
+                sql.append(" AND collection IN (");
+                for (int i = 0; i < collectionList.size(); i++) {
+                    sql.append(i == 0 ? ":collection" : ", :collection").append(i);
+                }
+                sql.append(")");
+            }
+            sql.append(" ORDER BY epoch_hour DESC");
+
+            Query<Map<String, Object>> query = handle.createQuery(sql.toString())
+                    .bind("project", project)
+                    .bind("start", startHour)
+                    .bind("end", endHour);
+            for (int i = 0; i < collectionList.size(); i++) {
+                query.bind("collection" + i, collectionList.get(i));
+            }
+
+            List<Object[]> counters = query.map((index, resultSet, ctx) -> new Object[] {
+                    resultSet.getString(1), resultSet.getLong(2), resultSet.getLong(3)}).list();
+            for (Object[] counter : counters) {
+                List<Object> group = new ArrayList<>(2);
+                group.add(counter[0]);
+                if (transformation.isPresent()) {
+                    group.add(transform(transformation.get(), (Long) counter[1]));
+                }
+                totals.merge(group, (Long) counter[2], Long::sum);
+            }
+        }
+
+        List<List<Object>> rows = totals.entrySet().stream().map(entry -> {
+            List<Object> row = new ArrayList<>(entry.getKey());
+            row.add(entry.getValue());
+            return row;
+        }).collect(Collectors.toList());
+
+        if (!transformation.isPresent()) {
+            return new QueryResult(ImmutableList.of(new SchemaField("collection", STRING), new SchemaField("total", LONG)), rows);
+        }
+
+        TimestampTransformation t = transformation.get();
+        return new QueryResult(ImmutableList.of(
+                new SchemaField("collection", STRING),
+                new SchemaField(t.name().toLowerCase(Locale.ENGLISH), getType(t)),
+                new SchemaField("total", LONG)), rows);
+    }
+
+    /**
+     * Returns the stats of the projects whose events are counted from the beginning, the other projects are not
+     * included in the result.
+     */
+    public Map<String, Stats> getStats(Collection<String> projects)
+    {
+        Map<String, Stats> map = new HashMap<>();
+        if (projects.isEmpty()) {
+            return map;
+        }
+
+        LocalDate today = LocalDate.now(clock.withZone(ZoneOffset.UTC));
+        long dayStart = today.atStartOfDay(ZoneOffset.UTC).toInstant().toEpochMilli() / HOUR_MILLIS;
+        long monthStart = today.withDayOfMonth(1).atStartOfDay(ZoneOffset.UTC).toInstant().toEpochMilli() / HOUR_MILLIS;
+
+        List<String> projectList = ImmutableList.copyOf(projects);
+        String projectParams = IntStream.range(0, projectList.size()).mapToObj(i -> ":project" + i)
+                .collect(Collectors.joining(", "));
+        try (Handle handle = dbi.open()) {
+            Query<Map<String, Object>> countedQuery = handle.createQuery("SELECT project FROM event_counter_project " +
+                    "WHERE start_hour = 0 AND project IN (" + projectParams + ")");
+            Query<Map<String, Object>> query = handle.createQuery("SELECT project, sum(total), " +
+                    "sum(CASE WHEN epoch_hour >= :month THEN total ELSE 0 END), " +
+                    "sum(CASE WHEN epoch_hour >= :day THEN total ELSE 0 END) " +
+                    "FROM event_counter WHERE project IN (" + projectParams + ") GROUP BY project")
+                    .bind("day", dayStart)
+                    .bind("month", monthStart);
+            for (int i = 0; i < projectList.size(); i++) {
+                countedQuery.bind("project" + i, projectList.get(i));
+                query.bind("project" + i, projectList.get(i));
+            }
+
+            for (String project : countedQuery.map((index, resultSet, ctx) -> resultSet.getString(1)).list()) {
+                map.put(project, new Stats(0L, 0L, 0L));
+            }
+
+            List<Object[]> counters = query.map((index, resultSet, ctx) -> new Object[] {
+                    resultSet.getString(1), resultSet.getLong(2), resultSet.getLong(3), resultSet.getLong(4)}).list();
+            for (Object[] counter : counters) {
+                Stats stats = map.get(counter[0]);
+                if (stats == null) {
+                    continue;
+                }
+                stats.allEvents = (Long) counter[1];
+                stats.monthlyEvents = (Long) counter[2];
+                stats.dailyEvents = (Long) counter[3];
+            }
+        }
+
+        return map;
+    }
+
+    public void delete(String project)
+    {
+        counts.keySet().removeIf(key -> key.project.equals(project));
+        try (Handle handle = dbi.open()) {
+            handle.createStatement("DELETE FROM event_counter WHERE project = :project")
+                    .bind("project", project)
+                    .execute();
+            handle.createStatement("DELETE FROM event_counter_project WHERE project = :project")
+                    .bind("project", project)
+                    .execute();
+        }
+        registeredProjects.remove(project);
+    }
+
+    private long getEpochHour(Event event)
+    {
+        Object time = event.properties().get("_time");
+        long millis = time instanceof Number ? ((Number) time).longValue() : clock.millis();
+        return Math.floorDiv(millis, HOUR_MILLIS);
+    }
+
+    private static FieldType getType(TimestampTransformation transformation)
+    {
+        switch (transformation) {
+            case HOUR:
+            case WEEK:
+            case MONTH:
+            case YEAR:
+                return TIMESTAMP;
+            case DAY:
+                return DATE;
+            default:
+                return STRING;
+        }
+    }
+
+    private static Object transform(TimestampTransformation transformation, long epochHour)
+    {
+        LocalDateTime time = LocalDateTime.ofEpochSecond(epochHour * 3600, 0, ZoneOffset.UTC);
+        switch (transformation) {
+            case HOUR_OF_DAY:
+                return String.format("%02d:00", time.getHour());
+            case DAY_OF_MONTH:
+                return time.getDayOfMonth() + "th day";
+            case WEEK_OF_YEAR:
+                return time.get(IsoFields.WEEK_OF_WEEK_BASED_YEAR) + "th week";
+            case MONTH_OF_YEAR:
+                return Month.from(time).getDisplayName(TextStyle.FULL, Locale.ENGLISH);
+            case QUARTER_OF_YEAR:
+                return time.get(IsoFields.QUARTER_OF_YEAR) + "th quarter";
+            case DAY_OF_WEEK:
+                return DayOfWeek.from(time).getDisplayName(TextStyle.FULL, Locale.ENGLISH);
+            case HOUR:
+                return time.toInstant(ZoneOffset.UTC);
+            case DAY:
+                return time.toLocalDate();
+            case WEEK:
+                return time.toLocalDate().with(TemporalAdjusters.previousOrSame(DayOfWeek.MONDAY)).atStartOfDay().toInstant(ZoneOffset.UTC);
+            case MONTH:
+                return time.toLocalDate().withDayOfMonth(1).atStartOfDay().toInstant(ZoneOffset.UTC);
+            case YEAR:
+                return time.truncatedTo(ChronoUnit.DAYS).withDayOfYear(1).toInstant(ZoneOffset.UTC);
+            default:
+                throw new RakamException("Dimension is not supported: " + transformation.getPrettyName(), BAD_REQUEST);
+        }
+    }
+
+    private static final class CounterKey
+    {
+        private final String project;
+        private final String collection;
+        private final long epochHour;
+
+        private CounterKey(String project, String collection, long epochHour)
+        {
+            this.project = project;
+            this.collection = collection;
+            this.epochHour = epochHour;
+        }
+
+        @Override
+        public boolean equals(Object o)
+        {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof CounterKey)) {
+                return false;
+            }
+
+            CounterKey that = (CounterKey) o;
+            return epochHour == that.epochHour && project.equals(that.project) && collection.equals(that.collection);
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return Objects.hash(project, collection, epochHour);
+        }
+    }
+}
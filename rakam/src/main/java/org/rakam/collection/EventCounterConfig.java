@@ -0,0 +1,39 @@
+package org.rakam.collection;
+
+import io.airlift.configuration.Config;
+import io.airlift.configuration.ConfigDescription;
+import io.airlift.units.Duration;
+
+public class EventCounterConfig
+{
+    private boolean enabled;
+    private Duration flushInterval = Duration.valueOf("10s");
+
+    @Config("event-counter.enabled")
+    @ConfigDescription("Counts the collected events of each collection hourly and answers the event statistics from " +
+            "the counters instead of scanning the event tables. Only the events that are collected after it's enabled are counted " +
+            "and it must be enabled on every node that collects events, otherwise the events of the other nodes are missing from the statistics.")
+    public EventCounterConfig setEnabled(boolean enabled)
+    {
+        this.enabled = enabled;
+        return this;
+    }
+
+    public boolean getEnabled()
+    {
+        return enabled;
+    }
+
+    @Config("event-counter.flush-interval")
+    @ConfigDescription("The interval of adding the counts of the node to the counter table.")
+    public EventCounterConfig setFlushInterval(String flushInterval)
+    {
+        this.flushInterval = Duration.valueOf(flushInterval);
+        return this;
+    }
+
+    public Duration getFlushInterval()
+    {
+        return flushInterval;
+    }
+}
@@ -0,0 +1,33 @@
+package org.rakam.collection;
+
+import com.google.auto.service.AutoService;
+import com.google.inject.Binder;
+import com.google.inject.Scopes;
+import com.google.inject.multibindings.OptionalBinder;
+import org.rakam.plugin.RakamModule;
+import org.rakam.util.ConditionalModule;
+
+@AutoService(RakamModule.class)
+@ConditionalModule(config = "event-counter.enabled", value = "true")
+public class EventCounterModule
+        extends RakamModule
+{
+    @Override
+    protected void setup(Binder binder)
+    {
+        OptionalBinder.newOptionalBinder(binder, EventCounter.class)
+                .setBinding().to(EventCounter.class).in(Scopes.SINGLETON);
+    }
+
+    @Override
+    public String name()
+    {
+        return "Event Counter Module";
+    }
+
+    @Override
+    public String description()
+    {
+        return "Counts the collected events hourly and answers the event statistics from the counters.";
+    }
+}
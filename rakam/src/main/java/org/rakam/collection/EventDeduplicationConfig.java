@@ -0,0 +1,128 @@
+package org.rakam.collection;
+
+import io.airlift.configuration.Config;
+import io.airlift.configuration.ConfigDescription;
+import io.airlift.units.Duration;
+
+import javax.validation.constraints.Min;
+
+public class EventDeduplicationConfig
+{
+    private boolean enabled;
+    private String messageIdProperty = "_message_id";
+    private Duration window = Duration.valueOf("1h");
+    private int buckets = 4;
+    private long expectedEvents = 250_000;
+    private double falsePositiveRate = 0.01;
+    private long confirmationCacheSize = 32_768;
+    private int maxProjects = 100;
+
+    @Config("collection.dedup.enabled")
+    @ConfigDescription("Drops the events that are collected more than once by /event/collect and /event/batch " +
+            "within collection.dedup.window.")
+    public EventDeduplicationConfig setEnabled(boolean enabled)
+    {
+        this.enabled = enabled;
+        return this;
+    }
+
+    public boolean getEnabled()
+    {
+        return enabled;
+    }
+
+    @Config("collection.dedup.message-id-property")
+    @ConfigDescription("The property that holds the unique id of the event that is generated by the client. " +
+            "The hash of the api context and the properties is used for the events that don't have it.")
+    public EventDeduplicationConfig setMessageIdProperty(String messageIdProperty)
+    {
+        this.messageIdProperty = messageIdProperty;
+        return this;
+    }
+
+    public String getMessageIdProperty()
+    {
+        return messageIdProperty;
+    }
+
+    @Config("collection.dedup.window")
+    public EventDeduplicationConfig setWindow(String window)
+    {
+        this.window = Duration.valueOf(window);
+        return this;
+    }
+
+    public Duration getWindow()
+    {
+        return window;
+    }
+
+    @Config("collection.dedup.buckets")
+    @ConfigDescription("The number of Bloom filters that the window is split into, the oldest one is cleared " +
+            "when a new one is started.")
+    public EventDeduplicationConfig setBuckets(int buckets)
+    {
+        this.buckets = buckets;
+        return this;
+    }
+
+    public int getBuckets()
+    {
+        return buckets;
+    }
+
+    @Config("collection.dedup.expected-events")
+    @ConfigDescription("The expected number of events of a project within the window, the Bloom filters are sized for it. " +
+            "The filters take about 1.2 bytes per event with the default false positive rate.")
+    public EventDeduplicationConfig setExpectedEvents(long expectedEvents)
+    {
+        this.expectedEvents = expectedEvents;
+        return this;
+    }
+
+    public long getExpectedEvents()
+    {
+        return expectedEvents;
+    }
+
+    @Config("collection.dedup.false-positive-rate")
+    public EventDeduplicationConfig setFalsePositiveRate(double falsePositiveRate)
+    {
+        this.falsePositiveRate = falsePositiveRate;
+        return this;
+    }
+
+    public double getFalsePositiveRate()
+    {
+        return falsePositiveRate;
+    }
+
+    @Config("collection.dedup.confirmation-cache-size")
+    @ConfigDescription("The number of the latest event ids of each project that are kept to confirm the matches of the Bloom filters. " +
+            "Each id takes 16 bytes.")
+    public EventDeduplicationConfig setConfirmationCacheSize(long confirmationCacheSize)
+    {
+        this.confirmationCacheSize = confirmationCacheSize;
+        return this;
+    }
+
+    public long getConfirmationCacheSize()
+    {
+        return confirmationCacheSize;
+    }
+
+    @Config("collection.dedup.max-projects")
+    @ConfigDescription("The maximum number of projects whose filters are kept in memory, the filters of the least " +
+            "recently used projects are dropped when the limit is exceeded. A project takes about 0.8 MB of heap with the defaults.")
+    public EventDeduplicationConfig setMaxProjects(int maxProjects)
+    {
+        this.maxProjects = maxProjects;
+        return this;
+    }
+
+    @Min(1)
+    public int getMaxProjects()
+    {
+        return maxProjects;
+    }
+}
@@ -0,0 +1,424 @@
+package org.rakam.collection;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Ticker;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import org.apache.avro.Schema;
+import org.apache.avro.generic.GenericRecord;
+
+import javax.inject.Inject;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.RandomAccess;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Drops the events that are sent more than once, the SDKs retry the requests that time out so the same events may
+ * be collected multiple times. An event is identified by the message id property that is set by the client or the
+ * hash of its api context and properties if the property is not set.
+ * <p>
+ * Each project has a set of Bloom filters, each of them covers a time bucket of the window and the oldest one is
+ * cleared when a new bucket starts. The ids that match the Bloom filters are confirmed with the table of the 128-bit
+ * hashes of the latest ids so that the false positives of the Bloom filters are not dropped. The table is a
+ * set-associative cache, if the id is evicted from the table the event is accepted.
+ * <p>
+ * The filters and the table are long arrays on the heap so that the filters of the evicted projects are released
+ * with them. A project takes about 1.2 bytes per collection.dedup.expected-events and 16 bytes per
+ * collection.dedup.confirmation-cache-size, 0.8 MB with the defaults.
+ * <p>
+ * The ids are recorded when they're checked, so the ids of the events that couldn't be stored must be removed with
+ * {@link #forget(Event)}, otherwise the retries of the clients are dropped. Only the latest
+ * collection.dedup.max-projects projects have filters, the filters of the least recently used projects are evicted.
+ */
+public class EventDeduplicator
+{
+    private static final HashFunction HASH_FUNCTION = Hashing.murmur3_128();
+    private static final int CONFIRMATION_WAYS = 4;
+    // the bits of an id are set in a single cache line of a Bloom filter so that a lookup reads one cache line
+    private static final int BLOCK_WORDS = 8;
+    private static final int BLOCK_BITS = BLOCK_WORDS * Long.SIZE;
+    private static final int MAX_HASHES = Long.SIZE / 9;
+
+    private final boolean enabled;
+    private final String messageIdProperty;
+    private final Ticker ticker;
+    private final long bucketNanos;
+    private final int buckets;
+    private final int blocksPerBucket;
+    private final int numHashes;
+    private final LoadingCache<String, ProjectFilter> filters;
+    private final int confirmationSets;
+
+    @Inject
+    public EventDeduplicator(EventDeduplicationConfig config)
+    {
+        this(config, Ticker.systemTicker());
+    }
+
+    @VisibleForTesting
+    public EventDeduplicator(EventDeduplicationConfig config, Ticker ticker)
+    {
+        this.enabled = config.getEnabled();
+        this.messageIdProperty = config.getMessageIdProperty();
+        this.ticker = ticker;
+        this.buckets = Math.max(1, config.getBuckets());
+
+        long windowNanos = config.getWindow().roundTo(TimeUnit.NANOSECONDS);
+        this.bucketNanos = Math.max(1, windowNanos / buckets);
+
+        long expectedPerBucket = Math.max(1, config.getExpectedEvents() / buckets);
+        double falsePositiveRate = config.getFalsePositiveRate();
+        // the optimal size and the number of the hash functions of a Bloom filter
+        long bits = (long) (-expectedPerBucket * Math.log(falsePositiveRate) / (Math.log(2) * Math.log(2)));
+        this.blocksPerBucket = (int) Math.max(1, Math.min((bits + BLOCK_BITS - 1) / BLOCK_BITS,
+                Integer.MAX_VALUE / (BLOCK_WORDS * this.buckets)));
+        long bitsPerBucket = (long) blocksPerBucket * BLOCK_BITS;
+        this.numHashes = Math.max(1, Math.min(MAX_HASHES, (int) Math.round((double) bitsPerBucket / expectedPerBucket * Math.log(2))));
+
+        this.confirmationSets = (int) Math.max(1, Math.min(config.getConfirmationCacheSize() / CONFIRMATION_WAYS,
+                Integer.MAX_VALUE / (CONFIRMATION_WAYS * 2)));
+
+        this.filters = CacheBuilder.newBuilder()
+                .expireAfterAccess(windowNanos, TimeUnit.NANOSECONDS)
+                .maximumSize(config.getMaxProjects())
+                .build(CacheLoader.from(project -> new ProjectFilter()));
+    }
+
+    public boolean isEnabled()
+    {
+        return enabled;
+    }
+
+    public boolean isDuplicate(Event event)
+    {
+        if (!enabled) {
+            return false;
+        }
+
+        ByteBuffer id = ByteBuffer.wrap(getId(event).asBytes()).order(ByteOrder.LITTLE_ENDIAN);
+        return filters.getUnchecked(event.project()).isDuplicate(id.getLong(0), id.getLong(Long.BYTES), ticker.read());
+    }
+
+    /**
+     * Removes the id of the event that is recorded by {@link #isDuplicate(Event)} so that the event is accepted when
+     * it's sent again. The Bloom filters can't remove the id but the event is not dropped unless its id is also in
+     * the confirmation table.
+     */
+    public void forget(Event event)
+    {
+        if (!enabled) {
+            return;
+        }
+
+        ProjectFilter filter = filters.getIfPresent(event.project());
+        if (filter != null) {
+            ByteBuffer id = ByteBuffer.wrap(getId(event).asBytes()).order(ByteOrder.LITTLE_ENDIAN);
+            filter.forget(id.getLong(0), id.getLong(Long.BYTES));
+        }
+    }
+
+    public void forget(List<Event> events)
+    {
+        for (Event event : events) {
+            forget(event);
+        }
+    }
+
+    /**
+     * Returns the events that are not duplicates. If any of the events is dropped, the returned list keeps the
+     * indexes of the events in the original list, see {@link #toOriginalIndexes(List, int[])}.
+     */
+    public List<Event> filter(List<Event> events)
+    {
+        if (!enabled) {
+            return events;
+        }
+
+        int[] uniqueIndexes = null;
+        int uniqueCount = 0;
+        for (int i = 0; i < events.size(); i++) {
+            if (isDuplicate(events.get(i))) {
+                if (uniqueIndexes == null) {
+                    uniqueIndexes = new int[events.size()];
+                    for (int j = 0; j < i; j++) {
+                        uniqueIndexes[j] = j;
+                    }
+                    uniqueCount = i;
+                }
+            }
+            else if (uniqueIndexes != null) {
+                uniqueIndexes[uniqueCount++] = i;
+            }
+        }
+
+        if (uniqueIndexes == null) {
+            return events;
+        }
+
+        List<Event> uniqueEvents = new ArrayList<>(uniqueCount);
+        for (int i = 0; i < uniqueCount; i++) {
+            uniqueEvents.add(events.get(uniqueIndexes[i]));
+        }
+        return new UniqueEventList(uniqueEvents, uniqueIndexes);
+    }
+
+    /**
+     * Converts the indexes of the events that are returned by {@link #filter(List)} to their indexes in the list
+     * that is sent by the client.
+     */
+    public static int[] toOriginalIndexes(List<Event> events, int[] indexes)
+    {
+        if (!(events instanceof UniqueEventList)) {
+            return indexes;
+        }
+
+        int[] originalIndexes = new int[indexes.length];
+        for (int i = 0; i < indexes.length; i++) {
+            originalIndexes[i] = ((UniqueEventList) events).originalIndexes[indexes[i]];
+        }
+        return originalIndexes;
+    }
+
+    private HashCode getId(Event event)
+    {
+        Hasher hasher = HASH_FUNCTION.newHasher();
+        putString(hasher, event.project());
+        putString(hasher, event.collection());
+
+        GenericRecord properties = event.properties();
+        Object messageId = null;
+        if (properties != null && messageIdProperty != null && properties.getSchema().getField(messageIdProperty) != null) {
+            messageId = properties.get(messageIdProperty);
+        }
+
+        if (messageId != null) {
+            hasher.putBoolean(true);
+            putValue(hasher, messageId);
+            return hasher.hash();
+        }
+
+        hasher.putBoolean(false);
+        // the upload time and the checksum are not used because the SDKs may set them again when they retry
+        Event.EventContext api = event.api();
+        if (api != null) {
+            putString(hasher, api.apiKey);
+            putString(hasher, api.apiVersion);
+            if (api.library != null) {
+                putString(hasher, api.library.name);
+                putString(hasher, api.library.version);
+            }
+        }
+
+        if (properties != null) {
+            for (Schema.Field field : properties.getSchema().getFields()) {
+                Object value = properties.get(field.pos());
+                if (value != null) {
+                    putString(hasher, field.name());
+                    putValue(hasher, value);
+                }
+            }
+        }
+
+        return hasher.hash();
+    }
+
+    private static void putString(Hasher hasher, CharSequence value)
+    {
+        if (value == null) {
+            hasher.putInt(-1);
+        }
+        else {
+            hasher.putInt(value.length());
+            hasher.putUnencodedChars(value);
+        }
+    }
+
+    private static void putValue(Hasher hasher, Object value)
+    {
+        if (value == null) {
+            hasher.putByte((byte) 0);
+        }
+        else if (value instanceof CharSequence) {
+            hasher.putByte((byte) 1);
+            putString(hasher, (CharSequence) value);
+        }
+        else if (value instanceof Long || value instanceof Integer) {
+            hasher.putByte((byte) 2);
+            hasher.putLong(((Number) value).longValue());
+        }
+        else if (value instanceof Double || value instanceof Float) {
+            hasher.putByte((byte) 3);
+            hasher.putDouble(((Number) value).doubleValue());
+        }
+        else if (value instanceof Boolean) {
+            hasher.putByte((byte) 4);
+            hasher.putBoolean((Boolean) value);
+        }
+        else if (value instanceof List) {
+            hasher.putByte((byte) 5);
+            List<?> list = (List) value;
+            hasher.putInt(list.size());
+            for (Object item : list) {
+                putValue(hasher, item);
+            }
+        }
+        else if (value instanceof Map) {
+            hasher.putByte((byte) 6);
+            Map<?, ?> map = (Map) value;
+            hasher.putInt(map.size());
+            for (Map.Entry<?, ?> entry : map.entrySet()) {
+                putValue(hasher, entry.getKey());
+                putValue(hasher, entry.getValue());
+            }
+        }
+        else if (value instanceof ByteBuffer) {
+            hasher.putByte((byte) 7);
+            hasher.putBytes(((ByteBuffer) value).duplicate());
+        }
+        else {
+            hasher.putByte((byte) 8);
+            putString(hasher, value.toString());
+        }
+    }
+
+    private class ProjectFilter
+    {
+        private final long[] bits;
+        private final long[] confirmationTable;
+        private final int wordsPerBucket;
+        private long currentBucket;
+
+        private ProjectFilter()
+        {
+            this.wordsPerBucket = blocksPerBucket * BLOCK_WORDS;
+            this.bits = new long[wordsPerBucket * buckets];
+            this.confirmationTable = new long[confirmationSets * CONFIRMATION_WAYS * 2];
+            this.currentBucket = Math.floorDiv(ticker.read(), bucketNanos);
+        }
+
+        synchronized boolean isDuplicate(long hash1, long hash2, long now)
+        {
+            rotate(Math.floorDiv(now, bucketNanos));
+
+            int block = (int) (((hash1 >>> 32) * blocksPerBucket) >>> 32) * BLOCK_WORDS;
+            boolean mightContain = false;
+            for (int bucket = 0; bucket < buckets && !mightContain; bucket++) {
+                mightContain = contains(bucket * wordsPerBucket + block, hash2);
+            }
+
+            put((int) Math.floorMod(currentBucket, (long) buckets) * wordsPerBucket + block, hash2);
+
+            return !confirm(hash1, hash2, mightContain);
+        }
+
+        synchronized void forget(long hash1, long hash2)
+        {
+            int offset = (int) Math.floorMod(hash2, (long) confirmationSets) * CONFIRMATION_WAYS * 2;
+            for (int way = 0; way < CONFIRMATION_WAYS; way++) {
+                int index = offset + way * 2;
+                if (confirmationTable[index] == hash1 && confirmationTable[index + 1] == hash2) {
+                    confirmationTable[index] = 0;
+                    confirmationTable[index + 1] = 0;
+                }
+            }
+        }
+
+        private boolean contains(int offset, long hash)
+        {
+            for (int i = 0; i < numHashes; i++) {
+                int bit = (int) (hash >>> (i * 9)) & (BLOCK_BITS - 1);
+                if ((bits[offset + (bit >>> 6)] & (1L << bit)) == 0) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private void put(int offset, long hash)
+        {
+            for (int i = 0; i < numHashes; i++) {
+                int bit = (int) (hash >>> (i * 9)) & (BLOCK_BITS - 1);
+                bits[offset + (bit >>> 6)] |= 1L << bit;
+            }
+        }
+
+        /**
+         * Adds the hash to the confirmation table and returns true if it's new. The set of the hash is only searched
+         * when the Bloom filters match it, otherwise it replaces a random entry of its set without reading the set.
+         */
+        private boolean confirm(long hash1, long hash2, boolean mightContain)
+        {
+            int offset = (int) Math.floorMod(hash2, (long) confirmationSets) * CONFIRMATION_WAYS * 2;
+            int free = offset + (int) (hash1 >>> 62) * 2;
+            if (mightContain) {
+                for (int way = 0; way < CONFIRMATION_WAYS; way++) {
+                    int index = offset + way * 2;
+                    long entry1 = confirmationTable[index];
+                    long entry2 = confirmationTable[index + 1];
+                    if (entry1 == hash1 && entry2 == hash2) {
+                        return false;
+                    }
+                    if (entry1 == 0 && entry2 == 0) {
+                        free = index;
+                    }
+                }
+            }
+
+            confirmationTable[free] = hash1;
+            confirmationTable[free + 1] = hash2;
+            return true;
+        }
+
+        private void rotate(long bucket)
+        {
+            if (bucket <= currentBucket) {
+                return;
+            }
+
+            long start = Math.max(currentBucket + 1, bucket - buckets + 1);
+            for (long next = start; next <= bucket; next++) {
+                int offset = (int) Math.floorMod(next, (long) buckets) * wordsPerBucket;
+                Arrays.fill(bits, offset, offset + wordsPerBucket, 0);
+            }
+            currentBucket = bucket;
+        }
+    }
+
+    private static class UniqueEventList
+            extends AbstractList<Event>
+            implements RandomAccess
+    {
+        private final List<Event> events;
+        private final int[] originalIndexes;
+
+        private UniqueEventList(List<Event> events, int[] originalIndexes)
+        {
+            this.events = events;
+            this.originalIndexes = originalIndexes;
+        }
+
+        @Override
+        public Event get(int index)
+        {
+            return events.get(index);
+        }
+
+        @Override
+        public int size()
+        {
+            return events.size();
+        }
+    }
+}
@@ -0,0 +1,362 @@
+package org.rakam.collection;
+
+import com.google.common.base.Throwables;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import io.airlift.log.Logger;
+import io.netty.handler.codec.http.DefaultHttpHeaders;
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http.cookie.Cookie;
+import org.rakam.collection.FieldDependencyBuilder.FieldDependency;
+import org.rakam.metrics.Distribution;
+import org.rakam.metrics.MetricRegistry;
+import org.rakam.plugin.EventMapper;
+
+import javax.annotation.PreDestroy;
+import javax.inject.Inject;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+import static java.util.concurrent.CompletableFuture.completedFuture;
+
+/**
+ * Runs the registered {@link EventMapper}s for the collection endpoints.
+ * <p>
+ * The mappers are grouped into stages using the fields they declare in {@link EventMapper#addFieldDependency}:
+ * a mapper reads its dependent fields and reads and writes the fields it adds, and two mappers that don't touch
+ * each other's fields are put into the same stage and executed concurrently. The mappers that don't declare any field
+ * may read or write anything so they run alone, in the order they are registered, and always see the whole batch.
+ * Batches are split into chunks for the other mappers so the latency of a stage is bounded by its slowest mapper,
+ * except for the mappers that implement {@link EventMapper#map(EventList, EventMapper.RequestParams, InetAddress, HttpHeaders)}
+ * since they process the batch as a whole and are called once per batch.
+ * <p>
+ * The mappers are executed in a bounded fork-join pool so blocking mappers never run on the Netty event loop.
+ */
+public class EventMapperExecutor
+{
+    private final static Logger LOGGER = Logger.get(EventMapperExecutor.class);
+
+    private final List<Stage> stages;
+    private final ForkJoinPool executor;
+    private final int batchChunkSize;
+    private final Map<EventMapper, Distribution> mapperTimes;
+    private final Set<EventMapper> batchMappers;
+
+    @Inject
+    public EventMapperExecutor(Set<EventMapper> eventMappers, EventMapperExecutorConfig config, MetricRegistry metricRegistry)
+    {
+        this.stages = createStages(ImmutableList.copyOf(eventMappers));
+        this.mapperTimes = new IdentityHashMap<>();
+        for (EventMapper mapper : eventMappers) {
+            mapperTimes.put(mapper, metricRegistry.timer("rakam_collection_mapper_seconds",
+                    "Time spent in a call of the event mapper, a call maps an event or a chunk of a batch",
+                    "mapper", mapper.getClass().getSimpleName()));
+        }
+        this.batchMappers = eventMappers.stream().filter(EventMapperExecutor::isBatchMapper)
+                .collect(Collectors.toCollection(() -> Collections.newSetFromMap(new IdentityHashMap<>())));
+        this.batchChunkSize = Math.max(1, config.getBatchChunkSize());
+        this.executor = config.getThreads() > 0 ? new ForkJoinPool(config.getThreads(), pool -> {
+            ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+            thread.setName("event-mapper-" + thread.getPoolIndex());
+            return thread;
+        }, (t, e) -> LOGGER.error(e, "Error in event mapper thread"), false) : null;
+    }
+
+    public CompletableFuture<List<Cookie>> map(Event event, EventMapper.RequestParams requestParams,
+            InetAddress sourceAddress, HttpHeaders responseHeaders)
+    {
+        return execute(headers -> mapInternal(event, requestParams, sourceAddress, headers), responseHeaders);
+    }
+
+    public CompletableFuture<List<Cookie>> map(EventList events, EventMapper.RequestParams requestParams,
+            InetAddress sourceAddress, HttpHeaders responseHeaders)
+    {
+        return execute(headers -> mapInternal(events, requestParams, sourceAddress, headers), responseHeaders);
+    }
+
+    private CompletableFuture<List<Cookie>> execute(Function<HttpHeaders, List<Cookie>> function, HttpHeaders responseHeaders)
+    {
+        if (executor == null) {
+            CompletableFuture<List<Cookie>> future = new CompletableFuture<>();
+            try {
+                future.complete(function.apply(responseHeaders));
+            }
+            catch (Throwable e) {
+                future.completeExceptionally(e);
+            }
+            return future;
+        }
+
+        if (stages.isEmpty()) {
+            return completedFuture(null);
+        }
+
+        return CompletableFuture.supplyAsync(() -> function.apply(responseHeaders), executor);
+    }
+
+    private List<Cookie> mapInternal(Event event, EventMapper.RequestParams requestParams,
+            InetAddress sourceAddress, HttpHeaders responseHeaders)
+    {
+        List<Cookie> cookies = null;
+        for (Stage stage : stages) {
+            if (stage.mappers.size() == 1 || executor == null) {
+                for (EventMapper mapper : stage.mappers) {
+                    cookies = merge(cookies, map(mapper, event, requestParams, sourceAddress, responseHeaders));
+                }
+                continue;
+            }
+
+            List<MapperTask> tasks = new ArrayList<>(stage.mappers.size());
+            for (EventMapper mapper : stage.mappers) {
+                tasks.add(new MapperTask(headers -> map(mapper, event, requestParams, sourceAddress, headers)));
+            }
+
+            cookies = invokeAll(tasks, cookies, responseHeaders);
+        }
+
+        return cookies;
+    }
+
+    private List<Cookie> mapInternal(EventList events, EventMapper.RequestParams requestParams,
+            InetAddress sourceAddress, HttpHeaders responseHeaders)
+    {
+        int size = events.events.size();
+
+        List<Cookie> cookies = null;
+        for (Stage stage : stages) {
+            if (executor == null || !stage.concurrent || (stage.mappers.size() == 1
+                    && (size <= batchChunkSize || batchMappers.contains(stage.mappers.get(0))))) {
+                for (EventMapper mapper : stage.mappers) {
+                    cookies = merge(cookies, map(mapper, events, requestParams, sourceAddress, responseHeaders));
+                }
+                continue;
+            }
+
+            List<MapperTask> tasks = new ArrayList<>();
+            for (EventMapper mapper : stage.mappers) {
+                if (size <= batchChunkSize || batchMappers.contains(mapper)) {
+                    tasks.add(new MapperTask(headers -> map(mapper, events, requestParams, sourceAddress, headers)));
+                    continue;
+                }
+
+                for (int start = 0; start < size; start += batchChunkSize) {
+                    EventList chunk = new EventList(events.api, events.project,
+                            events.events.subList(start, Math.min(size, start + batchChunkSize)));
+                    tasks.add(new MapperTask(headers -> map(mapper, chunk, requestParams, sourceAddress, headers)));
+                }
+            }
+
+            cookies = invokeAll(tasks, cookies, responseHeaders);
+        }
+
+        return cookies;
+    }
+
+    private List<Cookie> map(EventMapper mapper, Event event, EventMapper.RequestParams requestParams,
+            InetAddress sourceAddress, HttpHeaders responseHeaders)
+    {
+        long start = System.nanoTime();
+        try {
+            return mapper.map(event, requestParams, sourceAddress, responseHeaders);
+        }
+        finally {
+            mapperTimes.get(mapper).addNanosSince(start);
+        }
+    }
+
+    private List<Cookie> map(EventMapper mapper, EventList events, EventMapper.RequestParams requestParams,
+            InetAddress sourceAddress, HttpHeaders responseHeaders)
+    {
+        long start = System.nanoTime();
+        try {
+            return mapper.map(events, requestParams, sourceAddress, responseHeaders);
+        }
+        finally {
+            mapperTimes.get(mapper).addNanosSince(start);
+        }
+    }
+
+    private static List<Cookie> invokeAll(List<MapperTask> tasks, List<Cookie> cookies, HttpHeaders responseHeaders)
+    {
+        // the headers of the request are not thread-safe so each task writes to its own copy
+        for (MapperTask task : ForkJoinTask.invokeAll(tasks)) {
+            List<Cookie> mapperCookies = task.join();
+            if (task.exception != null) {
+                throw Throwables.propagate(task.exception);
+            }
+            cookies = merge(cookies, mapperCookies);
+            // the chunks of a mapper set the same headers, the values are replaced as if the mappers are run in order
+            for (String name : task.headers.names()) {
+                responseHeaders.set(name, task.headers.getAll(name));
+            }
+        }
+
+        return cookies;
+    }
+
+    private static List<Cookie> merge(List<Cookie> cookies, List<Cookie> mapperCookies)
+    {
+        if (mapperCookies == null) {
+            return cookies;
+        }
+        if (cookies == null) {
+            cookies = new ArrayList<>();
+        }
+        cookies.addAll(mapperCookies);
+        return cookies;
+    }
+
+    private static boolean isBatchMapper(EventMapper mapper)
+    {
+        try {
+            return mapper.getClass().getMethod("map", EventList.class, EventMapper.RequestParams.class,
+                    InetAddress.class, HttpHeaders.class).getDeclaringClass() != EventMapper.class;
+        }
+        catch (NoSuchMethodException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    @PreDestroy
+    public void destroy()
+            throws InterruptedException
+    {
+        if (executor != null) {
+            executor.shutdown();
+            executor.awaitTermination(10, TimeUnit.SECONDS);
+        }
+    }
+
+    static List<Stage> createStages(List<EventMapper> mappers)
+    {
+        List<MapperFields> fields = new ArrayList<>(mappers.size());
+        for (EventMapper mapper : mappers) {
+            fields.add(MapperFields.of(mapper));
+        }
+
+        // a mapper is placed after the last stage that has a mapper that it conflicts with,
+        // so the mappers that touch the same fields keep their registration order.
+        int[] levels = new int[mappers.size()];
+        int stageCount = 0;
+        for (int i = 0; i < mappers.size(); i++) {
+            int level = 0;
+            for (int j = 0; j < i; j++) {
+                if (fields.get(i).conflicts(fields.get(j))) {
+                    level = Math.max(level, levels[j] + 1);
+                }
+            }
+            levels[i] = level;
+            stageCount = Math.max(stageCount, level + 1);
+        }
+
+        ImmutableList.Builder<Stage> stages = ImmutableList.builder();
+        for (int level = 0; level < stageCount; level++) {
+            ImmutableList.Builder<EventMapper> stageMappers = ImmutableList.builder();
+            boolean concurrent = true;
+            for (int i = 0; i < mappers.size(); i++) {
+                if (levels[i] == level) {
+                    stageMappers.add(mappers.get(i));
+                    concurrent &= fields.get(i) != MapperFields.UNKNOWN;
+                }
+            }
+            stages.add(new Stage(stageMappers.build(), concurrent));
+        }
+
+        return stages.build();
+    }
+
+    static class Stage
+    {
+        final List<EventMapper> mappers;
+        // false if the stage has a mapper that doesn't declare its fields, such a mapper is always alone in its stage.
+        final boolean concurrent;
+
+        Stage(List<EventMapper> mappers, boolean concurrent)
+        {
+            this.mappers = mappers;
+            this.concurrent = concurrent;
+        }
+    }
+
+    private static class MapperFields
+    {
+        private static final MapperFields UNKNOWN = new MapperFields(ImmutableSet.of(), ImmutableSet.of());
+
+        private final Set<String> reads;
+        private final Set<String> writes;
+
+        private MapperFields(Set<String> reads, Set<String> writes)
+        {
+            this.reads = reads;
+            this.writes = writes;
+        }
+
+        static MapperFields of(EventMapper mapper)
+        {
+            FieldDependencyBuilder builder = new FieldDependencyBuilder();
+            mapper.addFieldDependency(builder);
+            FieldDependency dependency = builder.build();
+
+            if (dependency.constantFields.isEmpty() && dependency.dependentFields.isEmpty()) {
+                return UNKNOWN;
+            }
+
+            ImmutableSet.Builder<String> writes = ImmutableSet.builder();
+            dependency.constantFields.forEach(field -> writes.add(field.getName()));
+            dependency.dependentFields.values().forEach(list -> list.forEach(field -> writes.add(field.getName())));
+            Set<String> writeSet = writes.build();
+
+            return new MapperFields(ImmutableSet.<String>builder()
+                    .addAll(dependency.dependentFields.keySet()).addAll(writeSet).build(), writeSet);
+        }
+
+        boolean conflicts(MapperFields other)
+        {
+            if (this == UNKNOWN || other == UNKNOWN) {
+                return true;
+            }
+
+            return writes.stream().anyMatch(other.reads::contains) || other.writes.stream().anyMatch(reads::contains);
+        }
+    }
+
+    private static class MapperTask
+            extends RecursiveTask<List<Cookie>>
+    {
+        private final Function<HttpHeaders, List<Cookie>> function;
+        private final HttpHeaders headers = new DefaultHttpHeaders();
+        // kept as is because the fork-join pool wraps the exceptions that are thrown in another worker
+        private Throwable exception;
+
+        private MapperTask(Function<HttpHeaders, List<Cookie>> function)
+        {
+            this.function = function;
+        }
+
+        @Override
+        protected List<Cookie> compute()
+        {
+            try {
+                return function.apply(headers);
+            }
+            catch (Throwable e) {
+                exception = e;
+                return null;
+            }
+        }
+    }
+}
@@ -0,0 +1,37 @@
+package org.rakam.collection;
+
+import io.airlift.configuration.Config;
+import io.airlift.configuration.ConfigDescription;
+
+public class EventMapperExecutorConfig
+{
+    private int threads = Runtime.getRuntime().availableProcessors();
+    private int batchChunkSize = 500;
+
+    @Config("collection.mapper.threads")
+    @ConfigDescription("The number of threads that execute the event mappers, " +
+            "0 runs the mappers one by one in the thread that handles the request.")
+    public EventMapperExecutorConfig setThreads(int threads)
+    {
+        this.threads = threads;
+        return this;
+    }
+
+    public int getThreads()
+    {
+        return threads;
+    }
+
+    @Config("collection.mapper.batch-chunk-size")
+    @ConfigDescription("Batch requests are split into chunks of this size and the chunks are mapped concurrently.")
+    public EventMapperExecutorConfig setBatchChunkSize(int batchChunkSize)
+    {
+        this.batchChunkSize = batchChunkSize;
+        return this;
+    }
+
+    public int getBatchChunkSize()
+    {
+        return batchChunkSize;
+    }
+}
@@ -0,0 +1,41 @@
+package org.rakam.collection;
+
+import java.util.Locale;
+
+/**
+ * The formats of the bodies that /event/collect and /event/batch accept, the format is negotiated with the
+ * Content-Type header of the request.
+ */
+public enum EventPayloadFormat
+{
+    JSON, MSGPACK, PROTOBUF;
+
+    public static EventPayloadFormat fromContentType(String contentType)
+    {
+        if (contentType == null) {
+            return JSON;
+        }
+
+        int parameters = contentType.indexOf(';');
+        String mediaType = parameters == -1 ? contentType : contentType.substring(0, parameters);
+
+        switch (mediaType.trim().toLowerCase(Locale.ENGLISH)) {
+            case "application/msgpack":
+            case "application/x-msgpack":
+            case "application/vnd.msgpack":
+                return MSGPACK;
+            case "application/protobuf":
+            case "application/x-protobuf":
+            case "application/vnd.google.protobuf":
+                return PROTOBUF;
+            default:
+                // the SDKs may send the JSON bodies as text/plain in order to avoid the preflight requests
+                return JSON;
+        }
+    }
+
+    public boolean isBinary()
+    {
+        return this != JSON;
+    }
+}
@@ -0,0 +1,698 @@
+package org.rakam.collection;
+
+import com.google.common.base.Throwables;
+import io.airlift.log.Logger;
+import org.apache.avro.Schema;
+import org.apache.avro.generic.GenericDatumReader;
+import org.apache.avro.generic.GenericDatumWriter;
+import org.apache.avro.generic.GenericRecord;
+import org.apache.avro.io.BinaryDecoder;
+import org.apache.avro.io.BinaryEncoder;
+import org.apache.avro.io.DecoderFactory;
+import org.apache.avro.io.EncoderFactory;
+import org.rakam.collection.Event.EventContext;
+import org.rakam.util.JsonHelper;
+import org.rakam.util.RakamException;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkState;
+import static io.netty.handler.codec.http.HttpResponseStatus.SERVICE_UNAVAILABLE;
+import static java.lang.String.format;
+
+/**
+ * Append-only log of the collected events on local disk.
+ * <p>
+ * The log is split into fixed size segments that are memory-mapped. Each record is
+ * [int length][int crc32][payload] and the payload is either an Avro schema (together with the field list of
+ * the collection) or an event encoded with one of the schemas that are written before it in the same segment.
+ * The events are stored with their context since the event stores may use it.
+ * {@link #append(List)} returns after the events are forced to the disk, concurrent appends share a single force call.
+ * Either all the events of an append are written or none of them.
+ * <p>
+ * There is a single consumer that reads the events with {@link #poll(int, long, TimeUnit)} and acknowledges them with
+ * {@link #commit()}. The read position is stored in a checkpoint file and the segments before it are deleted,
+ * the events after the checkpoint are read again when the spool is opened so the delivery is at-least-once.
+ * The events that can't be delivered are moved to the dead-letter file with {@link #deadLetter(List)}.
+ */
+public class EventSpool
+        implements Closeable
+{
+    private final static Logger LOGGER = Logger.get(EventSpool.class);
+
+    private static final int MAGIC = 0x5253504C;
+    private static final int VERSION = 1;
+    private static final int SEGMENT_HEADER_SIZE = 8;
+    private static final int RECORD_HEADER_SIZE = 8;
+    private static final byte SCHEMA_RECORD = 1;
+    private static final byte EVENT_RECORD = 2;
+    private static final String SEGMENT_SUFFIX = ".spool";
+    private static final String CHECKPOINT_FILE = "checkpoint";
+    private static final String DEAD_LETTER_FILE = "dead-letter.json";
+
+    private final File directory;
+    private final int segmentSize;
+    private final long maxSize;
+    private final FileChannel checkpointChannel;
+    private final NavigableMap<Integer, Segment> segments = new ConcurrentSkipListMap<>();
+
+    // the positions are (segment id << 32 | offset in the segment) so that they can be compared
+    private volatile long committedPosition;
+    private volatile long checkpoint;
+    private final Object syncLock = new Object();
+    private final Object readLock = new Object();
+
+    // guarded by this
+    private Segment writeSegment;
+    private int writeOffset;
+    private int nextSchemaId;
+    private final Map<Schema, WriteSchema> writeSchemas = new HashMap<>();
+    private BinaryEncoder encoder;
+    private boolean closed;
+
+    // used only by the consumer
+    private long readPosition;
+    private final Map<Integer, ReadSchema> readSchemas = new HashMap<>();
+    private BinaryDecoder decoder;
+
+    public EventSpool(File directory, long segmentSize, long maxSize)
+            throws IOException
+    {
+        checkArgument(segmentSize >= 1024 && segmentSize <= Integer.MAX_VALUE, "segment size must be between 1KB and 2GB");
+        this.directory = directory;
+        this.segmentSize = (int) segmentSize;
+        this.maxSize = maxSize;
+
+        if (!directory.exists() && !directory.mkdirs()) {
+            throw new IOException(format("Couldn't create spool directory %s", directory));
+        }
+
+        File[] files = directory.listFiles((dir, name) -> name.matches("[0-9]+\\" + SEGMENT_SUFFIX));
+        for (File file : files) {
+            int id = Integer.parseInt(file.getName().substring(0, file.getName().length() - SEGMENT_SUFFIX.length()));
+            Segment segment = openSegment(id, false);
+            // the segments of the previous run are not appended anymore
+            segment.end = scanSegment(segment);
+            segments.put(id, segment);
+        }
+
+        checkpointChannel = new RandomAccessFile(new File(directory, CHECKPOINT_FILE), "rw").getChannel();
+        long storedCheckpoint = 0;
+        if (checkpointChannel.size() >= 8) {
+            ByteBuffer buffer = ByteBuffer.allocate(8);
+            checkpointChannel.read(buffer, 0);
+            storedCheckpoint = buffer.getLong(0);
+        }
+
+        writeSegment = openSegment(segments.isEmpty() ? segmentId(storedCheckpoint) : segments.lastKey() + 1, true);
+        writeOffset = SEGMENT_HEADER_SIZE;
+        segments.put(writeSegment.id, writeSegment);
+        committedPosition = position(writeSegment.id, writeOffset);
+
+        for (Segment segment : new ArrayList<>(segments.headMap(segmentId(storedCheckpoint)).values())) {
+            deleteSegment(segment);
+        }
+
+        int firstSegment = segments.firstKey();
+        readPosition = segmentId(storedCheckpoint) < firstSegment ?
+                position(firstSegment, SEGMENT_HEADER_SIZE) : Math.max(storedCheckpoint, position(firstSegment, SEGMENT_HEADER_SIZE));
+        checkpoint = readPosition;
+        loadSchemas(segments.get(segmentId(readPosition)), offset(readPosition));
+
+        if (readPosition < position(writeSegment.id, SEGMENT_HEADER_SIZE)) {
+            LOGGER.info("Replaying %d segments of the event spool in %s", writeSegment.id - segmentId(readPosition), directory);
+        }
+    }
+
+    /**
+     * Writes the events to the spool and returns after they're written to the disk. If any of the events can't be
+     * written, none of them are written.
+     */
+    public void append(List<Event> events)
+    {
+        long position;
+        synchronized (this) {
+            checkState(!closed, "spool is closed");
+
+            if (segments.size() * (long) segmentSize > maxSize) {
+                throw new RakamException("Event spool is full", SERVICE_UNAVAILABLE);
+            }
+
+            // the events are encoded before writing them so that an invalid event doesn't leave the others written
+            List<EncodedEvent> encodedEvents = new ArrayList<>(events.size());
+            for (Event event : events) {
+                encodedEvents.add(encode(event));
+            }
+
+            Segment startSegment = writeSegment;
+            int startOffset = writeOffset;
+            List<WriteSchema> writtenSchemas = new ArrayList<>();
+            try {
+                for (EncodedEvent event : encodedEvents) {
+                    writeEvent(event, writtenSchemas);
+                }
+            }
+            catch (RuntimeException e) {
+                rollback(startSegment, startOffset, writtenSchemas);
+                throw e;
+            }
+
+            position = position(writeSegment.id, writeOffset);
+        }
+
+        sync(position);
+    }
+
+    private EncodedEvent encode(Event event)
+    {
+        Schema schema = event.properties().getSchema();
+        WriteSchema writeSchema = writeSchemas.get(schema);
+        if (writeSchema == null || !Objects.equals(writeSchema.fields, event.schema())) {
+            writeSchema = new WriteSchema(nextSchemaId++, schema, event.schema());
+            writeSchemas.put(schema, writeSchema);
+        }
+
+        RecordBuffer buffer = new RecordBuffer();
+        buffer.write(EVENT_RECORD);
+        buffer.writeInt(writeSchema.id);
+        buffer.writeString(event.project());
+        buffer.writeString(event.collection());
+        // the mapping plugins are applied before the events are stored so they're not kept
+        EventContext api = event.api();
+        buffer.writeString(api == null ? "" : JsonHelper.encode(new EventContext(api.apiKey, api.library,
+                api.apiVersion, api.uploadTime, api.checksum, null)));
+        encoder = EncoderFactory.get().directBinaryEncoder(buffer, encoder);
+        try {
+            writeSchema.writer.write(event.properties(), encoder);
+        }
+        catch (IOException e) {
+            throw Throwables.propagate(e);
+        }
+
+        if (SEGMENT_HEADER_SIZE + RECORD_HEADER_SIZE * 2 + writeSchema.payload.length + buffer.size() > segmentSize) {
+            throw new IllegalArgumentException("Event is too large for the spool");
+        }
+
+        return new EncodedEvent(writeSchema, buffer.toByteArray());
+    }
+
+    private void writeEvent(EncodedEvent event, List<WriteSchema> writtenSchemas)
+    {
+        WriteSchema writeSchema = event.schema;
+        int required = RECORD_HEADER_SIZE + event.payload.length;
+        if (writeSchema.segment != writeSegment.id) {
+            required += RECORD_HEADER_SIZE + writeSchema.payload.length;
+        }
+
+        if (writeOffset + required > segmentSize) {
+            rollSegment();
+        }
+
+        if (writeSchema.segment != writeSegment.id) {
+            writeRecord(writeSchema.payload, writeSchema.payload.length);
+            writeSchema.segment = writeSegment.id;
+            writtenSchemas.add(writeSchema);
+        }
+        writeRecord(event.payload, event.payload.length);
+    }
+
+    /**
+     * Discards the records that are written after the given position. The records are not visible to the consumer
+     * until they're synced, so it's enough to remove the new segments and mark the end of the records.
+     */
+    private void rollback(Segment startSegment, int startOffset, List<WriteSchema> writtenSchemas)
+    {
+        for (Segment segment : new ArrayList<>(segments.tailMap(startSegment.id, false).values())) {
+            deleteSegment(segment);
+        }
+
+        writeSegment = startSegment;
+        writeOffset = startOffset;
+        if (startOffset + RECORD_HEADER_SIZE <= segmentSize) {
+            // the records after the offset are not read when the segment is scanned after a restart
+            startSegment.buffer.putInt(startOffset, 0);
+        }
+        startSegment.buffer.force();
+
+        // the schemas are written again with the next events that use them
+        for (WriteSchema writeSchema : writtenSchemas) {
+            writeSchema.segment = -1;
+        }
+    }
+
+    private void writeRecord(byte[] payload, int length)
+    {
+        CRC32 crc = new CRC32();
+        crc.update(payload, 0, length);
+
+        MappedByteBuffer buffer = writeSegment.buffer;
+        buffer.putInt(writeOffset, length);
+        buffer.putInt(writeOffset + 4, (int) crc.getValue());
+        buffer.position(writeOffset + RECORD_HEADER_SIZE);
+        buffer.put(payload, 0, length);
+        writeOffset += RECORD_HEADER_SIZE + length;
+    }
+
+    private void rollSegment()
+    {
+        writeSegment.buffer.force();
+        writeSegment.end = writeOffset;
+
+        Segment segment;
+        try {
+            segment = openSegment(writeSegment.id + 1, true);
+        }
+        catch (IOException e) {
+            throw Throwables.propagate(e);
+        }
+
+        segments.put(segment.id, segment);
+        writeSegment = segment;
+        writeOffset = SEGMENT_HEADER_SIZE;
+    }
+
+    private void sync(long position)
+    {
+        if (committedPosition >= position) {
+            return;
+        }
+
+        synchronized (syncLock) {
+            // another thread may have already forced the segment while we're waiting for the lock
+            if (committedPosition >= position) {
+                return;
+            }
+
+            Segment segment;
+            long target;
+            synchronized (this) {
+                segment = writeSegment;
+                target = position(segment.id, writeOffset);
+            }
+
+            // the previous segments are forced when they're rolled
+            segment.buffer.force();
+            committedPosition = target;
+        }
+
+        synchronized (readLock) {
+            readLock.notifyAll();
+        }
+    }
+
+    /**
+     * Returns the events after the last returned event, the events in a batch always belong to the same project.
+     * The events must be passed to {@link #commit()} before calling this method again otherwise they're read
+     * again when the spool is opened next time.
+     */
+    public List<Event> poll(int maxEvents, long timeout, TimeUnit unit)
+            throws InterruptedException
+    {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        synchronized (readLock) {
+            while (readPosition >= committedPosition) {
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    return new ArrayList<>();
+                }
+                TimeUnit.NANOSECONDS.timedWait(readLock, remaining);
+            }
+        }
+
+        List<Event> events = new ArrayList<>();
+        String project = null;
+
+        while (events.size() < maxEvents) {
+            long committed = committedPosition;
+            if (readPosition >= committed) {
+                break;
+            }
+
+            int segmentId = segmentId(readPosition);
+            int offset = offset(readPosition);
+            Segment segment = segments.get(segmentId);
+            int limit = segmentId == segmentId(committed) ? offset(committed) : segment.end;
+
+            if (offset >= limit) {
+                readSchemas.clear();
+                readPosition = position(segments.higherKey(segmentId), SEGMENT_HEADER_SIZE);
+                continue;
+            }
+
+            ByteBuffer buffer = segment.buffer.duplicate();
+            int length = buffer.getInt(offset);
+            if (length <= 0 || offset + RECORD_HEADER_SIZE + length > limit || !checkCrc(buffer, offset, length)) {
+                LOGGER.error("Event spool segment %s is corrupted at offset %d, skipping the rest of the segment",
+                        segment.file, offset);
+                readPosition = position(segmentId, limit);
+                continue;
+            }
+
+            buffer.position(offset + RECORD_HEADER_SIZE);
+            if (buffer.get() == SCHEMA_RECORD) {
+                readSchema(buffer);
+            }
+            else {
+                ReadSchema schema = readSchemas.get(buffer.getInt());
+                if (schema == null) {
+                    LOGGER.error("Event spool segment %s has an event without schema at offset %d", segment.file, offset);
+                    readPosition = position(segmentId, offset + RECORD_HEADER_SIZE + length);
+                    continue;
+                }
+
+                String eventProject = readString(buffer);
+                if (project != null && !project.equals(eventProject)) {
+                    break;
+                }
+                project = eventProject;
+
+                try {
+                    events.add(readEvent(buffer, offset + RECORD_HEADER_SIZE + length, eventProject, schema));
+                }
+                catch (RuntimeException e) {
+                    LOGGER.error(e, "Couldn't read the event in spool segment %s at offset %d, skipping it", segment.file, offset);
+                }
+            }
+
+            readPosition = position(segmentId, offset + RECORD_HEADER_SIZE + length);
+        }
+
+        return events;
+    }
+
+    /**
+     * Returns the approximate size of the records that are written but not committed by the consumer yet.
+     */
+    public long getPendingBytes()
+    {
+        long end = committedPosition;
+        long start = checkpoint;
+        return Math.max(0, (segmentId(end) - segmentId(start)) * (long) segmentSize + offset(end) - offset(start));
+    }
+
+    /**
+     * Marks the events that are returned from {@link #poll(int, long, TimeUnit)} as processed.
+     */
+    public void commit()
+            throws IOException
+    {
+        long position = readPosition;
+        if (position == checkpoint) {
+            return;
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate(8);
+        buffer.putLong(0, position);
+        checkpointChannel.write(buffer, 0);
+        checkpointChannel.force(false);
+        checkpoint = position;
+
+        for (Segment segment : new ArrayList<>(segments.headMap(segmentId(position)).values())) {
+            deleteSegment(segment);
+        }
+    }
+
+    /**
+     * Appends the events to the dead-letter file in the spool directory as JSON lines, so they can be inspected and
+     * sent again after the consumer gives up delivering them.
+     */
+    public void deadLetter(List<Event> events)
+            throws IOException
+    {
+        StringBuilder builder = new StringBuilder();
+        for (Event event : events) {
+            // the properties are written in the JSON representation of Avro
+            builder.append("{\"project\":").append(JsonHelper.encode(event.project()))
+                    .append(",\"collection\":").append(JsonHelper.encode(event.collection()))
+                    .append(",\"api\":").append(JsonHelper.encode(event.api()))
+                    .append(",\"properties\":").append(event.properties())
+                    .append("}\n");
+        }
+
+        try (FileChannel channel = FileChannel.open(new File(directory, DEAD_LETTER_FILE).toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+            ByteBuffer buffer = ByteBuffer.wrap(builder.toString().getBytes(StandardCharsets.UTF_8));
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            channel.force(false);
+        }
+    }
+
+    @Override
+    public void close()
+            throws IOException
+    {
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            writeSegment.buffer.force();
+        }
+        checkpointChannel.close();
+    }
+
+    private Event readEvent(ByteBuffer buffer, int end, String project, ReadSchema schema)
+    {
+        String collection = readString(buffer);
+        String context = readString(buffer);
+        EventContext api = context.isEmpty() ? null : JsonHelper.read(context, EventContext.class);
+
+        byte[] bytes;
+        int offset;
+        int length = end - buffer.position();
+        if (buffer.hasArray()) {
+            bytes = buffer.array();
+            offset = buffer.arrayOffset() + buffer.position();
+        }
+        else {
+            bytes = new byte[length];
+            offset = 0;
+            buffer.get(bytes);
+        }
+
+        decoder = DecoderFactory.get().binaryDecoder(bytes, offset, length, decoder);
+        try {
+            GenericRecord record = schema.reader.read(null, decoder);
+            return new Event(project, collection, api, schema.fields, record);
+        }
+        catch (IOException e) {
+            throw Throwables.propagate(e);
+        }
+    }
+
+    private void readSchema(ByteBuffer buffer)
+    {
+        int id = buffer.getInt();
+        Schema schema = new Schema.Parser().parse(readString(buffer));
+        SchemaField[] fields = JsonHelper.read(readString(buffer).getBytes(StandardCharsets.UTF_8), SchemaField[].class);
+        readSchemas.put(id, new ReadSchema(schema, fields == null ? null : Arrays.asList(fields)));
+    }
+
+    private void loadSchemas(Segment segment, int end)
+    {
+        // the consumer starts from the middle of the segment, the schemas are written before the events that use them
+        ByteBuffer buffer = segment.buffer.duplicate();
+        int offset = SEGMENT_HEADER_SIZE;
+        while (offset < end) {
+            int length = buffer.getInt(offset);
+            buffer.position(offset + RECORD_HEADER_SIZE);
+            if (buffer.get() == SCHEMA_RECORD) {
+                readSchema(buffer);
+            }
+            offset += RECORD_HEADER_SIZE + length;
+        }
+    }
+
+    private Segment openSegment(int id, boolean create)
+            throws IOException
+    {
+        File file = new File(directory, format("%010d%s", id, SEGMENT_SUFFIX));
+        MappedByteBuffer buffer;
+        try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw")) {
+            if (create) {
+                randomAccessFile.setLength(segmentSize);
+            }
+            FileChannel channel = randomAccessFile.getChannel();
+            buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, channel.size());
+        }
+
+        if (create) {
+            buffer.putInt(0, MAGIC);
+            buffer.putInt(4, VERSION);
+        }
+
+        return new Segment(id, file, buffer);
+    }
+
+    private int scanSegment(Segment segment)
+    {
+        ByteBuffer buffer = segment.buffer.duplicate();
+        int capacity = buffer.capacity();
+        if (capacity < SEGMENT_HEADER_SIZE || buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION) {
+            LOGGER.warn("Ignoring invalid event spool segment %s", segment.file);
+            return SEGMENT_HEADER_SIZE;
+        }
+
+        int offset = SEGMENT_HEADER_SIZE;
+        while (offset + RECORD_HEADER_SIZE <= capacity) {
+            int length = buffer.getInt(offset);
+            if (length <= 0 || offset + RECORD_HEADER_SIZE + length > capacity || !checkCrc(buffer, offset, length)) {
+                break;
+            }
+            offset += RECORD_HEADER_SIZE + length;
+        }
+
+        return offset;
+    }
+
+    private void deleteSegment(Segment segment)
+    {
+        segments.remove(segment.id);
+        if (!segment.file.delete()) {
+            LOGGER.warn("Couldn't delete event spool segment %s", segment.file);
+        }
+    }
+
+    private static boolean checkCrc(ByteBuffer buffer, int offset, int length)
+    {
+        ByteBuffer payload = buffer.duplicate();
+        payload.limit(offset + RECORD_HEADER_SIZE + length);
+        payload.position(offset + RECORD_HEADER_SIZE);
+
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+        return (int) crc.getValue() == buffer.getInt(offset + 4);
+    }
+
+    private static String readString(ByteBuffer buffer)
+    {
+        byte[] bytes = new byte[buffer.getInt()];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static long position(int segmentId, int offset)
+    {
+        return ((long) segmentId << 32) | offset;
+    }
+
+    private static int segmentId(long position)
+    {
+        return (int) (position >>> 32);
+    }
+
+    private static int offset(long position)
+    {
+        return (int) position;
+    }
+
+    private static class Segment
+    {
+        private final int id;
+        private final File file;
+        private final MappedByteBuffer buffer;
+        // the end offset of the records, it's set when the segment is not appended anymore
+        private volatile int end;
+
+        private Segment(int id, File file, MappedByteBuffer buffer)
+        {
+            this.id = id;
+            this.file = file;
+            this.buffer = buffer;
+        }
+    }
+
+    private static class EncodedEvent
+    {
+        private final WriteSchema schema;
+        private final byte[] payload;
+
+        private EncodedEvent(WriteSchema schema, byte[] payload)
+        {
+            this.schema = schema;
+            this.payload = payload;
+        }
+    }
+
+    private static class WriteSchema
+    {
+        private final int id;
+        private final List<SchemaField> fields;
+        private final GenericDatumWriter<GenericRecord> writer;
+        private final byte[] payload;
+        // the last segment that has the schema record
+        private int segment = -1;
+
+        private WriteSchema(int id, Schema schema, List<SchemaField> fields)
+        {
+            this.id = id;
+            this.fields = fields;
+            this.writer = new GenericDatumWriter<>(schema);
+
+            RecordBuffer buffer = new RecordBuffer();
+            buffer.write(SCHEMA_RECORD);
+            buffer.writeInt(id);
+            buffer.writeString(schema.toString());
+            buffer.writeString(JsonHelper.encode(fields));
+            this.payload = buffer.toByteArray();
+        }
+    }
+
+    private static class ReadSchema
+    {
+        private final List<SchemaField> fields;
+        private final GenericDatumReader<GenericRecord> reader;
+
+        private ReadSchema(Schema schema, List<SchemaField> fields)
+        {
+            this.fields = fields;
+            this.reader = new GenericDatumReader<>(schema);
+        }
+    }
+
+    private static class RecordBuffer
+            extends ByteArrayOutputStream
+    {
+        private RecordBuffer()
+        {
+            super(512);
+        }
+
+        private void writeInt(int value)
+        {
+            write(value >>> 24);
+            write(value >>> 16);
+            write(value >>> 8);
+            write(value);
+        }
+
+        private void writeString(String value)
+        {
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            writeInt(bytes.length);
+            write(bytes, 0, bytes.length);
+        }
+    }
+}
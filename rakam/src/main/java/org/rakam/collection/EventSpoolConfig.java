@@ -0,0 +1,95 @@
+package org.rakam.collection;
+
+import io.airlift.configuration.Config;
+import io.airlift.configuration.ConfigDescription;
+import io.airlift.units.DataSize;
+
+import javax.validation.constraints.Min;
+
+public class EventSpoolConfig
+{
+    private boolean enabled;
+    private String directory = "data/spool";
+    private DataSize segmentSize = new DataSize(64, DataSize.Unit.MEGABYTE);
+    private DataSize maxSize = new DataSize(4, DataSize.Unit.GIGABYTE);
+    private int drainBatchSize = 5000;
+    private int maxAttempts = 10;
+
+    @Config("collection.spool.enabled")
+    @ConfigDescription("Write the collected events to a local spool before acknowledging them " +
+            "and move them to the event store in background.")
+    public EventSpoolConfig setEnabled(boolean enabled)
+    {
+        this.enabled = enabled;
+        return this;
+    }
+
+    public boolean getEnabled()
+    {
+        return enabled;
+    }
+
+    @Config("collection.spool.directory")
+    public EventSpoolConfig setDirectory(String directory)
+    {
+        this.directory = directory;
+        return this;
+    }
+
+    public String getDirectory()
+    {
+        return directory;
+    }
+
+    @Config("collection.spool.segment-size")
+    public EventSpoolConfig setSegmentSize(String segmentSize)
+    {
+        this.segmentSize = DataSize.valueOf(segmentSize);
+        return this;
+    }
+
+    public DataSize getSegmentSize()
+    {
+        return segmentSize;
+    }
+
+    @Config("collection.spool.max-size")
+    @ConfigDescription("The events are rejected with 503 when the events that are not moved to the event store exceed this size.")
+    public EventSpoolConfig setMaxSize(String maxSize)
+    {
+        this.maxSize = DataSize.valueOf(maxSize);
+        return this;
+    }
+
+    public DataSize getMaxSize()
+    {
+        return maxSize;
+    }
+
+    @Config("collection.spool.drain-batch-size")
+    public EventSpoolConfig setDrainBatchSize(int drainBatchSize)
+    {
+        this.drainBatchSize = drainBatchSize;
+        return this;
+    }
+
+    public int getDrainBatchSize()
+    {
+        return drainBatchSize;
+    }
+
+    @Config("collection.spool.max-attempts")
+    @ConfigDescription("The events that can't be moved to the event store after this many attempts are written to " +
+            "the dead-letter file in the spool directory.")
+    public EventSpoolConfig setMaxAttempts(int maxAttempts)
+    {
+        this.maxAttempts = maxAttempts;
+        return this;
+    }
+
+    @Min(1)
+    public int getMaxAttempts()
+    {
+        return maxAttempts;
+    }
+}
@@ -0,0 +1,15 @@
+package org.rakam.collection;
+
+import com.google.inject.BindingAnnotation;
+
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+
+/**
+ * The {@link org.rakam.plugin.EventStore} that the collection endpoints write to, it wraps the event store of the
+ * deployment with the spool, the metrics and the event counter.
+ */
+@BindingAnnotation
+@Retention(RetentionPolicy.RUNTIME)
+public @interface ForCollection {
+}
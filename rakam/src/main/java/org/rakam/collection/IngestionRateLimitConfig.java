@@ -0,0 +1,160 @@
+package org.rakam.collection;
+
+import io.airlift.configuration.Config;
+import io.airlift.configuration.ConfigDescription;
+import io.airlift.units.DataSize;
+import io.airlift.units.Duration;
+
+public class IngestionRateLimitConfig
+{
+    private boolean enabled;
+    private double projectEventsPerSecond = 5000;
+    private DataSize projectBytesPerSecond = new DataSize(10, DataSize.Unit.MEGABYTE);
+    private double keyEventsPerSecond = 2000;
+    private DataSize keyBytesPerSecond = new DataSize(4, DataSize.Unit.MEGABYTE);
+    private Duration burst = Duration.valueOf("5s");
+    private int maxPendingRequests = 1000;
+    private double throttleThreshold = 0.5;
+    private double minBudgetRatio = 0.1;
+    private boolean shared;
+    private int nodes = 1;
+
+    @Config("collection.rate-limit.enabled")
+    @ConfigDescription("Rejects the collection requests with 429 when a project or an api key exceeds its budget.")
+    public IngestionRateLimitConfig setEnabled(boolean enabled)
+    {
+        this.enabled = enabled;
+        return this;
+    }
+
+    public boolean getEnabled()
+    {
+        return enabled;
+    }
+
+    @Config("collection.rate-limit.project-events-per-second")
+    public IngestionRateLimitConfig setProjectEventsPerSecond(double projectEventsPerSecond)
+    {
+        this.projectEventsPerSecond = projectEventsPerSecond;
+        return this;
+    }
+
+    public double getProjectEventsPerSecond()
+    {
+        return projectEventsPerSecond;
+    }
+
+    @Config("collection.rate-limit.project-bytes-per-second")
+    public IngestionRateLimitConfig setProjectBytesPerSecond(String projectBytesPerSecond)
+    {
+        this.projectBytesPerSecond = DataSize.valueOf(projectBytesPerSecond);
+        return this;
+    }
+
+    public DataSize getProjectBytesPerSecond()
+    {
+        return projectBytesPerSecond;
+    }
+
+    @Config("collection.rate-limit.key-events-per-second")
+    public IngestionRateLimitConfig setKeyEventsPerSecond(double keyEventsPerSecond)
+    {
+        this.keyEventsPerSecond = keyEventsPerSecond;
+        return this;
+    }
+
+    public double getKeyEventsPerSecond()
+    {
+        return keyEventsPerSecond;
+    }
+
+    @Config("collection.rate-limit.key-bytes-per-second")
+    public IngestionRateLimitConfig setKeyBytesPerSecond(String keyBytesPerSecond)
+    {
+        this.keyBytesPerSecond = DataSize.valueOf(keyBytesPerSecond);
+        return this;
+    }
+
+    public DataSize getKeyBytesPerSecond()
+    {
+        return keyBytesPerSecond;
+    }
+
+    @Config("collection.rate-limit.burst")
+    @ConfigDescription("The budget that is not used is saved up to this duration so that short bursts are accepted.")
+    public IngestionRateLimitConfig setBurst(String burst)
+    {
+        this.burst = Duration.valueOf(burst);
+        return this;
+    }
+
+    public Duration getBurst()
+    {
+        return burst;
+    }
+
+    @Config("collection.rate-limit.max-pending-requests")
+    @ConfigDescription("The number of requests waiting for the event store that is considered as a full queue " +
+            "when the spool is not enabled.")
+    public IngestionRateLimitConfig setMaxPendingRequests(int maxPendingRequests)
+    {
+        this.maxPendingRequests = maxPendingRequests;
+        return this;
+    }
+
+    public int getMaxPendingRequests()
+    {
+        return maxPendingRequests;
+    }
+
+    @Config("collection.rate-limit.throttle-threshold")
+    @ConfigDescription("The budgets are reduced when the queue of the event store is fuller than this ratio.")
+    public IngestionRateLimitConfig setThrottleThreshold(double throttleThreshold)
+    {
+        this.throttleThreshold = throttleThreshold;
+        return this;
+    }
+
+    public double getThrottleThreshold()
+    {
+        return throttleThreshold;
+    }
+
+    @Config("collection.rate-limit.min-budget-ratio")
+    @ConfigDescription("The ratio of the budgets that is left when the queue of the event store is full.")
+    public IngestionRateLimitConfig setMinBudgetRatio(double minBudgetRatio)
+    {
+        this.minBudgetRatio = minBudgetRatio;
+        return this;
+    }
+
+    public double getMinBudgetRatio()
+    {
+        return minBudgetRatio;
+    }
+
+    @Config("collection.rate-limit.shared")
+    @ConfigDescription("The budgets are shared by all the nodes of the cluster, each node enforces its share of them.")
+    public IngestionRateLimitConfig setShared(boolean shared)
+    {
+        this.shared = shared;
+        return this;
+    }
+
+    public boolean getShared()
+    {
+        return shared;
+    }
+
+    @Config("collection.rate-limit.nodes")
+    public IngestionRateLimitConfig setNodes(int nodes)
+    {
+        this.nodes = nodes;
+        return this;
+    }
+
+    public int getNodes()
+    {
+        return nodes;
+    }
+}
@@ -0,0 +1,332 @@
+package org.rakam.collection;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Ticker;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import io.netty.handler.codec.http.HttpHeaders;
+import org.rakam.analysis.ApiKeyService;
+import org.rakam.analysis.ApiKeyService.AccessKeyType;
+import org.rakam.util.RakamException;
+
+import javax.inject.Inject;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.DoubleSupplier;
+
+/**
+ * Token bucket rate limiter for the collection endpoints. Each project and each api key has a budget of events and
+ * bytes per second, the requests that exceed any of them are rejected before the body is deserialized.
+ * The budgets are reduced when the queue of the event store fills up so that the clients back off before the
+ * event store falls behind.
+ * <p>
+ * The number of events in a batch is not known until the body is deserialized, so the requests are accepted if the
+ * budget is not exhausted and the rest of the events are charged with {@link Ticket#recordEvents(int)}. The budget
+ * may become negative in that case and the following requests are rejected until it's refilled.
+ */
+public class IngestionRateLimiter
+{
+    private static final JsonFactory JSON_FACTORY = new JsonFactory();
+
+    private final boolean enabled;
+    private final ApiKeyService apiKeyService;
+    private final DoubleSupplier queueUtilization;
+    private final Ticker ticker;
+    private final IngestionRateLimitConfig config;
+    private final double burstSeconds;
+    private final LoadingCache<String, Budget> projectBudgets;
+    private final LoadingCache<String, Budget> keyBudgets;
+
+    @Inject
+    public IngestionRateLimiter(IngestionRateLimitConfig config, ApiKeyService apiKeyService, CollectionEventStoreProvider eventStore)
+    {
+        this(config, apiKeyService, eventStore::getQueueUtilization);
+    }
+
+    public IngestionRateLimiter(IngestionRateLimitConfig config, ApiKeyService apiKeyService, DoubleSupplier queueUtilization)
+    {
+        this(config, apiKeyService, queueUtilization, Ticker.systemTicker());
+    }
+
+    @VisibleForTesting
+    public IngestionRateLimiter(IngestionRateLimitConfig config, ApiKeyService apiKeyService, DoubleSupplier queueUtilization, Ticker ticker)
+    {
+        this.enabled = config.getEnabled();
+        this.config = config;
+        this.apiKeyService = apiKeyService;
+        this.queueUtilization = queueUtilization;
+        this.ticker = ticker;
+        this.burstSeconds = config.getBurst().getValue(TimeUnit.SECONDS);
+
+        CacheLoader<String, Budget> loader = CacheLoader.from(key -> new Budget());
+        this.projectBudgets = CacheBuilder.newBuilder().expireAfterAccess(10, TimeUnit.MINUTES).build(loader);
+        this.keyBudgets = CacheBuilder.newBuilder().expireAfterAccess(10, TimeUnit.MINUTES).build(loader);
+    }
+
+    /**
+     * Charges one event and the size of the body to the budgets of the api key of the request and its project.
+     * The size is the number of bytes that are received, not the size of the decompressed body.
+     * The requests whose api keys are missing or invalid are not limited, they're rejected when the body is
+     * deserialized.
+     */
+    public Ticket acquire(Map<String, List<String>> params, HttpHeaders headers, long bodySize, String body, AccessKeyType type)
+    {
+        return acquire(params, headers, bodySize, () -> JSON_FACTORY.createParser(body), type);
+    }
+
+    /**
+     * Same as {@link #acquire(Map, HttpHeaders, long, String, AccessKeyType)} for the bodies that are not JSON, the
+     * api key is looked up in the tokens of the parser.
+     */
+    public Ticket acquire(Map<String, List<String>> params, HttpHeaders headers, long bodySize, BodyParser body, AccessKeyType type)
+    {
+        if (!enabled) {
+            return Ticket.UNLIMITED;
+        }
+
+        String apiKey = findApiKey(params, headers, body, type);
+        if (apiKey == null) {
+            return Ticket.UNLIMITED;
+        }
+
+        String project;
+        try {
+            project = apiKeyService.getProjectOfApiKey(apiKey, type);
+        }
+        catch (RakamException e) {
+            return Ticket.UNLIMITED;
+        }
+
+        return acquire(project, apiKey, bodySize);
+    }
+
+    @VisibleForTesting
+    public Ticket acquire(String project, String apiKey, long bytes)
+    {
+        double factor = getBudgetFactor();
+        Budget projectBudget = projectBudgets.getUnchecked(project);
+        Budget keyBudget = keyBudgets.getUnchecked(apiKey);
+
+        double projectEventRate = config.getProjectEventsPerSecond() * factor;
+        double projectByteRate = config.getProjectBytesPerSecond().toBytes() * factor;
+        double keyEventRate = config.getKeyEventsPerSecond() * factor;
+        double keyByteRate = config.getKeyBytesPerSecond().toBytes() * factor;
+
+        // each budget is consumed in the same step it's checked and the consumed ones are refunded if any of them is
+        // exhausted, so the concurrent requests can't all pass the check before one of them consumes the budget
+        long now = ticker.read();
+        long projectEventWait = projectBudget.events.tryConsume(1, projectEventRate, now);
+        long projectByteWait = projectBudget.bytes.tryConsume(bytes, projectByteRate, now);
+        long keyEventWait = keyBudget.events.tryConsume(1, keyEventRate, now);
+        long keyByteWait = keyBudget.bytes.tryConsume(bytes, keyByteRate, now);
+
+        long waitNanos = Math.max(Math.max(projectEventWait, projectByteWait), Math.max(keyEventWait, keyByteWait));
+        if (waitNanos > 0) {
+            if (projectEventWait == 0) {
+                projectBudget.events.refund(1, projectEventRate);
+            }
+            if (projectByteWait == 0) {
+                projectBudget.bytes.refund(bytes, projectByteRate);
+            }
+            if (keyEventWait == 0) {
+                keyBudget.events.refund(1, keyEventRate);
+            }
+            if (keyByteWait == 0) {
+                keyBudget.bytes.refund(bytes, keyByteRate);
+            }
+            return new Ticket(TimeUnit.NANOSECONDS.toSeconds(waitNanos - 1) + 1);
+        }
+
+        return new Ticket(0)
+        {
+            @Override
+            public void recordEvents(int events)
+            {
+                if (events > 1) {
+                    long time = ticker.read();
+                    projectBudget.events.consume(events - 1, projectEventRate, time);
+                    keyBudget.events.consume(events - 1, keyEventRate, time);
+                }
+            }
+        };
+    }
+
+    private double getBudgetFactor()
+    {
+        double factor = 1;
+        double utilization = queueUtilization.getAsDouble();
+        double threshold = config.getThrottleThreshold();
+        if (utilization > threshold) {
+            double overload = Math.min(1, (utilization - threshold) / (1 - threshold));
+            factor = Math.max(config.getMinBudgetRatio(), 1 - overload * (1 - config.getMinBudgetRatio()));
+        }
+
+        if (config.getShared()) {
+            factor /= Math.max(1, config.getNodes());
+        }
+
+        return factor;
+    }
+
+    private static String findApiKey(Map<String, List<String>> params, HttpHeaders headers, BodyParser body, AccessKeyType type)
+    {
+        List<String> param = params.get(type.getKey());
+        if (param != null && !param.isEmpty()) {
+            return param.get(param.size() - 1);
+        }
+
+        String header = headers.get(type.getKey());
+        if (header != null) {
+            return header;
+        }
+
+        return findApiKey(body);
+    }
+
+    /**
+     * Finds the api key in the api context of the body by only tokenizing it, the properties of the events are
+     * skipped without being parsed.
+     */
+    @VisibleForTesting
+    public static String findApiKey(String body)
+    {
+        return findApiKey(() -> JSON_FACTORY.createParser(body));
+    }
+
+    private static String findApiKey(BodyParser body)
+    {
+        try (JsonParser parser = body.createParser()) {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                return null;
+            }
+
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String field = parser.getCurrentName();
+                JsonToken token = parser.nextToken();
+                if (!field.equals("api") || token != JsonToken.START_OBJECT) {
+                    parser.skipChildren();
+                    continue;
+                }
+
+                String writeKey = null;
+                while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                    String apiField = parser.getCurrentName();
+                    JsonToken value = parser.nextToken();
+                    if (value == JsonToken.VALUE_STRING) {
+                        if (apiField.equals("api_key")) {
+                            return parser.getText();
+                        }
+                        if (apiField.equals("writeKey")) {
+                            writeKey = parser.getText();
+                        }
+                    }
+                    parser.skipChildren();
+                }
+                return writeKey;
+            }
+        }
+        catch (IOException e) {
+            // the body is not valid, it's rejected when it's deserialized
+        }
+
+        return null;
+    }
+
+    public interface BodyParser
+    {
+        JsonParser createParser()
+                throws IOException;
+    }
+
+    public static class Ticket
+    {
+        private static final Ticket UNLIMITED = new Ticket(0);
+
+        private final long retryAfterSeconds;
+
+        private Ticket(long retryAfterSeconds)
+        {
+            this.retryAfterSeconds = retryAfterSeconds;
+        }
+
+        public boolean isRejected()
+        {
+            return retryAfterSeconds > 0;
+        }
+
+        public long getRetryAfterSeconds()
+        {
+            return retryAfterSeconds;
+        }
+
+        /**
+         * Charges the events of the request that are not charged when the request is accepted.
+         */
+        public void recordEvents(int events)
+        {
+        }
+    }
+
+    private class Budget
+    {
+        private final TokenBucket events = new TokenBucket(ticker.read());
+        private final TokenBucket bytes = new TokenBucket(ticker.read());
+    }
+
+    private class TokenBucket
+    {
+        private double tokens = Double.NaN;
+        private long lastRefill;
+
+        private TokenBucket(long now)
+        {
+            this.lastRefill = now;
+        }
+
+        private void refill(double rate, long now)
+        {
+            double capacity = rate * burstSeconds;
+            if (Double.isNaN(tokens)) {
+                tokens = capacity;
+            }
+            else {
+                tokens = Math.min(capacity, tokens + (now - lastRefill) * rate / TimeUnit.SECONDS.toNanos(1));
+            }
+            lastRefill = now;
+        }
+
+        /**
+         * Consumes the amount and returns 0 if the bucket has enough tokens, returns the time until it has them
+         * otherwise. The requests that are larger than the capacity of the bucket are accepted when the bucket is
+         * full so that they don't wait forever.
+         */
+        synchronized long tryConsume(double amount, double rate, long now)
+        {
+            refill(rate, now);
+            double required = Math.min(amount, rate * burstSeconds);
+            if (tokens >= required) {
+                tokens -= amount;
+                return 0;
+            }
+            return Math.max(1, (long) Math.ceil((required - tokens) / rate * TimeUnit.SECONDS.toNanos(1)));
+        }
+
+        synchronized void refund(double amount, double rate)
+        {
+            tokens = Math.min(rate * burstSeconds, tokens + amount);
+        }
+
+        synchronized void consume(double amount, double rate, long now)
+        {
+            refill(rate, now);
+            tokens -= amount;
+        }
+    }
+}
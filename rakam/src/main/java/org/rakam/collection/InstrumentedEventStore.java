@@ -0,0 +1,164 @@
+package org.rakam.collection;
+
+import org.rakam.metrics.Counter;
+import org.rakam.metrics.Distribution;
+import org.rakam.metrics.MetricRegistry;
+import org.rakam.plugin.EventStore;
+import org.rakam.report.QueryExecution;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * {@link EventStore} that records the batch sizes, the latencies, the number of requests waiting for the
+ * event store and the failures of the event store that it wraps.
+ */
+public class InstrumentedEventStore
+        implements EventStore
+{
+    private final EventStore delegate;
+    private final LongAdder pendingRequests = new LongAdder();
+    private final Distribution batchSize;
+    private final Distribution flushTime;
+    private final Counter failedEvents;
+    private final Counter errors;
+
+    public InstrumentedEventStore(EventStore delegate, MetricRegistry metricRegistry)
+    {
+        this.delegate = delegate;
+
+        String store = delegate.getClass().getSimpleName();
+        batchSize = metricRegistry.distribution("rakam_event_store_batch_size",
+                "Number of events that are sent to the event store in a request", "store", store);
+        flushTime = metricRegistry.timer("rakam_event_store_flush_seconds",
+                "Time until the event store acknowledges the events", "store", store);
+        failedEvents = metricRegistry.counter("rakam_event_store_failed_events_total",
+                "Number of events that the event store couldn't store", "store", store);
+        errors = metricRegistry.counter("rakam_event_store_errors_total",
+                "Number of requests that failed with an error", "store", store);
+        metricRegistry.gauge("rakam_event_store_pending_requests",
+                "Number of requests that are waiting for the event store", pendingRequests::sum, "store", store);
+    }
+
+    @Override
+    public void store(Event event)
+    {
+        long start = start(1);
+        try {
+            delegate.store(event);
+        }
+        catch (RuntimeException e) {
+            errors.increment();
+            throw e;
+        }
+        finally {
+            end(start);
+        }
+    }
+
+    @Override
+    public int[] storeBatch(List<Event> events)
+    {
+        long start = start(events.size());
+        try {
+            int[] failed = delegate.storeBatch(events);
+            failedEvents.add(failed.length);
+            return failed;
+        }
+        catch (RuntimeException e) {
+            errors.increment();
+            throw e;
+        }
+        finally {
+            end(start);
+        }
+    }
+
+    @Override
+    public CompletableFuture<int[]> storeBatchAsync(List<Event> events)
+    {
+        long start = start(events.size());
+        CompletableFuture<int[]> future;
+        try {
+            future = delegate.storeBatchAsync(events);
+        }
+        catch (RuntimeException e) {
+            errors.increment();
+            end(start);
+            throw e;
+        }
+
+        return future.whenComplete((failed, ex) -> {
+            if (ex != null) {
+                errors.increment();
+            }
+            else {
+                failedEvents.add(failed.length);
+            }
+            end(start);
+        });
+    }
+
+    @Override
+    public CompletableFuture<Void> storeAsync(Event event)
+    {
+        long start = start(1);
+        CompletableFuture<Void> future;
+        try {
+            future = delegate.storeAsync(event);
+        }
+        catch (RuntimeException e) {
+            errors.increment();
+            end(start);
+            throw e;
+        }
+
+        return future.whenComplete((result, ex) -> {
+            if (ex != null) {
+                errors.increment();
+            }
+            end(start);
+        });
+    }
+
+    @Override
+    public void storeBulk(List<Event> events)
+    {
+        long start = start(events.size());
+        try {
+            delegate.storeBulk(events);
+        }
+        catch (RuntimeException e) {
+            errors.increment();
+            throw e;
+        }
+        finally {
+            end(start);
+        }
+    }
+
+    @Override
+    public QueryExecution commit(String project, String collection)
+    {
+        return delegate.commit(project, collection);
+    }
+
+    public long getPendingRequests()
+    {
+        return pendingRequests.sum();
+    }
+
+    private long start(int events)
+    {
+        batchSize.add(events);
+        pendingRequests.increment();
+        return System.nanoTime();
+    }
+
+    private void end(long start)
+    {
+        pendingRequests.decrement();
+        flushTime.addNanosSince(start);
+    }
+}
@@ -10,6 +10,7 @@ import com.google.common.annotations.VisibleForTesting;
 import com.google.common.cache.Cache;
 import com.google.common.cache.CacheBuilder;
 import com.google.common.collect.ImmutableSet;
+import com.google.common.eventbus.Subscribe;
 import org.apache.avro.Schema;
 import org.apache.avro.SchemaParseException;
 import org.apache.avro.generic.GenericData;
@@ -19,6 +20,10 @@ import org.rakam.analysis.InternalConfig;
 import org.rakam.analysis.metadata.Metastore;
 import org.rakam.collection.Event.EventContext;
 import org.rakam.collection.FieldDependencyBuilder.FieldDependency;
+import org.rakam.metrics.Counter;
+import org.rakam.metrics.Distribution;
+import org.rakam.metrics.MetricRegistry;
+import org.rakam.plugin.SystemEvents;
 import org.rakam.util.AvroUtil;
 import org.rakam.util.DateTimeUtils;
 import org.rakam.util.NotExistsException;
@@ -60,18 +65,28 @@ public class JsonEventDeserializer
     private final Set<SchemaField> constantFields;
     private final ApiKeyService apiKeyService;
     private final ConfigManager configManager;
+    private final Counter createdCollections;
+    private final Counter createdFields;
+    private final Distribution schemaChangeTime;
 
     @Inject
     public JsonEventDeserializer(Metastore metastore,
             ApiKeyService apiKeyService,
             ConfigManager configManager,
-            FieldDependency fieldDependency)
+            FieldDependency fieldDependency,
+            MetricRegistry metricRegistry)
     {
         this.metastore = metastore;
         this.conditionalMagicFields = fieldDependency.dependentFields;
         this.apiKeyService = apiKeyService;
         this.configManager = configManager;
         this.constantFields = fieldDependency.constantFields;
+        this.createdCollections = metricRegistry.counter("rakam_collection_schema_changes_total",
+                "Number of collections and fields that are created by this node", "type", "collection");
+        this.createdFields = metricRegistry.counter("rakam_collection_schema_changes_total",
+                "Number of collections and fields that are created by this node", "type", "field");
+        this.schemaChangeTime = metricRegistry.timer("rakam_collection_schema_change_seconds",
+                "Time spent in the metastore while creating collections and fields");
     }
 
     @Override
@@ -168,7 +183,9 @@ public class JsonEventDeserializer
                     throw new RakamException("Collection names cannot start with $.", BAD_REQUEST);
                 }
 
+                long start = System.nanoTime();
                 rakamSchema = metastore.getOrCreateCollectionFieldList(project, collection, fields);
+                schemaChangeTime.addNanosSince(start);
             }
 
             schema = new SimpleImmutableEntry<>(rakamSchema, convertAvroSchema(rakamSchema, conditionalMagicFields));
@@ -259,7 +276,9 @@ public class JsonEventDeserializer
         }
 
         if (newFields != null) {
+            long start = System.nanoTime();
             rakamSchema = metastore.getOrCreateCollectionFieldList(project, collection, ImmutableSet.copyOf(newFields));
+            schemaChangeTime.addNanosSince(start);
             Schema newAvroSchema = convertAvroSchema(rakamSchema, conditionalMagicFields);
 
             schemaCache.put(key, new SimpleImmutableEntry<>(rakamSchema, newAvroSchema));
@@ -493,5 +512,21 @@ public class JsonEventDeserializer
     {
         schemaCache.invalidateAll();
     }
+
+    /**
+     * The schema changes are counted from the events of the metastore since the collections and fields may be
+     * created by another node between reading the schema and creating them.
+     */
+    @Subscribe
+    public void onCreateCollection(SystemEvents.CollectionCreatedEvent event)
+    {
+        createdCollections.increment();
+    }
+
+    @Subscribe
+    public void onCreateCollectionField(SystemEvents.CollectionFieldCreatedEvent event)
+    {
+        createdFields.add(event.fields.size());
+    }
 }
 
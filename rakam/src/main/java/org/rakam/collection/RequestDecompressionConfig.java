@@ -0,0 +1,38 @@
+package org.rakam.collection;
+
+import io.airlift.configuration.Config;
+import io.airlift.configuration.ConfigDescription;
+import io.airlift.units.DataSize;
+
+public class RequestDecompressionConfig
+{
+    private DataSize maxSize = new DataSize(64, DataSize.Unit.MEGABYTE);
+    private double maxRatio = 100;
+
+    @Config("collection.decompression.max-size")
+    @ConfigDescription("The maximum size of a compressed request body or a compressed remote file after it's decompressed.")
+    public RequestDecompressionConfig setMaxSize(String maxSize)
+    {
+        this.maxSize = DataSize.valueOf(maxSize);
+        return this;
+    }
+
+    public DataSize getMaxSize()
+    {
+        return maxSize;
+    }
+
+    @Config("collection.decompression.max-ratio")
+    @ConfigDescription("The maximum ratio of the decompressed size to the compressed size, the larger payloads are " +
+            "rejected as decompression bombs.")
+    public RequestDecompressionConfig setMaxRatio(double maxRatio)
+    {
+        this.maxRatio = maxRatio;
+        return this;
+    }
+
+    public double getMaxRatio()
+    {
+        return maxRatio;
+    }
+}
@@ -0,0 +1,178 @@
+package org.rakam.collection;
+
+import com.google.common.base.Throwables;
+import io.airlift.log.Logger;
+import org.rakam.metrics.MetricRegistry;
+import org.rakam.plugin.EventStore;
+import org.rakam.report.QueryExecution;
+
+import javax.annotation.PreDestroy;
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static com.google.common.collect.ImmutableList.of;
+
+/**
+ * {@link EventStore} that acknowledges the events once they're written to the local {@link EventSpool}
+ * and moves them to the actual event store in a background thread. Only one batch is sent to the event store
+ * at a time and the failed events are retried with a backoff, so the collection endpoints keep working when the
+ * event store is slow or unavailable until the spool is full. The events that are still not accepted after
+ * collection.spool.max-attempts are moved to the dead-letter file of the spool so that they don't block the others.
+ * <p>
+ * Bulk and commit requests are passed to the event store directly.
+ */
+@Singleton
+public class SpoolingEventStore
+        implements EventStore
+{
+    private final static Logger LOGGER = Logger.get(SpoolingEventStore.class);
+    private static final long MAX_BACKOFF_MILLIS = TimeUnit.SECONDS.toMillis(30);
+
+    private final EventStore delegate;
+    private final EventSpool spool;
+    private final long maxSpoolBytes;
+    private final int drainBatchSize;
+    private final int maxAttempts;
+    private final Thread drainer;
+
+    @Inject
+    public SpoolingEventStore(EventStore delegate, EventSpoolConfig config, MetricRegistry metricRegistry)
+    {
+        this.delegate = new InstrumentedEventStore(delegate, metricRegistry);
+        this.drainBatchSize = config.getDrainBatchSize();
+        this.maxAttempts = config.getMaxAttempts();
+        this.maxSpoolBytes = config.getMaxSize().toBytes();
+        try {
+            this.spool = new EventSpool(new File(config.getDirectory()),
+                    config.getSegmentSize().toBytes(), config.getMaxSize().toBytes());
+        }
+        catch (IOException e) {
+            throw Throwables.propagate(e);
+        }
+
+        metricRegistry.gauge("rakam_event_spool_pending_bytes",
+                "Size of the events in the spool that are not moved to the event store yet", spool::getPendingBytes);
+
+        drainer = new Thread(this::drain, "event-spool-drainer");
+        drainer.setDaemon(true);
+        drainer.start();
+    }
+
+    @Override
+    public void store(Event event)
+    {
+        spool.append(of(event));
+    }
+
+    @Override
+    public int[] storeBatch(List<Event> events)
+    {
+        spool.append(events);
+        return SUCCESSFUL_BATCH;
+    }
+
+    @Override
+    public CompletableFuture<Void> storeAsync(Event event)
+    {
+        store(event);
+        return COMPLETED_FUTURE;
+    }
+
+    @Override
+    public CompletableFuture<int[]> storeBatchAsync(List<Event> events)
+    {
+        storeBatch(events);
+        return COMPLETED_FUTURE_BATCH;
+    }
+
+    @Override
+    public void storeBulk(List<Event> events)
+    {
+        delegate.storeBulk(events);
+    }
+
+    @Override
+    public QueryExecution commit(String project, String collection)
+    {
+        return delegate.commit(project, collection);
+    }
+
+    /**
+     * Returns the ratio of the spool that is filled with the events that are not moved to the event store yet.
+     */
+    public double getSpoolUtilization()
+    {
+        return spool.getPendingBytes() / (double) maxSpoolBytes;
+    }
+
+    private void drain()
+    {
+        while (!Thread.currentThread().isInterrupted()) {
+            try {
+                List<Event> events = spool.poll(drainBatchSize, 1, TimeUnit.SECONDS);
+                if (events.isEmpty()) {
+                    continue;
+                }
+
+                int attempt = 0;
+                while (!events.isEmpty()) {
+                    int[] failed;
+                    try {
+                        failed = delegate.storeBatchAsync(events).join();
+                    }
+                    catch (Exception e) {
+                        LOGGER.warn(e, "Error while moving %d events from spool to the event store", events.size());
+                        failed = null;
+                    }
+
+                    if (failed != null && failed.length == 0) {
+                        break;
+                    }
+
+                    if (failed != null) {
+                        List<Event> failedEvents = new ArrayList<>(failed.length);
+                        for (int index : failed) {
+                            failedEvents.add(events.get(index));
+                        }
+                        LOGGER.warn("Event store couldn't store %d of %d events from spool, retrying", failed.length, events.size());
+                        events = failedEvents;
+                    }
+
+                    if (++attempt >= maxAttempts) {
+                        LOGGER.error("Event store couldn't store %d events from spool after %d attempts, moving them to the dead-letter file",
+                                events.size(), attempt);
+                        spool.deadLetter(events);
+                        break;
+                    }
+
+                    Thread.sleep(Math.min(MAX_BACKOFF_MILLIS, 100L << Math.min(attempt - 1, 10)));
+                }
+
+                spool.commit();
+            }
+            catch (InterruptedException e) {
+                // the events that are not committed are replayed when the spool is opened again
+                Thread.currentThread().interrupt();
+            }
+            catch (Exception e) {
+                LOGGER.error(e, "Error while draining event spool");
+            }
+        }
+    }
+
+    @PreDestroy
+    public void destroy()
+            throws InterruptedException, IOException
+    {
+        drainer.interrupt();
+        drainer.join(TimeUnit.SECONDS.toMillis(10));
+        spool.close();
+    }
+}
@@ -0,0 +1,37 @@
+package org.rakam.metrics;
+
+import java.util.concurrent.atomic.LongAdder;
+
+public class Counter
+        implements Metric, CounterMBean
+{
+    private final LongAdder count = new LongAdder();
+
+    public void increment()
+    {
+        count.increment();
+    }
+
+    public void add(long value)
+    {
+        count.add(value);
+    }
+
+    @Override
+    public long getCount()
+    {
+        return count.sum();
+    }
+
+    @Override
+    public String getType()
+    {
+        return "counter";
+    }
+
+    @Override
+    public void writeSamples(StringBuilder builder, String name, String labels)
+    {
+        MetricRegistry.writeSample(builder, name, labels, getCount());
+    }
+}
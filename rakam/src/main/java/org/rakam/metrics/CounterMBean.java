@@ -0,0 +1,6 @@
+package org.rakam.metrics;
+
+public interface CounterMBean
+{
+    long getCount();
+}
@@ -0,0 +1,141 @@
+package org.rakam.metrics;
+
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Records the distribution of a value such as the latency of an operation or the size of a batch.
+ * <p>
+ * The values are recorded to a {@link Recorder} that is wait-free for the writers, the readers move the recorded
+ * values to the histograms of the current and previous time windows so the percentiles reflect the last one or two
+ * minutes while the count and the sum are cumulative as Prometheus expects.
+ */
+public class Distribution
+        implements Metric, DistributionMBean
+{
+    private static final long WINDOW_NANOS = TimeUnit.MINUTES.toNanos(1);
+    private static final double[] QUANTILES = {.5, .9, .99, .999};
+
+    private final Recorder recorder = new Recorder(2);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    // the recorded values are divided by this number when they're exposed, e.g. nanoseconds to seconds
+    private final double scale;
+
+    // guarded by this
+    private Histogram interval;
+    private Histogram current = new Histogram(2);
+    private Histogram previous = new Histogram(2);
+    private long windowStart = System.nanoTime();
+
+    public Distribution(double scale)
+    {
+        this.scale = scale;
+    }
+
+    public void add(long value)
+    {
+        if (value < 0) {
+            value = 0;
+        }
+        recorder.recordValue(value);
+        count.increment();
+        sum.add(value);
+    }
+
+    /**
+     * Records the time that is passed since the given {@link System#nanoTime()} value.
+     */
+    public void addNanosSince(long startNanos)
+    {
+        add(System.nanoTime() - startNanos);
+    }
+
+    @Override
+    public long getCount()
+    {
+        return count.sum();
+    }
+
+    @Override
+    public double getSum()
+    {
+        return sum.sum() / scale;
+    }
+
+    @Override
+    public double getP50()
+    {
+        return getQuantile(.5);
+    }
+
+    @Override
+    public double getP90()
+    {
+        return getQuantile(.9);
+    }
+
+    @Override
+    public double getP99()
+    {
+        return getQuantile(.99);
+    }
+
+    @Override
+    public double getP999()
+    {
+        return getQuantile(.999);
+    }
+
+    @Override
+    public double getMax()
+    {
+        return window().getMaxValue() / scale;
+    }
+
+    public double getQuantile(double quantile)
+    {
+        return window().getValueAtPercentile(quantile * 100) / scale;
+    }
+
+    private synchronized Histogram window()
+    {
+        interval = recorder.getIntervalHistogram(interval);
+
+        long now = System.nanoTime();
+        if (now - windowStart > WINDOW_NANOS) {
+            Histogram recycled = previous;
+            previous = current;
+            recycled.reset();
+            current = recycled;
+            windowStart = now;
+        }
+        current.add(interval);
+
+        Histogram window = current.copy();
+        window.add(previous);
+        return window;
+    }
+
+    @Override
+    public String getType()
+    {
+        return "summary";
+    }
+
+    @Override
+    public void writeSamples(StringBuilder builder, String name, String labels)
+    {
+        Histogram window = window();
+        for (double quantile : QUANTILES) {
+            String quantileLabel = "quantile=\"" + quantile + "\"";
+            MetricRegistry.writeSample(builder, name, labels.isEmpty() ? quantileLabel : labels + "," + quantileLabel,
+                    window.getValueAtPercentile(quantile * 100) / scale);
+        }
+        MetricRegistry.writeSample(builder, name + "_sum", labels, getSum());
+        MetricRegistry.writeSample(builder, name + "_count", labels, getCount());
+    }
+}
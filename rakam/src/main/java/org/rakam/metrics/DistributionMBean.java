@@ -0,0 +1,18 @@
+package org.rakam.metrics;
+
+public interface DistributionMBean
+{
+    long getCount();
+
+    double getSum();
+
+    double getP50();
+
+    double getP90();
+
+    double getP99();
+
+    double getP999();
+
+    double getMax();
+}
@@ -0,0 +1,32 @@
+package org.rakam.metrics;
+
+import java.util.function.LongSupplier;
+
+public class Gauge
+        implements Metric, GaugeMBean
+{
+    private final LongSupplier supplier;
+
+    public Gauge(LongSupplier supplier)
+    {
+        this.supplier = supplier;
+    }
+
+    @Override
+    public long getValue()
+    {
+        return supplier.getAsLong();
+    }
+
+    @Override
+    public String getType()
+    {
+        return "gauge";
+    }
+
+    @Override
+    public void writeSamples(StringBuilder builder, String name, String labels)
+    {
+        MetricRegistry.writeSample(builder, name, labels, getValue());
+    }
+}
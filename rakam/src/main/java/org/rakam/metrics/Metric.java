@@ -0,0 +1,8 @@
+package org.rakam.metrics;
+
+interface Metric
+{
+    String getType();
+
+    void writeSamples(StringBuilder builder, String name, String labels);
+}
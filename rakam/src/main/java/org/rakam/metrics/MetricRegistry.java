@@ -0,0 +1,214 @@
+package org.rakam.metrics;
+
+import io.airlift.log.Logger;
+
+import javax.annotation.PreDestroy;
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkState;
+
+/**
+ * Holds the metrics of the collection pipeline. The metrics are exported as MBeans under the {@code org.rakam}
+ * domain and in the Prometheus text format by {@link MetricsHttpService}.
+ * <p>
+ * The metric objects should be looked up once and kept by the callers, updating them doesn't acquire any lock.
+ */
+@Singleton
+public class MetricRegistry
+{
+    private final static Logger LOGGER = Logger.get(MetricRegistry.class);
+
+    private final MBeanServer mBeanServer;
+    private final ConcurrentMap<String, Family> families = new ConcurrentSkipListMap<>();
+    private final List<ObjectName> registeredBeans = new ArrayList<>();
+
+    @Inject
+    public MetricRegistry()
+    {
+        this(ManagementFactory.getPlatformMBeanServer());
+    }
+
+    /**
+     * @param mBeanServer the server that the metrics are registered to, the metrics are not exported over JMX if it's null
+     */
+    public MetricRegistry(MBeanServer mBeanServer)
+    {
+        this.mBeanServer = mBeanServer;
+    }
+
+    /**
+     * @param labels the names and the values of the labels, i.e. {@code "endpoint", "batch"}
+     */
+    public Counter counter(String name, String help, String... labels)
+    {
+        return getOrCreate(name, help, Counter.class, Counter::new, labels);
+    }
+
+    /**
+     * Returns a distribution that records nanoseconds and exposes them as seconds.
+     */
+    public Distribution timer(String name, String help, String... labels)
+    {
+        return getOrCreate(name, help, Distribution.class, () -> new Distribution(1_000_000_000.0), labels);
+    }
+
+    public Distribution distribution(String name, String help, String... labels)
+    {
+        return getOrCreate(name, help, Distribution.class, () -> new Distribution(1), labels);
+    }
+
+    /**
+     * Registers a gauge that reads its value from the supplier, the supplier is called when the metrics are read.
+     * The existing gauge is kept if there is already a gauge with the same name and labels.
+     */
+    public Gauge gauge(String name, String help, LongSupplier supplier, String... labels)
+    {
+        return getOrCreate(name, help, Gauge.class, () -> new Gauge(supplier), labels);
+    }
+
+    private <T extends Metric> T getOrCreate(String name, String help, Class<T> type, Supplier<T> supplier, String... labels)
+    {
+        checkArgument(labels.length % 2 == 0, "labels must be name and value pairs");
+
+        Family family = families.computeIfAbsent(name, key -> new Family(help));
+        String renderedLabels = renderLabels(labels);
+
+        Metric metric = family.metrics.get(renderedLabels);
+        if (metric == null) {
+            T newMetric = supplier.get();
+            metric = family.metrics.putIfAbsent(renderedLabels, newMetric);
+            if (metric == null) {
+                metric = newMetric;
+                register(name, labels, newMetric);
+            }
+        }
+
+        checkState(type.isInstance(metric), "Metric %s is already registered as %s", name, metric.getType());
+        return type.cast(metric);
+    }
+
+    private void register(String name, String[] labels, Metric metric)
+    {
+        if (mBeanServer == null) {
+            return;
+        }
+
+        StringBuilder objectName = new StringBuilder("org.rakam:type=metrics,name=").append(name);
+        for (int i = 0; i < labels.length; i += 2) {
+            objectName.append(',').append(labels[i]).append('=').append(ObjectName.quote(labels[i + 1]));
+        }
+
+        try {
+            ObjectName beanName = new ObjectName(objectName.toString());
+            mBeanServer.registerMBean(metric, beanName);
+            synchronized (registeredBeans) {
+                registeredBeans.add(beanName);
+            }
+        }
+        catch (InstanceAlreadyExistsException e) {
+            LOGGER.warn("Metric %s is already registered to JMX by another registry", objectName);
+        }
+        catch (JMException e) {
+            LOGGER.warn(e, "Couldn't register metric %s to JMX", objectName);
+        }
+    }
+
+    /**
+     * Returns the metrics in the Prometheus text exposition format.
+     */
+    public String toPrometheusFormat()
+    {
+        StringBuilder builder = new StringBuilder();
+        for (Map.Entry<String, Family> entry : families.entrySet()) {
+            Family family = entry.getValue();
+            if (family.metrics.isEmpty()) {
+                continue;
+            }
+
+            String name = entry.getKey();
+            builder.append("# HELP ").append(name).append(' ')
+                    .append(family.help.replace("\\", "\\\\").replace("\n", "\\n")).append('\n');
+            builder.append("# TYPE ").append(name).append(' ')
+                    .append(family.metrics.values().iterator().next().getType()).append('\n');
+            for (Map.Entry<String, Metric> metric : family.metrics.entrySet()) {
+                metric.getValue().writeSamples(builder, name, metric.getKey());
+            }
+        }
+        return builder.toString();
+    }
+
+    static void writeSample(StringBuilder builder, String name, String labels, double value)
+    {
+        builder.append(name);
+        if (!labels.isEmpty()) {
+            builder.append('{').append(labels).append('}');
+        }
+        builder.append(' ');
+        if (value == (long) value) {
+            builder.append((long) value);
+        }
+        else if (Double.isNaN(value)) {
+            builder.append("NaN");
+        }
+        else {
+            builder.append(value);
+        }
+        builder.append('\n');
+    }
+
+    private static String renderLabels(String[] labels)
+    {
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < labels.length; i += 2) {
+            if (builder.length() > 0) {
+                builder.append(',');
+            }
+            builder.append(labels[i]).append("=\"")
+                    .append(labels[i + 1].replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n"))
+                    .append('"');
+        }
+        return builder.toString();
+    }
+
+    @PreDestroy
+    public void destroy()
+    {
+        synchronized (registeredBeans) {
+            for (ObjectName beanName : registeredBeans) {
+                try {
+                    mBeanServer.unregisterMBean(beanName);
+                }
+                catch (JMException e) {
+                    LOGGER.warn(e, "Couldn't unregister metric %s from JMX", beanName);
+                }
+            }
+            registeredBeans.clear();
+        }
+    }
+
+    private static class Family
+    {
+        private final String help;
+        private final ConcurrentMap<String, Metric> metrics = new ConcurrentSkipListMap<>();
+
+        private Family(String help)
+        {
+            this.help = help;
+        }
+    }
+}
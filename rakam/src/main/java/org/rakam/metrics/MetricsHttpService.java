@@ -0,0 +1,63 @@
+package org.rakam.metrics;
+
+import io.netty.buffer.Unpooled;
+import io.netty.handler.codec.http.DefaultFullHttpResponse;
+import org.rakam.config.ProjectConfig;
+import org.rakam.server.http.HttpService;
+import org.rakam.server.http.RakamHttpRequest;
+import org.rakam.server.http.annotations.IgnoreApi;
+
+import javax.inject.Inject;
+import javax.ws.rs.GET;
+import javax.ws.rs.Path;
+
+import java.util.List;
+import java.util.Objects;
+
+import static io.netty.handler.codec.http.HttpHeaders.Names.CONTENT_TYPE;
+import static io.netty.handler.codec.http.HttpResponseStatus.FORBIDDEN;
+import static io.netty.handler.codec.http.HttpResponseStatus.OK;
+import static io.netty.handler.codec.http.HttpVersion.HTTP_1_1;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+@Path("/")
+@IgnoreApi
+public class MetricsHttpService
+        extends HttpService
+{
+    private final MetricRegistry metricRegistry;
+    private final ProjectConfig projectConfig;
+
+    @Inject
+    public MetricsHttpService(MetricRegistry metricRegistry, ProjectConfig projectConfig)
+    {
+        this.metricRegistry = metricRegistry;
+        this.projectConfig = projectConfig;
+    }
+
+    /**
+     * The metrics are not scoped to a project so they require the lock key of the server like the other admin
+     * operations. The key is read from the lock_key header or query parameter since most scrapers can only set one
+     * of them.
+     */
+    @GET
+    @Path("/metrics")
+    public void metrics(RakamHttpRequest request)
+    {
+        String lockKey = request.headers().get("lock_key");
+        if (lockKey == null) {
+            List<String> param = request.params().get("lock_key");
+            lockKey = param == null || param.isEmpty() ? null : param.get(0);
+        }
+
+        if (!Objects.equals(projectConfig.getLockKey(), lockKey)) {
+            request.response("Lock key is invalid", FORBIDDEN).end();
+            return;
+        }
+
+        DefaultFullHttpResponse response = new DefaultFullHttpResponse(HTTP_1_1, OK,
+                Unpooled.wrappedBuffer(metricRegistry.toPrometheusFormat().getBytes(UTF_8)));
+        response.headers().set(CONTENT_TYPE, "text/plain; version=0.0.4; charset=utf-8");
+        request.response(response).end();
+    }
+}
@@ -1,9 +1,11 @@
 package org.rakam.plugin.user;
 
+import com.facebook.presto.sql.tree.Expression;
 import com.fasterxml.jackson.annotation.JsonCreator;
 import com.fasterxml.jackson.annotation.JsonProperty;
-import io.airlift.log.Logger;
+import com.google.common.hash.Hashing;
 import io.netty.handler.codec.http.HttpResponseStatus;
+import org.rakam.analysis.ConfigManager;
 import org.rakam.collection.FieldType;
 import org.rakam.collection.SchemaField;
 import org.rakam.report.EmailClientConfig;
@@ -13,54 +15,129 @@ import org.rakam.server.http.annotations.ApiOperation;
 import org.rakam.server.http.annotations.ApiParam;
 import org.rakam.server.http.annotations.Authorization;
 import org.rakam.server.http.annotations.JsonRequest;
-import org.rakam.util.MailSender;
+import org.rakam.util.BulkMailSender;
+import org.rakam.util.JsonHelper;
 import org.rakam.util.RakamException;
 import org.rakam.util.StringTemplate;
 
+import javax.annotation.PreDestroy;
 import javax.inject.Inject;
 import javax.inject.Named;
-import javax.mail.MessagingException;
-import javax.mail.internet.AddressException;
 import javax.ws.rs.Path;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
 import java.util.concurrent.CompletableFuture;
 
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.rakam.plugin.user.UserHttpService.parseExpression;
+
 @Path("/user/action/email")
 @Api(value = "/user/action/email", nickname = "userEmailAction", description = "Email action", tags = "user-action")
 public class UserEmailActionService extends UserActionService<UserEmailActionService.EmailActionConfig> {
-    private final static Logger LOGGER = Logger.get(UserEmailActionService.class);
+    private static final int BATCH_PAGE_SIZE = 10000;
 
-    private final MailSender mailSender;
-    private final UserHttpService httpService;
+    private final BulkMailSender mailSender;
+    private final AbstractUserService userService;
+    private final ConfigManager configManager;
 
     @Inject
-    public UserEmailActionService(UserHttpService httpService, EmailClientConfig mailConfig) {
-        this.httpService = httpService;
+    public UserEmailActionService(AbstractUserService userService, ConfigManager configManager, EmailClientConfig mailConfig) {
+        this.userService = userService;
+        this.configManager = configManager;
 
         if(mailConfig.getHost() == null || mailConfig.getUser() == null) {
             throw new IllegalStateException("SMTP configuration is required when mail action is active. See mail.smtp.* configurations.");
         }
 
-        mailSender = mailConfig.getMailSender();
+        mailSender = new BulkMailSender(mailConfig.getMailSender(), mailConfig.getBulkConnections(),
+                mailConfig.getBulkRatePerDomain(), mailConfig.getBulkMaxRetries(), mailConfig.getBulkRetryBackoff());
+    }
+
+    @PreDestroy
+    public void destroy() {
+        mailSender.close();
     }
 
     @JsonRequest
-    @ApiOperation(value = "Apply batch operation", authorizations = @Authorization(value = "read_key"))
+    @ApiOperation(value = "Apply batch operation", notes = "The users are processed in the order of their ids and the progress is saved after each page. " +
+            "If the campaign is interrupted, sending the same request again resumes it from the last saved page.",
+            authorizations = @Authorization(value = "read_key"))
 
     @Path("/batch")
     public CompletableFuture<Long> batch(@Named("project") String project,
                                          @ApiParam(value = "filter", required = false) String filter,
                                          @ApiParam(value = "event_filters", required = false) List<UserStorage.EventFilter> event_filter,
-                                         @ApiParam("config") EmailActionConfig config) {
-        List<String> variables = new StringTemplate(config.content).getVariables();
-        variables.add(config.columnName);
+                                         @ApiParam("config") EmailActionConfig config,
+                                         @ApiParam(value = "campaign_id", required = false) String campaignId) {
+        Expression expression = parseExpression(filter);
+        StringTemplate template = new StringTemplate(config.content);
+
+        String progressKey = "email_campaign." + (campaignId != null ? campaignId : Hashing.sha256()
+                .hashString(JsonHelper.encode(Arrays.asList(filter, event_filter, config)), UTF_8).toString());
+
+        CampaignProgress progress = configManager.getConfig(project, progressKey, CampaignProgress.class);
+        if (progress == null || progress.completed) {
+            progress = new CampaignProgress(null, 0, false);
+        }
+
+        CompletableFuture<Long> result = new CompletableFuture<>();
+        sendPage(project, expression, event_filter, config, template, progressKey, progress, result);
+        return result;
+    }
+
+    private void sendPage(String project, Expression filter, List<UserStorage.EventFilter> eventFilter, EmailActionConfig config,
+                          StringTemplate template, String progressKey, CampaignProgress progress, CompletableFuture<Long> result) {
+        userService.searchUsersAfter(project, filter, eventFilter, progress.lastUserId, BATCH_PAGE_SIZE).thenCompose(page -> {
+            if (page.isFailed()) {
+                throw new RakamException(page.getError().message, HttpResponseStatus.INTERNAL_SERVER_ERROR);
+            }
 
-        CompletableFuture<QueryResult> future = httpService.searchUsers(project, variables, filter, event_filter, null, null, 100000);
-        return batch(project, future, config);
+            List<List<Object>> rows = page.getResult();
+            boolean lastPage = rows.size() < BATCH_PAGE_SIZE;
+            Object lastUserId = lastPage ? progress.lastUserId :
+                    rows.get(rows.size() - 1).get(UserStorage.getIdColumn(page.getMetadata()));
+
+            return send(page, config, template).thenApply(sentEmails ->
+                    new CampaignProgress(lastUserId, progress.sentEmails + sentEmails, lastPage));
+        }).whenComplete((next, ex) -> {
+            if (ex != null) {
+                result.completeExceptionally(ex);
+                return;
+            }
+
+            try {
+                configManager.setConfig(project, progressKey, next);
+            } catch (Exception e) {
+                result.completeExceptionally(e);
+                return;
+            }
+
+            if (next.completed) {
+                result.complete(next.sentEmails);
+            } else {
+                sendPage(project, filter, eventFilter, config, template, progressKey, next, result);
+            }
+        });
+    }
+
+    public static class CampaignProgress {
+        public final Object lastUserId;
+        public final long sentEmails;
+        public final boolean completed;
+
+        @JsonCreator
+        public CampaignProgress(@JsonProperty("last_user_id") Object lastUserId,
+                                @JsonProperty("sent_emails") long sentEmails,
+                                @JsonProperty("completed") boolean completed) {
+            this.lastUserId = lastUserId;
+            this.sentEmails = sentEmails;
+            this.completed = completed;
+        }
     }
 
     public static class EmailActionConfig {
@@ -87,43 +164,51 @@ public class UserEmailActionService extends UserActionService<UserEmailActionSer
     @Override
     public CompletableFuture<Long> batch(String project, CompletableFuture<QueryResult> queryResult, EmailActionConfig config) {
         StringTemplate template = new StringTemplate(config.content);
+        return queryResult.thenCompose(result -> send(result, config, template));
+    }
 
-        return queryResult.thenApply(result -> {
-            Optional<SchemaField> any = result.getMetadata().stream().filter(f -> f.getName().equals(config.columnName)).findAny();
-            if(!any.isPresent()) {
-                throw new RakamException(String.format("Column %s doesn't exist", config.columnName),
-                        HttpResponseStatus.BAD_REQUEST);
-            }
-            if(any.get().getType() != FieldType.STRING) {
-                throw new RakamException("Type of column must be STRING", HttpResponseStatus.BAD_REQUEST);
-            }
+    private CompletableFuture<Long> send(QueryResult result, EmailActionConfig config, StringTemplate template) {
+        if (result.getMetadata().isEmpty()) {
+            return CompletableFuture.completedFuture(0L);
+        }
 
-            final int idx = result.getMetadata().indexOf(any.get());
+        Optional<SchemaField> any = result.getMetadata().stream().filter(f -> f.getName().equals(config.columnName)).findAny();
+        if(!any.isPresent()) {
+            throw new RakamException(String.format("Column %s doesn't exist", config.columnName),
+                    HttpResponseStatus.BAD_REQUEST);
+        }
+        if(any.get().getType() != FieldType.STRING) {
+            throw new RakamException("Type of column must be STRING", HttpResponseStatus.BAD_REQUEST);
+        }
 
-            Map<String, Integer> colMap = generateColumnMap(template.getVariables(), result.getMetadata());
+        final int idx = result.getMetadata().indexOf(any.get());
 
-            long sentEmails = 0;
-            for (List<Object> objects : result.getResult()) {
-                final String toEmail = (String) objects.get(idx);
-                String format = template.format(name -> {
-                    Integer index = colMap.get(name);
-                    if(index != null) {
-                        Object o = objects.get(index);
-                        if (o != null && o instanceof String) {
-                            return o.toString();
-                        }
-                    }
+        Map<String, Integer> colMap = generateColumnMap(template.getVariables(), result.getMetadata());
 
-                    return config.defaultValues.get(name);
-                });
+        List<CompletableFuture<Boolean>> sends = new ArrayList<>(result.getResult().size());
+        for (List<Object> objects : result.getResult()) {
+            final String toEmail = (String) objects.get(idx);
+            if (toEmail == null) {
+                continue;
+            }
 
-                if (toEmail != null && sendInternal(toEmail, config, format)) {
-                    sentEmails++;
+            String format = template.format(name -> {
+                Integer index = colMap.get(name);
+                if(index != null) {
+                    Object o = objects.get(index);
+                    if (o != null && o instanceof String) {
+                        return o.toString();
+                    }
                 }
-            }
 
-            return sentEmails;
-        });
+                return config.defaultValues.get(name);
+            });
+
+            sends.add(sendInternal(toEmail, config, format));
+        }
+
+        return CompletableFuture.allOf(sends.toArray(new CompletableFuture[sends.size()]))
+                .thenApply(v -> sends.stream().filter(CompletableFuture::join).count());
     }
 
     private Map<String, Integer> generateColumnMap(List<String> variables, List<SchemaField> metadata) {
@@ -132,7 +217,7 @@ public class UserEmailActionService extends UserActionService<UserEmailActionSer
         for (String var : variables) {
             for (int i = 0; i < metadata.size(); i++) {
                 if(metadata.get(i).getName().equals(var)) {
-                    colMap.put(variables.get(i), i);
+                    colMap.put(var, i);
                     break;
                 }
             }
@@ -154,7 +239,7 @@ public class UserEmailActionService extends UserActionService<UserEmailActionSer
     public CompletableFuture<Boolean> send(@Named("project") String project,
                                            @ApiParam("user") String userId,
                                            @ApiParam("config") EmailActionConfig config) {
-        return httpService.getUser(project, userId).thenApply(user -> send(project, user, config));
+        return userService.getUser(project, userId).thenApply(user -> send(project, user, config));
     }
 
     @Override
@@ -173,23 +258,16 @@ public class UserEmailActionService extends UserActionService<UserEmailActionSer
                     }
                 });
 
-                return sendInternal((String) email, config, format);
+                // the single emails don't wait behind the campaigns
+                return mailSender.sendNow((String) email, config.title, format,
+                        config.richText ? Optional.of(format) : Optional.empty());
         } else {
             return false;
         }
     }
 
-    private boolean sendInternal(String toEmail, EmailActionConfig config, String content) {
-        try {
-            mailSender.sendMail(toEmail, config.title, content,
-                    config.richText ? Optional.of(content) : Optional.empty());
-        } catch (AddressException e) {
-            return false;
-        }  catch (MessagingException e) {
-            LOGGER.error(e);
-            return false;
-        }
-
-        return true;
+    private CompletableFuture<Boolean> sendInternal(String toEmail, EmailActionConfig config, String content) {
+        return mailSender.send(toEmail, config.title, content,
+                config.richText ? Optional.of(content) : Optional.empty());
     }
 }
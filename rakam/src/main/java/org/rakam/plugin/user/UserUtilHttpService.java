@@ -3,23 +3,30 @@ package org.rakam.plugin.user;
 import com.facebook.presto.sql.parser.SqlParser;
 import com.facebook.presto.sql.tree.Expression;
 import com.fasterxml.jackson.annotation.JsonCreator;
-import com.google.common.base.Throwables;
+import com.google.common.collect.Iterables;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.google.inject.Inject;
+import io.airlift.log.Logger;
+import io.netty.buffer.ByteBuf;
 import io.netty.buffer.Unpooled;
 import io.netty.channel.ChannelFuture;
 import io.netty.channel.ChannelFutureListener;
+import io.netty.handler.codec.http.DefaultHttpContent;
 import io.netty.handler.codec.http.DefaultHttpResponse;
 import io.netty.handler.codec.http.HttpHeaders;
 import io.netty.handler.codec.http.HttpResponse;
 import io.netty.handler.codec.http.HttpResponseStatus;
-import org.apache.poi.hssf.usermodel.HSSFCellStyle;
-import org.apache.poi.hssf.usermodel.HSSFFont;
-import org.apache.poi.hssf.usermodel.HSSFSheet;
-import org.apache.poi.hssf.usermodel.HSSFWorkbook;
+import io.netty.handler.codec.http.LastHttpContent;
+import org.apache.commons.csv.CSVFormat;
+import org.apache.commons.csv.CSVPrinter;
+import org.apache.commons.csv.QuoteMode;
 import org.apache.poi.ss.usermodel.Cell;
 import org.apache.poi.ss.usermodel.CellStyle;
+import org.apache.poi.ss.usermodel.Font;
 import org.apache.poi.ss.usermodel.IndexedColors;
 import org.apache.poi.ss.usermodel.Row;
+import org.apache.poi.ss.usermodel.Sheet;
+import org.apache.poi.xssf.streaming.SXSSFWorkbook;
 import org.rakam.analysis.ApiKeyService;
 import org.rakam.collection.FieldType;
 import org.rakam.collection.SchemaField;
@@ -33,31 +40,56 @@ import org.rakam.util.ExportUtil;
 import org.rakam.util.JsonHelper;
 import org.rakam.util.RakamException;
 
+import javax.annotation.PreDestroy;
 import javax.ws.rs.GET;
 import javax.ws.rs.Path;
 
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.stream.Collectors;
 
 import static io.netty.handler.codec.http.HttpHeaders.Names.CONTENT_TRANSFER_ENCODING;
 import static io.netty.handler.codec.http.HttpHeaders.Names.CONTENT_TYPE;
 import static io.netty.handler.codec.http.HttpHeaders.Names.EXPIRES;
 import static io.netty.handler.codec.http.HttpResponseStatus.BAD_REQUEST;
+import static io.netty.handler.codec.http.HttpResponseStatus.INTERNAL_SERVER_ERROR;
 import static io.netty.handler.codec.http.HttpResponseStatus.OK;
 import static io.netty.handler.codec.http.HttpVersion.HTTP_1_1;
 import static java.lang.String.format;
+import static java.nio.charset.StandardCharsets.UTF_8;
 import static org.rakam.analysis.ApiKeyService.AccessKeyType.READ_KEY;
 
+/**
+ * Exports the users of a segment as a chunked response. The users are fetched page by page ordered by their ids
+ * using {@link UserStorage#searchUsersAfter} and each page is encoded and written before the next page is fetched,
+ * so the memory usage of an export doesn't depend on the size of the segment.
+ */
 @Path("/user/export")
 @IgnoreApi
 public class UserUtilHttpService extends HttpService {
+    private final static Logger LOGGER = Logger.get(UserUtilHttpService.class);
+    private static final int EXPORT_PAGE_SIZE = 10000;
+    private static final int FILE_CHUNK_SIZE = 64 * 1024;
+
     private final SqlParser sqlParser = new SqlParser();
     private final AbstractUserService service;
     private final ApiKeyService apiKeyService;
+    // the storages and the encoders block so the pages are not processed in the event loop
+    private final ExecutorService exportExecutor = Executors.newFixedThreadPool(4,
+            new ThreadFactoryBuilder().setNameFormat("user-export-%d").setDaemon(true).build());
 
     @Inject
     public UserUtilHttpService(ApiKeyService apiKeyService, AbstractUserService service) {
@@ -65,6 +97,11 @@ public class UserUtilHttpService extends HttpService {
         this.apiKeyService = apiKeyService;
     }
 
+    @PreDestroy
+    public void destroy() {
+        exportExecutor.shutdownNow();
+    }
+
     public static class FilterQuery {
         public final String readKey;
         public final String filter;
@@ -88,7 +125,7 @@ public class UserUtilHttpService extends HttpService {
     public void export(RakamHttpRequest request) {
         final Map<String, List<String>> params = request.params();
         final List<String> query = params.get("query");
-        if (query.isEmpty()) {
+        if (query == null || query.isEmpty()) {
             HttpServer.returnError(request, BAD_REQUEST.reasonPhrase(), BAD_REQUEST);
             return;
         }
@@ -118,36 +155,20 @@ public class UserUtilHttpService extends HttpService {
             expression = null;
         }
 
-        final CompletableFuture<QueryResult> search = service.searchUsers(project, null, expression,
-                read.filterQuery.event_filter, read.filterQuery.sorting, 100000, null);
-        final CompletableFuture<byte[]> stream;
+        final ExportWriter writer;
         switch (read.exportFormat) {
-            case XLS:
-                stream = exportAsExcel(search);
+            case XLSX:
+                writer = new ExcelExportWriter();
                 break;
             case CSV:
-                stream = search.thenApply(ExportUtil::exportAsCSV);
+                writer = new CsvExportWriter();
                 break;
             default:
                 throw new IllegalStateException();
         }
 
-        stream.thenAccept(result -> {
-            HttpResponse response = new DefaultHttpResponse(HTTP_1_1, OK);
-            HttpHeaders.setContentLength(response, result.length);
-            response.headers().set(CONTENT_TYPE, "application/octet-stream");
-            response.headers().set(EXPIRES, "0");
-            response.headers().set(CONTENT_TRANSFER_ENCODING, "binary");
-            response.headers().set("Content-Disposition", "attachment;filename=\"exported_people." + read.exportFormat.name().toLowerCase(Locale.ENGLISH) + "\"");
-
-            request.context().write(response);
-            ChannelFuture lastContentFuture = request.context().writeAndFlush(Unpooled.wrappedBuffer(result));
-
-            if (!HttpHeaders.isKeepAlive(request)) {
-                lastContentFuture.addListener(ChannelFutureListener.CLOSE);
-            }
-        });
-
+        // the users are exported in the order of their ids, the sorting of the filter is only used in the user list
+        new UserExport(request, project, expression, read.filterQuery.event_filter, read.exportFormat, writer).nextPage();
     }
 
     private static class ExportQuery {
@@ -163,59 +184,357 @@ public class UserUtilHttpService extends HttpService {
     }
 
     public enum ExportFormat {
-        XLS, CSV;
+        XLSX, CSV;
 
         @JsonCreator
         public static ExportFormat fromString(String str) {
-            return valueOf(str.toUpperCase(Locale.ENGLISH));
+            String format = str.toUpperCase(Locale.ENGLISH);
+            // the binary Excel format is limited to 65536 rows so the users are exported as XLSX instead
+            return format.equals("XLS") ? XLSX : valueOf(format);
         }
     }
 
-    private CompletableFuture<byte[]> exportAsExcel(CompletableFuture<QueryResult> queryResult) {
-        return queryResult.thenApply(result -> {
-            HSSFWorkbook workbook = new HSSFWorkbook();
-            HSSFSheet sheet = workbook.createSheet("Users generated by Rakam");
+    private class UserExport {
+        private final RakamHttpRequest request;
+        private final String project;
+        private final Expression filter;
+        private final List<UserStorage.EventFilter> eventFilter;
+        private final ExportFormat exportFormat;
+        private final ExportWriter writer;
+
+        private List<SchemaField> columns;
+        private Object lastUserId;
+        private boolean headersSent;
+
+        private UserExport(RakamHttpRequest request, String project, Expression filter,
+                           List<UserStorage.EventFilter> eventFilter, ExportFormat exportFormat, ExportWriter writer) {
+            this.request = request;
+            this.project = project;
+            this.filter = filter;
+            this.eventFilter = eventFilter;
+            this.exportFormat = exportFormat;
+            this.writer = writer;
+        }
+
+        public void nextPage() {
+            CompletableFuture.supplyAsync(() -> service.searchUsersAfter(project, filter, eventFilter, lastUserId, EXPORT_PAGE_SIZE), exportExecutor)
+                    .thenCompose(page -> page)
+                    .whenCompleteAsync(this::processPage, exportExecutor);
+        }
 
-            final List<SchemaField> metadata = result.getMetadata();
+        private void processPage(QueryResult result, Throwable ex) {
+            if (ex == null && result.isFailed()) {
+                ex = new RakamException(result.getError().message, INTERNAL_SERVER_ERROR);
+            }
+            if (ex != null) {
+                fail(ex);
+                return;
+            }
 
-            HSSFFont boldFont = workbook.createFont();
-            boldFont.setBoldweight(HSSFFont.BOLDWEIGHT_BOLD);
+            List<SchemaField> metadata = result.getMetadata();
+            List<List<Object>> rows = result.getResult();
+            boolean lastPage = rows.size() < EXPORT_PAGE_SIZE;
 
-            HSSFCellStyle headerSyle = workbook.createCellStyle();
-            headerSyle.setBorderBottom(CellStyle.BORDER_THIN);
-            headerSyle.setBottomBorderColor(IndexedColors.BLACK.getIndex());
-            headerSyle.setFont(boldFont);
+            ByteBuf content;
+            try {
+                if (!lastPage) {
+                    lastUserId = rows.get(rows.size() - 1).get(UserStorage.getIdColumn(metadata));
+                }
 
-            Row headerRow = sheet.createRow(0);
-            headerRow.setRowStyle(headerSyle);
+                if (columns == null && !metadata.isEmpty()) {
+                    columns = metadata;
+                }
+                content = writer.write(columns, alignColumns(columns, metadata, rows));
+            } catch (Throwable e) {
+                fail(e);
+                return;
+            }
 
-            for (int i = 0; i < metadata.size(); i++) {
-                final Cell cell = headerRow.createCell(i);
-                cell.setCellType(Cell.CELL_TYPE_STRING);
-                cell.setCellValue(metadata.get(i).getDescriptiveName());
+            sendHeaders();
+            if (lastPage) {
+                writeChunk(content).addListener(future -> {
+                    if (future.isSuccess()) {
+                        exportExecutor.execute(this::finish);
+                    } else {
+                        abort(future.cause());
+                    }
+                });
+            } else if (!content.isReadable()) {
+                content.release();
+                nextPage();
+            } else {
+                // the next page is fetched after the current page is written to the socket so that a slow client
+                // doesn't make us buffer the whole segment
+                writeChunk(content).addListener(future -> {
+                    if (future.isSuccess()) {
+                        nextPage();
+                    } else {
+                        abort(future.cause());
+                    }
+                });
             }
+        }
 
-            for (int i = 0; i < result.getResult().size(); i++) {
-                List<Object> objects = result.getResult().get(i);
-                Row row = sheet.createRow(i + 1);
-                for (int c = 0; c < metadata.size(); c++) {
-                    final FieldType type = metadata.get(c).getType();
+        private void finish() {
+            InputStream trailer;
+            try {
+                trailer = writer.finish(columns);
+            } catch (Throwable e) {
+                abort(e);
+                return;
+            }
 
-                    final int excelType = getExcelType(type);
-                    Cell cell = row.createCell(c, excelType);
-                    writeExcelValue(cell, objects.get(c), type);
-                }
+            if (trailer == null) {
+                end();
+            } else {
+                streamFile(trailer);
             }
+        }
 
+        private void streamFile(InputStream input) {
+            byte[] buffer = new byte[FILE_CHUNK_SIZE];
+            int read;
             try {
-                final ByteArrayOutputStream output = new ByteArrayOutputStream();
+                read = input.read(buffer);
+                if (read == -1) {
+                    input.close();
+                }
+            } catch (IOException e) {
+                closeQuietly(input);
+                abort(e);
+                return;
+            }
+
+            if (read == -1) {
+                end();
+                return;
+            }
+
+            writeChunk(Unpooled.wrappedBuffer(buffer, 0, read)).addListener(future -> {
+                if (future.isSuccess()) {
+                    exportExecutor.execute(() -> streamFile(input));
+                } else {
+                    closeQuietly(input);
+                    abort(future.cause());
+                }
+            });
+        }
+
+        private void sendHeaders() {
+            if (headersSent) {
+                return;
+            }
+            headersSent = true;
+
+            HttpResponse response = new DefaultHttpResponse(HTTP_1_1, OK);
+            HttpHeaders.setTransferEncodingChunked(response);
+            response.headers().set(CONTENT_TYPE, "application/octet-stream");
+            response.headers().set(EXPIRES, "0");
+            response.headers().set(CONTENT_TRANSFER_ENCODING, "binary");
+            response.headers().set("Content-Disposition", "attachment;filename=\"exported_people." + exportFormat.name().toLowerCase(Locale.ENGLISH) + "\"");
+
+            request.context().write(response);
+        }
+
+        private ChannelFuture writeChunk(ByteBuf content) {
+            return request.context().writeAndFlush(new DefaultHttpContent(content));
+        }
+
+        private void end() {
+            ChannelFuture lastContentFuture = request.context().writeAndFlush(LastHttpContent.EMPTY_LAST_CONTENT);
+            if (!HttpHeaders.isKeepAlive(request)) {
+                lastContentFuture.addListener(ChannelFutureListener.CLOSE);
+            }
+        }
+
+        private void fail(Throwable ex) {
+            if (ex instanceof CompletionException && ex.getCause() != null) {
+                ex = ex.getCause();
+            }
+
+            if (headersSent) {
+                abort(ex);
+                return;
+            }
+
+            writer.abort();
+            if (ex instanceof RakamException) {
+                HttpServer.returnError(request, ex.getMessage(), ((RakamException) ex).getStatusCode());
+            } else {
+                LOGGER.error(ex, "Error while exporting users of project %s", project);
+                HttpServer.returnError(request, "Unable to export the users", INTERNAL_SERVER_ERROR);
+            }
+        }
+
+        private void abort(Throwable ex) {
+            // the status is already sent, closing the connection before the last chunk tells the client that the export is incomplete
+            LOGGER.warn(ex, "User export of project %s is aborted", project);
+            writer.abort();
+            request.context().close();
+        }
+    }
+
+    /**
+     * The storages that don't have a fixed schema (such as DynamoDB) may return different columns for each page,
+     * the values are mapped to the columns of the first page since the header is already written.
+     */
+    private static List<List<Object>> alignColumns(List<SchemaField> columns, List<SchemaField> metadata, List<List<Object>> rows) {
+        if (columns == null || columns.equals(metadata)) {
+            return rows;
+        }
+
+        List<String> names = metadata.stream().map(SchemaField::getName).collect(Collectors.toList());
+        int[] positions = columns.stream().mapToInt(column -> names.indexOf(column.getName())).toArray();
+
+        List<List<Object>> aligned = new ArrayList<>(rows.size());
+        for (List<Object> row : rows) {
+            List<Object> alignedRow = new ArrayList<>(positions.length);
+            for (int position : positions) {
+                alignedRow.add(position == -1 ? null : row.get(position));
+            }
+            aligned.add(alignedRow);
+        }
+        return aligned;
+    }
+
+    private static void closeQuietly(InputStream input) {
+        try {
+            input.close();
+        } catch (IOException e) {
+            // ignore
+        }
+    }
+
+    private interface ExportWriter {
+        /**
+         * Encodes a page of users and returns the bytes that can be sent to the client.
+         */
+        ByteBuf write(List<SchemaField> columns, List<List<Object>> rows) throws IOException;
+
+        /**
+         * Returns the remaining part of the export that should be sent after the last page or null.
+         */
+        InputStream finish(List<SchemaField> columns) throws IOException;
+
+        void abort();
+    }
+
+    private static class CsvExportWriter implements ExportWriter {
+        private static final CSVFormat FORMAT = CSVFormat.DEFAULT.withQuoteMode(QuoteMode.NON_NUMERIC);
+        private boolean headerWritten;
+
+        @Override
+        public ByteBuf write(List<SchemaField> columns, List<List<Object>> rows) throws IOException {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            CSVPrinter printer = new CSVPrinter(new OutputStreamWriter(out, UTF_8), FORMAT);
+            if (!headerWritten && columns != null) {
+                printer.printRecord(columns.stream().map(SchemaField::getName).collect(Collectors.toList()));
+                headerWritten = true;
+            }
+            for (List<Object> row : rows) {
+                printer.printRecord(Iterables.transform(row, ExportUtil::toCSVValue));
+            }
+            printer.flush();
+            return Unpooled.wrappedBuffer(out.toByteArray());
+        }
+
+        @Override
+        public InputStream finish(List<SchemaField> columns) {
+            return null;
+        }
+
+        @Override
+        public void abort() {
+        }
+    }
+
+    /**
+     * XLSX can only be written when all the rows are known, the rows are flushed to a temporary file in a
+     * rolling window and the workbook is streamed from the disk after the last page.
+     */
+    private static class ExcelExportWriter implements ExportWriter {
+        private static final int MAX_ROWS_PER_SHEET = 1048576;
+        private static final String SHEET_NAME = "Users generated by Rakam";
+
+        private final SXSSFWorkbook workbook = new SXSSFWorkbook(100);
+        private Sheet sheet;
+        private int rowIndex;
+
+        private ExcelExportWriter() {
+            workbook.setCompressTempFiles(true);
+        }
+
+        @Override
+        public ByteBuf write(List<SchemaField> columns, List<List<Object>> rows) {
+            for (List<Object> objects : rows) {
+                if (sheet == null || rowIndex == MAX_ROWS_PER_SHEET) {
+                    createSheet(columns);
+                }
+
+                Row row = sheet.createRow(rowIndex++);
+                for (int c = 0; c < columns.size(); c++) {
+                    Object value = objects.get(c);
+                    if (value == null) {
+                        continue;
+                    }
+                    final FieldType type = columns.get(c).getType();
+                    Cell cell = row.createCell(c, getExcelType(type));
+                    writeExcelValue(cell, value, type);
+                }
+            }
+            return Unpooled.EMPTY_BUFFER;
+        }
+
+        @Override
+        public InputStream finish(List<SchemaField> columns) throws IOException {
+            if (sheet == null) {
+                createSheet(columns);
+            }
+
+            java.nio.file.Path file = Files.createTempFile("rakam-user-export", ".xlsx");
+            try (OutputStream output = Files.newOutputStream(file)) {
                 workbook.write(output);
-                output.close();
-                return output.toByteArray();
             } catch (IOException e) {
-                throw Throwables.propagate(e);
+                Files.deleteIfExists(file);
+                throw e;
+            } finally {
+                workbook.dispose();
             }
-        });
+
+            return Files.newInputStream(file, StandardOpenOption.DELETE_ON_CLOSE);
+        }
+
+        @Override
+        public void abort() {
+            workbook.dispose();
+        }
+
+        private void createSheet(List<SchemaField> columns) {
+            int sheetCount = workbook.getNumberOfSheets();
+            sheet = workbook.createSheet(sheetCount == 0 ? SHEET_NAME : format("%s (%d)", SHEET_NAME, sheetCount + 1));
+            rowIndex = 0;
+
+            if (columns == null) {
+                return;
+            }
+
+            Font boldFont = workbook.createFont();
+            boldFont.setBoldweight(Font.BOLDWEIGHT_BOLD);
+
+            CellStyle headerStyle = workbook.createCellStyle();
+            headerStyle.setBorderBottom(CellStyle.BORDER_THIN);
+            headerStyle.setBottomBorderColor(IndexedColors.BLACK.getIndex());
+            headerStyle.setFont(boldFont);
+
+            Row headerRow = sheet.createRow(rowIndex++);
+            headerRow.setRowStyle(headerStyle);
+
+            for (int i = 0; i < columns.size(); i++) {
+                final Cell cell = headerRow.createCell(i);
+                cell.setCellType(Cell.CELL_TYPE_STRING);
+                cell.setCellValue(columns.get(i).getDescriptiveName());
+            }
+        }
     }
 
     private static void writeExcelValue(Cell cell, Object field, FieldType type) {
@@ -223,6 +542,7 @@ public class UserUtilHttpService extends HttpService {
             case STRING:
             case TIMESTAMP:
             case TIME:
+            case DATE:
                 cell.setCellValue(field.toString());
                 break;
             case LONG:
@@ -230,15 +550,16 @@ public class UserUtilHttpService extends HttpService {
             case DOUBLE:
                 cell.setCellValue(((Number) field).doubleValue());
                 break;
+            case BOOLEAN:
+                cell.setCellValue((Boolean) field);
+                break;
             default:
-                throw new IllegalArgumentException("field type is not supported");
+                cell.setCellValue(ExportUtil.toCSVValue(field).toString());
         }
     }
 
     private static int getExcelType(FieldType type) {
         switch (type) {
-            case STRING:
-                return Cell.CELL_TYPE_STRING;
             case LONG:
             case INTEGER:
             case DOUBLE:
@@ -246,7 +567,7 @@ public class UserUtilHttpService extends HttpService {
             case BOOLEAN:
                 return Cell.CELL_TYPE_BOOLEAN;
             default:
-                return Cell.CELL_TYPE_BLANK;
+                return Cell.CELL_TYPE_STRING;
         }
     }
 }
@@ -0,0 +1,268 @@
+package org.rakam.util;
+
+import com.google.common.base.Throwables;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import com.google.common.util.concurrent.RateLimiter;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.sun.mail.smtp.SMTPAddressFailedException;
+import com.sun.mail.smtp.SMTPSendFailedException;
+import io.airlift.log.Logger;
+import io.airlift.units.Duration;
+
+import javax.mail.Message;
+import javax.mail.MessagingException;
+import javax.mail.SendFailedException;
+import javax.mail.Transport;
+
+import java.util.Locale;
+import java.util.Optional;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sends the emails of the batch user actions over a fixed number of SMTP connections that are kept open between
+ * the messages, unlike {@link MailSender#sendMail} that opens a new connection for each message.
+ * The messages are sent to the recipients of a domain at a limited rate and the transient failures are retried
+ * with exponential backoff. The messages that are throttled or waiting for a retry are rescheduled instead of
+ * holding a sender thread, so a throttled domain doesn't delay the messages of the other domains.
+ * The single emails are sent with {@link #sendNow} over a separate connection so that they don't wait behind
+ * the campaigns.
+ */
+public class BulkMailSender
+        implements AutoCloseable
+{
+    private final static Logger LOGGER = Logger.get(BulkMailSender.class);
+
+    private final MailSender mailSender;
+    private final BlockingQueue<Transport> transports;
+    private final Transport directTransport;
+    private final ExecutorService executor;
+    private final ScheduledExecutorService scheduler;
+    private final LoadingCache<String, RateLimiter> rateLimiters;
+    private final long throttleDelayMillis;
+    private final int maxRetries;
+    private final long retryBackoffMillis;
+
+    public BulkMailSender(MailSender mailSender, int connections, double ratePerDomain, int maxRetries, Duration retryBackoff)
+    {
+        this.mailSender = mailSender;
+        this.maxRetries = maxRetries;
+        this.retryBackoffMillis = retryBackoff.toMillis();
+
+        this.transports = new ArrayBlockingQueue<>(connections);
+        try {
+            for (int i = 0; i < connections; i++) {
+                // the transports are connected lazily when they're used for the first time
+                transports.add(mailSender.getSession().getTransport("smtp"));
+            }
+            directTransport = mailSender.getSession().getTransport("smtp");
+        }
+        catch (MessagingException e) {
+            throw Throwables.propagate(e);
+        }
+
+        // each thread holds a transport while sending so the number of threads limits the parallel sends
+        this.executor = Executors.newFixedThreadPool(connections,
+                new ThreadFactoryBuilder().setNameFormat("bulk-mail-sender-%d").setDaemon(true).build());
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(
+                new ThreadFactoryBuilder().setNameFormat("bulk-mail-scheduler").setDaemon(true).build());
+        this.rateLimiters = CacheBuilder.newBuilder()
+                .expireAfterAccess(1, TimeUnit.HOURS)
+                .build(CacheLoader.from(domain -> RateLimiter.create(ratePerDomain)));
+        this.throttleDelayMillis = Math.max(1, (long) (1000 / ratePerDomain));
+    }
+
+    /**
+     * Returns false if the email couldn't be delivered to the SMTP server.
+     */
+    public CompletableFuture<Boolean> send(String toEmail, String title, String textContent, Optional<String> richText)
+    {
+        Message message;
+        try {
+            message = mailSender.createMessage(toEmail, title, textContent, richText);
+        }
+        catch (MessagingException e) {
+            // invalid email address
+            return CompletableFuture.completedFuture(false);
+        }
+
+        Delivery delivery = new Delivery(toEmail, message);
+        submit(delivery);
+        return delivery.result;
+    }
+
+    /**
+     * Sends a single email in the calling thread. The email is not rate limited and it's sent over a dedicated
+     * connection, the connection is reopened once if the server closed it while it's idle.
+     */
+    public boolean sendNow(String toEmail, String title, String textContent, Optional<String> richText)
+    {
+        Message message;
+        try {
+            message = mailSender.createMessage(toEmail, title, textContent, richText);
+        }
+        catch (MessagingException e) {
+            // invalid email address
+            return false;
+        }
+
+        synchronized (directTransport) {
+            MessagingException lastException = null;
+            for (int attempt = 0; attempt < 2; attempt++) {
+                try {
+                    if (!directTransport.isConnected()) {
+                        directTransport.connect();
+                    }
+                    directTransport.sendMessage(message, message.getAllRecipients());
+                    return true;
+                }
+                catch (MessagingException e) {
+                    lastException = e;
+                    closeQuietly(directTransport);
+                    if (isPermanentFailure(e)) {
+                        break;
+                    }
+                }
+            }
+
+            LOGGER.warn(lastException, "Unable to send email to %s", toEmail);
+            return false;
+        }
+    }
+
+    private void submit(Delivery delivery)
+    {
+        try {
+            executor.execute(() -> deliver(delivery));
+        }
+        catch (RejectedExecutionException e) {
+            // the sender is closed
+            delivery.result.complete(false);
+        }
+    }
+
+    private void submitLater(Delivery delivery, long delayMillis)
+    {
+        try {
+            scheduler.schedule(() -> submit(delivery), delayMillis, TimeUnit.MILLISECONDS);
+        }
+        catch (RejectedExecutionException e) {
+            delivery.result.complete(false);
+        }
+    }
+
+    private void deliver(Delivery delivery)
+    {
+        // the message is sent with a single permit regardless of the number of attempts
+        if (!delivery.permitted) {
+            if (!rateLimiters.getUnchecked(delivery.domain).tryAcquire()) {
+                submitLater(delivery, throttleDelayMillis);
+                return;
+            }
+            delivery.permitted = true;
+        }
+
+        Transport transport;
+        try {
+            transport = transports.take();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            delivery.result.complete(false);
+            return;
+        }
+
+        try {
+            if (!transport.isConnected()) {
+                transport.connect();
+            }
+            transport.sendMessage(delivery.message, delivery.message.getAllRecipients());
+            delivery.result.complete(true);
+        }
+        catch (MessagingException e) {
+            // the state of the SMTP session is unknown after a failure, the transport reconnects when it's used again
+            closeQuietly(transport);
+            if (isPermanentFailure(e) || delivery.attempts >= maxRetries) {
+                LOGGER.warn(e, "Unable to send email to %s", delivery.toEmail);
+                delivery.result.complete(false);
+            }
+            else {
+                submitLater(delivery, retryBackoffMillis << delivery.attempts++);
+            }
+        }
+        finally {
+            transports.offer(transport);
+        }
+    }
+
+    private static class Delivery
+    {
+        private final String toEmail;
+        private final String domain;
+        private final Message message;
+        private final CompletableFuture<Boolean> result = new CompletableFuture<>();
+        // the delivery is handled by a single thread at a time
+        private volatile boolean permitted;
+        private volatile int attempts;
+
+        private Delivery(String toEmail, Message message)
+        {
+            this.toEmail = toEmail;
+            this.domain = getDomain(toEmail);
+            this.message = message;
+        }
+    }
+
+    private static boolean isPermanentFailure(MessagingException e)
+    {
+        // 5xx replies of the SMTP server are permanent, retrying the message doesn't help
+        if (e instanceof SMTPSendFailedException) {
+            return ((SMTPSendFailedException) e).getReturnCode() >= 500;
+        }
+        if (e instanceof SMTPAddressFailedException) {
+            return ((SMTPAddressFailedException) e).getReturnCode() >= 500;
+        }
+        if (e instanceof SendFailedException) {
+            Exception next = e.getNextException();
+            return next instanceof MessagingException && isPermanentFailure((MessagingException) next);
+        }
+        return false;
+    }
+
+    private static String getDomain(String email)
+    {
+        int index = email.lastIndexOf('@');
+        return index == -1 ? "" : email.substring(index + 1).toLowerCase(Locale.ENGLISH);
+    }
+
+    private static void closeQuietly(Transport transport)
+    {
+        try {
+            transport.close();
+        }
+        catch (MessagingException e) {
+            // ignore
+        }
+    }
+
+    @Override
+    public void close()
+    {
+        scheduler.shutdownNow();
+        executor.shutdownNow();
+        for (Transport transport : transports) {
+            closeQuietly(transport);
+        }
+        synchronized (directTransport) {
+            closeQuietly(directTransport);
+        }
+    }
+}
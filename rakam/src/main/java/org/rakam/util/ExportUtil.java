@@ -42,15 +42,7 @@ public class ExportUtil
             csvPrinter = new CSVPrinter(new PrintWriter(out), format);
             csvPrinter.printRecord(result.getMetadata().stream().map(SchemaField::getName)
                     .collect(Collectors.toList()));
-            csvPrinter.printRecords(Iterables.transform(result.getResult(), input -> Iterables.transform(input, input1 -> {
-                if(input1 instanceof List || input1 instanceof Map) {
-                    return JsonHelper.encode(input1);
-                }
-                if(input1 instanceof byte[]) {
-                    return DatatypeConverter.printBase64Binary((byte[]) input1);
-                }
-                return input1;
-            })));
+            csvPrinter.printRecords(Iterables.transform(result.getResult(), input -> Iterables.transform(input, ExportUtil::toCSVValue)));
             csvPrinter.flush();
         }
         catch (IOException e) {
@@ -60,6 +52,17 @@ public class ExportUtil
         return out.toByteArray();
     }
 
+    public static Object toCSVValue(Object value)
+    {
+        if(value instanceof List || value instanceof Map) {
+            return JsonHelper.encode(value);
+        }
+        if(value instanceof byte[]) {
+            return DatatypeConverter.printBase64Binary((byte[]) value);
+        }
+        return value;
+    }
+
     public static byte[] exportAsAvro(QueryResult result)
     {
         Schema avroSchema = AvroUtil.convertAvroSchema(result.getMetadata());
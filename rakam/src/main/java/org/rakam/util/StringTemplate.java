@@ -7,13 +7,30 @@ import java.util.function.Function;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
+/**
+ * The template is parsed once when it's created so that it can be formatted for each user of a batch cheaply.
+ */
 public class StringTemplate {
     private static final Pattern VARIABLE_PATTERN = Pattern.compile("\\{([^/?}]+)\\}");
 
     private final String template;
+    // the literal parts of the template, the variable at index i comes after literals[i]
+    private final List<String> literals;
+    private final List<String> variables;
 
     public StringTemplate(String template) {
         this.template = template;
+        this.literals = new ArrayList<>();
+        this.variables = new ArrayList<>();
+
+        Matcher matcher = VARIABLE_PATTERN.matcher(template);
+        int position = 0;
+        while (matcher.find()) {
+            literals.add(template.substring(position, matcher.start()));
+            variables.add(matcher.group(1));
+            position = matcher.end();
+        }
+        literals.add(template.substring(position));
     }
 
     public String getTemplate() {
@@ -25,24 +42,20 @@ public class StringTemplate {
     }
 
     public List<String> getVariables() {
-        List<String> vars = new ArrayList<>();
-        Matcher matcher = VARIABLE_PATTERN.matcher(template);
-
-        while (matcher.find()) {
-            vars.add(matcher.group(1));
-        }
-        return vars;
+        return new ArrayList<>(variables);
     }
 
     public String format(Function<String, String> replacement) {
-        StringBuffer sb = new StringBuffer();
-        Matcher matcher = VARIABLE_PATTERN.matcher(template);
-
-        while (matcher.find()) {
-            String apply = replacement.apply(matcher.group(1));
-            matcher.appendReplacement(sb, apply == null ? "" : apply);
+        StringBuilder sb = new StringBuilder(template.length());
+
+        for (int i = 0; i < variables.size(); i++) {
+            sb.append(literals.get(i));
+            String apply = replacement.apply(variables.get(i));
+            if (apply != null) {
+                sb.append(apply);
+            }
         }
-        matcher.appendTail(sb);
+        sb.append(literals.get(variables.size()));
         return sb.toString();
     }
 }
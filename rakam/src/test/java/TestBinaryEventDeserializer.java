@@ -0,0 +1,234 @@
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.core.Version;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.module.SimpleModule;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.protobuf.InvalidProtocolBufferException;
+import com.google.protobuf.ListValue;
+import com.google.protobuf.Struct;
+import com.google.protobuf.Value;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.http.DefaultHttpContent;
+import io.netty.handler.codec.http.DefaultLastHttpContent;
+import io.netty.handler.codec.http.LastHttpContent;
+import org.msgpack.jackson.dataformat.MessagePackFactory;
+import org.rakam.EventBuilder;
+import org.rakam.analysis.ApiKeyService;
+import org.rakam.analysis.InMemoryApiKeyService;
+import org.rakam.analysis.InMemoryMetastore;
+import org.rakam.collection.BinaryBodyCollector;
+import org.rakam.collection.BinaryEventDeserializer;
+import org.rakam.collection.Event;
+import org.rakam.collection.EventList;
+import org.rakam.collection.EventListDeserializer;
+import org.rakam.collection.EventPayloadFormat;
+import org.rakam.collection.FieldDependencyBuilder;
+import org.rakam.collection.FieldType;
+import org.rakam.collection.IngestionRateLimiter;
+import org.rakam.collection.JsonEventDeserializer;
+import org.rakam.collection.SchemaField;
+import org.rakam.metrics.MetricRegistry;
+import org.rakam.server.http.SwaggerJacksonAnnotationIntrospector;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.BeforeSuite;
+import org.testng.annotations.Test;
+
+import java.util.Arrays;
+import java.util.Map;
+
+import static org.rakam.collection.EventPayloadFormat.JSON;
+import static org.rakam.collection.EventPayloadFormat.MSGPACK;
+import static org.rakam.collection.EventPayloadFormat.PROTOBUF;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNotNull;
+import static org.testng.Assert.assertNull;
+
+public class TestBinaryEventDeserializer {
+    private final ObjectMapper msgpackMapper = new ObjectMapper(new MessagePackFactory());
+    private BinaryEventDeserializer deserializer;
+    private ApiKeyService.ProjectApiKeys apiKeys;
+    private EventBuilder eventBuilder;
+    private InMemoryMetastore metastore;
+    private JsonEventDeserializer eventDeserializer;
+    private InMemoryApiKeyService apiKeyService;
+
+    @BeforeSuite
+    public void setUp() throws Exception {
+        FieldDependencyBuilder.FieldDependency fieldDependency = new FieldDependencyBuilder().build();
+        apiKeyService = new InMemoryApiKeyService();
+        metastore = new InMemoryMetastore(apiKeyService);
+
+        eventDeserializer = new JsonEventDeserializer(metastore, apiKeyService, new TestConfigManager(), fieldDependency,
+                new MetricRegistry(null));
+        EventListDeserializer eventListDeserializer = new EventListDeserializer(apiKeyService, eventDeserializer);
+
+        deserializer = new BinaryEventDeserializer(
+                new SimpleModule()
+                        .addDeserializer(Event.class, eventDeserializer)
+                        .addDeserializer(EventList.class, eventListDeserializer),
+                new SimpleModule("swagger", Version.unknownVersion()) {
+                    @Override
+                    public void setupModule(SetupContext context) {
+                        context.insertAnnotationIntrospector(new SwaggerJacksonAnnotationIntrospector());
+                    }
+                });
+        eventBuilder = new EventBuilder("test", metastore);
+    }
+
+    @AfterMethod
+    public void tearDownMethod() throws Exception {
+        metastore.deleteProject("test");
+        eventDeserializer.cleanCache();
+        eventBuilder.cleanCache();
+    }
+
+    @BeforeMethod
+    public void setupMethod() throws Exception {
+        metastore.createProject("test");
+        apiKeys = apiKeyService.createApiKeys("test");
+    }
+
+    @Test
+    public void testContentType() throws Exception {
+        assertEquals(EventPayloadFormat.fromContentType(null), JSON);
+        assertEquals(EventPayloadFormat.fromContentType("application/json"), JSON);
+        assertEquals(EventPayloadFormat.fromContentType("text/plain"), JSON);
+        assertEquals(EventPayloadFormat.fromContentType("application/msgpack"), MSGPACK);
+        assertEquals(EventPayloadFormat.fromContentType("Application/X-MsgPack; charset=binary"), MSGPACK);
+        assertEquals(EventPayloadFormat.fromContentType("application/x-protobuf"), PROTOBUF);
+        assertFalse(JSON.isBinary());
+    }
+
+    @Test
+    public void testMessagePack() throws Exception {
+        ImmutableMap<String, Object> properties = ImmutableMap.of(
+                "test", 1L,
+                "test1", false,
+                "test2", "test",
+                "test3", ImmutableList.of("a", "b"),
+                "test4", ImmutableMap.of("a", 4.0));
+
+        byte[] bytes = msgpackMapper.writeValueAsBytes(ImmutableMap.of(
+                "collection", "test",
+                "api", ImmutableMap.of("api_key", apiKeys.writeKey()),
+                "properties", properties));
+
+        Event event = deserializer.read(MSGPACK, bytes, Event.class);
+
+        assertEquals(event.project(), "test");
+        assertEquals(event.collection(), "test");
+        assertEquals(event.api().apiKey, apiKeys.writeKey());
+        assertEquals(event.properties(), eventBuilder.createEvent("test", properties).properties());
+    }
+
+    @Test
+    public void testMessagePackBatch() throws Exception {
+        ImmutableMap<String, Object> properties = ImmutableMap.of("test0", "test", "test1", 2.5);
+        byte[] bytes = msgpackMapper.writeValueAsBytes(ImmutableMap.of(
+                "api", ImmutableMap.of("api_key", apiKeys.writeKey()),
+                "events", ImmutableList.of(
+                        ImmutableMap.of("collection", "test", "properties", properties),
+                        ImmutableMap.of("collection", "test", "properties", properties))));
+
+        EventList events = deserializer.read(MSGPACK, bytes, EventList.class);
+
+        assertEquals(events.project, "test");
+        assertEquals(events.events.size(), 2);
+        for (Event event : events.events) {
+            assertEquals(event.collection(), "test");
+            assertEquals(event.properties(), eventBuilder.createEvent("test", properties).properties());
+        }
+    }
+
+    @Test
+    public void testProtobuf() throws Exception {
+        Struct body = Struct.newBuilder()
+                .putFields("collection", string("test"))
+                .putFields("api", struct(ImmutableMap.of("api_key", string(apiKeys.writeKey()))))
+                .putFields("properties", struct(ImmutableMap.of(
+                        "test", Value.newBuilder().setNumberValue(1).build(),
+                        "test1", Value.newBuilder().setBoolValue(true).build(),
+                        "test2", string("test"),
+                        "test3", Value.newBuilder().setListValue(ListValue.newBuilder()
+                                .addValues(string("a")).addValues(string("b"))).build())))
+                .build();
+
+        Event event = deserializer.read(PROTOBUF, body.toByteArray(), Event.class);
+
+        assertEquals(event.project(), "test");
+        assertEquals(event.collection(), "test");
+        assertEquals(event.properties(), eventBuilder.createEvent("test", ImmutableMap.of(
+                "test", 1.0,
+                "test1", true,
+                "test2", "test",
+                "test3", ImmutableList.of("a", "b"))).properties());
+        assertEquals(ImmutableSet.copyOf(metastore.getCollection("test", "test")), ImmutableSet.of(
+                new SchemaField("test", FieldType.DOUBLE),
+                new SchemaField("_user", FieldType.STRING),
+                new SchemaField("test1", FieldType.BOOLEAN),
+                new SchemaField("test2", FieldType.STRING),
+                new SchemaField("test3", FieldType.ARRAY_STRING)));
+    }
+
+    @Test
+    public void testProtobufIsParsedOnce() throws Exception {
+        byte[] body = Struct.newBuilder()
+                .putFields("collection", string("test"))
+                .putFields("api", struct(ImmutableMap.of("api_key", string(apiKeys.writeKey()))))
+                .putFields("properties", struct(ImmutableMap.of("test", string("value"))))
+                .build().toByteArray();
+
+        IngestionRateLimiter.BodyParser tokens = deserializer.tokenize(PROTOBUF, body);
+        try (JsonParser parser = tokens.createParser()) {
+            assertEquals(parser.nextToken(), JsonToken.START_OBJECT);
+        }
+
+        // the tokens are buffered by the first parser so the body is not read again
+        Arrays.fill(body, (byte) 0);
+        Event event = deserializer.read(tokens, Event.class);
+
+        assertEquals(event.collection(), "test");
+        assertEquals(event.api().apiKey, apiKeys.writeKey());
+        assertEquals(event.properties(), eventBuilder.createEvent("test", ImmutableMap.of("test", "value")).properties());
+    }
+
+    @Test(expectedExceptions = InvalidProtocolBufferException.class)
+    public void testInvalidProtobuf() throws Exception {
+        deserializer.read(PROTOBUF, new byte[] {0x0A, 0x7F}, Event.class);
+    }
+
+    @Test
+    public void testCollector() throws Exception {
+        byte[] body = msgpackMapper.writeValueAsBytes(ImmutableMap.of("collection", "test"));
+        int split = body.length / 2;
+
+        BinaryBodyCollector collector = new BinaryBodyCollector();
+        EmbeddedChannel channel = new EmbeddedChannel(collector);
+        channel.writeInbound(new DefaultHttpContent(Unpooled.wrappedBuffer(Arrays.copyOf(body, split))));
+        channel.writeInbound(new DefaultLastHttpContent(Unpooled.wrappedBuffer(Arrays.copyOfRange(body, split, body.length))));
+
+        LastHttpContent content = (LastHttpContent) channel.readInbound();
+        assertEquals(content.content().readableBytes(), 0);
+        assertNull(collector.getError());
+        assertEquals(collector.getBody(), body);
+    }
+
+    @Test
+    public void testCollectorWithoutBody() throws Exception {
+        assertNotNull(new BinaryBodyCollector().getError());
+    }
+
+    private static Value string(String value) {
+        return Value.newBuilder().setStringValue(value).build();
+    }
+
+    private static Value struct(Map<String, Value> fields) {
+        return Value.newBuilder().setStructValue(Struct.newBuilder().putAllFields(fields)).build();
+    }
+}
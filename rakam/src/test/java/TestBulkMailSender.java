@@ -0,0 +1,206 @@
+import io.airlift.units.Duration;
+import org.rakam.util.BulkMailSender;
+import org.rakam.util.MailSender;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import javax.mail.Session;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.Properties;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static java.nio.charset.StandardCharsets.US_ASCII;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+public class TestBulkMailSender {
+    private FakeSmtpServer server;
+
+    @BeforeMethod
+    public void setUp() throws IOException {
+        server = new FakeSmtpServer();
+    }
+
+    @AfterMethod
+    public void tearDown() throws IOException {
+        server.close();
+    }
+
+    @Test
+    public void testConnectionsAreReused() throws Exception {
+        try (BulkMailSender sender = createSender(2, 0)) {
+            List<CompletableFuture<Boolean>> sends = new ArrayList<>();
+            for (int i = 0; i < 20; i++) {
+                sends.add(sender.send("user" + i + "@rakam.io", "title", "content", Optional.empty()));
+            }
+
+            for (CompletableFuture<Boolean> send : sends) {
+                assertTrue(send.get(10, TimeUnit.SECONDS));
+            }
+        }
+
+        assertEquals(server.messages.get(), 20);
+        assertTrue(server.connections.get() <= 2);
+    }
+
+    @Test
+    public void testTransientFailureIsRetried() throws Exception {
+        server.mailReplies.add("451 4.3.0 Try again later");
+
+        try (BulkMailSender sender = createSender(1, 2)) {
+            assertTrue(sender.send("user@rakam.io", "title", "content", Optional.empty()).get(10, TimeUnit.SECONDS));
+        }
+
+        assertEquals(server.messages.get(), 1);
+        assertEquals(server.mailCommands.get(), 2);
+    }
+
+    @Test
+    public void testPermanentFailureIsNotRetried() throws Exception {
+        server.mailReplies.add("550 5.1.0 Sender rejected");
+
+        try (BulkMailSender sender = createSender(1, 2)) {
+            assertFalse(sender.send("user@rakam.io", "title", "content", Optional.empty()).get(10, TimeUnit.SECONDS));
+        }
+
+        assertEquals(server.messages.get(), 0);
+        assertEquals(server.mailCommands.get(), 1);
+    }
+
+    @Test
+    public void testThrottledDomainDoesNotBlockOtherDomains() throws Exception {
+        try (BulkMailSender sender = createSender(1, 0, 1)) {
+            List<CompletableFuture<Boolean>> throttled = new ArrayList<>();
+            for (int i = 0; i < 3; i++) {
+                throttled.add(sender.send("user" + i + "@throttled.io", "title", "content", Optional.empty()));
+            }
+
+            // the throttled emails are rescheduled instead of holding the only connection
+            assertTrue(sender.send("user@rakam.io", "title", "content", Optional.empty()).get(1, TimeUnit.SECONDS));
+            assertFalse(throttled.get(2).isDone());
+
+            for (CompletableFuture<Boolean> send : throttled) {
+                assertTrue(send.get(10, TimeUnit.SECONDS));
+            }
+        }
+
+        assertEquals(server.messages.get(), 4);
+    }
+
+    @Test
+    public void testSingleEmailIsSentOnSeparateConnection() throws Exception {
+        try (BulkMailSender sender = createSender(1, 0)) {
+            assertTrue(sender.send("user0@rakam.io", "title", "content", Optional.empty()).get(10, TimeUnit.SECONDS));
+            assertTrue(sender.sendNow("user1@rakam.io", "title", "content", Optional.empty()));
+            assertTrue(sender.sendNow("user2@rakam.io", "title", "content", Optional.empty()));
+        }
+
+        assertEquals(server.messages.get(), 3);
+        assertEquals(server.connections.get(), 2);
+    }
+
+    private BulkMailSender createSender(int connections, int maxRetries) {
+        return createSender(connections, maxRetries, 1000);
+    }
+
+    private BulkMailSender createSender(int connections, int maxRetries, double ratePerDomain) {
+        Properties props = new Properties();
+        props.put("mail.smtp.host", "localhost");
+        props.put("mail.smtp.port", String.valueOf(server.getPort()));
+        MailSender mailSender = new MailSender(Session.getInstance(props), "test@rakam.io", "Rakam");
+        return new BulkMailSender(mailSender, connections, ratePerDomain, maxRetries, new Duration(10, TimeUnit.MILLISECONDS));
+    }
+
+    private static class FakeSmtpServer {
+        private final ServerSocket serverSocket;
+        private final AtomicInteger connections = new AtomicInteger();
+        private final AtomicInteger mailCommands = new AtomicInteger();
+        private final AtomicInteger messages = new AtomicInteger();
+        // the replies of the next MAIL commands, the commands are accepted when it's empty
+        private final Queue<String> mailReplies = new ConcurrentLinkedQueue<>();
+
+        private FakeSmtpServer() throws IOException {
+            serverSocket = new ServerSocket(0);
+            Thread acceptor = new Thread(() -> {
+                while (!serverSocket.isClosed()) {
+                    try {
+                        Socket socket = serverSocket.accept();
+                        connections.incrementAndGet();
+                        Thread handler = new Thread(() -> handle(socket));
+                        handler.setDaemon(true);
+                        handler.start();
+                    } catch (IOException e) {
+                        return;
+                    }
+                }
+            });
+            acceptor.setDaemon(true);
+            acceptor.start();
+        }
+
+        public int getPort() {
+            return serverSocket.getLocalPort();
+        }
+
+        private void handle(Socket socket) {
+            try (Socket s = socket) {
+                BufferedReader reader = new BufferedReader(new InputStreamReader(s.getInputStream(), US_ASCII));
+                OutputStream output = s.getOutputStream();
+                reply(output, "220 localhost ESMTP");
+
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    String command = line.length() < 4 ? line : line.substring(0, 4).toUpperCase();
+                    switch (command) {
+                        case "MAIL":
+                            mailCommands.incrementAndGet();
+                            String mailReply = mailReplies.poll();
+                            reply(output, mailReply == null ? "250 OK" : mailReply);
+                            break;
+                        case "DATA":
+                            reply(output, "354 End data with <CR><LF>.<CR><LF>");
+                            while ((line = reader.readLine()) != null && !line.equals(".")) {
+                            }
+                            messages.incrementAndGet();
+                            reply(output, "250 OK");
+                            break;
+                        case "QUIT":
+                            reply(output, "221 Bye");
+                            return;
+                        default:
+                            reply(output, "250 OK");
+                    }
+                }
+            } catch (SocketException e) {
+                // the client closed the connection
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
+
+        private static void reply(OutputStream output, String reply) throws IOException {
+            output.write((reply + "\r\n").getBytes(US_ASCII));
+            output.flush();
+        }
+
+        public void close() throws IOException {
+            serverSocket.close();
+        }
+    }
+}
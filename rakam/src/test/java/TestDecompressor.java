@@ -0,0 +1,160 @@
+import com.github.luben.zstd.ZstdOutputStream;
+import com.google.common.io.ByteStreams;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.http.DefaultHttpContent;
+import io.netty.handler.codec.http.DefaultLastHttpContent;
+import io.netty.handler.codec.http.LastHttpContent;
+import org.rakam.collection.Decompressor;
+import org.rakam.collection.RequestDecompressionConfig;
+import org.rakam.plugin.EventStore.CompressionType;
+import org.rakam.util.RakamException;
+import org.testng.annotations.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+import static io.netty.handler.codec.http.HttpResponseStatus.REQUEST_ENTITY_TOO_LARGE;
+import static io.netty.handler.codec.http.HttpResponseStatus.UNSUPPORTED_MEDIA_TYPE;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.rakam.plugin.EventStore.CompressionType.DEFLATE;
+import static org.rakam.plugin.EventStore.CompressionType.GZIP;
+import static org.rakam.plugin.EventStore.CompressionType.ZSTD;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNotNull;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.fail;
+
+public class TestDecompressor {
+    private static final byte[] BODY = "{\"api\": {\"api_key\": \"key\"}, \"events\": [{\"collection\": \"test\", \"properties\": {\"name\": \"ğü\"}}]}"
+            .getBytes(UTF_8);
+
+    private final Decompressor decompressor = new Decompressor(new RequestDecompressionConfig());
+
+    @Test
+    public void testContentEncoding() throws Exception {
+        assertNull(Decompressor.fromContentEncoding(null));
+        assertNull(Decompressor.fromContentEncoding("identity"));
+        assertEquals(Decompressor.fromContentEncoding("gzip"), GZIP);
+        assertEquals(Decompressor.fromContentEncoding(" GZIP "), GZIP);
+        assertEquals(Decompressor.fromContentEncoding("deflate"), DEFLATE);
+        assertEquals(Decompressor.fromContentEncoding("zstd"), ZSTD);
+
+        try {
+            Decompressor.fromContentEncoding("br");
+            fail();
+        }
+        catch (RakamException e) {
+            assertEquals(e.getStatusCode(), UNSUPPORTED_MEDIA_TYPE);
+        }
+    }
+
+    @Test
+    public void testDecompress() throws Exception {
+        for (CompressionType compression : CompressionType.values()) {
+            byte[] decompressed = ByteStreams.toByteArray(decompressor.decompress(
+                    new ByteArrayInputStream(compress(BODY, compression)), compression));
+            assertEquals(decompressed, BODY, compression.name());
+        }
+    }
+
+    @Test
+    public void testRawDeflate() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (OutputStream stream = new DeflaterOutputStream(out, new Deflater(Deflater.DEFAULT_COMPRESSION, true))) {
+            stream.write(BODY);
+        }
+
+        byte[] decompressed = ByteStreams.toByteArray(decompressor.decompress(new ByteArrayInputStream(out.toByteArray()), DEFLATE));
+        assertEquals(decompressed, BODY);
+    }
+
+    @Test
+    public void testMaxSize() throws Exception {
+        Decompressor decompressor = new Decompressor(new RequestDecompressionConfig().setMaxSize("1kB").setMaxRatio(10000));
+        byte[] data = new byte[2048];
+
+        try {
+            ByteStreams.toByteArray(decompressor.decompress(new ByteArrayInputStream(compress(data, GZIP)), GZIP));
+            fail();
+        }
+        catch (RakamException e) {
+            assertEquals(e.getStatusCode(), REQUEST_ENTITY_TOO_LARGE);
+        }
+    }
+
+    @Test
+    public void testMaxRatio() throws Exception {
+        Decompressor decompressor = new Decompressor(new RequestDecompressionConfig().setMaxSize("1GB").setMaxRatio(100));
+        // the zeros compress to a few kilobytes
+        byte[] data = new byte[4 * 1024 * 1024];
+
+        for (CompressionType compression : CompressionType.values()) {
+            try {
+                ByteStreams.toByteArray(decompressor.decompress(new ByteArrayInputStream(compress(data, compression)), compression));
+                fail(compression.name());
+            }
+            catch (RakamException e) {
+                assertEquals(e.getStatusCode(), REQUEST_ENTITY_TOO_LARGE);
+            }
+        }
+    }
+
+    @Test
+    public void testBodyDecoder() throws Exception {
+        byte[] compressed = compress(BODY, GZIP);
+        int split = compressed.length / 2;
+
+        Decompressor.BodyDecoder decoder = decompressor.createDecoder(GZIP);
+        EmbeddedChannel channel = new EmbeddedChannel(decoder);
+        channel.writeInbound(new DefaultHttpContent(Unpooled.wrappedBuffer(Arrays.copyOf(compressed, split))));
+        channel.writeInbound(new DefaultLastHttpContent(Unpooled.wrappedBuffer(Arrays.copyOfRange(compressed, split, compressed.length))));
+
+        LastHttpContent content = (LastHttpContent) channel.readInbound();
+        assertEquals(content.content().toString(UTF_8), new String(BODY, UTF_8));
+        content.release();
+        assertNull(decoder.getError());
+        // the decoder is removed after the body
+        assertNull(channel.pipeline().get(Decompressor.BodyDecoder.class));
+    }
+
+    @Test
+    public void testBodyDecoderInvalidBody() throws Exception {
+        Decompressor.BodyDecoder decoder = decompressor.createDecoder(GZIP);
+        EmbeddedChannel channel = new EmbeddedChannel(decoder);
+        channel.writeInbound(new DefaultLastHttpContent(Unpooled.wrappedBuffer(BODY)));
+
+        LastHttpContent content = (LastHttpContent) channel.readInbound();
+        assertEquals(content.content().readableBytes(), 0);
+        assertNotNull(decoder.getError());
+    }
+
+    private static byte[] compress(byte[] data, CompressionType compression) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        OutputStream stream;
+        switch (compression) {
+            case GZIP:
+                stream = new GZIPOutputStream(out);
+                break;
+            case DEFLATE:
+                stream = new DeflaterOutputStream(out);
+                break;
+            case ZSTD:
+                stream = new ZstdOutputStream(out);
+                break;
+            default:
+                throw new IllegalArgumentException();
+        }
+
+        try (OutputStream closeable = stream) {
+            closeable.write(data);
+        }
+        return out.toByteArray();
+    }
+}
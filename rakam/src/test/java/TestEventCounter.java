@@ -0,0 +1,196 @@
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import org.apache.avro.Schema;
+import org.apache.avro.generic.GenericData;
+import org.rakam.analysis.metadata.Metastore;
+import org.rakam.collection.CountingEventStore;
+import org.rakam.collection.Event;
+import org.rakam.collection.EventCounter;
+import org.rakam.collection.EventCounterConfig;
+import org.rakam.collection.SchemaField;
+import org.rakam.plugin.EventStore;
+import org.rakam.plugin.SystemEvents;
+import org.rakam.report.QueryResult;
+import org.rakam.util.AvroUtil;
+import org.skife.jdbi.v2.DBI;
+import org.testng.annotations.Test;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneOffset;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+
+import static org.rakam.collection.FieldType.STRING;
+import static org.rakam.collection.FieldType.TIMESTAMP;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+public class TestEventCounter {
+    private static final List<SchemaField> FIELDS = ImmutableList.of(
+            new SchemaField("_time", TIMESTAMP),
+            new SchemaField("name", STRING));
+    private static final Schema SCHEMA = AvroUtil.convertAvroSchema(FIELDS);
+
+    private static final Instant NOW = Instant.parse("2016-05-10T12:30:00Z");
+    private static final Instant HOUR = Instant.parse("2016-05-10T12:00:00Z");
+
+    @Test
+    public void testHourlyCounts() throws Exception {
+        EventCounter counter = createCounter();
+
+        counter.count(event("a", NOW));
+        counter.count(ImmutableList.of(event("a", NOW.plusSeconds(60)), event("b", NOW), event("a", NOW.plusSeconds(3600))));
+
+        assertEquals(counter.getPendingCount("project", "a", HOUR), 2);
+        assertEquals(counter.getPendingCount("project", "b", HOUR), 1);
+        assertEquals(counter.getPendingCount("project", "a", HOUR.plusSeconds(3600)), 1);
+        assertEquals(counter.getPendingCount("other_project", "a", HOUR), 0);
+    }
+
+    @Test
+    public void testEventsWithoutTime() throws Exception {
+        EventCounter counter = createCounter();
+
+        counter.count(event("a", null));
+
+        assertEquals(counter.getPendingCount("project", "a", HOUR), 1);
+    }
+
+    @Test
+    public void testFailedEventsAreNotCounted() throws Exception {
+        EventCounter counter = createCounter();
+        EventStore store = new CountingEventStore(new EventStore() {
+            @Override
+            public CompletableFuture<int[]> storeBatchAsync(List<Event> events) {
+                return CompletableFuture.completedFuture(new int[] {1});
+            }
+
+            @Override
+            public CompletableFuture<Void> storeAsync(Event event) {
+                CompletableFuture<Void> future = new CompletableFuture<>();
+                future.completeExceptionally(new IllegalStateException());
+                return future;
+            }
+        }, counter);
+
+        store.storeBatchAsync(ImmutableList.of(event("a", NOW), event("a", NOW), event("b", NOW))).join();
+        store.storeAsync(event("a", NOW)).exceptionally(e -> null).join();
+
+        assertEquals(counter.getPendingCount("project", "a", HOUR), 1);
+        assertEquals(counter.getPendingCount("project", "b", HOUR), 1);
+    }
+
+    @Test
+    public void testFlushMergesCountersOfNodes() throws Exception {
+        DBI dbi = createDatabase();
+        EventCounter node1 = createCounter(dbi);
+        EventCounter node2 = createCounter(dbi);
+        node1.start();
+        node2.start();
+        try {
+            node1.onCreateProject(new SystemEvents.ProjectCreatedEvent("project"));
+
+            node1.count(ImmutableList.of(event("a", NOW), event("b", NOW)));
+            node2.count(ImmutableList.of(event("a", NOW), event("a", NOW.minus(Duration.ofDays(40)))));
+            node1.flush();
+            node2.flush();
+            node1.count(event("a", NOW.minusSeconds(3600)));
+            node1.flush();
+
+            assertEquals(node1.getPendingCount("project", "a", HOUR), 0);
+
+            QueryResult result = node2.getEventStatistics("project", Optional.empty(), Optional.empty(),
+                    LocalDate.of(2016, 5, 1), LocalDate.of(2016, 5, 10));
+            assertEquals(ImmutableSet.copyOf(result.getResult()), ImmutableSet.of(
+                    ImmutableList.of("a", 3L),
+                    ImmutableList.of("b", 1L)));
+
+            result = node2.getEventStatistics("project", Optional.<Set<String>>of(ImmutableSet.of("b")), Optional.empty(),
+                    LocalDate.of(2016, 5, 1), LocalDate.of(2016, 5, 10));
+            assertEquals(result.getResult(), ImmutableList.of(ImmutableList.of("b", 1L)));
+
+            Metastore.Stats stats = node2.getStats(ImmutableList.of("project")).get("project");
+            assertEquals(stats.allEvents, Long.valueOf(5));
+            assertEquals(stats.monthlyEvents, Long.valueOf(4));
+            assertEquals(stats.dailyEvents, Long.valueOf(4));
+        }
+        finally {
+            node1.stop();
+            node2.stop();
+        }
+    }
+
+    @Test
+    public void testExistingProjectsAreCountedAfterFirstFlush() throws Exception {
+        EventCounter counter = createCounter(createDatabase());
+        counter.start();
+        try {
+            counter.count(event("a", NOW));
+            counter.flush();
+
+            // the events of the project before the counting are in the event tables
+            assertFalse(counter.isCounted("project", LocalDate.of(2016, 5, 10)));
+            assertTrue(counter.isCounted("project", LocalDate.of(2016, 5, 11)));
+            assertFalse(counter.isCounted("other_project", LocalDate.of(2016, 5, 11)));
+            assertEquals(counter.getStats(ImmutableList.of("project")), ImmutableMap.of());
+
+            counter.delete("project");
+            counter.onCreateProject(new SystemEvents.ProjectCreatedEvent("project"));
+
+            assertTrue(counter.isCounted("project", LocalDate.of(2016, 5, 10)));
+            assertEquals(counter.getStats(ImmutableList.of("project")).get("project").allEvents, Long.valueOf(0));
+        }
+        finally {
+            counter.stop();
+        }
+    }
+
+    @Test
+    public void testCopiedEventsAreNotCounted() throws Exception {
+        EventCounter counter = createCounter(createDatabase());
+        counter.start();
+        try {
+            counter.onCreateProject(new SystemEvents.ProjectCreatedEvent("project"));
+            counter.onEventsCopied("project");
+
+            // the copied events are only in the event tables
+            assertFalse(counter.isCounted("project", LocalDate.of(2016, 5, 10)));
+            assertTrue(counter.isCounted("project", LocalDate.of(2016, 5, 11)));
+            assertEquals(counter.getStats(ImmutableList.of("project")), ImmutableMap.of());
+
+            counter.onEventsCopied("other_project");
+            assertFalse(counter.isCounted("other_project", LocalDate.of(2016, 5, 10)));
+            assertTrue(counter.isCounted("other_project", LocalDate.of(2016, 5, 11)));
+        }
+        finally {
+            counter.stop();
+        }
+    }
+
+    private static EventCounter createCounter() {
+        // the counts are not flushed so the database is never used
+        return createCounter(new DBI("jdbc:h2:mem:"));
+    }
+
+    private static EventCounter createCounter(DBI dbi) {
+        return new EventCounter(dbi, new EventCounterConfig(), Clock.fixed(NOW, ZoneOffset.UTC));
+    }
+
+    private static DBI createDatabase() {
+        return new DBI(String.format("jdbc:h2:mem:event_counter%s;DB_CLOSE_DELAY=-1", System.nanoTime()));
+    }
+
+    private static Event event(String collection, Instant time) {
+        GenericData.Record record = new GenericData.Record(SCHEMA);
+        record.put("_time", time == null ? null : time.toEpochMilli());
+        record.put("name", "value");
+        return new Event("project", collection, Event.EventContext.apiKey("key"), FIELDS, record);
+    }
+}
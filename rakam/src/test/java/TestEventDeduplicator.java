@@ -0,0 +1,150 @@
+import com.google.common.base.Ticker;
+import com.google.common.collect.ImmutableList;
+import org.apache.avro.Schema;
+import org.apache.avro.generic.GenericData;
+import org.rakam.collection.Event;
+import org.rakam.collection.EventDeduplicationConfig;
+import org.rakam.collection.EventDeduplicator;
+import org.rakam.collection.SchemaField;
+import org.rakam.util.AvroUtil;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.rakam.collection.FieldType.LONG;
+import static org.rakam.collection.FieldType.STRING;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertSame;
+import static org.testng.Assert.assertTrue;
+
+public class TestEventDeduplicator {
+    private static final List<SchemaField> FIELDS = ImmutableList.of(
+            new SchemaField("_message_id", STRING),
+            new SchemaField("name", STRING),
+            new SchemaField("value", LONG));
+    private static final Schema SCHEMA = AvroUtil.convertAvroSchema(FIELDS);
+
+    private final FakeTicker ticker = new FakeTicker();
+
+    @Test
+    public void testMessageId() throws Exception {
+        EventDeduplicator deduplicator = createDeduplicator();
+
+        assertFalse(deduplicator.isDuplicate(event("project", "id1", "a", 1)));
+        assertTrue(deduplicator.isDuplicate(event("project", "id1", "b", 2)));
+        assertFalse(deduplicator.isDuplicate(event("project", "id2", "a", 1)));
+        // the ids are unique in a project
+        assertFalse(deduplicator.isDuplicate(event("other_project", "id1", "a", 1)));
+    }
+
+    @Test
+    public void testContentHash() throws Exception {
+        EventDeduplicator deduplicator = createDeduplicator();
+
+        assertFalse(deduplicator.isDuplicate(event("project", null, "a", 1)));
+        assertTrue(deduplicator.isDuplicate(event("project", null, "a", 1)));
+        assertFalse(deduplicator.isDuplicate(event("project", null, "a", 2)));
+        assertFalse(deduplicator.isDuplicate(event("project", null, "b", 1)));
+    }
+
+    @Test
+    public void testForget() throws Exception {
+        EventDeduplicator deduplicator = createDeduplicator();
+
+        Event event = event("project", "id", "a", 1);
+        assertFalse(deduplicator.isDuplicate(event));
+        // the event couldn't be stored so the retry of the client is accepted
+        deduplicator.forget(event);
+        assertFalse(deduplicator.isDuplicate(event));
+        assertTrue(deduplicator.isDuplicate(event));
+
+        deduplicator.forget(ImmutableList.of(event, event("project", "unknown", "a", 1)));
+        assertFalse(deduplicator.isDuplicate(event));
+    }
+
+    @Test
+    public void testWindow() throws Exception {
+        EventDeduplicator deduplicator = createDeduplicator();
+
+        assertFalse(deduplicator.isDuplicate(event("project", "id", "a", 1)));
+        ticker.advance(30, TimeUnit.MINUTES);
+        assertTrue(deduplicator.isDuplicate(event("project", "id", "a", 1)));
+
+        ticker.advance(2, TimeUnit.HOURS);
+        assertFalse(deduplicator.isDuplicate(event("project", "id", "a", 1)));
+    }
+
+    @Test
+    public void testFilter() throws Exception {
+        EventDeduplicator deduplicator = createDeduplicator();
+
+        List<Event> events = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            events.add(event("project", "id" + i, "a", i));
+        }
+        assertSame(deduplicator.filter(events), events);
+
+        List<Event> retry = ImmutableList.of(
+                event("project", "id1", "a", 1),
+                event("project", "new1", "a", 1),
+                event("project", "id2", "a", 2),
+                event("project", "new2", "a", 2),
+                event("project", "new2", "a", 2));
+        List<Event> unique = deduplicator.filter(retry);
+        assertEquals(unique, ImmutableList.of(retry.get(1), retry.get(3)));
+        assertEquals(EventDeduplicator.toOriginalIndexes(unique, new int[] {1}), new int[] {3});
+    }
+
+    @Test
+    public void testFalsePositivesAreNotDropped() throws Exception {
+        EventDeduplicator deduplicator = new EventDeduplicator(new EventDeduplicationConfig()
+                .setEnabled(true)
+                .setExpectedEvents(100)
+                .setFalsePositiveRate(0.5), ticker);
+
+        // the Bloom filter is saturated but the events are confirmed with the cache
+        for (int i = 0; i < 10_000; i++) {
+            assertFalse(deduplicator.isDuplicate(event("project", "id" + i, "a", i)));
+        }
+    }
+
+    @Test
+    public void testDisabled() throws Exception {
+        EventDeduplicator deduplicator = new EventDeduplicator(new EventDeduplicationConfig(), ticker);
+
+        assertFalse(deduplicator.isDuplicate(event("project", "id", "a", 1)));
+        assertFalse(deduplicator.isDuplicate(event("project", "id", "a", 1)));
+    }
+
+    private EventDeduplicator createDeduplicator() {
+        return new EventDeduplicator(new EventDeduplicationConfig()
+                .setEnabled(true)
+                .setWindow("1h")
+                .setBuckets(4), ticker);
+    }
+
+    private static Event event(String project, String messageId, String name, long value) {
+        GenericData.Record record = new GenericData.Record(SCHEMA);
+        record.put("_message_id", messageId);
+        record.put("name", name);
+        record.put("value", value);
+        return new Event(project, "collection", Event.EventContext.apiKey("key"), FIELDS, record);
+    }
+
+    private static class FakeTicker extends Ticker {
+        private final AtomicLong nanos = new AtomicLong();
+
+        @Override
+        public long read() {
+            return nanos.get();
+        }
+
+        public void advance(long value, TimeUnit unit) {
+            nanos.addAndGet(unit.toNanos(value));
+        }
+    }
+}
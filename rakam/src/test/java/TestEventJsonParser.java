@@ -4,6 +4,7 @@ import com.fasterxml.jackson.databind.module.SimpleModule;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
+import com.google.common.eventbus.EventBus;
 import org.rakam.EventBuilder;
 import org.rakam.analysis.ApiKeyService;
 import org.rakam.analysis.InMemoryApiKeyService;
@@ -15,6 +16,7 @@ import org.rakam.collection.EventListDeserializer;
 import org.rakam.collection.FieldDependencyBuilder;
 import org.rakam.collection.FieldType;
 import org.rakam.collection.SchemaField;
+import org.rakam.metrics.MetricRegistry;
 import org.rakam.util.JsonHelper;
 import org.rakam.util.RakamException;
 import org.testng.annotations.AfterMethod;
@@ -41,7 +43,8 @@ public class TestEventJsonParser {
         apiKeyService = new InMemoryApiKeyService();
         metastore = new InMemoryMetastore(apiKeyService);
 
-        eventDeserializer = new JsonEventDeserializer(metastore, apiKeyService, new TestConfigManager(), fieldDependency);
+        eventDeserializer = new JsonEventDeserializer(metastore, apiKeyService, new TestConfigManager(), fieldDependency,
+                new MetricRegistry(null));
         EventListDeserializer eventListDeserializer = new EventListDeserializer(apiKeyService, eventDeserializer);
 
         mapper = JsonHelper.getMapper();
@@ -81,6 +84,33 @@ public class TestEventJsonParser {
                 .createEvent("test", ImmutableMap.of()).properties(), event.properties());
     }
 
+    @Test
+    public void testSchemaChangeMetrics() throws Exception {
+        EventBus eventBus = new EventBus();
+        InMemoryMetastore metastore = new InMemoryMetastore(new FieldDependencyBuilder().build(), apiKeyService, eventBus);
+        MetricRegistry metricRegistry = new MetricRegistry(null);
+        JsonEventDeserializer deserializer = new JsonEventDeserializer(metastore, apiKeyService, new TestConfigManager(),
+                new FieldDependencyBuilder().build(), metricRegistry);
+        ObjectMapper mapper = JsonHelper.getMapper().copy()
+                .registerModule(new SimpleModule().addDeserializer(Event.class, deserializer));
+
+        metastore.createProject("test");
+        // the collection is created by another node before the event is parsed
+        metastore.getOrCreateCollectionFieldList("test", "created", ImmutableSet.of(new SchemaField("_user", FieldType.STRING)));
+        eventBus.register(deserializer);
+
+        Event.EventContext api = Event.EventContext.apiKey(apiKeys.writeKey());
+        mapper.readValue(mapper.writeValueAsBytes(ImmutableMap.of("collection", "created", "api", api,
+                "properties", ImmutableMap.of("test", "a"))), Event.class);
+        mapper.readValue(mapper.writeValueAsBytes(ImmutableMap.of("collection", "new", "api", api,
+                "properties", ImmutableMap.of())), Event.class);
+        mapper.readValue(mapper.writeValueAsBytes(ImmutableMap.of("collection", "new", "api", api,
+                "properties", ImmutableMap.of())), Event.class);
+
+        assertEquals(metricRegistry.counter("rakam_collection_schema_changes_total", "", "type", "collection").getCount(), 1);
+        assertEquals(metricRegistry.counter("rakam_collection_schema_changes_total", "", "type", "field").getCount(), 1);
+    }
+
     @Test
     public void testSimpleWithoutProject() throws Exception {
         Event.EventContext api = Event.EventContext.apiKey(apiKeys.writeKey());
@@ -0,0 +1,176 @@
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import io.netty.handler.codec.http.DefaultHttpHeaders;
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http.cookie.Cookie;
+import io.netty.handler.codec.http.cookie.DefaultCookie;
+import org.rakam.collection.Event;
+import org.rakam.collection.EventList;
+import org.rakam.collection.EventMapperExecutor;
+import org.rakam.collection.EventMapperExecutorConfig;
+import org.rakam.collection.FieldDependencyBuilder;
+import org.rakam.collection.SchemaField;
+import org.rakam.metrics.MetricRegistry;
+import org.rakam.plugin.EventMapper;
+import org.testng.annotations.Test;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.rakam.collection.FieldType.STRING;
+import static org.rakam.collection.FieldType.TIMESTAMP;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+public class TestEventMapperExecutor {
+    private static final Event.EventContext CONTEXT = new Event.EventContext(null, null, null, null, null, null);
+
+    @Test
+    public void testDependentMappersKeepOrder() throws Exception {
+        List<String> calls = Collections.synchronizedList(new ArrayList<>());
+
+        Set<EventMapper> mappers = new LinkedHashSet<>();
+        mappers.add(new RecordingMapper("time", calls, null, new SchemaField("_time", TIMESTAMP)));
+        mappers.add(new RecordingMapper("opaque", calls, null, null));
+        mappers.add(new RecordingMapper("referrer", calls, "_time", new SchemaField("_referrer_medium", STRING)));
+        mappers.add(new RecordingMapper("user_agent", calls, "_user_agent", new SchemaField("_os", STRING)));
+
+        EventMapperExecutor executor = new EventMapperExecutor(mappers,
+                new EventMapperExecutorConfig().setThreads(4).setBatchChunkSize(3), new MetricRegistry(null));
+
+        try {
+            EventList events = new EventList(CONTEXT, "project", Collections.nCopies(10, null));
+            HttpHeaders headers = new DefaultHttpHeaders();
+            List<Cookie> cookies = executor.map(events, EventMapper.RequestParams.EMPTY_PARAMS,
+                    InetAddress.getLoopbackAddress(), headers).join();
+
+            // the mappers that process the batch as a whole are not called for each chunk
+            assertEquals(cookies.size(), 4);
+            assertEquals(ImmutableSet.copyOf(calls), ImmutableSet.of("time:10", "opaque:10", "referrer:10", "user_agent:10"));
+
+            int opaque = calls.indexOf("opaque:10");
+            assertTrue(opaque >= 0);
+            assertEquals(calls.lastIndexOf("opaque:10"), opaque);
+            for (int i = 0; i < calls.size(); i++) {
+                if (calls.get(i).startsWith("time")) {
+                    assertTrue(i < opaque);
+                }
+                else if (calls.get(i).startsWith("referrer") || calls.get(i).startsWith("user_agent")) {
+                    assertTrue(i > opaque);
+                }
+            }
+        }
+        finally {
+            executor.destroy();
+        }
+    }
+
+    @Test
+    public void testEventMappersAreChunked() throws Exception {
+        Set<EventMapper> mappers = new LinkedHashSet<>();
+        mappers.add(new HeaderMapper("X-Os", new SchemaField("_os", STRING)));
+        mappers.add(new HeaderMapper("X-Country", new SchemaField("_country", STRING)));
+
+        EventMapperExecutor executor = new EventMapperExecutor(mappers,
+                new EventMapperExecutorConfig().setThreads(4).setBatchChunkSize(3), new MetricRegistry(null));
+
+        try {
+            EventList events = new EventList(CONTEXT, "project", Collections.nCopies(10, null));
+            HttpHeaders headers = new DefaultHttpHeaders();
+            List<Cookie> cookies = executor.map(events, EventMapper.RequestParams.EMPTY_PARAMS,
+                    InetAddress.getLoopbackAddress(), headers).join();
+
+            assertEquals(cookies.size(), 20);
+            // each chunk sets the header of the mapper, it's not repeated for each chunk
+            assertEquals(headers.getAll("X-Os"), ImmutableList.of("1"));
+            assertEquals(headers.getAll("X-Country"), ImmutableList.of("1"));
+        }
+        finally {
+            executor.destroy();
+        }
+    }
+
+    @Test
+    public void testInlineExecution() throws Exception {
+        List<String> calls = Collections.synchronizedList(new ArrayList<>());
+
+        Set<EventMapper> mappers = new LinkedHashSet<>();
+        mappers.add(new RecordingMapper("time", calls, null, new SchemaField("_time", TIMESTAMP)));
+        mappers.add(new RecordingMapper("user_agent", calls, "_user_agent", new SchemaField("_os", STRING)));
+
+        EventMapperExecutor executor = new EventMapperExecutor(mappers,
+                new EventMapperExecutorConfig().setThreads(0), new MetricRegistry(null));
+
+        List<Cookie> cookies = executor.map((Event) null, EventMapper.RequestParams.EMPTY_PARAMS,
+                InetAddress.getLoopbackAddress(), new DefaultHttpHeaders()).join();
+
+        assertEquals(cookies.size(), 2);
+        assertEquals(calls, ImmutableList.of("time:1", "user_agent:1"));
+    }
+
+    private static class HeaderMapper implements EventMapper {
+        private final String header;
+        private final SchemaField field;
+
+        private HeaderMapper(String header, SchemaField field) {
+            this.header = header;
+            this.field = field;
+        }
+
+        @Override
+        public List<Cookie> map(Event event, RequestParams requestParams, InetAddress sourceAddress, HttpHeaders responseHeaders) {
+            responseHeaders.set(header, "1");
+            return ImmutableList.of(new DefaultCookie(header, "1"));
+        }
+
+        @Override
+        public void addFieldDependency(FieldDependencyBuilder builder) {
+            builder.addFields(ImmutableList.of(field));
+        }
+    }
+
+    private static class RecordingMapper implements EventMapper {
+        private final String name;
+        private final List<String> calls;
+        private final String dependentField;
+        private final SchemaField field;
+
+        private RecordingMapper(String name, List<String> calls, String dependentField, SchemaField field) {
+            this.name = name;
+            this.calls = calls;
+            this.dependentField = dependentField;
+            this.field = field;
+        }
+
+        @Override
+        public List<Cookie> map(Event event, RequestParams requestParams, InetAddress sourceAddress, HttpHeaders responseHeaders) {
+            calls.add(name + ":1");
+            responseHeaders.add("mapper", name);
+            return ImmutableList.of(new DefaultCookie(name, "1"));
+        }
+
+        @Override
+        public List<Cookie> map(EventList events, RequestParams requestParams, InetAddress sourceAddress, HttpHeaders responseHeaders) {
+            calls.add(name + ":" + events.events.size());
+            responseHeaders.add("mapper", name);
+            return ImmutableList.of(new DefaultCookie(name, "1"));
+        }
+
+        @Override
+        public void addFieldDependency(FieldDependencyBuilder builder) {
+            if (field == null) {
+                return;
+            }
+            if (dependentField == null) {
+                builder.addFields(ImmutableList.of(field));
+            }
+            else {
+                builder.addFields(dependentField, ImmutableList.of(field));
+            }
+        }
+    }
+}
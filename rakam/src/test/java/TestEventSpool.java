@@ -0,0 +1,174 @@
+import com.fasterxml.jackson.databind.JsonNode;
+import com.google.common.base.Strings;
+import com.google.common.collect.ImmutableList;
+import com.google.common.io.Files;
+import org.apache.avro.Schema;
+import org.apache.avro.generic.GenericData;
+import org.rakam.collection.Event;
+import org.rakam.collection.EventSpool;
+import org.rakam.collection.SchemaField;
+import org.rakam.util.AvroUtil;
+import org.rakam.util.JsonHelper;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.rakam.collection.FieldType.LONG;
+import static org.rakam.collection.FieldType.STRING;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+public class TestEventSpool {
+    private static final List<SchemaField> FIELDS = ImmutableList.of(
+            new SchemaField("name", STRING),
+            new SchemaField("value", LONG));
+    private static final Schema SCHEMA = AvroUtil.convertAvroSchema(FIELDS);
+
+    private File directory;
+
+    @BeforeMethod
+    public void setUp() {
+        directory = Files.createTempDir();
+    }
+
+    @AfterMethod
+    public void tearDown() {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        directory.delete();
+    }
+
+    @Test
+    public void testAppendAndPoll() throws Exception {
+        EventSpool spool = new EventSpool(directory, 4096, 1024 * 1024);
+
+        List<Event> events = events("project", 500);
+        spool.append(events);
+
+        List<Event> read = new ArrayList<>();
+        while (read.size() < events.size()) {
+            List<Event> batch = spool.poll(100, 1, TimeUnit.SECONDS);
+            assertTrue(!batch.isEmpty());
+            read.addAll(batch);
+            spool.commit();
+        }
+
+        assertEquals(read, events);
+        assertTrue(spool.poll(100, 10, TimeUnit.MILLISECONDS).isEmpty());
+        spool.close();
+    }
+
+    @Test
+    public void testBatchesDoNotMixProjects() throws Exception {
+        EventSpool spool = new EventSpool(directory, 1024 * 1024, 1024 * 1024 * 16);
+        spool.append(events("project1", 3));
+        spool.append(events("project2", 3));
+
+        assertEquals(spool.poll(100, 1, TimeUnit.SECONDS), events("project1", 3));
+        spool.commit();
+        assertEquals(spool.poll(100, 1, TimeUnit.SECONDS), events("project2", 3));
+        spool.close();
+    }
+
+    @Test
+    public void testReplayUncommittedEvents() throws Exception {
+        EventSpool spool = new EventSpool(directory, 4096, 1024 * 1024);
+        List<Event> events = events("project", 200);
+        spool.append(events);
+
+        List<Event> committed = spool.poll(50, 1, TimeUnit.SECONDS);
+        spool.commit();
+        spool.poll(50, 1, TimeUnit.SECONDS);
+        spool.close();
+
+        EventSpool reopened = new EventSpool(directory, 4096, 1024 * 1024);
+        List<Event> replayed = new ArrayList<>();
+        List<Event> batch;
+        while (!(batch = reopened.poll(100, 10, TimeUnit.MILLISECONDS)).isEmpty()) {
+            replayed.addAll(batch);
+            reopened.commit();
+        }
+
+        assertEquals(replayed, events.subList(committed.size(), events.size()));
+        reopened.close();
+    }
+
+    @Test
+    public void testEventContextIsPersisted() throws Exception {
+        EventSpool spool = new EventSpool(directory, 4096, 1024 * 1024);
+        Event.EventContext api = new Event.EventContext("writeKey", null, "1.0", 1000L, "checksum", null);
+
+        List<Event> events = new ArrayList<>();
+        for (Event event : events("project", 3)) {
+            events.add(new Event(event.project(), event.collection(), api, event.schema(), event.properties()));
+        }
+        spool.append(events);
+        spool.close();
+
+        EventSpool reopened = new EventSpool(directory, 4096, 1024 * 1024);
+        List<Event> read = reopened.poll(100, 1, TimeUnit.SECONDS);
+        assertEquals(read, events);
+        assertEquals(read.get(0).api().apiKey, "writeKey");
+        reopened.close();
+    }
+
+    @Test
+    public void testFailedAppendIsDiscarded() throws Exception {
+        EventSpool spool = new EventSpool(directory, 4096, 1024 * 1024);
+
+        List<Event> events = new ArrayList<>(events("project", 100));
+        GenericData.Record large = new GenericData.Record(SCHEMA);
+        large.put("name", Strings.repeat("a", 8192));
+        large.put("value", 0L);
+        events.add(new Event("project", "collection", null, FIELDS, large));
+
+        try {
+            spool.append(events);
+            fail("the event is larger than the segment");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        assertTrue(spool.poll(100, 10, TimeUnit.MILLISECONDS).isEmpty());
+
+        List<Event> next = events("project", 3);
+        spool.append(next);
+        assertEquals(spool.poll(100, 1, TimeUnit.SECONDS), next);
+        spool.close();
+    }
+
+    @Test
+    public void testDeadLetter() throws Exception {
+        EventSpool spool = new EventSpool(directory, 4096, 1024 * 1024);
+        spool.deadLetter(events("project", 2));
+        spool.deadLetter(events("project", 1));
+        spool.close();
+
+        List<String> lines = Files.readLines(new File(directory, "dead-letter.json"), StandardCharsets.UTF_8);
+        assertEquals(lines.size(), 3);
+        JsonNode event = JsonHelper.read(lines.get(1));
+        assertEquals(event.get("project").asText(), "project");
+        assertEquals(event.get("properties").get("name").asText(), "event1");
+    }
+
+    private static List<Event> events(String project, int count) {
+        List<Event> events = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            GenericData.Record record = new GenericData.Record(SCHEMA);
+            record.put("name", "event" + i);
+            record.put("value", (long) i);
+            events.add(new Event(project, "collection", null, FIELDS, record));
+        }
+        return events;
+    }
+}
@@ -0,0 +1,146 @@
+import com.google.common.base.Ticker;
+import com.google.common.collect.ImmutableMap;
+import io.netty.handler.codec.http.DefaultHttpHeaders;
+import org.rakam.collection.IngestionRateLimitConfig;
+import org.rakam.collection.IngestionRateLimiter;
+import org.testng.annotations.Test;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.rakam.analysis.ApiKeyService.AccessKeyType.WRITE_KEY;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+
+public class TestIngestionRateLimiter {
+    private final FakeTicker ticker = new FakeTicker();
+
+    @Test
+    public void testEventBudget() throws Exception {
+        IngestionRateLimiter limiter = createLimiter(new IngestionRateLimitConfig()
+                .setEnabled(true)
+                .setProjectEventsPerSecond(10)
+                .setBurst("1s"), 0);
+
+        for (int i = 0; i < 10; i++) {
+            assertFalse(limiter.acquire("project", "key", 10).isRejected());
+        }
+
+        IngestionRateLimiter.Ticket rejected = limiter.acquire("project", "key", 10);
+        assertTrue(rejected.isRejected());
+        assertEquals(rejected.getRetryAfterSeconds(), 1);
+
+        // the budget of a project is not used by the other projects
+        assertFalse(limiter.acquire("other_project", "other_key", 10).isRejected());
+
+        ticker.advance(100, TimeUnit.MILLISECONDS);
+        assertFalse(limiter.acquire("project", "key", 10).isRejected());
+    }
+
+    @Test
+    public void testBatchEventsAreCharged() throws Exception {
+        IngestionRateLimiter limiter = createLimiter(new IngestionRateLimitConfig()
+                .setEnabled(true)
+                .setKeyEventsPerSecond(100)
+                .setBurst("1s"), 0);
+
+        IngestionRateLimiter.Ticket ticket = limiter.acquire("project", "key", 10);
+        assertFalse(ticket.isRejected());
+        ticket.recordEvents(300);
+
+        IngestionRateLimiter.Ticket rejected = limiter.acquire("project", "key", 10);
+        assertTrue(rejected.isRejected());
+        // the budget is 200 events below zero
+        assertEquals(rejected.getRetryAfterSeconds(), 3);
+    }
+
+    @Test
+    public void testByteBudget() throws Exception {
+        IngestionRateLimiter limiter = createLimiter(new IngestionRateLimitConfig()
+                .setEnabled(true)
+                .setKeyBytesPerSecond("1kB")
+                .setBurst("1s"), 0);
+
+        assertFalse(limiter.acquire("project", "key", 1000).isRejected());
+        assertTrue(limiter.acquire("project", "key", 1000).isRejected());
+
+        // the requests larger than the burst are accepted when the budget is full
+        ticker.advance(1, TimeUnit.SECONDS);
+        assertFalse(limiter.acquire("project", "key", 5000).isRejected());
+    }
+
+    @Test
+    public void testRejectedRequestIsRefunded() throws Exception {
+        IngestionRateLimiter limiter = createLimiter(new IngestionRateLimitConfig()
+                .setEnabled(true)
+                .setProjectEventsPerSecond(10)
+                .setKeyBytesPerSecond("1kB")
+                .setBurst("1s"), 0);
+
+        assertFalse(limiter.acquire("project", "key", 1000).isRejected());
+        // the byte budget of the key is exhausted, the event budget of the project is not charged
+        assertTrue(limiter.acquire("project", "key", 1000).isRejected());
+
+        for (int i = 0; i < 9; i++) {
+            assertFalse(limiter.acquire("project", "other_key", 10).isRejected());
+        }
+        assertTrue(limiter.acquire("project", "other_key", 10).isRejected());
+    }
+
+    @Test
+    public void testBudgetIsReducedWhenQueueIsFull() throws Exception {
+        IngestionRateLimitConfig config = new IngestionRateLimitConfig()
+                .setEnabled(true)
+                .setProjectEventsPerSecond(100)
+                .setBurst("1s")
+                .setThrottleThreshold(0.5)
+                .setMinBudgetRatio(0.1);
+
+        IngestionRateLimiter limiter = createLimiter(config, 1);
+        int accepted = 0;
+        while (!limiter.acquire("project", "key", 1).isRejected()) {
+            accepted++;
+        }
+        assertEquals(accepted, 10);
+    }
+
+    @Test
+    public void testDisabled() throws Exception {
+        IngestionRateLimiter limiter = createLimiter(new IngestionRateLimitConfig()
+                .setProjectEventsPerSecond(1), 1);
+
+        for (int i = 0; i < 100; i++) {
+            assertFalse(limiter.acquire(ImmutableMap.of(), new DefaultHttpHeaders(),
+                    26, "{\"api\": {\"api_key\": \"key\"}}", WRITE_KEY).isRejected());
+        }
+    }
+
+    @Test
+    public void testFindApiKey() throws Exception {
+        assertEquals(IngestionRateLimiter.findApiKey("{\"collection\": \"test\", \"properties\": {\"api\": {\"api_key\": \"wrong\"}}, " +
+                "\"api\": {\"library\": {\"name\": \"js\"}, \"api_key\": \"key\"}}"), "key");
+        assertEquals(IngestionRateLimiter.findApiKey("{\"api\": {\"writeKey\": \"key\"}, \"events\": [{\"collection\": \"test\"}]}"), "key");
+        assertNull(IngestionRateLimiter.findApiKey("{\"events\": []}"));
+        assertNull(IngestionRateLimiter.findApiKey("{\"api\": "));
+        assertNull(IngestionRateLimiter.findApiKey("[]"));
+    }
+
+    private IngestionRateLimiter createLimiter(IngestionRateLimitConfig config, double queueUtilization) {
+        return new IngestionRateLimiter(config, null, () -> queueUtilization, ticker);
+    }
+
+    private static class FakeTicker extends Ticker {
+        private final AtomicLong nanos = new AtomicLong();
+
+        @Override
+        public long read() {
+            return nanos.get();
+        }
+
+        public void advance(long value, TimeUnit unit) {
+            nanos.addAndGet(unit.toNanos(value));
+        }
+    }
+}
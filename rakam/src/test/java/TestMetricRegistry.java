@@ -0,0 +1,61 @@
+import org.rakam.metrics.Counter;
+import org.rakam.metrics.Distribution;
+import org.rakam.metrics.MetricRegistry;
+import org.testng.annotations.Test;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertSame;
+import static org.testng.Assert.assertTrue;
+
+public class TestMetricRegistry {
+    @Test
+    public void testSameMetricIsReturned() throws Exception {
+        MetricRegistry registry = new MetricRegistry(null);
+        Counter counter = registry.counter("test_total", "help", "type", "a");
+
+        assertSame(registry.counter("test_total", "help", "type", "a"), counter);
+        assertTrue(registry.counter("test_total", "help", "type", "b") != counter);
+    }
+
+    @Test(expectedExceptions = IllegalStateException.class)
+    public void testTypeMismatch() throws Exception {
+        MetricRegistry registry = new MetricRegistry(null);
+        registry.counter("test", "help");
+        registry.distribution("test", "help");
+    }
+
+    @Test
+    public void testPrometheusFormat() throws Exception {
+        MetricRegistry registry = new MetricRegistry(null);
+        registry.counter("test_total", "Test counter", "endpoint", "batch").add(3);
+
+        AtomicLong value = new AtomicLong(5);
+        registry.gauge("test_pending", "Test gauge", value::get);
+
+        Distribution distribution = registry.distribution("test_size", "Test distribution");
+        for (int i = 1; i <= 100; i++) {
+            distribution.add(i);
+        }
+
+        String output = registry.toPrometheusFormat();
+        assertTrue(output.contains("# TYPE test_total counter\ntest_total{endpoint=\"batch\"} 3\n"), output);
+        assertTrue(output.contains("# TYPE test_pending gauge\ntest_pending 5\n"), output);
+        assertTrue(output.contains("# TYPE test_size summary\n"), output);
+        assertTrue(output.contains("test_size{quantile=\"0.5\"} 50\n"), output);
+        assertTrue(output.contains("test_size_sum 5050\n"), output);
+        assertTrue(output.contains("test_size_count 100\n"), output);
+    }
+
+    @Test
+    public void testTimerScale() throws Exception {
+        MetricRegistry registry = new MetricRegistry(null);
+        Distribution timer = registry.timer("test_seconds", "Test timer");
+        timer.add(1_500_000_000L);
+
+        assertEquals(timer.getCount(), 1);
+        assertEquals(timer.getSum(), 1.5);
+        assertEquals(timer.getMax(), 1.5, 0.02);
+    }
+}
@@ -0,0 +1,285 @@
+import com.facebook.presto.sql.tree.Expression;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.ChannelOutboundHandlerAdapter;
+import io.netty.channel.ChannelPromise;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.http.DefaultHttpRequest;
+import io.netty.handler.codec.http.HttpContent;
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpResponse;
+import io.netty.handler.codec.http.LastHttpContent;
+import io.netty.util.ReferenceCountUtil;
+import org.apache.commons.csv.CSVFormat;
+import org.apache.commons.csv.CSVRecord;
+import org.apache.poi.ss.usermodel.Sheet;
+import org.apache.poi.xssf.usermodel.XSSFWorkbook;
+import org.rakam.analysis.InMemoryApiKeyService;
+import org.rakam.collection.SchemaField;
+import org.rakam.plugin.user.AbstractUserService;
+import org.rakam.plugin.user.UserStorage;
+import org.rakam.plugin.user.UserUtilHttpService;
+import org.rakam.report.QueryExecution;
+import org.rakam.report.QueryResult;
+import org.rakam.server.http.RakamHttpRequest;
+import org.rakam.util.JsonHelper;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.StringReader;
+import java.net.URLEncoder;
+import java.nio.channels.ClosedChannelException;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static io.netty.handler.codec.http.HttpResponseStatus.INTERNAL_SERVER_ERROR;
+import static io.netty.handler.codec.http.HttpResponseStatus.OK;
+import static io.netty.handler.codec.http.HttpVersion.HTTP_1_1;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.rakam.collection.FieldType.LONG;
+import static org.rakam.collection.FieldType.STRING;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNotNull;
+import static org.testng.Assert.assertTrue;
+
+public class TestUserUtilHttpService {
+    // the page size of the export
+    private static final int PAGE_SIZE = 10000;
+    private static final List<SchemaField> METADATA = ImmutableList.of(
+            new SchemaField(UserStorage.PRIMARY_KEY, LONG),
+            new SchemaField("name", STRING));
+
+    private InMemoryApiKeyService apiKeyService;
+    private PagedUserService userService;
+    private UserUtilHttpService service;
+    private String readKey;
+
+    @BeforeMethod
+    public void setUp() throws Exception {
+        apiKeyService = new InMemoryApiKeyService();
+        readKey = apiKeyService.createApiKeys("test").readKey();
+        userService = new PagedUserService();
+        service = new UserUtilHttpService(apiKeyService, userService);
+    }
+
+    @AfterMethod
+    public void tearDown() throws Exception {
+        service.destroy();
+    }
+
+    @Test
+    public void testCsvIsStreamedPageByPage() throws Exception {
+        userService.userCount = PAGE_SIZE * 2 + 5;
+        ResponseCollector collector = export("csv");
+
+        HttpResponse response = collector.nextResponse();
+        assertEquals(response.getStatus(), OK);
+        assertTrue(HttpHeaders.isTransferEncodingChunked(response));
+        assertEquals(response.headers().get("Content-Disposition"), "attachment;filename=\"exported_people.csv\"");
+
+        List<byte[]> chunks = collector.readChunks();
+        // each page is written as a separate chunk
+        assertEquals(chunks.size(), 3);
+        assertEquals(userService.searches, ImmutableList.of(Optional.empty(),
+                Optional.of((long) PAGE_SIZE - 1), Optional.of((long) PAGE_SIZE * 2 - 1)));
+
+        List<CSVRecord> records = CSVFormat.DEFAULT.parse(new StringReader(new String(concat(chunks), UTF_8))).getRecords();
+        assertEquals(records.size(), userService.userCount + 1);
+        assertEquals(ImmutableList.copyOf(records.get(0)), ImmutableList.of("id", "name"));
+        for (int i = 0; i < userService.userCount; i++) {
+            assertEquals(ImmutableList.copyOf(records.get(i + 1)), ImmutableList.of(String.valueOf(i), "user" + i));
+        }
+    }
+
+    @Test
+    public void testExcelIsStreamedAfterLastPage() throws Exception {
+        userService.userCount = 3;
+        // the binary Excel format is exported as XLSX
+        ResponseCollector collector = export("xls");
+
+        HttpResponse response = collector.nextResponse();
+        assertEquals(response.headers().get("Content-Disposition"), "attachment;filename=\"exported_people.xlsx\"");
+
+        byte[] content = concat(collector.readChunks());
+        try (XSSFWorkbook workbook = new XSSFWorkbook(new ByteArrayInputStream(content))) {
+            Sheet sheet = workbook.getSheetAt(0);
+            // the header and the users
+            assertEquals(sheet.getLastRowNum(), 3);
+            for (int i = 0; i < 3; i++) {
+                assertEquals(sheet.getRow(i + 1).getCell(0).getNumericCellValue(), (double) i);
+                assertEquals(sheet.getRow(i + 1).getCell(1).getStringCellValue(), "user" + i);
+            }
+        }
+    }
+
+    @Test
+    public void testExportIsAbortedWhenClientDisconnects() throws Exception {
+        userService.userCount = PAGE_SIZE * 3;
+        ResponseCollector collector = new ResponseCollector();
+        // the client goes away while the first page is written
+        collector.failedChunks.set(1);
+        EmbeddedChannel channel = export("csv", collector);
+
+        // the embedded event loop doesn't allow waiting on its futures
+        CountDownLatch closed = new CountDownLatch(1);
+        channel.closeFuture().addListener(future -> closed.countDown());
+
+        assertNotNull(collector.nextResponse());
+        assertTrue(closed.await(10, TimeUnit.SECONDS));
+        assertFalse(channel.isOpen());
+
+        // the remaining pages are not fetched and the response is not completed
+        assertEquals(userService.searches, ImmutableList.of(Optional.empty()));
+        assertTrue(collector.messages.isEmpty());
+    }
+
+    @Test
+    public void testFailureBeforeFirstPage() throws Exception {
+        userService.error = new IllegalStateException("the storage is unavailable");
+        ResponseCollector collector = export("csv");
+
+        HttpResponse response = collector.nextResponse();
+        assertEquals(response.getStatus(), INTERNAL_SERVER_ERROR);
+        assertFalse(HttpHeaders.isTransferEncodingChunked(response));
+        ReferenceCountUtil.release(response);
+    }
+
+    private ResponseCollector export(String format) throws Exception {
+        ResponseCollector collector = new ResponseCollector();
+        export(format, collector);
+        return collector;
+    }
+
+    private EmbeddedChannel export(String format, ResponseCollector collector) throws Exception {
+        String query = JsonHelper.encode(ImmutableMap.of(
+                "filter", ImmutableMap.of("read_key", readKey),
+                "export_format", format));
+
+        // the responses are written to the context of the last handler so that they pass through the collector
+        EmbeddedChannel channel = new EmbeddedChannel(collector, new ChannelInboundHandlerAdapter());
+        ChannelHandlerContext context = channel.pipeline().lastContext();
+        service.export(new RakamHttpRequest(context, new DefaultHttpRequest(HTTP_1_1, HttpMethod.GET,
+                "/user/export?query=" + URLEncoder.encode(query, "UTF-8"))));
+        return channel;
+    }
+
+    private static byte[] concat(List<byte[]> chunks) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (byte[] chunk : chunks) {
+            out.write(chunk, 0, chunk.length);
+        }
+        return out.toByteArray();
+    }
+
+    private static class ResponseCollector extends ChannelOutboundHandlerAdapter {
+        private final BlockingQueue<Object> messages = new LinkedBlockingQueue<>();
+        private final AtomicInteger failedChunks = new AtomicInteger(-1);
+
+        @Override
+        public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) {
+            // the error responses are full responses, they're read by the tests
+            if (msg instanceof HttpResponse) {
+                messages.add(msg);
+                promise.setSuccess();
+                return;
+            }
+
+            if (failedChunks.decrementAndGet() == 0) {
+                ReferenceCountUtil.release(msg);
+                promise.setFailure(new ClosedChannelException());
+                return;
+            }
+
+            if (msg instanceof HttpContent) {
+                ByteBuf content = ((HttpContent) msg).content();
+                byte[] bytes = new byte[content.readableBytes()];
+                content.readBytes(bytes);
+                messages.add(msg instanceof LastHttpContent ? LastHttpContent.EMPTY_LAST_CONTENT : bytes);
+                ReferenceCountUtil.release(msg);
+            } else {
+                messages.add(msg);
+            }
+            promise.setSuccess();
+        }
+
+        public HttpResponse nextResponse() throws InterruptedException {
+            Object message = messages.poll(10, TimeUnit.SECONDS);
+            assertTrue(message instanceof HttpResponse, String.valueOf(message));
+            return (HttpResponse) message;
+        }
+
+        public List<byte[]> readChunks() throws InterruptedException {
+            List<byte[]> chunks = new ArrayList<>();
+            while (true) {
+                Object message = messages.poll(10, TimeUnit.SECONDS);
+                assertNotNull(message, "the export is not completed");
+                if (message instanceof LastHttpContent) {
+                    return chunks;
+                }
+                byte[] chunk = (byte[]) message;
+                if (chunk.length > 0) {
+                    chunks.add(chunk);
+                }
+            }
+        }
+    }
+
+    private static class PagedUserService extends AbstractUserService {
+        private final List<Optional<Object>> searches = Collections.synchronizedList(new ArrayList<>());
+        private volatile int userCount;
+        private volatile RuntimeException error;
+
+        public PagedUserService() {
+            super(null);
+        }
+
+        @Override
+        public CompletableFuture<QueryResult> searchUsersAfter(String project, Expression filterExpression, List<UserStorage.EventFilter> eventFilter, Object lastUserId, int limit) {
+            searches.add(Optional.ofNullable(lastUserId));
+            if (error != null) {
+                CompletableFuture<QueryResult> future = new CompletableFuture<>();
+                future.completeExceptionally(error);
+                return future;
+            }
+
+            long start = lastUserId == null ? 0 : ((Number) lastUserId).longValue() + 1;
+            List<List<Object>> rows = new ArrayList<>();
+            for (long id = start; id < userCount && rows.size() < limit; id++) {
+                rows.add(ImmutableList.of(id, "user" + id));
+            }
+            return CompletableFuture.completedFuture(new QueryResult(METADATA, rows));
+        }
+
+        @Override
+        public CompletableFuture<List<CollectionEvent>> getEvents(String project, String user, Optional<List<String>> properties, int limit, Instant beforeThisTime) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void merge(String project, Object user, Object anonymousId, Instant createdAt, Instant mergedAt) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public QueryExecution preCalculate(String project, PreCalculateQuery query) {
+            throw new UnsupportedOperationException();
+        }
+    }
+}